@@ -0,0 +1,359 @@
+package uk.ac.starlink.array;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds summary statistics of the pixel values of an NDArray.
+ * Instances are obtained using the {@link #calculate} method,
+ * which reads the array in parallel using a {@link ParallelChunker}.
+ * <p>
+ * Statistics are gathered in two passes.  The first accumulates the
+ * count, extrema, mean and sum of squared deviations of the good pixels,
+ * using Welford's method in each thread and Chan et al.'s formula to
+ * merge the threads' results, so that the standard deviation stays
+ * accurate when the mean is large compared to the spread.
+ * The second pass builds a histogram between the extrema from which
+ * percentiles are estimated.  Percentile values are therefore
+ * approximate, with an accuracy of about
+ * <tt>(max-min)/nbin</tt>.
+ */
+public class ArrayStats {
+
+    private final long count;
+    private final long badCount;
+    private final double min;
+    private final double max;
+    private final double mean;
+    private final double m2;
+    private final long[] hist;
+
+    /**
+     * Constructor.
+     *
+     * @param  acc   accumulated values for the whole array
+     * @param  hist  histogram of good values between min and max
+     */
+    private ArrayStats( Accumulator acc, long[] hist ) {
+        count = acc.count;
+        badCount = acc.badCount;
+        min = acc.min;
+        max = acc.max;
+        mean = acc.mean;
+        m2 = acc.m2;
+        this.hist = hist;
+    }
+
+    /**
+     * Returns the number of good pixels.
+     *
+     * @return  good pixel count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of bad pixels.
+     *
+     * @return  bad pixel count
+     */
+    public long getBadCount() {
+        return badCount;
+    }
+
+    /**
+     * Returns the smallest good pixel value.
+     *
+     * @return  minimum, or NaN if there are no good pixels
+     */
+    public double getMinimum() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * Returns the largest good pixel value.
+     *
+     * @return  maximum, or NaN if there are no good pixels
+     */
+    public double getMaximum() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Returns the mean of the good pixel values.
+     *
+     * @return  mean, or NaN if there are no good pixels
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * Returns the population standard deviation of the good pixel values.
+     *
+     * @return  standard deviation, or NaN if there are no good pixels
+     */
+    public double getStandardDeviation() {
+        return count > 0 ? Math.sqrt( m2 / count ) : Double.NaN;
+    }
+
+    /**
+     * Returns an estimate of a given percentile of the good pixel values.
+     * The value is interpolated within the histogram bin in which
+     * it falls.
+     *
+     * @param  percent  percentile in the range 0..100
+     * @return  approximate value below which the given percentage of
+     *          good pixels lie, or NaN if there are no good pixels
+     * @throws  IllegalArgumentException  if percent is out of range
+     */
+    public double getPercentile( double percent ) {
+        if ( ! ( percent >= 0 && percent <= 100 ) ) {
+            throw new IllegalArgumentException( "Percentile " + percent
+                                              + " out of range 0..100" );
+        }
+        if ( count == 0 ) {
+            return Double.NaN;
+        }
+        if ( percent == 0 || max == min ) {
+            return min;
+        }
+        if ( percent == 100 ) {
+            return max;
+        }
+        double target = count * percent / 100.0;
+        double width = ( max - min ) / hist.length;
+        long cum = 0;
+        for ( int ib = 0; ib < hist.length; ib++ ) {
+            long n = hist[ ib ];
+            if ( n > 0 && cum + n >= target ) {
+                return min + width * ( ib + ( target - cum ) / n );
+            }
+            cum += n;
+        }
+        return max;
+    }
+
+    public String toString() {
+        return new StringBuffer()
+            .append( "count=" )
+            .append( count )
+            .append( ", bad=" )
+            .append( badCount )
+            .append( ", min=" )
+            .append( getMinimum() )
+            .append( ", max=" )
+            .append( getMaximum() )
+            .append( ", mean=" )
+            .append( getMean() )
+            .append( ", sd=" )
+            .append( getStandardDeviation() )
+            .toString();
+    }
+
+    /**
+     * Calculates statistics for an NDArray.
+     * The array must be readable.  If it does not provide random and
+     * multiple access, a scratch copy is made first.
+     *
+     * @param  nda  array to characterise
+     * @param  nthread  maximum number of threads to use;
+     *                  if &lt;=0, a default value based on the number of
+     *                  available processors is used
+     * @param  nbin  number of histogram bins used for percentile
+     *               estimation
+     * @return  statistics object
+     * @throws  IOException  if an I/O error occurs
+     */
+    public static ArrayStats calculate( NDArray nda, int nthread, int nbin )
+            throws IOException {
+        if ( nbin <= 0 ) {
+            throw new IllegalArgumentException( "nbin " + nbin + " <= 0" );
+        }
+
+        /* Get a double precision view of the data using NaN for bad
+         * values.  Both passes need their own accessors. */
+        Requirements req = new Requirements( AccessMode.READ )
+                          .setType( Type.DOUBLE )
+                          .setBadHandler( Type.DOUBLE.defaultBadHandler() );
+        NDArray dnda = NDArrays.toRequiredArray( nda, req );
+        NDArray scratch = null;
+        if ( ! dnda.isRandom() || ! dnda.multipleAccess() ) {
+            scratch = new ScratchNDArray( dnda );
+            NDArrays.copy( dnda, scratch );
+            dnda = scratch;
+        }
+        final NDArray data = dnda;
+        try {
+            ParallelChunker chunker =
+                new ParallelChunker( data.getShape().getNumPixels(),
+                                     nthread );
+            final int chunkSize = chunker.getChunkSize();
+
+            /* First pass: moments and extrema. */
+            final List<Accumulator> accs = new ArrayList<Accumulator>();
+            chunker.process( new ParallelChunker.Factory() {
+                public ParallelChunker.ChunkProcessor createProcessor()
+                        throws IOException {
+                    Accumulator acc =
+                        new Accumulator( data.getAccess(), chunkSize );
+                    accs.add( acc );
+                    return acc;
+                }
+            } );
+            Accumulator total = accs.get( 0 );
+            for ( int i = 1; i < accs.size(); i++ ) {
+                total.add( accs.get( i ) );
+            }
+
+            /* Second pass: histogram. */
+            final long[] hist = new long[ nbin ];
+            if ( total.count > 0 && total.max > total.min ) {
+                final double lo = total.min;
+                final double hi = total.max;
+                final List<Binner> binners = new ArrayList<Binner>();
+                chunker.process( new ParallelChunker.Factory() {
+                    public ParallelChunker.ChunkProcessor createProcessor()
+                            throws IOException {
+                        Binner binner =
+                            new Binner( data.getAccess(), chunkSize,
+                                        lo, hi, hist.length );
+                        binners.add( binner );
+                        return binner;
+                    }
+                } );
+                for ( Binner binner : binners ) {
+                    for ( int ib = 0; ib < nbin; ib++ ) {
+                        hist[ ib ] += binner.hist[ ib ];
+                    }
+                }
+            }
+            return new ArrayStats( total, hist );
+        }
+        finally {
+            if ( scratch != null ) {
+                scratch.close();
+            }
+        }
+    }
+
+    /**
+     * Chunk processor which accumulates the mean, the sum of squared
+     * deviations from the mean, and extrema.
+     */
+    private static class Accumulator
+            implements ParallelChunker.ChunkProcessor {
+        final ArrayAccess acc;
+        final double[] buf;
+        long count;
+        long badCount;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double mean;
+        double m2;
+
+        /**
+         * Constructor.
+         *
+         * @param  acc  accessor for double data with NaN bad values
+         * @param  chunkSize  maximum chunk size
+         */
+        Accumulator( ArrayAccess acc, int chunkSize ) {
+            this.acc = acc;
+            buf = new double[ chunkSize ];
+        }
+
+        public void processChunk( long base, int size ) throws IOException {
+            acc.setOffset( base );
+            acc.read( buf, 0, size );
+            for ( int i = 0; i < size; i++ ) {
+                double v = buf[ i ];
+                if ( Double.isNaN( v ) ) {
+                    badCount++;
+                }
+                else {
+                    count++;
+                    double delta = v - mean;
+                    mean += delta / count;
+                    m2 += delta * ( v - mean );
+                    if ( v < min ) {
+                        min = v;
+                    }
+                    if ( v > max ) {
+                        max = v;
+                    }
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            acc.close();
+        }
+
+        /**
+         * Merges the results of another accumulator into this one.
+         *
+         * @param  other  other accumulator
+         */
+        void add( Accumulator other ) {
+            badCount += other.badCount;
+            if ( other.count > 0 ) {
+                long n = count + other.count;
+                double delta = other.mean - mean;
+                mean += delta * other.count / n;
+                m2 += other.m2 + delta * delta * count * other.count / n;
+                count = n;
+            }
+            min = Math.min( min, other.min );
+            max = Math.max( max, other.max );
+        }
+    }
+
+    /**
+     * Chunk processor which accumulates a histogram of good values.
+     */
+    private static class Binner implements ParallelChunker.ChunkProcessor {
+        final ArrayAccess acc;
+        final double[] buf;
+        final double lo;
+        final double scale;
+        final long[] hist;
+
+        /**
+         * Constructor.
+         *
+         * @param  acc  accessor for double data with NaN bad values
+         * @param  chunkSize  maximum chunk size
+         * @param  lo   lower bound of histogram
+         * @param  hi   upper bound of histogram
+         * @param  nbin  number of bins
+         */
+        Binner( ArrayAccess acc, int chunkSize, double lo, double hi,
+                int nbin ) {
+            this.acc = acc;
+            this.lo = lo;
+            buf = new double[ chunkSize ];
+            scale = nbin / ( hi - lo );
+            hist = new long[ nbin ];
+        }
+
+        public void processChunk( long base, int size ) throws IOException {
+            acc.setOffset( base );
+            acc.read( buf, 0, size );
+            int nbin = hist.length;
+            for ( int i = 0; i < size; i++ ) {
+                double v = buf[ i ];
+                if ( ! Double.isNaN( v ) ) {
+                    int ib = (int) ( ( v - lo ) * scale );
+                    hist[ Math.min( Math.max( ib, 0 ), nbin - 1 ) ]++;
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            acc.close();
+        }
+    }
+}
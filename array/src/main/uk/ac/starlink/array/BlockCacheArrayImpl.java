@@ -0,0 +1,218 @@
+package uk.ac.starlink.array;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a random-access NDArray to provide a read-only view of it
+ * in which pixel data is cached in blocks.
+ * Whenever a pixel is read, the whole block of contiguous pixels
+ * containing it is read from the base array in a single operation
+ * and retained, up to a fixed number of blocks, on a
+ * least-recently-used basis.
+ * <p>
+ * This is useful for arrays whose data comes from a stream or
+ * random access file, such as FITS images, when they are read in
+ * many small pieces, for instance when extracting a sub-cube or
+ * spectrum from a large cube, or reading rows of a tile which are
+ * not contiguous in the base array.  Each such piece then costs a
+ * lookup rather than a seek and read, and neighbouring pieces are
+ * served by the same base array I/O operation.
+ * Reads which cover one or more whole blocks are passed directly
+ * to the base array without being cached, so that reading a large
+ * array in big chunks costs no more than it would without the cache.
+ * Arrays which are held in memory or mapped from files
+ * (for instance those based on {@link NioArrayImpl}) will not normally
+ * benefit from this treatment, since random access to them is already
+ * cheap.
+ * <p>
+ * Only a single accessor of the base array is used, but the resulting
+ * array provides multiple access, so it can also be used to give
+ * concurrent access to a base array which does not support that.
+ * The base array should not be written to by other means while this
+ * object is in use.
+ */
+public class BlockCacheArrayImpl extends WrapperArrayImpl {
+
+    private final NDArray nda;
+    private final int blockSize;
+    private final Map<Long,Object> cache;
+    private final long npix;
+    private ArrayAccess baseAcc;
+    private long nhit;
+    private long nmiss;
+
+    /** Default number of pixels in a cached block. */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** Default maximum number of blocks cached. */
+    public static final int DEFAULT_MAX_BLOCKS = 32;
+
+    /**
+     * Constructs a block cache with default characteristics.
+     *
+     * @param  nda  the base NDArray; must be readable and random access
+     * @throws  IllegalArgumentException  if nda is not readable or
+     *          does not provide random access
+     */
+    public BlockCacheArrayImpl( NDArray nda ) {
+        this( nda, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS );
+    }
+
+    /**
+     * Constructs a block cache with given characteristics.
+     *
+     * @param  nda  the base NDArray; must be readable and random access
+     * @param  blockSize  number of pixels in each block
+     * @param  maxBlocks  maximum number of blocks held in the cache
+     * @throws  IllegalArgumentException  if nda is not readable or
+     *          does not provide random access, or the sizes are not
+     *          positive
+     */
+    public BlockCacheArrayImpl( NDArray nda, int blockSize,
+                                final int maxBlocks ) {
+        super( nda );
+        if ( ! nda.isReadable() || ! nda.isRandom() ) {
+            throw new IllegalArgumentException(
+                nda + " is not readable with random access" );
+        }
+        if ( blockSize <= 0 || maxBlocks <= 0 ) {
+            throw new IllegalArgumentException( "Cache sizes must be > 0" );
+        }
+        this.nda = nda;
+        this.blockSize = blockSize;
+        this.npix = nda.getShape().getNumPixels();
+        this.cache = new LinkedHashMap<Long,Object>( 16, 0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry<Long,Object> e ) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    public boolean isWritable() {
+        return false;
+    }
+
+    public boolean isRandom() {
+        return true;
+    }
+
+    public boolean multipleAccess() {
+        return true;
+    }
+
+    public AccessImpl getAccess() {
+        return new AccessImpl() {
+            private long offset = 0L;
+            public void setOffset( long off ) {
+                offset = off;
+            }
+            public void read( Object buffer, int start, int size )
+                    throws IOException {
+                while ( size > 0 ) {
+                    long iblock = offset / blockSize;
+                    int boff = (int) ( offset - iblock * blockSize );
+                    int num;
+                    if ( boff == 0 && size >= blockSize ) {
+                        num = ( size / blockSize ) * blockSize;
+                        readBase( offset, buffer, start, num );
+                    }
+                    else {
+                        Object block = getBlock( iblock );
+                        num = Math.min( size, blockSize - boff );
+                        System.arraycopy( block, boff, buffer, start, num );
+                    }
+                    size -= num;
+                    start += num;
+                    offset += num;
+                }
+            }
+            public void write( Object buffer, int start, int size ) {
+                throw new UnsupportedOperationException( "Not writable" );
+            }
+            public void close() {
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        synchronized ( cache ) {
+            cache.clear();
+            if ( baseAcc != null ) {
+                baseAcc.close();
+                baseAcc = null;
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Returns the number of reads which have been satisfied from the cache.
+     *
+     * @return  cache hit count
+     */
+    public long getHitCount() {
+        synchronized ( cache ) {
+            return nhit;
+        }
+    }
+
+    /**
+     * Returns the number of reads which have required a block to be
+     * read from the base array.
+     *
+     * @return  cache miss count
+     */
+    public long getMissCount() {
+        synchronized ( cache ) {
+            return nmiss;
+        }
+    }
+
+    /**
+     * Returns the pixel data for a given block, reading it from the
+     * base array if it is not already cached.
+     * The final block may be shorter than the others.
+     *
+     * @param  iblock  block index
+     * @return  primitive array containing the block's pixels
+     */
+    private Object getBlock( long iblock ) throws IOException {
+        Long key = new Long( iblock );
+        synchronized ( cache ) {
+            Object block = cache.get( key );
+            if ( block != null ) {
+                nhit++;
+            }
+            else {
+                nmiss++;
+                long base = iblock * blockSize;
+                int size = (int) Math.min( (long) blockSize, npix - base );
+                block = nda.getType().newArray( size );
+                readBase( base, block, 0, size );
+                cache.put( key, block );
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Reads pixels directly from the base array.
+     *
+     * @param  offset  offset into base array
+     * @param  buffer  destination buffer
+     * @param  start   offset into buffer
+     * @param  size    number of pixels to read
+     */
+    private void readBase( long offset, Object buffer, int start, int size )
+            throws IOException {
+        synchronized ( cache ) {
+            if ( baseAcc == null ) {
+                baseAcc = nda.getAccess();
+            }
+            baseAcc.setOffset( offset );
+            baseAcc.read( buffer, start, size );
+        }
+    }
+}
@@ -10,6 +10,11 @@ import java.io.IOException;
  * Type conversions are taken care of, and values which end up outside
  * the range of the type of the resulting array are automatically 
  * turned Bad.
+ * <p>
+ * Each accessor obtained from this object has its own accessors for
+ * the input arrays and its own buffers, so that, if the combiner is
+ * thread-safe, several accessors may be used concurrently, for instance
+ * by {@link NDArrays#copy(NDArray,NDArray,int)}.
  *
  * @author   Mark Taylor (Starlink)
  */
@@ -164,7 +169,7 @@ public class CombineArrayImpl implements ArrayImpl {
         if ( rnda1 != null ) {
             rnda1.close();
         }
-        if ( rnda1 != null ) {
+        if ( rnda2 != null ) {
             rnda2.close();
         }
     }
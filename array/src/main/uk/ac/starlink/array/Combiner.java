@@ -2,6 +2,9 @@ package uk.ac.starlink.array;
 
 /**
  * Defines a real function of two real variables.
+ * Implementations which may be used for processing arrays in
+ * several threads at once should be thread-safe; a function which
+ * depends only on its arguments will be.
  */
 public interface Combiner {
 
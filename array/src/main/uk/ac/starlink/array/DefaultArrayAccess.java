@@ -198,7 +198,7 @@ public class DefaultArrayAccess extends DefaultArrayDescription
 
         /* Check that we don't have to seek backwards in a non-random
          * array. */
-        if ( arrayIsRandom && rowIt.getOffsetA() < offset ) {
+        if ( ! arrayIsRandom && rowIt.getOffsetA() < offset ) {
             throw new UnsupportedOperationException(
                 "Random access attempted on non-random array" );
         }
@@ -14,6 +14,9 @@ import java.util.NoSuchElementException;
  * getOffsetB giving the starting offset in the two base shapes and
  * getRowLength giving the length of the row (getRowLength is a constant -
  * it does not change between iterations).
+ * Where the intersection spans the full width of both shapes in the
+ * fastest varying dimension(s), adjacent rows are contiguous and are
+ * merged, so that fewer, longer rows result.
  * If there is no overlap then getIntersection returns null and 
  * hasNext returns false straight off.
  * 
@@ -29,8 +32,10 @@ class IntersectionRowIterator {
     private long[] interDims;
     private long[] aDims;
     private long[] bDims;
-    private int dim0;      // fastest varying dimension
-    private int ndim1;     // dimensionality - 1
+    private int ncoll;     // number of (fastest varying) dimensions per row
+    private long rowLength;
+    private long aRowStride;
+    private long bRowStride;
     private long[] interPos;
     private long aOff;
     private long bOff;
@@ -57,15 +62,32 @@ class IntersectionRowIterator {
         if ( intersect != null ) {
             inter = new OrderedNDShape( intersect, order );
             ndim = shapeA.getNumDims();
-            ndim1 = ndim - 1;
-            dim0 = fitsLike ? 0 : ndim1;
             aDims = aShape.getDims();
             bDims = bShape.getDims();
             interDims = inter.getDims();
+
+            /* Work out how many of the fastest varying dimensions can be
+             * treated as a single row.  As long as the intersection spans
+             * the whole extent of both shapes in a dimension, the pixels
+             * are contiguous in both, so the row can be extended into the
+             * next dimension.  This coalesces what would otherwise be
+             * many short reads/writes into fewer, longer ones. */
+            ncoll = 1;
+            while ( ncoll < ndim && spansBoth( dim( ncoll - 1 ) ) ) {
+                ncoll++;
+            }
+            rowLength = 1L;
+            aRowStride = 1L;
+            bRowStride = 1L;
+            for ( int j = 0; j < ncoll; j++ ) {
+                int i = dim( j );
+                rowLength *= interDims[ i ];
+                aRowStride *= aDims[ i ];
+                bRowStride *= bDims[ i ];
+            }
             nleft = 1L;
-            for ( int j = 0; j < ndim1; j++ ) {
-                int i = fitsLike ? ( j + 1 ) : ( ndim1 - 1 - j );
-                nleft *= interDims[ i ];
+            for ( int j = ncoll; j < ndim; j++ ) {
+                nleft *= interDims[ dim( j ) ];
             }
             interPos = new long[ ndim ];
             long[] absolutePos = inter.offsetToPosition( 0L );
@@ -95,10 +117,10 @@ class IntersectionRowIterator {
      * @throws   NoSuchElementException  if hasNext would return false
      */
     public void next() {
-        long aStride = aDims[ dim0 ];
-        long bStride = bDims[ dim0 ];
-        for ( int j = 0; j < ndim1; j++ ) {
-            int i = fitsLike ? j + 1 : ( ndim1 - 1 - j );
+        long aStride = aRowStride;
+        long bStride = bRowStride;
+        for ( int j = ncoll; j < ndim; j++ ) {
+            int i = dim( j );
             aOff += aStride;
             bOff += bStride;
             if ( ++interPos[ i ] < interDims[ i ] ) {
@@ -143,10 +165,34 @@ class IntersectionRowIterator {
      * Returns the length of each row - the number of contiguous pixels
      * starting at offsetA in shape A which correspond to pixels starting
      * at offsetB in shape B.  This return value is constant over the
-     * life of this object.
+     * life of this object.  A row covers the intersection's extent in
+     * the fastest varying dimension, and in as many further dimensions
+     * as are contiguous in both shapes.
      */
     public long getRowLength() {
-        return interDims[ dim0 ];
+        return rowLength;
+    }
+
+    /**
+     * Indicates whether the intersection covers the whole extent of
+     * both shapes in a given dimension.
+     *
+     * @param  i  dimension index
+     * @return  true iff intersection, A and B have the same extent in i
+     */
+    private boolean spansBoth( int i ) {
+        return interDims[ i ] == aDims[ i ] && interDims[ i ] == bDims[ i ];
+    }
+
+    /**
+     * Returns the index of the dimension which is <tt>j</tt>'th in
+     * order of how fast it varies.
+     *
+     * @param  j  rank of dimension, 0 being the fastest varying
+     * @return  dimension index
+     */
+    private int dim( int j ) {
+        return fitsLike ? j : ( ndim - 1 - j );
     }
 
 }
@@ -45,6 +45,95 @@ public class NDArrays {
         copy( src.getAccess(), dest.getAccess() );
     }
 
+    /**
+     * Copies the data from one NDArray into another using several threads.
+     * The two must have the same shape (origin and dimensions),
+     * though may have different pixel ordering schemes, primitive types
+     * and bad values; type conversion and bad value translation
+     * are done as for {@link TypeConverter}.
+     * <p>
+     * If both arrays provide random and multiple access and have the
+     * same pixel ordering, the pixels are divided into disjoint
+     * ranges of offsets which are copied concurrently, each using its
+     * own pair of {@link ArrayAccess} objects (see {@link ParallelChunker}).
+     * Otherwise the copy is done in the calling thread as for
+     * {@link #copy(NDArray,NDArray)}.
+     * Note that if the source array computes its pixels on demand,
+     * as for instance a {@link CombineArrayImpl}-based array does,
+     * that computation will be done concurrently too.
+     *
+     * @param  src   the source NDArray
+     * @param  dest  the destination NDArray
+     * @param  nthread  maximum number of threads to use;
+     *                  if &lt;=0, a default value based on the number of
+     *                  available processors is used
+     * @throws  IOException   if an I/O error occurs
+     * @throws  IllegalArgumentException   if src and dest do not match
+     *              in origin or dimensions
+     * @throws  UnsupportedOperationException   if src is not readable
+     *              or dest is not writable
+     */
+    public static void copy( final NDArray src, final NDArray dest,
+                             int nthread ) throws IOException {
+
+        /* Validate arguments. */
+        checkSameShape( src, dest );
+        checkReadable( src );
+        checkWritable( dest );
+
+        /* Use the serial copy if independent accessors are not available. */
+        OrderedNDShape sShape = src.getShape();
+        ParallelChunker chunker =
+            new ParallelChunker( sShape.getNumPixels(), nthread );
+        if ( chunker.getSectionBounds().length <= 2 ||
+             ! src.isRandom() || ! src.multipleAccess() ||
+             ! dest.isRandom() || ! dest.multipleAccess() ||
+             ! sShape.sameSequence( dest.getShape() ) ) {
+            copy( src.getAccess(), dest.getAccess() );
+            return;
+        }
+
+        /* Otherwise copy disjoint sections concurrently.  The converter
+         * is immutable, so can be shared between threads. */
+        final Type sType = src.getType();
+        final Type dType = dest.getType();
+        final Converter conv =
+            new TypeConverter( sType, src.getBadHandler(),
+                               dType, dest.getBadHandler() );
+        final int chunkSize = chunker.getChunkSize();
+        chunker.process( new ParallelChunker.Factory() {
+            public ParallelChunker.ChunkProcessor createProcessor()
+                    throws IOException {
+                final ArrayAccess sAccess = src.getAccess();
+                final ArrayAccess dAccess = dest.getAccess();
+                final Object sBuffer = sType.newArray( chunkSize );
+                final Object dBuffer = conv.isUnit12()
+                                     ? sBuffer
+                                     : dType.newArray( chunkSize );
+                return new ParallelChunker.ChunkProcessor() {
+                    public void processChunk( long base, int size )
+                            throws IOException {
+                        sAccess.setOffset( base );
+                        dAccess.setOffset( base );
+                        sAccess.read( sBuffer, 0, size );
+                        if ( dBuffer != sBuffer ) {
+                            conv.convert12( sBuffer, 0, dBuffer, 0, size );
+                        }
+                        dAccess.write( dBuffer, 0, size );
+                    }
+                    public void close() throws IOException {
+                        try {
+                            sAccess.close();
+                        }
+                        finally {
+                            dAccess.close();
+                        }
+                    }
+                };
+            }
+        } );
+    }
+
     /**
      * Tests two NDArrays for equivalence.
      * Returns true only if the data of both are equivalent; this means
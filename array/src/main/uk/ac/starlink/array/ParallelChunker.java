@@ -0,0 +1,333 @@
+package uk.ac.starlink.array;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Steps through an array in chunks using several threads at once.
+ * This is a parallel counterpart of {@link ChunkStepper}.
+ * The offset range <tt>0..length-1</tt> is divided into a number of
+ * contiguous, disjoint sections, one per thread, and each thread
+ * steps through its own section a chunk at a time.
+ * Section boundaries fall on multiples of the chunk size, so the chunks
+ * processed are exactly those which a ChunkStepper with the same
+ * length and chunk size would give.
+ * <p>
+ * The work done on each chunk is supplied by a {@link Factory}
+ * which creates one {@link ChunkProcessor} per section.
+ * A processor is only ever used from a single thread, so it may
+ * hold its own {@link ArrayAccess} objects and buffers without
+ * synchronization.  Typical use looks like this:
+ * <pre>
+ *     new ParallelChunker( npix, nthread ).process( new Factory() {
+ *         public ChunkProcessor createProcessor() throws IOException {
+ *             final ArrayAccess acc = nda.getAccess();
+ *             final Object buf = acc.getType().newArray( chunkSize );
+ *             return new ChunkProcessor() {
+ *                 public void processChunk( long base, int size )
+ *                         throws IOException {
+ *                     acc.setOffset( base );
+ *                     acc.read( buf, 0, size );
+ *                     doStuff( buf, size );
+ *                 }
+ *                 public void close() throws IOException {
+ *                     acc.close();
+ *                 }
+ *             };
+ *         }
+ *     } );
+ * </pre>
+ * Since each processor sets offsets explicitly, the arrays accessed
+ * in this way must normally provide random and multiple access
+ * (see {@link NDArray#isRandom} and {@link NDArray#multipleAccess}).
+ *
+ * @see      ChunkStepper
+ */
+public class ParallelChunker {
+
+    private final long length;
+    private final int chunkSize;
+    private final int nthread;
+
+    /**
+     * Constructs a ParallelChunker with a given chunk size.
+     *
+     * @param   length     the total number of elements to iterate over
+     * @param   chunkSize  the size of chunk which will be used (except
+     *                     perhaps for the last chunk of each section)
+     * @param   nthread    maximum number of threads to use;
+     *                     if &lt;=0, {@link #defaultThreadCount} is used
+     * @throws  IllegalArgumentException  if <tt>chunkSize&lt;=0</tt>
+     *                                    or <tt>length&lt;0</tt>
+     */
+    public ParallelChunker( long length, int chunkSize, int nthread ) {
+        if ( chunkSize <= 0 ) {
+            throw new IllegalArgumentException(
+                "chunkSize " + chunkSize + " <= 0" );
+        }
+        if ( length < 0L ) {
+            throw new IllegalArgumentException(
+                "length " + length + " < 0" );
+        }
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.nthread = nthread > 0 ? nthread : defaultThreadCount();
+    }
+
+    /**
+     * Constructs a ParallelChunker with the default chunk size.
+     *
+     * @param   length     the total number of elements to iterate over
+     * @param   nthread    maximum number of threads to use;
+     *                     if &lt;=0, {@link #defaultThreadCount} is used
+     */
+    public ParallelChunker( long length, int nthread ) {
+        this( length, ChunkStepper.defaultChunkSize, nthread );
+    }
+
+    /**
+     * Returns the chunk size used by this object.
+     *
+     * @return  chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the total number of elements over which this object
+     * will iterate.
+     *
+     * @return  length
+     */
+    public long getTotalLength() {
+        return length;
+    }
+
+    /**
+     * Returns the offsets at which the sections processed by different
+     * threads start.  The final element is the total length, so that
+     * section <tt>i</tt> covers offsets from <tt>bounds[i]</tt> up to
+     * (but excluding) <tt>bounds[i+1]</tt>.
+     *
+     * @return  array of section boundaries, with one more element than
+     *          the number of sections
+     */
+    public long[] getSectionBounds() {
+        long nchunk = ( length + chunkSize - 1L ) / chunkSize;
+        long nsec = Math.max( 1L, Math.min( (long) nthread, nchunk ) );
+        long secChunks = Math.max( 1L, ( nchunk + nsec - 1L ) / nsec );
+        nsec = Math.max( 1L, ( nchunk + secChunks - 1L ) / secChunks );
+        long[] bounds = new long[ (int) nsec + 1 ];
+        for ( int is = 0; is < nsec; is++ ) {
+            bounds[ is ] = is * secChunks * chunkSize;
+        }
+        bounds[ (int) nsec ] = length;
+        return bounds;
+    }
+
+    /**
+     * Processes all the chunks of the array.
+     * One processor is created, in the calling thread, for each section,
+     * and each is then run in its own thread on the chunks of its section.
+     * If there is only one section, the processing is done in the
+     * calling thread.  Each processor is closed when its section is
+     * complete, or when processing has been abandoned.
+     * This method does not return until all the processing is complete.
+     *
+     * @param  factory  supplier of chunk processors
+     * @throws  IOException  if any of the processors throws an IOException
+     */
+    public void process( Factory factory ) throws IOException {
+        final long[] bounds = getSectionBounds();
+        int nsec = bounds.length - 1;
+
+        /* Single section: just get on with it. */
+        if ( nsec == 1 ) {
+            ChunkProcessor proc = factory.createProcessor();
+            try {
+                processSection( proc, bounds[ 0 ], bounds[ 1 ], null );
+            }
+            finally {
+                proc.close();
+            }
+            return;
+        }
+
+        /* Otherwise, create the processors here so that the factory
+         * is not required to be thread-safe. */
+        List<ChunkProcessor> procs = new ArrayList<ChunkProcessor>();
+        try {
+            for ( int is = 0; is < nsec; is++ ) {
+                procs.add( factory.createProcessor() );
+            }
+        }
+        catch ( IOException e ) {
+            for ( ChunkProcessor proc : procs ) {
+                proc.close();
+            }
+            throw e;
+        }
+
+        /* Run one task per section. */
+        ExecutorService executor =
+            Executors.newFixedThreadPool( nsec, new ThreadFactory() {
+                private int ithread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "Array worker " + ++ithread_ );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for ( int is = 0; is < nsec; is++ ) {
+                final ChunkProcessor proc = procs.get( is );
+                final long lo = bounds[ is ];
+                final long hi = bounds[ is + 1 ];
+                futures.add( executor.submit( new Callable<Object>() {
+                    public Object call() throws IOException {
+                        try {
+                            processSection( proc, lo, hi, failed );
+                        }
+                        catch ( IOException e ) {
+                            failed.set( true );
+                            throw e;
+                        }
+                        catch ( RuntimeException e ) {
+                            failed.set( true );
+                            throw e;
+                        }
+                        finally {
+                            proc.close();
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Object> future : futures ) {
+                getResult( future );
+            }
+        }
+        finally {
+
+            /* If anything went wrong, tell the other workers to stop,
+             * and wait for them so that all processors get closed. */
+            failed.set( true );
+            for ( Future<Object> future : futures ) {
+                try {
+                    future.get();
+                }
+                catch ( Exception e ) {
+                }
+            }
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns a suitable default number of threads for parallel array
+     * processing.  This is the number of available processors.
+     *
+     * @return  default thread count
+     */
+    public static int defaultThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Steps a processor through the chunks of a section.
+     *
+     * @param  proc  chunk processor
+     * @param  lo    offset of start of section
+     * @param  hi    offset of end of section (exclusive)
+     * @param  failed  flag set true if processing should be abandoned;
+     *                 may be null
+     */
+    private void processSection( ChunkProcessor proc, long lo, long hi,
+                                 AtomicBoolean failed ) throws IOException {
+        for ( ChunkStepper cIt = new ChunkStepper( hi - lo, chunkSize );
+              cIt.hasNext() && ( failed == null || ! failed.get() );
+              cIt.next() ) {
+            proc.processChunk( lo + cIt.getBase(), cIt.getSize() );
+        }
+    }
+
+    /**
+     * Waits for a task to complete, rethrowing any exception it threw.
+     *
+     * @param  future  task future
+     */
+    private static void getResult( Future<Object> future )
+            throws IOException {
+        try {
+            future.get();
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException) new IOException( "Interrupted" )
+                               .initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable err = e.getCause();
+            if ( err instanceof IOException ) {
+                throw (IOException) err;
+            }
+            else if ( err instanceof RuntimeException ) {
+                throw (RuntimeException) err;
+            }
+            else if ( err instanceof Error ) {
+                throw (Error) err;
+            }
+            else {
+                throw (IOException) new IOException( err.toString() )
+                                   .initCause( err );
+            }
+        }
+    }
+
+    /**
+     * Does the work for the chunks of a single section.
+     * Chunks are presented in order of increasing offset.
+     */
+    public interface ChunkProcessor {
+
+        /**
+         * Processes a chunk of the array.
+         *
+         * @param  base  offset of the first element in the chunk
+         * @param  size  number of elements in the chunk
+         */
+        void processChunk( long base, int size ) throws IOException;
+
+        /**
+         * Releases any resources held by this processor.
+         * Called exactly once, from the thread which processed the
+         * chunks, after the last chunk has been processed.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Creates chunk processors.
+     */
+    public interface Factory {
+
+        /**
+         * Returns a new processor.
+         * This is called from the thread which invokes
+         * {@link ParallelChunker#process}, once for each section.
+         *
+         * @return  new chunk processor
+         */
+        ChunkProcessor createProcessor() throws IOException;
+    }
+}
@@ -1,7 +1,5 @@
 package uk.ac.starlink.array;
 
-import java.util.Arrays;
-import java.util.Iterator;
 import java.io.IOException;
 
 /**
@@ -117,7 +115,7 @@ public class WindowArrayImpl extends WrapperArrayImpl {
                 public void write( Object buffer, int start, int size )
                         throws IOException {
                     while ( size > 0 ) {
-                        if ( inCommon( start ) ) {
+                        if ( inCommon( offset ) ) {
                             int num = numCommon( offset, size ); 
                             acc.setOffset( baseOff( offset ) );
                             acc.write( buffer, start, num );
@@ -177,26 +175,38 @@ public class WindowArrayImpl extends WrapperArrayImpl {
      * what is the number of contiguous pixels starting at off 
      * (inclusive) which are all contiguous in the base array?  
      * May return a lower limit.
-     *
-     * Should probably come up with a faster implementation.
+     * <p>
+     * The run extends to the end of the intersection in the fastest
+     * varying dimension, and on through further dimensions as long
+     * as the window and the base array have the same extent in all
+     * the faster varying ones.
      *
      * @param  the starting offset in this array; must be in
      *         the intersection
      * @param  the maximum value to be returned
      */
     private int numCommon( long off, int max ) {
-        long boff = baseOff( off );
-        Iterator iw = oshape.pixelIterator( off, npix - off );
-        Iterator ib = baseShape.pixelIterator( boff, baseNpix - boff );
-        iw.next();
-        ib.next();
-        int ncomm = 1;
-        while ( iw.hasNext() && ib.hasNext() &&
-                Arrays.equals( (long[]) iw.next(), (long[]) ib.next() ) &&
-                --max > 0 ) {
-            ncomm++;
+        long[] pos = oshape.offsetToPosition( off );
+        long[] wOrigin = oshape.getOrigin();
+        long[] wDims = oshape.getDims();
+        long[] bOrigin = baseShape.getOrigin();
+        long[] bDims = baseShape.getDims();
+        int ndim = pos.length;
+        boolean fitsLike = order.isFitsLike();
+        long block = 1L;
+        long inner = 0L;
+        for ( int j = 0; j < ndim; j++ ) {
+            int i = fitsLike ? j : ( ndim - 1 - j );
+            if ( wOrigin[ i ] != bOrigin[ i ] || wDims[ i ] != bDims[ i ] ) {
+                long end = Math.min( wOrigin[ i ] + wDims[ i ],
+                                     bOrigin[ i ] + bDims[ i ] );
+                long n = ( end - pos[ i ] ) * block - inner;
+                return (int) Math.min( n, (long) max );
+            }
+            inner += ( pos[ i ] - wOrigin[ i ] ) * block;
+            block *= wDims[ i ];
         }
-        return ncomm;
+        return (int) Math.min( npix - off, (long) max );
     }
 
     /**
@@ -205,8 +215,6 @@ public class WindowArrayImpl extends WrapperArrayImpl {
      * (inclusive) which are all not in the base array?
      * May return a lower limit.
      *
-     * Should come up with a faster implementation.
-     *
      * @param  the starting offset in this array; must be out of 
      *         the intersection
      * @param  the maximum value to be returned
@@ -219,15 +227,31 @@ public class WindowArrayImpl extends WrapperArrayImpl {
             return (int) Math.min( npix - off, (long) max );
         }
         else {
-            Iterator iw = oshape.pixelIterator( off, npix - off );
-            int nncomm = 1;
-            iw.next();
-            while ( iw.hasNext() && 
-                    ! baseShape.within( (long[]) iw.next() ) &&
-                    --max > 0 ) {
-                nncomm++;
+
+            /* If the pixel is outside the base array in the fastest
+             * varying dimension only, the run ends where that dimension
+             * enters the base array or the end of the row, whichever
+             * comes first.  Otherwise the rest of the row is outside. */
+            long[] pos = oshape.offsetToPosition( off );
+            long[] wOrigin = oshape.getOrigin();
+            long[] wDims = oshape.getDims();
+            long[] bOrigin = baseShape.getOrigin();
+            long[] bDims = baseShape.getDims();
+            int ndim = pos.length;
+            int i0 = order.isFitsLike() ? 0 : ndim - 1;
+            long end = wOrigin[ i0 ] + wDims[ i0 ];
+            boolean onlyFast = true;
+            for ( int i = 0; i < ndim && onlyFast; i++ ) {
+                if ( i != i0 &&
+                     ( pos[ i ] < bOrigin[ i ] ||
+                       pos[ i ] >= bOrigin[ i ] + bDims[ i ] ) ) {
+                    onlyFast = false;
+                }
+            }
+            if ( onlyFast && pos[ i0 ] < bOrigin[ i0 ] ) {
+                end = bOrigin[ i0 ];
             }
-            return nncomm;
+            return (int) Math.min( end - pos[ i0 ], (long) max );
         }
     }
 }
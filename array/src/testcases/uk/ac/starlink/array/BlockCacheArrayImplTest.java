@@ -0,0 +1,147 @@
+package uk.ac.starlink.array;
+
+import java.io.IOException;
+import uk.ac.starlink.util.TestCase;
+
+public class BlockCacheArrayImplTest extends TestCase {
+
+    private final OrderedNDShape shape;
+    private final int[] data;
+
+    public BlockCacheArrayImplTest( String name ) {
+        super( name );
+        shape = new OrderedNDShape( new long[] { 1, 1, 1 },
+                                    new long[] { 40, 30, 20 },
+                                    Order.COLUMN_MAJOR );
+        data = new int[ (int) shape.getNumPixels() ];
+        fillCycle( data, -1000, 1000 );
+    }
+
+    public void testCoalesce() throws IOException {
+        CountArrayImpl counter = new CountArrayImpl( createArray() );
+        NDArray nda = new BridgeNDArray( counter );
+
+        /* Full-width planes are contiguous, so are read in one go. */
+        NDShape planes = new NDShape( new long[] { 1, 1, 5 },
+                                      new long[] { 40, 30, 3 } );
+        checkTile( nda, planes );
+        assertEquals( 1, counter.nread );
+
+        /* A sub-cube needs one read per row. */
+        counter.nread = 0;
+        NDShape cube = new NDShape( new long[] { 3, 4, 5 },
+                                    new long[] { 6, 7, 8 } );
+        checkTile( nda, cube );
+        assertEquals( 7 * 8, counter.nread );
+
+        /* Windows read their rows in as few pieces. */
+        counter.nread = 0;
+        NDArray win = new BridgeNDArray( new WindowArrayImpl( nda, cube ) );
+        int[] wbuf = new int[ (int) cube.getNumPixels() ];
+        ArrayAccess wacc = win.getAccess();
+        wacc.read( wbuf, 0, wbuf.length );
+        wacc.close();
+        assertEquals( 7 * 8, counter.nread );
+        assertArrayEquals( readTileDirect( cube ), wbuf );
+    }
+
+    public void testCache() throws IOException {
+        CountArrayImpl counter = new CountArrayImpl( createArray() );
+        BlockCacheArrayImpl cacher =
+            new BlockCacheArrayImpl( new BridgeNDArray( counter ),
+                                     1200, 4 );
+        NDArray nda = new BridgeNDArray( cacher );
+        assertTrue( nda.multipleAccess() );
+        assertTrue( ! nda.isWritable() );
+
+        /* A spectrum along the slowest axis touches every plane, and each
+         * plane (1200 pixels) is one block. */
+        NDShape spec = new NDShape( new long[] { 10, 10, 1 },
+                                    new long[] { 1, 1, 20 } );
+        checkTile( nda, spec );
+        assertEquals( 20, counter.nread );
+        assertEquals( 20, cacher.getMissCount() );
+
+        /* A neighbouring cut-out within the last few planes comes from
+         * the cache. */
+        NDShape cube = new NDShape( new long[] { 5, 5, 17 },
+                                    new long[] { 10, 10, 4 } );
+        checkTile( nda, cube );
+        assertEquals( 20, counter.nread );
+        assertEquals( 20, cacher.getMissCount() );
+        assertTrue( cacher.getHitCount() > 0 );
+
+        /* Whole blocks are read directly, without displacing the
+         * cached ones. */
+        NDShape planes = new NDShape( new long[] { 1, 1, 1 },
+                                      new long[] { 40, 30, 3 } );
+        checkTile( nda, planes );
+        assertEquals( 21, counter.nread );
+        assertEquals( 20, cacher.getMissCount() );
+
+        /* Partly outside the array. */
+        checkTile( nda, new NDShape( new long[] { 35, -2, 18 },
+                                     new long[] { 10, 10, 5 } ) );
+        nda.close();
+    }
+
+    private NDArray createArray() throws IOException {
+        NDArray nda = new ScratchNDArray( shape, Type.INT,
+                                          Type.INT.defaultBadHandler() );
+        ArrayAccess acc = nda.getAccess();
+        acc.write( data, 0, data.length );
+        acc.close();
+        return nda;
+    }
+
+    private void checkTile( NDArray nda, NDShape tile ) throws IOException {
+        int[] buf = new int[ (int) tile.getNumPixels() ];
+        ArrayAccess acc = nda.getAccess();
+        acc.readTile( buf, tile );
+        acc.close();
+        assertArrayEquals( readTileDirect( tile ), buf );
+    }
+
+    private int[] readTileDirect( NDShape tile ) {
+        OrderedNDShape otile = new OrderedNDShape( tile, shape.getOrder() );
+        int[] buf = new int[ (int) tile.getNumPixels() ];
+        int bad = Type.INT.defaultBadValue().intValue();
+        for ( int i = 0; i < buf.length; i++ ) {
+            long[] pos = otile.offsetToPosition( i );
+            buf[ i ] = shape.within( pos )
+                     ? data[ (int) shape.positionToOffset( pos ) ]
+                     : bad;
+        }
+        return buf;
+    }
+
+    /**
+     * Wrapper array which counts the number of reads made from it.
+     */
+    private static class CountArrayImpl extends WrapperArrayImpl {
+        int nread;
+        CountArrayImpl( NDArray nda ) {
+            super( nda );
+        }
+        public AccessImpl getAccess() throws IOException {
+            final AccessImpl base = super.getAccess();
+            return new AccessImpl() {
+                public void setOffset( long off ) throws IOException {
+                    base.setOffset( off );
+                }
+                public void read( Object buffer, int start, int size )
+                        throws IOException {
+                    nread++;
+                    base.read( buffer, start, size );
+                }
+                public void write( Object buffer, int start, int size )
+                        throws IOException {
+                    base.write( buffer, start, size );
+                }
+                public void close() throws IOException {
+                    base.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package uk.ac.starlink.array;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import uk.ac.starlink.util.TestCase;
+
+public class ParallelChunkerTest extends TestCase {
+
+    public ParallelChunkerTest( String name ) {
+        super( name );
+    }
+
+    public void testSections() throws IOException {
+        int dsize = ChunkStepper.defaultChunkSize;
+        sectionTest( 0, 100, 4 );
+        sectionTest( 99, 100, 4 );
+        sectionTest( 1001, 100, 4 );
+        sectionTest( 1001, 100, 1 );
+        sectionTest( 100, 100, 3 );
+        sectionTest( dsize * 10 + 1, dsize, 3 );
+        sectionTest( dsize * 3, dsize + 1, 8 );
+    }
+
+    private void sectionTest( long length, int chunkSize, int nthread )
+            throws IOException {
+        ParallelChunker chunker =
+            new ParallelChunker( length, chunkSize, nthread );
+        long[] bounds = chunker.getSectionBounds();
+        assertEquals( 0L, bounds[ 0 ] );
+        assertEquals( length, bounds[ bounds.length - 1 ] );
+        assertTrue( bounds.length - 1 <= nthread );
+        for ( int i = 1; i < bounds.length - 1; i++ ) {
+            assertTrue( bounds[ i ] > bounds[ i - 1 ] );
+            assertEquals( 0L, bounds[ i ] % chunkSize );
+        }
+
+        /* Check that the chunks processed are exactly those of a
+         * ChunkStepper. */
+        final List<long[]> chunks =
+            Collections.synchronizedList( new ArrayList<long[]>() );
+        final int[] nclose = new int[ 1 ];
+        chunker.process( new ParallelChunker.Factory() {
+            public ParallelChunker.ChunkProcessor createProcessor() {
+                return new ParallelChunker.ChunkProcessor() {
+                    public void processChunk( long base, int size ) {
+                        chunks.add( new long[] { base, size } );
+                    }
+                    public void close() {
+                        synchronized ( nclose ) {
+                            nclose[ 0 ]++;
+                        }
+                    }
+                };
+            }
+        } );
+        assertEquals( bounds.length - 1, nclose[ 0 ] );
+        List<long[]> sorted = new ArrayList<long[]>( chunks );
+        Collections.sort( sorted, new Comparator<long[]>() {
+            public int compare( long[] c1, long[] c2 ) {
+                return c1[ 0 ] < c2[ 0 ] ? -1 : ( c1[ 0 ] > c2[ 0 ] ? 1 : 0 );
+            }
+        } );
+        int ic = 0;
+        for ( ChunkStepper cIt = new ChunkStepper( length, chunkSize );
+              cIt.hasNext(); cIt.next() ) {
+            long[] chunk = sorted.get( ic++ );
+            assertEquals( cIt.getBase(), chunk[ 0 ] );
+            assertEquals( (long) cIt.getSize(), chunk[ 1 ] );
+        }
+        assertEquals( ic, sorted.size() );
+    }
+
+    public void testError() {
+        ParallelChunker chunker = new ParallelChunker( 1000, 10, 4 );
+        final int[] nclose = new int[ 1 ];
+        try {
+            chunker.process( new ParallelChunker.Factory() {
+                public ParallelChunker.ChunkProcessor createProcessor() {
+                    return new ParallelChunker.ChunkProcessor() {
+                        public void processChunk( long base, int size )
+                                throws IOException {
+                            if ( base == 500 ) {
+                                throw new IOException( "Bad chunk" );
+                            }
+                        }
+                        public void close() {
+                            synchronized ( nclose ) {
+                                nclose[ 0 ]++;
+                            }
+                        }
+                    };
+                }
+            } );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertEquals( "Bad chunk", e.getMessage() );
+        }
+        assertEquals( 4, nclose[ 0 ] );
+    }
+
+    public void testCopy() throws IOException {
+        NDShape shape = new NDShape( new long[] { 10, 20 },
+                                     new long[] { 301, 211 } );
+        int npix = (int) shape.getNumPixels();
+        OrderedNDShape oshape = new OrderedNDShape( shape, null );
+        short[] sdata = new short[ npix ];
+        fillRandom( sdata, -1000, 1000 );
+        Type sType = Type.SHORT;
+        BadHandler sbh =
+            BadHandler.getHandler( sType, new Short( (short) 7 ) );
+        for ( int i = 0; i < npix; i++ ) {
+            if ( i % 11 == 0 ) {
+                sdata[ i ] = (short) 7;
+            }
+            else if ( sdata[ i ] == (short) 7 ) {
+                sdata[ i ] = (short) 8;
+            }
+        }
+        NDArray src = new ScratchNDArray( oshape, sType, sbh );
+        src.getAccess().write( sdata, 0, npix );
+
+        /* Type conversion and bad value translation. */
+        Type dType = Type.FLOAT;
+        NDArray dest = new ScratchNDArray( oshape, dType,
+                                           dType.defaultBadHandler() );
+        NDArrays.copy( src, dest, 4 );
+        float[] fdata = new float[ npix ];
+        dest.getAccess().read( fdata, 0, npix );
+        for ( int i = 0; i < npix; i++ ) {
+            if ( i % 11 == 0 ) {
+                assertTrue( Float.isNaN( fdata[ i ] ) );
+            }
+            else {
+                assertEquals( (float) sdata[ i ], fdata[ i ] );
+            }
+        }
+
+        /* Combination, compared with a serial copy. */
+        Combiner combi = new Combiner() {
+            public double combination( double x, double y ) {
+                return x * 2 - y;
+            }
+        };
+        NDArray comb =
+            new BridgeNDArray( new CombineArrayImpl( src, dest, combi, shape,
+                                                     Type.DOUBLE, null ) );
+        assertTrue( comb.isRandom() && comb.multipleAccess() );
+        NDArray d1 = new ScratchNDArray( comb );
+        NDArray d2 = new ScratchNDArray( comb );
+        NDArrays.copy( comb, d1, 1 );
+        NDArrays.copy( comb, d2, 3 );
+        assertTrue( NDArrays.equals( d1, d2 ) );
+        double[] ddata = new double[ npix ];
+        d2.getAccess().read( ddata, 0, npix );
+        for ( int i = 0; i < npix; i++ ) {
+            if ( i % 11 == 0 ) {
+                assertTrue( Double.isNaN( ddata[ i ] ) );
+            }
+            else {
+                assertEquals( (double) sdata[ i ], ddata[ i ] );
+            }
+        }
+    }
+
+    public void testStats() throws IOException {
+        int npix = 100001;
+        NDShape shape = new NDShape( new long[] { 0 }, new long[] { npix } );
+        Type type = Type.INT;
+        BadHandler bh = BadHandler.getHandler( type, new Integer( -1 ) );
+        NDArray nda = new ScratchNDArray( new OrderedNDShape( shape, null ),
+                                          type, bh );
+        int[] data = new int[ npix ];
+        for ( int i = 0; i < npix; i++ ) {
+            data[ i ] = i % 10 == 3 ? -1 : i;
+        }
+        nda.getAccess().write( data, 0, npix );
+
+        ArrayStats s1 = ArrayStats.calculate( nda, 1, 1000 );
+        ArrayStats s4 = ArrayStats.calculate( nda, 4, 1000 );
+        for ( ArrayStats stats : new ArrayStats[] { s1, s4 } ) {
+            assertEquals( npix / 10, stats.getBadCount() );
+            assertEquals( npix - npix / 10, stats.getCount() );
+            assertEquals( 0.0, stats.getMinimum() );
+            assertEquals( npix - 1.0, stats.getMaximum() );
+            assertEquals( 0.0, stats.getPercentile( 0 ) );
+            assertEquals( npix - 1.0, stats.getPercentile( 100 ) );
+            assertEquals( npix * 0.5, stats.getPercentile( 50 ), npix * 1e-3 );
+            assertEquals( npix * 0.9, stats.getPercentile( 90 ), npix * 1e-3 );
+        }
+        assertEquals( s1.getMean(), s4.getMean(), 1e-6 );
+        assertEquals( s1.getStandardDeviation(),
+                      s4.getStandardDeviation(), 1e-6 );
+        assertEquals( npix / 2.0, s4.getMean(), 10.0 );
+    }
+
+    public void testStatsPrecision() throws IOException {
+
+        /* Small spread about a large mean; a sum of squares calculation
+         * loses all the significant figures here. */
+        int npix = 100000;
+        NDShape shape = new NDShape( new long[] { 0 }, new long[] { npix } );
+        NDArray nda =
+            new ScratchNDArray( new OrderedNDShape( shape, null ),
+                                Type.DOUBLE, Type.DOUBLE.defaultBadHandler() );
+        double[] data = new double[ npix ];
+        for ( int i = 0; i < npix; i++ ) {
+            data[ i ] = 1e9 + i % 2;
+        }
+        nda.getAccess().write( data, 0, npix );
+        for ( int nthread : new int[] { 1, 4 } ) {
+            ArrayStats stats = ArrayStats.calculate( nda, nthread, 10 );
+            assertEquals( 1e9 + 0.5, stats.getMean(), 1e-6 );
+            assertEquals( 0.5, stats.getStandardDeviation(), 1e-9 );
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package uk.ac.starlink.dpac.epoch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Propagates astrometric parameters and their covariances
+ * from one epoch to another for many sources at once.
+ *
+ * <p>The calculations are the same as those performed by
+ * {@link EpochTransformation#propagate(double,double[],double[][],
+ *                                      double[],double[][])},
+ * but the inputs and outputs are stored in columns, that is
+ * one primitive array per quantity, with one element per source.
+ * No objects are allocated per source, and the covariance propagation
+ * exploits the symmetry of the covariance matrix,
+ * which makes processing large numbers of sources much faster.
+ * Chunks of sources can additionally be processed in parallel.
+ *
+ * <p>The astrometric parameters are supplied as an array of 6 columns,
+ * with the same order and units as the <code>a0</code> array
+ * of <code>EpochTransformation</code>.
+ * The covariance matrix is supplied as an array of 21 columns,
+ * giving the upper triangle of the symmetric 6x6 matrix
+ * in row-major order, that is elements (0,0), (0,1), ..., (0,5),
+ * (1,1), (1,2), ..., (5,5);
+ * the column index corresponding to a given matrix element
+ * is given by the {@link #covIndex} method.
+ *
+ * <p>Output arrays may be the same as the input arrays,
+ * in which case the propagation is done in place.
+ */
+public final class BatchEpochTransformation {
+
+    /** Number of astrometric parameters. */
+    public static final int NPARAM = 6;
+
+    /** Number of independent covariance matrix elements. */
+    public static final int NCOV = NPARAM * ( NPARAM + 1 ) / 2;
+
+    private static final double EPS = 1.e-15;
+
+    /**
+     * Private constructor prevents instantiation.
+     */
+    private BatchEpochTransformation() {
+    }
+
+    /**
+     * Returns the index into the packed covariance column array of
+     * a given element of the covariance matrix.
+     *
+     * @param  i  row index, 0..5
+     * @param  j  column index, 0..5
+     * @return   index into covariance column array, 0..20
+     */
+    public static int covIndex( int i, int j ) {
+        if ( i > j ) {
+            int k = i;
+            i = j;
+            j = k;
+        }
+        return i * NPARAM - i * ( i - 1 ) / 2 + ( j - i );
+    }
+
+    /**
+     * Propagates a range of sources sequentially in the current thread.
+     *
+     * @param  tau  epoch difference in arbitrary time unit
+     * @param  a0   6 input astrometric parameter columns
+     * @param  c0   21 input packed covariance columns,
+     *              or null if covariances are not required
+     * @param  a    6 output astrometric parameter columns
+     * @param  c    21 output packed covariance columns,
+     *              ignored if <code>c0</code> is null
+     * @param  offset   index of first source to propagate
+     * @param  count    number of sources to propagate
+     */
+    public static void propagate( double tau, double[][] a0, double[][] c0,
+                                  double[][] a, double[][] c,
+                                  int offset, int count ) {
+
+        /* Workspace for the Jacobian, the full input covariance matrix,
+         * and the intermediate product. */
+        double[] d = new double[ NPARAM * NPARAM ];
+        double[] cin = new double[ NPARAM * NPARAM ];
+        double[] dc = new double[ NPARAM * NPARAM ];
+        double tau2 = tau * tau;
+        int end = offset + count;
+        for ( int ir = offset; ir < end; ir++ ) {
+            double alpha0 = a0[ 0 ][ ir ];
+            double delta0 = a0[ 1 ][ ir ];
+            double par0 = a0[ 2 ][ ir ];
+            double pma0 = a0[ 3 ][ ir ];
+            double pmd0 = a0[ 4 ][ ir ];
+            double zeta0 = a0[ 5 ][ ir ];
+
+            /* Normal triad at t0. */
+            double ca = Math.cos( alpha0 );
+            double sa = Math.sin( alpha0 );
+            double cd = Math.cos( delta0 );
+            double sd = Math.sin( delta0 );
+            double p0x = -sa;
+            double p0y = ca;
+            double q0x = -sd * ca;
+            double q0y = -sd * sa;
+            double q0z = cd;
+            double r0x = cd * ca;
+            double r0y = cd * sa;
+            double r0z = sd;
+
+            /* Proper motion vector. */
+            double pmv0x = pma0 * p0x + pmd0 * q0x;
+            double pmv0y = pma0 * p0y + pmd0 * q0y;
+            double pmv0z = pmd0 * q0z;
+
+            /* Auxiliary quantities. */
+            double pm02 = pma0 * pma0 + pmd0 * pmd0;
+            double w = 1.0 + zeta0 * tau;
+            double f2 = 1.0 / ( 1.0 + 2.0 * zeta0 * tau
+                                + ( pm02 + zeta0 * zeta0 ) * tau2 );
+            double f = Math.sqrt( f2 );
+            double f3 = f2 * f;
+            double f4 = f2 * f2;
+
+            /* Position vector, parallax, proper motion vector and
+             * normalised radial velocity at t. */
+            double rx = ( w * r0x + tau * pmv0x ) * f;
+            double ry = ( w * r0y + tau * pmv0y ) * f;
+            double rz = ( w * r0z + tau * pmv0z ) * f;
+            double par = par0 * f;
+            double pmvx = ( w * pmv0x - pm02 * tau * r0x ) * f3;
+            double pmvy = ( w * pmv0y - pm02 * tau * r0y ) * f3;
+            double pmvz = ( w * pmv0z - pm02 * tau * r0z ) * f3;
+            double zeta = ( zeta0 + ( pm02 + zeta0 * zeta0 ) * tau ) * f2;
+
+            /* Normal triad at t; near the pole, select p towards RA=90. */
+            double xy = Math.sqrt( rx * rx + ry * ry );
+            double px;
+            double py;
+            if ( xy < EPS ) {
+                px = 0.0;
+                py = 1.0;
+            }
+            else {
+                px = -ry / xy;
+                py = rx / xy;
+            }
+            double qx = -rz * py;
+            double qy = rz * px;
+            double qz = rx * py - ry * px;
+
+            /* Parameters at t. */
+            double alpha = Math.atan2( -px, py );
+            if ( alpha < 0.0 ) {
+                alpha += 2.0 * Math.PI;
+            }
+            double delta = Math.atan2( rz, xy );
+            double pma = px * pmvx + py * pmvy;
+            double pmd = qx * pmvx + qy * pmvy + qz * pmvz;
+            a[ 0 ][ ir ] = alpha;
+            a[ 1 ][ ir ] = delta;
+            a[ 2 ][ ir ] = par;
+            a[ 3 ][ ir ] = pma;
+            a[ 4 ][ ir ] = pmd;
+            a[ 5 ][ ir ] = zeta;
+            if ( c0 == null ) {
+                continue;
+            }
+
+            /* Auxiliary quantities for the partial derivatives. */
+            double pmzx = f * pmv0x - 3.0 * w * pmvx;
+            double pmzy = f * pmv0y - 3.0 * w * pmvy;
+            double pmzz = f * pmv0z - 3.0 * w * pmvz;
+            double pp0 = px * p0x + py * p0y;
+            double pq0 = px * q0x + py * q0y;
+            double pr0 = px * r0x + py * r0y;
+            double qp0 = qx * p0x + qy * p0y;
+            double qq0 = qx * q0x + qy * q0y + qz * q0z;
+            double qr0 = qx * r0x + qy * r0y + qz * r0z;
+            double ppmz = px * pmzx + py * pmzy;
+            double qpmz = qx * pmzx + qy * pmzy + qz * pmzz;
+
+            /* Partial derivatives, stored row-major. */
+            d[ 0 ] = pp0 * w * f - pr0 * pma0 * tau * f;
+            d[ 1 ] = pq0 * w * f - pr0 * pmd0 * tau * f;
+            d[ 2 ] = 0.0;
+            d[ 3 ] = pp0 * tau * f;
+            d[ 4 ] = pq0 * tau * f;
+            d[ 5 ] = -pma * tau2;
+
+            d[ 6 ] = qp0 * w * f - qr0 * pma0 * tau * f;
+            d[ 7 ] = qq0 * w * f - qr0 * pmd0 * tau * f;
+            d[ 8 ] = 0.0;
+            d[ 9 ] = qp0 * tau * f;
+            d[ 10 ] = qq0 * tau * f;
+            d[ 11 ] = -pmd * tau2;
+
+            d[ 12 ] = 0.0;
+            d[ 13 ] = 0.0;
+            d[ 14 ] = f;
+            d[ 15 ] = -par * pma0 * tau2 * f2;
+            d[ 16 ] = -par * pmd0 * tau2 * f2;
+            d[ 17 ] = -par * w * tau * f2;
+
+            d[ 18 ] = -pp0 * pm02 * tau * f3 - pr0 * pma0 * w * f3;
+            d[ 19 ] = -pq0 * pm02 * tau * f3 - pr0 * pmd0 * w * f3;
+            d[ 20 ] = 0.0;
+            d[ 21 ] = pp0 * w * f3 - 2.0 * pr0 * pma0 * tau * f3
+                    - 3.0 * pma * pma0 * tau2 * f2;
+            d[ 22 ] = pq0 * w * f3 - 2.0 * pr0 * pmd0 * tau * f3
+                    - 3.0 * pma * pmd0 * tau2 * f2;
+            d[ 23 ] = ppmz * tau * f2;
+
+            d[ 24 ] = -qp0 * pm02 * tau * f3 - qr0 * pma0 * w * f3;
+            d[ 25 ] = -qq0 * pm02 * tau * f3 - qr0 * pmd0 * w * f3;
+            d[ 26 ] = 0.0;
+            d[ 27 ] = qp0 * w * f3 - 2.0 * qr0 * pma0 * tau * f3
+                    - 3.0 * pmd * pma0 * tau2 * f2;
+            d[ 28 ] = qq0 * w * f3 - 2.0 * qr0 * pmd0 * tau * f3
+                    - 3.0 * pmd * pmd0 * tau2 * f2;
+            d[ 29 ] = qpmz * tau * f2;
+
+            d[ 30 ] = 0.0;
+            d[ 31 ] = 0.0;
+            d[ 32 ] = 0.0;
+            d[ 33 ] = 2.0 * pma0 * w * tau * f4;
+            d[ 34 ] = 2.0 * pmd0 * w * tau * f4;
+            d[ 35 ] = ( w * w - pm02 * tau2 ) * f4;
+
+            /* Unpack the input covariance matrix. */
+            int k = 0;
+            for ( int i = 0; i < NPARAM; i++ ) {
+                for ( int j = i; j < NPARAM; j++ ) {
+                    double cij = c0[ k++ ][ ir ];
+                    cin[ i * NPARAM + j ] = cij;
+                    cin[ j * NPARAM + i ] = cij;
+                }
+            }
+
+            /* Propagate the covariance as c = d*c0*d',
+             * calculating only the upper triangle of the result. */
+            for ( int i = 0; i < NPARAM; i++ ) {
+                for ( int j = 0; j < NPARAM; j++ ) {
+                    double sum = 0.0;
+                    for ( int l = 0; l < NPARAM; l++ ) {
+                        sum += d[ i * NPARAM + l ] * cin[ l * NPARAM + j ];
+                    }
+                    dc[ i * NPARAM + j ] = sum;
+                }
+            }
+            k = 0;
+            for ( int i = 0; i < NPARAM; i++ ) {
+                for ( int j = i; j < NPARAM; j++ ) {
+                    double sum = 0.0;
+                    for ( int l = 0; l < NPARAM; l++ ) {
+                        sum += dc[ i * NPARAM + l ] * d[ j * NPARAM + l ];
+                    }
+                    c[ k++ ][ ir ] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Propagates a range of sources, dividing the work into chunks
+     * that are executed in parallel by a supplied executor service.
+     * This method returns when all the chunks have completed.
+     *
+     * @param  tau  epoch difference in arbitrary time unit
+     * @param  a0   6 input astrometric parameter columns
+     * @param  c0   21 input packed covariance columns,
+     *              or null if covariances are not required
+     * @param  a    6 output astrometric parameter columns
+     * @param  c    21 output packed covariance columns,
+     *              ignored if <code>c0</code> is null
+     * @param  offset   index of first source to propagate
+     * @param  count    number of sources to propagate
+     * @param  executor   executor service to run chunks
+     * @param  chunkSize  maximum number of sources per chunk
+     * @throws  InterruptedException  if the calling thread is interrupted
+     *          while waiting; in this case outstanding chunks are cancelled
+     */
+    public static void propagate( final double tau,
+                                  final double[][] a0, final double[][] c0,
+                                  final double[][] a, final double[][] c,
+                                  int offset, int count,
+                                  ExecutorService executor, int chunkSize )
+            throws InterruptedException {
+        if ( count <= chunkSize ) {
+            propagate( tau, a0, c0, a, c, offset, count );
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int end = offset + count;
+        for ( int i0 = offset; i0 < end; i0 += chunkSize ) {
+            final int off = i0;
+            final int n = Math.min( chunkSize, end - i0 );
+            futures.add( executor.submit( new Runnable() {
+                public void run() {
+                    propagate( tau, a0, c0, a, c, off, n );
+                }
+            } ) );
+        }
+        try {
+            for ( Future<?> future : futures ) {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e ) {
+            for ( Future<?> future : futures ) {
+                future.cancel( true );
+            }
+            throw e;
+        }
+        catch ( ExecutionException e ) {
+            for ( Future<?> future : futures ) {
+                future.cancel( true );
+            }
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw new RuntimeException( cause );
+            }
+        }
+    }
+}
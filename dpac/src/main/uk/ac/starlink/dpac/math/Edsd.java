@@ -198,6 +198,35 @@ public class Edsd {
         };
     }
 
+    /**
+     * Calculates distance quantiles of the PDF by numerical integration.
+     * This is relatively slow.
+     *
+     * @param  qpoints  one or more required quantile cut points,
+     *                  each in the range 0..1
+     * @return   array with one element for each of the supplied
+     *           <code>qpoints</code> giving the corresponding distance
+     *           in kpc or parsec
+     */
+    public double[] calculateQuantiles( double... qpoints ) {
+        int nq = qpoints.length;
+        double tol = 1e-6;
+        NumericFunction ncdf = calculateCdf( tol );
+
+        /* Quadratic interpolation works better here than e.g. splines,
+         * look at the results for e.g. plx=40, plxError=0.75. */
+        Function scdf = FuncUtils.interpolateQuadratic( ncdf );
+        double[] qvs = new double[ nq ];
+        double rmin = 0;
+        double rmax = ncdf.getX( ncdf.getCount() - 1 );
+        double ytol = 0.00001;
+        for ( int i = 0; i < nq; i++ ) {
+            qvs[ i ] = FuncUtils.findValueMonotonic( scdf, rmin, rmax,
+                                                     qpoints[ i ], ytol );
+        }
+        return qvs;
+    }
+
     /**
      * Returns a numerical reconstruction of the PDF based on the
      * samples used to perform the CDF integration.
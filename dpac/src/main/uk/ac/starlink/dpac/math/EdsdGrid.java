@@ -0,0 +1,288 @@
+package uk.ac.starlink.dpac.math;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Provides fast approximate distance quantiles for the
+ * Exponentially Decreasing Space Density prior by interpolation
+ * on a grid of precomputed values.
+ *
+ * <p>With the substitution <code>u=r/L</code>, the EDSD posterior
+ * depends only on two dimensionless quantities: the fractional parallax
+ * <code>f=plx/eplx</code> and the product <code>g=L*eplx</code>.
+ * A quantile distance is therefore <code>L*Q(f,g)</code>,
+ * and this class tabulates <code>ln(Q)</code> on a regular grid in
+ * <code>(asinh(f), ln(g))</code>, using bilinear interpolation between
+ * grid nodes.
+ *
+ * <p>Grid cells are filled in lazily, the first time that a point
+ * within them is requested, using the exact calculation provided by
+ * {@link Edsd#calculateQuantiles}.  At the same time the interpolated
+ * values at the centre and edge midpoints of the cell, where the
+ * interpolation error is expected to be largest, are checked against
+ * the exact calculation.
+ * If the discrepancy there exceeds half the requested relative error,
+ * or if the
+ * exact calculation fails at any of the nodes, the cell is marked
+ * as unusable and all requests within it use the exact calculation.
+ * Requests outside the gridded region also use the exact calculation.
+ * The result is therefore always either interpolated within
+ * a cell that has been checked at the requested accuracy, or exact.
+ * Note however that the exact calculation is itself only accurate
+ * to a relative error of around 1e-3 for upper quantiles,
+ * so requesting a smaller tolerance than that is likely to result
+ * in many cells falling back to the exact calculation.
+ *
+ * <p>Instances of this class are thread-safe.
+ */
+public class EdsdGrid {
+
+    private final double q_;
+    private final double relErr_;
+    private final double step_;
+    private final int na_;
+    private final int nb_;
+    private final double[] nodes_;
+    private final boolean[] nodeDone_;
+    private final AtomicIntegerArray cellStates_;
+
+    /** Lower limit of gridded asinh(plx/eplx). */
+    private static final double A_MIN = asinh( -20 );
+
+    /** Upper limit of gridded asinh(plx/eplx). */
+    private static final double A_MAX = asinh( 3000 );
+
+    /** Lower limit of gridded ln(L*eplx). */
+    private static final double B_MIN = Math.log( 1e-4 );
+
+    /** Upper limit of gridded ln(L*eplx). */
+    private static final double B_MAX = Math.log( 1e2 );
+
+    private static final int CELL_UNKNOWN = 0;
+    private static final int CELL_GOOD = 1;
+    private static final int CELL_BAD = 2;
+
+    /**
+     * Grids retained by {@link #getInstance}.
+     * Each grid may occupy some tens of megabytes when fully populated,
+     * so they are softly referenced.
+     */
+    private static final ConcurrentMap<List<Double>,Reference<EdsdGrid>>
+        gridMap_ = new ConcurrentHashMap<List<Double>,Reference<EdsdGrid>>();
+
+    /**
+     * Constructor.
+     *
+     * @param  q  quantile cut point, in the range 0..1
+     * @param  relErr  maximum permitted relative error of interpolated
+     *                 results with respect to the exact calculation
+     */
+    public EdsdGrid( double q, double relErr ) {
+        if ( ! ( q >= 0 && q <= 1 ) ) {
+            throw new IllegalArgumentException( "Bad quantile " + q );
+        }
+        if ( ! ( relErr > 0 ) ) {
+            throw new IllegalArgumentException( "Bad tolerance " + relErr );
+        }
+        q_ = q;
+        relErr_ = relErr;
+
+        /* Bilinear interpolation error scales as the square of the
+         * grid spacing.  The spacing is limited to keep the storage
+         * requirements reasonable; cells that turn out not to be
+         * accurate enough will just use the exact calculation. */
+        step_ = Math.max( 0.01,
+                          Math.min( 0.25, 0.1 * Math.sqrt( relErr / 1e-3 ) ) );
+        na_ = (int) Math.ceil( ( A_MAX - A_MIN ) / step_ ) + 1;
+        nb_ = (int) Math.ceil( ( B_MAX - B_MIN ) / step_ ) + 1;
+        nodes_ = new double[ na_ * nb_ ];
+        nodeDone_ = new boolean[ na_ * nb_ ];
+        cellStates_ = new AtomicIntegerArray( ( na_ - 1 ) * ( nb_ - 1 ) );
+    }
+
+    /**
+     * Returns the quantile cut point for which this grid provides values.
+     *
+     * @return  quantile in range 0..1
+     */
+    public double getQuantile() {
+        return q_;
+    }
+
+    /**
+     * Returns the maximum relative error of values returned by this grid.
+     *
+     * @return  relative error tolerance
+     */
+    public double getRelativeError() {
+        return relErr_;
+    }
+
+    /**
+     * Returns the distance at this grid's quantile for given parameters.
+     * The units are either mas and kpc or arcsec and parsec,
+     * as for {@link Edsd}.
+     *
+     * @param   plx   parallax
+     * @param   eplx   error in parallax
+     * @param   l     distance scale
+     * @return   distance quantile
+     */
+    public double getDistance( double plx, double eplx, double l ) {
+        double f = plx / eplx;
+        double g = l * eplx;
+        if ( eplx > 0 && l > 0 && ! Double.isNaN( f ) ) {
+            double xa = ( asinh( f ) - A_MIN ) / step_;
+            double xb = ( Math.log( g ) - B_MIN ) / step_;
+            if ( xa >= 0 && xa < na_ - 1 && xb >= 0 && xb < nb_ - 1 ) {
+                int ia = (int) xa;
+                int ib = (int) xb;
+                int icell = ia * ( nb_ - 1 ) + ib;
+                int state = cellStates_.get( icell );
+                if ( state == CELL_UNKNOWN ) {
+                    state = prepareCell( ia, ib );
+                }
+                if ( state == CELL_GOOD ) {
+                    double fa = xa - ia;
+                    double fb = xb - ib;
+                    int in = ia * nb_ + ib;
+                    double lnu = ( 1 - fa ) * ( ( 1 - fb ) * nodes_[ in ]
+                                              + fb * nodes_[ in + 1 ] )
+                               + fa * ( ( 1 - fb ) * nodes_[ in + nb_ ]
+                                        + fb * nodes_[ in + nb_ + 1 ] );
+                    return l * Math.exp( lnu );
+                }
+            }
+        }
+        return new Edsd( plx, eplx, l ).calculateQuantiles( q_ )[ 0 ];
+    }
+
+    /**
+     * Returns a grid instance for a given quantile and accuracy.
+     * Instances are cached, so that grid values calculated on
+     * behalf of one caller can be reused by others.
+     * Any number of grids may be retained, so that callers using
+     * many quantiles do not evict each other's grids,
+     * but they may be discarded if memory runs short.
+     * Lookup of an existing grid does not lock.
+     *
+     * @param  q  quantile cut point, in the range 0..1
+     * @param  relErr  maximum relative error
+     * @return  shared grid instance
+     */
+    public static EdsdGrid getInstance( double q, double relErr ) {
+        List<Double> key =
+            Arrays.asList( new Double[] { new Double( q ),
+                                          new Double( relErr ) } );
+        EdsdGrid grid = getCachedGrid( key );
+        if ( grid == null ) {
+            synchronized ( gridMap_ ) {
+                grid = getCachedGrid( key );
+                if ( grid == null ) {
+                    grid = new EdsdGrid( q, relErr );
+                    gridMap_.put( key, new SoftReference<EdsdGrid>( grid ) );
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns a grid from the cache.
+     *
+     * @param  key  cache key
+     * @return  cached grid, or null if absent or discarded
+     */
+    private static EdsdGrid getCachedGrid( List<Double> key ) {
+        Reference<EdsdGrid> ref = gridMap_.get( key );
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Fills in the nodes for a cell and assesses its accuracy.
+     *
+     * @param  ia  cell index on asinh(f) axis
+     * @param  ib  cell index on ln(g) axis
+     * @return  new cell state
+     */
+    private synchronized int prepareCell( int ia, int ib ) {
+        int icell = ia * ( nb_ - 1 ) + ib;
+        int state = cellStates_.get( icell );
+        if ( state != CELL_UNKNOWN ) {
+            return state;
+        }
+        int in = ia * nb_ + ib;
+        for ( int jn : new int[] { in, in + 1, in + nb_, in + nb_ + 1 } ) {
+            if ( ! nodeDone_[ jn ] ) {
+                nodes_[ jn ] = exactLnu( A_MIN + ( jn / nb_ ) * step_,
+                                         B_MIN + ( jn % nb_ ) * step_ );
+                nodeDone_[ jn ] = true;
+            }
+        }
+        double v00 = nodes_[ in ];
+        double v01 = nodes_[ in + 1 ];
+        double v10 = nodes_[ in + nb_ ];
+        double v11 = nodes_[ in + nb_ + 1 ];
+
+        /* Compare interpolated with exact values at the centre and
+         * edge midpoints of the cell, which is where the interpolation
+         * errors are expected to be largest.  Since the error may be
+         * somewhat larger elsewhere, require a safety margin. */
+        double a0 = A_MIN + ia * step_;
+        double b0 = B_MIN + ib * step_;
+        double a1 = a0 + step_;
+        double b1 = b0 + step_;
+        double ah = a0 + 0.5 * step_;
+        double bh = b0 + 0.5 * step_;
+        double err = Math.max(
+            Math.max( Math.abs( 0.25 * ( v00 + v01 + v10 + v11 )
+                              - exactLnu( ah, bh ) ),
+                      Math.abs( 0.5 * ( v00 + v01 ) - exactLnu( a0, bh ) ) ),
+            Math.max( Math.max( Math.abs( 0.5 * ( v10 + v11 )
+                                        - exactLnu( a1, bh ) ),
+                                Math.abs( 0.5 * ( v00 + v10 )
+                                        - exactLnu( ah, b0 ) ) ),
+                      Math.abs( 0.5 * ( v01 + v11 ) - exactLnu( ah, b1 ) ) ) );
+
+        /* Note this condition is false for NaN values. */
+        state = err <= 0.5 * relErr_ ? CELL_GOOD : CELL_BAD;
+
+        /* Writing the state to the atomic array after the node values
+         * ensures that the node values are visible to other threads
+         * that read the state. */
+        cellStates_.set( icell, state );
+        return state;
+    }
+
+    /**
+     * Calculates the logarithm of the dimensionless quantile distance
+     * exactly at a given grid position.
+     *
+     * @param  a   asinh(plx/eplx)
+     * @param  b   ln(L*eplx)
+     * @return   ln(r/L) at this grid's quantile
+     */
+    private double exactLnu( double a, double b ) {
+        double f = Math.sinh( a );
+        double g = Math.exp( b );
+        double u = new Edsd( f * g, g, 1.0 ).calculateQuantiles( q_ )[ 0 ];
+        return u > 0 ? Math.log( u ) : Double.NaN;
+    }
+
+    /**
+     * Inverse hyperbolic sine.
+     *
+     * @param  x  argument
+     * @return  asinh(x)
+     */
+    private static double asinh( double x ) {
+        return x >= 0 ? Math.log( x + Math.sqrt( x * x + 1 ) )
+                      : -asinh( -x );
+    }
+}
@@ -0,0 +1,97 @@
+package uk.ac.starlink.dpac;
+
+import java.util.Random;
+import junit.framework.TestCase;
+import uk.ac.starlink.dpac.math.Edsd;
+import uk.ac.starlink.dpac.math.EdsdGrid;
+
+/**
+ * Compares the speed and accuracy of gridded and exact EDSD
+ * distance quantile calculations.
+ */
+public class EdsdGridBench extends TestCase {
+
+    public EdsdGridBench( String name ) {
+        super( name );
+    }
+
+    public void testGrid() {
+        double lKpc = 1.35;
+        double[] qs = new double[] { 0.05, 0.95 };
+        int nexact = 2000;
+        int ngrid = 200000;
+        double[][] params = createParams( ngrid, 2397L );
+
+        /* Exact calculation, on a subset of the data. */
+        long start = System.currentTimeMillis();
+        double[][] exact = new double[ nexact ][];
+        for ( int i = 0; i < nexact; i++ ) {
+            exact[ i ] = new Edsd( params[ i ][ 0 ], params[ i ][ 1 ], lKpc )
+                        .calculateQuantiles( qs );
+        }
+        long tExact = System.currentTimeMillis() - start;
+
+        for ( double relErr : new double[] { 1e-2, 1e-3, 1e-4 } ) {
+            EdsdGrid[] grids = new EdsdGrid[ qs.length ];
+            for ( int iq = 0; iq < qs.length; iq++ ) {
+                grids[ iq ] = new EdsdGrid( qs[ iq ], relErr );
+            }
+
+            /* First pass includes the cost of filling in the grid. */
+            long t1 = timeGrid( grids, params, lKpc );
+
+            /* Second pass uses only precomputed grid cells. */
+            long t2 = timeGrid( grids, params, lKpc );
+
+            double maxErr = 0;
+            for ( int i = 0; i < nexact; i++ ) {
+                for ( int iq = 0; iq < qs.length; iq++ ) {
+                    double d = grids[ iq ]
+                              .getDistance( params[ i ][ 0 ], params[ i ][ 1 ],
+                                            lKpc );
+                    double ex = exact[ i ][ iq ];
+                    maxErr = Math.max( maxErr, Math.abs( d - ex ) / ex );
+                }
+            }
+            System.out.println( "relErr=" + relErr
+                              + "\texact: " + perRow( tExact, nexact )
+                              + "\tgrid (cold): " + perRow( t1, ngrid )
+                              + "\tgrid (warm): " + perRow( t2, ngrid )
+                              + "\tmax error: " + (float) maxErr );
+        }
+    }
+
+    private static long timeGrid( EdsdGrid[] grids, double[][] params,
+                                  double lKpc ) {
+        long start = System.currentTimeMillis();
+        double sum = 0;
+        for ( double[] p : params ) {
+            for ( EdsdGrid grid : grids ) {
+                sum += grid.getDistance( p[ 0 ], p[ 1 ], lKpc );
+            }
+        }
+        assertTrue( sum > 0 );
+        return System.currentTimeMillis() - start;
+    }
+
+    private static String perRow( long millis, int nrow ) {
+        return (float) ( millis * 1000.0 / nrow ) + "us/row";
+    }
+
+    /**
+     * Returns (parallax, parallax_error) pairs in mas, roughly covering
+     * the range present in Gaia DR2.
+     */
+    private static double[][] createParams( int n, long seed ) {
+        Random rnd = new Random( seed );
+        double[][] params = new double[ n ][];
+        for ( int i = 0; i < n; i++ ) {
+            double eplx =
+                0.015 * Math.exp( rnd.nextDouble() * Math.log( 250 ) );
+            double plx = 0.3 + rnd.nextGaussian() * eplx
+                       + Math.exp( rnd.nextGaussian() ) - 1;
+            params[ i ] = new double[] { plx, eplx };
+        }
+        return params;
+    }
+}
@@ -1,13 +1,18 @@
 package uk.ac.starlink.fits;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -39,6 +44,15 @@ import uk.ac.starlink.util.IOUtils;
  *     not 16-bit signed integers (<code>TFORMn='I'</code>).</li>
  * </ul>
  *
+ * <p>When writing to a file, and if the concrete subclass supports it
+ * (see {@link #createSinglePassSerializer}), tables are written
+ * in a single pass through the data even if the row count,
+ * variable array sizes or the presence of blank integer values
+ * are not known in advance.  In this case a provisional header is
+ * written first, and overwritten in place with the definitive one
+ * once the data has been written.
+ * This can be controlled using the {@link #setSinglePass} method.
+ *
  * @author   Mark Taylor
  * @since    27 Jun 2006
  */
@@ -46,9 +60,19 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
                                               implements MultiStarTableWriter {
 
     private String formatName_;
+    private boolean singlePass_;
+    private int encodeThreads_;
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.fits" );
 
+    /**
+     * Name of system property giving the default number of threads
+     * used to encode table rows ({@value}).
+     * If unset, a single thread is used.
+     */
+    public static final String ENCODE_THREADS_PROPERTY =
+        "startable.fits.encodethreads";
+
     /**
      * Constructor.
      *
@@ -56,6 +80,8 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
      */
     protected AbstractFitsTableWriter( String formatName ) {
         setFormatName( formatName );
+        singlePass_ = true;
+        encodeThreads_ = getDefaultEncodeThreads();
     }
 
     public String getFormatName() {
@@ -71,6 +97,53 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
         formatName_ = formatName;
     }
 
+    /**
+     * Sets whether tables written to seekable destinations may be
+     * written in a single pass through their data, with the header
+     * rewritten afterwards.  The default is true.
+     * This only has an effect for writers whose
+     * {@link #createSinglePassSerializer} method is implemented.
+     *
+     * @param  singlePass  true to permit single-pass writing
+     */
+    public void setSinglePass( boolean singlePass ) {
+        singlePass_ = singlePass;
+    }
+
+    /**
+     * Indicates whether tables written to seekable destinations may be
+     * written in a single pass through their data.
+     *
+     * @return  true if single-pass writing is permitted
+     */
+    public boolean isSinglePass() {
+        return singlePass_;
+    }
+
+    /**
+     * Sets the number of threads used to encode table rows.
+     * If greater than one, serializers which support it convert
+     * blocks of rows to FITS form concurrently.
+     * This may help when encoding rather than reading or output
+     * is the bottleneck.
+     * The default is taken from the {@link #ENCODE_THREADS_PROPERTY}
+     * system property, or 1 if that is not set.
+     *
+     * @param  encodeThreads  number of encoding threads
+     */
+    public void setEncodeThreads( int encodeThreads ) {
+        encodeThreads_ = encodeThreads;
+    }
+
+    /**
+     * Returns the number of threads used to encode table rows.
+     *
+     * @return  number of encoding threads
+     */
+    public int getEncodeThreads() {
+        return encodeThreads_;
+    }
+
     /**
      * Returns "application/fits".
      *
@@ -98,23 +171,51 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
      */
     public void writeStarTables( TableSequence tableSeq, OutputStream out )
             throws IOException {
+        FileChannel chan = getSinglePassChannel( out );
         DataOutputStream ostrm = new DataOutputStream( out );
         writePrimaryHDU( ostrm );
         for ( StarTable table; ( table = tableSeq.nextTable() ) != null; ) {
-            writeTableHDU( table, createSerializer( table ), ostrm );
+            FitsTableSerializer fitser = chan == null
+                                       ? null
+                                       : createSinglePassSerializer( table );
+            if ( fitser != null ) {
+                writeSinglePassTableHDU( table, fitser, ostrm, chan );
+            }
+            else {
+                writeTableHDU( table, createSerializer( table ), ostrm );
+            }
         }
         ostrm.flush();
     }
 
+    /**
+     * Invokes {@link #writeStarTable(uk.ac.starlink.table.StarTable,
+     *                                java.io.OutputStream)}
+     * with a stream that permits single-pass writing if the
+     * location is a file.
+     */
+    public void writeStarTable( StarTable table, String location,
+                                StarTableOutput sto ) throws IOException {
+        OutputStream out =
+            createBufferedOutput( sto.getOutputStream( location ) );
+        try {
+            writeStarTable( table, out );
+            out.flush();
+        }
+        finally {
+            out.close();
+        }
+    }
+
     /**
      * Invokes {@link #writeStarTables(uk.ac.starlink.table.TableSequence,
                                        java.io.OutputStream)}.
      */
     public void writeStarTables( TableSequence tableSeq, String location,
                                  StarTableOutput sto ) throws IOException {
-        OutputStream out = sto.getOutputStream( location );
+        OutputStream out =
+            createBufferedOutput( sto.getOutputStream( location ) );
         try {
-            out = new BufferedOutputStream( out );
             writeStarTables( tableSeq, out );
             out.flush();
         }
@@ -144,6 +245,7 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
      */
     public void writeTableHDU( StarTable table, FitsTableSerializer fitser,
                                DataOutput out ) throws IOException {
+        configureSerializer( fitser );
         try {
             Header hdr = fitser.getHeader();
             addMetadata( hdr );
@@ -156,6 +258,223 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
         fitser.writeData( out );
     }
 
+    /**
+     * Returns the file channel which can be used to rewrite headers
+     * for single-pass writing to a given output stream.
+     * This is only available if single-pass writing is permitted,
+     * and if the stream was supplied by this writer's
+     * {@link #writeStarTables(uk.ac.starlink.table.TableSequence,
+     *                         java.lang.String,
+     *                         uk.ac.starlink.table.StarTableOutput)}
+     * or {@link #writeStarTable(uk.ac.starlink.table.StarTable,
+     *                            java.lang.String,
+     *                            uk.ac.starlink.table.StarTableOutput)}
+     * method for output to a seekable file.
+     *
+     * @param  out  output stream
+     * @return  channel at which <code>out</code> ultimately writes,
+     *          or null if single-pass writing is not possible
+     */
+    protected FileChannel getSinglePassChannel( OutputStream out ) {
+        return singlePass_ && out instanceof FileBufferedOutput
+             ? ((FileBufferedOutput) out).chan_
+             : null;
+    }
+
+    /**
+     * Wraps an output stream for buffered output.
+     * If it writes to a file which can be repositioned,
+     * the result will permit single-pass writing.
+     *
+     * @param  out  output stream
+     * @return  buffered stream writing to <code>out</code>
+     */
+    private static OutputStream createBufferedOutput( OutputStream out ) {
+        if ( out instanceof FileOutputStream ) {
+            FileChannel chan = ((FileOutputStream) out).getChannel();
+
+            /* Pipes and the like report an error if asked for a position. */
+            try {
+                chan.position();
+                return new FileBufferedOutput( (FileOutputStream) out );
+            }
+            catch ( IOException e ) {
+                logger_.config( "Output not seekable, no single pass: " + e );
+            }
+        }
+        return new BufferedOutputStream( out );
+    }
+
+    /**
+     * Writes a data HDU in a single pass through the table data,
+     * using a serializer which does not know the details of
+     * the header until the data has been written.
+     * A provisional header is written, and once the data has been written
+     * the definitive header is written over it.
+     *
+     * @param   table  the table to be written into the HDU
+     * @param   fitser  fits serializer initialised for single-pass
+     *                  writing from <code>table</code>
+     * @param   out  destination stream, writing to <code>chan</code>
+     * @param   chan   file channel at which <code>out</code> ultimately
+     *                 writes, used to rewrite the header
+     * @see  #getSinglePassChannel
+     */
+    protected void writeSinglePassTableHDU( StarTable table,
+                                            FitsTableSerializer fitser,
+                                            DataOutputStream out,
+                                            FileChannel chan )
+            throws IOException {
+        configureSerializer( fitser );
+        out.flush();
+        long hdrPos = chan.position();
+        byte[] hdr0 = getHeaderBytes( fitser );
+        out.write( hdr0 );
+        fitser.writeData( out );
+        out.flush();
+        byte[] hdr1 = padHeader( getHeaderBytes( fitser ), hdr0.length );
+        rewrite( chan, hdrPos, hdr1 );
+    }
+
+    /**
+     * Overwrites bytes already written to a file channel,
+     * leaving its position unchanged.
+     *
+     * @param  chan  file channel
+     * @param  pos   offset into file at which to write
+     * @param  bytes   bytes to write
+     */
+    protected static void rewrite( FileChannel chan, long pos, byte[] bytes )
+            throws IOException {
+        long endPos = chan.position();
+        chan.position( pos );
+        ByteBuffer buf = ByteBuffer.wrap( bytes );
+        while ( buf.hasRemaining() ) {
+            chan.write( buf );
+        }
+        chan.position( endPos );
+    }
+
+    /**
+     * Applies this writer's configuration to a serializer before use.
+     *
+     * @param  fitser  serializer
+     */
+    private void configureSerializer( FitsTableSerializer fitser ) {
+        if ( fitser instanceof StandardFitsTableSerializer ) {
+            ((StandardFitsTableSerializer) fitser)
+                .setEncodeThreads( encodeThreads_ );
+        }
+    }
+
+    /**
+     * Returns the default number of encoding threads, taken from the
+     * {@link #ENCODE_THREADS_PROPERTY} system property if present.
+     *
+     * @return  default number of encoding threads
+     */
+    private static int getDefaultEncodeThreads() {
+        String value;
+        try {
+            value = System.getProperty( ENCODE_THREADS_PROPERTY );
+        }
+        catch ( SecurityException e ) {
+            value = null;
+        }
+        if ( value != null && value.trim().length() > 0 ) {
+            try {
+                return Math.max( 1, Integer.parseInt( value.trim() ) );
+            }
+            catch ( NumberFormatException e ) {
+                logger_.warning( "Bad value for " + ENCODE_THREADS_PROPERTY
+                               + ": " + value );
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the serialized header, including standard metadata,
+     * for a given serializer.
+     *
+     * @param  fitser  serializer
+     * @return   header bytes, a multiple of 2880 long
+     */
+    private byte[] getHeaderBytes( FitsTableSerializer fitser )
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            Header hdr = fitser.getHeader();
+            addMetadata( hdr );
+            FitsConstants.writeHeader( new DataOutputStream( bout ), hdr );
+        }
+        catch ( FitsException e ) {
+            throw (IOException) new IOException( e.getMessage() )
+                               .initCause( e );
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Pads a serialized FITS header with blank cards before its END card
+     * so that it has a given length.
+     *
+     * @param  hdr   serialized header
+     * @param  leng  required length in bytes, a multiple of 2880
+     * @return  header bytes of length <code>leng</code>
+     * @throws  IOException  if the header is too long
+     */
+    static byte[] padHeader( byte[] hdr, int leng ) throws IOException {
+        if ( hdr.length == leng ) {
+            return hdr;
+        }
+        else if ( hdr.length > leng ) {
+            throw new IOException( "FITS header has grown to "
+                                 + hdr.length + " bytes; only "
+                                 + leng + " bytes reserved" );
+        }
+        int ncard = hdr.length / 80;
+        int iend = -1;
+        for ( int ic = 0; ic < ncard && iend < 0; ic++ ) {
+            if ( hdr[ ic * 80 ] == 'E' && hdr[ ic * 80 + 1 ] == 'N' &&
+                 hdr[ ic * 80 + 2 ] == 'D' && hdr[ ic * 80 + 3 ] == ' ' ) {
+                iend = ic;
+            }
+        }
+        if ( iend < 0 ) {
+            throw new IOException( "No END card in FITS header" );
+        }
+        byte[] out = new byte[ leng ];
+        Arrays.fill( out, (byte) ' ' );
+        System.arraycopy( hdr, 0, out, 0, iend * 80 );
+        System.arraycopy( hdr, iend * 80, out, leng - 80, 80 );
+        return out;
+    }
+
+    /**
+     * Returns a serializer which can write a given table in a single pass
+     * through its data, if possible.
+     * If a non-null value is returned, its
+     * {@link FitsTableSerializer#getHeader} method may be called
+     * both before and after its
+     * {@link FitsTableSerializer#writeData} method; the header is
+     * definitive only after the data has been written,
+     * and must not at that point serialize to more header blocks
+     * than it did beforehand.
+     *
+     * <p>The AbstractFitsTableWriter implementation returns null;
+     * subclasses may override it.
+     *
+     * @param   table  table to serialize
+     * @return  single-pass FITS serializer, or null if single-pass
+     *          writing is not available
+     * @throws  IOException  if the table can't be written
+     */
+    protected FitsTableSerializer createSinglePassSerializer( StarTable table )
+            throws IOException {
+        return null;
+    }
+
     /**
      * Provides a suitable serializer for a given table.
      * Note this should throw an IOException if it can be determined that
@@ -191,6 +510,24 @@ public abstract class AbstractFitsTableWriter extends StreamStarTableWriter
         }
     }
 
+    /**
+     * Buffered output stream writing to a file, which can be repositioned
+     * to rewrite headers.
+     */
+    private static class FileBufferedOutput extends BufferedOutputStream {
+        final FileChannel chan_;
+
+        /**
+         * Constructor.
+         *
+         * @param  out  file output stream
+         */
+        FileBufferedOutput( FileOutputStream out ) {
+            super( out );
+            chan_ = out.getChannel();
+        }
+    }
+
     /**
      * Returns an ISO-8601 data string representing the time at which this
      * method is called.
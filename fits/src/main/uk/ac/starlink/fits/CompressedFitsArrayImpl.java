@@ -0,0 +1,156 @@
+package uk.ac.starlink.fits;
+
+import java.io.IOException;
+import nom.tam.fits.Header;
+import nom.tam.image.CompressedImageTiler;
+import nom.tam.util.RandomAccess;
+import uk.ac.starlink.array.AccessImpl;
+import uk.ac.starlink.array.ArrayImpl;
+import uk.ac.starlink.array.Order;
+import uk.ac.starlink.array.OrderedNDShape;
+import uk.ac.starlink.array.Type;
+
+/**
+ * ArrayImpl implementation for reading an image stored using the
+ * FITS tiled image compression convention.
+ * Pixels are decompressed on demand a tile at a time by a
+ * {@link nom.tam.image.CompressedImageTiler}, which caches recently
+ * used tiles, so random access is cheap and several accessors
+ * may read from the array at once.  The array is read-only.
+ */
+class CompressedFitsArrayImpl implements ArrayImpl {
+
+    private final RandomAccess stream_;
+    private final CompressedImageTiler tiler_;
+    private final Header hdr_;
+    private final OrderedNDShape oshape_;
+    private final Type type_;
+    private final Number badValue_;
+
+    /**
+     * Constructor.
+     *
+     * @param  stream  random access stream positioned at the start of
+     *                 the data part of the HDU
+     * @param  tableHdr  header of the compressed image binary table HDU
+     */
+    CompressedFitsArrayImpl( RandomAccess stream, Header tableHdr )
+            throws IOException {
+        stream_ = stream;
+        tiler_ = new CompressedImageTiler( stream, stream.getFilePointer(),
+                                           tableHdr );
+        hdr_ = tiler_.getImageHeader();
+
+        /* Determine the shape. */
+        int[] jdims = tiler_.getDims();
+        int naxis = jdims.length;
+        long[] dims = new long[ naxis ];
+        for ( int i = 0; i < naxis; i++ ) {
+            dims[ i ] = jdims[ naxis - 1 - i ];
+        }
+        long[] origin = ReadableFitsArrayImpl.getOriginFromHeader( hdr_ );
+        oshape_ = origin != null
+                ? new OrderedNDShape( origin, dims, Order.COLUMN_MAJOR )
+                : new OrderedNDShape( dims, Order.COLUMN_MAJOR );
+
+        /* Determine the data type and blank value. */
+        boolean hasBlank = hdr_.containsKey( "BLANK" );
+        int blank = hdr_.getIntValue( "BLANK", 0 );
+        switch ( tiler_.getBitpix() ) {
+            case 8:
+                type_ = Type.BYTE;
+                badValue_ = hasBlank ? new Byte( (byte) blank ) : null;
+                break;
+            case 16:
+                type_ = Type.SHORT;
+                badValue_ = hasBlank ? new Short( (short) blank ) : null;
+                break;
+            case 32:
+                type_ = Type.INT;
+                badValue_ = hasBlank ? new Integer( blank ) : null;
+                break;
+            case -32:
+                type_ = Type.FLOAT;
+                badValue_ = new Float( Float.NaN );
+                break;
+            case -64:
+                type_ = Type.DOUBLE;
+                badValue_ = new Double( Double.NaN );
+                break;
+            default:
+                throw new IOException( "Unsupported FITS data type" );
+        }
+    }
+
+    public OrderedNDShape getShape() {
+        return oshape_;
+    }
+    public Type getType() {
+        return type_;
+    }
+    public Number getBadValue() {
+        return badValue_;
+    }
+    public boolean isReadable() {
+        return true;
+    }
+    public boolean isWritable() {
+        return false;
+    }
+    public boolean isRandom() {
+        return true;
+    }
+    public boolean canMap() {
+        return false;
+    }
+    public Object getMapped() {
+        throw new AssertionError();
+    }
+    public boolean multipleAccess() {
+        return true;
+    }
+
+    public void open() {
+    }
+
+    public AccessImpl getAccess() {
+        return new AccessImpl() {
+            private long offset = 0L;
+            public void setOffset( long off ) {
+                offset = off;
+            }
+            public void read( Object buffer, int start, int size )
+                    throws IOException {
+                tiler_.readPixels( offset, buffer, start, size );
+                offset += size;
+            }
+            public void write( Object buffer, int start, int size ) {
+                throw new UnsupportedOperationException( "Not writable" );
+            }
+            public void close() {
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        stream_.close();
+    }
+
+    /**
+     * Returns a header describing the uncompressed image.
+     *
+     * @return  image header
+     */
+    Header getHeader() {
+        return hdr_;
+    }
+
+    /**
+     * Returns the tiler which decompresses the image.
+     *
+     * @return  tiler
+     */
+    CompressedImageTiler getTiler() {
+        return tiler_;
+    }
+}
@@ -16,15 +16,18 @@ import nom.tam.fits.FitsException;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
 import nom.tam.fits.TruncatedFileException;
+import nom.tam.image.CompressedImageTiler;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.BufferedFile;
 import nom.tam.util.BufferedDataInputStream;
 import nom.tam.util.BufferedDataOutputStream;
+import nom.tam.util.RandomAccess;
 import uk.ac.starlink.array.AccessMode;
 import uk.ac.starlink.array.ArrayImpl;
 import uk.ac.starlink.array.ArrayBuilder;
 import uk.ac.starlink.array.BadHandler;
+import uk.ac.starlink.array.BlockCacheArrayImpl;
 import uk.ac.starlink.array.BridgeNDArray;
 import uk.ac.starlink.array.Converter;
 import uk.ac.starlink.array.ConvertArrayImpl;
@@ -75,6 +78,13 @@ public class FitsArrayBuilder implements ArrayBuilder {
     /** Maximum size of MappedFile (NIO mapped buffer). */
     private static final int MAPPED_MAX_SIZE = Integer.MAX_VALUE;
 
+    /** Target size in bytes of a block cached from an unmapped file;
+     *  this is the default BufferedFile buffer size. */
+    private static final int CACHE_BLOCK_BYTES = 32768;
+
+    /** Size in bytes of the block cache for an unmapped file. */
+    private static final int CACHE_BYTES = 8 * 1024 * 1024;
+
     private List extensions = 
         new ArrayList( FitsConstants.defaultFitsExtensions() );
     private static Logger logger = Logger.getLogger( "uk.ac.starlink.fits" );
@@ -196,10 +206,47 @@ public class FitsArrayBuilder implements ArrayBuilder {
     private NDArray makeNDArray( ArrayDataInput stream, AccessMode mode, 
                                  URL url ) throws IOException {
 
-        /* Make the ArrayImpl. */
+        /* Make the ArrayImpl.  If the HDU is a tile-compressed image,
+         * which requires random access, use an implementation which
+         * decompresses it on demand. */
         ArrayImpl impl;
+        Header hdr;
         try {
-            impl = new ReadableFitsArrayImpl( stream, mode );
+            CompressedFitsArrayImpl cimpl = null;
+            if ( stream instanceof RandomAccess ) {
+                RandomAccess rstream = (RandomAccess) stream;
+                long pos = rstream.getFilePointer();
+                Header thdr = Header.readHeader( stream );
+                if ( CompressedImageTiler.isCompressedImage( thdr ) ) {
+                    if ( mode != AccessMode.READ ) {
+                        throw new IOException( "Access mode " + mode
+                                             + " not supported for "
+                                             + "compressed image" );
+                    }
+                    cimpl = new CompressedFitsArrayImpl( rstream, thdr );
+                }
+                else {
+                    rstream.seek( pos );
+                }
+            }
+            if ( cimpl != null ) {
+                impl = cimpl;
+                hdr = cimpl.getHeader();
+            }
+            else {
+                ReadableFitsArrayImpl rimpl =
+                    new ReadableFitsArrayImpl( stream, mode );
+                hdr = rimpl.getHeader();
+
+                /* An unmapped file costs a seek and read for each
+                 * contiguous run of pixels, which adds up when reading
+                 * cut-outs or spectra from a large cube, so cache it
+                 * in blocks.  Mapped files are cheap to read already. */
+                impl = mode == AccessMode.READ && rimpl.isRandom() &&
+                       stream instanceof BufferedFile
+                     ? createBlockCache( rimpl )
+                     : rimpl;
+            }
         }
         catch ( FitsException e ) {
             throw new IOException( e.getMessage() );
@@ -208,7 +255,6 @@ public class FitsArrayBuilder implements ArrayBuilder {
         /* See if we need to scale the array using BSCALE/BZERO. */
         Type type = impl.getType();
         boolean scaled = false;
-        Header hdr = ((ReadableFitsArrayImpl) impl).getHeader();
         double bscale = 1.0;
         double bzero = 0.0;
         int digits = 0;
@@ -396,6 +442,30 @@ public class FitsArrayBuilder implements ArrayBuilder {
     }
 
 
+    /**
+     * Wraps an array read from an unmapped file in a block cache
+     * whose blocks suit the array's geometry.
+     * Blocks are a whole number of rows where possible, and about
+     * as long as the file's read buffer, so that filling a block costs
+     * no more I/O than reading a single pixel would.
+     * A spectrum or narrow cut-out from a cube with large planes
+     * therefore reads no more than a buffer's worth per row it touches.
+     *
+     * @param  rimpl  random access array impl
+     * @return  cached array impl
+     */
+    private static ArrayImpl createBlockCache( ArrayImpl rimpl ) {
+        int target = Math.max( 1, CACHE_BLOCK_BYTES
+                                / rimpl.getType().getNumBytes() );
+        long rowLeng = rimpl.getShape().getDims()[ 0 ];
+        int blockSize = rowLeng <= target
+                      ? (int) ( rowLeng * ( target / rowLeng ) )
+                      : target;
+        int maxBlocks = Math.max( 1, CACHE_BYTES / CACHE_BLOCK_BYTES );
+        return new BlockCacheArrayImpl( new BridgeNDArray( rimpl ),
+                                        blockSize, maxBlocks );
+    }
+
     /**
      * Returns a BLANK value for a given type based on a given BadHandler
      * representing a request for bad value handling policy.
@@ -24,6 +24,7 @@ import nom.tam.fits.FitsException;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
 import nom.tam.fits.HeaderCardException;
+import nom.tam.image.CompressedImageTiler;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.BufferedDataInputStream;
@@ -156,6 +157,12 @@ public class FitsNdxHandler
         }
         strm.close();
 
+        /* For a tile-compressed image, use the header of the image
+         * rather than that of the table which stores it. */
+        if ( CompressedImageTiler.isCompressedImage( hdr ) ) {
+            hdr = CompressedImageTiler.translateHeader( hdr );
+        }
+
         /* If there is XML information here, read it to construct the NDX. */
         if ( hdr.containsKey( FitsConstants.NDX_XML ) ) {
             String loc = hdr.getStringValue( FitsConstants.NDX_XML );
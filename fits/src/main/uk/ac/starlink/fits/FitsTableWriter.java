@@ -37,6 +37,12 @@ import uk.ac.starlink.table.StarTable;
  * table is set to the largest of these.  Excess space is padded
  * with some sort of blank value (NaN for floating point values,
  * spaces for strings, zero-like values otherwise).
+ * <p>
+ * When writing to a file, tables which do not have variable-sized
+ * columns can be written without this first pass even if their
+ * row count is not known in advance; the header is written provisionally
+ * and patched once the data has been written
+ * (see {@link AbstractFitsTableWriter}).
  *
  * @author   Mark Taylor (Starlink)
  */
@@ -93,4 +99,10 @@ public class FitsTableWriter extends AbstractFitsTableWriter {
         return new StandardFitsTableSerializer( table, allowSignedByte_,
                                                 wide_ );
     }
+
+    protected FitsTableSerializer createSinglePassSerializer( StarTable table )
+            throws IOException {
+        return StandardFitsTableSerializer
+              .createSinglePassSerializer( table, allowSignedByte_, wide_ );
+    }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import nom.tam.fits.BasicHDU;
 import nom.tam.fits.FitsException;
 import nom.tam.fits.Header;
+import nom.tam.image.CompressedImageTiler;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.RandomAccess;
@@ -43,6 +44,10 @@ class ReadableFitsArrayImpl implements ArrayImpl {
 
         /* Read the FITS header cards. */
         hdr = Header.readHeader( stream );
+        if ( CompressedImageTiler.isCompressedImage( hdr ) ) {
+            throw new FitsException( "Random access required to read "
+                                   + "tile-compressed image" );
+        }
 
         /* Initialise the position in the stream for the start of array data. */
         this.strmBase = isRandom ? ((RandomAccess) stream).getFilePointer()
@@ -234,7 +239,7 @@ class ReadableFitsArrayImpl implements ArrayImpl {
         return dimensions;
     }
 
-    private static long[] getOriginFromHeader( Header hdr ) {
+    static long[] getOriginFromHeader( Header hdr ) {
         int naxis = hdr.getIntValue( "NAXIS" );
         long[] origin = new long[ naxis ];
         boolean ok = true;
@@ -1,11 +1,20 @@
 package uk.ac.starlink.fits;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import nom.tam.fits.FitsException;
@@ -47,6 +56,11 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
     private ColumnWriter[] colWriters;
     private ColumnInfo[] colInfos;
     private long rowCount;
+    private boolean singlePass;
+    private boolean[] nullChecks;
+    private boolean[] nullsSeen;
+    private WriterSpec[] writerSpecs;
+    private int encodeThreads = 1;
 
     /**
      * Package-private constructor intended for use by subclasses.
@@ -82,6 +96,31 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         init( table );
     }
 
+    /**
+     * Returns a serializer which writes a given table in a single pass
+     * through its data, if that is possible.
+     * The header of such a serializer is only definitive once its
+     * data has been written; see {@link #initSinglePass}.
+     *
+     * @param  table  the table to be written
+     * @param  allowSignedByte  if true, bytes written as FITS signed bytes
+     *         (TZERO=-128), if false bytes written as signed shorts
+     * @param   wide   convention for representing over-wide tables;
+     *                 null to avoid this convention
+     * @return  single-pass serializer, or null if the table cannot be
+     *          written in a single pass
+     * @throws IOException if it won't be possible to write the given table
+     */
+    public static StandardFitsTableSerializer
+            createSinglePassSerializer( StarTable table,
+                                        boolean allowSignedByte,
+                                        WideFits wide )
+            throws IOException {
+        StandardFitsTableSerializer fitser =
+            new StandardFitsTableSerializer( allowSignedByte, wide );
+        return fitser.initSinglePass( table ) ? fitser : null;
+    }
+
     /**
      * Configures this serializer for use with a given table and column writer
      * factory.  Should be called before this object is ready for use;
@@ -93,10 +132,82 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
      *                       for instance if it has too many columns
      */
     final void init( StarTable table ) throws IOException {
+        init( table, false );
+    }
+
+    /**
+     * Configures this serializer for writing a given table in a single
+     * pass, if possible.
+     * In this case no pass is made through the data before writing starts;
+     * the row count, whether nullable integer columns contain nulls,
+     * and (where the column writers support it) array sizes,
+     * are instead accumulated while {@link #writeData} runs.
+     * The header returned by {@link #getHeader} before the data is
+     * written is therefore provisional; the one returned afterwards is
+     * definitive, and never has more cards than the provisional one.
+     *
+     * <p>If the table cannot be written like this, false is returned
+     * and this serializer is left uninitialised.
+     *
+     * @param  table  table to be written
+     * @return  true iff this serializer has been initialised for
+     *          single-pass writing
+     * @throws IOException if it won't be possible to write the given table,
+     *                       for instance if it has too many columns
+     */
+    final boolean initSinglePass( StarTable table ) throws IOException {
+        if ( table.getRowCount() < 0 &&
+             HealpixTableInfo.isHealpix( table.getParameters() ) ) {
+            return false;
+        }
+        int ncol = table.getColumnCount();
+        for ( int icol = 0; icol < ncol; icol++ ) {
+            ColumnInfo cinfo = table.getColumnInfo( icol );
+            if ( hasVariableShape( cinfo ) && ! isSinglePassColumn( cinfo ) ) {
+                return false;
+            }
+        }
+        init( table, true );
+        return true;
+    }
+
+    /**
+     * Indicates whether a column with a given variable shape can be
+     * written without knowing in advance the sizes of its values.
+     * This is only called for columns for which
+     * {@link #hasVariableShape} returns true.
+     * The StandardFitsTableSerializer implementation returns false.
+     *
+     * @param  cinfo  column metadata
+     * @return  true iff single-pass writing is possible for the column
+     */
+    boolean isSinglePassColumn( ColumnInfo cinfo ) {
+        return false;
+    }
+
+    /**
+     * Indicates whether this serializer is writing in single-pass mode.
+     *
+     * @return   true iff initialised by {@link #initSinglePass}
+     */
+    boolean isSinglePass() {
+        return singlePass;
+    }
+
+    /**
+     * Configures this serializer for use with a given table, optionally
+     * in single-pass mode.
+     *
+     * @param  table  table to be written
+     * @param  singlePass  true to avoid making a first pass through the data
+     */
+    private void init( StarTable table, boolean singlePass )
+            throws IOException {
         if ( this.table != null ) {
             throw new IllegalStateException( "Table already initialised" );
         }
         this.table = table;
+        this.singlePass = singlePass;
 
         /* Get table dimensions (though we may need to calculate the row
          * count directly later. */
@@ -121,6 +232,8 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         boolean[] mayHaveNullableInts = new boolean[ ncol ];
         Arrays.fill( useCols, true );
         boolean[] hasNulls = new boolean[ ncol ];
+        nullChecks = new boolean[ ncol ];
+        nullsSeen = new boolean[ ncol ];
         for ( int icol = 0; icol < ncol; icol++ ) {
             ColumnInfo colinfo = colInfos[ icol ];
             Class clazz = colinfo.getContentClass();
@@ -168,6 +281,10 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
                                                Number.class ) != null ) {
                     hasNulls[ icol ] = true;
                 }
+                else if ( singlePass ) {
+                    hasNulls[ icol ] = true;
+                    nullChecks[ icol ] = true;
+                }
                 else {
                     checkForNullableInts = true;
                 }
@@ -177,7 +294,12 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         /* If necessary, make a first pass through the table data to
          * find out the maximum size of variable length fields and the length
          * of the table. */
-        if ( hasVarShapes || checkForNullableInts || nrow < 0 ) {
+        if ( singlePass ) {
+            logger.config( "Single pass: row count, nulls and variable sizes"
+                         + " will be determined during writing" );
+            nrow = Math.max( 0L, nrow );
+        }
+        else if ( hasVarShapes || checkForNullableInts || nrow < 0 ) {
             StringBuffer sbuf = new StringBuffer( "First pass needed: " );
             if ( hasVarShapes ) {
                 sbuf.append( "(variable array shapes) " );
@@ -289,18 +411,20 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
          * written in FITS format store a null in the writers array
          * and log a message. */
         colWriters = new ColumnWriter[ ncol ];
+        writerSpecs = new WriterSpec[ ncol ];
         int rbytes = 0;
         int nUseCol = 0;
         for ( int icol = 0; icol < ncol; icol++ ) {
             if ( useCols[ icol ] ) {
                 ColumnInfo cinfo = colInfos[ icol ];
+                writerSpecs[ icol ] =
+                    new WriterSpec( cinfo, shapes[ icol ], varShapes[ icol ],
+                                    maxChars[ icol ], maxElements[ icol ],
+                                    totalElements[ icol ],
+                                    mayHaveNullableInts[ icol ] 
+                                    && hasNulls[ icol ] );
                 ColumnWriter writer =
-                    createColumnWriter( cinfo, shapes[ icol ],
-                                        varShapes[ icol ], maxChars[ icol ],
-                                        maxElements[ icol ],
-                                        totalElements[ icol ],
-                                        mayHaveNullableInts[ icol ] 
-                                        && hasNulls[ icol ] );
+                    createColumnWriter( writerSpecs[ icol ] );
                 if ( writer == null ) {
                     logger.warning( "Ignoring column " + cinfo.getName() +
                                     " - don't know how to write to FITS" );
@@ -316,6 +440,30 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         FitsConstants.checkColumnCount( wide, nUseCol );
     }
 
+    /**
+     * Indicates whether a column has values whose size cannot be known
+     * without examining the data.
+     *
+     * @param  cinfo  column metadata
+     * @return  true for variable-length arrays or strings
+     */
+    static boolean hasVariableShape( ColumnInfo cinfo ) {
+        Class clazz = cinfo.getContentClass();
+        if ( clazz.isArray() ) {
+            int[] shape = cinfo.getShape();
+            if ( shape != null && shape.length > 0 &&
+                 shape[ shape.length - 1 ] < 0 ) {
+                return true;
+            }
+            return clazz.getComponentType().equals( String.class )
+                && cinfo.getElementSize() <= 0;
+        }
+        else {
+            return clazz.equals( String.class )
+                && cinfo.getElementSize() <= 0;
+        }
+    }
+
     /**
      * Returns the array of column writers used by this serializer.
      * The list is generated once by the sole call of the 
@@ -524,24 +672,39 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         }
 
         /* Write the data cells, delegating the item in each column to
-         * the writer that knows how to handle it. */
-        long nWritten = 0L;
+         * the writer that knows how to handle it.  In single-pass mode,
+         * keep track of what we will need to know for the header. */
+        long nrow = 0L;
         RowSequence rseq = table.getRowSequence();
         try {
-            while ( rseq.next() ) {
-                Object[] row = rseq.getRow();
-                for ( int icol = 0; icol < ncol; icol++ ) {
-                    ColumnWriter writer = colWriters[ icol ];
-                    if ( writer != null ) {
-                        writer.writeValue( strm, row[ icol ] );
-                    }
+            if ( encodeThreads > 1 && canEncodeParallel() ) {
+                nrow = writeRowsParallel( rseq, strm, rowBytes );
+            }
+            else {
+                while ( rseq.next() ) {
+                    writeRow( rseq.getRow(), colWriters, strm, nullsSeen );
+                    nrow++;
                 }
-                nWritten += rowBytes;
             }
         }
         finally {
             rseq.close();
         }
+        long nWritten = nrow * rowBytes;
+        if ( singlePass ) {
+            rowCount = nrow;
+
+            /* Nullable integer columns which turned out to contain no nulls
+             * are written the same way, but declare no TNULLn value. */
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                if ( nullChecks[ icol ] && ! nullsSeen[ icol ] &&
+                     colWriters[ icol ] != null ) {
+                    colWriters[ icol ] =
+                        createColumnWriter( colInfos[ icol ], null, false,
+                                            0, 0, 0L, false );
+                }
+            }
+        }
 
         /* Write padding. */
         int extra = (int) ( nWritten % (long) 2880 );
@@ -550,6 +713,211 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
         }
     }
 
+    /**
+     * Sets the number of threads used to encode row data.
+     * If greater than one, blocks of rows are serialized concurrently
+     * by a pool of worker threads, and written out in sequence.
+     * Rows are still read in the thread which calls {@link #writeData}.
+     * Some serializers may ignore this setting.
+     * The default is 1.
+     *
+     * @param  encodeThreads  number of encoding threads
+     */
+    public void setEncodeThreads( int encodeThreads ) {
+        this.encodeThreads = encodeThreads;
+    }
+
+    /**
+     * Returns the number of threads used to encode row data.
+     *
+     * @return  number of encoding threads
+     */
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    /**
+     * Indicates whether independent blocks of rows can be encoded
+     * concurrently by this serializer.
+     * The StandardFitsTableSerializer implementation returns true.
+     *
+     * @return  true iff multi-threaded encoding is possible
+     */
+    boolean canEncodeParallel() {
+        return true;
+    }
+
+    /**
+     * Writes the cells of a single row.
+     *
+     * @param  row  row data
+     * @param  writers  column writers, null elements for unused columns
+     * @param  out   destination stream
+     * @param  nulls  array of flags to be set for columns in which
+     *                a null value subject to checking is seen
+     */
+    private void writeRow( Object[] row, ColumnWriter[] writers,
+                           DataOutput out, boolean[] nulls )
+            throws IOException {
+        int ncol = writers.length;
+        for ( int icol = 0; icol < ncol; icol++ ) {
+            ColumnWriter writer = writers[ icol ];
+            if ( writer != null ) {
+                Object value = row[ icol ];
+                if ( value == null && nullChecks[ icol ] ) {
+                    nulls[ icol ] = true;
+                }
+                writer.writeValue( out, value );
+            }
+        }
+    }
+
+    /**
+     * Writes all the rows of a sequence, encoding blocks of rows
+     * concurrently in worker threads.
+     * Since column writers may not be thread-safe, each worker uses
+     * its own copies.
+     *
+     * @param  rseq  row sequence
+     * @param  strm  destination stream
+     * @param  rowBytes  number of bytes per serialized row
+     * @return  number of rows written
+     */
+    private long writeRowsParallel( RowSequence rseq, DataOutput strm,
+                                    final int rowBytes )
+            throws IOException {
+        final int ncol = colWriters.length;
+        final ThreadLocal<ColumnWriter[]> localWriters =
+                new ThreadLocal<ColumnWriter[]>() {
+            protected ColumnWriter[] initialValue() {
+                ColumnWriter[] writers = new ColumnWriter[ ncol ];
+                for ( int icol = 0; icol < ncol; icol++ ) {
+                    if ( colWriters[ icol ] != null ) {
+                        writers[ icol ] =
+                            createColumnWriter( writerSpecs[ icol ] );
+                    }
+                }
+                return writers;
+            }
+        };
+        ExecutorService executor =
+            Executors.newFixedThreadPool( encodeThreads, new ThreadFactory() {
+                private int ithread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread thread =
+                        new Thread( r, "FITS encoder " + ++ithread_ );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        int blockRows = Math.max( 1, ( 1 << 20 ) / Math.max( 1, rowBytes ) );
+        int maxQueue = 2 * encodeThreads;
+        LinkedList<Future<EncodedBlock>> futures =
+            new LinkedList<Future<EncodedBlock>>();
+        long nrow = 0;
+        try {
+            boolean more = true;
+            while ( more ) {
+                final List<Object[]> rows = new ArrayList<Object[]>();
+                while ( rows.size() < blockRows && ( more = rseq.next() ) ) {
+                    rows.add( (Object[]) rseq.getRow().clone() );
+                }
+                nrow += rows.size();
+                if ( rows.size() > 0 ) {
+                    futures.add( executor.submit(
+                                     new Callable<EncodedBlock>() {
+                        public EncodedBlock call() throws IOException {
+                            return encodeBlock( rows, localWriters.get(),
+                                                rowBytes );
+                        }
+                    } ) );
+                }
+                while ( futures.size() > ( more ? maxQueue : 0 ) ) {
+                    EncodedBlock block = getBlock( futures.removeFirst() );
+                    strm.write( block.bytes_ );
+                    for ( int icol = 0; icol < ncol; icol++ ) {
+                        nullsSeen[ icol ] = nullsSeen[ icol ]
+                                         || block.nulls_[ icol ];
+                    }
+                }
+            }
+        }
+        finally {
+            for ( Future<EncodedBlock> future : futures ) {
+                future.cancel( true );
+            }
+            executor.shutdown();
+        }
+        return nrow;
+    }
+
+    /**
+     * Serializes a block of rows to a byte array.
+     *
+     * @param  rows  row data
+     * @param  writers  column writers private to the calling thread
+     * @param  rowBytes  number of bytes per serialized row
+     * @return   encoded block
+     */
+    private EncodedBlock encodeBlock( List<Object[]> rows,
+                                      ColumnWriter[] writers, int rowBytes )
+            throws IOException {
+        ByteArrayOutputStream bout =
+            new ByteArrayOutputStream( rows.size() * rowBytes );
+        DataOutputStream dout = new DataOutputStream( bout );
+        boolean[] nulls = new boolean[ writers.length ];
+        for ( Object[] row : rows ) {
+            writeRow( row, writers, dout, nulls );
+        }
+        dout.flush();
+        return new EncodedBlock( bout.toByteArray(), nulls );
+    }
+
+    /**
+     * Waits for and returns the result of an encoding job.
+     *
+     * @param  future  future
+     * @return  encoded block
+     */
+    private static EncodedBlock getBlock( Future<EncodedBlock> future )
+            throws IOException {
+        try {
+            return future.get();
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException) new IOException( "Interrupted" )
+                               .initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw (IOException) new IOException( cause.getMessage() )
+                                   .initCause( cause );
+            }
+        }
+    }
+
+    /**
+     * Creates a column writer from a stored specification.
+     *
+     * @param  spec  column writer specification
+     * @return  new column writer, or null if the column can't be written
+     */
+    private ColumnWriter createColumnWriter( WriterSpec spec ) {
+        return createColumnWriter( spec.cinfo_, spec.shape_, spec.varShape_,
+                                   spec.eSize_, spec.maxEls_, spec.totalEls_,
+                                   spec.nullableInt_ );
+    }
+
     public char getFormatChar( int icol ) {
         if ( colWriters[ icol ] == null ) {
             return (char) 0;
@@ -897,4 +1265,53 @@ public class StandardFitsTableSerializer implements FitsTableSerializer {
             return null;
         }
     }
+
+    /**
+     * Records the arguments with which a column writer was created,
+     * so that equivalent ones can be created for worker threads.
+     */
+    private static class WriterSpec {
+        final ColumnInfo cinfo_;
+        final int[] shape_;
+        final boolean varShape_;
+        final int eSize_;
+        final int maxEls_;
+        final long totalEls_;
+        final boolean nullableInt_;
+
+        /**
+         * Constructor.  Arguments are as for
+         * {@link StandardFitsTableSerializer#createColumnWriter}.
+         */
+        WriterSpec( ColumnInfo cinfo, int[] shape, boolean varShape,
+                    int eSize, int maxEls, long totalEls,
+                    boolean nullableInt ) {
+            cinfo_ = cinfo;
+            shape_ = shape;
+            varShape_ = varShape;
+            eSize_ = eSize;
+            maxEls_ = maxEls;
+            totalEls_ = totalEls;
+            nullableInt_ = nullableInt;
+        }
+    }
+
+    /**
+     * Result of encoding a block of rows.
+     */
+    private static class EncodedBlock {
+        final byte[] bytes_;
+        final boolean[] nulls_;
+
+        /**
+         * Constructor.
+         *
+         * @param  bytes  serialized row data
+         * @param  nulls  per-column flags indicating checked nulls seen
+         */
+        EncodedBlock( byte[] bytes, boolean[] nulls ) {
+            bytes_ = bytes;
+            nulls_ = nulls;
+        }
+    }
 }
@@ -3,6 +3,7 @@ package uk.ac.starlink.fits;
 import java.io.BufferedOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
@@ -30,6 +31,7 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
 
     private final StoragePolicy storagePolicy_;
     private final boolean allowSignedByte_;
+    private long heapBytes_;
 
     /** 
      * Constructor.
@@ -46,11 +48,26 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
                                         StoragePolicy storagePolicy,
                                         boolean allowSignedByte, WideFits wide )
             throws IOException {
+        this( storagePolicy, allowSignedByte, wide );
+        init( table );
+        set64BitMode( getHeapSize() > Integer.MAX_VALUE );
+    }
+
+    /**
+     * Constructs an uninitialised serializer.
+     * One of the <code>init</code> methods must be called before use.
+     *
+     * @param  storagePolicy  policy for acquiring byte array scratch buffers
+     * @param  allowSignedByte  if true, bytes written as FITS signed bytes
+     *         (TZERO=-128), if false bytes written as signed shorts
+     * @param   wide   convention for representing over-wide tables;
+     *                 null to avoid this convention
+     */
+    VariableFitsTableSerializer( StoragePolicy storagePolicy,
+                                 boolean allowSignedByte, WideFits wide ) {
         super( allowSignedByte, wide );
         storagePolicy_ = storagePolicy;
         allowSignedByte_ = allowSignedByte;
-        init( table );
-        set64BitMode( getHeapSize() > Integer.MAX_VALUE );
     }
 
     /**
@@ -132,15 +149,19 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
     /**
      * Returns the number of bytes which will be written to the heap 
      * containing variable array data.
+     * In single-pass mode this is not known until the data has been
+     * written, and zero is returned before then.
      *
      * @return   heap size
      */
     private final long getHeapSize() {
+        if ( isSinglePass() ) {
+            return heapBytes_;
+        }
         long count = 0L;
         VariableArrayColumnWriter[] vcws = getVariableArrayColumnWriters();
         for ( int iv = 0; iv < vcws.length; iv++ ) {
-            VariableArrayColumnWriter vcw = vcws[ iv ];
-            count += vcw.totalElements_ * vcw.arrayWriter_.getByteCount();
+            count += vcws[ iv ].getHeapBytes();
         }
         return count;
     }
@@ -149,8 +170,8 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
         VariableArrayColumnWriter[] vcws = getVariableArrayColumnWriters();
         ByteStore byteStore = storagePolicy_.makeByteStore();
         int bufsiz = 64 * 1024;
-        DataOutputStream dataOut =
-            new DataOutputStream(
+        HeapOutput dataOut =
+            new HeapOutput(
                 new BufferedOutputStream( byteStore.getOutputStream(),
                                           bufsiz ) );
         for ( int iv = 0; iv < vcws.length; iv++ ) {
@@ -162,6 +183,9 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
              * 2880-byte block. */
             super.writeData( out );
             dataOut.flush();
+            if ( isSinglePass() ) {
+                heapBytes_ = byteStore.getLength();
+            }
             byteStore.copy( toStream( out ) );
         }
         finally {
@@ -182,7 +206,13 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
                                      int maxEls, long totalEls,
                                      boolean nullableInt ) {
         Class clazz = cinfo.getContentClass();
-        if ( ! varShape || clazz == String.class || clazz == String[].class ) {
+
+        /* Strings of unknown length only get here in single-pass mode. */
+        if ( clazz == String.class && eSize <= 0 ) {
+            return new VariableStringColumnWriter();
+        }
+        else if ( ! varShape || clazz == String.class ||
+                  clazz == String[].class ) {
             return super.createColumnWriter( cinfo, shape, varShape, eSize,
                                              maxEls, totalEls, nullableInt );
         }
@@ -194,6 +224,24 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
         }
     }
 
+    /**
+     * Returns false if any columns are written to the heap,
+     * since heap offsets depend on the order in which rows are encoded.
+     */
+    boolean canEncodeParallel() {
+        return getVariableArrayColumnWriters().length == 0;
+    }
+
+    /**
+     * Returns true for variable-shaped numeric or boolean arrays and
+     * for variable-length strings, which are written to the heap.
+     */
+    boolean isSinglePassColumn( ColumnInfo cinfo ) {
+        Class clazz = cinfo.getContentClass();
+        return clazz == String.class
+            || ( clazz.isArray() && clazz != String[].class );
+    }
+
     /**
      * Gets an OutputStream based on a given DataOutput.
      *
@@ -227,15 +275,19 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
     private static class VariableArrayColumnWriter implements ColumnWriter {
 
         private final ArrayWriter arrayWriter_;
-        private final int maxElements_;
         private final long totalElements_;
+        private int maxElements_;
         private PQMode pqMode_;
-        private DataOutputStream dataOut_;
+        private HeapOutput dataOut_;
 
         /**
          * Constructor.
          *
-         * @param  arrayWriter   array writer for a specific data type
+         * @param  arrayWriter   array writer for a specific data type,
+         *                       or null if writeElements is overridden
+         * @param  maxElements   maximum number of elements in any value
+         *                       (may increase as values are written)
+         * @param  totalElements  total number of elements in column
          */
         VariableArrayColumnWriter( ArrayWriter arrayWriter, int maxElements,
                                    long totalElements ) {
@@ -253,23 +305,60 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
         }
 
         /**
-         * Sets the byte store to which the actual array data is written
+         * Sets the heap stream to which the actual array data is written
          * by this serializer.  Must be called before use.
          *
-         * @param  byteStore  byte store
+         * @param  dataOut  heap output stream
          */
-        public void setDataOutput( DataOutputStream dataOut ) {
+        public void setDataOutput( HeapOutput dataOut ) {
             dataOut_ = dataOut;
         }
 
+        /**
+         * Returns the number of bytes this column is expected to
+         * write to the heap.
+         *
+         * @return  heap byte count
+         */
+        long getHeapBytes() {
+            return totalElements_ * arrayWriter_.getByteCount();
+        }
+
         public void writeValue( DataOutput out, Object value )
                 throws IOException {
-            int leng = value == null ? 0 : Array.getLength( value );
+            int leng = getElementCount( value );
             pqMode_.writeInteger( out, leng );
             pqMode_.writeInteger( out, leng == 0 ? 0
-                                                 : dataOut_.size() );
+                                                 : dataOut_.getOffset() );
+            if ( leng > 0 ) {
+                writeElements( dataOut_, value, leng );
+            }
+            if ( leng > maxElements_ ) {
+                maxElements_ = leng;
+            }
+        }
+
+        /**
+         * Returns the number of heap elements for a given value.
+         *
+         * @param  value  cell value
+         * @return  element count
+         */
+        int getElementCount( Object value ) {
+            return value == null ? 0 : Array.getLength( value );
+        }
+
+        /**
+         * Writes the elements of a value to the heap.
+         *
+         * @param  dataOut  heap stream
+         * @param  value   non-null cell value
+         * @param  leng    element count
+         */
+        void writeElements( DataOutput dataOut, Object value, int leng )
+                throws IOException {
             for ( int i = 0; i < leng; i++ ) {
-                arrayWriter_.writeElement( dataOut_, value, i );
+                arrayWriter_.writeElement( dataOut, value, i );
             }
         }
 
@@ -280,7 +369,7 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
         public String getFormat() {
             return new StringBuffer()
                   .append( pqMode_.getFormatChar() )
-                  .append( arrayWriter_.getFormatChar() )
+                  .append( getFormatChar() )
                   .append( '(' )
                   .append( maxElements_ )
                   .append( ')' )
@@ -308,6 +397,95 @@ public class VariableFitsTableSerializer extends StandardFitsTableSerializer {
         }
     }
 
+    /**
+     * ColumnWriter which writes strings of unknown length as
+     * variable-length character arrays ('PA' or 'QA').
+     * Only used in single-pass mode.
+     */
+    private static class VariableStringColumnWriter
+            extends VariableArrayColumnWriter {
+
+        VariableStringColumnWriter() {
+            super( null, 0, 0L );
+        }
+
+        long getHeapBytes() {
+            return 0L;
+        }
+
+        int getElementCount( Object value ) {
+            return value == null ? 0 : ((String) value).length();
+        }
+
+        void writeElements( DataOutput dataOut, Object value, int leng )
+                throws IOException {
+            String sval = (String) value;
+            for ( int i = 0; i < leng; i++ ) {
+                dataOut.write( (byte) sval.charAt( i ) );
+            }
+        }
+
+        public char getFormatChar() {
+            return 'A';
+        }
+
+        public double getZero() {
+            return 0.0;
+        }
+    }
+
+    /**
+     * Buffered DataOutputStream which keeps a 64-bit count of the bytes
+     * written, for use as heap offsets.
+     */
+    private static class HeapOutput extends DataOutputStream {
+
+        /**
+         * Constructor.
+         *
+         * @param  out  destination stream
+         */
+        HeapOutput( OutputStream out ) {
+            super( new CountOutputStream( out ) );
+        }
+
+        /**
+         * Returns the number of bytes written so far.
+         *
+         * @return  byte count
+         */
+        long getOffset() {
+            return ((CountOutputStream) out).count_;
+        }
+    }
+
+    /**
+     * Filter stream that counts bytes written.
+     */
+    private static class CountOutputStream extends FilterOutputStream {
+        long count_;
+
+        /**
+         * Constructor.
+         *
+         * @param  out  destination stream
+         */
+        CountOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        public void write( int b ) throws IOException {
+            out.write( b );
+            count_++;
+        }
+
+        public void write( byte[] buf, int off, int leng )
+                throws IOException {
+            out.write( buf, off, leng );
+            count_ += leng;
+        }
+    }
+
     /**
      * Parameterises whether 'P' or 'Q' descriptor is used to write 
      * variable-length arrays.
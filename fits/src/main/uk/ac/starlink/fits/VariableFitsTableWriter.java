@@ -15,8 +15,13 @@ import uk.ac.starlink.table.StoragePolicy;
  * Any other columns will get written in just the same way as by the
  * {@link FitsTableWriter}.
  *
- * <p>Strings and String arrays ('A' descriptor) are not currently 
- * written in variable-length form.
+ * <p>String arrays are not currently written in variable-length form.
+ * Strings are written in variable-length form ('PA' or 'QA')
+ * only when the table is written in a single pass
+ * (see {@link AbstractFitsTableWriter}) and their maximum length
+ * is not declared; in that case 'Q' descriptors are used unless
+ * 32-bit indexing has been explicitly requested, since the heap size
+ * is not known until the data has been written.
  *
  * @author   Mark Taylor
  * @since    11 Jul 2008
@@ -85,4 +90,19 @@ public class VariableFitsTableWriter extends AbstractFitsTableWriter {
         }
         return fitser;
     }
+
+    protected FitsTableSerializer createSinglePassSerializer( StarTable table )
+            throws IOException {
+        VariableFitsTableSerializer fitser =
+            new VariableFitsTableSerializer( storagePolicy_, allowSignedByte_,
+                                             wide_ );
+        if ( fitser.initSinglePass( table ) ) {
+            fitser.set64BitMode( longIndexing_ == null
+                              || longIndexing_.booleanValue() );
+            return fitser;
+        }
+        else {
+            return null;
+        }
+    }
 }
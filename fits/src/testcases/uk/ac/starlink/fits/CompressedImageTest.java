@@ -0,0 +1,622 @@
+package uk.ac.starlink.fits;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.image.CompressedImageTiler;
+import nom.tam.image.TileDecompressor;
+import nom.tam.util.BufferedFile;
+import uk.ac.starlink.array.AccessMode;
+import uk.ac.starlink.array.ArrayAccess;
+import uk.ac.starlink.array.NDArray;
+import uk.ac.starlink.array.NDShape;
+import uk.ac.starlink.array.Order;
+import uk.ac.starlink.array.Type;
+import uk.ac.starlink.util.TestCase;
+
+public class CompressedImageTest extends TestCase {
+
+    private final Random random_ = new Random( 230001L );
+
+    public CompressedImageTest( String name ) {
+        super( name );
+    }
+
+    public void testRice() throws IOException {
+        for ( int bytepix : new int[] { 1, 2, 4 } ) {
+            int bits = bytepix * 8;
+            int[] data = new int[ 1001 ];
+            for ( int i = 0; i < data.length; i++ ) {
+                int v;
+                if ( i < 100 ) {
+                    v = 7;
+                }
+                else if ( i < 300 ) {
+                    v = random_.nextInt();
+                }
+                else {
+                    v = 1000 + i % 13 + random_.nextInt( 5 );
+                }
+                data[ i ] = ( v << ( 32 - bits ) ) >> ( 32 - bits );
+            }
+            byte[] comp = riceCompress( data, 32, bytepix );
+            int[] decomp =
+                TileDecompressor.riceDecompress( comp, data.length, 32,
+                                                 bytepix );
+            for ( int i = 0; i < data.length; i++ ) {
+                int d = ( decomp[ i ] << ( 32 - bits ) ) >> ( 32 - bits );
+                assertEquals( data[ i ], d );
+            }
+        }
+    }
+
+    public void testRandoms() {
+        float[] r = TileDecompressor.getRandoms();
+        assertEquals( TileDecompressor.N_RANDOM, r.length );
+        assertEquals( (float) ( 16807 / 2147483647.0 ), r[ 0 ] );
+
+        /* Standard check value for the Park-Miller generator. */
+        assertEquals( (float) ( 1043618065 / 2147483647.0 ), r[ 9999 ] );
+    }
+
+    public void testShortRice() throws IOException {
+        int[] dims = new int[] { 37, 23 };
+        int[] ztile = new int[] { 10, 4 };
+        short[] data = new short[ 37 * 23 ];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[ i ] = (short) ( i % 37 < 5 ? -2
+                                             : i * 3 + random_.nextInt( 20 ) );
+        }
+        List<Object> tiles = makeTiles( data, dims, ztile );
+        byte[][] cells = new byte[ tiles.size() ][];
+        for ( int it = 0; it < cells.length; it++ ) {
+            short[] tile = (short[]) tiles.get( it );
+            int[] itile = new int[ tile.length ];
+            for ( int i = 0; i < tile.length; i++ ) {
+                itile[ i ] = tile[ i ];
+            }
+            cells[ it ] = riceCompress( itile, 16, 2 );
+        }
+        List<String> cards = imageCards( 16, dims, ztile, "RICE_1" );
+        cards.add( card( "ZNAME1", "BLOCKSIZE" ) );
+        cards.add( card( "ZVAL1", 16 ) );
+        cards.add( card( "ZNAME2", "BYTEPIX" ) );
+        cards.add( card( "ZVAL2", 2 ) );
+        cards.add( card( "ZBLANK", -2 ) );
+        cards.add( card( "OBJECT", "Test" ) );
+        File file = writeFile( cards, new Column[] {
+            new Column( "COMPRESSED_DATA", cells ),
+        } );
+
+        NDArray nda = FitsArrayBuilder.getInstance()
+                     .makeNDArray( new URL( file.toURI().toURL(), "#1" ),
+                                   AccessMode.READ );
+        assertEquals( Type.SHORT, nda.getType() );
+        assertEquals( new Short( (short) -2 ),
+                      nda.getBadHandler().getBadValue() );
+        assertTrue( nda.isRandom() && nda.multipleAccess() );
+        assertTrue( ! nda.isWritable() );
+        assertArrayEquals( new long[] { 37, 23 }, nda.getShape().getDims() );
+        short[] buf = new short[ data.length ];
+        ArrayAccess acc = nda.getAccess();
+        acc.read( buf, 0, buf.length );
+        assertArrayEquals( data, buf );
+
+        /* Read a section crossing tile boundaries. */
+        NDShape sect = new NDShape( new long[] { 8, 3 },
+                                    new long[] { 15, 7 } );
+        short[] sbuf = new short[ (int) sect.getNumPixels() ];
+        acc.readTile( sbuf, sect );
+        int k = 0;
+        for ( int y = 2; y < 9; y++ ) {
+            for ( int x = 7; x < 22; x++ ) {
+                assertEquals( data[ y * 37 + x ], sbuf[ k++ ] );
+            }
+        }
+        acc.close();
+        nda.close();
+
+        /* Header translation. */
+        BufferedFile in = new BufferedFile( file.getPath(), "r" );
+        FitsConstants.skipHDUs( in, 1 );
+        Header hdr = CompressedImageTiler
+                    .translateHeader( readHeader( in ) );
+        in.close();
+        assertEquals( 16, hdr.getIntValue( "BITPIX" ) );
+        assertEquals( 2, hdr.getIntValue( "NAXIS" ) );
+        assertEquals( 37, hdr.getIntValue( "NAXIS1" ) );
+        assertEquals( 23, hdr.getIntValue( "NAXIS2" ) );
+        assertEquals( -2, hdr.getIntValue( "BLANK" ) );
+        assertEquals( "Test", hdr.getStringValue( "OBJECT" ) );
+        assertTrue( ! hdr.containsKey( "TFIELDS" ) );
+        assertTrue( ! hdr.containsKey( "ZCMPTYPE" ) );
+        file.delete();
+    }
+
+    public void testIntGzip() throws IOException {
+        int[] dims = new int[] { 20, 15, 4 };
+        int[] ztile = new int[] { 8, 8, 1 };
+        int[] data = new int[ 20 * 15 * 4 ];
+        fillRandom( data, -100000, 100000 );
+        List<Object> tiles = makeTiles( data, dims, ztile );
+        byte[][] cells = new byte[ tiles.size() ][];
+        for ( int it = 0; it < cells.length; it++ ) {
+            int[] tile = (int[]) tiles.get( it );
+            ByteBuffer bb = ByteBuffer.allocate( tile.length * 4 );
+            bb.asIntBuffer().put( tile );
+            cells[ it ] = gzip( shuffle( bb.array(), 4 ) );
+        }
+        File file = writeFile( imageCards( 32, dims, ztile, "GZIP_2" ),
+                               new Column[] {
+            new Column( "COMPRESSED_DATA", cells ),
+        } );
+
+        BufferedFile in = new BufferedFile( file.getPath(), "r" );
+        FitsConstants.skipHDUs( in, 1 );
+        Header hdr = readHeader( in );
+        CompressedImageTiler tiler =
+            new CompressedImageTiler( in, in.getFilePointer(), hdr );
+        assertArrayEquals( new int[] { 4, 15, 20 }, tiler.getDims() );
+        assertEquals( int.class, tiler.getBaseClass() );
+
+        /* Decode in parallel with a cache too small to hold every tile. */
+        tiler.setDecodeThreads( 4 );
+        tiler.setCacheSize( 200 );
+        int[] all = (int[]) tiler.getTile( new int[] { 0, 0, 0 },
+                                           new int[] { 4, 15, 20 } );
+        assertArrayEquals( data, all );
+        int[] part = new int[ 40 ];
+        tiler.readPixels( 333, part, 0, 40 );
+        for ( int i = 0; i < 40; i++ ) {
+            assertEquals( data[ 333 + i ], part[ i ] );
+        }
+
+        /* Tile partly outside the image leaves the outside untouched. */
+        int[] out = new int[ 2 * 3 * 4 ];
+        java.util.Arrays.fill( out, 99 );
+        tiler.getTile( out, new int[] { 3, 13, -2 },
+                       new int[] { 2, 3, 4 } );
+        for ( int z = 0; z < 2; z++ ) {
+            for ( int y = 0; y < 3; y++ ) {
+                for ( int x = 0; x < 4; x++ ) {
+                    int v = out[ ( z * 3 + y ) * 4 + x ];
+                    int iz = 3 + z;
+                    int iy = 13 + y;
+                    int ix = -2 + x;
+                    if ( iz < 4 && iy < 15 && ix >= 0 ) {
+                        assertEquals( data[ ( iz * 15 + iy ) * 20 + ix ], v );
+                    }
+                    else {
+                        assertEquals( 99, v );
+                    }
+                }
+            }
+        }
+
+        /* Several threads reading at once get the right pixels. */
+        final CompressedImageTiler tiler1 = tiler;
+        final int[] data1 = data;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[ 4 ];
+        for ( int it = 0; it < threads.length; it++ ) {
+            final Random rnd = new Random( it );
+            threads[ it ] = new Thread() {
+                public void run() {
+                    try {
+                        for ( int i = 0; i < 200; i++ ) {
+                            int size = 1 + rnd.nextInt( 300 );
+                            int off = rnd.nextInt( data1.length - size );
+                            int[] buf = new int[ size ];
+                            tiler1.readPixels( off, buf, 0, size );
+                            for ( int j = 0; j < size; j++ ) {
+                                if ( buf[ j ] != data1[ off + j ] ) {
+                                    throw new AssertionError( "pixel "
+                                                            + ( off + j ) );
+                                }
+                            }
+                        }
+                    }
+                    catch ( Throwable e ) {
+                        synchronized ( errors ) {
+                            errors.add( e );
+                        }
+                    }
+                }
+            };
+            threads[ it ].start();
+        }
+        for ( int it = 0; it < threads.length; it++ ) {
+            try {
+                threads[ it ].join();
+            }
+            catch ( InterruptedException e ) {
+                fail();
+            }
+        }
+        assertEquals( errors.toString(), 0, errors.size() );
+        in.close();
+        file.delete();
+    }
+
+    public void testQuantizedFloat() throws IOException {
+        int[] dims = new int[] { 50, 30 };
+        int[] ztile = new int[] { 50, 1 };
+        float[] data = new float[ 50 * 30 ];
+        for ( int i = 0; i < data.length; i++ ) {
+            data[ i ] = i % 97 == 5 ? Float.NaN
+                                    : (float) ( random_.nextGaussian() * 10 );
+        }
+        int zdither0 = 9998;
+        int zblank = -2147483647;
+        float[] rand = TileDecompressor.getRandoms();
+        List<Object> tiles = makeTiles( data, dims, ztile );
+        int ntile = tiles.size();
+        byte[][] cells = new byte[ ntile ][];
+        byte[][] scales = new byte[ ntile ][];
+        byte[][] zeros = new byte[ ntile ][];
+        for ( int it = 0; it < ntile; it++ ) {
+            float[] tile = (float[]) tiles.get( it );
+            double scale = 0.5 + it * 0.01;
+            double zero = it - 10;
+            int iseed = ( it + 1 - 1 + zdither0 - 1 ) % 10000;
+            int nextrand = (int) ( rand[ iseed ] * 500 );
+            int[] q = new int[ tile.length ];
+            for ( int i = 0; i < tile.length; i++ ) {
+                if ( Float.isNaN( tile[ i ] ) ) {
+                    q[ i ] = zblank;
+                }
+                else {
+                    double x = ( tile[ i ] - zero ) / scale
+                             + rand[ nextrand ] - 0.5;
+                    q[ i ] = x >= 0 ? (int) ( x + 0.5 ) : (int) ( x - 0.5 );
+                }
+                if ( ++nextrand == 10000 ) {
+                    iseed = ( iseed + 1 ) % 10000;
+                    nextrand = (int) ( rand[ iseed ] * 500 );
+                }
+            }
+            cells[ it ] = riceCompress( q, 32, 4 );
+            scales[ it ] = ByteBuffer.allocate( 8 ).putDouble( scale )
+                                                   .array();
+            zeros[ it ] = ByteBuffer.allocate( 8 ).putDouble( zero ).array();
+        }
+        List<String> cards = imageCards( -32, dims, ztile, "RICE_1" );
+        cards.add( card( "ZQUANTIZ", "SUBTRACTIVE_DITHER_1" ) );
+        cards.add( card( "ZDITHER0", zdither0 ) );
+        cards.add( card( "ZBLANK", zblank ) );
+        File file = writeFile( cards, new Column[] {
+            new Column( "COMPRESSED_DATA", cells ),
+            new Column( "ZSCALE", "1D", scales ),
+            new Column( "ZZERO", "1D", zeros ),
+        } );
+
+        NDArray nda = FitsArrayBuilder.getInstance()
+                     .makeNDArray( new URL( file.toURI().toURL(), "#1" ),
+                                   AccessMode.READ );
+        assertEquals( Type.FLOAT, nda.getType() );
+        assertEquals( Order.COLUMN_MAJOR, nda.getShape().getOrder() );
+        float[] buf = new float[ data.length ];
+        ArrayAccess acc = nda.getAccess();
+        acc.read( buf, 0, buf.length );
+        acc.close();
+        nda.close();
+        for ( int i = 0; i < data.length; i++ ) {
+            if ( Float.isNaN( data[ i ] ) ) {
+                assertTrue( Float.isNaN( buf[ i ] ) );
+            }
+            else {
+                double scale = 0.5 + ( i / 50 ) * 0.01;
+                assertEquals( data[ i ], buf[ i ], scale * 0.5 + 1e-4 );
+            }
+        }
+        file.delete();
+    }
+
+    public void testUnsupported() throws IOException {
+        int[] dims = new int[] { 4, 4 };
+        File file = writeFile( imageCards( 16, dims, dims, "HCOMPRESS_1" ),
+                               new Column[] {
+            new Column( "COMPRESSED_DATA", new byte[][] { new byte[ 4 ] } ),
+        } );
+        try {
+            FitsArrayBuilder.getInstance()
+                .makeNDArray( new URL( file.toURI().toURL(), "#1" ),
+                              AccessMode.READ );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertTrue( e.getMessage().indexOf( "HCOMPRESS_1" ) >= 0 );
+        }
+        file.delete();
+    }
+
+    /**
+     * Splits an image into tiles in the order they are stored in
+     * a compressed image table.
+     */
+    private static List<Object> makeTiles( Object data, int[] dims,
+                                           int[] ztile ) {
+        int n = dims.length;
+        int[] ntile = new int[ n ];
+        int nt = 1;
+        for ( int i = 0; i < n; i++ ) {
+            ntile[ i ] = ( dims[ i ] + ztile[ i ] - 1 ) / ztile[ i ];
+            nt *= ntile[ i ];
+        }
+        int npix = Array.getLength( data );
+        List<List<Object>> pixels = new ArrayList<List<Object>>();
+        for ( int it = 0; it < nt; it++ ) {
+            pixels.add( new ArrayList<Object>() );
+        }
+        for ( int ip = 0; ip < npix; ip++ ) {
+            int r = ip;
+            int row = 0;
+            int mult = 1;
+            for ( int i = 0; i < n; i++ ) {
+                int p = r % dims[ i ];
+                r /= dims[ i ];
+                row += ( p / ztile[ i ] ) * mult;
+                mult *= ntile[ i ];
+            }
+            pixels.get( row ).add( Array.get( data, ip ) );
+        }
+        List<Object> tiles = new ArrayList<Object>();
+        Class clazz = data.getClass().getComponentType();
+        for ( List<Object> pix : pixels ) {
+            Object tile = Array.newInstance( clazz, pix.size() );
+            for ( int i = 0; i < pix.size(); i++ ) {
+                Array.set( tile, i, pix.get( i ) );
+            }
+            tiles.add( tile );
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns the image-describing header cards for a compressed image.
+     */
+    private static List<String> imageCards( int bitpix, int[] dims,
+                                            int[] ztile, String cmptype )
+            throws IOException {
+        List<String> cards = new ArrayList<String>();
+        cards.add( card( "ZIMAGE", Boolean.TRUE ) );
+        cards.add( card( "ZBITPIX", bitpix ) );
+        cards.add( card( "ZNAXIS", dims.length ) );
+        for ( int i = 0; i < dims.length; i++ ) {
+            cards.add( card( "ZNAXIS" + ( i + 1 ), dims[ i ] ) );
+            cards.add( card( "ZTILE" + ( i + 1 ), ztile[ i ] ) );
+        }
+        cards.add( card( "ZCMPTYPE", cmptype ) );
+        return cards;
+    }
+
+    private static String card( String key, Object value )
+            throws IOException {
+        try {
+            if ( value instanceof String ) {
+                return new HeaderCard( key, (String) value, null )
+                      .toString();
+            }
+            else if ( value instanceof Boolean ) {
+                return new HeaderCard( key, ((Boolean) value).booleanValue(),
+                                       null ).toString();
+            }
+            else {
+                return new HeaderCard( key, ((Number) value).longValue(),
+                                       null ).toString();
+            }
+        }
+        catch ( Exception e ) {
+            throw (IOException) new IOException( e.getMessage() )
+                               .initCause( e );
+        }
+    }
+
+    private static Header readHeader( BufferedFile in ) throws IOException {
+        try {
+            return Header.readHeader( in );
+        }
+        catch ( Exception e ) {
+            throw (IOException) new IOException( e.getMessage() )
+                               .initCause( e );
+        }
+    }
+
+    /**
+     * Writes a FITS file with an empty primary HDU and a binary table
+     * extension containing the given columns.
+     */
+    private static File writeFile( List<String> imageCards, Column[] cols )
+            throws IOException {
+        int nrow = cols[ 0 ].cells.length;
+        int rowLength = 0;
+        for ( Column col : cols ) {
+            rowLength += col.isVariable ? 8 : col.cells[ 0 ].length;
+        }
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        for ( int ir = 0; ir < nrow; ir++ ) {
+            for ( Column col : cols ) {
+                byte[] cell = col.cells[ ir ];
+                if ( col.isVariable ) {
+                    table.write( ByteBuffer.allocate( 8 )
+                                .putInt( cell.length )
+                                .putInt( heap.size() ).array() );
+                    heap.write( cell );
+                }
+                else {
+                    table.write( cell );
+                }
+            }
+        }
+        List<String> cards = new ArrayList<String>();
+        cards.add( card( "XTENSION", "BINTABLE" ) );
+        cards.add( card( "BITPIX", 8 ) );
+        cards.add( card( "NAXIS", 2 ) );
+        cards.add( card( "NAXIS1", rowLength ) );
+        cards.add( card( "NAXIS2", nrow ) );
+        cards.add( card( "PCOUNT", heap.size() ) );
+        cards.add( card( "GCOUNT", 1 ) );
+        cards.add( card( "TFIELDS", cols.length ) );
+        for ( int ic = 0; ic < cols.length; ic++ ) {
+            cards.add( card( "TTYPE" + ( ic + 1 ), cols[ ic ].name ) );
+            cards.add( card( "TFORM" + ( ic + 1 ), cols[ ic ].tform ) );
+        }
+        cards.addAll( imageCards );
+
+        File file = File.createTempFile( "cmp", ".fits" );
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream( file );
+        List<String> primary = new ArrayList<String>();
+        primary.add( card( "SIMPLE", Boolean.TRUE ) );
+        primary.add( card( "BITPIX", 8 ) );
+        primary.add( card( "NAXIS", 0 ) );
+        primary.add( card( "EXTEND", Boolean.TRUE ) );
+        writeHeader( out, primary );
+        writeHeader( out, cards );
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        table.writeTo( data );
+        heap.writeTo( data );
+        data.write( new byte[ ( 2880 - data.size() % 2880 ) % 2880 ] );
+        data.writeTo( out );
+        out.close();
+        return file;
+    }
+
+    private static void writeHeader( OutputStream out, List<String> cards )
+            throws IOException {
+        StringBuffer sbuf = new StringBuffer();
+        for ( String card : cards ) {
+            sbuf.append( card );
+        }
+        sbuf.append( "END" );
+        while ( sbuf.length() % 2880 != 0 ) {
+            sbuf.append( ' ' );
+        }
+        out.write( sbuf.toString().getBytes( "US-ASCII" ) );
+    }
+
+    private static byte[] gzip( byte[] buf ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        GZIPOutputStream zout = new GZIPOutputStream( bout );
+        zout.write( buf );
+        zout.close();
+        return bout.toByteArray();
+    }
+
+    private static byte[] shuffle( byte[] buf, int width ) {
+        int n = buf.length / width;
+        byte[] out = new byte[ buf.length ];
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < width; j++ ) {
+                out[ j * n + i ] = buf[ i * width + j ];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Rice compresses integer values in the same way as CFITSIO.
+     */
+    private static byte[] riceCompress( int[] a, int nblock, int bytepix ) {
+        int fsbits = bytepix == 1 ? 3 : ( bytepix == 2 ? 4 : 5 );
+        int fsmax = bytepix == 1 ? 6 : ( bytepix == 2 ? 14 : 25 );
+        int bbits = bytepix * 8;
+        long mask = bbits == 32 ? 0xffffffffL : ( 1L << bbits ) - 1;
+        BitWriter out = new BitWriter();
+        out.write( a[ 0 ] & mask, bbits );
+        int lastpix = a[ 0 ];
+        long[] diff = new long[ nblock ];
+        for ( int i = 0; i < a.length; i += nblock ) {
+            int thisblock = Math.min( nblock, a.length - i );
+            double pixelsum = 0;
+            for ( int j = 0; j < thisblock; j++ ) {
+                int nextpix = a[ i + j ];
+                int pdiff = ( ( nextpix - lastpix ) << ( 32 - bbits ) )
+                            >> ( 32 - bbits );
+                diff[ j ] = ( pdiff < 0 ? ~( pdiff << 1 ) : ( pdiff << 1 ) )
+                          & mask;
+                pixelsum += diff[ j ];
+                lastpix = nextpix;
+            }
+            double dpsum = ( pixelsum - ( thisblock / 2 ) - 1 ) / thisblock;
+            long psum = ( (long) Math.max( dpsum, 0.0 ) ) >> 1;
+            int fs = 0;
+            for ( ; psum > 0; fs++ ) {
+                psum >>= 1;
+            }
+            if ( fs >= fsmax ) {
+                out.write( fsmax + 1, fsbits );
+                for ( int j = 0; j < thisblock; j++ ) {
+                    out.write( diff[ j ], bbits );
+                }
+            }
+            else if ( fs == 0 && pixelsum == 0 ) {
+                out.write( 0, fsbits );
+            }
+            else {
+                out.write( fs + 1, fsbits );
+                for ( int j = 0; j < thisblock; j++ ) {
+                    long top = diff[ j ] >> fs;
+                    for ( long k = 0; k < top; k++ ) {
+                        out.write( 0, 1 );
+                    }
+                    out.write( 1, 1 );
+                    if ( fs > 0 ) {
+                        out.write( diff[ j ] & ( ( 1L << fs ) - 1 ), fs );
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static class BitWriter {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int buf;
+        int nbit;
+        void write( long value, int nbits ) {
+            for ( int i = nbits - 1; i >= 0; i-- ) {
+                buf = ( buf << 1 ) | (int) ( ( value >> i ) & 1 );
+                if ( ++nbit == 8 ) {
+                    bout.write( buf );
+                    buf = 0;
+                    nbit = 0;
+                }
+            }
+        }
+        byte[] toByteArray() {
+            if ( nbit > 0 ) {
+                write( 0, 8 - nbit );
+            }
+            return bout.toByteArray();
+        }
+    }
+
+    private static class Column {
+        final String name;
+        final String tform;
+        final byte[][] cells;
+        final boolean isVariable;
+        Column( String name, byte[][] cells ) {
+            this( name, "1PB", cells );
+        }
+        Column( String name, String tform, byte[][] cells ) {
+            this.name = name;
+            this.tform = tform;
+            this.cells = cells;
+            this.isVariable = tform.indexOf( 'P' ) >= 0;
+        }
+    }
+}
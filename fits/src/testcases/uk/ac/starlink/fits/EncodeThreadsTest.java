@@ -0,0 +1,59 @@
+package uk.ac.starlink.fits;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.StarTable;
+
+public class EncodeThreadsTest extends TestCase {
+
+    public EncodeThreadsTest() {
+        Logger.getLogger( "uk.ac.starlink.fits" )
+              .setLevel( Level.SEVERE );
+    }
+
+    public void testEncodeThreads() throws IOException {
+        ColumnInfo aInfo = new ColumnInfo( "arr", short[].class, null );
+        aInfo.setShape( new int[] { 3 } );
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "i", Integer.class, null ),
+            new ColumnInfo( "s", String.class, null ),
+            new ColumnInfo( "d", Double.class, null ),
+            aInfo,
+        } );
+        for ( int i = 0; i < 100000; i++ ) {
+            table.addRow( new Object[] {
+                i % 11 == 0 ? null : new Integer( i ),
+                "x" + ( i % 1001 ),
+                new Double( Math.sqrt( i ) ),
+                new short[] { (short) i, 0, (short) -i },
+            } );
+        }
+        FitsTableWriter writer = new FitsTableWriter();
+        assertEquals( 1, writer.getEncodeThreads() );
+        byte[] b1 = write( writer, table );
+        writer.setEncodeThreads( 3 );
+        byte[] b3 = write( writer, table );
+        assertEquals( b1.length, b3.length );
+
+        /* Blank out the DATE-HDU card before comparison. */
+        String h1 = new String( b1, 0, 2880 * 3 );
+        int idate = h1.indexOf( "DATE-HDU" );
+        assertTrue( idate > 0 );
+        Arrays.fill( b1, idate, idate + 80, (byte) ' ' );
+        Arrays.fill( b3, idate, idate + 80, (byte) ' ' );
+        assertTrue( Arrays.equals( b1, b3 ) );
+    }
+
+    private static byte[] write( FitsTableWriter writer, StarTable table )
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeStarTable( table, out );
+        return out.toByteArray();
+    }
+}
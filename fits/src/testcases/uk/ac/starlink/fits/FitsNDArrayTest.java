@@ -1,11 +1,13 @@
 package uk.ac.starlink.fits;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import nom.tam.util.BufferedFile;
 import uk.ac.starlink.array.AccessMode;
 import uk.ac.starlink.array.ArrayAccess;
 import uk.ac.starlink.array.ArrayBuilder;
@@ -94,4 +96,117 @@ public class FitsNDArrayTest extends TestCase {
         }
     
     }
+
+    public void testCutout() throws IOException {
+        File file = File.createTempFile( "cube", ".fits" );
+        file.deleteOnExit();
+        URL url = new URL( "file:" + file );
+        ArrayBuilder fact = FitsArrayBuilder.getInstance();
+        OrderedNDShape shape =
+            new OrderedNDShape( new NDShape( new long[] { 1, 1, 1 },
+                                             new long[] { 60, 50, 40 } ),
+                                Order.COLUMN_MAJOR );
+        float[] data = new float[ (int) shape.getNumPixels() ];
+        fillCycle( data, -100, 100 );
+        NDArray nda1 = fact.makeNewNDArray( url, shape, Type.FLOAT, null );
+        ArrayAccess acc1 = nda1.getAccess();
+        acc1.write( data, 0, data.length );
+        acc1.close();
+        nda1.close();
+
+        /* A cut-out from an unmapped file is served by a few block reads
+         * rather than a seek and read for each of its rows;
+         * no more than one per plane. */
+        CountingFile strm = new CountingFile( file.toString() );
+        NDArray nda2 = FitsArrayBuilder.getInstance()
+                      .makeNDArray( strm, AccessMode.READ );
+        assertTrue( nda2.multipleAccess() );
+        NDShape box = new NDShape( new long[] { 5, 5, 5 },
+                                   new long[] { 10, 10, 10 } );
+        OrderedNDShape obox = new OrderedNDShape( box, Order.COLUMN_MAJOR );
+        float[] buf = new float[ (int) box.getNumPixels() ];
+        int nseek0 = strm.nseek_;
+        ArrayAccess acc2 = nda2.getAccess();
+        acc2.readTile( buf, box );
+        acc2.close();
+        assertTrue( strm.nseek_ - nseek0 <= 10 );
+        float[] expected = new float[ buf.length ];
+        for ( int i = 0; i < expected.length; i++ ) {
+            long[] pos = obox.offsetToPosition( i );
+            expected[ i ] = data[ (int) shape.positionToOffset( pos ) ];
+        }
+        assertArrayEquals( expected, buf );
+        nda2.close();
+    }
+
+    public void testSpectrum() throws IOException {
+        File file = File.createTempFile( "cube", ".fits" );
+        file.deleteOnExit();
+        URL url = new URL( "file:" + file );
+        ArrayBuilder fact = FitsArrayBuilder.getInstance();
+
+        /* Planes are larger than the cache's default block size. */
+        OrderedNDShape shape =
+            new OrderedNDShape( new NDShape( new long[] { 1, 1, 1 },
+                                             new long[] { 260, 260, 40 } ),
+                                Order.COLUMN_MAJOR );
+        float[] data = new float[ (int) shape.getNumPixels() ];
+        fillCycle( data, -100, 100 );
+        NDArray nda1 = fact.makeNewNDArray( url, shape, Type.FLOAT, null );
+        ArrayAccess acc1 = nda1.getAccess();
+        acc1.write( data, 0, data.length );
+        acc1.close();
+        nda1.close();
+
+        /* Reading a spectrum reads about one file buffer per plane,
+         * and reading it again is served from the cache. */
+        CountingFile strm = new CountingFile( file.toString() );
+        NDArray nda2 = FitsArrayBuilder.getInstance()
+                      .makeNDArray( strm, AccessMode.READ );
+        NDShape box = new NDShape( new long[] { 130, 130, 1 },
+                                   new long[] { 1, 1, 40 } );
+        float[] buf = new float[ 40 ];
+        for ( int i = 0; i < 2; i++ ) {
+            long nbyte0 = strm.nbyte_;
+            int nseek0 = strm.nseek_;
+            ArrayAccess acc2 = nda2.getAccess();
+            acc2.readTile( buf, box );
+            acc2.close();
+            if ( i == 0 ) {
+                assertTrue( strm.nseek_ - nseek0 <= 40 );
+                assertTrue( strm.nbyte_ - nbyte0 <= 40 * 32768 );
+            }
+            else {
+                assertEquals( nseek0, strm.nseek_ );
+                assertEquals( nbyte0, strm.nbyte_ );
+            }
+            for ( int k = 0; k < 40; k++ ) {
+                long[] pos = new long[] { 130, 130, k + 1 };
+                assertEquals( data[ (int) shape.positionToOffset( pos ) ],
+                              buf[ k ] );
+            }
+        }
+        nda2.close();
+    }
+
+    /**
+     * BufferedFile which counts the number of seeks made on it,
+     * and the number of bytes of floating point data read.
+     */
+    private static class CountingFile extends BufferedFile {
+        int nseek_;
+        long nbyte_;
+        CountingFile( String filename ) throws IOException {
+            super( filename );
+        }
+        public void seek( long offset ) throws IOException {
+            nseek_++;
+            super.seek( offset );
+        }
+        public int read( float[] f, int start, int length )
+                throws IOException {
+            nbyte_ += length * 4;
+            return super.read( f, start, length );
+        }
+    }
 }
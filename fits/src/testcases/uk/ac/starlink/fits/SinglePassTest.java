@@ -0,0 +1,277 @@
+package uk.ac.starlink.fits;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableOutput;
+import uk.ac.starlink.table.StoragePolicy;
+import uk.ac.starlink.table.Tables;
+import uk.ac.starlink.table.WrapperStarTable;
+import uk.ac.starlink.util.ByteArrayDataSource;
+import uk.ac.starlink.util.DataSource;
+import uk.ac.starlink.util.FileDataSource;
+
+public class SinglePassTest extends TestCase {
+
+    private static final int NROW = 500;
+
+    public SinglePassTest() {
+        Logger.getLogger( "uk.ac.starlink.fits" )
+              .setLevel( Level.SEVERE );
+        Logger.getLogger( "uk.ac.starlink.table" )
+              .setLevel( Level.WARNING );
+    }
+
+    public void testBasic() throws IOException {
+        ColumnInfo sInfo = new ColumnInfo( "s", String.class, null );
+        sInfo.setElementSize( 8 );
+        RowListStarTable table = createTable( new ColumnInfo[] {
+            new ColumnInfo( "id", Integer.class, null ),
+            new ColumnInfo( "ival", Integer.class, null ),
+            sInfo,
+        } );
+        FitsTableWriter writer = new FitsTableWriter();
+        assertTrue( writer.isSinglePass() );
+        CountTable ctable = new CountTable( table );
+        StarTable t1 = writeRead( writer, ctable );
+        assertEquals( 1, ctable.nseq_ );
+        checkTable( table, t1 );
+        assertNull( t1.getColumnInfo( 0 )
+                      .getAuxDatum( Tables.NULL_VALUE_INFO ) );
+        assertNotNull( t1.getColumnInfo( 1 )
+                         .getAuxDatum( Tables.NULL_VALUE_INFO ) );
+
+        /* Without single-pass mode a first pass is required. */
+        writer.setSinglePass( false );
+        ctable = new CountTable( table );
+        checkTable( table, writeRead( writer, ctable ) );
+        assertEquals( 2, ctable.nseq_ );
+
+        /* Variable-length columns can't be written in one pass
+         * by fits-basic. */
+        writer.setSinglePass( true );
+        RowListStarTable vtable = createTable( new ColumnInfo[] {
+            new ColumnInfo( "s", String.class, null ),
+        } );
+        ctable = new CountTable( vtable );
+        checkTable( vtable, writeRead( writer, ctable ) );
+        assertEquals( 2, ctable.nseq_ );
+    }
+
+    public void testVariable() throws IOException {
+        ColumnInfo aInfo = new ColumnInfo( "arr", double[].class, null );
+        aInfo.setShape( new int[] { -1 } );
+        RowListStarTable table = createTable( new ColumnInfo[] {
+            new ColumnInfo( "id", Integer.class, null ),
+            new ColumnInfo( "ival", Integer.class, null ),
+            new ColumnInfo( "s", String.class, null ),
+            aInfo,
+        } );
+        CountTable ctable = new CountTable( table );
+        StarTable t1 = writeRead( new VariableFitsTableWriter(), ctable );
+        assertEquals( 1, ctable.nseq_ );
+        checkTable( table, t1 );
+
+        VariableFitsTableWriter pWriter =
+            new VariableFitsTableWriter( Boolean.FALSE, true,
+                                         WideFits.DEFAULT );
+        ctable = new CountTable( table );
+        checkTable( table, writeRead( pWriter, ctable ) );
+        assertEquals( 1, ctable.nseq_ );
+    }
+
+    public void testSingleTable() throws IOException {
+        RowListStarTable table = createTable( new ColumnInfo[] {
+            new ColumnInfo( "id", Integer.class, null ),
+            new ColumnInfo( "ival", Integer.class, null ),
+        } );
+        CountTable ctable = new CountTable( table );
+        File f = File.createTempFile( "table", ".fits" );
+        f.deleteOnExit();
+        new FitsTableWriter()
+           .writeStarTable( ctable, f.toString(), new StarTableOutput() );
+        assertEquals( 1, ctable.nseq_ );
+        checkTable( table, readTable( new FileDataSource( f ) ) );
+    }
+
+    public void testPipe() throws Exception {
+        RowListStarTable table = createTable( new ColumnInfo[] {
+            new ColumnInfo( "id", Integer.class, null ),
+            new ColumnInfo( "ival", Integer.class, null ),
+        } );
+        File dir = File.createTempFile( "fifo", "" );
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        final File fifo = new File( dir, "fifo" );
+        fifo.deleteOnExit();
+        try {
+            Process proc = Runtime.getRuntime()
+                          .exec( new String[] { "mkfifo", fifo.toString() } );
+            if ( proc.waitFor() != 0 ) {
+                return;
+            }
+        }
+        catch ( IOException e ) {
+            return;
+        }
+
+        /* Output to a pipe can't be rewritten, so falls back to
+         * two passes.  Open the pipe directly, since StarTableOutput
+         * would replace it with a regular file. */
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    InputStream in = new FileInputStream( fifo );
+                    byte[] buf = new byte[ 4096 ];
+                    for ( int n; ( n = in.read( buf ) ) >= 0; ) {
+                        bout.write( buf, 0, n );
+                    }
+                    in.close();
+                }
+                catch ( IOException e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+        reader.start();
+        StarTableOutput sto = new StarTableOutput() {
+            public OutputStream getOutputStream( String loc )
+                    throws IOException {
+                return new FileOutputStream( loc );
+            }
+        };
+        CountTable ctable = new CountTable( table );
+        new FitsTableWriter()
+           .writeStarTables( Tables.singleTableSequence( ctable ),
+                             fifo.toString(), sto );
+        reader.join();
+        fifo.delete();
+        dir.delete();
+        assertEquals( 2, ctable.nseq_ );
+        byte[] buf = bout.toByteArray();
+        checkTable( table,
+                    readTable( new ByteArrayDataSource( "pipe", buf ) ) );
+    }
+
+    public void testPadHeader() throws IOException {
+        byte[] hdr = new byte[ 2880 ];
+        Arrays.fill( hdr, (byte) ' ' );
+        System.arraycopy( "SIMPLE  =".getBytes(), 0, hdr, 0, 9 );
+        System.arraycopy( "END".getBytes(), 0, hdr, 80, 3 );
+        assertSame( hdr, AbstractFitsTableWriter.padHeader( hdr, 2880 ) );
+        byte[] hdr2 = AbstractFitsTableWriter.padHeader( hdr, 5760 );
+        assertEquals( 5760, hdr2.length );
+        assertEquals( "SIMPLE  =", new String( hdr2, 0, 9 ) );
+        assertEquals( ' ', (char) hdr2[ 80 ] );
+        assertEquals( "END ", new String( hdr2, 5760 - 80, 4 ) );
+        try {
+            AbstractFitsTableWriter.padHeader( hdr2, 2880 );
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+    }
+
+    private RowListStarTable createTable( ColumnInfo[] infos ) {
+        RowListStarTable table = new RowListStarTable( infos );
+        for ( int i = 0; i < NROW; i++ ) {
+            Object[] row = new Object[ infos.length ];
+            for ( int ic = 0; ic < infos.length; ic++ ) {
+                String name = infos[ ic ].getName();
+                if ( "id".equals( name ) ) {
+                    row[ ic ] = new Integer( i );
+                }
+                else if ( "ival".equals( name ) ) {
+                    row[ ic ] = i % 3 == 0 ? null : new Integer( i * 2 );
+                }
+                else if ( "s".equals( name ) ) {
+                    row[ ic ] = i % 5 == 0 ? null
+                                           : ( "s" + ( i * i ) );
+                }
+                else if ( "arr".equals( name ) ) {
+                    double[] darr = new double[ i % 7 ];
+                    for ( int j = 0; j < darr.length; j++ ) {
+                        darr[ j ] = i + 0.5 * j;
+                    }
+                    row[ ic ] = darr;
+                }
+            }
+            table.addRow( row );
+        }
+        return table;
+    }
+
+    private StarTable writeRead( AbstractFitsTableWriter writer,
+                                 StarTable table )
+            throws IOException {
+        File f = File.createTempFile( "table", ".fits" );
+        f.deleteOnExit();
+        writer.writeStarTables( Tables.singleTableSequence( table ),
+                                f.toString(), new StarTableOutput() );
+        return readTable( new FileDataSource( f ) );
+    }
+
+    private StarTable readTable( DataSource datsrc ) throws IOException {
+        StarTable tout =
+            new FitsTableBuilder()
+           .makeStarTable( datsrc, true, StoragePolicy.PREFER_MEMORY );
+        return Tables.randomTable( tout );
+    }
+
+    private void checkTable( StarTable t0, StarTable t1 ) throws IOException {
+        int ncol = t0.getColumnCount();
+        assertEquals( ncol, t1.getColumnCount() );
+        assertEquals( t0.getRowCount(), t1.getRowCount() );
+        for ( int ir = 0; ir < NROW; ir++ ) {
+            for ( int ic = 0; ic < ncol; ic++ ) {
+                Object v0 = t0.getCell( ir, ic );
+                Object v1 = t1.getCell( ir, ic );
+                if ( v0 instanceof double[] ) {
+                    assertTrue( Arrays.equals( (double[]) v0,
+                                               (double[]) v1 ) );
+                }
+                else if ( v0 == null ) {
+                    assertTrue( Tables.isBlank( v1 ) );
+                }
+                else {
+                    assertEquals( v0, v1 );
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrapper table which hides its row count and counts the number
+     * of row sequences acquired.
+     */
+    private static class CountTable extends WrapperStarTable {
+        int nseq_;
+        CountTable( StarTable base ) {
+            super( base );
+        }
+        public long getRowCount() {
+            return -1L;
+        }
+        public boolean isRandom() {
+            return false;
+        }
+        public RowSequence getRowSequence() throws IOException {
+            nseq_++;
+            return super.getRowSequence();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import uk.ac.starlink.frog.util.FrogDebug;
 
 import uk.ac.starlink.frog.gram.FourierTransform;
 import uk.ac.starlink.frog.gram.ChisqPeriodogram;
+import uk.ac.starlink.frog.gram.LombScargle;
 
 /**
  * This class creates and clones instances of Gram that are
@@ -166,6 +167,10 @@ public class GramFactory
            impl = 
             ChisqPeriodogram.make(series,window,minFreq,maxFreq,freqInterval);
         }
+        else if ( type == "LOMBSCARGLE" ) {
+           impl = 
+            LombScargle.make(series,window,minFreq,maxFreq,freqInterval);
+        }
         
         if ( impl == null ) {
             throw new FrogException( "Unable to build " + type );
@@ -0,0 +1,306 @@
+package uk.ac.starlink.frog.gram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command-line tool which calculates periodograms for every light curve
+ * in a table, without starting the graphical interface.
+ * <p>
+ * The input is a plain text table with whitespace-separated columns
+ * giving an identifier, the time, the data value and optionally the
+ * error in the data value; lines starting with '#' or '!' are comments.
+ * Rows with the same identifier make up one light curve, and need not be
+ * contiguous. For each light curve a line is written to standard output
+ * giving the identifier, the number of points, and the frequency,
+ * period and power of the best peak (the minimum for a Chi-squared
+ * periodogram, the maximum otherwise). If an output directory is given,
+ * the full periodogram for each light curve is written there as a two
+ * column (frequency, power) text file.
+ * <p>
+ * The frequency range defaults, as in the GUI, to running from zero to
+ * the Nyquist frequency of each light curve in steps of one quarter of
+ * the reciprocal of its total time span.
+ *
+ * @version $Id$
+ */
+
+public class BatchPeriodogram
+{
+    /**
+     *  Usage message
+     */
+    private static final String USAGE =
+        "Usage: BatchPeriodogram [-type lombscargle|chisq]"
+      + " [-min <freq>] [-max <freq>] [-interval <freq>]"
+      + " [-outdir <dir>] [<file>|-]";
+
+    /**
+     *  Default constructor
+     */
+    private BatchPeriodogram()
+    {
+        //  Do nothing.
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args command line arguments, see usage message
+     */
+    public static void main( String[] args )
+    {
+        String type = "lombscargle";
+        double minFreq = 0.0;
+        double maxFreq = Double.NaN;
+        double interval = Double.NaN;
+        File outDir = null;
+        String inName = "-";
+        try {
+            for ( int i = 0; i < args.length; i++ ) {
+                String arg = args[i];
+                if ( arg.equals( "-type" ) && i + 1 < args.length ) {
+                    type = args[++i].toLowerCase();
+                }
+                else if ( arg.equals( "-min" ) && i + 1 < args.length ) {
+                    minFreq = Double.parseDouble( args[++i] );
+                }
+                else if ( arg.equals( "-max" ) && i + 1 < args.length ) {
+                    maxFreq = Double.parseDouble( args[++i] );
+                }
+                else if ( arg.equals( "-interval" ) &&
+                          i + 1 < args.length ) {
+                    interval = Double.parseDouble( args[++i] );
+                }
+                else if ( arg.equals( "-outdir" ) && i + 1 < args.length ) {
+                    outDir = new File( args[++i] );
+                }
+                else if ( i == args.length - 1 &&
+                          ( ! arg.startsWith( "-" ) || arg.equals( "-" ) ) ) {
+                    inName = arg;
+                }
+                else {
+                    System.err.println( USAGE );
+                    System.exit( 1 );
+                }
+            }
+        }
+        catch ( NumberFormatException e ) {
+            System.err.println( "Bad number: " + e.getMessage() );
+            System.err.println( USAGE );
+            System.exit( 1 );
+        }
+        boolean isChisq;
+        if ( type.equals( "chisq" ) ) {
+            isChisq = true;
+        }
+        else if ( type.equals( "lombscargle" ) ) {
+            isChisq = false;
+        }
+        else {
+            System.err.println( "Unknown periodogram type " + type );
+            System.err.println( USAGE );
+            System.exit( 1 );
+            return;
+        }
+
+        try {
+            Reader rdr = inName.equals( "-" )
+                       ? (Reader) new InputStreamReader( System.in )
+                       : (Reader) new FileReader( inName );
+            Map<String,Curve> curves = readCurves( new BufferedReader( rdr ) );
+            if ( outDir != null ) {
+                outDir.mkdirs();
+            }
+            PrintWriter out = new PrintWriter( System.out );
+            out.println( "# id npoint freq period power" );
+            for ( Iterator<Map.Entry<String,Curve>> it =
+                      curves.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String,Curve> entry = it.next();
+                String id = entry.getKey();
+                Curve curve = entry.getValue();
+                processCurve( id, curve, isChisq, minFreq, maxFreq,
+                              interval, outDir, out );
+                out.flush();
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Error: " + e.getMessage() );
+            System.exit( 1 );
+        }
+    }
+
+    /**
+     * Calculates the periodogram for a single light curve and
+     * reports the result.
+     *
+     * @param id light curve identifier
+     * @param curve light curve data
+     * @param isChisq true for a Chi-squared periodogram, false for
+     *        Lomb-Scargle
+     * @param minFreq minimum frequency
+     * @param maxFreq maximum frequency, or NaN for the Nyquist frequency
+     * @param interval frequency interval, or NaN for the default
+     * @param outDir directory for periodogram files, or null
+     * @param out destination for summary line
+     */
+    static void processCurve( String id, Curve curve,
+                              boolean isChisq, double minFreq,
+                              double maxFreq, double interval,
+                              File outDir, PrintWriter out )
+        throws IOException
+    {
+        int np = curve.np;
+        double[] xData = new double[np];
+        double[] yData = new double[np];
+        double[] errors = new double[np];
+        System.arraycopy( curve.x, 0, xData, 0, np );
+        System.arraycopy( curve.y, 0, yData, 0, np );
+        System.arraycopy( curve.err, 0, errors, 0, np );
+
+        // work out the default frequency grid as the GUI does
+        double[] sorted = xData.clone();
+        Arrays.sort( sorted );
+        double span = sorted[np-1] - sorted[0];
+        double minDt = Double.MAX_VALUE;
+        for ( int i = 1; i < np; i++ ) {
+            double dt = sorted[i] - sorted[i-1];
+            if ( dt > 0.0 && dt < minDt ) {
+                minDt = dt;
+            }
+        }
+        if ( Double.isNaN( maxFreq ) ) {
+            maxFreq = 1.0/(2.0*minDt);
+        }
+        if ( Double.isNaN( interval ) ) {
+            interval = 1.0/(4.0*span);
+        }
+        if ( np < 3 || ! ( span > 0.0 ) || ! ( maxFreq > minFreq ) ) {
+            out.println( id + " " + np + " NaN NaN NaN" );
+            return;
+        }
+
+        // frequency grid as used by the GUI periodograms
+        int numOfSteps = (int)((maxFreq - minFreq)/interval) + 1;
+        double freq0 = minFreq + interval;
+        double[] power = isChisq
+                       ? ChisqPeriodogram.power( xData, yData, errors,
+                                                 freq0, interval, numOfSteps )
+                       : LombScargle.power( xData, yData, freq0, interval,
+                                            numOfSteps );
+
+        int best = 0;
+        for ( int i = 1; i < numOfSteps; i++ ) {
+            if ( isChisq ? power[i] < power[best] : power[i] > power[best] ) {
+                best = i;
+            }
+        }
+        double bestFreq = freq0 + best*interval;
+        out.println( id + " " + np + " " + bestFreq + " " + 1.0/bestFreq
+                   + " " + power[best] );
+
+        if ( outDir != null ) {
+            File file = new File( outDir, id.replaceAll( "[^\\w.+-]", "_" )
+                                        + ".gram" );
+            PrintWriter fout =
+                new PrintWriter( new FileWriter( file ) );
+            for ( int i = 0; i < numOfSteps; i++ ) {
+                fout.println( ( freq0 + i*interval ) + " " + power[i] );
+            }
+            fout.close();
+        }
+    }
+
+    /**
+     * Reads the light curves from a text table.
+     *
+     * @param in input reader, closed on exit
+     * @return map from identifier to light curve, in order of first
+     *         appearance
+     */
+    static Map<String,Curve> readCurves( BufferedReader in )
+        throws IOException
+    {
+        Map<String,Curve> curves = new LinkedHashMap<String,Curve>();
+        int iline = 0;
+        try {
+            for ( String line; ( line = in.readLine() ) != null; ) {
+                iline++;
+                line = line.trim();
+                if ( line.length() == 0 || line.startsWith( "#" ) ||
+                     line.startsWith( "!" ) ) {
+                    continue;
+                }
+                String[] words = line.split( "\\s+" );
+                if ( words.length < 3 ) {
+                    throw new IOException( "Too few columns at line "
+                                         + iline );
+                }
+                double x;
+                double y;
+                double err;
+                try {
+                    x = Double.parseDouble( words[1] );
+                    y = Double.parseDouble( words[2] );
+                    err = words.length > 3
+                        ? Double.parseDouble( words[3] )
+                        : 1.0;
+                }
+                catch ( NumberFormatException e ) {
+                    throw new IOException( "Bad number at line " + iline );
+                }
+                Curve curve = curves.get( words[0] );
+                if ( curve == null ) {
+                    curve = new Curve();
+                    curves.put( words[0], curve );
+                }
+                curve.add( x, y, err );
+            }
+        }
+        finally {
+            in.close();
+        }
+        return curves;
+    }
+
+    /**
+     * Growable storage for the points of a single light curve.
+     */
+    static class Curve
+    {
+        int np = 0;
+        double[] x = new double[16];
+        double[] y = new double[16];
+        double[] err = new double[16];
+
+        void add( double xval, double yval, double errval )
+        {
+            if ( np == x.length ) {
+                x = grow( x );
+                y = grow( y );
+                err = grow( err );
+            }
+            x[np] = xval;
+            y[np] = yval;
+            err[np] = errval;
+            np++;
+        }
+
+        private static double[] grow( double[] array )
+        {
+            double[] array2 = new double[ array.length*2 ];
+            System.arraycopy( array, 0, array2, 0, array.length );
+            return array2;
+        }
+    }
+}
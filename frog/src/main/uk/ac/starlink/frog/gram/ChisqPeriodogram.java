@@ -22,6 +22,16 @@ public class ChisqPeriodogram
      */
     protected static FrogDebug debugManager = FrogDebug.getReference();
 
+    /**
+     *  Number of trial frequencies in each parallel chunk
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     *  Number of trial frequencies between exact phase calculations
+     */
+    private static final int RESEED = 64;
+
     /**
      *  Default constructor
      */
@@ -101,21 +111,14 @@ public class ChisqPeriodogram
          
          // Allocate arrays
          double[] frequency = new double[numOfSteps];
-         double[] power = new double[numOfSteps];
-          
-         // Loop over freqency 
          for ( int i = 0; i < numOfSteps; i++ ) {
-         
-             // fill the frequency array
              frequency[i] = minFreq + ((double)i+1)*freqInterval;
-             
-             // period for this frequency
-             double period = 1.0/frequency[i]; 
-             
-             // calculate power
-             power[i] = sinfit( xData, yData, errors, period );
-
          }
+
+         // calculate power, in parallel chunks of frequency
+         double[] power = power( xData, yData, errors, 
+                                 minFreq + freqInterval, freqInterval,
+                                 numOfSteps );
     
          String name = "Chi Squared Periodogram of " +
                        currentSeries.getShortName();
@@ -127,6 +130,109 @@ public class ChisqPeriodogram
     
     }
     
+    /**
+     * Calculates a chi-squared periodogram on a regular grid of trial 
+     * frequencies. The result is the same as calling {@link #sinfit}
+     * for the period corresponding to each frequency, but the 
+     * frequencies are divided into chunks which are evaluated in
+     * parallel, and within each chunk the sines and cosines are
+     * updated by rotation from one frequency to the next rather than
+     * being recalculated from scratch.
+     *
+     * @param xData the date stamps
+     * @param yData the fluxes
+     * @param errors the error in flux
+     * @param freq0 the first trial frequency
+     * @param freqInterval the frequency step
+     * @param nfreq the number of trial frequencies
+     * @return chisq of the fit at each trial frequency
+     */
+    public static double[] power( double[] xData, final double[] yData, 
+                                  double[] errors, final double freq0, 
+                                  final double freqInterval, int nfreq )
+    {
+        final int np = xData.length;
+
+        // Per-point quantities that do not depend on frequency; note
+        // that sinfit() effectively uses the absolute value of the 
+        // date stamp for calculating the phase
+        final double[] absX = new double[ np ];
+        final double[] ww = new double[ np ];
+        final double[] wy = new double[ np ];
+        double sw = 0.0;
+        double sy = 0.0;
+        double sy2 = 0.0;
+        for ( int j = 0; j < np; j++ ) {
+            absX[j] = Math.abs( xData[j] );
+            ww[j] = 1.0/errors[j]/errors[j];
+            wy[j] = ww[j]*yData[j];
+            sw = sw + ww[j];
+            sy = sy + wy[j];
+            sy2 = sy2 + wy[j]*yData[j];
+        }
+        final double fsw = sw;
+        final double fsy = sy;
+        final double fsy2 = sy2;
+        final double[] power = new double[ nfreq ];
+
+        FrequencyChunks.run( nfreq, CHUNK_SIZE, new FrequencyChunks.Chunk() {
+            public void calculate( int ifreq0, int ifreq1 ) {
+                double[] cn = new double[ np ];
+                double[] sn = new double[ np ];
+                double[] dcn = new double[ np ];
+                double[] dsn = new double[ np ];
+                for ( int j = 0; j < np; j++ ) {
+                    double dphase = 2.0*Math.PI*absX[j]*freqInterval;
+                    dcn[j] = Math.cos( dphase );
+                    dsn[j] = Math.sin( dphase );
+                }
+                for ( int i = ifreq0; i < ifreq1; i++ ) {
+                    double freq = freq0 + i*freqInterval;
+
+                    // Periodically recalculate the phases exactly to
+                    // stop rounding errors accumulating
+                    boolean reseed = ( i - ifreq0 ) % RESEED == 0;
+                    double ss = 0.0;
+                    double ss2 = 0.0;
+                    double sys = 0.0;
+                    double syc = 0.0;
+                    double sc = 0.0;
+                    double ssc = 0.0;
+                    double sc2 = 0.0;
+                    for ( int j = 0; j < np; j++ ) {
+                        double c;
+                        double s;
+                        if ( reseed ) {
+                            double phase = absX[j]*freq;
+                            phase = 2.0*Math.PI*( phase - (long)phase );
+                            c = Math.cos( phase );
+                            s = Math.sin( phase );
+                        } else {
+                            double c0 = cn[j];
+                            double s0 = sn[j];
+                            c = c0*dcn[j] - s0*dsn[j];
+                            s = s0*dcn[j] + c0*dsn[j];
+                        }
+                        cn[j] = c;
+                        sn[j] = s;
+                        double w1 = ww[j]*s;
+                        double w2 = ww[j]*c;
+                        ss  = ss  + w1;
+                        ss2 = ss2 + w1*s;
+                        sys = sys + w1*yData[j];
+                        syc = syc + w2*yData[j];
+                        sc  = sc  + w2;
+                        ssc = ssc + w1*c;
+                        sc2 = sc2 + w2*c;
+                    }
+                    power[i] = chisq( fsw, fsy, fsy2, ss, ss2, sys, syc,
+                                      sc, ssc, sc2 );
+                }
+            }
+        } );
+        return power;
+    }
+
    /**
      * Original algorithim written in Fortran as part of KDHLIB and 
      * used by Keith to work out gamma, K-velocity and zero crossing 
@@ -150,11 +256,8 @@ public class ChisqPeriodogram
         // define stuff
    
         int np = 0; // number of points with non-zero error
-        double[] phase = new double[ xData.length ]; // phase for point
+        double phase; // phase for point
         
-        double a = 0.0;   // constant term (fitted parameter)
-        double b = 0.0;   // sin() term (fitted parameter)
-        double c = 0.0;   // cos() term (fitted parameter)
         double sw = 0.0;  // Sum of 1/(y-error)**2 (all valid data points)
         double sy = 0.0;  // Sum of y/(y-error)**2 
         double sy2 = 0.0; // Sum of y**2/(y-error)**2 
@@ -170,13 +273,6 @@ public class ChisqPeriodogram
         double cn;  // cos() of phase (in degrees)
         double ww;  // 1/(y-error)**2
         double w1;  // sin(phase)/(y-error)**2
-        double c1;  // Co-factor 1
-        double c2;  // Co-factor 2
-        double c3;  // Co-factor 3
-        double c4;  // Co-factor 4
-        double c5;  // Co-factor 5
-        double c6;  // Co-factor 6
-        double det; //Determinant of matrix
    
         // loop round data points
         for ( int j = 0; j < xData.length; j++ ) { 
@@ -185,11 +281,11 @@ public class ChisqPeriodogram
             np += 1;
             
             // calculate phase for data point on this trial period
-            phase[j] = xData[j]/period;
-            phase[j] = Math.abs( phase[j] - (int)phase[j] );
+            phase = xData[j]/period;
+            phase = Math.abs( phase - (int)phase );
                  
             // define some commonly used terms
-            xx = 360.0*phase[j];
+            xx = 360.0*phase;
             sn = Math.sin(xx*Math.PI/180.0);
             cn = Math.cos(xx*Math.PI/180.0);
             ww = 1.0/errors[j]/errors[j];
@@ -209,29 +305,53 @@ public class ChisqPeriodogram
         
         }
         
+        // return the ChiSq of the fit
+        return chisq( sw, sy, sy2, ss, ss2, sys, syc, sc, ssc, sc2 );
+    }
+
+    /**
+     * Performs the linear least squares fit of 
+     * Y = A + B*sin(2pi/period*X) + C*cos(2pi/period*X) given
+     * the weighted sums accumulated over the data points,
+     * and returns the chi-squared of the fit.
+     *
+     * @param sw Sum of 1/(y-error)**2
+     * @param sy Sum of y/(y-error)**2
+     * @param sy2 Sum of y**2/(y-error)**2
+     * @param ss Sum of sin(phase)/(y-error)**2
+     * @param ss2 Sum of sin**2(phase)/(y-error)**2
+     * @param sys Sum of y*sin(phase)/(y-error)**2
+     * @param syc Sum of y*cos(phase)/(y-error)**2
+     * @param sc Sum of cos(phase)/(y-error)**2
+     * @param ssc Sum of cos(phase)*sin(phase)/(y-error)**2
+     * @param sc2 Sum of cos**2(phase)/(y-error)**2
+     * @return chisq the chisq of the resulting fit
+     */
+    private static double chisq( double sw, double sy, double sy2,
+                                 double ss, double ss2, double sys,
+                                 double syc, double sc, double ssc,
+                                 double sc2 )
+    {
         // linear least squares to find A, B and C
-        c1 = ss2*sc2 - ssc*ssc;
-        c2 = sc*ssc - ss*sc2;
-        c3 = ss*ssc - sc*ss2;
-        c4 = sw*sc2 - sc*sc;
-        c5 = sc*ss - sw*ssc;
-        c6 = sw*ss2 - ss*ss;
+        double c1 = ss2*sc2 - ssc*ssc;
+        double c2 = sc*ssc - ss*sc2;
+        double c3 = ss*ssc - sc*ss2;
+        double c4 = sw*sc2 - sc*sc;
+        double c5 = sc*ss - sw*ssc;
+        double c6 = sw*ss2 - ss*ss;
         
         // calculate determinent
-        det = sw*c1 + ss*c2 + sc*c3;
+        double det = sw*c1 + ss*c2 + sc*c3;
         
         // calculate A, B and C
-        a = (c1*sy + c2*sys + c3*syc) / det;
-        b = (c2*sy + c4*sys + c5*syc) / det;
-        c = (c3*sy + c5*sys + c6*syc) / det;
+        double a = (c1*sy + c2*sys + c3*syc) / det;
+        double b = (c2*sy + c4*sys + c5*syc) / det;
+        double c = (c3*sy + c5*sys + c6*syc) / det;
 
         // Calculate chi-squared
-
         double chiSq = sy2 + a*a*sw + b*b*ss2 + c*c*sc2 + 2.0*b*c*ssc + 
                 2.0*a*b*ss + 2.0*a*c*sc - 2.0*a*sy - 2.0*b*sys - 2.0*c*syc;       
-        // return the ChiSq of the fit
         return chiSq;
-
     }
     
 }
@@ -0,0 +1,160 @@
+package uk.ac.starlink.frog.gram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Static class to evaluate periodograms in parallel by dividing
+ * the trial frequencies into contiguous chunks, each of which
+ * is calculated on a separate thread.
+ *
+ * @version $Id$
+ */
+public class FrequencyChunks
+{
+    /**
+     *  Number of worker threads.
+     */
+    public static final int NTHREAD =
+        Runtime.getRuntime().availableProcessors();
+
+    /**
+     *  Shared pool of daemon worker threads, created on demand.
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     *  Default constructor
+     */
+    private FrequencyChunks()
+    {
+        //  Do nothing.
+    }
+
+    /**
+     * Calculates a periodogram by splitting the frequency index range
+     * <code>0..nfreq-1</code> into chunks and invoking the given
+     * calculation on each chunk. If there is only one chunk or
+     * one processor the work is done in the calling thread, otherwise
+     * it is done in parallel. In any case this method returns only
+     * when all the chunks are complete.
+     *
+     * @param nfreq total number of trial frequencies
+     * @param chunkSize maximum number of frequencies per chunk
+     * @param calc calculation to perform on each chunk
+     */
+    public static void run( int nfreq, int chunkSize, Chunk calc )
+    {
+        run( nfreq, chunkSize, calc, NTHREAD > 1 );
+    }
+
+    /**
+     * Calculates a periodogram in chunks, optionally using the
+     * worker threads.
+     *
+     * @param nfreq total number of trial frequencies
+     * @param chunkSize maximum number of frequencies per chunk
+     * @param calc calculation to perform on each chunk
+     * @param parallel true to hand multiple chunks to the worker
+     *        threads, false to do all the work in the calling thread
+     */
+    static void run( int nfreq, int chunkSize, final Chunk calc,
+                     boolean parallel )
+    {
+        if ( nfreq <= chunkSize || ! parallel ) {
+            for ( int i0 = 0; i0 < nfreq; i0 += chunkSize ) {
+                calc.calculate( i0, Math.min( i0 + chunkSize, nfreq ) );
+            }
+            return;
+        }
+        ExecutorService exec = getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for ( int i0 = 0; i0 < nfreq; i0 += chunkSize ) {
+            final int lo = i0;
+            final int hi = Math.min( i0 + chunkSize, nfreq );
+            futures.add( exec.submit( new Runnable() {
+                public void run() {
+                    calc.calculate( lo, hi );
+                }
+            } ) );
+        }
+        try {
+            for ( int i = 0; i < futures.size(); i++ ) {
+                futures.get( i ).get();
+            }
+        }
+        catch ( InterruptedException e ) {
+            cancel( futures );
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Periodogram interrupted", e );
+        }
+        catch ( ExecutionException e ) {
+            cancel( futures );
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw new RuntimeException( cause );
+            }
+        }
+    }
+
+    /**
+     * Cancels a list of outstanding tasks.
+     *
+     * @param futures list of Future objects
+     */
+    private static void cancel( List<Future<?>> futures )
+    {
+        for ( int i = 0; i < futures.size(); i++ ) {
+            futures.get( i ).cancel( true );
+        }
+    }
+
+    /**
+     * Returns the shared executor service, creating it if necessary.
+     *
+     * @return executor service using daemon threads
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if ( executor == null ) {
+            executor = Executors.newFixedThreadPool( NTHREAD,
+                                                     new ThreadFactory() {
+                private int iThread = 0;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th =
+                        new Thread( r, "Periodogram-" + ( ++iThread ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        }
+        return executor;
+    }
+
+    /**
+     * Interface for the calculation of a contiguous range of
+     * periodogram values. Implementations must be safe to call
+     * concurrently for non-overlapping ranges.
+     */
+    public static interface Chunk
+    {
+        /**
+         * Calculates periodogram values for a range of frequency indices.
+         *
+         * @param ifreq0 first frequency index (inclusive)
+         * @param ifreq1 last frequency index (exclusive)
+         */
+        void calculate( int ifreq0, int ifreq1 );
+    }
+}
@@ -0,0 +1,352 @@
+package uk.ac.starlink.frog.gram;
+
+import uk.ac.starlink.frog.util.FrogDebug;
+import uk.ac.starlink.frog.data.GramImpl;
+import uk.ac.starlink.frog.data.MEMGramImpl;
+import uk.ac.starlink.frog.data.TimeSeries;
+
+/**
+ * Static class to build a Lomb-Scargle Periodogram.
+ * <p>
+ * The normalised Lomb-Scargle power is calculated using the fast method
+ * of Press &amp; Rybicki (1989, ApJ 338, 277), in which the trigonometric
+ * sums over the unevenly sampled data points are obtained by
+ * "extirpolating" the data onto a regular grid and taking an FFT.
+ * This makes the cost roughly proportional to N log N rather than
+ * to N times the number of trial frequencies. The trial frequencies
+ * are divided into blocks, each of which is heterodyned to zero
+ * frequency and transformed separately, so that the grid size is
+ * governed by the number of frequencies in a block rather than by the
+ * highest frequency requested; blocks are evaluated in parallel.
+ *
+ * @version $Id$
+ */
+
+public class LombScargle
+{
+    /**
+     *  Application wide debug manager
+     */
+    protected static FrogDebug debugManager = FrogDebug.getReference();
+
+    /**
+     *  Number of trial frequencies in each block
+     */
+    private static final int BLOCK_SIZE = 16384;
+
+    /**
+     *  Oversampling factor of the extirpolation grid relative to the
+     *  number of frequencies in a block
+     */
+    private static final int OVERSAMPLE = 16;
+
+    /**
+     *  Number of grid points to which each data point is extirpolated
+     */
+    private static final int MACC = 6;
+
+    /**
+     *  Default constructor
+     */
+    private LombScargle()
+    {
+        //  Do nothing.
+    }
+
+    /**
+     * Static method for generating a Lomb-Scargle periodogram
+     */
+
+    public static GramImpl make( TimeSeries currentSeries, boolean window,
+                double minFreq, double maxFreq, double freqInterval )
+    {
+
+         debugManager.print( "            LombScargle.make()" );
+         debugManager.print( "            minFreq  = " + minFreq );
+         debugManager.print( "            maxFreq  = " + maxFreq );
+         debugManager.print( "            Interval = " + freqInterval );
+
+         // Window function _only_ with Fourier Transforms
+         window = false;
+
+         // grab data, the classical periodogram ignores the errors
+         double xData[] = currentSeries.getXData();
+         double yData[] = currentSeries.getYData();
+
+         // Work out how many steps we need betweem freqMin and freqMax,
+         // as for the Chi-squared periodogram we skip the first one
+         // so as to avoid zero frequency
+         int numOfSteps = (int)((maxFreq - minFreq)/freqInterval) + 1;
+
+         double[] frequency = new double[numOfSteps];
+         for ( int i = 0; i < numOfSteps; i++ ) {
+             frequency[i] = minFreq + ((double)i+1)*freqInterval;
+         }
+         double[] power = power( xData, yData, minFreq + freqInterval,
+                                 freqInterval, numOfSteps );
+
+         String name = "Lomb-Scargle Periodogram of " +
+                       currentSeries.getShortName();
+
+         MEMGramImpl memImpl = new MEMGramImpl( name );
+
+         memImpl.setData( power, frequency );
+         return memImpl;
+
+    }
+
+    /**
+     * Calculates the normalised Lomb-Scargle periodogram on a regular
+     * grid of trial frequencies.
+     *
+     * @param xData the date stamps
+     * @param yData the fluxes
+     * @param freq0 the first trial frequency
+     * @param freqInterval the frequency step
+     * @param nfreq the number of trial frequencies
+     * @return normalised power at each trial frequency
+     */
+    public static double[] power( double[] xData, double[] yData,
+                                  final double freq0,
+                                  final double freqInterval, int nfreq )
+    {
+        final int np = xData.length;
+        final double[] power = new double[ nfreq ];
+        if ( np < 2 ) {
+            return power;
+        }
+
+        // mean and variance of the data, and offset date stamps
+        double tmin = xData[0];
+        double sum = 0.0;
+        for ( int j = 0; j < np; j++ ) {
+            tmin = Math.min( tmin, xData[j] );
+            sum = sum + yData[j];
+        }
+        double mean = sum/np;
+        double var = 0.0;
+        final double[] dt = new double[ np ];
+        final double[] hData = new double[ np ];
+        for ( int j = 0; j < np; j++ ) {
+            dt[j] = xData[j] - tmin;
+            hData[j] = yData[j] - mean;
+            var = var + hData[j]*hData[j];
+        }
+        var = var/(np - 1);
+        if ( ! ( var > 0.0 ) ) {
+            return power;
+        }
+        final double twoVar = 2.0*var;
+
+        FrequencyChunks.run( nfreq, BLOCK_SIZE, new FrequencyChunks.Chunk() {
+            public void calculate( int ifreq0, int ifreq1 ) {
+                double fbase = freq0 + ifreq0*freqInterval;
+                calculateBlock( dt, hData, twoVar, fbase, freqInterval,
+                                power, ifreq0, ifreq1 - ifreq0 );
+            }
+        } );
+        return power;
+    }
+
+    /**
+     * Calculates the periodogram for a contiguous block of trial
+     * frequencies.
+     *
+     * @param dt the date stamps, relative to the earliest one
+     * @param hData the fluxes, with the mean subtracted
+     * @param twoVar twice the variance of the fluxes
+     * @param fbase the first trial frequency in the block
+     * @param df the frequency step
+     * @param power array into which the results are written
+     * @param ioff offset into <code>power</code> of the first result
+     * @param nb number of trial frequencies in the block
+     */
+    private static void calculateBlock( double[] dt, double[] hData,
+                                        double twoVar, double fbase,
+                                        double df, double[] power,
+                                        int ioff, int nb )
+    {
+        int np = dt.length;
+        int ngrid = 1;
+        while ( ngrid < OVERSAMPLE*nb ) {
+            ngrid *= 2;
+        }
+        double[] wkRe1 = new double[ ngrid ];
+        double[] wkIm1 = new double[ ngrid ];
+        double[] wkRe2 = new double[ ngrid ];
+        double[] wkIm2 = new double[ ngrid ];
+
+        // Heterodyne each point down by the base frequency of this block,
+        // then extirpolate it onto the grids; the first grid gives the
+        // sums of h.cos and h.sin at the trial frequency, the second
+        // gives the sums of cos and sin at twice the trial frequency
+        for ( int j = 0; j < np; j++ ) {
+            double p1 = frac( dt[j]*fbase );
+            double p2 = frac( 2.0*p1 );
+            p1 = 2.0*Math.PI*p1;
+            p2 = 2.0*Math.PI*p2;
+            double u1 = frac( dt[j]*df )*ngrid;
+            double u2 = frac( 2.0*dt[j]*df )*ngrid;
+            extirpolate( hData[j]*Math.cos( p1 ), hData[j]*Math.sin( p1 ),
+                         u1, wkRe1, wkIm1 );
+            extirpolate( Math.cos( p2 ), Math.sin( p2 ), u2, wkRe2, wkIm2 );
+        }
+        fft( wkRe1, wkIm1 );
+        fft( wkRe2, wkIm2 );
+
+        // Combine the sums to get the normalised power
+        for ( int k = 0; k < nb; k++ ) {
+            double ch = wkRe1[k];
+            double sh = wkIm1[k];
+            double c2 = wkRe2[k];
+            double s2 = wkIm2[k];
+            double hypo = Math.sqrt( c2*c2 + s2*s2 );
+            double hc2wt = 0.5;
+            double hs2wt = 0.0;
+            if ( hypo > 0.0 ) {
+                hc2wt = 0.5*c2/hypo;
+                hs2wt = 0.5*s2/hypo;
+            }
+            double cwt = Math.sqrt( 0.5 + hc2wt );
+            double swt = Math.sqrt( Math.max( 0.5 - hc2wt, 0.0 ) );
+            if ( hs2wt < 0.0 ) {
+                swt = -swt;
+            }
+            double den = 0.5*np + hc2wt*c2 + hs2wt*s2;
+            double cnum = cwt*ch + swt*sh;
+            double snum = cwt*sh - swt*ch;
+            double cterm = den > 0.0 ? cnum*cnum/den : 0.0;
+            double sterm = np - den > 0.0 ? snum*snum/(np - den) : 0.0;
+            power[ioff + k] = ( cterm + sterm )/twoVar;
+        }
+    }
+
+    /**
+     * Adds a complex value to a periodic grid at a fractional position,
+     * distributing it with Lagrange interpolation weights over the
+     * nearest MACC grid points, so that the grid's discrete Fourier
+     * transform approximates that of the value at the exact position.
+     *
+     * @param re real part of value
+     * @param im imaginary part of value
+     * @param x position on grid, in the range 0 to grid length
+     * @param gridRe real parts of the grid
+     * @param gridIm imaginary parts of the grid
+     */
+    private static void extirpolate( double re, double im, double x,
+                                     double[] gridRe, double[] gridIm )
+    {
+        int n = gridRe.length;
+        int ix = (int) x;
+        if ( x == ix ) {
+            gridRe[ix % n] += re;
+            gridIm[ix % n] += im;
+            return;
+        }
+        int ilo = ix - MACC/2 + 1;
+
+        // Weights are w_m = prod_{l!=m}(x-x_l)/(x_m-x_l);
+        // calculate the product of all (x-x_l) once and divide through
+        double fac = 1.0;
+        for ( int m = 0; m < MACC; m++ ) {
+            fac = fac*( x - ( ilo + m ) );
+        }
+        for ( int m = 0; m < MACC; m++ ) {
+
+            // prod_{l!=m}(x_m-x_l) = (-1)^(MACC-1-m) m! (MACC-1-m)!
+            double nden = factorial( m )*factorial( MACC - 1 - m );
+            if ( ( MACC - 1 - m ) % 2 == 1 ) {
+                nden = -nden;
+            }
+            double w = fac/(nden*( x - ( ilo + m ) ));
+            int ig = ( ilo + m ) % n;
+            if ( ig < 0 ) {
+                ig += n;
+            }
+            gridRe[ig] += w*re;
+            gridIm[ig] += w*im;
+        }
+    }
+
+    /**
+     * Performs an in-place complex FFT with a positive exponent,
+     * that is it replaces the array with
+     * <code>sum_m a_m exp(2 pi i k m / n)</code>.
+     *
+     * @param re real parts, length a power of two
+     * @param im imaginary parts, length the same as <code>re</code>
+     */
+    private static void fft( double[] re, double[] im )
+    {
+        int n = re.length;
+
+        // bit reversal
+        for ( int i = 1, j = 0; i < n; i++ ) {
+            int bit = n >> 1;
+            for ( ; ( j & bit ) != 0; bit >>= 1 ) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if ( i < j ) {
+                double tr = re[i];
+                re[i] = re[j];
+                re[j] = tr;
+                double ti = im[i];
+                im[i] = im[j];
+                im[j] = ti;
+            }
+        }
+
+        // Danielson-Lanczos butterflies
+        for ( int len = 2; len <= n; len <<= 1 ) {
+            double theta = 2.0*Math.PI/len;
+            double wtemp = Math.sin( 0.5*theta );
+            double wpr = -2.0*wtemp*wtemp;
+            double wpi = Math.sin( theta );
+            int half = len >> 1;
+            for ( int i = 0; i < n; i += len ) {
+                double wr = 1.0;
+                double wi = 0.0;
+                for ( int k = 0; k < half; k++ ) {
+                    int a = i + k;
+                    int b = a + half;
+                    double xr = wr*re[b] - wi*im[b];
+                    double xi = wr*im[b] + wi*re[b];
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                    double tw = wr;
+                    wr = tw*wpr - wi*wpi + wr;
+                    wi = wi*wpr + tw*wpi + wi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fractional part of a non-negative value.
+     *
+     * @param x value
+     * @return x minus its integer part
+     */
+    private static double frac( double x )
+    {
+        return x - Math.floor( x );
+    }
+
+    /**
+     * Returns n factorial.
+     *
+     * @param n small non-negative integer
+     * @return n!
+     */
+    private static double factorial( int n )
+    {
+        double f = 1.0;
+        for ( int i = 2; i <= n; i++ ) {
+            f = f*i;
+        }
+        return f;
+    }
+}
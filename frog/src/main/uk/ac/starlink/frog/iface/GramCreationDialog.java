@@ -88,7 +88,8 @@ public class GramCreationDialog extends JInternalFrame
      * Array of Strings containing the list of periodograms
      */
      String [] gramItems = { "Fourier Power Spectrum", 
-                             "Chi-squared Periodogram" }; 
+                             "Chi-squared Periodogram",
+                             "Lomb-Scargle Periodogram" }; 
      
     /**
      * Seleced periodogram type
@@ -360,6 +361,9 @@ public class GramCreationDialog extends JInternalFrame
          else if( selected == "Chi-squared Periodogram" ) {
              selectedGram = "CHISQ";
          }
+         else if( selected == "Lomb-Scargle Periodogram" ) {
+             selectedGram = "LOMBSCARGLE";
+         }
             
          
          // We have valid entries, at least in theory
@@ -465,6 +469,9 @@ public class GramCreationDialog extends JInternalFrame
          } else if (selectedGram == "CHISQ" ) {
             periodogram.setType( Gram.CHISQ );
             debugManager.print("            setType( Gram.CHISQ");
+         } else if (selectedGram == "LOMBSCARGLE" ) {
+            periodogram.setType( Gram.LOMBSCARGLE );
+            debugManager.print("            setType( Gram.LOMBSCARGLE");
          }
          
          // assocaite a TimeSeriesComp object with this Gram
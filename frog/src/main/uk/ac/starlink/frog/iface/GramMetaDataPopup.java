@@ -184,6 +184,10 @@ public class GramMetaDataPopup extends JInternalFrame
        } else if ( popupGram.getType() == Gram.CHISQ ) { 
           doc = doc + "<li>The periodogram is a Chi-Squared Periodogram</ul>\n";
 
+       } else if ( popupGram.getType() == Gram.LOMBSCARGLE ) { 
+          doc = doc + 
+                "<li>The periodogram is a Lomb-Scargle Periodogram</ul>\n";
+
 
        }
        
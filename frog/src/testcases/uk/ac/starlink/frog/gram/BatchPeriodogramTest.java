@@ -0,0 +1,119 @@
+package uk.ac.starlink.frog.gram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class BatchPeriodogramTest extends TestCase {
+
+    public BatchPeriodogramTest( String name ) {
+        super( name );
+    }
+
+    public void testCurves() throws Exception {
+        double[][] da = LombScargleTest.createCurve( 5L, 200, 60.0, 2.2 );
+        double[][] db = LombScargleTest.createCurve( 6L, 150, 60.0, 0.9 );
+
+        /* Interleave the rows of the two light curves. */
+        StringBuffer sbuf = new StringBuffer( "# id time value error\n" );
+        for ( int i = 0; i < 200; i++ ) {
+            sbuf.append( "a " + da[ 0 ][ i ] + " " + da[ 1 ][ i ]
+                       + " 0.3\n" );
+            if ( i < 150 ) {
+                sbuf.append( "b " + db[ 0 ][ i ] + " " + db[ 1 ][ i ]
+                           + " 0.3\n" );
+            }
+        }
+        Map<String,BatchPeriodogram.Curve> curves =
+            BatchPeriodogram.readCurves(
+                new BufferedReader( new StringReader( sbuf.toString() ) ) );
+        assertEquals( 2, curves.size() );
+        BatchPeriodogram.Curve ca = curves.get( "a" );
+        BatchPeriodogram.Curve cb = curves.get( "b" );
+        assertEquals( 200, ca.np );
+        assertEquals( 150, cb.np );
+        assertEquals( da[ 1 ][ 199 ], ca.y[ 199 ] );
+
+        double df = 0.001;
+        for ( boolean isChisq : new boolean[] { false, true } ) {
+            assertEquals( 2.2, bestPeriod( "a", ca, isChisq, df ), 0.02 );
+            assertEquals( 0.9, bestPeriod( "b", cb, isChisq, df ), 0.005 );
+        }
+    }
+
+    public void testOutput() throws Exception {
+        double[][] data = LombScargleTest.createCurve( 7L, 80, 30.0, 1.7 );
+        BatchPeriodogram.Curve curve = new BatchPeriodogram.Curve();
+        for ( int i = 0; i < 80; i++ ) {
+            curve.add( data[ 0 ][ i ], data[ 1 ][ i ], 0.3 );
+        }
+        File dir = File.createTempFile( "gram", ".d" );
+        dir.delete();
+        dir.mkdirs();
+        File file = new File( dir, "x_y.gram" );
+        try {
+            double df = 0.01;
+            BatchPeriodogram.processCurve( "x/y", curve, false, 0.0, 5.0, df,
+                                           dir, new PrintWriter(
+                                                    new StringWriter() ) );
+            int nfreq = (int) ( 5.0 / df ) + 1;
+            double[] power =
+                LombScargle.power( data[ 0 ], data[ 1 ], df, df, nfreq );
+            BufferedReader in = new BufferedReader( new FileReader( file ) );
+            for ( int i = 0; i < nfreq; i++ ) {
+                String[] words = in.readLine().split( " " );
+                assertEquals( df + i * df, Double.parseDouble( words[ 0 ] ),
+                              1e-10 );
+                assertEquals( power[ i ], Double.parseDouble( words[ 1 ] ) );
+            }
+            assertNull( in.readLine() );
+            in.close();
+        }
+        finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Compares the chunked chi-squared periodogram with an independent
+     * fit at each trial frequency.
+     */
+    public void testChisq() {
+        double[][] data = LombScargleTest.createCurve( 8L, 120, 50.0, 3.1 );
+        double[] x = data[ 0 ];
+        double[] y = data[ 1 ];
+        double[] errs = new double[ x.length ];
+        for ( int i = 0; i < x.length; i++ ) {
+            errs[ i ] = 0.2 + 0.01 * i;
+        }
+        double f0 = 0.002;
+        double df = 0.0007;
+        int nfreq = 5000;
+        double[] power =
+            ChisqPeriodogram.power( x, y, errs, f0, df, nfreq );
+        for ( int i = 0; i < nfreq; i++ ) {
+            double chisq =
+                ChisqPeriodogram.sinfit( x, y, errs, 1.0 / ( f0 + i * df ) );
+            assertEquals( chisq, power[ i ], 1e-6 * chisq );
+        }
+    }
+
+    private static double bestPeriod( String id, BatchPeriodogram.Curve curve,
+                                      boolean isChisq, double df )
+            throws Exception {
+        StringWriter sw = new StringWriter();
+        BatchPeriodogram.processCurve( id, curve, isChisq, 0.0, 2.0, df,
+                                       null, new PrintWriter( sw ) );
+        String[] words = sw.toString().trim().split( " " );
+        assertEquals( 5, words.length );
+        assertEquals( id, words[ 0 ] );
+        assertEquals( Integer.toString( curve.np ), words[ 1 ] );
+        return Double.parseDouble( words[ 3 ] );
+    }
+}
@@ -0,0 +1,84 @@
+package uk.ac.starlink.frog.gram;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class FrequencyChunksTest extends TestCase {
+
+    public FrequencyChunksTest( String name ) {
+        super( name );
+    }
+
+    public void testCoverage() {
+        int nfreq = 100003;
+        double[] serial = new double[ nfreq ];
+        for ( int i = 0; i < nfreq; i++ ) {
+            serial[ i ] = value( i );
+        }
+        for ( int chunkSize : new int[] { 1, 999, 1000, nfreq, nfreq + 1 } ) {
+            for ( boolean parallel : new boolean[] { false, true } ) {
+                final int[] counts = new int[ nfreq ];
+                final double[] values = new double[ nfreq ];
+                FrequencyChunks.run( nfreq, chunkSize,
+                                     new FrequencyChunks.Chunk() {
+                    public void calculate( int ifreq0, int ifreq1 ) {
+                        assertTrue( ifreq0 < ifreq1 );
+                        for ( int i = ifreq0; i < ifreq1; i++ ) {
+                            counts[ i ]++;
+                            values[ i ] = value( i );
+                        }
+                    }
+                }, parallel );
+                for ( int i = 0; i < nfreq; i++ ) {
+                    assertEquals( 1, counts[ i ] );
+                }
+                assertTrue( Arrays.equals( serial, values ) );
+            }
+        }
+    }
+
+    public void testThreads() {
+        final Thread caller = Thread.currentThread();
+        final int[] nworker = new int[ 1 ];
+        FrequencyChunks.run( 1000, 10, new FrequencyChunks.Chunk() {
+            public void calculate( int ifreq0, int ifreq1 ) {
+                if ( Thread.currentThread() != caller ) {
+                    synchronized ( nworker ) {
+                        nworker[ 0 ]++;
+                    }
+                }
+            }
+        }, true );
+        assertEquals( 100, nworker[ 0 ] );
+    }
+
+    public void testSingleChunk() {
+        final Thread[] threads = new Thread[ 1 ];
+        FrequencyChunks.run( 10, 10, new FrequencyChunks.Chunk() {
+            public void calculate( int ifreq0, int ifreq1 ) {
+                threads[ 0 ] = Thread.currentThread();
+            }
+        } );
+        assertSame( Thread.currentThread(), threads[ 0 ] );
+    }
+
+    public void testException() {
+        try {
+            FrequencyChunks.run( 10000, 100, new FrequencyChunks.Chunk() {
+                public void calculate( int ifreq0, int ifreq1 ) {
+                    if ( ifreq0 == 5000 ) {
+                        throw new IllegalStateException( "chunk" );
+                    }
+                }
+            }, true );
+            fail();
+        }
+        catch ( IllegalStateException e ) {
+            assertEquals( "chunk", e.getMessage() );
+        }
+    }
+
+    private static double value( int i ) {
+        return Math.sin( i * 0.01 ) * Math.sqrt( i );
+    }
+}
@@ -0,0 +1,119 @@
+package uk.ac.starlink.frog.gram;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class LombScargleTest extends TestCase {
+
+    public LombScargleTest( String name ) {
+        super( name );
+    }
+
+    public void testPeriod() {
+        double period = 3.7;
+        double[][] data = createCurve( 23L, 300, 100.0, period );
+        double df = 0.0005;
+        int nfreq = 4000;
+        double[] power = LombScargle.power( data[ 0 ], data[ 1 ], df, df,
+                                            nfreq );
+        int best = 0;
+        for ( int i = 1; i < nfreq; i++ ) {
+            if ( power[ i ] > power[ best ] ) {
+                best = i;
+            }
+        }
+        assertEquals( 1.0 / period, df + best * df, 2 * df );
+    }
+
+    /**
+     * Compares the fast, chunked calculation with a direct serial
+     * evaluation of the Lomb-Scargle formula.
+     */
+    public void testDirect() {
+        double[][] data = createCurve( 99L, 150, 40.0, 1.3 );
+        double[] x = data[ 0 ];
+        double[] y = data[ 1 ];
+        double df = 0.00025;
+        double f0 = 0.01;
+        int nfreq = 3 * 16384 + 101;
+        double[] power = LombScargle.power( x, y, f0, df, nfreq );
+        double[] direct = directPower( x, y, f0, df, nfreq );
+        double pmax = 0;
+        for ( int i = 0; i < nfreq; i++ ) {
+            pmax = Math.max( pmax, direct[ i ] );
+        }
+        for ( int i = 0; i < nfreq; i++ ) {
+            assertEquals( direct[ i ], power[ i ], 1e-4 * pmax );
+        }
+    }
+
+    public void testConstant() {
+        double[] x = new double[] { 0, 1, 2.5, 3 };
+        double[] y = new double[] { 4, 4, 4, 4 };
+        double[] power = LombScargle.power( x, y, 0.1, 0.1, 5 );
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( 0.0, power[ i ] );
+        }
+    }
+
+    /**
+     * Returns a noisy sinusoidal light curve with irregular sampling.
+     *
+     * @return  2-element array of (times, values)
+     */
+    static double[][] createCurve( long seed, int np, double span,
+                                   double period ) {
+        Random rnd = new Random( seed );
+        double[] x = new double[ np ];
+        double[] y = new double[ np ];
+        for ( int i = 0; i < np; i++ ) {
+            x[ i ] = 1000.0 + rnd.nextDouble() * span;
+            y[ i ] = 12.0
+                   + 3.0 * Math.sin( 2 * Math.PI * x[ i ] / period + 0.7 )
+                   + 0.3 * rnd.nextGaussian();
+        }
+        return new double[][] { x, y };
+    }
+
+    private static double[] directPower( double[] x, double[] y,
+                                         double f0, double df, int nfreq ) {
+        int np = x.length;
+        double mean = 0;
+        for ( int j = 0; j < np; j++ ) {
+            mean += y[ j ];
+        }
+        mean /= np;
+        double var = 0;
+        for ( int j = 0; j < np; j++ ) {
+            var += ( y[ j ] - mean ) * ( y[ j ] - mean );
+        }
+        var /= np - 1;
+        double[] power = new double[ nfreq ];
+        for ( int i = 0; i < nfreq; i++ ) {
+            double w = 2 * Math.PI * ( f0 + i * df );
+            double s2 = 0;
+            double c2 = 0;
+            for ( int j = 0; j < np; j++ ) {
+                s2 += Math.sin( 2 * w * x[ j ] );
+                c2 += Math.cos( 2 * w * x[ j ] );
+            }
+            double tau = Math.atan2( s2, c2 ) / ( 2 * w );
+            double yc = 0;
+            double ys = 0;
+            double cc = 0;
+            double ss = 0;
+            for ( int j = 0; j < np; j++ ) {
+                double arg = w * ( x[ j ] - tau );
+                double c = Math.cos( arg );
+                double s = Math.sin( arg );
+                double h = y[ j ] - mean;
+                yc += h * c;
+                ys += h * s;
+                cc += c * c;
+                ss += s * s;
+            }
+            power[ i ] = ( yc * yc / cc + ys * ys / ss ) / ( 2 * var );
+        }
+        return power;
+    }
+}
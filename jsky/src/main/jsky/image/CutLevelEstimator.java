@@ -0,0 +1,433 @@
+package jsky.image;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Estimates image statistics and cut levels from a stratified sample of
+ * the pixels in a region of an image, so that cut levels can be set for
+ * large images without reading every pixel.
+ * <p>
+ * The sample is taken in a sequence of passes, each of which divides the
+ * region into a grid of cells four times finer than the last, and reads a
+ * short horizontal run of pixels from a random position in each cell.
+ * Runs are read a tile at a time, so that each image tile is fetched at
+ * most once per pass.  The first pass is quick, and gives a rough
+ * estimate which can be used straight away; later passes refine it and
+ * would normally be made in a background thread.  Pixels are read
+ * without holding the object's lock, which is only taken briefly to
+ * merge each pass into the sample, so the estimates may be queried from
+ * the event dispatch thread while a pass is being made.
+ * <p>
+ * Two cut level algorithms are supported: the median filter algorithm
+ * used by the "cutlevel" image operator, which takes the extreme values
+ * of the medians of the runs, and percentiles of the pixel distribution.
+ * For percentiles an error bound is available: with 95% confidence the
+ * fraction of pixels below an estimated percentile differs from the
+ * requested fraction by no more than {@link #getRankError}
+ * (the Dvoretzky-Kiefer-Wolfowitz bound for the number of runs sampled).
+ */
+public class CutLevelEstimator {
+
+    /** Length of the pixel runs (as for the median filter algorithm) */
+    public static final int RUN_LENGTH = 7;
+
+    /** Default number of runs sampled in the first pass */
+    public static final int DEFAULT_FIRST_PASS = 256;
+
+    /** Default maximum total number of runs sampled */
+    public static final int DEFAULT_MAX_SAMPLES = 87296;
+
+    /** The image being sampled (released when sampling is complete) */
+    private RenderedImage _im;
+
+    /** The region of the image being sampled */
+    private Rectangle _region;
+
+    /** Value of bad pixels (NaN values are always ignored) */
+    private double _blank;
+
+    /** Maximum total number of runs to sample */
+    private int _maxSamples;
+
+    /** Number of runs to sample in the next pass */
+    private int _passSize;
+
+    /** Number of runs sampled so far */
+    private int _nrun;
+
+    /** Total of the pass sizes so far (the grids may not match them exactly) */
+    private int _npass;
+
+    /** Sampled pixel values in ascending order (replaced, never modified) */
+    private double[] _values = new double[0];
+
+    /** Number of sampled pixel values */
+    private int _nval;
+
+    /** Number of sampled run medians */
+    private int _nmed;
+
+    /** Minimum and maximum sampled pixel values */
+    private double _minValue = Double.NaN, _maxValue = Double.NaN;
+
+    /** Minimum and maximum run medians */
+    private double _minMedian = Double.NaN, _maxMedian = Double.NaN;
+
+    /** Set when no more passes are required */
+    private boolean _complete;
+
+    /** Set if every pixel in the region has been read */
+    private boolean _exact;
+
+    /** Random positions, using a fixed seed so that results are repeatable */
+    private Random _random = new Random(0L);
+
+    /** Held while a pass is made, so that only one is made at a time */
+    private final Object _passLock = new Object();
+
+
+    /**
+     * Create an estimator using the default sample sizes.
+     *
+     * @param im the image to sample (only the first band is used)
+     * @param region the region of the image to sample
+     * @param blank value of bad pixels, or NaN
+     */
+    public CutLevelEstimator(RenderedImage im, Rectangle region, double blank) {
+        this(im, region, blank, DEFAULT_FIRST_PASS, DEFAULT_MAX_SAMPLES);
+    }
+
+    /**
+     * Create an estimator.
+     *
+     * @param im the image to sample (only the first band is used)
+     * @param region the region of the image to sample
+     * @param blank value of bad pixels, or NaN
+     * @param firstPass the number of runs sampled in the first pass
+     * @param maxSamples the maximum total number of runs sampled
+     */
+    public CutLevelEstimator(RenderedImage im, Rectangle region, double blank,
+                             int firstPass, int maxSamples) {
+        _im = im;
+        _region = region.intersection(new Rectangle(im.getMinX(), im.getMinY(),
+                                                    im.getWidth(), im.getHeight()));
+        _blank = blank;
+        _passSize = Math.max(1, firstPass);
+        _maxSamples = Math.max(_passSize, maxSamples);
+
+        // a region with no more pixels than the sample would have is
+        // read completely in the first pass
+        if ((long) _region.width * _region.height <= (long) _maxSamples * RUN_LENGTH)
+            _passSize = -1;
+        if (_region.isEmpty())
+            _complete = true;
+    }
+
+
+    /**
+     * Take the next pass of the sample.
+     *
+     * @return true if a pass was made, false if the sample was already complete
+     */
+    public boolean samplePass() {
+        synchronized (_passLock) {
+            RenderedImage im;
+            int passSize;
+            synchronized (this) {
+                if (_complete)
+                    return false;
+                im = _im;
+                passSize = _passSize;
+            }
+
+            // read the pixels and sort them into a new sample, holding
+            // only the pass lock (which the accessor methods do not need)
+            Sample sample = new Sample(_blank);
+            if (passSize < 0)
+                _readRegion(im, sample);
+            else
+                _samplePass(im, passSize, sample);
+            double[] values = sample.merge(_values, _nval);
+
+            synchronized (this) {
+                _values = values;
+                _nval = values.length;
+                _nmed += sample.nmed;
+                _nrun += sample.nrun;
+                _minValue = _nval == 0 ? Double.NaN : _values[0];
+                _maxValue = _nval == 0 ? Double.NaN : _values[_nval - 1];
+                if (!(sample.minMedian >= _minMedian))
+                    _minMedian = sample.minMedian;
+                if (!(sample.maxMedian <= _maxMedian))
+                    _maxMedian = sample.maxMedian;
+                if (passSize < 0) {
+                    _exact = true;
+                    _complete = true;
+                }
+                else {
+                    _npass += passSize;
+                    _passSize = passSize * 4;
+                    if (_npass + _passSize > _maxSamples)
+                        _complete = true;
+                }
+                if (_complete)
+                    _im = null;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Read every pixel in the region, treating each row as a sequence of runs.
+     */
+    private void _readRegion(RenderedImage im, Sample sample) {
+        int minTileX = (_region.x - im.getTileGridXOffset()) / im.getTileWidth();
+        int minTileY = (_region.y - im.getTileGridYOffset()) / im.getTileHeight();
+        int maxTileX = (_region.x + _region.width - 1 - im.getTileGridXOffset()) / im.getTileWidth();
+        int maxTileY = (_region.y + _region.height - 1 - im.getTileGridYOffset()) / im.getTileHeight();
+        double[] buf = new double[RUN_LENGTH];
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                Raster tile = im.getTile(tx, ty);
+                Rectangle r = tile.getBounds().intersection(_region);
+                for (int y = r.y; y < r.y + r.height; y++) {
+                    for (int x = r.x; x < r.x + r.width; x += RUN_LENGTH) {
+                        int n = Math.min(RUN_LENGTH, r.x + r.width - x);
+                        tile.getSamples(x, y, n, 1, 0, buf);
+                        sample.addRun(buf, n);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sample about the given number of runs from a grid of cells covering
+     * the region.
+     */
+    private void _samplePass(RenderedImage im, int size, Sample sample) {
+        // choose a grid with roughly square cells
+        double cellSize = Math.sqrt((double) _region.width * _region.height / size);
+        int nx = Math.max(1, (int) Math.round(_region.width / cellSize));
+        int ny = Math.max(1, (int) Math.round(_region.height / cellSize));
+        int n = nx * ny;
+
+        // pick a random point in each cell, and sort them by tile
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        long[] order = new long[n];
+        int tw = im.getTileWidth(), th = im.getTileHeight();
+        int xoff = im.getTileGridXOffset(), yoff = im.getTileGridYOffset();
+        for (int j = 0; j < ny; j++) {
+            int y0 = _region.y + (int) ((long) j * _region.height / ny);
+            int y1 = _region.y + (int) ((long) (j + 1) * _region.height / ny);
+            for (int i = 0; i < nx; i++) {
+                int x0 = _region.x + (int) ((long) i * _region.width / nx);
+                int x1 = _region.x + (int) ((long) (i + 1) * _region.width / nx);
+                int k = j * nx + i;
+                xs[k] = x0 + _random.nextInt(Math.max(1, x1 - x0));
+                ys[k] = y0 + _random.nextInt(Math.max(1, y1 - y0));
+                long tileIndex = (long) ((ys[k] - yoff) / th) * 65536L + (xs[k] - xoff) / tw;
+                order[k] = (tileIndex << 32) | k;
+            }
+        }
+        Arrays.sort(order);
+
+        // read the runs, fetching each tile once
+        double[] buf = new double[RUN_LENGTH];
+        Raster tile = null;
+        long lastTile = -1L;
+        for (int i = 0; i < n; i++) {
+            int k = (int) (order[i] & 0xffffffffL);
+            long tileIndex = order[i] >>> 32;
+            if (tileIndex != lastTile) {
+                tile = im.getTile((xs[k] - xoff) / tw, (ys[k] - yoff) / th);
+                lastTile = tileIndex;
+            }
+
+            // keep the run inside both the tile and the region
+            int minX = Math.max(tile.getMinX(), _region.x);
+            int maxX = Math.min(tile.getMinX() + tile.getWidth(), _region.x + _region.width);
+            int len = Math.min(RUN_LENGTH, maxX - minX);
+            int x = Math.max(minX, Math.min(xs[k], maxX - len));
+            tile.getSamples(x, ys[k], len, 1, 0, buf);
+            sample.addRun(buf, len);
+        }
+    }
+
+
+    /** Return true if no more passes are required */
+    public synchronized boolean isComplete() {
+        return _complete;
+    }
+
+    /** Return the number of good pixel values sampled so far */
+    public synchronized int getSampleCount() {
+        return _nval;
+    }
+
+    /** Return the minimum sampled pixel value (NaN if there are none) */
+    public synchronized double getMinValue() {
+        return _minValue;
+    }
+
+    /** Return the maximum sampled pixel value (NaN if there are none) */
+    public synchronized double getMaxValue() {
+        return _maxValue;
+    }
+
+
+    /**
+     * Return the low and high cut levels given by the median filter
+     * algorithm: the smallest and largest run medians, or null if no
+     * good pixels have been sampled.
+     */
+    public synchronized double[] getMedianFilterCutLevels() {
+        if (_nmed == 0)
+            return null;
+        return new double[]{_minMedian, _maxMedian};
+    }
+
+
+    /**
+     * Return an estimate of the pixel value below which the given fraction
+     * of the pixels lie, or NaN if no good pixels have been sampled.
+     *
+     * @param fraction a value between 0 and 1
+     */
+    public synchronized double getPercentile(double fraction) {
+        if (_nval == 0)
+            return Double.NaN;
+        fraction = Math.max(0., Math.min(1., fraction));
+        return _values[(int) Math.round(fraction * (_nval - 1))];
+    }
+
+
+    /**
+     * Return the low and high cut levels between which the given percentage
+     * of the pixels lie, or null if no good pixels have been sampled.
+     *
+     * @param percent value between 0. and 100. indicating percent
+     *                of image pixels within the cut levels.
+     */
+    public synchronized double[] getPercentCutLevels(double percent) {
+        if (_nval == 0)
+            return null;
+        double tail = (100. - percent) / 200.;
+        return new double[]{getPercentile(tail), getPercentile(1. - tail)};
+    }
+
+
+    /**
+     * Return the error bound on the fraction of pixels below an estimated
+     * percentile (95% confidence).  Once the whole region has been read
+     * this is zero.
+     */
+    public synchronized double getRankError() {
+        if (_exact)
+            return 0.;
+        if (_nrun == 0)
+            return 1.;
+        return Math.min(1., Math.sqrt(Math.log(2. / 0.05) / (2. * _nrun)));
+    }
+
+
+    /**
+     * Return the range of pixel values within which the true value of the
+     * given percentile lies (95% confidence), as an array {low, high}.
+     *
+     * @param fraction a value between 0 and 1
+     */
+    public synchronized double[] getPercentileBounds(double fraction) {
+        double err = getRankError();
+        return new double[]{getPercentile(fraction - err), getPercentile(fraction + err)};
+    }
+
+
+    /**
+     * Stop sampling.  The estimates made so far remain available.
+     */
+    public synchronized void cancel() {
+        _complete = true;
+        _im = null;
+    }
+
+
+    /**
+     * The pixel values and run medians read in a single pass.
+     */
+    private static class Sample {
+
+        /** Value of bad pixels */
+        final double blank;
+
+        /** Good pixel values (the first nval are used) */
+        double[] values = new double[1024];
+        int nval;
+
+        /** Number of runs read, and of runs with good pixels */
+        int nrun;
+        int nmed;
+
+        /** Minimum and maximum run medians */
+        double minMedian = Double.NaN, maxMedian = Double.NaN;
+
+        Sample(double blank) {
+            this.blank = blank;
+        }
+
+        /**
+         * Add a run of pixel values.
+         */
+        void addRun(double[] run, int n) {
+            nrun++;
+            int ngood = 0;
+            for (int i = 0; i < n; i++) {
+                double v = run[i];
+                if (Double.isNaN(v) || v == blank)
+                    continue;
+                run[ngood++] = v;
+                if (nval == values.length) {
+                    double[] a = new double[nval * 2];
+                    System.arraycopy(values, 0, a, 0, nval);
+                    values = a;
+                }
+                values[nval++] = v;
+            }
+            if (ngood == 0)
+                return;
+
+            Arrays.sort(run, 0, ngood);
+            double median = run[ngood / 2];
+            nmed++;
+            if (!(median >= minMedian))
+                minMedian = median;
+            if (!(median <= maxMedian))
+                maxMedian = median;
+        }
+
+        /**
+         * Sort the values read and merge them with the first n of the
+         * given sorted values, returning a new array.
+         */
+        double[] merge(double[] sorted, int n) {
+            Arrays.sort(values, 0, nval);
+            double[] a = new double[n + nval];
+            int i = 0, j = 0, k = 0;
+            while (i < n && j < nval)
+                a[k++] = sorted[i] <= values[j] ? sorted[i++] : values[j++];
+            while (i < n)
+                a[k++] = sorted[i++];
+            while (j < nval)
+                a[k++] = values[j++];
+            return a;
+        }
+    }
+}
@@ -7,6 +7,8 @@
 
 package jsky.image;
 
+import java.awt.Rectangle;
+
 import javax.media.jai.Histogram;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.ROI;
@@ -20,6 +22,10 @@ import jsky.image.operator.ImageOps;
  * The previous arguments and resulting histogram are cached and compared the
  * next time getHistogram is called. If the arguments have not changed, the cached
  * Histogram is returned.
+ * <p>
+ * For large regions, the sampling periods are increased so that no more than
+ * a fixed number of pixels (see setMaxPixels(int)) are counted.
+ * Only the relative bin counts are then meaningful.
  */
 public class ImageHistogram {
 
@@ -32,6 +38,9 @@ public class ImageHistogram {
     private int _xPeriod;
     private int _yPeriod;
 
+    /** Maximum number of pixels counted in a histogram (0 for no limit) */
+    private static int _maxPixels = 1024 * 1024;
+
     /** Default Constructor */
     public ImageHistogram() {
     }
@@ -74,7 +83,31 @@ public class ImageHistogram {
             highValue[i] = highCut;
         }
 
+        // for large regions, sample more sparsely to limit the number of pixels counted
+        if (_maxPixels > 0) {
+            Rectangle bounds = roi.getBounds();
+            double n = ((double) bounds.width * bounds.height) / ((double) xPeriod * yPeriod);
+            if (n > _maxPixels) {
+                double f = Math.sqrt(n / _maxPixels);
+                xPeriod = (int) Math.ceil(xPeriod * f);
+                yPeriod = (int) Math.ceil(yPeriod * f);
+            }
+        }
+
         _histogram = ImageOps.histogram(im, roi, xPeriod, yPeriod, numBins, lowValue, highValue);
         return _histogram;
     }
+
+    /**
+     * Set the maximum number of pixels counted in a histogram (0 for no limit).
+     * If necessary the sampling periods are increased to respect this limit.
+     */
+    public static void setMaxPixels(int n) {
+        _maxPixels = n;
+    }
+
+    /** Return the maximum number of pixels counted in a histogram. */
+    public static int getMaxPixels() {
+        return _maxPixels;
+    }
 }
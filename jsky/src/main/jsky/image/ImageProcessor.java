@@ -21,6 +21,10 @@ import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.DataBuffer;
 import java.awt.image.SampleModel;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.media.jai.Histogram;
 import javax.media.jai.Interpolation;
@@ -31,6 +35,7 @@ import javax.media.jai.PlanarImage;
 import javax.media.jai.ROI;
 import javax.media.jai.ROIShape;
 import javax.media.jai.operator.TransposeDescriptor;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.EventListenerList;
 
@@ -169,6 +174,24 @@ public class ImageProcessor {
     // Set to true if something was changed and a call to update() is needed. 
     private boolean _updatePending = false;
 
+    // Regions with at least this many pixels get sampled cut levels (0 for never)
+    private static long _cutLevelSamplingThreshold = 1024L * 1024L;
+
+    // Object estimating the cut levels for the current region from a pixel sample, if used
+    private volatile CutLevelEstimator _cutLevelEstimator;
+
+    // The image (or FITSImage) sampled by _cutLevelEstimator
+    private Object _cutLevelImage;
+
+    // Key identifying the HDU and region sampled by _cutLevelEstimator
+    private String _cutLevelKey;
+
+    // Percentage used to set sampled cut levels, or -1 for the median filter algorithm
+    private double _cutLevelPercent = -1.;
+
+    // Completed cut level estimators, indexed by image and then by _cutLevelKey
+    private static Map _cutLevelCache = new WeakHashMap();
+
 
     // static initializer
     static {
@@ -600,6 +623,8 @@ public class ImageProcessor {
 
         _updatePending = true;
         this._userSetCutLevels = userSetCutLevels;
+        if (userSetCutLevels)
+            _cutLevelEstimator = null;
 
         // reduce the image data to byte range with a lookup table
         ImageLookup imageLookup = new ImageLookup();
@@ -646,6 +671,10 @@ public class ImageProcessor {
      * @param region the region of interest in the image
      */
     public void autoSetCutLevels(Rectangle2D.Double region) {
+        if (_useSampledCutLevels(region)) {
+            _sampleCutLevels(region, -1.);
+            return;
+        }
         calculateImageStatistics(region);
         setCutLevels(_lowCut, _highCut, false);
     }
@@ -661,6 +690,10 @@ public class ImageProcessor {
      * @param region the region of interest in the image
      */
     public void autoSetCutLevels(double percent, Rectangle2D.Double region) {
+        if (_useSampledCutLevels(region)) {
+            _sampleCutLevels(region, percent);
+            return;
+        }
         _userSetCutLevels = false;
         double lowCut = _minValue, highCut = _maxValue;
 
@@ -734,6 +767,149 @@ public class ImageProcessor {
         setCutLevels(lowCut, highCut, false);
     }
 
+    /**
+     * Set the minimum number of pixels in the region of interest for which the
+     * automatic cut levels are estimated from a sample of the pixels (0 to never
+     * use sampling). The estimate is refined in a background thread, and the cut
+     * levels are updated as it improves.
+     */
+    public static void setCutLevelSamplingThreshold(long npix) {
+        _cutLevelSamplingThreshold = npix;
+    }
+
+    /** Return the minimum number of pixels for which cut levels are sampled. */
+    public static long getCutLevelSamplingThreshold() {
+        return _cutLevelSamplingThreshold;
+    }
+
+    /**
+     * Return the object estimating the current automatic cut levels from a pixel
+     * sample, or null if they were not set that way. This can be used to find the
+     * accuracy of the estimate (see CutLevelEstimator.getRankError()).
+     */
+    public CutLevelEstimator getCutLevelEstimator() {
+        return _cutLevelEstimator;
+    }
+
+    // Return true if cut levels for the given region should be estimated from a sample
+    private boolean _useSampledCutLevels(Rectangle2D.Double region) {
+        return _cutLevelSamplingThreshold > 0
+            && region.getWidth() * region.getHeight() >= _cutLevelSamplingThreshold;
+    }
+
+    /**
+     * Set the cut levels from a sample of the pixels in the given region, using the
+     * median filter algorithm if percent is negative, otherwise so that the given
+     * percent of the pixels are within the cut levels. A quick first estimate is made
+     * here, and refined in a background thread. Completed estimates are cached for
+     * each image, HDU and region, so that they can be reused when the image is
+     * displayed again or another algorithm is selected.
+     */
+    private void _sampleCutLevels(Rectangle2D.Double region, double percent) {
+        setRegionOfInterest(region);
+        _userSetCutLevels = false;
+        _cutLevelPercent = percent;
+
+        // the key identifies the region of the image (or HDU of a FITS file) sampled
+        Object image = _sourceImage;
+        String key = _region.toString() + ":" + _blank;
+        Object o = _sourceImage.getProperty("#fits_image");
+        if (o instanceof FITSImage) {
+            FITSImage fitsImage = (FITSImage) o;
+            image = fitsImage;
+            key = fitsImage.getCurrentHDUIndex() + ":" + fitsImage.getSubsample() + ":" + key;
+        }
+
+        CutLevelEstimator estimator = _cutLevelEstimator;
+        if (estimator == null || image != _cutLevelImage || !key.equals(_cutLevelKey)) {
+            synchronized (_cutLevelCache) {
+                Map map = (Map) _cutLevelCache.get(image);
+                estimator = map == null ? null : (CutLevelEstimator) map.get(key);
+            }
+            if (estimator == null) {
+                estimator = new CutLevelEstimator(_rescaledSourceImage, _region.getBounds(), _blank);
+                estimator.samplePass();
+                _cutLevelEstimator = estimator;
+                if (estimator.isComplete())
+                    _cacheCutLevels(image, key, estimator);
+                else
+                    _startCutLevelThread(image, key, estimator);
+            }
+            _cutLevelEstimator = estimator;
+            _cutLevelImage = image;
+            _cutLevelKey = key;
+        }
+        _setSampledCutLevels(estimator);
+    }
+
+    // Set the min and max values and cut levels from the given estimator
+    private void _setSampledCutLevels(CutLevelEstimator estimator) {
+        double[] cutLevels;
+        if (_cutLevelPercent < 0)
+            cutLevels = estimator.getMedianFilterCutLevels();
+        else
+            cutLevels = estimator.getPercentCutLevels(_cutLevelPercent);
+        if (cutLevels == null)
+            return;
+
+        if (_dataMin != _dataMax) {
+            _minValue = _dataMin;
+            _maxValue = _dataMax;
+        }
+        else {
+            _minValue = estimator.getMinValue();
+            _maxValue = estimator.getMaxValue();
+        }
+        setCutLevels(cutLevels[0], cutLevels[1], false);
+    }
+
+    // Save a completed estimator for reuse
+    private static void _cacheCutLevels(Object image, String key, CutLevelEstimator estimator) {
+        synchronized (_cutLevelCache) {
+            Map map = (Map) _cutLevelCache.get(image);
+            if (map == null) {
+                map = new HashMap();
+                _cutLevelCache.put(image, map);
+            }
+            map.put(key, estimator);
+        }
+    }
+
+    // Refine the given estimator in a background thread, updating the cut levels
+    // after each pass as long as it is still the current one
+    private void _startCutLevelThread(Object image, final String key,
+                                      final CutLevelEstimator estimator) {
+        // don't keep the image alive just for the cache key
+        final WeakReference imageRef = new WeakReference(image);
+        Thread thread = new Thread("Cut level sampler") {
+            public void run() {
+                boolean more = true;
+                while (estimator == _cutLevelEstimator && (more = estimator.samplePass())) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            if (estimator == _cutLevelEstimator && !_userSetCutLevels) {
+                                _setSampledCutLevels(estimator);
+                                update();
+                            }
+                        }
+                    });
+                }
+                if (!more) {
+                    Object im = imageRef.get();
+                    if (im != null)
+                        _cacheCutLevels(im, key, estimator);
+                }
+                else {
+                    estimator.cancel();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+
     /** Return true if the user has set the cut levels and they were not automatically set. */
     public boolean isUserSetCutLevels() {
         return _userSetCutLevels;
@@ -30,8 +30,13 @@ import javax.media.jai.JAI;
 import javax.media.jai.RasterFactory;
 import javax.media.jai.TileCache;
 import javax.media.jai.TiledImage;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
 
 import nom.tam.fits.BasicHDU;
+import nom.tam.fits.BinaryTableHDU;
 import nom.tam.fits.Data;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsException;
@@ -39,12 +44,16 @@ import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
 import nom.tam.fits.ImageData;
 import nom.tam.fits.ImageHDU;
+import nom.tam.image.CompressedImageTiler;
 import nom.tam.image.ImageTiler;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.BufferedFile;
+import nom.tam.util.RandomAccess;
 
 import ca.nrc.cadc.arch.io.FitsFilterInputStream;
 
+import jsky.util.Logger;
+
 /**
  * This is the core class for JAI FITS support. It handles the conversion between the
  * FITS image data and the display data.
@@ -61,6 +70,11 @@ import ca.nrc.cadc.arch.io.FitsFilterInputStream;
  * The "#preview_image" property returns a preshrunk preview image suitable for use in
  * a pan window. The size of the preview image may be set by calling the static method
  * FITSImage.setPreviewSize(int).
+ * <p>
+ * For large images (see setPyramidThreshold(long)) an {@link ImagePyramid} of
+ * reduced resolution copies of the image is built in the background, and used
+ * when the image is zoomed out, so that only the visible tiles need to be read
+ * at full resolution.
  *
  * @version $Revision: 1.24 $
  * @author Allan Brighton
@@ -127,6 +141,24 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
     // The FITSData<type> classes then view this buffer as a FloatBuffer, ShortBuffer, etc.
     private MappedByteBuffer _byteBuffer;
 
+    // Reduced resolution levels used when zooming out, or null if not used.
+    private ImagePyramid _pyramid;
+
+    // The name of the image file, if known (used to identify cached image pyramids)
+    private String _filename;
+
+    // List of listeners for change events
+    private EventListenerList _listenerList = new EventListenerList();
+
+    /** Images with at least this many pixels get an image pyramid (0 for none) */
+    private static long _pyramidThreshold = 64L * 1024L * 1024L;
+
+    /** Reduction used to build image pyramids (ImagePyramid.MEAN, MAX or MIN) */
+    private static int _pyramidReduction = ImagePyramid.MEAN;
+
+    /** Directory in which to keep image pyramids between sessions, or null */
+    private static File _pyramidCacheDir;
+
 
     /**
      * Construct a FITSImage.
@@ -155,6 +187,9 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
      * @param fileOrURL the file name or URL
      */
     public FITSImage(String fileOrUrl) throws IOException, FitsException {
+        if (new File(fileOrUrl).isFile())
+            _filename = fileOrUrl;
+
         // First try to open the file using the Fits classes, since they
         // work more efficiently with thier own I/O classes (they also handle
         // gzipped FITS files).
@@ -239,6 +274,10 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
      * no longer be used.
      */
     public void close() {
+	if (_pyramid != null) {
+	    _pyramid.close();
+	    _pyramid = null;
+	}
 	try {
 	    _fits.getStream().close();
 	}
@@ -294,6 +333,41 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
     }
 
 
+    /**
+     * Return true if the given HDU contains an image, either as an image
+     * HDU or as a binary table using the FITS tiled image compression
+     * convention.
+     */
+    public static boolean isImageHDU(BasicHDU hdu) {
+        return hdu instanceof ImageHDU || isCompressedImage(hdu);
+    }
+
+
+    /**
+     * Return true if the given HDU is a binary table containing an image
+     * compressed using the FITS tiled image compression convention.
+     */
+    public static boolean isCompressedImage(BasicHDU hdu) {
+        return hdu instanceof BinaryTableHDU
+            && CompressedImageTiler.isCompressedImage(hdu.getHeader());
+    }
+
+
+    /**
+     * Return a tiler for the compressed image in the given HDU.
+     * This requires random access to the FITS file.
+     */
+    private CompressedImageTiler _makeCompressedTiler(BasicHDU hdu) throws IOException {
+        ArrayDataInput stream = _fits.getStream();
+        if (!(stream instanceof RandomAccess)) {
+            throw new IOException("Compressed images can only be read from local files");
+        }
+        Header header = hdu.getHeader();
+        long offset = hdu.getFileOffset() + header.getSize();
+        return new CompressedImageTiler((RandomAccess) stream, offset, header);
+    }
+
+
     /**
      * This method should be called after adding a new HDU.
      */
@@ -309,9 +383,18 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
 	if (_hduIndex == num)
 	    return;
 
+	// the pyramid belongs to the old HDU
+	if (_pyramid != null) {
+	    _pyramid.close();
+	    _pyramid = null;
+	}
+
         _hduIndex = num;
-        _hdu = (ImageHDU) _fits.getHDU(num);
-        if (_hdu != null) {
+        BasicHDU hdu = _fits.getHDU(num);
+        _hdu = null;
+        _axes = null;
+        if (hdu instanceof ImageHDU) {
+            _hdu = (ImageHDU) hdu;
             _tiler = _hdu.getTiler();
             _axes = _hdu.getAxes();
             _header = _hdu.getHeader();
@@ -319,8 +402,22 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
             _bitpix = _hdu.getBitPix();
             _empty = false;
         }
+        else if (hdu != null && isCompressedImage(hdu)) {
+            // tile-compressed image stored in a binary table: the tiler
+            // decompresses tiles on demand
+            CompressedImageTiler tiler = _makeCompressedTiler(hdu);
+            _tiler = tiler;
+            _axes = tiler.getDims();
+            _header = tiler.getImageHeader();
+            _data = null;
+            _bitpix = tiler.getBitpix();
+            _empty = false;
+        }
+        else if (hdu != null) {
+            throw new FitsException("HDU " + num + " is not an image");
+        }
 
-        if (_hdu == null || _axes == null) {
+        if (_axes == null) {
             _tiler = null;
             _axes = new int[2];
             _axes[0] = 2;
@@ -342,6 +439,7 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
 	_scale = 1.0F;
 	_subsample = 1;
 	_initFITSData();
+	_initPyramid();
     }
 
     /** 
@@ -395,6 +493,12 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
      */
     public MappedByteBuffer getByteBuffer() {return _byteBuffer;}
 
+    /**
+     * Return the image pyramid used when zooming out, or null if the image
+     * is too small to need one.
+     */
+    public ImagePyramid getImagePyramid() {return _pyramid;}
+
 
     public static void setDefaultTileWidth(int w) {
         _defaultTileWidth = w;
@@ -613,7 +717,10 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
         Raster raster = RasterFactory.createWritableRaster(sampleModel, origin);
 
         try {
-            raster = _fitsData.getPreviewImage(raster, factor);
+            if (_pyramid != null && (_byteBuffer == null || _pyramid.getLevel(factor) > 0))
+                raster = _pyramid.fillTile(raster, factor, isYFlipped(), tileWidth, tileHeight);
+            else
+                raster = _fitsData.getPreviewImage(raster, factor);
         }
         catch (EOFException e) {
             //System.out.println("XXX FITSImage._getPreviewImage(): warning: " + e.toString());
@@ -650,7 +757,7 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
 	boolean needsUpdate = false;
 	if (scale > 1)
 	    scale = 1;
-	if (_byteBuffer != null && scale != _scale) {
+	if ((_byteBuffer != null || _pyramid != null) && scale != _scale) {
 	    needsUpdate = true;
 	    _scale = scale;
 	    if (_scale < 1) 
@@ -737,7 +844,8 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
     // possible
     private void _initByteBuffer() throws IOException {
 	ArrayDataInput arrayDataInput = _fits.getStream();
-	if (arrayDataInput instanceof BufferedFile) {
+	_byteBuffer = null;
+	if (_hdu != null && arrayDataInput instanceof BufferedFile) {
 	    //System.out.println("XXX FITSImage: using BufferedFile");
 	    long headerSize = _header.getSize();
 	    long offset = _hdu.getFileOffset() + headerSize;
@@ -839,7 +947,11 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
      */
     private Raster _fillTile(Raster tile) {
         try {
-            _fitsData.getTile(tile, _subsample, width, height);
+            if (_subsample != 1 && _pyramid != null
+                && (_byteBuffer == null || _pyramid.getLevel(_subsample) > 0))
+                _pyramid.fillTile(tile, _subsample, isYFlipped(), width, height);
+            else
+                _fitsData.getTile(tile, _subsample, width, height);
         }
         catch (EOFException e) {
             //System.out.println("XXX FITSImage.getTile(): warning: " + e.toString());
@@ -853,6 +965,138 @@ public class FITSImage extends jsky.image.SimpleRenderedImage {
     }
 
 
+    // Start building an image pyramid for the current HDU, if it is large enough
+    private void _initPyramid() {
+        if (_pyramid != null) {
+            _pyramid.close();
+            _pyramid = null;
+        }
+        if (_empty || _pyramidThreshold <= 0
+            || (long) getRealWidth() * (long) getRealHeight() < _pyramidThreshold)
+            return;
+
+        try {
+            // a cached pyramid is identified by the file, HDU and reduction
+            File cacheFile = null;
+            long key = 0L;
+            if (_pyramidCacheDir != null && _filename != null) {
+                File file = new File(_filename).getAbsoluteFile();
+                key = file.getPath().hashCode();
+                key = key * 31L + file.length();
+                key = key * 31L + file.lastModified();
+                key = key * 31L + _hduIndex;
+                key = key * 31L + _pyramidReduction;
+                cacheFile = new File(_pyramidCacheDir, "jsky" + Long.toHexString(key) + ".pyr");
+            }
+            Number blank = null;
+            if (_header.containsKey("BLANK"))
+                blank = new Integer(_header.getIntValue("BLANK"));
+            final ImagePyramid pyramid =
+                new ImagePyramid(_tiler, this, _axes, _bitpix, blank,
+                                 _pyramidReduction, cacheFile, key);
+            pyramid.addChangeListener(new ChangeListener() {
+                public void stateChanged(ChangeEvent e) {
+                    _pyramidChanged(pyramid);
+                }
+            });
+            _pyramid = pyramid;
+            _pyramid.start();
+        }
+        catch (IOException e) {
+            Logger.warn(this, "Can't create image pyramid", e);
+        }
+    }
+
+
+    // Called from the pyramid build thread when a new level is complete:
+    // if the image is zoomed out far enough to use it, discard the old tiles
+    // and tell listeners (in the event dispatch thread) to redisplay them
+    private void _pyramidChanged(final ImagePyramid pyramid) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (pyramid == _pyramid && _subsample != 1
+                    && pyramid.getLevel(_subsample) == pyramid.getBuiltLevel()) {
+                    clearTileCache();
+                    _fireChange();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Register to receive change events from this object whenever the image
+     * data for the current scale has been improved, for example when a
+     * level of the image pyramid has been built, and should be redisplayed.
+     * The events are delivered in the event dispatch thread.
+     */
+    public void addChangeListener(ChangeListener l) {
+        _listenerList.add(ChangeListener.class, l);
+    }
+
+    /**
+     * Stop receiving change events from this object.
+     */
+    public void removeChangeListener(ChangeListener l) {
+        _listenerList.remove(ChangeListener.class, l);
+    }
+
+    /**
+     * Notify any listeners that the image data has changed.
+     */
+    private void _fireChange() {
+        ChangeEvent changeEvent = new ChangeEvent(this);
+        Object[] listeners = _listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == ChangeListener.class) {
+                ((ChangeListener) listeners[i + 1]).stateChanged(changeEvent);
+            }
+        }
+    }
+
+
+    /**
+     * Set the minimum number of pixels for which an image pyramid is built
+     * to speed up zooming out (0 to never build one). This applies to images
+     * opened after this method is called.
+     */
+    public static void setPyramidThreshold(long npix) {
+        _pyramidThreshold = npix;
+    }
+
+    /** Return the minimum number of pixels for which an image pyramid is built */
+    public static long getPyramidThreshold() {
+        return _pyramidThreshold;
+    }
+
+    /**
+     * Set the reduction used to build image pyramids: one of
+     * ImagePyramid.MEAN, ImagePyramid.MAX or ImagePyramid.MIN.
+     */
+    public static void setPyramidReduction(int reduction) {
+        _pyramidReduction = reduction;
+    }
+
+    /** Return the reduction used to build image pyramids */
+    public static int getPyramidReduction() {
+        return _pyramidReduction;
+    }
+
+    /**
+     * Set the directory in which image pyramids for image files are kept,
+     * so that they can be reused the next time the file is opened.
+     * If null (the default), temporary files are used.
+     */
+    public static void setPyramidCacheDir(File dir) {
+        _pyramidCacheDir = dir;
+    }
+
+    /** Return the directory in which image pyramids are kept, or null */
+    public static File getPyramidCacheDir() {
+        return _pyramidCacheDir;
+    }
+
+
     /** Set the requested size for the preview image */
     public static void setPreviewSize(int i) {
         _previewSize = i;
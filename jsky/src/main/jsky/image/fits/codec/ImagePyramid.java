@@ -0,0 +1,586 @@
+package jsky.image.fits.codec;
+
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+
+import nom.tam.image.ImageTiler;
+
+import jsky.util.Logger;
+
+/**
+ * Maintains a multi-resolution pyramid for a large 2D FITS image,
+ * so that zoomed out views can be displayed without reading the
+ * whole of the full resolution image for every tile.
+ * <p>
+ * Level k of the pyramid is the image reduced by a factor of 2<sup>k</sup>
+ * in each direction, each pixel combining a block of full resolution
+ * pixels using one of the reductions {@link #MEAN}, {@link #MAX} or
+ * {@link #MIN} (blank pixels are ignored).  Level 0 is the image itself,
+ * read on demand using an {@link ImageTiler}.
+ * The reduced levels are built in a low priority background thread,
+ * each from the one below it, and held in a memory mapped file.
+ * Until a level has been built, tiles are sampled from the best level
+ * available, so that the display is usable straight away and improves
+ * as the build progresses.  Listeners are notified as each level is
+ * completed.
+ * <p>
+ * The mapped file is normally a temporary one, but if a cache file
+ * is given, the pyramid is kept there and reused (including a partly
+ * built one) the next time the same image is displayed.
+ */
+public class ImagePyramid {
+
+    /** Reduction which averages the pixels in each block. */
+    public static final int MEAN = 0;
+
+    /** Reduction which takes the maximum of the pixels in each block. */
+    public static final int MAX = 1;
+
+    /** Reduction which takes the minimum of the pixels in each block. */
+    public static final int MIN = 2;
+
+    /** Levels are added until the image is no larger than this. */
+    private static final int MIN_LEVEL_SIZE = 256;
+
+    /** Identifies a pyramid cache file. */
+    private static final String MAGIC = "JSKYPYR1";
+
+    /** Size of the cache file header in bytes. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Offset of the number of built levels in the file header. */
+    private static final int BUILT_OFFSET = 32;
+
+    /** Used to read full resolution pixels */
+    private ImageTiler _tiler;
+
+    /** Object to synchronize on when using the tiler */
+    private Object _lock;
+
+    /** Number of FITS axes */
+    private int _naxis;
+
+    /** Full resolution image width */
+    private int _width;
+
+    /** Full resolution image height */
+    private int _height;
+
+    /** Value of FITS keyword BITPIX */
+    private int _bitpix;
+
+    /** Number of bytes per pixel */
+    private int _pixelSize;
+
+    /** Blank value for integer data, or null */
+    private Number _blank;
+
+    /** Reduction type (MEAN, MAX, MIN) */
+    private int _reduction;
+
+    /** Mapped data for each level, null for levels not stored */
+    private MappedByteBuffer[] _levels;
+
+    /** The lowest level stored in the file */
+    private int _firstLevel;
+
+    /** The highest level which has been completely built */
+    private volatile int _built;
+
+    /** File holding the levels */
+    private RandomAccessFile _file;
+
+    /** The file holding the levels if it is a temporary one, otherwise null */
+    private File _tempFile;
+
+    /** Mapped header of the file */
+    private MappedByteBuffer _header;
+
+    /** Thread building the levels */
+    private Thread _builder;
+
+    /** Set to stop the build */
+    private volatile boolean _cancelled;
+
+    /** List of listeners for change events */
+    private EventListenerList _listenerList = new EventListenerList();
+
+
+    /**
+     * Constructor.  The pyramid is not built until {@link #start} is called.
+     *
+     * @param tiler used to read the full resolution image
+     * @param lock object to synchronize on while using the tiler
+     * @param axes the FITS image dimensions (slowest varying first, as
+     *             returned by ImageHDU.getAxes()); only the first plane
+     *             is used for images with more than 2 axes
+     * @param bitpix value of FITS keyword BITPIX
+     * @param blank value of FITS keyword BLANK, or null (ignored for
+     *              floating point data, where NaN is the blank value)
+     * @param reduction the reduction type: MEAN, MAX or MIN
+     * @param cacheFile file in which to keep the pyramid between sessions,
+     *                  or null to use a temporary file
+     * @param sourceKey value identifying the image data, used to check
+     *                  whether the contents of the cache file are still valid
+     */
+    public ImagePyramid(ImageTiler tiler, Object lock, int[] axes, int bitpix,
+                        Number blank, int reduction, File cacheFile,
+                        long sourceKey) throws IOException {
+        if (reduction != MEAN && reduction != MAX && reduction != MIN)
+            throw new IllegalArgumentException("Bad reduction: " + reduction);
+        _tiler = tiler;
+        _lock = lock;
+        _naxis = axes.length;
+        _width = axes[_naxis - 1];
+        _height = axes[_naxis - 2];
+        _bitpix = bitpix;
+        _pixelSize = Math.abs(bitpix) / 8;
+        _blank = bitpix > 0 ? blank : null;
+        _reduction = reduction;
+
+        // decide which levels to keep: levels too large to map are
+        // skipped, and the first one stored is built directly from level 0
+        int nlevel = 0;
+        while (Math.max(_width >> nlevel, _height >> nlevel) > MIN_LEVEL_SIZE)
+            nlevel++;
+        _levels = new MappedByteBuffer[nlevel + 1];
+        _firstLevel = 1;
+        while (_firstLevel <= nlevel && _getLevelSize(_firstLevel) > Integer.MAX_VALUE)
+            _firstLevel++;
+        long[] offsets = new long[nlevel + 1];
+        long fileSize = HEADER_SIZE;
+        for (int k = _firstLevel; k <= nlevel; k++) {
+            offsets[k] = fileSize;
+            fileSize += _getLevelSize(k);
+        }
+
+        // open the file and check whether it already holds the pyramid
+        boolean reuse = false;
+        if (cacheFile == null) {
+            cacheFile = File.createTempFile("jsky", ".pyr");
+            cacheFile.deleteOnExit();
+            _tempFile = cacheFile;
+        }
+        else {
+            reuse = cacheFile.length() == fileSize;
+        }
+        _file = new RandomAccessFile(cacheFile, "rw");
+        FileChannel channel = _file.getChannel();
+        try {
+            _file.setLength(fileSize);
+            _header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (reuse) {
+                byte[] magic = new byte[MAGIC.length()];
+                _header.get(magic);
+                reuse = MAGIC.equals(new String(magic, "US-ASCII"))
+                    && _header.getInt() == _width
+                    && _header.getInt() == _height
+                    && _header.getInt() == _bitpix
+                    && _header.getInt() == _reduction
+                    && _header.getLong() == sourceKey;
+            }
+            if (reuse) {
+                _built = _header.getInt(BUILT_OFFSET);
+                if (_built > nlevel)
+                    _built = 0;
+            }
+            else {
+                _header.clear();
+                _header.put(MAGIC.getBytes("US-ASCII"));
+                _header.putInt(_width);
+                _header.putInt(_height);
+                _header.putInt(_bitpix);
+                _header.putInt(_reduction);
+                _header.putLong(sourceKey);
+                _header.putInt(0);
+                _header.force();
+                _built = 0;
+            }
+            for (int k = _firstLevel; k <= nlevel; k++) {
+                _levels[k] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                         offsets[k], _getLevelSize(k));
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    /** Return the size in bytes of the given level */
+    private long _getLevelSize(int level) {
+        return (long) (_width >> level) * (long) (_height >> level) * _pixelSize;
+    }
+
+
+    /** Return the number of reduced levels in the pyramid */
+    public int getNumLevels() {
+        return _levels.length - 1;
+    }
+
+    /** Return the highest level which has been built so far (0 if none) */
+    public int getBuiltLevel() {
+        return _built;
+    }
+
+    /** Return true if all the levels have been built */
+    public boolean isComplete() {
+        return _built == getNumLevels();
+    }
+
+    /** Return the reduction type (MEAN, MAX or MIN) */
+    public int getReduction() {
+        return _reduction;
+    }
+
+
+    /**
+     * Start building the pyramid levels which are not already built,
+     * in a background thread.
+     */
+    public synchronized void start() {
+        if (_builder != null || isComplete())
+            return;
+        _builder = new Thread("Image pyramid builder") {
+            public void run() {
+                try {
+                    _build();
+                }
+                catch (IOException e) {
+                    if (!_cancelled)
+                        Logger.warn(ImagePyramid.this, "Failed to build image pyramid", e);
+                }
+            }
+        };
+        _builder.setDaemon(true);
+        _builder.setPriority(Thread.MIN_PRIORITY);
+        _builder.start();
+    }
+
+
+    /**
+     * Stop building the pyramid.  Levels which are already complete
+     * remain usable.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+
+    /**
+     * Stop building the pyramid and release the file, deleting it
+     * if it is a temporary one.
+     * After calling this method, this object should no longer be used.
+     */
+    public void close() {
+        cancel();
+        try {
+            _file.close();
+        }
+        catch (IOException e) {
+        }
+
+        // this may fail on platforms which don't allow mapped files to be
+        // deleted, in which case it is left to deleteOnExit
+        if (_tempFile != null) {
+            _tempFile.delete();
+            _tempFile = null;
+        }
+    }
+
+
+    /**
+     * Build the levels which are not yet complete.
+     */
+    private void _build() throws IOException {
+        for (int k = Math.max(_built + 1, _firstLevel); k < _levels.length; k++) {
+            int srcLevel = k == _firstLevel ? 0 : k - 1;
+            _buildLevel(k, srcLevel);
+            if (_cancelled)
+                return;
+            _levels[k].force();
+            _header.putInt(BUILT_OFFSET, k);
+            _header.force();
+            _built = k;
+            _fireChange();
+        }
+    }
+
+
+    /**
+     * Build the given level by reducing blocks of pixels from a lower one.
+     */
+    private void _buildLevel(int level, int srcLevel) throws IOException {
+        int factor = 1 << (level - srcLevel);
+        int srcWidth = _width >> srcLevel;
+        int w = _width >> level;
+        int h = _height >> level;
+        double blank = _blank == null ? Double.NaN : _blank.doubleValue();
+        double[] line = new double[srcWidth];
+        double[] acc = new double[w];
+        int[] count = new int[w];
+        ByteBuffer dest = _levels[level];
+
+        for (int j = 0; j < h && !_cancelled; j++) {
+            Arrays.fill(acc, _reduction == MEAN ? 0.0 : Double.NaN);
+            Arrays.fill(count, 0);
+            for (int jj = j * factor; jj < (j + 1) * factor; jj++) {
+                if (srcLevel == 0)
+                    _readSource(jj, 0, srcWidth, line);
+                else
+                    _readLevel(srcLevel, jj * srcWidth, srcWidth, line);
+                for (int i = 0; i < w; i++) {
+                    for (int ii = i * factor; ii < (i + 1) * factor; ii++) {
+                        double v = line[ii];
+                        if (Double.isNaN(v) || v == blank)
+                            continue;
+                        if (count[i]++ == 0)
+                            acc[i] = v;
+                        else if (_reduction == MEAN)
+                            acc[i] += v;
+                        else if (_reduction == MAX ? v > acc[i] : v < acc[i])
+                            acc[i] = v;
+                    }
+                }
+            }
+            int pos = j * w * _pixelSize;
+            for (int i = 0; i < w; i++) {
+                double v;
+                if (count[i] == 0)
+                    v = blank;
+                else if (_reduction == MEAN && count[i] > 1)
+                    v = acc[i] / count[i];
+                else
+                    v = acc[i];
+                _put(dest, pos, v);
+                pos += _pixelSize;
+            }
+        }
+    }
+
+
+    /** Store a pixel value in a level buffer at the given byte position */
+    private void _put(ByteBuffer buf, int pos, double v) {
+        switch (_bitpix) {
+        case 8:
+            buf.put(pos, (byte) Math.round(v));
+            break;
+        case 16:
+            buf.putShort(pos, (short) Math.round(v));
+            break;
+        case 32:
+            buf.putInt(pos, (int) Math.round(v));
+            break;
+        case -32:
+            buf.putFloat(pos, (float) v);
+            break;
+        default:
+            buf.putDouble(pos, v);
+            break;
+        }
+    }
+
+
+    /**
+     * Read n consecutive pixels from a stored level, starting at the given
+     * pixel index, into a double array.
+     */
+    private void _readLevel(int level, int index, int n, double[] values) {
+        ByteBuffer buf = _levels[level];
+        int pos = index * _pixelSize;
+        for (int i = 0; i < n; i++) {
+            switch (_bitpix) {
+            case 8:
+                values[i] = buf.get(pos) & 0xff;
+                break;
+            case 16:
+                values[i] = buf.getShort(pos);
+                break;
+            case 32:
+                values[i] = buf.getInt(pos);
+                break;
+            case -32:
+                values[i] = buf.getFloat(pos);
+                break;
+            default:
+                values[i] = buf.getDouble(pos);
+                break;
+            }
+            pos += _pixelSize;
+        }
+    }
+
+
+    /**
+     * Read n consecutive full resolution pixels from the given row,
+     * starting at column x, into a double array.
+     */
+    private void _readSource(int y, int x, int n, double[] values) throws IOException {
+        int[] corners = new int[_naxis];
+        int[] lengths = new int[_naxis];
+        for (int i = 0; i < _naxis - 2; i++)
+            lengths[i] = 1;
+        corners[_naxis - 2] = y;
+        corners[_naxis - 1] = x;
+        lengths[_naxis - 2] = 1;
+        lengths[_naxis - 1] = n;
+
+        switch (_bitpix) {
+        case 8: {
+            byte[] a = new byte[n];
+            synchronized (_lock) {
+                _tiler.getTile(a, corners, lengths);
+            }
+            for (int i = 0; i < n; i++)
+                values[i] = a[i] & 0xff;
+            break;
+        }
+        case 16: {
+            short[] a = new short[n];
+            synchronized (_lock) {
+                _tiler.getTile(a, corners, lengths);
+            }
+            for (int i = 0; i < n; i++)
+                values[i] = a[i];
+            break;
+        }
+        case 32: {
+            int[] a = new int[n];
+            synchronized (_lock) {
+                _tiler.getTile(a, corners, lengths);
+            }
+            for (int i = 0; i < n; i++)
+                values[i] = a[i];
+            break;
+        }
+        case -32: {
+            float[] a = new float[n];
+            synchronized (_lock) {
+                _tiler.getTile(a, corners, lengths);
+            }
+            for (int i = 0; i < n; i++)
+                values[i] = a[i];
+            break;
+        }
+        case -64: {
+            double[] a = new double[n];
+            synchronized (_lock) {
+                _tiler.getTile(a, corners, lengths);
+            }
+            System.arraycopy(a, 0, values, 0, n);
+            break;
+        }
+        default:
+            throw new IOException("Unsupported BITPIX: " + _bitpix);
+        }
+    }
+
+
+    /**
+     * Return the level which would be used to display the image
+     * subsampled by the given factor: the highest level built so far
+     * which is not reduced by more than the factor, or 0 if no
+     * suitable level has been built yet.
+     */
+    public int getLevel(int subsample) {
+        int level = 0;
+        int built = _built;
+        while (level < built && (2 << level) <= subsample)
+            level++;
+        return level < _firstLevel ? 0 : level;
+    }
+
+
+    /**
+     * Fill in the given tile of the image zoomed out by the given
+     * subsample factor, using the most appropriate level of the pyramid.
+     *
+     * @param tile the tile to fill with data
+     * @param subsample the zoom out factor
+     * @param flip if true, flip the Y axis for display (as for the mapped
+     *             byte buffer case in the FITSData classes)
+     * @param scaledWidth the total image width in pixels after prescaling
+     * @param scaledHeight the total image height in pixels after prescaling
+     *
+     * @return the tile argument
+     */
+    public Raster fillTile(Raster tile, int subsample, boolean flip,
+                           int scaledWidth, int scaledHeight) throws IOException {
+        WritableRaster raster = (WritableRaster) tile;
+        int x0 = tile.getMinX(),
+            y0 = tile.getMinY(),
+            x1 = Math.min(x0 + tile.getWidth() - 1, scaledWidth - 1),
+            y1 = Math.min(y0 + tile.getHeight() - 1, scaledHeight - 1),
+            n = x1 - x0 + 1;
+        if (n <= 0)
+            return tile;
+
+        int level = getLevel(subsample);
+        int levelWidth = _width >> level;
+
+        // the columns needed from the level
+        int c0 = (int) (((long) x0 * subsample) >> level);
+        int c1 = (int) (((long) x1 * subsample) >> level);
+        int span = c1 - c0 + 1;
+        int[] cols = new int[n];
+        for (int i = 0; i < n; i++)
+            cols[i] = (int) (((long) (x0 + i) * subsample) >> level) - c0;
+
+        double[] line = new double[span];
+        double[] values = new double[n];
+        for (int y = y0; y <= y1; y++) {
+            int j = flip ? scaledHeight - 1 - y : y;
+            int row = (int) (((long) j * subsample) >> level);
+            if (level == 0)
+                _readSource(row, c0, span, line);
+            else
+                _readLevel(level, row * levelWidth + c0, span, line);
+            for (int i = 0; i < n; i++)
+                values[i] = line[cols[i]];
+            raster.setSamples(x0, y, n, 1, 0, values);
+        }
+        return tile;
+    }
+
+
+    /**
+     * Register to receive change events from this object whenever a
+     * level of the pyramid has been completed.  Note that the events
+     * are delivered in the background build thread.
+     */
+    public void addChangeListener(ChangeListener l) {
+        _listenerList.add(ChangeListener.class, l);
+    }
+
+    /**
+     * Stop receiving change events from this object.
+     */
+    public void removeChangeListener(ChangeListener l) {
+        _listenerList.remove(ChangeListener.class, l);
+    }
+
+    /**
+     * Notify any listeners that a new level is available.
+     */
+    private void _fireChange() {
+        ChangeEvent changeEvent = new ChangeEvent(this);
+        Object[] listeners = _listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == ChangeListener.class) {
+                ((ChangeListener) listeners[i + 1]).stateChanged(changeEvent);
+            }
+        }
+    }
+}
@@ -40,7 +40,6 @@ import nom.tam.fits.BasicHDU;
 import nom.tam.fits.BinaryTableHDU;
 import nom.tam.fits.FitsException;
 import nom.tam.fits.Header;
-import nom.tam.fits.ImageHDU;
 
 
 /**
@@ -206,7 +205,7 @@ public class FITSHDUChooser extends JPanel {
      * Return a String describing the given HDU
      */
     private String _getHDUType(BasicHDU hdu) {
-        if (hdu instanceof ImageHDU)
+        if (FITSImage.isImageHDU(hdu))
             return "image";
         if (hdu instanceof BinaryTableHDU)
             return "binary";
@@ -156,6 +156,16 @@ public class DivaGraphicsImageDisplay extends JCanvas implements GraphicsImageDi
     /** Handle to FITSImage object, if image is a FITS image */
     private FITSImage _fitsImage;
 
+    /** Redisplays the FITS image when better data becomes available for it */
+    private ChangeListener _fitsImageListener = new ChangeListener() {
+        public void stateChanged(ChangeEvent e) {
+            if (_fitsImage != null && e.getSource() == _fitsImage) {
+                _imageProcessor.setSourceImage(PlanarImage.wrapRenderedImage(_fitsImage), _imageProcessor);
+                _imageProcessor.update();
+            }
+        }
+    };
+
     /** if true, update image immediately for scrolling and other operations, otherwise on button release */
     private boolean _immediateMode = false;
 
@@ -387,6 +397,7 @@ public class DivaGraphicsImageDisplay extends JCanvas implements GraphicsImageDi
     protected void newImage(boolean before) {
         if (before) {	       // before loading image
             if (_fitsImage != null) {
+                _fitsImage.removeChangeListener(_fitsImageListener);
                 _fitsImage.clearTileCache();
 	    }
             _fitsImage = null;
@@ -403,6 +414,7 @@ public class DivaGraphicsImageDisplay extends JCanvas implements GraphicsImageDi
                 Object o = im.getProperty("#fits_image");
                 if (o != null && (o instanceof FITSImage)) {
                     _fitsImage = (FITSImage) o;
+                    _fitsImage.addChangeListener(_fitsImageListener);
                     // Check for WCS
                     if (!_noInitWCS)
                         initWCS();
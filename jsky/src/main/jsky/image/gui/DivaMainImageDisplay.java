@@ -81,7 +81,6 @@ import jsky.util.gui.ProgressPanel;
 import jsky.util.gui.SwingUtil;
 
 import nom.tam.fits.FitsException;
-import nom.tam.fits.ImageHDU;
 import nom.tam.util.BufferedFile;
 
 import diva.canvas.GraphicsPane;
@@ -583,7 +582,7 @@ public class DivaMainImageDisplay extends DivaGraphicsImageDisplay implements Ma
     /** Called after a new FITSImage object was created to do FITS specific initialization */
     protected void initFITSImage(FITSImage fitsImage) throws IOException, FitsException {
 	int numHDUs = fitsImage.getNumHDUs();
-	if (numHDUs >= 2 && fitsImage.isEmpty() && (fitsImage.getHDU(1) instanceof ImageHDU)) {
+	if (numHDUs >= 2 && fitsImage.isEmpty() && FITSImage.isImageHDU(fitsImage.getHDU(1))) {
 	    fitsImage.setHDU(1);
 	}
 
@@ -1214,7 +1213,7 @@ public class DivaMainImageDisplay extends DivaGraphicsImageDisplay implements Ma
 	boolean skipEmptyPrimary = (numHDUs >= 2)
 	    && currentHDU == 0
 	    && fitsImage.isEmpty()
-	    && (fitsImage.getHDU(1) instanceof ImageHDU);
+	    && FITSImage.isImageHDU(fitsImage.getHDU(1));
 
         if (!show)
 	    show = skipEmptyPrimary && numHDUs > 2;
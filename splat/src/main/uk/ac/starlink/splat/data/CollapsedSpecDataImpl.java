@@ -7,9 +7,6 @@
  */
 package uk.ac.starlink.splat.data;
 
-import java.io.IOException;
-import java.util.Arrays;
-
 import uk.ac.starlink.splat.ast.ASTJ;
 import uk.ac.starlink.splat.util.SplatException;
 
@@ -24,6 +21,9 @@ import uk.ac.starlink.ast.FrameSet;
  * onto the dispersion axis happens. For 3D data an axis value along the other
  * axis (not the dispersion or collapse axis) picks out the actual plane that
  * is collapsed.
+ * <p>
+ * The combination is done by a {@link CubeProcessor}, using one of its
+ * methods, by default a weighted mean.
  *
  * @author Peter W. Draper
  * @version $Id$
@@ -36,6 +36,9 @@ public class CollapsedSpecDataImpl
 {
     private static int localCounter = 0;
 
+    /** The combination method, see {@link CubeProcessor}. */
+    protected int method = CubeProcessor.WEIGHTED_MEAN;
+
     /**
      * Constructor for 2D data.
      *
@@ -45,11 +48,7 @@ public class CollapsedSpecDataImpl
     public CollapsedSpecDataImpl( SpecData parent, SpecDims specDims )
         throws SplatException
     {
-        super( parent.getFullName() );
-        this.shortName = "Collapsed: " + shortName;
-        this.parentImpl = parent.getSpecDataImpl();
-        collapse( parent, specDims );
-        initMetaData( parent );
+        this( parent, specDims, -1, CubeProcessor.WEIGHTED_MEAN );
     }
 
     /**
@@ -64,10 +63,56 @@ public class CollapsedSpecDataImpl
     public CollapsedSpecDataImpl( SpecData parent, SpecDims specDims,
                                   int index )
         throws SplatException
+    {
+        this( parent, specDims, index, CubeProcessor.WEIGHTED_MEAN );
+    }
+
+    /**
+     * Construct an object that collapses 2D data, or a 2D section of a 3D
+     * spectrum, using a given combination method.
+     *
+     * @param parent the SpecData to collapse.
+     * @param specDims describes the dimensions of the parent
+     * @param index the index of the section along the select axis of a
+     *              3D spectrum, -1 for 2D data
+     * @param method the combination method, one of the constants defined
+     *               by {@link CubeProcessor}
+     */
+    public CollapsedSpecDataImpl( SpecData parent, SpecDims specDims,
+                                  int index, int method )
+        throws SplatException
+    {
+        this( parent, specDims, index, method, null );
+    }
+
+    /**
+     * Construct an object from the already collapsed data and errors of
+     * 2D data, or of a 2D section of a 3D spectrum.
+     *
+     * @param parent the SpecData that was collapsed.
+     * @param specDims describes the dimensions of the parent
+     * @param index the index of the section along the select axis of a
+     *              3D spectrum, -1 for 2D data
+     * @param method the combination method, one of the constants defined
+     *               by {@link CubeProcessor}
+     * @param collapsed the data and errors of the collapse, as returned by
+     *                  {@link CubeProcessor}, null to collapse here
+     */
+    public CollapsedSpecDataImpl( SpecData parent, SpecDims specDims,
+                                  int index, int method,
+                                  double[][] collapsed )
+        throws SplatException
     {
         super( parent.getFullName() );
+        this.method = method;
         this.parentImpl = parent.getSpecDataImpl();
-        collapseSection( parent, specDims, index );
+        if ( index < 0 ) {
+            this.shortName = "Collapsed: " + shortName;
+            collapse( parent, specDims, collapsed );
+        }
+        else {
+            collapseSection( parent, specDims, index, collapsed );
+        }
         initMetaData( parent );
     }
 
@@ -76,6 +121,16 @@ public class CollapsedSpecDataImpl
      */
     protected void collapse( SpecData parent, SpecDims specDims )
         throws SplatException
+    {
+        collapse( parent, specDims, null );
+    }
+
+    /**
+     * Do a 2D SpecData collapse, using the given result if not null.
+     */
+    protected void collapse( SpecData parent, SpecDims specDims,
+                             double[][] collapsed )
+        throws SplatException
     {
         //  We only handle 2D, but this can be complicated when some
         //  dimensions are redundant.
@@ -91,25 +146,14 @@ public class CollapsedSpecDataImpl
                 ( "The method chosen can only collapse 2D spectra" );
         }
 
-        //  2D so get the first proper axis, the two dimensions and choose the
-        //  dispersion axis.
-        int firstax = specDims.getFirstAxis( false );
-        int[] dims = specDims.getSigDims();
+        //  Perform the collapse of the values onto the dispersion axis.
+        //  The new data and error arrays become the current values.
+        double[][] res = ( collapsed != null ) ? collapsed :
+            CubeProcessor.getInstance( parent, specDims ).collapse( method );
+        data = res[0];
+        errors = res[1];
         int dispax = specDims.getDispAxis( false );
 
-        //  Perform the collapse of the values onto the first or second
-        //  dimension. The new data and error arrays become the current
-        //  values. XXX specify some combination algorithm, ranges would be
-        //  trickier without user specified axis.
-        double[] d = parent.getYData();
-        double[] e = parent.getYDataErrors();
-        if ( dispax == firstax ) {
-            collapse1( d, e, dims );
-        }
-        else {
-            collapse2( d, e, dims );
-        }
-
         //  Create the FrameSet for this data. Note +1 for AST axes.
         astref = ASTJ.extract1DFrameSet( parent.getFrameSet(), dispax + 1 );
     }
@@ -122,43 +166,29 @@ public class CollapsedSpecDataImpl
                                  int index )
         throws SplatException
     {
-        //  Extract the section.
-        int[] dims = specDims.getSigDims();
-        int[] strides = specDims.getStrides( true );
-        double[] d = parent.getYData();
-        double[] e = parent.getYDataErrors();
+        collapseSection( parent, specDims, index, null );
+    }
 
-        //  These are the retained axes.
-        int collapsed = specDims.getFreeAxis( true );
-        int dispax = specDims.getDispAxis( true );
-        int axis1 = ( collapsed > dispax ) ? dispax : collapsed;
-        int axis2 = ( collapsed > dispax ) ? collapsed : dispax;
-        
-        //  Set initial indices, the selected axis disappears.
-        int[] indices = new int[3];
-        indices[axis1] = 0;
-        indices[axis2] = 0;
+    /**
+     * Extract a 2D section from a 3D cube and collapse that, using the given
+     * result if not null.
+     */
+    public void collapseSection( SpecData parent, SpecDims specDims,
+                                 int index, double[][] collapsed )
+        throws SplatException
+    {
+        //  Extract the section and collapse it onto the dispersion axis.
+        int[] dims = specDims.getSigDims();
         int picked = specDims.getSelectAxis( true );
-        indices[picked] = index;
-        
-        //  Extract 2D section.
-        Object[] res = extractImage( dims, strides, d, e, axis1, axis2, 
-                                     indices );
-        int[] sdims = new int[2];
-        dims[0] = dims[axis1];
-        dims[1] = dims[axis2];
-
-        //  Collapse onto the dispersion axis.
-        if ( dispax < collapsed ) {
-            collapse1( (double [])res[0], (double [])res[1], dims );
-        }
-        else {
-            collapse2( (double [])res[0], (double [])res[1], dims );
-        }
+        double[][] res = ( collapsed != null ) ? collapsed :
+            CubeProcessor.getInstance( parent, specDims )
+                         .collapse( method, picked, index );
+        data = res[0];
+        errors = res[1];
 
         //  Create the FrameSet for this data. Note +1 for AST axes.
         FrameSet frameSet = parent.getFrameSet();
-        dispax = specDims.getDispAxis( false );
+        int dispax = specDims.getDispAxis( false );
         astref = ASTJ.extract1DFrameSet( frameSet, dispax + 1 );
 
         //  Create a shortname that shows the original line position in world
@@ -209,216 +239,4 @@ public class CollapsedSpecDataImpl
         setDataUnits( parent.getAst().getRef().getC( "unit(2)" ) );
         setDataLabel( parent.getAst().getRef().getC( "label(2)" ) );
     }
-
-    /**
-     * Collapse a 2D data array, plus optional errors, onto its first
-     * dimension to create a 1D array plus errors. The new array and errors
-     * are set as the data values of this object.
-     *
-     * The combination uses a weighted mean.
-     */
-    protected void collapse1( double[] d, double[] e, int[] dims )
-    {
-        //  Use the given dimensions. These should exclude any redundant axes.
-        int dim1 = dims[0];
-        int dim2 = dims[1];
-
-        data = new double[dim1];
-        if ( e != null ) {
-            errors = new double[dim1];
-        }
-        else {
-            errors = null;
-        }
-        int[] count = new int[dim1];
-        double invar = 0.0;
-        int index = 0;
-
-        if ( e == null ) {
-            // No errors.
-            for ( int j = 0; j < dim2; j++ ) {
-                for ( int i = 0; i < dim1; i++ ) {
-
-                    index = dim1 * j + i;
-
-                    if ( d[index] != SpecData.BAD ) {
-                        data[i] += d[index];
-                        count[i]++;
-                    }
-                }
-            }
-            for ( int i = 0; i < dim1; i++ ) {
-                if ( count[i] > 0 ) {
-                    data[i] = data[i] / count[i];
-                }
-                else {
-                    data[i] = SpecData.BAD;
-                }
-            }
-        }
-        else {
-
-            for ( int j = 0; j < dim2; j++ ) {
-                for ( int i = 0; i < dim1; i++ ) {
-
-                    index = dim1 * j + i;
-
-                    if ( d[index] != SpecData.BAD && 
-                         e[index] != SpecData.BAD ) {
-                        invar = 1.0 / ( e[index] * e[index] );
-                        data[i] += d[index] * invar;
-                        errors[i] += invar;
-                        count[i]++;
-                    }
-                }
-            }
-            for ( int i = 0; i < dim1; i++ ) {
-                if ( count[i] > 0 && errors[i] != 0.0 ) {
-                    data[i] = data[i] / errors[i];
-                    errors[i] = Math.sqrt( 1.0 / errors[i] );
-                }
-                else {
-                    data[i] = SpecData.BAD;
-                    errors[i] = SpecData.BAD;
-                }
-            }
-        }
-    }
-
-    /**
-     * Collapse a 2D data array, plus optional errors, onto its second
-     * dimension to create a 1D array plus errors. The new array and errors
-     * are set as the data values of this object.
-     *
-     * The combination uses a weighted mean.
-     */
-    protected void collapse2( double[] d, double[] e, int[] dims )
-    {
-        //  Use the given dimensions. These should exclude any redundant axes.
-        int dim1 = dims[0];
-        int dim2 = dims[1];
-
-        data = new double[dim2];
-        if ( e != null ) {
-            errors = new double[dim2];
-        }
-        else {
-            errors = null;
-        }
-
-        double sum1 = 0.0;
-        double sum2 = 0.0;
-        double val = 0.0;
-        double invar = 0.0;
-        int index = 0;
-
-        if ( e == null ) {
-            //  No errors.
-            int ngood = 0;
-            for ( int j = 0; j < dim2; j++ ) {
-                sum1 = 0.0;
-                ngood = 0;
-                for ( int i = 0; i < dim1; i++ ) {
-
-                    //  Index into 1D vectorized arrays, note this will break
-                    //  at a 2Gb index (16Gb array).
-                    index = dim1 * j + i;
-
-                    if ( d[index] != SpecData.BAD ) {
-                        sum1 += d[index];
-                        ngood++;
-                    }
-                }
-                if ( ngood == 0 ) {
-                    data[j] = SpecData.BAD;
-                }
-                else {
-                    data[j] = sum1 / (double) ngood;
-                }
-            }
-        }
-        else {
-            //  have errors.
-            for ( int j = 0; j < dim2; j++ ) {
-                sum1 = 0.0;
-                sum2 = 0.0;
-                for ( int i = 0; i < dim1; i++ ) {
-
-                    index = dim1 * j + i;
-
-                    if ( d[index] != SpecData.BAD && 
-                         e[index] != SpecData.BAD ) {
-                        val = d[index];
-                        invar = 1.0 / ( e[index] * e[index] );
-                        sum1 += invar;
-                        sum2 += val * invar;
-                    }
-                }
-                if ( sum1 == 0.0 ) {
-                    data[j] = SpecData.BAD;
-                    errors[j] = SpecData.BAD;
-                }
-                else {
-                    data[j] = sum2 / sum1;
-                    errors[j] = Math.sqrt( 1.0 / sum1 );
-                }
-            }
-        }
-    }
-
-    /**
-     * Extract a 2D section of data, plus optional errors from
-     * a cube of data.
-     */
-    protected Object[] extractImage( int[] dims, int[] strides, double[] d, 
-                                     double[] e, int axis1, int axis2, 
-                                     int[] indices )
-    {
-        Object[] results = new Object[2];
-
-        //  Allocate arrays for extracted data.
-        int size = dims[axis1] * dims[axis2];
-        double[] data = new double[size];
-        double[] errors = null;
-        if ( e != null ) {
-            errors = new double[size];
-        }
-        results[0] = data;
-        results[1] = errors;
-
-        //  Extract data.
-        int offset;
-        if ( e == null ) {
-            int k = 0;
-            for ( int i = 0; i < dims[axis2]; i++ ) {
-                indices[axis2] = i;
-                for ( int j = 0; j < dims[axis1]; j++ ) {
-                    indices[axis1] = j;
-                    offset = 0;
-                    for ( int l = 0; l < indices.length; l++ ) {
-                        offset += strides[l] * indices[l];
-                    }
-                    data[k] = d[offset];
-                    k++;
-                }
-            }
-        }
-        else {
-            int k = 0;
-            for ( int i = 0; i < dims[axis2]; i++ ) {
-                indices[axis2] = i;
-                for ( int j = 0; j < dims[axis1]; j++ ) {
-                    indices[axis1] = j;
-                    offset = 0;
-                    for ( int l = 0; l < indices.length; l++ ) {
-                        offset += strides[l] * indices[l];
-                    }
-                    data[k] = d[offset];
-                    errors[k] = e[offset];
-                    k++;
-                }
-            }
-        }
-        return results;
-    }
 }
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2026 Science and Technology Facilities Council
+ */
+package uk.ac.starlink.splat.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uk.ac.starlink.splat.util.SplatException;
+
+/**
+ * Extracts spectra from, and collapses, the vectorised data of a 2D
+ * or 3D SpecData along its dispersion axis. This is the engine used by
+ * {@link ExtractedSpecDataImpl} and {@link CollapsedSpecDataImpl}.
+ * <p>
+ * Bulk operations, extracting every spectrum or collapsing every section
+ * of a cube, are divided into tasks that run concurrently. Extraction
+ * tasks each work through a contiguous block of the data in memory order,
+ * so every value is read once, sequentially, whichever axis is the
+ * dispersion axis. Results are cached, up to a fixed number of values, so
+ * that revisiting a spectrum does not need the data to be read again.
+ * Spectra from a bulk extraction that do not fit in the cache are held
+ * until they are first requested.
+ * <p>
+ * Instances are shared for each SpecData, see {@link #getInstance}.
+ * Spectra and collapses are returned as an array of two arrays, the
+ * data values and the data errors (null if the SpecData has no errors).
+ * These are copies which the caller may modify.
+ *
+ * @version $Id$
+ * @see SpecDims
+ */
+public class CubeProcessor
+{
+    /**
+     * Collapse using a weighted mean, or a plain mean if there are no
+     * errors. This is the default.
+     */
+    public static final int WEIGHTED_MEAN = 0;
+
+    /** Collapse using the mean. */
+    public static final int MEAN = 1;
+
+    /** Collapse using the sum. */
+    public static final int SUM = 2;
+
+    /** Collapse using the median. */
+    public static final int MEDIAN = 3;
+
+    /** Default maximum number of data values held in the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /** Maximum number of data values held in each cache. */
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+
+    /** Shared instances. */
+    private static Map<SpecData,CubeProcessor> instances =
+        new WeakHashMap<SpecData,CubeProcessor>();
+
+    /** Number of threads used for bulk operations. */
+    private static int nthread = Runtime.getRuntime().availableProcessors();
+
+    private final double[] data;
+    private final double[] errors;
+    private final int[] dims;
+    private final int[] strides;
+    private final int dispax;
+    private final int spaxax1;
+    private final int spaxax2;
+
+    /** Cache of results, least recently used first. */
+    private final Map<Object,double[][]> cache;
+    private long ncached = 0;
+
+    /** Spectra extracted by extractAll that have not been requested yet. */
+    private final Map<Integer,double[][]> extracted =
+        new HashMap<Integer,double[][]>();
+
+    /**
+     * Constructor.
+     *
+     * @param data the vectorised data values
+     * @param errors the vectorised data errors, null if none
+     * @param sigDims the significant dimensions of the data, 2 or 3 of
+     *                them, see {@link SpecDims#getSigDims}
+     * @param dispax the dispersion axis, as an index into sigDims
+     */
+    public CubeProcessor( double[] data, double[] errors, int[] sigDims,
+                          int dispax )
+        throws SplatException
+    {
+        if ( sigDims.length < 2 || sigDims.length > 3 ) {
+            throw new SplatException( "Can only process 2D and 3D data" );
+        }
+        this.data = data;
+        this.errors = errors;
+        this.dispax = dispax;
+
+        //  Work with 3 dimensions, a 2D image being a cube with a
+        //  redundant last axis.
+        dims = new int[] { 1, 1, 1 };
+        System.arraycopy( sigDims, 0, dims, 0, sigDims.length );
+        strides = new int[] { 1, dims[0], dims[0] * dims[1] };
+
+        //  The axes identifying each spectrum.
+        spaxax1 = ( dispax == 0 ) ? 1 : 0;
+        spaxax2 = ( dispax == 2 ) ? 1 : 2;
+
+        cache = new LinkedHashMap<Object,double[][]>( 16, 0.75f, true );
+    }
+
+    /**
+     * Get the processor for a SpecData, creating it if necessary. A new
+     * processor is created if the data values, errors or dispersion axis
+     * have changed since the last one was created.
+     *
+     * @param specData the 2D or 3D SpecData
+     * @param specDims the dimensionality of specData, with the dispersion
+     *                 axis chosen
+     */
+    public static synchronized CubeProcessor getInstance( SpecData specData,
+                                                          SpecDims specDims )
+        throws SplatException
+    {
+        int dispax = specDims.getDispAxis( true );
+        CubeProcessor processor = instances.get( specData );
+        if ( processor == null ||
+             processor.data != specData.getYData() ||
+             processor.errors != specData.getYDataErrors() ||
+             processor.dispax != dispax ) {
+            processor = new CubeProcessor( specData.getYData(),
+                                           specData.getYDataErrors(),
+                                           specDims.getSigDims(), dispax );
+            instances.put( specData, processor );
+        }
+        return processor;
+    }
+
+    /**
+     * Set the maximum number of data values held in the cache of each
+     * processor.
+     */
+    public static void setCacheSize( int size )
+    {
+        cacheSize = size;
+    }
+
+    /**
+     * Get the maximum number of data values held in the cache of each
+     * processor.
+     */
+    public static int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    /**
+     * Set the number of threads used for bulk operations. The default is
+     * the number of available processors.
+     */
+    public static void setThreadCount( int n )
+    {
+        nthread = Math.max( 1, n );
+    }
+
+    /**
+     * Get the number of threads used for bulk operations.
+     */
+    public static int getThreadCount()
+    {
+        return nthread;
+    }
+
+    /**
+     * Extract the spectrum at a position.
+     *
+     * @param indices the position, indexed by significant axis. The value
+     *                for the dispersion axis is ignored.
+     * @return the data and errors of the spectrum
+     */
+    public double[][] getSpectrum( int[] indices )
+    {
+        int base = 0;
+        for ( int i = 0; i < indices.length; i++ ) {
+            if ( i != dispax ) {
+                base += strides[i] * indices[i];
+            }
+        }
+        Integer key = new Integer( base );
+        double[][] result;
+        synchronized ( cache ) {
+            result = cache.get( key );
+            if ( result == null ) {
+                result = extracted.remove( key );
+                if ( result != null ) {
+                    cachePut( key, result );
+                }
+            }
+        }
+        if ( result == null ) {
+            int n = dims[dispax];
+            int stride = strides[dispax];
+            double[] d = new double[n];
+            double[] e = ( errors == null ) ? null : new double[n];
+            for ( int k = 0, offset = base; k < n; k++, offset += stride ) {
+                d[k] = data[offset];
+                if ( e != null ) {
+                    e[k] = errors[offset];
+                }
+            }
+            result = new double[][] { d, e };
+            cachePut( key, result );
+        }
+        return copy( result );
+    }
+
+    /**
+     * Extract all the spectra in parallel, so that later requests for
+     * them using {@link #getSpectrum} do not need to read the data again.
+     * As many spectra as fit are cached, the rest are held until they are
+     * requested, so callers should go on to request every spectrum.
+     */
+    public void extractAll()
+        throws SplatException
+    {
+        final int n1 = dims[spaxax1];
+        final int n2 = dims[spaxax2];
+        final int ndisp = dims[dispax];
+
+        //  Allocate the spectra and work out where each axis index takes
+        //  us, in terms of spectrum number and position in a spectrum.
+        final double[][] d = new double[n1*n2][ndisp];
+        final double[][] e =
+            ( errors == null ) ? null : new double[n1*n2][ndisp];
+        final int[] kmul = new int[3];
+        final int[] smul = new int[3];
+        kmul[dispax] = 1;
+        smul[spaxax1] = 1;
+        smul[spaxax2] = n1;
+
+        //  Each task takes a contiguous range of rows, that is lines along
+        //  the fastest varying axis.
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        final int nrow = dims[1] * dims[2];
+        int ntask = Math.min( nthread, nrow );
+        for ( int it = 0; it < ntask; it++ ) {
+            final int lo = (int) ( (long) nrow * it / ntask );
+            final int hi = (int) ( (long) nrow * ( it + 1 ) / ntask );
+            tasks.add( new Callable<Object>() {
+                public Object call()
+                {
+                    int offset = lo * dims[0];
+                    for ( int row = lo; row < hi; row++ ) {
+                        int i1 = row % dims[1];
+                        int i2 = row / dims[1];
+                        int k = i2 * kmul[2] + i1 * kmul[1];
+                        int s = i2 * smul[2] + i1 * smul[1];
+                        for ( int i0 = 0; i0 < dims[0]; i0++ ) {
+                            int kk = k + i0 * kmul[0];
+                            int ss = s + i0 * smul[0];
+                            d[ss][kk] = data[offset];
+                            if ( e != null ) {
+                                e[ss][kk] = errors[offset];
+                            }
+                            offset++;
+                        }
+                    }
+                    return null;
+                }
+            } );
+        }
+        runTasks( tasks );
+
+        //  Cache the spectra while there is room, and keep the rest for
+        //  getSpectrum.
+        long room;
+        synchronized ( cache ) {
+            room = cacheSize - ncached;
+        }
+        int[] indices = new int[3];
+        for ( int i2 = 0; i2 < n2; i2++ ) {
+            indices[spaxax2] = i2;
+            for ( int i1 = 0; i1 < n1; i1++ ) {
+                indices[spaxax1] = i1;
+                int base = indices[0] * strides[0] +
+                           indices[1] * strides[1] +
+                           indices[2] * strides[2];
+                int s = i1 + n1 * i2;
+                double[][] spectrum =
+                    new double[][] { d[s], ( e == null ) ? null : e[s] };
+                room -= size( spectrum );
+                if ( room >= 0 ) {
+                    cachePut( new Integer( base ), spectrum );
+                }
+                else {
+                    synchronized ( cache ) {
+                        extracted.put( new Integer( base ), spectrum );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collapse 2D data onto the dispersion axis.
+     *
+     * @param method the combination method, WEIGHTED_MEAN, MEAN, SUM or
+     *               MEDIAN
+     * @return the data and errors of the collapsed spectrum
+     */
+    public double[][] collapse( int method )
+    {
+        return collapse( method, 2, 0 );
+    }
+
+    /**
+     * Collapse a 2D section of a cube onto the dispersion axis. The section
+     * is picked out by an index along a select axis, and collapsed along
+     * the remaining axis.
+     *
+     * @param method the combination method, WEIGHTED_MEAN, MEAN, SUM or
+     *               MEDIAN
+     * @param selectax the significant axis the section is picked along,
+     *                 not the dispersion axis
+     * @param index the index of the section along selectax
+     * @return the data and errors of the collapsed spectrum
+     */
+    public double[][] collapse( int method, int selectax, int index )
+    {
+        String key = "collapse:" + method + ":" + selectax + ":" + index;
+        double[][] result;
+        synchronized ( cache ) {
+            result = cache.get( key );
+        }
+        if ( result == null ) {
+            result = doCollapse( method, selectax, index );
+            cachePut( key, result );
+        }
+        return copy( result );
+    }
+
+    /**
+     * Collapse all the 2D sections of a cube onto the dispersion axis, in
+     * parallel. This is equivalent to calling {@link #collapse(int,int,int)}
+     * for each index along the select axis.
+     *
+     * @param method the combination method, WEIGHTED_MEAN, MEAN, SUM or
+     *               MEDIAN
+     * @param selectax the significant axis to step along
+     * @return the data and errors of each collapsed spectrum
+     */
+    public double[][][] collapseAll( final int method, final int selectax )
+        throws SplatException
+    {
+        final double[][][] results = new double[dims[selectax]][][];
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int ntask = Math.min( nthread, results.length );
+        for ( int it = 0; it < ntask; it++ ) {
+            final int lo = (int) ( (long) results.length * it / ntask );
+            final int hi = (int) ( (long) results.length * ( it + 1 ) / ntask );
+            tasks.add( new Callable<Object>() {
+                public Object call()
+                {
+                    for ( int i = lo; i < hi; i++ ) {
+                        results[i] = collapse( method, selectax, i );
+                    }
+                    return null;
+                }
+            } );
+        }
+        runTasks( tasks );
+        return results;
+    }
+
+    /**
+     * Perform a collapse.
+     */
+    private double[][] doCollapse( int method, int selectax, int index )
+    {
+        int collax = 3 - dispax - selectax;
+        int ndisp = dims[dispax];
+        int ncoll = dims[collax];
+        int dstride = strides[dispax];
+        int cstride = strides[collax];
+        int base = strides[selectax] * index;
+
+        double[] d = new double[ndisp];
+        double[] e = ( errors == null ) ? null : new double[ndisp];
+        if ( method == WEIGHTED_MEAN && errors == null ) {
+            method = MEAN;
+        }
+
+        if ( method == MEDIAN ) {
+            double[] values = new double[ncoll];
+            for ( int k = 0; k < ndisp; k++ ) {
+                int n = 0;
+                double sumvar = 0.0;
+                int offset = base + k * dstride;
+                for ( int j = 0; j < ncoll; j++, offset += cstride ) {
+                    if ( isGood( offset ) ) {
+                        values[n++] = data[offset];
+                        if ( e != null ) {
+                            sumvar += errors[offset] * errors[offset];
+                        }
+                    }
+                }
+                if ( n == 0 ) {
+                    d[k] = SpecData.BAD;
+                    if ( e != null ) {
+                        e[k] = SpecData.BAD;
+                    }
+                }
+                else {
+                    Arrays.sort( values, 0, n );
+                    d[k] = ( n % 2 == 1 )
+                         ? values[n/2]
+                         : 0.5 * ( values[n/2-1] + values[n/2] );
+                    if ( e != null ) {
+                        //  Standard error of the median, for normally
+                        //  distributed values.
+                        e[k] = Math.sqrt( 0.5 * Math.PI * sumvar ) / n;
+                    }
+                }
+            }
+        }
+        else {
+            //  Accumulate sums, stepping along the dispersion axis inside
+            //  the collapse axis.
+            double[] sum = new double[ndisp];
+            double[] sumw = new double[ndisp];
+            int[] count = new int[ndisp];
+            for ( int j = 0; j < ncoll; j++ ) {
+                int offset = base + j * cstride;
+                for ( int k = 0; k < ndisp; k++, offset += dstride ) {
+                    if ( isGood( offset ) ) {
+                        count[k]++;
+                        if ( method == WEIGHTED_MEAN ) {
+                            double invar =
+                                1.0 / ( errors[offset] * errors[offset] );
+                            sum[k] += data[offset] * invar;
+                            sumw[k] += invar;
+                        }
+                        else {
+                            sum[k] += data[offset];
+                            if ( e != null ) {
+                                sumw[k] += errors[offset] * errors[offset];
+                            }
+                        }
+                    }
+                }
+            }
+            for ( int k = 0; k < ndisp; k++ ) {
+                if ( count[k] == 0 ||
+                     ( method == WEIGHTED_MEAN && sumw[k] == 0.0 ) ) {
+                    d[k] = SpecData.BAD;
+                    if ( e != null ) {
+                        e[k] = SpecData.BAD;
+                    }
+                }
+                else if ( method == WEIGHTED_MEAN ) {
+                    d[k] = sum[k] / sumw[k];
+                    e[k] = Math.sqrt( 1.0 / sumw[k] );
+                }
+                else if ( method == SUM ) {
+                    d[k] = sum[k];
+                    if ( e != null ) {
+                        e[k] = Math.sqrt( sumw[k] );
+                    }
+                }
+                else {
+                    d[k] = sum[k] / count[k];
+                    if ( e != null ) {
+                        e[k] = Math.sqrt( sumw[k] ) / count[k];
+                    }
+                }
+            }
+        }
+        return new double[][] { d, e };
+    }
+
+    /**
+     * Whether the value, and error if any, at an offset are good.
+     */
+    private boolean isGood( int offset )
+    {
+        return data[offset] != SpecData.BAD &&
+               ( errors == null || errors[offset] != SpecData.BAD );
+    }
+
+    /**
+     * Add a result to the cache, then discard the least recently used
+     * results until the cache is within its size limit. The new result
+     * is always kept.
+     */
+    private void cachePut( Object key, double[][] value )
+    {
+        synchronized ( cache ) {
+            double[][] old = cache.put( key, value );
+            if ( old != null ) {
+                ncached -= size( old );
+            }
+            ncached += size( value );
+            Iterator<double[][]> it = cache.values().iterator();
+            while ( ncached > cacheSize && cache.size() > 1 ) {
+                ncached -= size( it.next() );
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of data values held in the cache.
+     */
+    long getCachedCount()
+    {
+        synchronized ( cache ) {
+            return ncached;
+        }
+    }
+
+    /**
+     * Number of values in a result.
+     */
+    private static int size( double[][] value )
+    {
+        return value[0].length + ( value[1] == null ? 0 : value[1].length );
+    }
+
+    /**
+     * Copy a result.
+     */
+    private static double[][] copy( double[][] value )
+    {
+        return new double[][] { value[0].clone(),
+                                ( value[1] == null ) ? null
+                                                     : value[1].clone() };
+    }
+
+    /**
+     * Run tasks concurrently, waiting for them all to complete.
+     */
+    private static void runTasks( List<Callable<Object>> tasks )
+        throws SplatException
+    {
+        if ( tasks.size() == 1 ) {
+            try {
+                tasks.get( 0 ).call();
+            }
+            catch ( Exception e ) {
+                throw new SplatException( e );
+            }
+            return;
+        }
+        ExecutorService executor =
+            Executors.newFixedThreadPool( tasks.size(), new ThreadFactory() {
+                private int ithread;
+                public synchronized Thread newThread( Runnable r )
+                {
+                    Thread th = new Thread( r, "Cube worker " + ++ithread );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        try {
+            List<Future<Object>> futures = executor.invokeAll( tasks );
+            for ( Future<Object> future : futures ) {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e ) {
+            throw new SplatException( "Interrupted", e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable err = e.getCause();
+            if ( err instanceof RuntimeException ) {
+                throw (RuntimeException) err;
+            }
+            else if ( err instanceof Error ) {
+                throw (Error) err;
+            }
+            throw new SplatException( err );
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -7,7 +7,6 @@
  */
 package uk.ac.starlink.splat.data;
 
-import java.io.IOException;
 import java.util.Arrays;
 
 import uk.ac.starlink.splat.ast.ASTJ;
@@ -152,14 +151,13 @@ public class ExtractedSpecDataImpl
         //  Define position of the extraction (index is along select axis).
         int selectaxis = specDims.getSelectAxis( false );
         int[] indices = new int[2];
-        indices[dispax] = 0;
-        indices[selectaxis] = index;
+        indices[specDims.getSelectAxis( true )] = index;
 
         //  Extract the spectrum.
-        int[] strides = specDims.getStrides( false );
-        double[] d = parent.getYData();
-        double[] e = parent.getYDataErrors();
-        extractSpectrum( dims, strides, d, e, dispax, indices );
+        CubeProcessor processor = CubeProcessor.getInstance( parent, specDims );
+        double[][] res = processor.getSpectrum( indices );
+        data = res[0];
+        errors = res[1];
 
         //  Create the FrameSet for this data. Note +1 for AST axes.
         FrameSet frameSet = parent.getFrameSet();
@@ -215,15 +213,14 @@ public class ExtractedSpecDataImpl
         int selectaxis = specDims.getSelectAxis( false );
         int freeaxis = specDims.getFreeAxis( false );
         int[] indices = new int[3];
-        indices[dispax] = 0;
-        indices[selectaxis] = index1;
-        indices[freeaxis] = index2;
+        indices[specDims.getSelectAxis( true )] = index1;
+        indices[specDims.getFreeAxis( true )] = index2;
 
         //  Extract the spectrum.
-        int[] strides = specDims.getStrides( false );
-        double[] d = parent.getYData();
-        double[] e = parent.getYDataErrors();
-        extractSpectrum( dims, strides, d, e, dispax, indices );
+        CubeProcessor processor = CubeProcessor.getInstance( parent, specDims );
+        double[][] res = processor.getSpectrum( indices );
+        data = res[0];
+        errors = res[1];
 
         //  Create the FrameSet for this data. Note +1 for AST axes.
         FrameSet frameSet = parent.getFrameSet();
@@ -279,49 +276,4 @@ public class ExtractedSpecDataImpl
         setDataUnits( parent.getAst().getRef().getC( "unit(2)" ) );
         setDataLabel( parent.getAst().getRef().getC( "label(2)" ) );
     }
-
-    /**
-     * Extract a line of data, plus optional errors from along a given axis,
-     * at the position defined by the values of indices for the other
-     * dimensions. The new array and errors are set as the data values of this
-     * object.
-     */
-    protected void extractSpectrum( int[] dims, int[] strides,
-                                    double[] d, double[] e,
-                                    int axis, int[] indices )
-    {
-        //  Allocate arrays for extracted data.
-        data = new double[dims[axis]];
-        if ( e != null ) {
-            errors = new double[dims[axis]];
-        }
-        else {
-            errors = null;
-        }
-
-        //  Extract data.
-        int offset;
-        if ( e == null ) {
-            for ( int i = 0; i < data.length; i++ ) {
-                offset = 0;
-                indices[axis] = i;
-                for ( int j = 0; j < indices.length; j++ ) {
-                    offset += strides[j] * indices[j];
-                }
-                data[i] = d[offset];
-            }
-        }
-        else {
-            for ( int i = 0; i < data.length; i++ ) {
-                offset = 0;
-                indices[axis] = i;
-                for ( int j = 0; j < indices.length; j++ ) {
-                    offset += strides[j] * indices[j];
-                }
-                data[i] = d[offset];
-                errors[i] = e[offset];
-            }
-        }
-    }
 }
-
@@ -1481,6 +1481,28 @@ public class SpecDataFactory
     public final static int EXTRACT = 1;
     public final static int VECTORIZE = 2;
 
+    /** The combination method used when collapsing, see CubeProcessor. */
+    private int collapseMethod = CubeProcessor.WEIGHTED_MEAN;
+
+    /**
+     * Set the combination method used when a COLLAPSE reprocessing is
+     * performed. One of the constants defined by {@link CubeProcessor},
+     * the default is {@link CubeProcessor#WEIGHTED_MEAN}.
+     */
+    public void setCollapseMethod( int collapseMethod )
+    {
+        this.collapseMethod = collapseMethod;
+    }
+
+    /**
+     * Get the combination method used when a COLLAPSE reprocessing is
+     * performed.
+     */
+    public int getCollapseMethod()
+    {
+        return collapseMethod;
+    }
+
     /**
      * Process a SpecData object that isn't really 1D into other
      * representations of itself. There are several ways that this
@@ -1614,7 +1636,8 @@ public class SpecDataFactory
             //  Simple 2D data.
             results = new SpecData[1];
             SpecDataImpl newImpl =
-                new CollapsedSpecDataImpl( specData, specDims );
+                new CollapsedSpecDataImpl( specData, specDims, -1,
+                                           collapseMethod );
             results[0] = new SpecData( newImpl );
         }
         else {
@@ -1622,10 +1645,18 @@ public class SpecDataFactory
             //  turn onto the dispersion axis.
             int stepaxis = specDims.getSelectAxis( true );
             int displen = specDims.getSigDims()[stepaxis];
+
+            //  Do the collapses in parallel first. The FrameSets are
+            //  created sequentially, AST is not thread-safe.
+            double[][][] collapsed =
+                CubeProcessor.getInstance( specData, specDims )
+                    .collapseAll( collapseMethod, stepaxis );
             results = new SpecData[displen];
             for ( int i = 0; i < displen; i++ ) {
                 SpecDataImpl newImpl =
-                    new CollapsedSpecDataImpl( specData, specDims, i );
+                    new CollapsedSpecDataImpl( specData, specDims, i,
+                                               collapseMethod,
+                                               collapsed[i] );
                 results[i] = new SpecData( newImpl );
             }
         }
@@ -1643,6 +1674,11 @@ public class SpecDataFactory
         int dispax = specDims.getDispAxis( true );
         int[] dims = specDims.getSigDims();
 
+        //  Extract all the spectra in parallel first, these are held by
+        //  the processor until requested. The FrameSets are created
+        //  sequentially, AST is not thread-safe.
+        CubeProcessor.getInstance( specData, specDims ).extractAll();
+
         if ( dims.length == 2 ) {
             //  Simple 2D data.
             if ( dispax == 1 ) {
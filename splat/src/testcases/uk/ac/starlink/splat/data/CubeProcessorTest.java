@@ -0,0 +1,265 @@
+package uk.ac.starlink.splat.data;
+
+import java.util.Random;
+
+import uk.ac.starlink.util.TestCase;
+
+public class CubeProcessorTest
+    extends TestCase
+{
+    private static final double BAD = SpecData.BAD;
+    private static final int[] METHODS = new int[] {
+        CubeProcessor.WEIGHTED_MEAN, CubeProcessor.MEAN,
+        CubeProcessor.SUM, CubeProcessor.MEDIAN,
+    };
+
+    private int cacheSize;
+    private int nthread;
+
+    public CubeProcessorTest( String name )
+    {
+        super( name );
+    }
+
+    protected void setUp()
+    {
+        cacheSize = CubeProcessor.getCacheSize();
+        nthread = CubeProcessor.getThreadCount();
+    }
+
+    protected void tearDown()
+    {
+        CubeProcessor.setCacheSize( cacheSize );
+        CubeProcessor.setThreadCount( nthread );
+    }
+
+    public void testCollapseMethods()
+        throws Exception
+    {
+        //  Dispersion along axis 0, collapse along axis 1.
+        int[] dims = new int[] { 2, 3 };
+        double[] data = new double[] { 1, 10,  2, 20,  6, 30 };
+        double[] errs = new double[] { 1, 1,   2, 1,   1, 2 };
+        CubeProcessor proc = new CubeProcessor( data, errs, dims, 0 );
+
+        double[][] res = proc.collapse( CubeProcessor.MEAN );
+        assertArrayEquals( new double[] { 3, 20 }, res[0], 1e-12 );
+        assertArrayEquals( new double[] { Math.sqrt( 6 ) / 3,
+                                          Math.sqrt( 6 ) / 3 },
+                           res[1], 1e-12 );
+
+        res = proc.collapse( CubeProcessor.SUM );
+        assertArrayEquals( new double[] { 9, 60 }, res[0], 1e-12 );
+        assertArrayEquals( new double[] { Math.sqrt( 6 ), Math.sqrt( 6 ) },
+                           res[1], 1e-12 );
+
+        res = proc.collapse( CubeProcessor.WEIGHTED_MEAN );
+        assertArrayEquals( new double[] { ( 1 + 0.5 + 6 ) / 2.25,
+                                          ( 10 + 20 + 7.5 ) / 2.25 },
+                           res[0], 1e-12 );
+        assertArrayEquals( new double[] { Math.sqrt( 1 / 2.25 ),
+                                          Math.sqrt( 1 / 2.25 ) },
+                           res[1], 1e-12 );
+
+        res = proc.collapse( CubeProcessor.MEDIAN );
+        assertArrayEquals( new double[] { 2, 20 }, res[0], 1e-12 );
+        assertArrayEquals( new double[] { Math.sqrt( 0.5 * Math.PI * 6 ) / 3,
+                                          Math.sqrt( 0.5 * Math.PI * 6 ) / 3 },
+                           res[1], 1e-12 );
+
+        //  Without errors a weighted mean is a plain mean.
+        proc = new CubeProcessor( data, null, dims, 0 );
+        for ( int method : METHODS ) {
+            assertNull( proc.collapse( method )[1] );
+        }
+        assertArrayEquals( new double[] { 3, 20 },
+                           proc.collapse( CubeProcessor.WEIGHTED_MEAN )[0],
+                           1e-12 );
+
+        //  Dispersion along axis 1, collapse along axis 0.
+        proc = new CubeProcessor( data, null, dims, 1 );
+        assertArrayEquals( new double[] { 11, 22, 36 },
+                           proc.collapse( CubeProcessor.SUM )[0], 1e-12 );
+        assertArrayEquals( new double[] { 5.5, 11, 18 },
+                           proc.collapse( CubeProcessor.MEDIAN )[0], 1e-12 );
+    }
+
+    public void testBad()
+        throws Exception
+    {
+        //  The first dispersion position has a bad value and a bad
+        //  error, the second has no good values.
+        int[] dims = new int[] { 2, 3 };
+        double[] data = new double[] { BAD, BAD,  2, BAD,  6, BAD };
+        double[] errs = new double[] { 1, 1,      2, 1,   BAD, 2 };
+        CubeProcessor proc = new CubeProcessor( data, errs, dims, 0 );
+        for ( int method : METHODS ) {
+            double[][] res = proc.collapse( method );
+            assertEquals( 2.0, res[0][0] );
+            assertEquals( method == CubeProcessor.MEDIAN
+                          ? Math.sqrt( 2 * Math.PI ) : 2.0,
+                          res[1][0], 1e-12 );
+            assertEquals( BAD, res[0][1] );
+            assertEquals( BAD, res[1][1] );
+        }
+        proc = new CubeProcessor( data, null, dims, 0 );
+        assertArrayEquals( new double[] { 4, BAD },
+                           proc.collapse( CubeProcessor.MEAN )[0] );
+        assertArrayEquals( new double[] { 8, BAD },
+                           proc.collapse( CubeProcessor.SUM )[0] );
+        assertArrayEquals( new double[] { 4, BAD },
+                           proc.collapse( CubeProcessor.MEDIAN )[0] );
+    }
+
+    public void testCollapseAll()
+        throws Exception
+    {
+        int[] dims = new int[] { 5, 4, 7 };
+        double[][] cube = createCube( dims, 1L );
+        CubeProcessor.setThreadCount( 3 );
+        for ( int dispax = 0; dispax < 3; dispax++ ) {
+            for ( int selectax = 0; selectax < 3; selectax++ ) {
+                if ( selectax == dispax ) {
+                    continue;
+                }
+                for ( int method : METHODS ) {
+                    double[][][] all =
+                        new CubeProcessor( cube[0], cube[1], dims, dispax )
+                       .collapseAll( method, selectax );
+                    CubeProcessor proc =
+                        new CubeProcessor( cube[0], cube[1], dims, dispax );
+                    assertEquals( dims[selectax], all.length );
+                    for ( int i = 0; i < all.length; i++ ) {
+                        double[][] res = proc.collapse( method, selectax, i );
+                        assertArrayEquals( res[0], all[i][0] );
+                        assertArrayEquals( res[1], all[i][1] );
+                    }
+                }
+            }
+        }
+    }
+
+    public void testExtract()
+        throws Exception
+    {
+        CubeProcessor.setThreadCount( 3 );
+        int[][] dimsList = new int[][] { { 5, 4, 7 }, { 6, 9 } };
+        for ( int[] dims : dimsList ) {
+            double[][] cube = createCube( dims, 2L );
+            for ( int dispax = 0; dispax < dims.length; dispax++ ) {
+
+                //  Use a cache too small for all the spectra, so that
+                //  some are held back by extractAll.
+                CubeProcessor.setCacheSize( 40 );
+                CubeProcessor proc1 =
+                    new CubeProcessor( cube[0], cube[1], dims, dispax );
+                CubeProcessor proc2 =
+                    new CubeProcessor( cube[0], cube[1], dims, dispax );
+                proc2.extractAll();
+                int n = 1;
+                for ( int i = 0; i < dims.length; i++ ) {
+                    n *= dims[i];
+                }
+                for ( int ip = 0; ip < n; ip += dims[dispax] ) {
+                    int[] indices = spectrumIndices( dims, dispax,
+                                                     ip / dims[dispax] );
+                    double[][] expected =
+                        getSpectrum( cube, dims, dispax, indices );
+                    double[][] s1 = proc1.getSpectrum( indices );
+                    double[][] s2 = proc2.getSpectrum( indices );
+                    assertArrayEquals( expected[0], s1[0] );
+                    assertArrayEquals( expected[1], s1[1] );
+                    assertArrayEquals( expected[0], s2[0] );
+                    assertArrayEquals( expected[1], s2[1] );
+                    assertTrue( proc1.getCachedCount() <= 40 );
+                    assertTrue( proc2.getCachedCount() <= 40 );
+                }
+            }
+        }
+    }
+
+    public void testCacheLimit()
+        throws Exception
+    {
+        int[] dims = new int[] { 4, 3, 5 };
+        double[][] cube = createCube( dims, 3L );
+        CubeProcessor.setCacheSize( 40 );
+        CubeProcessor proc = new CubeProcessor( cube[0], cube[1], dims, 0 );
+        for ( int i = 0; i < 5; i++ ) {
+            proc.getSpectrum( new int[] { 0, i % 3, i / 3 } );
+        }
+        assertEquals( 40, proc.getCachedCount() );
+
+        //  A smaller limit discards as many results as needed.
+        CubeProcessor.setCacheSize( 16 );
+        proc.getSpectrum( new int[] { 0, 2, 4 } );
+        assertEquals( 16, proc.getCachedCount() );
+
+        //  A result larger than the limit is still kept.
+        CubeProcessor.setCacheSize( 4 );
+        proc.getSpectrum( new int[] { 0, 1, 4 } );
+        assertEquals( 8, proc.getCachedCount() );
+    }
+
+    /**
+     * Create vectorised data and errors with a few BAD values.
+     */
+    private static double[][] createCube( int[] dims, long seed )
+    {
+        int n = 1;
+        for ( int i = 0; i < dims.length; i++ ) {
+            n *= dims[i];
+        }
+        Random rnd = new Random( seed );
+        double[] data = new double[n];
+        double[] errs = new double[n];
+        for ( int i = 0; i < n; i++ ) {
+            data[i] = rnd.nextInt( 1000 ) * 0.25;
+            errs[i] = 0.5 + rnd.nextInt( 8 ) * 0.25;
+            if ( rnd.nextInt( 10 ) == 0 ) {
+                data[i] = BAD;
+            }
+        }
+        return new double[][] { data, errs };
+    }
+
+    /**
+     * Get the position of the i'th spectrum, stepping through the
+     * non-dispersion axes fastest first.
+     */
+    private static int[] spectrumIndices( int[] dims, int dispax, int is )
+    {
+        int[] indices = new int[dims.length];
+        for ( int i = 0; i < dims.length; i++ ) {
+            if ( i != dispax ) {
+                indices[i] = is % dims[i];
+                is /= dims[i];
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Extract a spectrum directly.
+     */
+    private static double[][] getSpectrum( double[][] cube, int[] dims,
+                                           int dispax, int[] indices )
+    {
+        int ndisp = dims[dispax];
+        double[][] spec = new double[][] { new double[ndisp],
+                                           new double[ndisp] };
+        int[] pos = indices.clone();
+        for ( int k = 0; k < ndisp; k++ ) {
+            pos[dispax] = k;
+            int offset = 0;
+            int stride = 1;
+            for ( int i = 0; i < dims.length; i++ ) {
+                offset += pos[i] * stride;
+                stride *= dims[i];
+            }
+            spec[0][k] = cube[0][offset];
+            spec[1][k] = cube[1][offset];
+        }
+        return spec;
+    }
+}
@@ -0,0 +1,297 @@
+package uk.ac.starlink.table;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wrapper table whose row sequences read the base table's rows in a
+ * separate thread, passing them to the consumer through a bounded
+ * queue of row blocks.
+ * This allows the work of producing rows (decoding input, evaluating
+ * filter expressions, ...) to go on concurrently with the work of
+ * consuming them (for instance serializing output).
+ * Several instances may be chained to form a multi-stage pipeline,
+ * in which each stage runs in its own thread.
+ *
+ * <p>Random access, if supported by the base table, is not affected;
+ * only sequential access is pipelined.
+ * Rows are copied as they are read, so base sequences which reuse
+ * their row arrays are not a problem.
+ *
+ * <p>When each row sequence is closed or exhausted, a report on its
+ * throughput is logged at INFO level.  This includes the time the
+ * producing thread spent waiting for space in the queue
+ * (indicating that downstream processing is the bottleneck)
+ * and the time the consuming thread spent waiting for rows
+ * (indicating that upstream processing is the bottleneck).
+ */
+public class PipelineStarTable extends WrapperStarTable {
+
+    private final String stageName_;
+    private final int blockSize_;
+    private final int queueBlocks_;
+    private volatile String report_;
+
+    /** Default number of rows in each queued block. */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    /** Default maximum number of blocks in the queue. */
+    public static final int DEFAULT_QUEUE_BLOCKS = 16;
+
+    private static final Object[][] END_BLOCK = new Object[ 0 ][];
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.table" );
+
+    /**
+     * Constructs a pipeline stage with default queue characteristics.
+     *
+     * @param  base  base table
+     * @param  stageName  name of this stage, used in thread names
+     *                    and reports
+     */
+    public PipelineStarTable( StarTable base, String stageName ) {
+        this( base, stageName, DEFAULT_BLOCK_SIZE, DEFAULT_QUEUE_BLOCKS );
+    }
+
+    /**
+     * Constructs a pipeline stage with custom queue characteristics.
+     *
+     * @param  base  base table
+     * @param  stageName  name of this stage, used in thread names
+     *                    and reports
+     * @param  blockSize  number of rows passed through the queue
+     *                    at a time
+     * @param  queueBlocks  maximum number of blocks buffered between
+     *                      producer and consumer
+     */
+    public PipelineStarTable( StarTable base, String stageName,
+                              int blockSize, int queueBlocks ) {
+        super( base );
+        if ( blockSize < 1 || queueBlocks < 1 ) {
+            throw new IllegalArgumentException( "Bad queue size" );
+        }
+        stageName_ = stageName;
+        blockSize_ = blockSize;
+        queueBlocks_ = queueBlocks;
+    }
+
+    /**
+     * Returns the name of this stage.
+     *
+     * @return  stage name
+     */
+    public String getStageName() {
+        return stageName_;
+    }
+
+    /**
+     * Returns the throughput report for the most recently completed
+     * row sequence.
+     *
+     * @return   human-readable report, or null if no sequence has completed
+     */
+    public String getReport() {
+        return report_;
+    }
+
+    public RowSequence getRowSequence() throws IOException {
+        PipelineRowSequence rseq =
+            new PipelineRowSequence( baseTable.getRowSequence() );
+        Thread producer = new Thread( rseq, "Pipeline " + stageName_ );
+        producer.setDaemon( true );
+        producer.start();
+        return rseq;
+    }
+
+    /**
+     * Formats a time in nanoseconds as seconds.
+     *
+     * @param  nanos  time in nanoseconds
+     * @return  formatted string
+     */
+    private static String formatSeconds( long nanos ) {
+        return Long.toString( nanos / 1000000000L ) + "."
+             + Long.toString( 1000L + ( nanos / 1000000L ) % 1000L )
+                   .substring( 1 )
+             + "s";
+    }
+
+    /**
+     * RowSequence which reads blocks of rows from a queue filled by
+     * a producer thread.  The run method of this object is the
+     * producer thread's work.
+     */
+    private class PipelineRowSequence implements RowSequence, Runnable {
+
+        private final RowSequence baseSeq_;
+        private final BlockingQueue<Object[][]> queue_;
+        private final long start_;
+        private volatile boolean closed_;
+        private volatile Throwable error_;
+        private volatile long putWait_;
+        private long takeWait_;
+        private long nrow_;
+        private Object[][] block_;
+        private int irow_;
+        private Object[] row_;
+        private boolean done_;
+
+        /**
+         * Constructor.
+         *
+         * @param  baseSeq  sequence supplying rows to the producer
+         */
+        PipelineRowSequence( RowSequence baseSeq ) {
+            baseSeq_ = baseSeq;
+            queue_ = new ArrayBlockingQueue<Object[][]>( queueBlocks_ );
+            start_ = System.nanoTime();
+        }
+
+        public void run() {
+            try {
+                Object[][] block = new Object[ blockSize_ ][];
+                int nr = 0;
+                while ( ! closed_ && baseSeq_.next() ) {
+                    block[ nr++ ] = (Object[]) baseSeq_.getRow().clone();
+                    if ( nr == blockSize_ ) {
+                        put( block );
+                        block = new Object[ blockSize_ ][];
+                        nr = 0;
+                    }
+                }
+                if ( nr > 0 ) {
+                    Object[][] lastBlock = new Object[ nr ][];
+                    System.arraycopy( block, 0, lastBlock, 0, nr );
+                    put( lastBlock );
+                }
+            }
+            catch ( Throwable e ) {
+                error_ = e;
+            }
+            finally {
+                try {
+                    baseSeq_.close();
+                }
+                catch ( IOException e ) {
+                    logger_.log( Level.WARNING,
+                                 "Error closing row sequence", e );
+                }
+                try {
+                    put( END_BLOCK );
+                }
+                catch ( InterruptedException e ) {
+                    if ( error_ == null ) {
+                        error_ = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a block to the queue, recording how long it takes.
+         * If the sequence is closed meanwhile, the block is discarded.
+         *
+         * @param  block  row block
+         */
+        private void put( Object[][] block ) throws InterruptedException {
+            long t0 = System.nanoTime();
+            while ( ! closed_ &&
+                    ! queue_.offer( block, 100, TimeUnit.MILLISECONDS ) ) {
+            }
+            putWait_ += System.nanoTime() - t0;
+        }
+
+        public boolean next() throws IOException {
+            if ( done_ ) {
+                return false;
+            }
+            if ( block_ == null || irow_ >= block_.length ) {
+                long t0 = System.nanoTime();
+                try {
+                    block_ = queue_.take();
+                }
+                catch ( InterruptedException e ) {
+                    throw (IOException)
+                          new IOException( "Thread interrupted" )
+                         .initCause( e );
+                }
+                takeWait_ += System.nanoTime() - t0;
+                irow_ = 0;
+                if ( block_ == END_BLOCK ) {
+                    done_ = true;
+                    row_ = null;
+                    report();
+                    Throwable error = error_;
+                    if ( error instanceof IOException ) {
+                        throw (IOException) error;
+                    }
+                    else if ( error != null ) {
+                        throw (IOException)
+                              new IOException( "Pipeline error in stage "
+                                             + stageName_ + ": " + error )
+                             .initCause( error );
+                    }
+                    return false;
+                }
+            }
+            row_ = block_[ irow_++ ];
+            nrow_++;
+            return true;
+        }
+
+        public Object getCell( int icol ) {
+            return getRow()[ icol ];
+        }
+
+        public Object[] getRow() {
+            if ( row_ == null ) {
+                throw new IllegalStateException( "No current row" );
+            }
+            return row_;
+        }
+
+        public void close() {
+            if ( ! closed_ ) {
+                closed_ = true;
+
+                queue_.clear();
+                if ( ! done_ ) {
+                    done_ = true;
+                    report();
+                }
+            }
+        }
+
+        /**
+         * Logs and stores a throughput report for this sequence.
+         */
+        private void report() {
+            long elapsed = System.nanoTime() - start_;
+            double secs = elapsed * 1e-9;
+            String rate = secs > 0
+                        ? Long.toString( Math.round( nrow_ / secs ) )
+                        : "?";
+            report_ = new StringBuffer()
+                .append( "Pipeline stage " )
+                .append( stageName_ )
+                .append( ": " )
+                .append( nrow_ )
+                .append( " rows in " )
+                .append( formatSeconds( elapsed ) )
+                .append( " (" )
+                .append( rate )
+                .append( " rows/s); " )
+                .append( "producer waited " )
+                .append( formatSeconds( putWait_ ) )
+                .append( " for space, consumer waited " )
+                .append( formatSeconds( takeWait_ ) )
+                .append( " for rows" )
+                .toString();
+            logger_.info( report_ );
+        }
+    }
+}
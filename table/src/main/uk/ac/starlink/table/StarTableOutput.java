@@ -87,6 +87,7 @@ public class StarTableOutput {
     private static Logger logger = Logger.getLogger( "uk.ac.starlink.table" );
 
     private StarTableWriter voWriter;
+    private boolean pipelined;
 
     /**
      * Special output handler name indicating automatic format selection.
@@ -219,6 +220,7 @@ public class StarTableOutput {
     public void writeStarTable( StarTable startab, String location,
                                 String format )
             throws TableFormatException, IOException {
+        startab = prepareTable( startab );
 
         /* Handle the JDBC case. */
         if ( location.startsWith( "jdbc:" ) ) {
@@ -253,6 +255,7 @@ public class StarTableOutput {
      */
     public void writeStarTable( StarTable startab, OutputStream out,
                                 StarTableWriter handler ) throws IOException {
+        startab = prepareTable( startab );
         try {
             if ( ! ( out instanceof BufferedOutputStream ) ) {
                 out = new BufferedOutputStream( out );
@@ -291,6 +294,7 @@ public class StarTableOutput {
     public void writeStarTables( StarTable[] tables, String location,
                                  String format )
             throws TableFormatException, IOException {
+        tables = prepareTables( tables );
         StarTableWriter handler = getHandler( format, location );
         if ( handler instanceof MultiStarTableWriter ) {
             ((MultiStarTableWriter) handler)
@@ -320,6 +324,7 @@ public class StarTableOutput {
     public void writeStarTables( StarTable[] tables, OutputStream out,
                                  MultiStarTableWriter handler )
             throws IOException {
+        tables = prepareTables( tables );
         try {
             if ( ! ( out instanceof BufferedOutputStream ) ) {
                 out = new BufferedOutputStream( out );
@@ -608,6 +613,61 @@ public class StarTableOutput {
         this.jdbcHandler = handler;
     }
 
+    /**
+     * Sets whether tables written by this object are pipelined.
+     * If true, rows are read from the table being written in a separate
+     * thread from the one which serializes them, so that reading
+     * (and any processing implied by the table) and writing go on
+     * concurrently.  This is only likely to be beneficial on
+     * multi-core machines, and for tables whose rows are expensive to
+     * acquire.  Per-stage throughput reports are logged at INFO level.
+     * The default is false.
+     *
+     * @param  pipelined  whether to pipeline table output
+     * @see   PipelineStarTable
+     */
+    public void setPipelined( boolean pipelined ) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Indicates whether tables written by this object are pipelined.
+     *
+     * @return  true iff table reading is done in a separate thread
+     *          from table writing
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Prepares a table for output, taking account of the pipelining
+     * setting.
+     *
+     * @param  table  input table
+     * @return  table to write
+     */
+    private StarTable prepareTable( StarTable table ) {
+        return pipelined && ! ( table instanceof PipelineStarTable )
+             ? new PipelineStarTable( table, "output" )
+             : table;
+    }
+
+    /**
+     * Prepares an array of tables for output, taking account of the
+     * pipelining setting.
+     *
+     * @param  tables  input tables
+     * @return  tables to write
+     */
+    private StarTable[] prepareTables( StarTable[] tables ) {
+        StarTable[] outTables = new StarTable[ tables.length ];
+        for ( int i = 0; i < tables.length; i++ ) {
+            outTables[ i ] = prepareTable( tables[ i ] );
+        }
+        return outTables;
+    }
+
     /**
      * Returns a <tt>Transferable</tt> object associated with a given
      * StarTable, for use at the drag end of a drag and drop operation.
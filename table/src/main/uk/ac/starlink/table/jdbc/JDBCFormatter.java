@@ -17,6 +17,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.RowSequence;
@@ -41,6 +43,17 @@ public class JDBCFormatter {
     private final Map typeNameMap_;
     private final SqlSyntax sqlSyntax_;
     private final boolean upperCasePreferred_;
+    private int batchSize_;
+    private final boolean supportsBatch_;
+    private long commitInterval_;
+    private int nconn_;
+    private Connector connector_;
+
+    /** Default number of rows sent in each batch of inserts. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Interval in milliseconds between progress reports. */
+    private static final long PROGRESS_INTERVAL = 10000;
 
     private static Logger logger = 
         Logger.getLogger( "uk.ac.starlink.table.jdbc" );
@@ -61,6 +74,9 @@ public class JDBCFormatter {
         maxTableLeng_ = meta.getMaxTableNameLength();
         upperCasePreferred_ = meta.storesUpperCaseIdentifiers();
         sqlSyntax_ = getSqlSyntax( meta );
+        supportsBatch_ = meta.supportsBatchUpdates();
+        batchSize_ = supportsBatch_ ? DEFAULT_BATCH_SIZE : 1;
+        nconn_ = 1;
 
         /* Work out column types and see if we need to work out maximum string
          * lengths. */
@@ -228,36 +244,476 @@ public class JDBCFormatter {
             stmt.executeUpdate( create );
         }
 
-        /* Prepare a statement for adding the data. */
+        /* Add the data. */
         String insert = getInsertStatement( tableName );
         logger.info( insert );
-        PreparedStatement pstmt = conn_.prepareStatement( insert );
+        if ( nconn_ > 1 && connector_ != null ) {
+            if ( ! conn_.getAutoCommit() ) {
+                conn_.commit();
+            }
+            loadParallel( insert );
+        }
+        else {
+            loadSequential( insert );
+        }
+    }
 
-        /* Add the data. */
-        int ncol = sqlCols_.length;
+    /**
+     * Sets the number of rows which are sent to the database together
+     * using JDBC batch updates.
+     * A value of 1 sends each row separately.
+     * The default is {@link #DEFAULT_BATCH_SIZE}.
+     * If the database does not support batch updates,
+     * the batch size is always 1.
+     *
+     * @param  batchSize  rows per batch
+     */
+    public void setBatchSize( int batchSize ) {
+        batchSize_ = supportsBatch_ ? Math.max( 1, batchSize ) : 1;
+    }
+
+    /**
+     * Returns the number of rows which are sent to the database together.
+     *
+     * @return  rows per batch
+     */
+    public int getBatchSize() {
+        return batchSize_;
+    }
+
+    /**
+     * Sets the number of rows written between transaction commits.
+     * If positive, auto-commit is turned off while rows are being
+     * inserted, and a commit is done after each batch at which
+     * at least this many rows have been written since the last one,
+     * as well as at the end.
+     * If zero (the default), the connection's auto-commit setting
+     * is left alone.
+     *
+     * @param  commitInterval  rows per transaction, or 0
+     */
+    public void setCommitInterval( long commitInterval ) {
+        commitInterval_ = Math.max( 0, commitInterval );
+    }
+
+    /**
+     * Returns the number of rows written between transaction commits.
+     *
+     * @return  rows per transaction, or 0 for no explicit transactions
+     */
+    public long getCommitInterval() {
+        return commitInterval_;
+    }
+
+    /**
+     * Configures the use of multiple connections to insert rows
+     * in parallel.
+     * If <code>nconn</code> is greater than one, the rows of the
+     * input table are read in the calling thread and distributed
+     * in batches to that number of threads,
+     * each inserting rows using its own connection.
+     * One of these is this formatter's own connection,
+     * and the others are obtained from the given connector
+     * and closed when the load is complete.
+     * Note that in this case rows may not be inserted in the order
+     * they appear in the input table, and if an error occurs
+     * some rows may have been committed and others not.
+     *
+     * @param  nconn  number of connections to use
+     * @param  connector  supplier of additional connections
+     *                    to the same database
+     */
+    public void setParallelism( int nconn, Connector connector ) {
+        nconn_ = Math.max( 1, nconn );
+        connector_ = connector;
+    }
+
+    /**
+     * Inserts all the rows of the input table using this formatter's
+     * connection in the current thread.
+     *
+     * @param  insert  text of parameterised insert statement
+     */
+    private void loadSequential( String insert )
+            throws IOException, SQLException {
+        LoadProgress progress = new LoadProgress();
+        RowLoader loader = new RowLoader( conn_, insert, progress );
+        boolean done = false;
         RowSequence rseq = table_.getRowSequence();
         try {
             while ( rseq.next() ) {
-                Object[] row = rseq.getRow();
-                int pix = 0;
-                for ( int icol = 0; icol < ncol; icol++ ) {
-                    if ( sqlCols_[ icol ] != null ) {
-                        pix++;
-                        Object val = row[ icol ];
-                        if ( Tables.isBlank( val ) ) {
-                            pstmt.setNull( pix, sqlTypes_[ icol ] );
+                loader.addRow( rseq.getRow() );
+            }
+            loader.finish();
+            done = true;
+        }
+        finally {
+            try {
+                rseq.close();
+            }
+            finally {
+                if ( ! done ) {
+                    loader.abort();
+                }
+            }
+        }
+        progress.report( true );
+    }
+
+    /**
+     * Inserts all the rows of the input table using multiple connections
+     * in parallel.  Rows are read in the current thread and handed to
+     * worker threads in batches.
+     *
+     * @param  insert  text of parameterised insert statement
+     */
+    private void loadParallel( final String insert )
+            throws IOException, SQLException {
+        final LoadProgress progress = new LoadProgress();
+        final BlockingQueue<Object[][]> queue =
+            new ArrayBlockingQueue<Object[][]>( nconn_ * 2 );
+        final Object[][] end = new Object[ 0 ][];
+        final Throwable[] error = new Throwable[ 1 ];
+        List<Connection> extraConns = new ArrayList<Connection>();
+        List<Thread> workers = new ArrayList<Thread>();
+        try {
+            for ( int ic = 1; ic < nconn_; ic++ ) {
+                extraConns.add( connector_.getConnection() );
+            }
+            for ( int ic = 0; ic < nconn_; ic++ ) {
+                final Connection conn = ic == 0 ? conn_
+                                                : extraConns.get( ic - 1 );
+                Thread worker = new Thread( "JDBC loader " + ( ic + 1 ) ) {
+                    public void run() {
+                        RowLoader loader = null;
+                        boolean done = false;
+                        try {
+                            loader = new RowLoader( conn, insert, progress );
+                            for ( Object[][] rows;
+                                  ( rows = queue.take() ) != end; ) {
+                                for ( int ir = 0; ir < rows.length; ir++ ) {
+                                    loader.addRow( rows[ ir ] );
+                                }
+                            }
+                            loader.finish();
+                            done = true;
                         }
-                        else {
-                            pstmt.setObject( pix, row[ icol ],
-                                             sqlTypes_[ icol ] );
+                        catch ( Throwable e ) {
+                            synchronized ( error ) {
+                                if ( error[ 0 ] == null ) {
+                                    error[ 0 ] = e;
+                                }
+                            }
+
+                            /* Keep draining the queue so the reader
+                             * doesn't block. */
+                            try {
+                                while ( queue.take() != end ) {
+                                }
+                            }
+                            catch ( InterruptedException e2 ) {
+                            }
+                        }
+                        finally {
+                            if ( ! done && loader != null ) {
+                                loader.abort();
+                            }
                         }
                     }
+                };
+                worker.setDaemon( true );
+                worker.start();
+                workers.add( worker );
+            }
+
+            /* Read rows and distribute them to workers. */
+            RowSequence rseq = table_.getRowSequence();
+            try {
+                List<Object[]> rows = new ArrayList<Object[]>( batchSize_ );
+                while ( rseq.next() && ! hasError( error ) ) {
+                    rows.add( rseq.getRow().clone() );
+                    if ( rows.size() >= batchSize_ ) {
+                        queue.put( rows.toArray( new Object[ 0 ][] ) );
+                        rows.clear();
+                    }
                 }
-                pstmt.executeUpdate();
+                if ( rows.size() > 0 && ! hasError( error ) ) {
+                    queue.put( rows.toArray( new Object[ 0 ][] ) );
+                }
+            }
+            finally {
+                rseq.close();
+                for ( int iw = 0; iw < workers.size(); iw++ ) {
+                    queue.put( end );
+                }
+                for ( Thread worker : workers ) {
+                    worker.join();
+                }
+            }
+        }
+        catch ( InterruptedException e ) {
+            for ( Thread worker : workers ) {
+                worker.interrupt();
             }
+            throw (IOException) new IOException( "Interrupted" )
+                               .initCause( e );
         }
         finally {
-            rseq.close();
+            for ( Connection conn : extraConns ) {
+                try {
+                    conn.close();
+                }
+                catch ( SQLException e ) {
+                    logger.warning( "Error closing connection: " + e );
+                }
+            }
+        }
+        Throwable err = error[ 0 ];
+        if ( err instanceof SQLException ) {
+            throw (SQLException) err;
+        }
+        else if ( err instanceof IOException ) {
+            throw (IOException) err;
+        }
+        else if ( err instanceof RuntimeException ) {
+            throw (RuntimeException) err;
+        }
+        else if ( err instanceof Error ) {
+            throw (Error) err;
+        }
+        progress.report( true );
+    }
+
+    /**
+     * Indicates whether an error has been recorded by a worker thread.
+     *
+     * @param  error  1-element array holding error or null
+     * @return  true iff an error is present
+     */
+    private static boolean hasError( Throwable[] error ) {
+        synchronized ( error ) {
+            return error[ 0 ] != null;
+        }
+    }
+
+    /**
+     * Sets the value of a statement parameter, using the typed setter
+     * appropriate to the column type where possible.
+     *
+     * @param  pstmt   statement
+     * @param  pix     1-based parameter index
+     * @param  sqlType  SQL type code for the column
+     * @param  val    value to set
+     */
+    private static void setValue( PreparedStatement pstmt, int pix,
+                                  int sqlType, Object val )
+            throws SQLException {
+        if ( Tables.isBlank( val ) ) {
+            pstmt.setNull( pix, sqlType );
+        }
+        else if ( val instanceof Number ) {
+            Number num = (Number) val;
+            switch ( sqlType ) {
+                case Types.TINYINT:
+                    pstmt.setByte( pix, num.byteValue() );
+                    return;
+                case Types.SMALLINT:
+                    pstmt.setShort( pix, num.shortValue() );
+                    return;
+                case Types.INTEGER:
+                    pstmt.setInt( pix, num.intValue() );
+                    return;
+                case Types.BIGINT:
+                    pstmt.setLong( pix, num.longValue() );
+                    return;
+                case Types.FLOAT:
+                    pstmt.setFloat( pix, num.floatValue() );
+                    return;
+                case Types.DOUBLE:
+                    pstmt.setDouble( pix, num.doubleValue() );
+                    return;
+                default:
+                    pstmt.setObject( pix, val, sqlType );
+            }
+        }
+        else if ( val instanceof Boolean && sqlType == Types.BIT ) {
+            pstmt.setBoolean( pix, ((Boolean) val).booleanValue() );
+        }
+        else if ( sqlType == Types.VARCHAR || sqlType == Types.CHAR ) {
+            pstmt.setString( pix, val.toString() );
+        }
+        else {
+            pstmt.setObject( pix, val, sqlType );
+        }
+    }
+
+    /**
+     * Inserts rows into the database using a single connection,
+     * with batching and transactions as configured.
+     */
+    private class RowLoader {
+        final Connection loadConn_;
+        final PreparedStatement pstmt_;
+        final LoadProgress progress_;
+        final boolean autoCommit0_;
+        final boolean isTransactional_;
+        int nBatch_;
+        long nUncommitted_;
+
+        /**
+         * Constructor.
+         *
+         * @param  conn  connection
+         * @param  insert  text of parameterised insert statement
+         * @param  progress  progress reporter
+         */
+        RowLoader( Connection conn, String insert, LoadProgress progress )
+                throws SQLException {
+            loadConn_ = conn;
+            progress_ = progress;
+            autoCommit0_ = conn.getAutoCommit();
+            isTransactional_ = commitInterval_ > 0;
+            if ( isTransactional_ && autoCommit0_ ) {
+                conn.setAutoCommit( false );
+            }
+            pstmt_ = conn.prepareStatement( insert );
+        }
+
+        /**
+         * Inserts a row, or adds it to the current batch.
+         *
+         * @param  row  input table row
+         */
+        void addRow( Object[] row ) throws SQLException {
+            int ncol = sqlCols_.length;
+            int pix = 0;
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                if ( sqlCols_[ icol ] != null ) {
+                    setValue( pstmt_, ++pix, sqlTypes_[ icol ], row[ icol ] );
+                }
+            }
+            if ( batchSize_ > 1 ) {
+                pstmt_.addBatch();
+                if ( ++nBatch_ >= batchSize_ ) {
+                    flush();
+                }
+            }
+            else {
+                pstmt_.executeUpdate();
+                rowsWritten( 1 );
+            }
+        }
+
+        /**
+         * Sends any pending batch and commits if the commit interval
+         * has been reached.
+         */
+        void flush() throws SQLException {
+            if ( nBatch_ > 0 ) {
+                pstmt_.executeBatch();
+                int n = nBatch_;
+                nBatch_ = 0;
+                rowsWritten( n );
+            }
+        }
+
+        /**
+         * Records rows written to the database.
+         *
+         * @param  n  number of rows
+         */
+        private void rowsWritten( int n ) throws SQLException {
+            progress_.addRows( n );
+            nUncommitted_ += n;
+            if ( isTransactional_ && nUncommitted_ >= commitInterval_ ) {
+                loadConn_.commit();
+                nUncommitted_ = 0;
+            }
+        }
+
+        /**
+         * Writes and commits any outstanding rows and tidies up.
+         */
+        void finish() throws SQLException {
+            flush();
+            if ( isTransactional_ ) {
+                loadConn_.commit();
+                nUncommitted_ = 0;
+            }
+            close();
+        }
+
+        /**
+         * Tidies up following an error, rolling back any uncommitted rows.
+         */
+        void abort() {
+            try {
+                if ( isTransactional_ ) {
+                    loadConn_.rollback();
+                }
+            }
+            catch ( SQLException e ) {
+                logger.warning( "Rollback failed: " + e );
+            }
+            try {
+                close();
+            }
+            catch ( SQLException e ) {
+                logger.warning( "Error closing statement: " + e );
+            }
+        }
+
+        /**
+         * Closes the statement and restores the connection state.
+         */
+        private void close() throws SQLException {
+            pstmt_.close();
+            if ( isTransactional_ && autoCommit0_ ) {
+                loadConn_.setAutoCommit( true );
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the number of rows written, and reports
+     * progress through the logging system.
+     */
+    private static class LoadProgress {
+        final long start_;
+        long nrow_;
+        long lastReport_;
+
+        LoadProgress() {
+            start_ = System.currentTimeMillis();
+            lastReport_ = start_;
+        }
+
+        /**
+         * Records that rows have been written.
+         *
+         * @param  n  number of rows
+         */
+        synchronized void addRows( int n ) {
+            nrow_ += n;
+            if ( System.currentTimeMillis() - lastReport_
+                 > PROGRESS_INTERVAL ) {
+                report( false );
+            }
+        }
+
+        /**
+         * Writes a throughput report.
+         *
+         * @param  isFinal  true if loading is complete
+         */
+        synchronized void report( boolean isFinal ) {
+            long now = System.currentTimeMillis();
+            lastReport_ = now;
+            double secs = Math.max( 1, now - start_ ) * 0.001;
+            String msg = ( isFinal ? "Inserted " : "Inserted so far " )
+                       + nrow_ + " rows in " + (float) secs + "s ("
+                       + (long) ( nrow_ / secs ) + " rows/s)";
+            logger.info( msg );
         }
     }
 
@@ -10,12 +10,32 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
 
 public class JDBCHandler {
 
     private JDBCAuthenticator auth;
     private String user;
     private String passwd;
+    private int nPart_;
+    private String partKey_;
+
+    /**
+     * Name of the system property giving the default number of
+     * partitions in which JDBC queries are read ({@value}).
+     * If greater than 1, tables are read using
+     * {@link PartitionedJDBCStarTable}.
+     */
+    public static final String PARTITIONS_PROPERTY =
+        "startable.jdbc.partitions";
+
+    /**
+     * Name of the system property giving the name of the column
+     * by whose value ranges JDBC queries are partitioned ({@value}).
+     * If not set, partitioning is by LIMIT/OFFSET.
+     */
+    public static final String PARTITION_KEY_PROPERTY =
+        "startable.jdbc.partitionkey";
 
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.table.jdbc" );
@@ -26,6 +46,20 @@ public class JDBCHandler {
 
     public JDBCHandler( JDBCAuthenticator auth ) {
         this.auth = auth;
+        nPart_ = 1;
+        try {
+            String npart = System.getProperty( PARTITIONS_PROPERTY );
+            if ( npart != null && npart.trim().length() > 0 ) {
+                nPart_ = Integer.parseInt( npart.trim() );
+            }
+            partKey_ = System.getProperty( PARTITION_KEY_PROPERTY );
+        }
+        catch ( SecurityException e ) {
+        }
+        catch ( NumberFormatException e ) {
+            logger_.warning( "Bad value for " + PARTITIONS_PROPERTY
+                           + ": " + e );
+        }
     }
 
     /**
@@ -36,6 +70,8 @@ public class JDBCHandler {
      */
     public JDBCHandler( JDBCHandler jh ) {
         this( jh.auth );
+        nPart_ = jh.nPart_;
+        partKey_ = jh.partKey_;
     }
 
     public JDBCAuthenticator getAuthenticator() {
@@ -47,6 +83,42 @@ public class JDBCHandler {
         this.auth = auth;
     }
 
+    /**
+     * Configures how query results are read.
+     * If the partition count is greater than 1, each query is split
+     * into that many parts which are read concurrently over separate
+     * connections into storage provided by the default
+     * {@link uk.ac.starlink.table.StoragePolicy}.
+     *
+     * @param  npart  number of partitions; 1 reads each query
+     *                using a single result set
+     * @param  keyCol  name of numeric column used to partition queries
+     *                 by value range, or null to use LIMIT/OFFSET
+     * @see   PartitionedJDBCStarTable
+     */
+    public void setPartitioning( int npart, String keyCol ) {
+        nPart_ = npart;
+        partKey_ = keyCol;
+    }
+
+    /**
+     * Returns the number of partitions in which queries are read.
+     *
+     * @return  partition count
+     */
+    public int getPartitionCount() {
+        return nPart_;
+    }
+
+    /**
+     * Returns the name of the column used to partition queries.
+     *
+     * @return  partition key column name, or null
+     */
+    public String getPartitionKey() {
+        return partKey_;
+    }
+
     public StarTable makeStarTable( String spec, boolean wantRandom )
             throws IOException {
 
@@ -87,6 +159,15 @@ public class JDBCHandler {
                     }
                 }
             };
+            if ( nPart_ > 1 ) {
+                String key = partKey_ == null || partKey_.trim().length() == 0
+                           ? null
+                           : partKey_.trim();
+                return new PartitionedJDBCStarTable(
+                           getFixedConnector( url ), frag, key, nPart_,
+                           StoragePolicy.getDefaultPolicy(),
+                           TypeMappers.STANDARD );
+            }
             try {
                 return new JDBCStarTable( connector, frag, wantRandom );
             }
@@ -127,6 +208,29 @@ public class JDBCHandler {
     public void createJDBCTable( StarTable startab, String spec,
                                  WriteMode mode ) 
             throws IOException, SQLException {
+        createJDBCTable( startab, spec, mode, -1, 0, 1 );
+    }
+
+    /**
+     * Writes a table to a database with control over how the rows
+     * are loaded.
+     *
+     * @param  startab  table to write
+     * @param  spec   destination of the form "jdbc:...#table-name"
+     * @param  mode   write mode
+     * @param  batchSize  number of rows sent in each batch,
+     *                    or -1 for the default
+     * @param  commitInterval  number of rows per transaction,
+     *                         or 0 to use the connection's auto-commit mode
+     * @param  nconn   number of connections to use in parallel
+     * @see  JDBCFormatter#setBatchSize
+     * @see  JDBCFormatter#setCommitInterval
+     * @see  JDBCFormatter#setParallelism
+     */
+    public void createJDBCTable( StarTable startab, String spec,
+                                 WriteMode mode, int batchSize,
+                                 long commitInterval, int nconn )
+            throws IOException, SQLException {
 
         /* Reject if it doesn't look like a JDBC URL. */
         if ( ! spec.startsWith( "jdbc:" ) ) { 
@@ -140,21 +244,69 @@ public class JDBCHandler {
                 "Bad JDBC specification, should be \"jdbc:...#table-name\"" );
         }
         String frag = spec.substring( hashPos + 1 );
-        String url = spec.substring( 0, hashPos );
+        final String url = spec.substring( 0, hashPos );
 
         /* Try to get a connection using the URL. */
         Connection conn = getConnection( url );
  
         /* And write the data to the table. */
         try {
-            new JDBCFormatter( conn, startab ).createJDBCTable( frag, mode );
+            JDBCFormatter formatter = new JDBCFormatter( conn, startab );
+            if ( batchSize > 0 ) {
+                formatter.setBatchSize( batchSize );
+            }
+            formatter.setCommitInterval( commitInterval );
+            formatter.setParallelism( nconn, new Connector() {
+                public Connection getConnection() throws SQLException {
+                    return user == null
+                         ? DriverManager.getConnection( url )
+                         : DriverManager.getConnection( url, user, passwd );
+                }
+            } );
+            formatter.createJDBCTable( frag, mode );
         }
         finally {
             conn.close();
         }
     }
 
-    private Connection getConnection( String url )
+    /**
+     * Returns a connector which supplies connections to a given URL
+     * without further user interaction.
+     * Any authentication required is done once, in the calling thread,
+     * so that the returned object may be used safely from several
+     * threads at once.
+     *
+     * @param  url  JDBC URL
+     * @return  connector using fixed credentials
+     */
+    private synchronized Connector getFixedConnector( final String url )
+            throws IOException, SQLException {
+        String[] authInfo = null;
+        Connection conn;
+        try {
+            conn = DriverManager.getConnection( url );
+        }
+        catch ( SQLException e ) {
+            authInfo = auth.authenticate();
+            user = authInfo[ 0 ];
+            passwd = authInfo[ 1 ];
+            conn = DriverManager.getConnection( url, user, passwd );
+        }
+        conn.close();
+        final String connUser = authInfo == null ? null : authInfo[ 0 ];
+        final String connPasswd = authInfo == null ? null : authInfo[ 1 ];
+        return new Connector() {
+            public Connection getConnection() throws SQLException {
+                return connUser == null
+                     ? DriverManager.getConnection( url )
+                     : DriverManager.getConnection( url, connUser,
+                                                    connPasswd );
+            }
+        };
+    }
+
+    private synchronized Connection getConnection( String url )
             throws IOException, SQLException {
 
         /* First attempt a connection without any authentication. */
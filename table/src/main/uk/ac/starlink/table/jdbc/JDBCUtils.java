@@ -50,6 +50,30 @@ public class JDBCUtils {
     public static Statement createStreamingStatement( Connection conn, 
                                                       boolean update )
             throws SQLException {
+        return createStreamingStatement( conn, update, 0 );
+    }
+
+    /**
+     * Returns a statement which tries its best to stream data,
+     * with a given fetch size hint.
+     * The fetch size is the number of rows retrieved from the database
+     * in each round trip; larger values reduce latency costs at the
+     * expense of client memory.  It is ignored for drivers that
+     * are known to stream in some other way.
+     *
+     * <p>Note that in some cases the supplied connection may have its
+     * autocommit mode modified by this call.
+     *
+     * @param   conn  connection
+     * @param   update  true for an updatable set, false for read-only
+     * @param   fetchSize  number of rows to fetch at a time,
+     *                     or 0 for the driver default
+     * @return  statement which (hopefully) streams results
+     */
+    public static Statement createStreamingStatement( Connection conn,
+                                                      boolean update,
+                                                      int fetchSize )
+            throws SQLException {
         int concurrency = update ? ResultSet.CONCUR_UPDATABLE
                                  : ResultSet.CONCUR_READ_ONLY;
 
@@ -68,7 +92,7 @@ public class JDBCUtils {
             conn.setAutoCommit( false );
             Statement stmt = conn.createStatement( ResultSet.TYPE_FORWARD_ONLY,
                                                    concurrency );
-            stmt.setFetchSize( 1024 );
+            stmt.setFetchSize( fetchSize > 0 ? fetchSize : 1024 );
             return stmt;
         }
 
@@ -108,8 +132,12 @@ public class JDBCUtils {
         else {
             logger_.info( "No special steps to stream results - "
                        + "may run out of memory for large ResultSet?" );
-            return conn.createStatement( ResultSet.TYPE_FORWARD_ONLY,
-                                         concurrency );
+            Statement stmt = conn.createStatement( ResultSet.TYPE_FORWARD_ONLY,
+                                                   concurrency );
+            if ( fetchSize > 0 ) {
+                stmt.setFetchSize( fetchSize );
+            }
+            return stmt;
         }
     }
 }
@@ -0,0 +1,542 @@
+package uk.ac.starlink.table.jdbc;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.ConcatStarTable;
+import uk.ac.starlink.table.DefaultValueInfo;
+import uk.ac.starlink.table.DescribedValue;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.RowStore;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
+import uk.ac.starlink.table.ValueInfo;
+import uk.ac.starlink.table.WrapperStarTable;
+
+/**
+ * Random-access StarTable which reads the results of an SQL query
+ * by splitting it into several partitions which are fetched concurrently
+ * over separate JDBC connections.
+ *
+ * <p>Unlike the random-access mode of {@link JDBCStarTable},
+ * this does not rely on a scrollable ResultSet, which many drivers
+ * implement by assembling the whole result in memory on the client.
+ * Instead each partition is read using a forward-only streaming statement
+ * into a {@link uk.ac.starlink.table.RowStore} obtained from a
+ * {@link uk.ac.starlink.table.StoragePolicy}, and the resulting tables
+ * are presented end to end.  All the data is read at construction time.
+ *
+ * <p>The query may be partitioned in one of two ways.
+ * If a key column is given, its minimum and maximum values are
+ * found, and the partitions are contiguous ranges of that column;
+ * the key must be numeric, and rows with a null key appear in
+ * the last partition.  The rows then appear in order of key range,
+ * though not necessarily ordered within each range.
+ * If no key column is given, the row count is found, and the partitions
+ * are selected by <code>LIMIT</code> and <code>OFFSET</code> clauses
+ * applied to the query wrapped as a subquery.  In this case the query
+ * should have an <code>ORDER BY</code> clause, since otherwise the
+ * database is not obliged to return rows in the same order for each
+ * partition; even so, not all databases respect the ordering of a
+ * subquery, so a key column is preferred where one is available.
+ * In either case any trailing semicolons are removed from the query
+ * before it is wrapped.
+ *
+ * <p>Where the {@link TypeMapper} gives a column a primitive wrapper
+ * content class which the JDBC driver can supply directly,
+ * cells are read using the corresponding typed <code>ResultSet</code>
+ * getter (<code>getInt</code>, <code>getDouble</code> etc) rather than
+ * <code>getObject</code>.
+ */
+public class PartitionedJDBCStarTable extends WrapperStarTable {
+
+    private final String sql_;
+
+    private static final ValueInfo SQL_INFO =
+        new DefaultValueInfo( "SQL", String.class, "SQL query text" );
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.table.jdbc" );
+
+    /** Fetch size requested for partition queries. */
+    public static final int FETCH_SIZE = 10000;
+
+    /**
+     * Constructor.
+     *
+     * @param  connx  object which can supply JDBC connections;
+     *                it will be called once for each partition,
+     *                and once more to determine the partition boundaries
+     * @param  sql   text of the SQL query
+     * @param  keyCol  name of a numeric column in the query result
+     *                 used to partition it by range,
+     *                 or null to partition using LIMIT/OFFSET
+     * @param  npart  number of partitions
+     * @param  policy  storage policy used to hold the partition data
+     * @param  typeMapper  handles conversion of JDBC types to cell types
+     */
+    public PartitionedJDBCStarTable( Connector connx, String sql,
+                                     String keyCol, int npart,
+                                     StoragePolicy policy,
+                                     TypeMapper typeMapper )
+            throws IOException, SQLException {
+        super( readTable( connx, sql, keyCol, Math.max( 1, npart ),
+                          policy, typeMapper ) );
+        sql_ = sql;
+        getParameters().add( new DescribedValue( SQL_INFO, sql ) );
+    }
+
+    /**
+     * Returns the text of the SQL query used for this table.
+     *
+     * @return   the SQL query text
+     */
+    public String getSql() {
+        return sql_;
+    }
+
+    /**
+     * Returns the SQL WHERE-clause conditions which select each partition
+     * of a query by ranges of a numeric key.
+     * The ranges are of equal width, and between them cover all values
+     * including nulls.
+     *
+     * @param  key  quoted key column name
+     * @param  min  minimum key value
+     * @param  max  maximum key value
+     * @param  npart  number of partitions
+     * @return  <code>npart</code>-element array of SQL conditions
+     */
+    static String[] getRangeConditions( String key, Number min, Number max,
+                                        int npart ) {
+        boolean isInt = isIntegral( min ) && isIntegral( max );
+        double dmin = min.doubleValue();
+        double dmax = max.doubleValue();
+        String[] bounds = new String[ npart + 1 ];
+        for ( int ip = 1; ip < npart; ip++ ) {
+            double frac = ip / (double) npart;
+            if ( isInt ) {
+                long lmin = min.longValue();
+                long lmax = max.longValue();
+                long lb = lmin + (long) Math.ceil( frac * ( (double) lmax
+                                                          - (double) lmin
+                                                          + 1 ) );
+                bounds[ ip ] = Long.toString( lb );
+            }
+            else {
+                double db = dmin + frac * ( dmax - dmin );
+                bounds[ ip ] = Double.toString( db );
+            }
+        }
+        String[] conds = new String[ npart ];
+        for ( int ip = 0; ip < npart; ip++ ) {
+            String lo = bounds[ ip ];
+            String hi = bounds[ ip + 1 ];
+            if ( lo == null ) {
+                conds[ ip ] = hi == null ? "1 = 1"
+                                         : key + " < " + hi;
+            }
+            else if ( hi == null ) {
+                conds[ ip ] = "(" + key + " >= " + lo
+                            + " OR " + key + " IS NULL)";
+            }
+            else {
+                conds[ ip ] = key + " >= " + lo + " AND " + key + " < " + hi;
+            }
+        }
+        return conds;
+    }
+
+    /**
+     * Reads the query results into a concatenation of stored tables.
+     *
+     * @param  connx  connection source
+     * @param  sql   query text
+     * @param  keyCol  partition key column name, or null
+     * @param  npart  number of partitions
+     * @param  policy  storage policy
+     * @param  typeMapper  type mapper
+     * @return  random access table containing all the query results
+     */
+    private static StarTable readTable( Connector connx, String sql,
+                                        String keyCol, int npart,
+                                        StoragePolicy policy,
+                                        TypeMapper typeMapper )
+            throws IOException, SQLException {
+        String[] partSqls = getPartitionQueries( connx, sql, keyCol, npart );
+        int np = partSqls.length;
+        List<Future<StarTable>> futures = new ArrayList<Future<StarTable>>();
+        ExecutorService executor =
+            Executors.newFixedThreadPool( np, new ThreadFactory() {
+                private int ithread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread thread =
+                        new Thread( r, "JDBC reader " + ++ithread_ );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        long start = System.currentTimeMillis();
+        try {
+            for ( int ip = 0; ip < np; ip++ ) {
+                futures.add( executor.submit(
+                    new PartitionReader( connx, partSqls[ ip ],
+                                         policy, typeMapper ) ) );
+            }
+            StarTable[] tables = new StarTable[ np ];
+            for ( int ip = 0; ip < np; ip++ ) {
+                tables[ ip ] = getResult( futures.get( ip ) );
+            }
+            StarTable table = new ConcatStarTable( tables[ 0 ], tables );
+            logger_.info( "Read " + table.getRowCount() + " rows in "
+                        + np + " partitions in "
+                        + ( System.currentTimeMillis() - start ) + "ms" );
+            return table;
+        }
+        finally {
+            for ( Future<StarTable> future : futures ) {
+                future.cancel( true );
+            }
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the SQL text of the queries for each partition.
+     *
+     * @param  connx  connection source
+     * @param  sql   query text
+     * @param  keyCol  partition key column name, or null
+     * @param  npart  number of partitions
+     * @return  array of partition query texts
+     */
+    private static String[] getPartitionQueries( Connector connx, String sql,
+                                                 String keyCol, int npart )
+            throws SQLException {
+        if ( npart == 1 ) {
+            return new String[] { sql };
+        }
+        Connection conn = connx.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            String sub = "(" + trimTerminator( sql ) + ") partq";
+            String[] partSqls;
+            if ( keyCol != null ) {
+                String quote = conn.getMetaData().getIdentifierQuoteString();
+                String key = quote == null || quote.trim().length() == 0
+                           ? keyCol
+                           : quote + keyCol + quote;
+                ResultSet rset =
+                    stmt.executeQuery( "SELECT MIN(" + key + "), "
+                                     + "MAX(" + key + ") FROM " + sub );
+                rset.next();
+                Object min = rset.getObject( 1 );
+                Object max = rset.getObject( 2 );
+                rset.close();
+                if ( min == null || max == null ) {
+                    return new String[] { sql };
+                }
+                if ( ! ( min instanceof Number && max instanceof Number ) ) {
+                    throw new SQLException( "Partition key " + keyCol
+                                          + " is not numeric" );
+                }
+                String[] conds = getRangeConditions( key, (Number) min,
+                                                     (Number) max, npart );
+                partSqls = new String[ npart ];
+                for ( int ip = 0; ip < npart; ip++ ) {
+                    partSqls[ ip ] = "SELECT * FROM " + sub
+                                   + " WHERE " + conds[ ip ];
+                }
+            }
+            else {
+                ResultSet rset =
+                    stmt.executeQuery( "SELECT COUNT(*) FROM " + sub );
+                rset.next();
+                long nrow = rset.getLong( 1 );
+                rset.close();
+                long chunk = Math.max( 1, ( nrow + npart - 1 ) / npart );
+                int np = (int) Math.max( 1, ( nrow + chunk - 1 ) / chunk );
+                partSqls = new String[ np ];
+                for ( int ip = 0; ip < np; ip++ ) {
+                    partSqls[ ip ] = "SELECT * FROM " + sub
+                                   + " LIMIT " + chunk
+                                   + " OFFSET " + ( ip * chunk );
+                }
+            }
+            stmt.close();
+            return partSqls;
+        }
+        finally {
+            if ( ! conn.getAutoCommit() ) {
+                conn.commit();
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * Removes any trailing statement terminators from an SQL query,
+     * so that it can be used as a subquery.
+     *
+     * @param  sql  query text
+     * @return  query text without trailing semicolons or whitespace
+     */
+    static String trimTerminator( String sql ) {
+        int end = sql.length();
+        while ( end > 0 ) {
+            char c = sql.charAt( end - 1 );
+            if ( c == ';' || Character.isWhitespace( c ) ) {
+                end--;
+            }
+            else {
+                break;
+            }
+        }
+        return sql.substring( 0, end );
+    }
+
+    /**
+     * Waits for a partition read to complete and returns its result,
+     * rethrowing any exception.
+     *
+     * @param  future  future
+     * @return  partition table
+     */
+    private static StarTable getResult( Future<StarTable> future )
+            throws IOException, SQLException {
+        try {
+            return future.get();
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException) new IOException( "Interrupted" )
+                               .initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            else if ( cause instanceof SQLException ) {
+                throw (SQLException) cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw (IOException) new IOException( cause.getMessage() )
+                                   .initCause( cause );
+            }
+        }
+    }
+
+    /**
+     * Indicates whether a number is of an integer type.
+     *
+     * @param  num  number
+     * @return  true for integer types
+     */
+    private static boolean isIntegral( Number num ) {
+        return num instanceof Byte || num instanceof Short
+            || num instanceof Integer || num instanceof Long
+            || num instanceof BigInteger
+            || ( num instanceof BigDecimal
+                 && ((BigDecimal) num).scale() <= 0 );
+    }
+
+    /**
+     * Returns a reader which obtains the value for a column from
+     * the current row of a result set.
+     *
+     * @param  meta  result set metadata
+     * @param  jcol1  JDBC column index (first column is 1)
+     * @param  handler  value handler for column
+     * @return  column reader
+     */
+    static CellReader createCellReader( ResultSetMetaData meta, int jcol1,
+                                        final ValueHandler handler )
+            throws SQLException {
+        Class clazz = handler.getColumnInfo().getContentClass();
+        String jdbcClass = meta.getColumnClassName( jcol1 );
+        boolean isDirect = clazz.getName().equals( jdbcClass );
+        if ( isDirect && clazz == Integer.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    int value = rset.getInt( jcol );
+                    return rset.wasNull() ? null : new Integer( value );
+                }
+            };
+        }
+        else if ( isDirect && clazz == Long.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    long value = rset.getLong( jcol );
+                    return rset.wasNull() ? null : new Long( value );
+                }
+            };
+        }
+        else if ( isDirect && clazz == Short.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    short value = rset.getShort( jcol );
+                    return rset.wasNull() ? null : new Short( value );
+                }
+            };
+        }
+        else if ( isDirect && clazz == Byte.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    byte value = rset.getByte( jcol );
+                    return rset.wasNull() ? null : new Byte( value );
+                }
+            };
+        }
+        else if ( isDirect && clazz == Float.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    float value = rset.getFloat( jcol );
+                    return rset.wasNull() ? null : new Float( value );
+                }
+            };
+        }
+        else if ( clazz == Double.class &&
+                  ( isDirect ||
+                    BigDecimal.class.getName().equals( jdbcClass ) ) ) {
+
+            /* The standard mapper converts BigDecimal to Double,
+             * so getDouble saves the driver building a BigDecimal. */
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    double value = rset.getDouble( jcol );
+                    return rset.wasNull() ? null : new Double( value );
+                }
+            };
+        }
+        else if ( isDirect && clazz == Boolean.class ) {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    boolean value = rset.getBoolean( jcol );
+                    return rset.wasNull() ? null : Boolean.valueOf( value );
+                }
+            };
+        }
+        else {
+            return new CellReader() {
+                public Object readCell( ResultSet rset, int jcol )
+                        throws SQLException {
+                    return handler.getValue( rset.getObject( jcol ) );
+                }
+            };
+        }
+    }
+
+    /**
+     * Reads the value for one column from a result set.
+     */
+    static interface CellReader {
+
+        /**
+         * Returns the cell value in the current row.
+         *
+         * @param  rset  result set
+         * @param  jcol  JDBC column index (first column is 1)
+         * @return  cell value
+         */
+        Object readCell( ResultSet rset, int jcol ) throws SQLException;
+    }
+
+    /**
+     * Reads all the rows from a partition query into storage.
+     */
+    private static class PartitionReader
+            implements Callable<StarTable> {
+        private final Connector connx_;
+        private final String sql_;
+        private final StoragePolicy policy_;
+        private final TypeMapper typeMapper_;
+
+        /**
+         * Constructor.
+         *
+         * @param  connx  connection source
+         * @param  sql   partition query text
+         * @param  policy  storage policy
+         * @param  typeMapper  type mapper
+         */
+        PartitionReader( Connector connx, String sql, StoragePolicy policy,
+                         TypeMapper typeMapper ) {
+            connx_ = connx;
+            sql_ = sql;
+            policy_ = policy;
+            typeMapper_ = typeMapper;
+        }
+
+        public StarTable call() throws IOException, SQLException {
+            Connection conn = connx_.getConnection();
+            try {
+                Statement stmt =
+                    JDBCUtils.createStreamingStatement( conn, false,
+                                                        FETCH_SIZE );
+                ResultSet rset = stmt.executeQuery( sql_ );
+                ResultSetMetaData meta = rset.getMetaData();
+                int ncol = meta.getColumnCount();
+                ColumnInfo[] infos = new ColumnInfo[ ncol ];
+                CellReader[] readers = new CellReader[ ncol ];
+                for ( int icol = 0; icol < ncol; icol++ ) {
+                    ValueHandler handler =
+                        typeMapper_.createValueHandler( meta, icol + 1 );
+                    infos[ icol ] = handler.getColumnInfo();
+                    readers[ icol ] =
+                        createCellReader( meta, icol + 1, handler );
+                }
+                RowStore store =
+                    policy_.makeConfiguredRowStore( new RowListStarTable(
+                                                        infos ) );
+                while ( rset.next() ) {
+                    if ( Thread.interrupted() ) {
+                        throw new IOException( "Interrupted" );
+                    }
+                    Object[] row = new Object[ ncol ];
+                    for ( int icol = 0; icol < ncol; icol++ ) {
+                        row[ icol ] = readers[ icol ].readCell( rset,
+                                                                icol + 1 );
+                    }
+                    store.acceptRow( row );
+                }
+                store.endRows();
+                rset.close();
+                stmt.close();
+                return store.getStarTable();
+            }
+            finally {
+                if ( ! conn.getAutoCommit() ) {
+                    conn.commit();
+                }
+                conn.close();
+            }
+        }
+    }
+}
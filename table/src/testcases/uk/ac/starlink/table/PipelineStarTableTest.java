@@ -0,0 +1,86 @@
+package uk.ac.starlink.table;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+
+public class PipelineStarTableTest extends TestCase {
+
+    public PipelineStarTableTest( String name ) {
+        super( name );
+        Logger.getLogger( "uk.ac.starlink.table" ).setLevel( Level.WARNING );
+    }
+
+    public void testRows() throws IOException {
+        for ( int nrow : new int[] { 0, 1, 9, 10, 11, 1000 } ) {
+            StarTable base = createTable( nrow );
+            StarTable t1 = new PipelineStarTable( base, "a", 10, 2 );
+            StarTable t2 = new PipelineStarTable( t1, "b", 3, 1 );
+            assertEquals( nrow, t2.getRowCount() );
+            RowSequence rseq = t2.getRowSequence();
+            for ( int i = 0; i < nrow; i++ ) {
+                assertTrue( rseq.next() );
+                assertEquals( new Integer( i ), rseq.getCell( 0 ) );
+                assertEquals( "r" + i, rseq.getRow()[ 1 ] );
+            }
+            assertFalse( rseq.next() );
+            assertFalse( rseq.next() );
+            rseq.close();
+            assertNotNull( ((PipelineStarTable) t2).getReport() );
+        }
+    }
+
+    public void testClose() throws IOException {
+        StarTable table =
+            new PipelineStarTable( createTable( 100000 ), "a", 4, 2 );
+        for ( int i = 0; i < 5; i++ ) {
+            RowSequence rseq = table.getRowSequence();
+            assertTrue( rseq.next() );
+            rseq.close();
+        }
+        assertTrue( ((PipelineStarTable) table).getReport()
+                   .startsWith( "Pipeline stage a: 1 rows" ) );
+    }
+
+    public void testError() throws IOException {
+        StarTable base = new WrapperStarTable( createTable( 50 ) ) {
+            public RowSequence getRowSequence() throws IOException {
+                return new WrapperRowSequence( super.getRowSequence() ) {
+                    int irow_;
+                    public boolean next() throws IOException {
+                        if ( ++irow_ > 20 ) {
+                            throw new IOException( "broken" );
+                        }
+                        return super.next();
+                    }
+                };
+            }
+        };
+        RowSequence rseq =
+            new PipelineStarTable( base, "x", 8, 1 ).getRowSequence();
+        int n = 0;
+        try {
+            while ( rseq.next() ) {
+                n++;
+            }
+            fail();
+        }
+        catch ( IOException e ) {
+            assertEquals( "broken", e.getMessage() );
+        }
+        assertEquals( 16, n );
+        rseq.close();
+    }
+
+    private static StarTable createTable( int nrow ) {
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "i", Integer.class, null ),
+            new ColumnInfo( "s", String.class, null ),
+        } );
+        for ( int i = 0; i < nrow; i++ ) {
+            table.addRow( new Object[] { new Integer( i ), "r" + i } );
+        }
+        return table;
+    }
+}
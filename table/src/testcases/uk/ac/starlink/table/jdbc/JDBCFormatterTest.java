@@ -0,0 +1,350 @@
+package uk.ac.starlink.table.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.StarTable;
+
+public class JDBCFormatterTest extends TestCase {
+
+    private static final int NROW = 1000;
+    private final StarTable table_;
+
+    public JDBCFormatterTest( String name ) {
+        super( name );
+        Logger.getLogger( "uk.ac.starlink.table.jdbc" )
+              .setLevel( Level.WARNING );
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "id", Integer.class, null ),
+            new ColumnInfo( "x", Double.class, null ),
+            new ColumnInfo( "name", String.class, null ),
+        } );
+        for ( int i = 0; i < NROW; i++ ) {
+            table.addRow( new Object[] {
+                new Integer( i ),
+                i % 10 == 0 ? null : new Double( i * 0.5 ),
+                "row" + i,
+            } );
+        }
+        table_ = table;
+    }
+
+    public void testBatch() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        JDBCFormatter fmt = new JDBCFormatter( db.connect(), table_ );
+        assertEquals( JDBCFormatter.DEFAULT_BATCH_SIZE, fmt.getBatchSize() );
+        fmt.setBatchSize( 300 );
+        fmt.createJDBCTable( "t1", WriteMode.CREATE );
+        assertEquals( 4, db.count( "executeBatch" ) );
+        assertEquals( 0, db.count( "executeUpdate" ) - 1 );  // CREATE
+        assertEquals( 0, db.count( "setObject" ) );
+        assertEquals( NROW, db.count( "setInt" ) );
+        assertEquals( NROW / 10, db.count( "setNull" ) );
+        assertEquals( 0, db.count( "commit" ) );
+        checkRows( db.rows_ );
+    }
+
+    public void testUnbatched() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        JDBCFormatter fmt = new JDBCFormatter( db.connect(), table_ );
+        fmt.setBatchSize( 1 );
+        fmt.createJDBCTable( "t1", WriteMode.APPEND );
+        assertEquals( 0, db.count( "executeBatch" ) );
+        assertEquals( NROW, db.count( "executeUpdate" ) );
+        checkRows( db.rows_ );
+    }
+
+    public void testNoBatchSupport() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        db.supportsBatch_ = false;
+        JDBCFormatter fmt = new JDBCFormatter( db.connect(), table_ );
+        assertEquals( 1, fmt.getBatchSize() );
+        fmt.setBatchSize( 300 );
+        assertEquals( 1, fmt.getBatchSize() );
+        fmt.createJDBCTable( "t1", WriteMode.APPEND );
+        assertEquals( 0, db.count( "addBatch" ) );
+        assertEquals( 0, db.count( "executeBatch" ) );
+        assertEquals( NROW, db.count( "executeUpdate" ) );
+        checkRows( db.rows_ );
+    }
+
+    public void testTransactions() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        Connection conn = db.connect();
+        JDBCFormatter fmt = new JDBCFormatter( conn, table_ );
+        fmt.setBatchSize( 100 );
+        fmt.setCommitInterval( 250 );
+        fmt.createJDBCTable( "t1", WriteMode.APPEND );
+        assertEquals( 10, db.count( "executeBatch" ) );
+
+        /* Commits after 300, 600 and 900 rows, and at the end. */
+        assertEquals( 4, db.count( "commit" ) );
+        assertTrue( conn.getAutoCommit() );
+        checkRows( db.rows_ );
+
+        /* Failure rolls back. */
+        db = new FakeDatabase();
+        db.failAt_ = 5;
+        conn = db.connect();
+        fmt = new JDBCFormatter( conn, table_ );
+        fmt.setBatchSize( 100 );
+        fmt.setCommitInterval( 250 );
+        try {
+            fmt.createJDBCTable( "t1", WriteMode.APPEND );
+            fail();
+        }
+        catch ( SQLException e ) {
+        }
+        assertEquals( 1, db.count( "commit" ) );
+        assertEquals( 1, db.count( "rollback" ) );
+        assertTrue( conn.getAutoCommit() );
+    }
+
+    public void testParallel() throws Exception {
+        final FakeDatabase db = new FakeDatabase();
+        JDBCFormatter fmt = new JDBCFormatter( db.connect(), table_ );
+        fmt.setBatchSize( 50 );
+        fmt.setCommitInterval( 200 );
+        final List<Connection> extras = new ArrayList<Connection>();
+        fmt.setParallelism( 4, new Connector() {
+            public Connection getConnection() {
+                Connection conn = db.connect();
+                extras.add( conn );
+                return conn;
+            }
+        } );
+        fmt.createJDBCTable( "t1", WriteMode.DROP_CREATE );
+        assertEquals( 3, extras.size() );
+        for ( Connection conn : extras ) {
+            assertTrue( conn.isClosed() );
+        }
+        assertEquals( NROW / 50, db.count( "executeBatch" ) );
+        List<Object[]> rows = new ArrayList<Object[]>( db.rows_ );
+        Collections.sort( rows, new Comparator<Object[]>() {
+            public int compare( Object[] r1, Object[] r2 ) {
+                return ((Integer) r1[ 0 ]).compareTo( (Integer) r2[ 0 ] );
+            }
+        } );
+        checkRows( rows );
+
+        /* An error in one worker is reported. */
+        FakeDatabase db2 = new FakeDatabase();
+        db2.failAt_ = 3;
+        fmt = new JDBCFormatter( db2.connect(), table_ );
+        fmt.setBatchSize( 10 );
+        fmt.setParallelism( 3, db2.connector() );
+        try {
+            fmt.createJDBCTable( "t1", WriteMode.APPEND );
+            fail();
+        }
+        catch ( SQLException e ) {
+            assertEquals( "Batch failure", e.getMessage() );
+        }
+    }
+
+    private void checkRows( List<Object[]> rows ) throws Exception {
+        assertEquals( NROW, rows.size() );
+        for ( int i = 0; i < NROW; i++ ) {
+            Object[] row = rows.get( i );
+            Object[] trow = table_.getRow( i );
+            assertEquals( trow[ 0 ], row[ 0 ] );
+            assertEquals( trow[ 1 ], row[ 1 ] );
+            assertEquals( trow[ 2 ], row[ 2 ] );
+        }
+    }
+
+    /**
+     * Minimal in-memory stand-in for a database, accessed through
+     * dynamic proxy implementations of the JDBC interfaces.
+     * It records the number of calls made to each JDBC method.
+     */
+    private static class FakeDatabase {
+        final List<Object[]> rows_ =
+            Collections.synchronizedList( new ArrayList<Object[]>() );
+        final Map<String,Integer> counts_ = new HashMap<String,Integer>();
+        int failAt_ = -1;
+        int nBatch_;
+        boolean supportsBatch_ = true;
+
+        synchronized int count( String method ) {
+            Integer c = counts_.get( method );
+            return c == null ? 0 : c.intValue();
+        }
+
+        synchronized void record( String method ) {
+            counts_.put( method, new Integer( count( method ) + 1 ) );
+        }
+
+        Connector connector() {
+            return new Connector() {
+                public Connection getConnection() {
+                    return connect();
+                }
+            };
+        }
+
+        Connection connect() {
+            final boolean[] state = new boolean[] { true, false };
+            return (Connection) proxy( Connection.class, new Handler() {
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "getMetaData" ) ) {
+                        return createMetaData();
+                    }
+                    else if ( name.equals( "createStatement" ) ) {
+                        return proxy( Statement.class, new Handler() );
+                    }
+                    else if ( name.equals( "prepareStatement" ) ) {
+                        return createStatement();
+                    }
+                    else if ( name.equals( "getAutoCommit" ) ) {
+                        return Boolean.valueOf( state[ 0 ] );
+                    }
+                    else if ( name.equals( "setAutoCommit" ) ) {
+                        state[ 0 ] = ((Boolean) args[ 0 ]).booleanValue();
+                    }
+                    else if ( name.equals( "close" ) ) {
+                        state[ 1 ] = true;
+                    }
+                    else if ( name.equals( "isClosed" ) ) {
+                        return Boolean.valueOf( state[ 1 ] );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        PreparedStatement createStatement() {
+            return (PreparedStatement)
+                   proxy( PreparedStatement.class, new Handler() {
+                final Object[] params = new Object[ 3 ];
+                final List<Object[]> batch = new ArrayList<Object[]>();
+                Object handle( String name, Object[] args )
+                        throws SQLException {
+                    if ( name.startsWith( "set" ) ) {
+                        int pix = ((Integer) args[ 0 ]).intValue();
+                        params[ pix - 1 ] = name.equals( "setNull" )
+                                          ? null
+                                          : args[ 1 ];
+                    }
+                    else if ( name.equals( "addBatch" ) ) {
+                        batch.add( params.clone() );
+                    }
+                    else if ( name.equals( "executeBatch" ) ) {
+                        synchronized ( FakeDatabase.this ) {
+                            if ( ++nBatch_ == failAt_ ) {
+                                throw new SQLException( "Batch failure" );
+                            }
+                        }
+                        rows_.addAll( batch );
+                        int[] results = new int[ batch.size() ];
+                        batch.clear();
+                        return results;
+                    }
+                    else if ( name.equals( "executeUpdate" ) ) {
+                        rows_.add( params.clone() );
+                        return new Integer( 1 );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        DatabaseMetaData createMetaData() {
+            return (DatabaseMetaData)
+                   proxy( DatabaseMetaData.class, new Handler() {
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "supportsBatchUpdates" ) ) {
+                        return Boolean.valueOf( supportsBatch_ );
+                    }
+                    else if ( name.equals( "getIdentifierQuoteString" ) ) {
+                        return "\"";
+                    }
+                    else if ( name.equals( "getTypeInfo" ) ) {
+                        return createTypeInfo();
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        ResultSet createTypeInfo() {
+            final String[] names = { "INTEGER", "DOUBLE", "VARCHAR", };
+            final int[] types = { Types.INTEGER, Types.DOUBLE, Types.VARCHAR };
+            return (ResultSet) proxy( ResultSet.class, new Handler() {
+                int ix = -1;
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "next" ) ) {
+                        return Boolean.valueOf( ++ix < names.length );
+                    }
+                    else if ( name.equals( "getString" ) ) {
+                        return names[ ix ];
+                    }
+                    else if ( name.equals( "getShort" ) ) {
+                        return new Short( (short) types[ ix ] );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        Object proxy( Class<?> clazz, final Handler handler ) {
+            return Proxy.newProxyInstance(
+                       clazz.getClassLoader(), new Class<?>[] { clazz },
+                       new InvocationHandler() {
+                public Object invoke( Object proxy, Method method,
+                                      Object[] args )
+                        throws Throwable {
+                    String name = method.getName();
+                    record( name );
+                    Object result = handler.handle( name, args );
+                    if ( result == null ) {
+                        result = getDefault( method.getReturnType() );
+                    }
+                    return result;
+                }
+            } );
+        }
+
+        static Object getDefault( Class<?> clazz ) {
+            if ( clazz == boolean.class ) {
+                return Boolean.FALSE;
+            }
+            else if ( clazz == int.class ) {
+                return new Integer( 0 );
+            }
+            else if ( clazz == long.class ) {
+                return new Long( 0 );
+            }
+            else if ( clazz == short.class ) {
+                return new Short( (short) 0 );
+            }
+            else {
+                return null;
+            }
+        }
+    }
+
+    private static class Handler {
+        Object handle( String name, Object[] args ) throws SQLException {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package uk.ac.starlink.table.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
+
+public class PartitionedJDBCStarTableTest extends TestCase {
+
+    private static final int NROW = 1001;
+    private static final String SQL = "SELECT * FROM fake ORDER BY id";
+    private static final Pattern LIMIT_REGEX =
+        Pattern.compile( ".* LIMIT ([0-9]+) OFFSET ([0-9]+)" );
+    private static final Pattern LO_REGEX =
+        Pattern.compile( ".*\"id\" >= ([0-9]+).*" );
+    private static final Pattern HI_REGEX =
+        Pattern.compile( ".*\"id\" < ([0-9]+).*" );
+
+    private final Object[][] rows_;
+
+    public PartitionedJDBCStarTableTest( String name ) {
+        super( name );
+        Logger.getLogger( "uk.ac.starlink.table.jdbc" )
+              .setLevel( Level.WARNING );
+        rows_ = new Object[ NROW ][];
+        for ( int i = 0; i < NROW; i++ ) {
+            rows_[ i ] = new Object[] {
+                i == NROW - 1 ? null : new Integer( i * 3 ),
+                i % 7 == 0 ? null : new BigDecimal( i * 0.25 ),
+                "r" + i,
+            };
+        }
+    }
+
+    public void testRangeConditions() {
+        assertEquals( Arrays.asList( new String[] {
+                          "k < 4", "k >= 4 AND k < 7",
+                          "(k >= 7 OR k IS NULL)",
+                      } ),
+                      Arrays.asList( PartitionedJDBCStarTable
+                                    .getRangeConditions( "k",
+                                                         new Integer( 0 ),
+                                                         new Long( 9 ),
+                                                         3 ) ) );
+        assertEquals( Arrays.asList( new String[] {
+                          "k < 1.5", "(k >= 1.5 OR k IS NULL)",
+                      } ),
+                      Arrays.asList( PartitionedJDBCStarTable
+                                    .getRangeConditions( "k", new Double( 1 ),
+                                                         new Double( 2 ),
+                                                         2 ) ) );
+    }
+
+    public void testTrimTerminator() {
+        assertEquals( SQL, PartitionedJDBCStarTable.trimTerminator( SQL ) );
+        assertEquals( SQL, PartitionedJDBCStarTable
+                          .trimTerminator( SQL + ";\n" ) );
+        assertEquals( "", PartitionedJDBCStarTable.trimTerminator( " ; " ) );
+    }
+
+    public void testKeyPartitions() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        StarTable table =
+            new PartitionedJDBCStarTable( db, SQL, "id", 4,
+                                          StoragePolicy.PREFER_MEMORY,
+                                          TypeMappers.STANDARD );
+        checkTable( table );
+        assertEquals( 5, db.nconn_ );
+        assertEquals( 4, db.partSqls_.size() );
+        assertEquals( 0, db.nObjectRead_ );
+    }
+
+    public void testOffsetPartitions() throws Exception {
+        FakeDatabase db = new FakeDatabase();
+        StarTable table =
+            new PartitionedJDBCStarTable( db, SQL + " ; ", null, 3,
+                                          StoragePolicy.PREFER_MEMORY,
+                                          TypeMappers.STANDARD );
+        checkTable( table );
+        assertEquals( 4, db.nconn_ );
+        assertEquals( 3, db.partSqls_.size() );
+        assertEquals( 0, db.nObjectRead_ );
+        for ( String partSql : db.partSqls_ ) {
+            assertTrue( partSql,
+                        partSql.startsWith( "SELECT * FROM (" + SQL
+                                          + ") partq LIMIT " ) );
+        }
+
+        db = new FakeDatabase();
+        table = new PartitionedJDBCStarTable( db, SQL, null, 1,
+                                              StoragePolicy.PREFER_MEMORY,
+                                              TypeMappers.IDENTITY );
+        assertEquals( 1, db.nconn_ );
+        assertEquals( BigDecimal.class,
+                      table.getColumnInfo( 1 ).getContentClass() );
+        assertEquals( rows_[ 5 ][ 1 ], table.getCell( 5, 1 ) );
+        assertTrue( db.nObjectRead_ > 0 );
+    }
+
+    private void checkTable( StarTable table ) throws Exception {
+        assertTrue( table.isRandom() );
+        assertEquals( NROW, table.getRowCount() );
+        assertEquals( 3, table.getColumnCount() );
+        assertEquals( Integer.class, table.getColumnInfo( 0 )
+                                          .getContentClass() );
+        assertEquals( Double.class, table.getColumnInfo( 1 )
+                                         .getContentClass() );
+        assertEquals( String.class, table.getColumnInfo( 2 )
+                                         .getContentClass() );
+        for ( int i = 0; i < NROW; i++ ) {
+            Object[] row = table.getRow( i );
+            assertEquals( rows_[ i ][ 0 ], row[ 0 ] );
+            BigDecimal dval = (BigDecimal) rows_[ i ][ 1 ];
+            assertEquals( dval == null ? null
+                                       : new Double( dval.doubleValue() ),
+                          row[ 1 ] );
+            assertEquals( rows_[ i ][ 2 ], row[ 2 ] );
+        }
+    }
+
+    /**
+     * Connector supplying dynamic proxy connections to a fake database
+     * holding a single table.  It understands just enough SQL
+     * to serve the queries made by PartitionedJDBCStarTable.
+     */
+    private class FakeDatabase implements Connector {
+        final List<String> partSqls_ = new ArrayList<String>();
+        int nconn_;
+        int nObjectRead_;
+
+        public synchronized Connection getConnection() {
+            nconn_++;
+            return (Connection) proxy( Connection.class, new Handler() {
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "getMetaData" ) ) {
+                        return proxy( DatabaseMetaData.class, new Handler() {
+                            Object handle( String mname, Object[] margs ) {
+                                return "getIdentifierQuoteString"
+                                      .equals( mname ) ? "\"" : null;
+                            }
+                        } );
+                    }
+                    else if ( name.equals( "createStatement" ) ) {
+                        return createStatement();
+                    }
+                    else if ( name.equals( "getAutoCommit" ) ) {
+                        return Boolean.TRUE;
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        Statement createStatement() {
+            return (Statement) proxy( Statement.class, new Handler() {
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "executeQuery" ) ) {
+                        return executeQuery( (String) args[ 0 ] );
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        ResultSet executeQuery( String sql ) {
+            if ( sql.startsWith( "SELECT MIN(\"id\"), MAX(\"id\") FROM (" ) ) {
+                return createResultSet( new Object[][] {
+                    { new Integer( 0 ), new Integer( ( NROW - 2 ) * 3 ) },
+                } );
+            }
+            else if ( sql.startsWith( "SELECT COUNT(*) FROM (" ) ) {
+                return createResultSet( new Object[][] {
+                    { new Long( NROW ) },
+                } );
+            }
+            synchronized ( this ) {
+                partSqls_.add( sql );
+            }
+            Matcher limitMatcher = LIMIT_REGEX.matcher( sql );
+            List<Object[]> rows = new ArrayList<Object[]>();
+            if ( limitMatcher.matches() ) {
+                int limit = Integer.parseInt( limitMatcher.group( 1 ) );
+                int offset = Integer.parseInt( limitMatcher.group( 2 ) );
+                for ( int i = offset; i < Math.min( offset + limit, NROW );
+                      i++ ) {
+                    rows.add( rows_[ i ] );
+                }
+            }
+            else {
+                Matcher loMatcher = LO_REGEX.matcher( sql );
+                Matcher hiMatcher = HI_REGEX.matcher( sql );
+                int lo = loMatcher.matches()
+                       ? Integer.parseInt( loMatcher.group( 1 ) )
+                       : Integer.MIN_VALUE;
+                int hi = hiMatcher.matches()
+                       ? Integer.parseInt( hiMatcher.group( 1 ) )
+                       : Integer.MAX_VALUE;
+                boolean nulls = sql.endsWith( "IS NULL)" );
+                for ( int i = 0; i < NROW; i++ ) {
+                    Integer id = (Integer) rows_[ i ][ 0 ];
+                    if ( id == null ? nulls
+                                    : id.intValue() >= lo
+                                      && id.intValue() < hi ) {
+                        rows.add( rows_[ i ] );
+                    }
+                }
+            }
+            return createResultSet( rows.toArray( new Object[ 0 ][] ) );
+        }
+
+        ResultSet createResultSet( final Object[][] rows ) {
+            return (ResultSet) proxy( ResultSet.class, new Handler() {
+                int irow = -1;
+                boolean wasNull;
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "next" ) ) {
+                        return Boolean.valueOf( ++irow < rows.length );
+                    }
+                    else if ( name.equals( "getMetaData" ) ) {
+                        return createMetaData();
+                    }
+                    else if ( name.equals( "wasNull" ) ) {
+                        return Boolean.valueOf( wasNull );
+                    }
+                    else if ( name.startsWith( "get" ) ) {
+                        int jcol = ((Integer) args[ 0 ]).intValue();
+                        Object value = rows[ irow ][ jcol - 1 ];
+                        wasNull = value == null;
+                        if ( name.equals( "getObject" ) ) {
+                            if ( rows[ irow ].length == 3 && jcol < 3 ) {
+                                synchronized ( FakeDatabase.this ) {
+                                    nObjectRead_++;
+                                }
+                            }
+                            return value;
+                        }
+                        else if ( name.equals( "getInt" ) ) {
+                            return new Integer( value == null
+                                ? 0 : ((Number) value).intValue() );
+                        }
+                        else if ( name.equals( "getLong" ) ) {
+                            return new Long( value == null
+                                ? 0 : ((Number) value).longValue() );
+                        }
+                        else if ( name.equals( "getDouble" ) ) {
+                            return new Double( value == null
+                                ? 0 : ((Number) value).doubleValue() );
+                        }
+                    }
+                    return null;
+                }
+            } );
+        }
+
+        ResultSetMetaData createMetaData() {
+            final String[] names = { "id", "x", "name" };
+            final String[] classes = {
+                Integer.class.getName(), BigDecimal.class.getName(),
+                String.class.getName(),
+            };
+            return (ResultSetMetaData)
+                   proxy( ResultSetMetaData.class, new Handler() {
+                Object handle( String name, Object[] args ) {
+                    if ( name.equals( "getColumnCount" ) ) {
+                        return new Integer( names.length );
+                    }
+                    int jcol = ((Integer) args[ 0 ]).intValue();
+                    if ( name.equals( "getColumnName" ) ||
+                         name.equals( "getColumnLabel" ) ) {
+                        return names[ jcol - 1 ];
+                    }
+                    else if ( name.equals( "getColumnClassName" ) ) {
+                        return classes[ jcol - 1 ];
+                    }
+                    else if ( name.equals( "isNullable" ) ) {
+                        return new Integer( ResultSetMetaData
+                                           .columnNullable );
+                    }
+                    return null;
+                }
+            } );
+        }
+    }
+
+    private static Object proxy( Class<?> clazz, final Handler handler ) {
+        return Proxy.newProxyInstance(
+                   clazz.getClassLoader(), new Class<?>[] { clazz },
+                   new InvocationHandler() {
+            public Object invoke( Object proxy, Method method,
+                                  Object[] args ) {
+                Object result = handler.handle( method.getName(), args );
+                if ( result == null ) {
+                    Class<?> rclazz = method.getReturnType();
+                    if ( rclazz == boolean.class ) {
+                        result = Boolean.FALSE;
+                    }
+                    else if ( rclazz == int.class ) {
+                        result = new Integer( 0 );
+                    }
+                }
+                return result;
+            }
+        } );
+    }
+
+    private static class Handler {
+        Object handle( String name, Object[] args ) {
+            return null;
+        }
+    }
+}
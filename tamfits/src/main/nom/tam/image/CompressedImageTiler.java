@@ -0,0 +1,933 @@
+package nom.tam.image;
+
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.fits.HeaderCardException;
+import nom.tam.util.ArrayFuncs;
+import nom.tam.util.Cursor;
+import nom.tam.util.RandomAccess;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/** This class provides subsets of an image stored using the FITS
+ *  tiled image compression convention, in which the image is
+ *  divided into rectangular tiles which are compressed separately
+ *  and stored in the rows of a binary table.
+ *  <p>
+ *  Only the tiles which overlap a requested subset are read and
+ *  decompressed.  Decompressed tiles are held in a least recently
+ *  used cache, and when a request needs several tiles which are
+ *  not cached they are decompressed in parallel, using a pool of
+ *  daemon threads shared by all tilers.  Decompression is done
+ *  without holding a lock on the tiler, so that several threads
+ *  may read from the same image at once.
+ *  The RICE_1, GZIP_1, GZIP_2 and NOCOMPRESS algorithms are supported,
+ *  as is quantization of floating point data with or without
+ *  subtractive dithering.
+ *  <p>
+ *  As for the ImageTiler class, image dimensions, corners and lengths
+ *  are given in Java order, so that the last index varies fastest.
+ *  The tile data returned have the type given by the ZBITPIX keyword.
+ *  Floating point values which are flagged as null in the compressed
+ *  data are returned as NaN; integer values are not scaled.
+ */
+
+public class CompressedImageTiler extends ImageTiler {
+
+    /** Default maximum number of decompressed pixels held in the cache. */
+    public static final long DEFAULT_CACHE_PIXELS = 4 * 1024 * 1024;
+
+    /** Threads shared by all tilers for decompressing tiles. */
+    private static ExecutorService decodePool;
+
+    /** The value representing zero in SUBTRACTIVE_DITHER_2 data. */
+    private static final int DITHER2_ZERO = -2147483646;
+
+    /** Keywords of the table header which do not describe the image. */
+    private static final Pattern TABLE_KEYS = Pattern.compile(
+	"SIMPLE|XTENSION|BITPIX|NAXIS[0-9]*|PCOUNT|GCOUNT|EXTEND|END|" +
+	"TFIELDS|THEAP|T(TYPE|FORM|UNIT|DIM|NULL|SCAL|ZERO|DISP)[0-9]+|" +
+	"ZIMAGE|ZCMPTYPE|ZBITPIX|ZNAXIS[0-9]*|ZTILE[0-9]+|" +
+	"ZNAME[0-9]+|ZVAL[0-9]+|ZMASKCMP|ZQUANTIZ|ZDITHER0|" +
+	"ZSIMPLE|ZTENSION|ZEXTEND|ZBLOCKED|ZPCOUNT|ZGCOUNT|" +
+	"ZSCALE|ZZERO|ZBLANK|ZHECKSUM|ZDATASUM|CHECKSUM|DATASUM");
+
+    /** The translated image header. */
+    private Header	imageHeader;
+
+    /** The BITPIX of the uncompressed image. */
+    private int		bitpix;
+
+    /** Image and tile dimensions, in FITS order. */
+    private int[]	znaxis;
+    private int[]	ztile;
+    private int[]	ntile;
+
+    /** Compression parameters. */
+    private String	cmptype;
+    private int		blocksize = 32;
+    private int		bytepix;
+    private boolean	quantized;
+    private int		ditherMethod;
+    private int		dither0 = 1;
+    private double	zscale = 1.0;
+    private double	zzero  = 0.0;
+    private boolean	hasBlank;
+    private int		zblank;
+
+    /** The binary table rows and their layout. */
+    private byte[]	table;
+    private int		rowLength;
+    private int		nrow;
+    private long	heapOffset;
+    private Column	dataCol;
+    private Column	gzipCol;
+    private Column	uncompCol;
+    private Column	scaleCol;
+    private Column	zeroCol;
+    private Column	blankCol;
+
+    /** The cache of decompressed tiles, keyed by table row. */
+    private LinkedHashMap<Integer,Object> cache =
+	new LinkedHashMap<Integer,Object>(16, 0.75f, true);
+    private long	cachePixels;
+    private long	maxCachePixels = DEFAULT_CACHE_PIXELS;
+    private int		nthread =
+	Runtime.getRuntime().availableProcessors();
+
+    /** Create a tiler for a compressed image.
+     *  The rows of the binary table are read immediately, but the
+     *  compressed tiles in the heap are only read when required.
+     *  @param f	The random access device containing the table.
+     *  @param dataOffset  The offset of the start of the table data
+     *                  (the end of the table header) within f.
+     *  @param hdr	The header of the binary table.
+     *  @exception IOException if the header does not describe a
+     *                  supported compressed image, or the table cannot
+     *                  be read.
+     */
+    public CompressedImageTiler(RandomAccess f, long dataOffset, Header hdr)
+      throws IOException {
+
+	super(f, dataOffset, null, null);
+	if (!isCompressedImage(hdr)) {
+	    throw new IOException("Not a tile-compressed image");
+	}
+
+	/* Image geometry. */
+	bitpix = hdr.getIntValue("ZBITPIX", 0);
+	base = getBaseClass(bitpix);
+	int naxis = hdr.getIntValue("ZNAXIS", 0);
+	if (naxis < 1) {
+	    throw new IOException("Bad ZNAXIS value "+naxis);
+	}
+	znaxis = new int[naxis];
+	ztile  = new int[naxis];
+	ntile  = new int[naxis];
+	dims   = new int[naxis];
+	for (int i=0; i<naxis; i += 1) {
+	    znaxis[i] = hdr.getIntValue("ZNAXIS"+(i+1), 0);
+	    ztile[i]  = hdr.getIntValue("ZTILE"+(i+1), i == 0 ? znaxis[0] : 1);
+	    if (znaxis[i] < 1 || ztile[i] < 1) {
+		throw new IOException("Bad dimensions for axis "+(i+1));
+	    }
+	    ntile[i] = (znaxis[i] + ztile[i] - 1) / ztile[i];
+	    dims[naxis-1-i] = znaxis[i];
+	}
+
+	/* Compression algorithm and parameters. */
+	cmptype = hdr.getStringValue("ZCMPTYPE");
+	cmptype = cmptype == null ? "" : cmptype.trim();
+	if (!cmptype.equals("RICE_1") && !cmptype.equals("GZIP_1") &&
+	    !cmptype.equals("GZIP_2") && !cmptype.equals("NOCOMPRESS")) {
+	    throw new IOException("Unsupported compression type '"+
+				  cmptype+"'");
+	}
+	bytepix = bitpix > 0 ? Math.min(bitpix/8, 4) : 4;
+	for (int i=1; hdr.containsKey("ZNAME"+i); i += 1) {
+	    String name = hdr.getStringValue("ZNAME"+i).trim();
+	    if (name.equals("BLOCKSIZE")) {
+		blocksize = hdr.getIntValue("ZVAL"+i, blocksize);
+	    } else if (name.equals("BYTEPIX")) {
+		bytepix = hdr.getIntValue("ZVAL"+i, bytepix);
+	    }
+	}
+	String quant = hdr.getStringValue("ZQUANTIZ");
+	quant = quant == null ? "NO_DITHER" : quant.trim();
+	if (quant.equals("SUBTRACTIVE_DITHER_1")) {
+	    ditherMethod = 1;
+	} else if (quant.equals("SUBTRACTIVE_DITHER_2")) {
+	    ditherMethod = 2;
+	}
+	dither0 = Math.max(hdr.getIntValue("ZDITHER0", 1), 1);
+	zscale = hdr.getDoubleValue("ZSCALE", zscale);
+	zzero  = hdr.getDoubleValue("ZZERO", zzero);
+	if (hdr.containsKey("ZBLANK")) {
+	    hasBlank = true;
+	    zblank = hdr.getIntValue("ZBLANK", 0);
+	}
+
+	/* Table layout. */
+	rowLength = hdr.getIntValue("NAXIS1", 0);
+	nrow = hdr.getIntValue("NAXIS2", 0);
+	heapOffset = dataOffset +
+		     hdr.getLongValue("THEAP", (long) rowLength * nrow);
+	int nfield = hdr.getIntValue("TFIELDS", 0);
+	int offset = 0;
+	for (int i=1; i<=nfield; i += 1) {
+	    String tform = hdr.getStringValue("TFORM"+i);
+	    if (tform == null) {
+		throw new IOException("No TFORM for column "+i);
+	    }
+	    Column col = new Column(offset, tform.trim());
+	    String ttype = hdr.getStringValue("TTYPE"+i);
+	    ttype = ttype == null ? "" : ttype.trim().toUpperCase();
+	    if (ttype.equals("COMPRESSED_DATA")) {
+		dataCol = col;
+	    } else if (ttype.equals("GZIP_COMPRESSED_DATA")) {
+		gzipCol = col;
+	    } else if (ttype.equals("UNCOMPRESSED_DATA")) {
+		uncompCol = col;
+	    } else if (ttype.equals("ZSCALE")) {
+		scaleCol = col;
+	    } else if (ttype.equals("ZZERO")) {
+		zeroCol = col;
+	    } else if (ttype.equals("ZBLANK")) {
+		blankCol = col;
+		hasBlank = true;
+	    }
+	    offset += col.width;
+	}
+	if (offset != rowLength) {
+	    throw new IOException("Column widths do not match NAXIS1");
+	}
+	if (dataCol == null || !dataCol.isVariable) {
+	    throw new IOException("No COMPRESSED_DATA column");
+	}
+	int ntiles = 1;
+	for (int i=0; i<naxis; i += 1) {
+	    ntiles *= ntile[i];
+	}
+	if (nrow != ntiles) {
+	    throw new IOException("Table has "+nrow+" rows for "+ntiles+
+				  " tiles");
+	}
+	quantized = bitpix < 0 && !quant.equals("NONE") &&
+		    (scaleCol != null || hdr.containsKey("ZSCALE"));
+	if (cmptype.equals("RICE_1") &&
+	    (bitpix == 64 || (bitpix < 0 && !quantized))) {
+	    throw new IOException("Rice compression not supported for " +
+				  "BITPIX "+bitpix);
+	}
+
+	/* Read the table rows. */
+	table = new byte[rowLength * nrow];
+	f.seek(dataOffset);
+	f.readFully(table);
+
+	imageHeader = translateHeader(hdr);
+    }
+
+    /** Is this the header of a tile-compressed image? */
+    public static boolean isCompressedImage(Header hdr) {
+	String xtension = hdr.getStringValue("XTENSION");
+	return xtension != null && xtension.trim().equals("BINTABLE") &&
+	       hdr.getBooleanValue("ZIMAGE", false);
+    }
+
+    /** Get the dimensions of the image in Java order. */
+    public int[] getDims() {
+	return (int[]) dims.clone();
+    }
+
+    /** Get the BITPIX value of the uncompressed image. */
+    public int getBitpix() {
+	return bitpix;
+    }
+
+    /** Get the primitive type of the image data. */
+    public Class getBaseClass() {
+	return base;
+    }
+
+    /** Get the compression algorithm name (the ZCMPTYPE value). */
+    public String getCompressionType() {
+	return cmptype;
+    }
+
+    /** Get a header describing the uncompressed image.
+     *  @see #translateHeader
+     */
+    public Header getImageHeader() {
+	return imageHeader;
+    }
+
+    /** Set the maximum number of decompressed pixels which will
+     *  be cached.  At least one tile is always retained.
+     */
+    public synchronized void setCacheSize(long npix) {
+	maxCachePixels = npix;
+	trimCache();
+    }
+
+    /** Set the number of threads used to decompress tiles in parallel.
+     *  A value of 1 decompresses tiles in the calling thread.
+     */
+    public synchronized void setDecodeThreads(int nthread) {
+	this.nthread = Math.max(nthread, 1);
+    }
+
+    /** Get a tile, filling in a prespecified array.
+     *  Data not within the image are left unchanged.
+     *  @param	outArray	The output tile array.  The length of this
+     *                          array should be the product of lengths.
+     *  @param  corners		The corners of the tile.
+     *  @param  lengths		The dimensions of the tile.
+     */
+    public void getTile(Object outArray, int[] corners, int[] lengths)
+      throws IOException {
+
+	int n = dims.length;
+	if (corners.length != n || lengths.length != n) {
+	    throw new IOException("Inconsistent sub-image request");
+	}
+
+	/* Work in FITS order, and find the part of the image covered.
+	 * As for ImageTiler, a zero length is treated as one except
+	 * for the fastest varying index. */
+	int[] lo = new int[n];
+	int[] a0 = new int[n];
+	int[] a1 = new int[n];
+	int[] ostride = new int[n];
+	int stride = 1;
+	for (int i=0; i<n; i += 1) {
+	    int len = lengths[n-1-i];
+	    if (len == 0 && i > 0) {
+		len = 1;
+	    }
+	    lo[i] = corners[n-1-i];
+	    a0[i] = Math.max(lo[i], 0);
+	    a1[i] = Math.min(lo[i] + len, znaxis[i]);
+	    if (a1[i] <= a0[i]) {
+		return;
+	    }
+	    ostride[i] = stride;
+	    stride *= len;
+	}
+
+	/* Find the compression tiles which overlap it. */
+	int[] t0 = new int[n];
+	int[] t1 = new int[n];
+	for (int i=0; i<n; i += 1) {
+	    t0[i] = a0[i] / ztile[i];
+	    t1[i] = (a1[i] - 1) / ztile[i];
+	}
+	List<int[]> tiles = new ArrayList<int[]>();
+	Set<Integer> rows = new LinkedHashSet<Integer>();
+	int[] t = (int[]) t0.clone();
+	while (true) {
+	    tiles.add((int[]) t.clone());
+	    rows.add(new Integer(tileRow(t)));
+	    int i = 0;
+	    for ( ; i<n; i += 1) {
+		if (++t[i] <= t1[i]) {
+		    break;
+		}
+		t[i] = t0[i];
+	    }
+	    if (i == n) {
+		break;
+	    }
+	}
+
+	/* Decompress them and copy the overlapping rows. */
+	Map<Integer,Object> data = fetchTiles(rows);
+	int[] torg = new int[n];
+	int[] tstride = new int[n];
+	int[] b0 = new int[n];
+	int[] b1 = new int[n];
+	for (int[] tile : tiles) {
+	    Object tdata = data.get(new Integer(tileRow(tile)));
+	    stride = 1;
+	    for (int i=0; i<n; i += 1) {
+		torg[i] = tile[i] * ztile[i];
+		int tsize = Math.min(ztile[i], znaxis[i] - torg[i]);
+		tstride[i] = stride;
+		stride *= tsize;
+		b0[i] = Math.max(a0[i], torg[i]);
+		b1[i] = Math.min(a1[i], torg[i] + tsize);
+	    }
+	    int run = b1[0] - b0[0];
+	    int[] p = (int[]) b0.clone();
+	    while (true) {
+		int src = 0;
+		int dst = 0;
+		for (int i=0; i<n; i += 1) {
+		    src += (p[i] - torg[i]) * tstride[i];
+		    dst += (p[i] - lo[i]) * ostride[i];
+		}
+		System.arraycopy(tdata, src, outArray, dst, run);
+		int i = 1;
+		for ( ; i<n; i += 1) {
+		    if (++p[i] < b1[i]) {
+			break;
+		    }
+		    p[i] = b0[i];
+		}
+		if (i >= n) {
+		    break;
+		}
+	    }
+	}
+    }
+
+    /** Read a run of pixels in the order in which they would be
+     *  stored in an uncompressed FITS image.
+     *  @param offset	The offset of the first pixel in the image.
+     *  @param outArray	A primitive array of the image type.
+     *  @param start	The index in outArray of the first pixel read.
+     *  @param size	The number of pixels to read.
+     */
+    public void readPixels(long offset, Object outArray, int start,
+			   int size)
+      throws IOException {
+	long npix = 1;
+	for (int i=0; i<znaxis.length; i += 1) {
+	    npix *= znaxis[i];
+	}
+	if (offset < 0 || size < 0 || offset + size > npix) {
+	    throw new IOException("Pixels "+offset+"+"+size+
+				  " not within image");
+	}
+	Set<Integer> rows = new LinkedHashSet<Integer>();
+	walkPixels(offset, size, rows, null, null, 0);
+	walkPixels(offset, size, null, fetchTiles(rows), outArray, start);
+    }
+
+    /** Step through the tile segments covering a run of pixels.
+     *  If rows is not null, the table rows needed are added to it.
+     *  Otherwise the segments are copied from the data map to the
+     *  output array.
+     */
+    private void walkPixels(long offset, int size, Set<Integer> rows,
+			    Map<Integer,Object> data, Object outArray,
+			    int start) {
+	int n = znaxis.length;
+	int[] p = new int[n];
+	int[] t = new int[n];
+	while (size > 0) {
+	    long r = offset;
+	    for (int i=0; i<n; i += 1) {
+		p[i] = (int) (r % znaxis[i]);
+		r /= znaxis[i];
+		t[i] = p[i] / ztile[i];
+	    }
+	    int end0 = Math.min((t[0] + 1) * ztile[0], znaxis[0]);
+	    int num = Math.min(size, end0 - p[0]);
+	    Integer row = new Integer(tileRow(t));
+	    if (rows != null) {
+		rows.add(row);
+	    } else {
+		int src = 0;
+		int stride = 1;
+		for (int i=0; i<n; i += 1) {
+		    int torg = t[i] * ztile[i];
+		    src += (p[i] - torg) * stride;
+		    stride *= Math.min(ztile[i], znaxis[i] - torg);
+		}
+		System.arraycopy(data.get(row), src, outArray, start, num);
+	    }
+	    offset += num;
+	    start += num;
+	    size -= num;
+	}
+    }
+
+    /** Get the table row (0-based) holding a given tile. */
+    private int tileRow(int[] t) {
+	int row = 0;
+	for (int i=t.length-1; i>=0; i -= 1) {
+	    row = row * ntile[i] + t[i];
+	}
+	return row;
+    }
+
+    /** Get the number of pixels in the tile held in a given row. */
+    private int tilePixels(int row) {
+	int npix = 1;
+	for (int i=0; i<ntile.length; i += 1) {
+	    int torg = (row % ntile[i]) * ztile[i];
+	    row /= ntile[i];
+	    npix *= Math.min(ztile[i], znaxis[i] - torg);
+	}
+	return npix;
+    }
+
+    /** Get the decompressed data for a set of tiles, using the cache
+     *  where possible.  Tiles which are not cached are read serially
+     *  and then decompressed, in parallel if there are several.
+     *  The lock on this tiler is held while the cache is consulted and
+     *  the file is read, but not during decompression.
+     *  @param rows	The table rows of the tiles required.
+     *  @return		A map from row to decompressed tile data
+     *                  containing all the rows requested.
+     */
+    private Map<Integer,Object> fetchTiles(Set<Integer> rows)
+      throws IOException {
+	Map<Integer,Object> result = new HashMap<Integer,Object>();
+	final List<Integer> missing = new ArrayList<Integer>();
+	final byte[][][] raw;
+	int nt;
+	synchronized (this) {
+	    for (Integer row : rows) {
+		Object tdata = cache.get(row);
+		if (tdata != null) {
+		    result.put(row, tdata);
+		} else {
+		    missing.add(row);
+		}
+	    }
+	    if (missing.isEmpty()) {
+		return result;
+	    }
+	    raw = new byte[missing.size()][][];
+	    for (int i=0; i<raw.length; i += 1) {
+		raw[i] = readTile(missing.get(i).intValue());
+	    }
+	    nt = nthread;
+	}
+
+	/* Decompress, each task taking every nt'th missing tile. */
+	final int nmiss = raw.length;
+	final Object[] decoded = new Object[nmiss];
+	nt = Math.min(nt, nmiss);
+	if (nt <= 1) {
+	    for (int i=0; i<nmiss; i += 1) {
+		decoded[i] = decodeTile(missing.get(i).intValue(), raw[i]);
+	    }
+	} else {
+	    ExecutorService pool = getDecodePool();
+	    List<Future<Object>> futures = new ArrayList<Future<Object>>();
+	    for (int it=0; it<nt; it += 1) {
+		final int i0 = it;
+		final int step = nt;
+		futures.add(pool.submit(new Callable<Object>() {
+		    public Object call() throws IOException {
+			for (int i=i0; i<nmiss; i += step) {
+			    decoded[i] = decodeTile(missing.get(i).intValue(),
+						    raw[i]);
+			}
+			return null;
+		    }
+		}));
+	    }
+	    try {
+		for (Future<Object> future : futures) {
+		    getResult(future);
+		}
+	    } finally {
+		for (Future<Object> future : futures) {
+		    future.cancel(true);
+		}
+	    }
+	}
+
+	/* Another thread may have cached some of the same tiles
+	 * meanwhile; the latest copy replaces the earlier one. */
+	synchronized (this) {
+	    for (int i=0; i<nmiss; i += 1) {
+		Integer row = missing.get(i);
+		result.put(row, decoded[i]);
+		if (cache.put(row, decoded[i]) == null) {
+		    cachePixels += tilePixels(row.intValue());
+		}
+	    }
+	    trimCache();
+	}
+	return result;
+    }
+
+    /** Get the thread pool used for decompressing tiles, creating it
+     *  if necessary.  Idle threads are discarded after a while.
+     */
+    private static synchronized ExecutorService getDecodePool() {
+	if (decodePool == null) {
+	    decodePool = Executors.newCachedThreadPool(new ThreadFactory() {
+		private int ithread;
+		public synchronized Thread newThread(Runnable r) {
+		    Thread th = new Thread(r, "Tile decoder "+(++ithread));
+		    th.setDaemon(true);
+		    return th;
+		}
+	    });
+	}
+	return decodePool;
+    }
+
+    /** Get the result of a decoding task, rethrowing any exception. */
+    private static Object getResult(Future<Object> future)
+      throws IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    throw (IOException)
+		  new IOException("Interrupted").initCause(e);
+	} catch (ExecutionException e) {
+	    Throwable err = e.getCause();
+	    if (err instanceof IOException) {
+		throw (IOException) err;
+	    } else if (err instanceof RuntimeException) {
+		throw (RuntimeException) err;
+	    } else if (err instanceof Error) {
+		throw (Error) err;
+	    } else {
+		throw (IOException) new IOException(err.getMessage())
+				   .initCause(err);
+	    }
+	}
+    }
+
+    /** Discard least recently used tiles until the cache is
+     *  within its size limit.
+     */
+    private void trimCache() {
+	Iterator<Map.Entry<Integer,Object>> it =
+	    cache.entrySet().iterator();
+	while (cachePixels > maxCachePixels && cache.size() > 1) {
+	    Map.Entry<Integer,Object> entry = it.next();
+	    cachePixels -= tilePixels(entry.getKey().intValue());
+	    it.remove();
+	}
+    }
+
+    /** Read the heap data for a tile.
+     *  @return	The contents of the COMPRESSED_DATA,
+     *          GZIP_COMPRESSED_DATA and UNCOMPRESSED_DATA cells
+     *          of the row; the last two may be null.
+     */
+    private byte[][] readTile(int row) throws IOException {
+	return new byte[][] {
+	    readHeapCell(dataCol, row),
+	    readHeapCell(gzipCol, row),
+	    readHeapCell(uncompCol, row),
+	};
+    }
+
+    /** Read the heap data for a variable length array cell. */
+    private byte[] readHeapCell(Column col, int row) throws IOException {
+	if (col == null) {
+	    return null;
+	}
+	ByteBuffer bb = ByteBuffer.wrap(table);
+	int pos = row * rowLength + col.offset;
+	long count;
+	long offset;
+	if (col.width == 16) {
+	    count = bb.getLong(pos);
+	    offset = bb.getLong(pos+8);
+	} else {
+	    count = bb.getInt(pos) & 0xffffffffL;
+	    offset = bb.getInt(pos+4) & 0xffffffffL;
+	}
+	byte[] buf = new byte[(int) (count * col.elementSize)];
+	if (buf.length > 0) {
+	    f.seek(heapOffset + offset);
+	    f.readFully(buf);
+	}
+	return buf;
+    }
+
+    /** Get the value of a numeric scalar column, or a default. */
+    private double getColumnValue(Column col, int row, double dflt) {
+	if (col == null) {
+	    return dflt;
+	}
+	ByteBuffer bb = ByteBuffer.wrap(table);
+	int pos = row * rowLength + col.offset;
+	switch (col.type) {
+	  case 'B':
+	    return bb.get(pos) & 0xff;
+	  case 'I':
+	    return bb.getShort(pos);
+	  case 'J':
+	    return bb.getInt(pos);
+	  case 'K':
+	    return bb.getLong(pos);
+	  case 'E':
+	    return bb.getFloat(pos);
+	  case 'D':
+	    return bb.getDouble(pos);
+	  default:
+	    return dflt;
+	}
+    }
+
+    /** Decompress a tile.  This method may be called from several
+     *  threads at once.
+     *  @param row	The table row of the tile.
+     *  @param raw	The heap data read by readTile.
+     *  @return		A primitive array of the image type.
+     */
+    private Object decodeTile(int row, byte[][] raw) throws IOException {
+	int npix = tilePixels(row);
+	byte[] cdata = raw[0];
+	byte[] gdata = raw[1];
+	byte[] udata = raw[2];
+
+	/* Tiles which could not be quantized are stored losslessly. */
+	if (gdata != null && gdata.length > 0) {
+	    return TileDecompressor.toArray(TileDecompressor.gunzip(gdata),
+					    base, npix);
+	}
+	if (cdata.length == 0 && udata != null && udata.length > 0) {
+	    Object u = TileDecompressor.toArray(udata, uncompCol.elementType,
+						npix);
+	    return uncompCol.elementType == base
+		 ? u : ArrayFuncs.convertArray(u, base);
+	}
+
+	/* Otherwise decompress the stored values. */
+	Class stored = quantized ? int.class : base;
+	Object values;
+	if (cmptype.equals("RICE_1")) {
+	    int[] ivals = TileDecompressor.riceDecompress(cdata, npix,
+							  blocksize, bytepix);
+	    if (stored == int.class) {
+		values = ivals;
+	    } else if (stored == short.class) {
+		short[] svals = new short[npix];
+		for (int i=0; i<npix; i += 1) {
+		    svals[i] = (short) ivals[i];
+		}
+		values = svals;
+	    } else {
+		byte[] bvals = new byte[npix];
+		for (int i=0; i<npix; i += 1) {
+		    bvals[i] = (byte) ivals[i];
+		}
+		values = bvals;
+	    }
+	} else {
+	    byte[] bytes = cdata;
+	    if (cmptype.equals("GZIP_1")) {
+		bytes = TileDecompressor.gunzip(cdata);
+	    } else if (cmptype.equals("GZIP_2")) {
+		bytes = TileDecompressor.unshuffle(
+			    TileDecompressor.gunzip(cdata),
+			    TileDecompressor.elementSize(stored));
+	    }
+	    values = TileDecompressor.toArray(bytes, stored, npix);
+	}
+	return quantized ? unquantize(row, (int[]) values) : values;
+    }
+
+    /** Convert quantized values to floating point. */
+    private Object unquantize(int row, int[] ivals) {
+	int npix = ivals.length;
+	double scale = getColumnValue(scaleCol, row, zscale);
+	double zero  = getColumnValue(zeroCol, row, zzero);
+	int blank = (int) getColumnValue(blankCol, row, zblank);
+	double[] dvals = new double[npix];
+	if (ditherMethod == 0) {
+	    for (int i=0; i<npix; i += 1) {
+		int v = ivals[i];
+		dvals[i] = hasBlank && v == blank ? Double.NaN
+						  : v * scale + zero;
+	    }
+	} else {
+	    float[] rand = TileDecompressor.getRandoms();
+	    int nrand = TileDecompressor.N_RANDOM;
+	    int iseed = (row + dither0 - 1) % nrand;
+	    int nextrand = (int) (rand[iseed] * 500);
+	    for (int i=0; i<npix; i += 1) {
+		int v = ivals[i];
+		if (hasBlank && v == blank) {
+		    dvals[i] = Double.NaN;
+		} else if (ditherMethod == 2 && v == DITHER2_ZERO) {
+		    dvals[i] = 0.0;
+		} else {
+		    dvals[i] = (v - rand[nextrand] + 0.5) * scale + zero;
+		}
+		if (++nextrand == nrand) {
+		    iseed = (iseed + 1) % nrand;
+		    nextrand = (int) (rand[iseed] * 500);
+		}
+	    }
+	}
+	if (base == double.class) {
+	    return dvals;
+	}
+	float[] fvals = new float[npix];
+	for (int i=0; i<npix; i += 1) {
+	    fvals[i] = (float) dvals[i];
+	}
+	return fvals;
+    }
+
+    /** Translate the header of a compressed image table into the
+     *  header of the uncompressed image.
+     *  The compression keywords are replaced by the equivalent image
+     *  keywords, the table structure keywords are removed, and other
+     *  keywords are copied unchanged.
+     *  @param hdr	The header of the binary table.
+     */
+    public static Header translateHeader(Header hdr) throws IOException {
+	int bitpix = hdr.getIntValue("ZBITPIX", 0);
+	int naxis = hdr.getIntValue("ZNAXIS", 0);
+	boolean simple = hdr.containsKey("ZSIMPLE");
+	List<String> cards = new ArrayList<String>();
+	try {
+	    if (simple) {
+		cards.add(new HeaderCard("SIMPLE", true,
+					 "Uncompressed image").toString());
+	    } else {
+		cards.add(new HeaderCard("XTENSION", "IMAGE",
+					 "Uncompressed image").toString());
+	    }
+	    cards.add(new HeaderCard("BITPIX", bitpix, null).toString());
+	    cards.add(new HeaderCard("NAXIS", naxis, null).toString());
+	    for (int i=1; i<=naxis; i += 1) {
+		cards.add(new HeaderCard("NAXIS"+i,
+					 hdr.getLongValue("ZNAXIS"+i, 0), null)
+			  .toString());
+	    }
+	    if (!simple) {
+		cards.add(new HeaderCard("PCOUNT", 0, null).toString());
+		cards.add(new HeaderCard("GCOUNT", 1, null).toString());
+	    }
+	    if (bitpix > 0 && hdr.containsKey("ZBLANK")) {
+		cards.add(new HeaderCard("BLANK", hdr.getIntValue("ZBLANK", 0),
+					 null).toString());
+	    }
+	} catch (HeaderCardException e) {
+	    throw (IOException) new IOException(e.getMessage())
+			       .initCause(e);
+	}
+	for (Cursor it = hdr.iterator(); it.hasNext(); ) {
+	    HeaderCard card = (HeaderCard) it.next();
+	    String key = card.getKey();
+	    if (key == null || !TABLE_KEYS.matcher(key.trim()).matches()) {
+		cards.add(card.toString());
+	    }
+	}
+	return new Header(cards.toArray(new String[0]));
+    }
+
+    /** Get the primitive type corresponding to a BITPIX value. */
+    private static Class getBaseClass(int bitpix) throws IOException {
+	switch (bitpix) {
+	  case 8:
+	    return byte.class;
+	  case 16:
+	    return short.class;
+	  case 32:
+	    return int.class;
+	  case 64:
+	    return long.class;
+	  case -32:
+	    return float.class;
+	  case -64:
+	    return double.class;
+	  default:
+	    throw new IOException("Bad ZBITPIX value "+bitpix);
+	}
+    }
+
+    /** Describes the position and format of a binary table column. */
+    private static class Column {
+
+	final int	offset;
+	final int	width;
+	final char	type;
+	final boolean	isVariable;
+	final Class	elementType;
+	final int	elementSize;
+
+	/** Create a column from its TFORM value. */
+	Column(int offset, String tform) throws IOException {
+	    this.offset = offset;
+	    int ic = 0;
+	    while (ic < tform.length() &&
+		   Character.isDigit(tform.charAt(ic))) {
+		ic += 1;
+	    }
+	    if (ic == tform.length()) {
+		throw new IOException("Bad TFORM '"+tform+"'");
+	    }
+	    int repeat = ic == 0 ? 1
+			       : Integer.parseInt(tform.substring(0, ic));
+	    char t = Character.toUpperCase(tform.charAt(ic));
+	    isVariable = t == 'P' || t == 'Q';
+	    if (isVariable) {
+		width = repeat * (t == 'P' ? 8 : 16);
+		type = ic+1 < tform.length()
+		     ? Character.toUpperCase(tform.charAt(ic+1)) : 'B';
+	    } else {
+		type = t;
+		width = t == 'X' ? (repeat + 7) / 8
+				 : repeat * typeSize(t, tform);
+	    }
+	    elementType = getElementType(type);
+	    elementSize = typeSize(type, tform);
+	}
+
+	/** Get the size in bytes of a TFORM data type. */
+	private static int typeSize(char t, String tform) throws IOException {
+	    switch (t) {
+	      case 'L':
+	      case 'B':
+	      case 'A':
+	      case 'X':
+		return 1;
+	      case 'I':
+		return 2;
+	      case 'J':
+	      case 'E':
+		return 4;
+	      case 'K':
+	      case 'D':
+	      case 'C':
+	      case 'P':
+		return 8;
+	      case 'M':
+	      case 'Q':
+		return 16;
+	      default:
+		throw new IOException("Bad TFORM '"+tform+"'");
+	    }
+	}
+
+	/** Get the primitive type of a numeric TFORM data type. */
+	private static Class getElementType(char t) {
+	    switch (t) {
+	      case 'I':
+		return short.class;
+	      case 'J':
+		return int.class;
+	      case 'K':
+		return long.class;
+	      case 'E':
+		return float.class;
+	      case 'D':
+		return double.class;
+	      default:
+		return byte.class;
+	    }
+	}
+    }
+}
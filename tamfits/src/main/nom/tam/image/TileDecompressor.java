@@ -0,0 +1,270 @@
+package nom.tam.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/** This class provides the decompression algorithms used by
+ *  the FITS tiled image compression convention.
+ *  The RICE_1, GZIP_1, GZIP_2 and NOCOMPRESS algorithms are
+ *  supported.  The Rice decoder follows the one in CFITSIO.
+ *  <p>
+ *  All methods are static and thread-safe.
+ */
+
+public class TileDecompressor {
+
+    /** Number of values in the dithering random number table. */
+    public static final int N_RANDOM = 10000;
+
+    /** The dithering random number table, created lazily. */
+    private static float[] randoms;
+
+    private TileDecompressor() {
+    }
+
+    /** Decompress a buffer of Rice-compressed integers.
+     *  @param c	The compressed bytes.
+     *  @param nx	The number of values to decode.
+     *  @param nblock	The number of values in each coding block
+     *                  (the BLOCKSIZE parameter).
+     *  @param bytepix	The number of bytes in each coded value;
+     *                  1, 2 or 4.
+     *  @return		The decoded values.  For bytepix less than 4
+     *                  only the low order bytes are significant.
+     */
+    public static int[] riceDecompress(byte[] c, int nx, int nblock,
+				       int bytepix) throws IOException {
+
+	int fsbits;
+	int fsmax;
+	switch (bytepix) {
+	  case 1:
+	    fsbits = 3;
+	    fsmax  = 6;
+	    break;
+	  case 2:
+	    fsbits = 4;
+	    fsmax  = 14;
+	    break;
+	  case 4:
+	    fsbits = 5;
+	    fsmax  = 25;
+	    break;
+	  default:
+	    throw new IOException("Unsupported Rice BYTEPIX "+bytepix);
+	}
+	int bbits = 8*bytepix;
+
+	int[] array = new int[nx];
+	if (nx == 0) {
+	    return array;
+	}
+	if (c.length < bytepix+1) {
+	    throw new IOException("Rice compressed data too short");
+	}
+
+	/* The first value is stored without encoding. */
+	int lastpix = 0;
+	int ic = 0;
+	for (int i=0; i<bytepix; i += 1) {
+	    lastpix = (lastpix << 8) | (c[ic++] & 0xff);
+	}
+
+	int b = c[ic++] & 0xff;		// bit buffer
+	int nbits = 8;			// number of bits remaining in b
+	try {
+	    for (int i=0; i<nx; ) {
+
+		/* Get the FS value from the first fsbits. */
+		nbits -= fsbits;
+		while (nbits < 0) {
+		    b = (b << 8) | (c[ic++] & 0xff);
+		    nbits += 8;
+		}
+		int fs = (b >>> nbits) - 1;
+		b &= (1 << nbits) - 1;
+		int imax = Math.min(i+nblock, nx);
+
+		if (fs < 0) {
+		    /* Low entropy case: all differences are zero. */
+		    for ( ; i<imax; i += 1) {
+			array[i] = lastpix;
+		    }
+
+		} else if (fs == fsmax) {
+		    /* High entropy case: differences stored directly. */
+		    for ( ; i<imax; i += 1) {
+			int k = bbits - nbits;
+			int diff = k < 32 ? b << k : 0;
+			for (k -= 8; k >= 0; k -= 8) {
+			    b = c[ic++] & 0xff;
+			    diff |= b << k;
+			}
+			if (nbits > 0) {
+			    b = c[ic++] & 0xff;
+			    diff |= b >>> (-k);
+			    b &= (1 << nbits) - 1;
+			} else {
+			    b = 0;
+			}
+			lastpix += unmap(diff);
+			array[i] = lastpix;
+		    }
+
+		} else {
+		    /* Normal case: Rice coding. */
+		    for ( ; i<imax; i += 1) {
+			while (b == 0) {
+			    nbits += 8;
+			    b = c[ic++] & 0xff;
+			}
+			int nzero = nbits -
+			            (32 - Integer.numberOfLeadingZeros(b));
+			nbits -= nzero+1;
+			b ^= 1 << nbits;
+			nbits -= fs;
+			while (nbits < 0) {
+			    b = (b << 8) | (c[ic++] & 0xff);
+			    nbits += 8;
+			}
+			int diff = (nzero << fs) | (b >>> nbits);
+			b &= (1 << nbits) - 1;
+			lastpix += unmap(diff);
+			array[i] = lastpix;
+		    }
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException e) {
+	    throw new IOException("Rice compressed data truncated");
+	}
+	return array;
+    }
+
+    /** Undo the mapping of signed differences to unsigned values. */
+    private static int unmap(int diff) {
+	return (diff & 1) == 0 ? diff >>> 1 : ~(diff >>> 1);
+    }
+
+    /** Decompress a GZIP_1 compressed buffer.
+     *  @param c	The compressed bytes.
+     *  @return		The uncompressed bytes.
+     */
+    public static byte[] gunzip(byte[] c) throws IOException {
+	InputStream in = new GZIPInputStream(new ByteArrayInputStream(c));
+	ByteArrayOutputStream out = new ByteArrayOutputStream(c.length*4);
+	byte[] buf = new byte[16384];
+	try {
+	    for (int n; (n = in.read(buf)) >= 0; ) {
+		out.write(buf, 0, n);
+	    }
+	} finally {
+	    in.close();
+	}
+	return out.toByteArray();
+    }
+
+    /** Undo the byte shuffling used by the GZIP_2 algorithm,
+     *  in which the most significant bytes of all the values
+     *  are stored first, followed by the next most significant
+     *  bytes, and so on.
+     *  @param in	The shuffled bytes.
+     *  @param width	The number of bytes in each value.
+     *  @return		The values in normal (big-endian) byte order.
+     */
+    public static byte[] unshuffle(byte[] in, int width) {
+	if (width <= 1) {
+	    return in;
+	}
+	int n = in.length / width;
+	byte[] out = new byte[in.length];
+	for (int j=0; j<width; j += 1) {
+	    int off = j*n;
+	    for (int i=0; i<n; i += 1) {
+		out[i*width+j] = in[off+i];
+	    }
+	}
+	return out;
+    }
+
+    /** Convert a buffer of big-endian values to a primitive array.
+     *  @param in	The bytes.
+     *  @param type	The primitive type of the values.
+     *  @param n	The number of values.
+     *  @return		A primitive array of the given type.
+     */
+    public static Object toArray(byte[] in, Class type, int n)
+      throws IOException {
+	int width = elementSize(type);
+	if (in.length < n*width) {
+	    throw new IOException("Tile data too short: "+in.length+
+				  " < "+n*width);
+	}
+	ByteBuffer bb = ByteBuffer.wrap(in);
+	if (type == byte.class) {
+	    byte[] out = new byte[n];
+	    System.arraycopy(in, 0, out, 0, n);
+	    return out;
+	} else if (type == short.class) {
+	    short[] out = new short[n];
+	    bb.asShortBuffer().get(out);
+	    return out;
+	} else if (type == int.class) {
+	    int[] out = new int[n];
+	    bb.asIntBuffer().get(out);
+	    return out;
+	} else if (type == long.class) {
+	    long[] out = new long[n];
+	    bb.asLongBuffer().get(out);
+	    return out;
+	} else if (type == float.class) {
+	    float[] out = new float[n];
+	    bb.asFloatBuffer().get(out);
+	    return out;
+	} else {
+	    double[] out = new double[n];
+	    bb.asDoubleBuffer().get(out);
+	    return out;
+	}
+    }
+
+    /** Get the number of bytes in a FITS value of a given primitive type.
+     */
+    public static int elementSize(Class type) {
+	if (type == byte.class) {
+	    return 1;
+	} else if (type == short.class) {
+	    return 2;
+	} else if (type == int.class || type == float.class) {
+	    return 4;
+	} else if (type == long.class || type == double.class) {
+	    return 8;
+	} else {
+	    throw new IllegalArgumentException("Not a FITS type: "+type);
+	}
+    }
+
+    /** Get the table of random numbers used for subtractive dithering
+     *  of quantized floating point values.
+     *  This is the sequence defined by the tiled image compression
+     *  convention (a Park-Miller generator seeded with 1).
+     */
+    public static synchronized float[] getRandoms() {
+	if (randoms == null) {
+	    float[] r = new float[N_RANDOM];
+	    double a = 16807.0;
+	    double m = 2147483647.0;
+	    double seed = 1.0;
+	    for (int i=0; i<N_RANDOM; i += 1) {
+		double temp = a * seed;
+		seed = temp - m * ((int) (temp / m));
+		r[i] = (float) (seed / m);
+	    }
+	    randoms = r;
+	}
+	return randoms;
+    }
+}
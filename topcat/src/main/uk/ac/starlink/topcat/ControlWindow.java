@@ -121,6 +121,7 @@ import uk.ac.starlink.topcat.plot.LinesWindow;
 import uk.ac.starlink.topcat.plot.PlotWindow;
 import uk.ac.starlink.topcat.plot.SphereWindow;
 import uk.ac.starlink.topcat.plot2.Control;
+import uk.ac.starlink.topcat.plot2.PlotCacheWindow;
 import uk.ac.starlink.topcat.plot2.PlotWindowType;
 import uk.ac.starlink.topcat.plot2.StackPlotWindow;
 import uk.ac.starlink.topcat.vizier.VizierTableLoadDialog;
@@ -199,6 +200,7 @@ public class ControlWindow extends AuxWindow
     private SiaMultiWindow multisiaWindow_;
     private SsaMultiWindow multissaWindow_;
     private CdsUploadMatchWindow cdsmatchWindow_;
+    private PlotCacheWindow plotCacheWindow_;
     private ExtApp extApp_;
     private TopcatModel currentModel_;
     private int iPlotwin_;
@@ -230,6 +232,7 @@ public class ControlWindow extends AuxWindow
     private final Action cdsmatchAct_;
     private final ModelViewAction datalinkAct_;
     private final Action logAct_;
+    private final Action plotCacheAct_;
     private final Action[] matchActs_;
     private final ShowAction[] showActs_;
     private final ModelViewAction[] viewActs_;
@@ -372,6 +375,10 @@ public class ControlWindow extends AuxWindow
         readAct_.setEnabled( canRead_ );
         saveAct_.setEnabled( canWrite_ );
         logAct_.setEnabled( LogHandler.getInstance() != null );
+        plotCacheAct_ =
+            new ControlAction( "View Plot Cache", null,
+                               "Display the contents of the plot data cache "
+                             + "shared between plot windows" );
 
         dupAct_ = new ExportAction( "Duplicate Table", ResourceIcon.COPY,
                                     "Create a duplicate of the current table" );
@@ -616,6 +623,7 @@ public class ControlWindow extends AuxWindow
         }
         fileMenu.insertSeparator( fileMenuPos++ );
         fileMenu.insert( logAct_, fileMenuPos++ );
+        fileMenu.insert( plotCacheAct_, fileMenuPos++ );
         fileMenu.insertSeparator( fileMenuPos++ );
 
         /* Add a menu for the table views. */
@@ -800,6 +808,7 @@ public class ControlWindow extends AuxWindow
                      .createDefaultTopcatModel( table, location, this );
             tcModel.setLabel( shorten( location ) );
         }
+        watchDataChanges( tcModel );
         tablesModel_.addElement( tcModel );
         logger_.info( "Load new table " + tcModel + " from " + location );
         if ( select || tablesList_.getSelectedValue() == null ) {
@@ -1077,6 +1086,21 @@ public class ControlWindow extends AuxWindow
         return cdsmatchWindow_;
     }
 
+    /**
+     * Returns a window which displays the contents of the plot data cache
+     * shared between plot windows.
+     *
+     * @return  plot cache window
+     */
+    public PlotCacheWindow getPlotCacheWindow() {
+        if ( plotCacheWindow_ == null ) {
+            plotCacheWindow_ =
+                new PlotCacheWindow( StackPlotWindow.getSharedColumnCache(),
+                                     this );
+        }
+        return plotCacheWindow_;
+    }
+
     /**
      * Returns the table factory used by this window.
      *
@@ -1617,6 +1641,9 @@ public class ControlWindow extends AuxWindow
             else if ( this == logAct_ ) {
                 LogHandler.getInstance().showWindow( ControlWindow.this );
             }
+            else if ( this == plotCacheAct_ ) {
+                getPlotCacheWindow().makeVisible();
+            }
             else {
                 throw new AssertionError();
             }
@@ -1953,6 +1980,59 @@ public class ControlWindow extends AuxWindow
         comp.setTransferHandler( exportTransferHandler_ );
     }
 
+    /**
+     * Arranges that changes to a table's data, columns, row order
+     * or subsets invalidate any plot data read from it which is held
+     * in the cache shared between plot windows.
+     *
+     * @param  tcModel  table
+     */
+    private static void watchDataChanges( TopcatModel tcModel ) {
+        final StarTable dataModel = tcModel.getDataModel();
+        tcModel.getViewModel().addTableModelListener( new TableModelListener() {
+            public void tableChanged( TableModelEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+        } );
+        tcModel.getColumnModel()
+               .addColumnModelListener( new TableColumnModelListener() {
+            public void columnAdded( TableColumnModelEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+            public void columnRemoved( TableColumnModelEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+            public void columnMoved( TableColumnModelEvent evt ) {
+            }
+            public void columnMarginChanged( ChangeEvent evt ) {
+            }
+            public void columnSelectionChanged( ListSelectionEvent evt ) {
+            }
+        } );
+        tcModel.getSubsets().addListDataListener( new ListDataListener() {
+            public void contentsChanged( ListDataEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+            public void intervalAdded( ListDataEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+            public void intervalRemoved( ListDataEvent evt ) {
+                StackPlotWindow.getSharedColumnCache().dataChanged( dataModel );
+            }
+        } );
+        tcModel.addTopcatListener( new TopcatListener() {
+            public void modelChanged( TopcatEvent evt ) {
+                int code = evt.getCode();
+                if ( code == TopcatEvent.CURRENT_SUBSET ||
+                     code == TopcatEvent.CURRENT_ORDER ||
+                     code == TopcatEvent.SHOW_SUBSET ) {
+                    StackPlotWindow.getSharedColumnCache()
+                                   .dataChanged( dataModel );
+                }
+            }
+        } );
+    }
+
     /**
      * Utility method to turn a location string into a shorter version 
      * by stripping directory information etc.
@@ -59,6 +59,15 @@ public class GuiDataStore implements DataStore {
                     : null;
     }
 
+    /**
+     * Returns the data store on which this one is based.
+     *
+     * @return  base data store
+     */
+    public DataStore getBaseStore() {
+        return base_;
+    }
+
     public boolean hasData( DataSpec dataSpec ) {
         return base_.hasData( dataSpec );
     }
@@ -0,0 +1,178 @@
+package uk.ac.starlink.topcat.plot2;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.Action;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import uk.ac.starlink.topcat.AuxWindow;
+import uk.ac.starlink.topcat.BasicAction;
+import uk.ac.starlink.topcat.ResourceIcon;
+import uk.ac.starlink.ttools.plot2.data.SharedColumnCache;
+
+/**
+ * Window displaying the contents of the plot data cache shared between
+ * TOPCAT plot windows.  This is intended for instrumentation purposes.
+ */
+public class PlotCacheWindow extends AuxWindow {
+
+    private final SharedColumnCache cache_;
+    private final ItemTableModel tModel_;
+    private final JLabel summaryLabel_;
+    private final Timer timer_;
+
+    /** Interval in milliseconds between automatic updates. */
+    private static final int UPDATE_MILLIS = 2000;
+
+    /**
+     * Constructor.
+     *
+     * @param  cache  cache to display
+     * @param  parent  parent component
+     */
+    public PlotCacheWindow( SharedColumnCache cache, Component parent ) {
+        super( "Plot Data Cache", parent );
+        cache_ = cache;
+        tModel_ = new ItemTableModel();
+        JTable jtable = new JTable( tModel_ );
+        JScrollPane scroller = new JScrollPane( jtable );
+        scroller.setPreferredSize( new Dimension( 600, 250 ) );
+        summaryLabel_ = new JLabel();
+        summaryLabel_.setBorder( BorderFactory
+                                .createEmptyBorder( 5, 5, 5, 5 ) );
+        JComponent main = getMainArea();
+        main.setLayout( new BorderLayout() );
+        main.add( scroller, BorderLayout.CENTER );
+        main.add( summaryLabel_, BorderLayout.SOUTH );
+
+        /* Keep the display up to date while the window is visible. */
+        timer_ = new Timer( UPDATE_MILLIS, new ActionListener() {
+            public void actionPerformed( ActionEvent evt ) {
+                updateDisplay();
+            }
+        } );
+
+        /* Add actions. */
+        Action refreshAct =
+                new BasicAction( "Refresh", ResourceIcon.REDO,
+                                 "Update the display of cache contents" ) {
+            public void actionPerformed( ActionEvent evt ) {
+                updateDisplay();
+            }
+        };
+        Action clearAct =
+                new BasicAction( "Clear", ResourceIcon.CLEAR,
+                                 "Discard cached data not currently "
+                               + "in use by plots" ) {
+            public void actionPerformed( ActionEvent evt ) {
+                cache_.clear();
+                updateDisplay();
+            }
+        };
+        getToolBar().add( refreshAct );
+        getToolBar().add( clearAct );
+        getToolBar().addSeparator();
+        addHelp( null );
+        updateDisplay();
+    }
+
+    @Override
+    public void setVisible( boolean isVis ) {
+        if ( isVis ) {
+            updateDisplay();
+            timer_.start();
+        }
+        else {
+            timer_.stop();
+        }
+        super.setVisible( isVis );
+    }
+
+    /**
+     * Updates the displayed information from the current state
+     * of the cache.
+     */
+    private void updateDisplay() {
+        tModel_.items_ = cache_.getItems();
+        tModel_.fireTableDataChanged();
+        long nhit = cache_.getHitCount();
+        long nmiss = cache_.getMissCount();
+        long nreq = nhit + nmiss;
+        summaryLabel_.setText( new StringBuilder()
+            .append( "Hits: " )
+            .append( nhit )
+            .append( "/" )
+            .append( nreq )
+            .append( nreq > 0 ? ( " (" + ( 100 * nhit / nreq ) + "%)" ) : "" )
+            .append( ";   Retained: " )
+            .append( formatMegabytes( cache_.getRetainedBytes() ) )
+            .append( " of " )
+            .append( formatMegabytes( cache_.getMaxBytes() ) )
+            .toString() );
+    }
+
+    /**
+     * Formats a byte count in megabytes.
+     *
+     * @param  nbyte  byte count
+     * @return  human-readable string
+     */
+    private static String formatMegabytes( long nbyte ) {
+        return ( ( nbyte + 512 * 1024 ) / ( 1024 * 1024 ) ) + "M";
+    }
+
+    /**
+     * Table model displaying cache items.
+     */
+    private static class ItemTableModel extends AbstractTableModel {
+        SharedColumnCache.Item[] items_ = new SharedColumnCache.Item[ 0 ];
+        private static final String[] COLNAMES = new String[] {
+            "Data", "Type", "Rows", "Size", "Retained", "Hits",
+        };
+        private static final Class<?>[] COLCLAZZES = new Class<?>[] {
+            String.class, String.class, Long.class, String.class,
+            Boolean.class, Long.class,
+        };
+        public int getColumnCount() {
+            return COLNAMES.length;
+        }
+        public int getRowCount() {
+            return items_.length;
+        }
+        public Object getValueAt( int ir, int ic ) {
+            SharedColumnCache.Item item = items_[ ir ];
+            switch ( ic ) {
+                case 0:
+                    return item.getLabel();
+                case 1:
+                    return item.getStorageType().toString();
+                case 2:
+                    return new Long( item.getRowCount() );
+                case 3:
+                    return formatMegabytes( item.getByteCount() );
+                case 4:
+                    return Boolean.valueOf( item.isRetained() );
+                case 5:
+                    return new Long( item.getHitCount() );
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+        @Override
+        public String getColumnName( int ic ) {
+            return COLNAMES[ ic ];
+        }
+        @Override
+        public Class<?> getColumnClass( int ic ) {
+            return COLCLAZZES[ ic ];
+        }
+    }
+}
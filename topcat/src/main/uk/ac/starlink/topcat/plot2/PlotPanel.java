@@ -155,6 +155,10 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.plot2" );
 
+    static {
+        PyramidManager.install();
+    }
+
     /**
      * Constructor.  Factories to gather various information required
      * for the plot are passed in.
@@ -2120,13 +2124,15 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
      */
     private class PlotJobRunner {
         private final Object simObj_;
-        private final int rowStep_;
+        private final int[] rowSteps_;
         private PlotJob plotJob_;
         private volatile Cancellable fullCanceler_;
-        private volatile Cancellable stepCanceler_;
+        private volatile Cancellable[] stepCancelers_;
         private volatile long fullPlotMillis_;
         private static final int MAX_FULL_PLOT_MILLIS = 250;
         private static final int MAX_STEP_PLOT_MILLIS = 100;
+        private static final int REFINE_FACTOR = 8;
+        private static final int MAX_STEP_PASSES = 3;
 
         /**
          * Constructor.
@@ -2150,7 +2156,9 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
             plotJob_ = plotJob;
             simObj_ = getSimilarityObject( plotJob );
             assert simObj_.equals( getSimilarityObject( plotJob ) );
-            rowStep_ = sketchModel_.isSelected() ? getRowStep( refRunner ) : 1;
+            rowSteps_ = sketchModel_.isSelected()
+                      ? getRowSteps( getRowStep( refRunner ) )
+                      : new int[ 0 ];
         }
 
         /**
@@ -2197,15 +2205,42 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
                 }
             }
 
-            /* Otherwise, copy the step of the reference plot. */
-            else if ( other.rowStep_ > 1 ) {
-                return other.rowStep_;
+            /* Otherwise, copy the coarsest step of the reference plot. */
+            else if ( other.rowSteps_.length > 0 ) {
+                return other.rowSteps_[ 0 ];
             }
             else {
                 return 1;
             }
         }
 
+        /**
+         * Returns the sequence of subsample steps to use for intermediate
+         * plots given the step for the first, coarsest, one.
+         * Each subsequent step is finer than the last by a fixed factor,
+         * so that the intermediate plots progressively refine the
+         * sketched result until the full plot is ready.
+         * Only steps greater than 1 are included; the full plot is
+         * not represented in the result.
+         *
+         * @param  rowStep  subsample step for the first intermediate plot
+         * @return   array of decreasing steps, all greater than 1;
+         *           may be empty
+         */
+        private int[] getRowSteps( int rowStep ) {
+            List<Integer> stepList = new ArrayList<Integer>();
+            for ( int step = rowStep;
+                  step > 1 && stepList.size() < MAX_STEP_PASSES;
+                  step /= REFINE_FACTOR ) {
+                stepList.add( Integer.valueOf( step ) );
+            }
+            int[] steps = new int[ stepList.size() ];
+            for ( int i = 0; i < steps.length; i++ ) {
+                steps[ i ] = stepList.get( i ).intValue();
+            }
+            return steps;
+        }
+
         /**
          * Submits this object's job for execution.
          */
@@ -2230,19 +2265,29 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
                     submitWorkings( workings );
                 }
             };
-            Runnable stepJob = new Runnable() {
-                public void run() {
-                    Workings<A> workings =
-                        plotJob.calculateWorkings( rowStep_, null );
-                    submitWorkings( workings );
-                }
-            };
 
-            /* Submit one or both for execution. */
-            if ( rowStep_ > 1 ) {
-                logger_.info( "Intermediate plot with row step " + rowStep_ );
-                stepCanceler_ = new Cancellable( plotExec_.submit( stepJob ) );
+            /* Submit any subsample plots, coarsest first, followed by
+             * the full plot.  The executor is single-threaded, so they
+             * will execute, and be displayed, in order of submission. */
+            int nstep = rowSteps_.length;
+            Cancellable[] stepCancelers = new Cancellable[ nstep ];
+            if ( nstep > 0 ) {
+                logger_.info( "Intermediate plots with row steps "
+                            + Arrays.toString( rowSteps_ ) );
             }
+            for ( int is = 0; is < nstep; is++ ) {
+                final int rowStep = rowSteps_[ is ];
+                Runnable stepJob = new Runnable() {
+                    public void run() {
+                        Workings<A> workings =
+                            plotJob.calculateWorkings( rowStep, null );
+                        submitWorkings( workings );
+                    }
+                };
+                stepCancelers[ is ] =
+                    new Cancellable( plotExec_.submit( stepJob ) );
+            }
+            stepCancelers_ = stepCancelers;
             fullCanceler_ = new Cancellable( plotExec_.submit( fullJob ) );
         }
 
@@ -2262,16 +2307,21 @@ public class PlotPanel<P,A> extends JComponent implements ActionListener {
              * intermediate views are displayed rather than the screen
              * going blank until there are no more plots pending.
              * Pans and zooms typically come in a cascade of similar jobs.
-             * If a subsample plot is happening, only let that one complete
-             * and not the full plot, so that the screen refresh happens
+             * If subsample plots are happening, only let the first,
+             * coarsest, one complete and not the refinements or the
+             * full plot, so that the screen refresh happens
              * reasonably quickly. 
              * If the plot is different (different layers or data) then
              * cancel the existing plot immediately and start work on
              * a new one. */
             boolean mayInterruptIfRunning = nextIsNotSimilar;
-            if ( stepCanceler_ != null ) {
+            Cancellable[] stepCancelers = stepCancelers_;
+            if ( stepCancelers != null && stepCancelers.length > 0 ) {
                 fullCanceler_.cancel( true );
-                stepCanceler_.cancel( mayInterruptIfRunning );
+                for ( int is = stepCancelers.length - 1; is > 0; is-- ) {
+                    stepCancelers[ is ].cancel( true );
+                }
+                stepCancelers[ 0 ].cancel( mayInterruptIfRunning );
             }
             else if ( fullCanceler_ != null ) {
                 fullCanceler_.cancel( mayInterruptIfRunning );
@@ -0,0 +1,348 @@
+package uk.ac.starlink.topcat.plot2;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.ttools.plot2.PlotUtil;
+import uk.ac.starlink.ttools.plot2.PointCloud;
+import uk.ac.starlink.ttools.plot2.SubCloud;
+import uk.ac.starlink.ttools.plot2.Surface;
+import uk.ac.starlink.ttools.plot2.data.DataStore;
+import uk.ac.starlink.ttools.plot2.data.SharedColumnCache;
+import uk.ac.starlink.ttools.plot2.data.StepDataStore;
+import uk.ac.starlink.ttools.plot2.geom.PlaneSurface;
+import uk.ac.starlink.ttools.plot2.geom.SkySurface;
+import uk.ac.starlink.ttools.plot2.layer.BinPlan;
+import uk.ac.starlink.ttools.plot2.layer.CountPyramid;
+import uk.ac.starlink.ttools.plot2.layer.PyramidSource;
+
+/**
+ * PyramidSource implementation for use with TOPCAT plot windows.
+ * When a density-like plot is made of a point cloud with many rows,
+ * a count pyramid is built for it in a background thread.
+ * Once it is ready, subsequent plots of the same point cloud,
+ * for instance following zoom or pan navigation actions,
+ * can bin the points from the pyramid rather than rescanning the data.
+ * A limited number of pyramids is retained, with least recently used
+ * ones discarded first.
+ * Pyramids are keyed on the data versions maintained by a
+ * {@link SharedColumnCache}, so that once the data of a table
+ * has changed, pyramids built from the old data are no longer used.
+ *
+ * <p>This behaviour is only enabled if the {@link #PYRAMID_PROP}
+ * system property is set.
+ */
+public class PyramidManager implements PyramidSource {
+
+    private final long minRows_;
+    private final File dir_;
+    private final int maxPlaneLevel_;
+    private final int maxSkyLevel_;
+    private final SharedColumnCache versionCache_;
+    private final Map<Object,CountPyramid> pyramidMap_;
+    private final Set<Object> pendingKeys_;
+    private final ExecutorService buildExecutor_;
+
+    /**
+     * Name of system property giving the minimum number of rows for
+     * which count pyramids will be built ({@value}).
+     * If not set, pyramids are not used.
+     */
+    public static final String PYRAMID_PROP = "topcat.plot2.pyramid";
+
+    /**
+     * Name of system property giving a directory in which pyramid counts
+     * are stored in memory-mapped files ({@value}).
+     * If not set, counts are stored on the heap.
+     */
+    public static final String PYRAMID_DIR_PROP = "topcat.plot2.pyramid.dir";
+
+    /** Maximum number of pyramids retained. */
+    private static final int MAX_PYRAMIDS = 4;
+
+    /**
+     * Number of factors of two by which a plot can be zoomed in from
+     * the view for which a pyramid was built before the pyramid
+     * can no longer be used.
+     */
+    private static final int ZOOM_LEVELS = 3;
+
+    private static boolean isInstalled_;
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.topcat.plot2" );
+
+    /**
+     * Constructor.
+     *
+     * @param  minRows  minimum number of rows in a point cloud for which
+     *                  a pyramid will be built
+     * @param  dir   directory for memory-mapped pyramid storage,
+     *               or null for heap storage
+     * @param  versionCache  cache supplying table data versions
+     */
+    public PyramidManager( long minRows, File dir,
+                           SharedColumnCache versionCache ) {
+        minRows_ = minRows;
+        dir_ = dir;
+        versionCache_ = versionCache;
+
+        /* Levels are chosen according to the plot when a pyramid is built,
+         * but are limited to keep the memory footprint modest;
+         * disk-backed storage can afford finer levels. */
+        maxPlaneLevel_ = dir == null ? 12 : 14;
+        maxSkyLevel_ = dir == null ? 10 : 12;
+        pyramidMap_ = new LinkedHashMap<Object,CountPyramid>( 16, 0.75f,
+                                                              true ) {
+            @Override
+            protected boolean
+                    removeEldestEntry( Map.Entry<Object,CountPyramid> entry ) {
+                return size() > MAX_PYRAMIDS;
+            }
+        };
+        pendingKeys_ = new HashSet<Object>();
+        ThreadFactory thFact = new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread th = new Thread( r, "Plot pyramid builder" );
+                th.setDaemon( true );
+                th.setPriority( Thread.MIN_PRIORITY );
+                return th;
+            }
+        };
+        buildExecutor_ = Executors.newSingleThreadExecutor( thFact );
+    }
+
+    public CountPyramid getPyramid( final PointCloud pointCloud,
+                                    Surface surface, DataStore dataStore ) {
+        final Object key = createKey( pointCloud, surface );
+        if ( key == null ) {
+            return null;
+        }
+        synchronized ( this ) {
+            CountPyramid pyramid = pyramidMap_.get( key );
+            if ( pyramid != null || pendingKeys_.contains( key ) ) {
+                return pyramid;
+            }
+        }
+
+        /* No pyramid ready; if it looks worthwhile, start to build one
+         * from the full, undecorated data store. */
+        final DataStore buildStore = getBuildStore( dataStore );
+        if ( buildStore == null || getRowCount( pointCloud ) < minRows_ ) {
+            return null;
+        }
+        final boolean[] logFlags = surface instanceof PlaneSurface
+                                 ? ((PlaneSurface) surface).getLogFlags()
+                                 : null;
+        final int level = logFlags == null ? getSkyLevel( surface )
+                                           : getPlaneLevel( surface );
+        synchronized ( this ) {
+            pendingKeys_.add( key );
+        }
+        buildExecutor_.execute( new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                CountPyramid pyramid = null;
+                try {
+                    pyramid = logFlags == null
+                        ? CountPyramid
+                         .createSkyPyramid( pointCloud, buildStore,
+                                            level, dir_ )
+                        : CountPyramid
+                         .createPlanePyramid( pointCloud, logFlags, buildStore,
+                                              level, dir_ );
+                    PlotUtil.logTimeFromStart( logger_, "Pyramid", start );
+                }
+                catch ( Throwable e ) {
+                    logger_.log( Level.WARNING,
+                                 "Failed to build count pyramid", e );
+                }
+                finally {
+                    synchronized ( PyramidManager.this ) {
+                        pendingKeys_.remove( key );
+                        if ( pyramid != null ) {
+                            pyramidMap_.put( key, pyramid );
+                        }
+                    }
+                }
+            }
+        } );
+        return null;
+    }
+
+    /**
+     * Returns the finest level for a plane pyramid built for a given
+     * surface.  Its cells are smaller than the surface pixels
+     * by a factor of <code>2^ZOOM_LEVELS</code> if the data fills the plot.
+     *
+     * @param  surface  plane surface
+     * @return  quadtree level
+     */
+    private int getPlaneLevel( Surface surface ) {
+        Rectangle bounds = surface.getPlotBounds();
+        int npix = Math.max( 1, Math.max( bounds.width, bounds.height ) );
+        int level = 32 - Integer.numberOfLeadingZeros( npix - 1 );
+        return Math.min( level + ZOOM_LEVELS, maxPlaneLevel_ );
+    }
+
+    /**
+     * Returns the finest level for a sky pyramid built for a given
+     * surface.  Its cells are smaller than the surface pixels
+     * by a factor of <code>2^ZOOM_LEVELS</code> on a side.
+     *
+     * @param  surface  sky surface
+     * @return  HEALPix level
+     */
+    private int getSkyLevel( Surface surface ) {
+        double pixArea = ((SkySurface) surface).pixelAreaSteradians();
+        if ( ! ( pixArea > 0 ) ) {
+            return maxSkyLevel_;
+        }
+        double cellArea = pixArea / ( 1 << ( 2 * ZOOM_LEVELS ) );
+        for ( int level = 0; level < maxSkyLevel_; level++ ) {
+            if ( 4 * Math.PI / ( 12L << ( 2 * level ) ) <= cellArea ) {
+                return level;
+            }
+        }
+        return maxSkyLevel_;
+    }
+
+    /**
+     * Installs a global PyramidManager if so configured by system
+     * properties.  Calling this method more than once has no
+     * additional effect.
+     */
+    public static synchronized void install() {
+        if ( ! isInstalled_ ) {
+            isInstalled_ = true;
+            String minRowsTxt = getProperty( PYRAMID_PROP );
+            if ( minRowsTxt != null && minRowsTxt.trim().length() > 0 ) {
+                long minRows;
+                try {
+                    minRows = Long.parseLong( minRowsTxt.trim() );
+                }
+                catch ( NumberFormatException e ) {
+                    logger_.warning( "Bad value for " + PYRAMID_PROP + ": "
+                                   + minRowsTxt + " - no pyramids" );
+                    return;
+                }
+                String dirTxt = getProperty( PYRAMID_DIR_PROP );
+                File dir = dirTxt == null || dirTxt.trim().length() == 0
+                         ? null
+                         : new File( dirTxt.trim() );
+                logger_.info( "Plot count pyramids for tables with "
+                            + minRows + "+ rows"
+                            + ( dir == null ? "" : ( " in " + dir ) ) );
+                BinPlan.setPyramidSource(
+                    new PyramidManager( minRows, dir,
+                                        StackPlotWindow
+                                       .getSharedColumnCache() ) );
+            }
+        }
+    }
+
+    /**
+     * Returns an object identifying a pyramid suitable for use with
+     * a given point cloud and surface.
+     * As well as the point cloud itself, this includes the current
+     * data version of each table supplying it.
+     *
+     * @param  pointCloud  point cloud
+     * @param  surface   plot surface
+     * @return   key object, or null if no pyramid is suitable
+     */
+    private Object createKey( PointCloud pointCloud, Surface surface ) {
+        List<Long> versions = new ArrayList<Long>();
+        for ( SubCloud subCloud : pointCloud.getSubClouds() ) {
+            StarTable table = subCloud.getDataSpec().getSourceTable();
+            versions.add( new Long( versionCache_
+                                   .getDataVersion( table ) ) );
+        }
+        if ( surface instanceof SkySurface ) {
+            return Arrays.asList( new Object[] {
+                "sky", pointCloud, versions,
+            } );
+        }
+        else if ( surface instanceof PlaneSurface ) {
+            boolean[] logFlags = ((PlaneSurface) surface).getLogFlags();
+            return Arrays.asList( new Object[] {
+                "plane", pointCloud, versions,
+                Boolean.valueOf( logFlags[ 0 ] ),
+                Boolean.valueOf( logFlags[ 1 ] ),
+            } );
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the data store from which a pyramid can be built,
+     * given the data store supplied for a plot.
+     * This unwraps the GUI decorations so that background scanning
+     * does not interact with progress reporting, and rejects
+     * stores that do not contain all the data.
+     *
+     * @param  dataStore  data store supplied for plotting
+     * @return   data store for building, or null if not suitable
+     */
+    private static DataStore getBuildStore( DataStore dataStore ) {
+        if ( dataStore instanceof GuiDataStore ) {
+            DataStore base = ((GuiDataStore) dataStore).getBaseStore();
+            return base instanceof StepDataStore ||
+                   base instanceof CountDataStore
+                 ? null
+                 : base;
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the total number of rows in the tables that supply a
+     * point cloud.
+     *
+     * @param  pointCloud  point cloud
+     * @return  row count, or -1 if unknown
+     */
+    private static long getRowCount( PointCloud pointCloud ) {
+        long nrow = 0;
+        for ( SubCloud subCloud : pointCloud.getSubClouds() ) {
+            StarTable table = subCloud.getDataSpec().getSourceTable();
+            long n = table.getRowCount();
+            if ( n < 0 ) {
+                return -1;
+            }
+            nrow += n;
+        }
+        return nrow;
+    }
+
+    /**
+     * Returns a system property value, or null if it is not set or
+     * cannot be read.
+     *
+     * @param  name  property name
+     * @return  property value or null
+     */
+    private static String getProperty( String name ) {
+        try {
+            return System.getProperty( name );
+        }
+        catch ( SecurityException e ) {
+            return null;
+        }
+    }
+}
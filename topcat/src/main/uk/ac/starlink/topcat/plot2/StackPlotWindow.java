@@ -96,12 +96,15 @@ import uk.ac.starlink.ttools.plot2.Surface;
 import uk.ac.starlink.ttools.plot2.SurfaceFactory;
 import uk.ac.starlink.ttools.plot2.config.ConfigMap;
 import uk.ac.starlink.ttools.plot2.config.Specifier;
+import uk.ac.starlink.ttools.plot2.data.CachedColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.CachedDataStoreFactory;
 import uk.ac.starlink.ttools.plot2.data.CoordGroup;
 import uk.ac.starlink.ttools.plot2.data.DataSpec;
 import uk.ac.starlink.ttools.plot2.data.DataStore;
 import uk.ac.starlink.ttools.plot2.data.DataStoreFactory;
+import uk.ac.starlink.ttools.plot2.data.DiskColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.MemoryColumnFactory;
+import uk.ac.starlink.ttools.plot2.data.SharedColumnCache;
 import uk.ac.starlink.ttools.plot2.data.SmartColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.TupleSequence;
 import uk.ac.starlink.ttools.plot2.paper.Compositor;
@@ -156,6 +159,26 @@ public class StackPlotWindow<P,A> extends AuxWindow {
     private final ZoneId dfltZone_;
     private boolean hasShader_;
     private static final String[] XYZ = new String[] { "x", "y", "z" };
+
+    /**
+     * Name of system property giving the total size in megabytes of
+     * plot data columns that will be cached in memory ({@value}).
+     * Once that is used, further columns are cached in memory-mapped
+     * temporary files.
+     * If not set, all plot data is cached in memory.
+     */
+    public static final String CACHE_MEM_PROP = "topcat.plot2.cachemem";
+
+    /**
+     * Name of system property giving the size in megabytes of plot data
+     * retained in the shared plot data cache even when no plot window
+     * is currently using it ({@value}).
+     * If not set, data is only shared between windows while in use.
+     */
+    public static final String CACHE_RETAIN_PROP = "topcat.plot2.cacheretain";
+
+    private static SharedColumnCache sharedCache_;
+
     private static final Level REPORT_LEVEL = Level.INFO;
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.plot2" );
@@ -204,7 +227,8 @@ public class StackPlotWindow<P,A> extends AuxWindow {
         surfFact_ = plotType_.getSurfaceFactory();
         DataStoreFactory storeFact =
             new CachedDataStoreFactory(
-                new SmartColumnFactory( new MemoryColumnFactory() ) );
+                new SmartColumnFactory( createBulkColumnFactory() ),
+                getSharedColumnCache() );
         sketchModel_ =
             new ToggleButtonModel( "Sketch Frames", ResourceIcon.SKETCH,
                                    "Draw intermediate frames from subsampled "
@@ -492,6 +516,7 @@ public class StackPlotWindow<P,A> extends AuxWindow {
                 new BasicAction( "Replot", ResourceIcon.REDO,
                                  "Redraw the plot" ) {
             public void actionPerformed( ActionEvent evt ) {
+                getSharedColumnCache().clear();
                 plotPanel_.clearData();
                 plotPanel_.replot();
             }
@@ -1277,6 +1302,65 @@ public class StackPlotWindow<P,A> extends AuxWindow {
         plotPanel_.setHighlights( highMap );
     }
 
+    /**
+     * Returns the plot data cache shared between all plot windows.
+     * Its retention budget is configured by the
+     * {@link #CACHE_RETAIN_PROP} system property.
+     *
+     * @return  shared column cache
+     */
+    public static synchronized SharedColumnCache getSharedColumnCache() {
+        if ( sharedCache_ == null ) {
+            long maxBytes = 0;
+            String retainTxt;
+            try {
+                retainTxt = System.getProperty( CACHE_RETAIN_PROP );
+            }
+            catch ( SecurityException e ) {
+                retainTxt = null;
+            }
+            if ( retainTxt != null && retainTxt.trim().length() > 0 ) {
+                try {
+                    maxBytes = Long.parseLong( retainTxt.trim() )
+                             * 1024 * 1024;
+                }
+                catch ( NumberFormatException e ) {
+                    logger_.warning( "Bad value for " + CACHE_RETAIN_PROP
+                                   + ": " + retainTxt + " - ignored" );
+                }
+            }
+            sharedCache_ = new SharedColumnCache( maxBytes );
+        }
+        return sharedCache_;
+    }
+
+    /**
+     * Returns the column factory used for caching varying plot data.
+     * This is configured by the {@link #CACHE_MEM_PROP} system property.
+     *
+     * @return  column factory
+     */
+    private static CachedColumnFactory createBulkColumnFactory() {
+        String memTxt;
+        try {
+            memTxt = System.getProperty( CACHE_MEM_PROP );
+        }
+        catch ( SecurityException e ) {
+            memTxt = null;
+        }
+        if ( memTxt != null && memTxt.trim().length() > 0 ) {
+            try {
+                long maxMem = Long.parseLong( memTxt.trim() ) * 1024 * 1024;
+                return new DiskColumnFactory( null, maxMem );
+            }
+            catch ( NumberFormatException e ) {
+                logger_.warning( "Bad value for " + CACHE_MEM_PROP + ": "
+                               + memTxt + " - ignored" );
+            }
+        }
+        return new MemoryColumnFactory();
+    }
+
     /**
      * Returns the TopcatModel associated with a given DataSpec.
      *
@@ -0,0 +1,100 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.Tables;
+
+/**
+ * ConeSearcher wrapper which satisfies queries from a
+ * {@link ResponseCache} where possible, and stores the results of
+ * queries it has to pass to the base searcher.
+ *
+ * <p>Results obtained from the base searcher are stored and then
+ * read back from the cache, so that the column types of returned
+ * tables do not depend on whether a query was cached or not.
+ */
+public class CachingConeSearcher implements ConeSearcher {
+
+    private final ConeSearcher base_;
+    private final ResponseCache cache_;
+    private final String keyPrefix_;
+    private final long hit0_;
+    private final long miss0_;
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.cone" );
+
+    /**
+     * Constructor.
+     *
+     * @param  base   searcher which performs uncached queries
+     * @param  cache  response cache
+     * @param  keyPrefix  string identifying the service and any
+     *                    query options other than position and radius;
+     *                    it forms part of the cache key for each query
+     */
+    public CachingConeSearcher( ConeSearcher base, ResponseCache cache,
+                                String keyPrefix ) {
+        base_ = base;
+        cache_ = cache;
+        keyPrefix_ = keyPrefix;
+        hit0_ = cache.getHitCount();
+        miss0_ = cache.getMissCount();
+    }
+
+    public StarTable performSearch( double ra, double dec, double sr )
+            throws IOException {
+        if ( Double.isNaN( ra ) || Double.isNaN( dec ) ||
+             Double.isNaN( sr ) ) {
+            return base_.performSearch( ra, dec, sr );
+        }
+        String key = new StringBuffer()
+            .append( keyPrefix_ )
+            .append( "\ncone:" )
+            .append( ra )
+            .append( ',' )
+            .append( dec )
+            .append( ',' )
+            .append( sr )
+            .toString();
+        File file = cache_.getEntry( key );
+        if ( file != null ) {
+            try {
+                return cache_.readEntry( file );
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING,
+                             "Unreadable cache entry " + file, e );
+                file.delete();
+            }
+        }
+        StarTable result = base_.performSearch( ra, dec, sr );
+        if ( result != null ) {
+            result = Tables.randomTable( result );
+        }
+        try {
+            return cache_.readEntry( cache_.putTable( key, result ) );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING, "Failed to cache cone result", e );
+            return result;
+        }
+    }
+
+    public int getRaIndex( StarTable result ) {
+        return base_.getRaIndex( result );
+    }
+
+    public int getDecIndex( StarTable result ) {
+        return base_.getDecIndex( result );
+    }
+
+    public void close() {
+        base_.close();
+        logger_.info( "Response cache " + cache_.getDirectory() + ": "
+                    + ( cache_.getHitCount() - hit0_ ) + " hits, "
+                    + ( cache_.getMissCount() - miss0_ ) + " misses" );
+    }
+}
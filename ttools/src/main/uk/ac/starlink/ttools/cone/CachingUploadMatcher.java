@@ -0,0 +1,311 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.DefaultValueInfo;
+import uk.ac.starlink.table.DescribedValue;
+import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.RowStore;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
+import uk.ac.starlink.table.TableSink;
+import uk.ac.starlink.table.Tables;
+import uk.ac.starlink.table.ValueInfo;
+import uk.ac.starlink.table.WrapperStarTable;
+
+/**
+ * UploadMatcher wrapper which satisfies upload blocks from a
+ * {@link ResponseCache} where possible, and stores the results of
+ * blocks it has to pass to the base matcher.
+ *
+ * <p>The cache key for a block is made from a caller-supplied prefix
+ * identifying the service and match options, along with the
+ * position and radius of every query in the block,
+ * so a block is only answered from the cache if its queries are
+ * exactly the same as before.
+ * Input row indices are not part of the key, so that a block with the
+ * same positions taken from a different part of the input table
+ * (for instance after rows have been inserted earlier in it)
+ * can still be answered from the cache.  To make that possible,
+ * queries are identified in the stored result by their position
+ * within the block, and the identifiers are mapped back to
+ * row indices when the result is written to the sink.
+ * Since the cached result is only written once the base matcher has
+ * completed, output is not streamed to the sink as it arrives
+ * from the service; the granularity of progress reporting is the block.
+ */
+public class CachingUploadMatcher implements UploadMatcher {
+
+    private final UploadMatcher base_;
+    private final ResponseCache cache_;
+    private final String keyPrefix_;
+    private final StoragePolicy storage_;
+    private static final ValueInfo TRUNCATED_INFO =
+        new DefaultValueInfo( "stilts_upload_truncated", Boolean.class,
+                              "Whether the service truncated the result" );
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.cone" );
+
+    /**
+     * Constructor.
+     *
+     * @param  base   matcher which performs uncached uploads
+     * @param  cache  response cache
+     * @param  keyPrefix  string identifying the service and any
+     *                    match options; it forms part of the cache key
+     *                    for each block
+     * @param  storage   storage policy for buffering results
+     */
+    public CachingUploadMatcher( UploadMatcher base, ResponseCache cache,
+                                 String keyPrefix, StoragePolicy storage ) {
+        base_ = base;
+        cache_ = cache;
+        keyPrefix_ = keyPrefix;
+        storage_ = storage;
+    }
+
+    public boolean streamRawResult( ConeQueryRowSequence coneSeq,
+                                    TableSink rawResultSink,
+                                    RowMapper<?> rowMapper, long maxrec )
+            throws IOException {
+
+        /* Read the whole block, assembling the cache key as we go.
+         * The key does not include the row indices. */
+        StringBuffer kbuf = new StringBuffer()
+            .append( keyPrefix_ )
+            .append( "\nupload:" )
+            .append( rowMapper.getIdClass().getName() )
+            .append( ',' )
+            .append( maxrec );
+        BufferedQuerySequence blockSeq = new BufferedQuerySequence();
+        try {
+            while ( coneSeq.next() ) {
+                long index = coneSeq.getIndex();
+                double ra = coneSeq.getRa();
+                double dec = coneSeq.getDec();
+                double sr = coneSeq.getRadius();
+                blockSeq.add( index, ra, dec, sr );
+                kbuf.append( '\n' )
+                    .append( ra )
+                    .append( ',' )
+                    .append( dec )
+                    .append( ',' )
+                    .append( sr );
+            }
+        }
+        finally {
+            coneSeq.close();
+        }
+        String key = kbuf.toString();
+
+        /* Use the cached result if there is one. */
+        File file = cache_.getEntry( key );
+        if ( file != null ) {
+            try {
+                StarTable table = cache_.readEntry( file );
+                if ( table != null ) {
+                    logger_.info( "Upload block result from cache" );
+                    return replay( table, rawResultSink, rowMapper,
+                                   blockSeq );
+                }
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING,
+                             "Unreadable cache entry " + file, e );
+            }
+            file.delete();
+        }
+
+        /* Otherwise, perform the match and cache the result.
+         * The base matcher sees the queries labelled by their position
+         * in the block rather than by row index. */
+        RowStore store = storage_.makeRowStore();
+        boolean truncated =
+            base_.streamRawResult( blockSeq, store, rowMapper, maxrec );
+        StarTable result = store.getStarTable();
+        result.setParameter( new DescribedValue( TRUNCATED_INFO,
+                                                 Boolean
+                                                .valueOf( truncated ) ) );
+        StarTable table;
+        try {
+            table = cache_.readEntry( cache_.putTable( key, result ) );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING, "Failed to cache upload result", e );
+            table = result;
+        }
+        return replay( table, rawResultSink, rowMapper, blockSeq );
+    }
+
+    public ColumnPlan getColumnPlan( ColumnInfo[] resultCols,
+                                     ColumnInfo[] uploadCols ) {
+        return base_.getColumnPlan( resultCols, uploadCols );
+    }
+
+    /**
+     * Writes a stored raw result to a sink.
+     * Query identifiers in the stored result, which refer to positions
+     * within the block, are replaced by identifiers for the
+     * corresponding row indices.
+     *
+     * @param  table  stored result, with truncation flag parameter
+     * @param  sink   destination
+     * @param  rowMapper  row identifier mapper
+     * @param  blockSeq   queries in the block
+     * @return   true iff the stored result was truncated
+     */
+    private boolean replay( StarTable table, TableSink sink,
+                            RowMapper<?> rowMapper,
+                            BufferedQuerySequence blockSeq )
+            throws IOException {
+        int icId = base_.getColumnPlan( Tables.getColumnInfos( table ),
+                                        new ColumnInfo[ 0 ] )
+                        .getResultIdColumnIndex();
+        DescribedValue truncParam =
+            table.getParameterByName( TRUNCATED_INFO.getName() );
+        boolean truncated =
+            truncParam != null &&
+            Boolean.TRUE.equals( truncParam.getValue() );
+        final List<DescribedValue> params =
+            new ArrayList<DescribedValue>( table.getParameters() );
+        for ( Iterator<DescribedValue> it = params.iterator();
+              it.hasNext(); ) {
+            if ( TRUNCATED_INFO.getName()
+                               .equals( it.next().getInfo().getName() ) ) {
+                it.remove();
+            }
+        }
+        sink.acceptMetadata( new WrapperStarTable( table ) {
+            public List<DescribedValue> getParameters() {
+                return params;
+            }
+        } );
+        RowSequence rseq = table.getRowSequence();
+        try {
+            while ( rseq.next() ) {
+                Object[] row = rseq.getRow().clone();
+                row[ icId ] = toRowId( rowMapper, row[ icId ], blockSeq );
+                sink.acceptRow( row );
+            }
+        }
+        finally {
+            rseq.close();
+        }
+        sink.endRows();
+        return truncated;
+    }
+
+    /**
+     * Converts a query identifier referring to a position within a block
+     * to one referring to the corresponding row index.
+     *
+     * @param  rowMapper  row identifier mapper
+     * @param  blockId   identifier of the query's position in the block
+     * @param  blockSeq   queries in the block
+     * @return  identifier of the query's row index
+     */
+    private static <I> I toRowId( RowMapper<I> rowMapper, Object blockId,
+                                  BufferedQuerySequence blockSeq ) {
+        long iq = rowMapper.rowIdToIndex( rowMapper.getIdClass()
+                                                   .cast( blockId ) );
+        return rowMapper.rowIndexToId( blockSeq.getRowIndex( (int) iq ) );
+    }
+
+    /**
+     * ConeQueryRowSequence implementation that replays a list of
+     * buffered queries.  The row content is empty; only the
+     * query-specific methods return useful values.
+     * The index of each query is its position in the list,
+     * not the row index with which it was added.
+     */
+    private static class BufferedQuerySequence
+            implements ConeQueryRowSequence {
+        private long[] indices_;
+        private double[] coords_;
+        private int nq_;
+        private int iq_;
+
+        BufferedQuerySequence() {
+            indices_ = new long[ 64 ];
+            coords_ = new double[ 64 * 3 ];
+            iq_ = -1;
+        }
+
+        /**
+         * Adds a query to the list.
+         *
+         * @param  index  row index
+         * @param  ra   right ascension in degrees
+         * @param  dec  declination in degrees
+         * @param  sr   search radius in degrees
+         */
+        void add( long index, double ra, double dec, double sr ) {
+            if ( nq_ == indices_.length ) {
+                long[] indices = new long[ nq_ * 2 ];
+                System.arraycopy( indices_, 0, indices, 0, nq_ );
+                indices_ = indices;
+                double[] coords = new double[ nq_ * 2 * 3 ];
+                System.arraycopy( coords_, 0, coords, 0, nq_ * 3 );
+                coords_ = coords;
+            }
+            indices_[ nq_ ] = index;
+            coords_[ nq_ * 3 + 0 ] = ra;
+            coords_[ nq_ * 3 + 1 ] = dec;
+            coords_[ nq_ * 3 + 2 ] = sr;
+            nq_++;
+        }
+
+        public boolean next() {
+            if ( iq_ + 1 < nq_ ) {
+                iq_++;
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        public double getRa() {
+            return coords_[ iq_ * 3 + 0 ];
+        }
+
+        public double getDec() {
+            return coords_[ iq_ * 3 + 1 ];
+        }
+
+        public double getRadius() {
+            return coords_[ iq_ * 3 + 2 ];
+        }
+
+        public long getIndex() {
+            return iq_;
+        }
+
+        /**
+         * Returns the row index of a query in the list.
+         *
+         * @param  iq   position of query in list
+         * @return  row index with which the query was added
+         */
+        long getRowIndex( int iq ) {
+            return indices_[ iq ];
+        }
+
+        public Object[] getRow() {
+            return new Object[ 0 ];
+        }
+
+        public Object getCell( int icol ) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        public void close() {
+        }
+    }
+}
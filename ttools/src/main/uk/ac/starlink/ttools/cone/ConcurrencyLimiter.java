@@ -0,0 +1,173 @@
+package uk.ac.starlink.ttools.cone;
+
+/**
+ * Controls the number of service requests which may be in progress
+ * at once.  Callers {@link #acquire} a permit before making a request
+ * and {@link #release} it afterwards, reporting how long the request
+ * took and whether it succeeded.
+ *
+ * <p>If adaptive, the number of permits starts at one and is adjusted
+ * in the light of the observed behaviour of the service,
+ * using an additive-increase/multiplicative-decrease scheme.
+ * Once per round (a round is a number of completed requests equal
+ * to the current limit), the limit is incremented if the smoothed
+ * request latency is not much worse than the best seen so far,
+ * or decremented if it is.  A failed request causes the limit to be
+ * halved; following a reduction, further failures are ignored until
+ * a round has completed, so that a burst of failures from requests
+ * that were already in progress does not collapse it to one immediately.
+ * The limit never exceeds the maximum given at construction time.
+ *
+ * <p>If not adaptive, the limit is fixed at the maximum.
+ */
+public class ConcurrencyLimiter {
+
+    private final int maxLimit_;
+    private final boolean adaptive_;
+    private int limit_;
+    private int peakLimit_;
+    private int nActive_;
+    private int nSinceChange_;
+    private boolean lastDown_;
+    private double avgLatency_;
+    private double baseLatency_;
+    private long nSuccess_;
+    private long nFailure_;
+
+    /**
+     * Factor by which the smoothed latency must exceed the best smoothed
+     * latency observed for the service to be considered congested.
+     */
+    public static final double CONGESTION_FACTOR = 2.0;
+
+    /** Weight of the latest measurement in smoothed latency. */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    /**
+     * Constructor.
+     *
+     * @param  maxLimit  maximum number of concurrent requests
+     * @param  adaptive  true to adjust the limit according to service
+     *                   behaviour, false to fix it at <code>maxLimit</code>
+     */
+    public ConcurrencyLimiter( int maxLimit, boolean adaptive ) {
+        if ( maxLimit < 1 ) {
+            throw new IllegalArgumentException( "Limit " + maxLimit + " < 1" );
+        }
+        maxLimit_ = maxLimit;
+        adaptive_ = adaptive;
+        limit_ = adaptive ? 1 : maxLimit;
+        peakLimit_ = limit_;
+        avgLatency_ = Double.NaN;
+        baseLatency_ = Double.NaN;
+    }
+
+    /**
+     * Blocks until a request may be made.
+     * Each call must be followed by a call to {@link #release}.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while ( nActive_ >= limit_ ) {
+            wait();
+        }
+        nActive_++;
+    }
+
+    /**
+     * Reports that a request has completed.
+     *
+     * @param  latencyNanos  time taken by the request in nanoseconds
+     * @param  success   true if the request succeeded,
+     *                   false if it failed
+     */
+    public synchronized void release( long latencyNanos, boolean success ) {
+        nActive_--;
+        nSinceChange_++;
+        if ( success ) {
+            nSuccess_++;
+            if ( adaptive_ ) {
+                recordLatency( latencyNanos * 1e-9 );
+                if ( nSinceChange_ >= limit_ ) {
+                    if ( avgLatency_ > CONGESTION_FACTOR * baseLatency_ ) {
+                        setLimit( limit_ - 1 );
+                    }
+                    else {
+                        setLimit( limit_ + 1 );
+                    }
+                }
+            }
+        }
+        else {
+            nFailure_++;
+            if ( adaptive_ &&
+                 ( ! lastDown_ || nSinceChange_ >= limit_ ) ) {
+                setLimit( limit_ / 2 );
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the current limit on the number of concurrent requests.
+     *
+     * @return  current limit
+     */
+    public synchronized int getLimit() {
+        return limit_;
+    }
+
+    /**
+     * Returns the highest limit that has been in effect.
+     *
+     * @return  peak limit
+     */
+    public synchronized int getPeakLimit() {
+        return peakLimit_;
+    }
+
+    /**
+     * Returns the number of requests reported as successful.
+     *
+     * @return  success count
+     */
+    public synchronized long getSuccessCount() {
+        return nSuccess_;
+    }
+
+    /**
+     * Returns the number of requests reported as failed.
+     *
+     * @return  failure count
+     */
+    public synchronized long getFailureCount() {
+        return nFailure_;
+    }
+
+    /**
+     * Updates latency statistics with a new measurement.
+     *
+     * @param  latency  request time in seconds
+     */
+    private void recordLatency( double latency ) {
+        avgLatency_ = Double.isNaN( avgLatency_ )
+                    ? latency
+                    : ( 1 - LATENCY_WEIGHT ) * avgLatency_
+                      + LATENCY_WEIGHT * latency;
+        if ( ! ( avgLatency_ >= baseLatency_ ) ) {
+            baseLatency_ = avgLatency_;
+        }
+    }
+
+    /**
+     * Resets the limit, clamped to the permitted range.
+     *
+     * @param  limit  requested new limit
+     */
+    private void setLimit( int limit ) {
+        limit = Math.max( 1, Math.min( maxLimit_, limit ) );
+        lastDown_ = limit < limit_;
+        limit_ = limit;
+        peakLimit_ = Math.max( peakLimit_, limit );
+        nSinceChange_ = 0;
+    }
+}
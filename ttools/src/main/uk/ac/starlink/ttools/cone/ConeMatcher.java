@@ -55,6 +55,9 @@ public class ConeMatcher {
     private final JoinFixAction coneFixAct_;
     private final String distanceCol_;
     private boolean streamOutput_;
+    private boolean presort_;
+    private boolean adaptive_;
+    private double mergeRadius_;
 
     private final static Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.cone" );
@@ -150,6 +153,49 @@ public class ConeMatcher {
         streamOutput_ = streamOutput;
     }
 
+    /**
+     * Determines whether queries are sorted by sky position before
+     * they are dispatched.  If set true, the input table is read into
+     * memory and queries are made in order of HEALPix index,
+     * which may improve the efficiency of services with caches
+     * or spatially partitioned storage, and makes merging of
+     * neighbouring queries more effective.
+     * The output rows are then in the same order.
+     * The default is false.
+     *
+     * @param  presort  whether to sort queries by sky position
+     */
+    public void setPresort( boolean presort ) {
+        presort_ = presort;
+    }
+
+    /**
+     * Determines whether the number of concurrent queries is adjusted
+     * according to the observed latency and error rate of the service.
+     * If set true, the <code>parallelism</code> value is the maximum.
+     * The default is false.
+     *
+     * @param  adaptive  whether parallelism is adaptive
+     * @see   ConcurrencyLimiter
+     */
+    public void setAdaptive( boolean adaptive ) {
+        adaptive_ = adaptive;
+    }
+
+    /**
+     * Sets the maximum radius of cone queries formed by merging
+     * runs of nearby consecutive queries.
+     * Merging is only correct if the service returns all the rows in
+     * the requested cone, and it is only done if distance filtering
+     * is in effect.
+     * The default is zero, which means no merging.
+     *
+     * @param  mergeRadius  maximum merged cone radius in degrees
+     */
+    public void setMergeRadius( double mergeRadius ) {
+        mergeRadius_ = mergeRadius;
+    }
+
     /**
      * Returns an object which can compute the multi-cone result.
      * The result is a join between the input table and
@@ -165,7 +211,18 @@ public class ConeMatcher {
      */
     public ConeWorker createConeWorker() throws IOException, TaskException {
         StarTable inTable = inProd_.getTable();
-        ConeQueryRowSequence querySeq = qsFact_.createQuerySequence( inTable );
+        QuerySequenceFactory qsFact = qsFact_;
+        if ( presort_ ) {
+            inTable = Tables.randomTable( inTable );
+            qsFact = new HealpixSortedQuerySequenceFactory( qsFact );
+        }
+        ConeQueryRowSequence querySeq = qsFact.createQuerySequence( inTable );
+        double mergeRadius = mergeRadius_;
+        if ( mergeRadius > 0 && ! distFilter_ ) {
+            logger_.warning( "No distance filtering - "
+                           + "can't merge cone queries" );
+            mergeRadius = 0;
+        }
         if ( coverage_ != null ) {
             try {
                 coverage_.initCoverage();
@@ -175,7 +232,7 @@ public class ConeMatcher {
             }
         }
         final ConeResultRowSequence resultSeq;
-        if ( parallelism_ == 1 ) {
+        if ( parallelism_ == 1 && ! ( mergeRadius > 0 ) ) {
             resultSeq = new SequentialResultRowSequence( querySeq,
                                                          coneSearcher_,
                                                          errAct_,
@@ -195,7 +252,9 @@ public class ConeMatcher {
                                                        coverage_,
                                                        bestOnly_, distFilter_,
                                                        distanceCol_,
-                                                       parallelism_ ) {
+                                                       parallelism_,
+                                                       adaptive_,
+                                                       mergeRadius ) {
                 public void close() throws IOException {
                     super.close();
                     coneSearcher_.close();
@@ -1,11 +1,15 @@
 package uk.ac.starlink.ttools.cone;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.Tables;
+import uk.ac.starlink.ttools.func.CoordsDegrees;
 
 /**
  * ConeResultRowSequence implementation which uses a fixed number of
@@ -13,6 +17,19 @@ import uk.ac.starlink.table.StarTable;
  * The result table has the same ordering as if they had been done in 
  * sequence.
  *
+ * <p>Optionally, the number of queries actually in progress at once
+ * may be adjusted according to the observed behaviour of the service,
+ * using a {@link ConcurrencyLimiter}; in this case the number of
+ * worker threads is the upper limit.
+ * Also optionally, runs of consecutive queries which lie close together
+ * on the sky may be merged into a single larger cone query,
+ * whose result is then filtered to provide the result for each of
+ * the original queries.  This is only correct if the service returns
+ * all rows in the requested cone, and if results are filtered by
+ * distance from the query position.
+ * Which queries are merged depends only on the order of the input
+ * queries, not on thread timing, so the output is deterministic.
+ *
  * @author   Mark Taylor
  * @since    18 Jan 2008
  */
@@ -26,9 +43,14 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
     private final boolean distFilter_;
     private final String distanceCol_;
     private final int poolMax_;
+    private final double mergeRadius_;
+    private volatile boolean mergeFailed_;
+    private final ConcurrencyLimiter limiter_;
+    private final ConeSearcher limitedSearcher_;
     private final SortedSet resultPool_;
     private final Worker[] workers_;
     private long submitIndex_;
+    private Query pendingQuery_;
     private long nextIndex_;
     private Result currentResult_;
     private IOException error_;
@@ -59,6 +81,9 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
      */
     public static final String MAXPAR_PROP = "service.maxparallel";
 
+    /** Maximum number of queries combined into a single merged query. */
+    public static final int MAX_MERGE = 64;
+
     private static Integer maxpar_;
 
     /**
@@ -82,6 +107,39 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
                                       Coverage coverage, boolean bestOnly,
                                       boolean distFilter, String distanceCol,
                                       int parallelism ) {
+        this( querySeq, coneSearcher, errAct, coverage, bestOnly, distFilter,
+              distanceCol, parallelism, false, 0 );
+    }
+
+    /**
+     * Constructor with adaptive parallelism and query merging options.
+     *
+     * @param  querySeq  sequence providing cone search query parameters
+     * @param  coneSearcher  cone search implementation
+     * @param  errAct   defines action on cone search invocation error
+     * @param  coverage   coverage for results, or null
+     * @param  bestOnly  whether all results or just best are required
+     * @param  distFilter  true to perform post-query filtering on results
+     *                     based on the distance between the query position
+     *                     and the result row position
+     * @param  distanceCol  name of column to hold distance information
+     *                      in output table, or null
+     * @param  parallelism  number of querying threads, which is the
+     *                      maximum number of concurrent queries
+     * @param  adaptive   true to adjust the number of concurrent queries
+     *                    according to observed service latency and errors
+     * @param  mergeRadius  maximum radius in degrees of a cone query
+     *                      formed by merging several input queries;
+     *                      zero means no merging.
+     *                      Ignored unless <code>distFilter</code> is true
+     */
+    public ParallelResultRowSequence( ConeQueryRowSequence querySeq,
+                                      ConeSearcher coneSearcher,
+                                      ConeErrorPolicy errAct,
+                                      Coverage coverage, boolean bestOnly,
+                                      boolean distFilter, String distanceCol,
+                                      int parallelism, boolean adaptive,
+                                      double mergeRadius ) {
         querySeq_ = querySeq;
         coneSearcher_ = coneSearcher;
         errAct_ = errAct;
@@ -89,7 +147,17 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
         bestOnly_ = bestOnly;
         distFilter_ = distFilter;
         distanceCol_ = distanceCol;
-        poolMax_ = parallelism * 3;
+        poolMax_ = Math.max( parallelism * 3, MAX_MERGE );
+        mergeRadius_ = distFilter ? mergeRadius : 0;
+        if ( adaptive ) {
+            limiter_ = new ConcurrencyLimiter( parallelism, true );
+            limitedSearcher_ = new LimitedConeSearcher( coneSearcher,
+                                                        limiter_ );
+        }
+        else {
+            limiter_ = null;
+            limitedSearcher_ = coneSearcher;
+        }
         resultPool_ = new TreeSet();
 
         /* Prepare the worker threads. */
@@ -190,17 +258,39 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
     public void close() throws IOException {
         long nQuery = 0;
         long nSkip = 0;
+        long nMerged = 0;
         for ( int i = 0; i < workers_.length; i++ ) {
             Worker worker = workers_[ i ];
             worker.interrupt();
             nQuery += worker.nQuery_;
             nSkip += worker.nSkip_;
+            nMerged += worker.nMerged_;
         }
         querySeq_.close();
         if ( coverage_ != null ) {
             logger_.info( "Submitted " + nQuery + ", skipped " + nSkip
                         + " queries to service" );
         }
+        if ( nMerged > 0 ) {
+            logger_.info( "Merged " + nMerged + " queries into "
+                        + "larger cone queries" );
+        }
+        if ( limiter_ != null ) {
+            logger_.info( "Adaptive parallelism: peak "
+                        + limiter_.getPeakLimit() + ", final "
+                        + limiter_.getLimit() + ", "
+                        + limiter_.getFailureCount() + " failed requests" );
+        }
+    }
+
+    /**
+     * Returns the object controlling the number of concurrent queries,
+     * if parallelism is adaptive.
+     *
+     * @return  concurrency limiter, or null
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter_;
     }
 
     /**
@@ -347,6 +437,103 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
         }
     }
 
+    /**
+     * Helper class aggregating the parameters of a cone query
+     * taken from the input sequence.
+     */
+    private static class Query {
+        final long index_;
+        final double ra_;
+        final double dec_;
+        final double radius_;
+        final Object[] row_;
+
+        /**
+         * Constructor.
+         *
+         * @param  index in the sequence of queries defined by the input
+         *         list for this row sequence
+         * @param  ra  right ascension in degrees for cone query
+         * @param  dec  declination in degrees for cone query
+         * @param  radius  radius in degrees for cone query
+         * @param  row  complete row of input table corresponding to this query
+         */
+        Query( long index, double ra, double dec, double radius,
+               Object[] row ) {
+            index_ = index;
+            ra_ = ra;
+            dec_ = dec;
+            radius_ = radius;
+            row_ = row;
+        }
+
+        /**
+         * Returns the angular distance between the centres of this
+         * and another query.
+         *
+         * @param  other  other query
+         * @return  distance in degrees
+         */
+        double distance( Query other ) {
+            return CoordsDegrees.skyDistanceDegrees( ra_, dec_,
+                                                     other.ra_, other.dec_ );
+        }
+    }
+
+    /**
+     * ConeSearcher wrapper which applies a concurrency limit to
+     * queries, and reports their latency and success to the limiter.
+     */
+    private static class LimitedConeSearcher implements ConeSearcher {
+        private final ConeSearcher base_;
+        private final ConcurrencyLimiter limiter_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  base searcher
+         * @param  limiter  concurrency limiter
+         */
+        LimitedConeSearcher( ConeSearcher base, ConcurrencyLimiter limiter ) {
+            base_ = base;
+            limiter_ = limiter;
+        }
+
+        public StarTable performSearch( double ra, double dec, double sr )
+                throws IOException {
+            try {
+                limiter_.acquire();
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw (IOException)
+                      new IOException( "Interrupted" ).initCause( e );
+            }
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                StarTable result = base_.performSearch( ra, dec, sr );
+                success = true;
+                return result;
+            }
+            finally {
+                limiter_.release( System.nanoTime() - start, success );
+            }
+        }
+
+        public int getRaIndex( StarTable result ) {
+            return base_.getRaIndex( result );
+        }
+
+        public int getDecIndex( StarTable result ) {
+            return base_.getDecIndex( result );
+        }
+
+        public void close() {
+            base_.close();
+        }
+    }
+
     /**
      * Thread which performs cone queries on behalf of this sequence.
      */
@@ -354,6 +541,7 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
         private boolean finished_;
         volatile long nQuery_;
         volatile long nSkip_;
+        volatile long nMerged_;
         volatile boolean forceNextQuery_;
 
         /**
@@ -372,10 +560,12 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
              * encountered. */
             for ( boolean done = false; ! done; ) {
                 try {
-                    Result result = performNextQuery();
-                    if ( result != null ) {
+                    Result[] results = performNextQueries();
+                    if ( results != null ) {
                         try {
-                            submitResult( result );
+                            for ( int i = 0; i < results.length; i++ ) {
+                                submitResult( results[ i ] );
+                            }
                         }
                         catch ( InterruptedException e ) {
                             done = true;
@@ -410,62 +600,201 @@ public class ParallelResultRowSequence implements ConeResultRowSequence {
         }
 
         /**
-         * Performs the next query required by this result sequence.
+         * Performs the next query or queries required by this result
+         * sequence.  Usually this is a single query, but if merging is
+         * in effect, it may be several consecutive queries in the input
+         * sequence, which are satisfied using a single request to
+         * the service.
          *
-         * @return   result of query, or null if there is no more work
-         *           left to do
+         * @return   results of queries in sequence order,
+         *           or null if there is no more work left to do
          */
-        private Result performNextQuery() throws IOException {
-
-            /* Get the parameters of the next required query, 
-             * if there is one left to do. */
-            final double ra;
-            final double dec;
-            final double radius;
-            final long index;
-            final Object[] row;
+        private Result[] performNextQueries() throws IOException {
+
+            /* Get the parameters of the next required queries,
+             * if there are any left to do. */
+            List<Query> queries = new ArrayList<Query>();
             synchronized ( querySeq_ ) {
-                if ( querySeq_.next() ) {
-                    ra = querySeq_.getRa();
-                    dec = querySeq_.getDec();
-                    radius = querySeq_.getRadius();
-                    row = (Object[]) querySeq_.getRow().clone();
-                    index = submitIndex_++;
-                }
+                Query q0 = readQuery();
 
                 /* If there is no work left - return null. */
-                else {
+                if ( q0 == null ) {
                     return null;
                 }
+                queries.add( q0 );
+
+                /* If merging, keep taking queries while the whole group
+                 * fits within a cone of the merge radius centred on the
+                 * first one.  Leave the first one that doesn't fit
+                 * for next time. */
+                if ( mergeRadius_ > 0 && ! mergeFailed_ &&
+                     isMergeable( q0 ) && q0.radius_ <= mergeRadius_ ) {
+                    while ( queries.size() < MAX_MERGE ) {
+                        Query q = readQuery();
+                        if ( q == null ) {
+                            break;
+                        }
+                        else if ( isMergeable( q ) &&
+                                  q0.distance( q ) + q.radius_
+                                  <= mergeRadius_ ) {
+                            queries.add( q );
+                        }
+                        else {
+                            pendingQuery_ = q;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            /* Identify the queries which need to be performed, that is
+             * the ones which cannot be shown to be unnecessary. */
+            int nq = queries.size();
+            boolean[] excluded = new boolean[ nq ];
+            int nInc = 0;
+            for ( int iq = 0; iq < nq; iq++ ) {
+                Query q = queries.get( iq );
+                excluded[ iq ] = ! forceNextQuery_
+                              && coverage_ != null
+                              && ! coverage_.discOverlaps( q.ra_, q.dec_,
+                                                           q.radius_ );
+                forceNextQuery_ = false;
+                if ( excluded[ iq ] ) {
+                    Level level = Level.CONFIG;
+                    if ( logger_.isLoggable( level ) ) {
+                        logger_.log( level,
+                                     "Skipping cone query for point outside "
+                                   + "coverage " + "(" + (float) q.ra_ + ","
+                                   + (float) q.dec_ + ")+"
+                                   + (float) q.radius_ );
+                    }
+                    nSkip_++;
+                }
+                else {
+                    nInc++;
+                }
             }
 
-            /* Perform the query unless it can be shown to be unnecesary. */
-            final StarTable table;
-            boolean excluded = ! forceNextQuery_
-                            && coverage_ != null
-                            && ! coverage_.discOverlaps( ra, dec, radius );
-            forceNextQuery_ = false;
-            if ( excluded ) {
+            /* If more than one query is required, make a single request
+             * for the enclosing cone and use the result for each one. */
+            ConeSearcher searcher = limitedSearcher_;
+            if ( nInc > 1 ) {
+                Query q0 = queries.get( 0 );
+                double sr0 = 0;
+                for ( int iq = 0; iq < nq; iq++ ) {
+                    if ( ! excluded[ iq ] ) {
+                        Query q = queries.get( iq );
+                        sr0 = Math.max( sr0, q0.distance( q ) + q.radius_ );
+                    }
+                }
                 Level level = Level.CONFIG;
                 if ( logger_.isLoggable( level ) ) {
                     logger_.log( level,
-                                 "Skipping cone query for point outside "
-                               + "coverage " + "(" + (float) ra + ","
-                               + (float) dec + ")+" + (float) radius );
+                                 "Merged cone for " + nInc + " queries: ra="
+                               + q0.ra_ + "; dec=" + q0.dec_ + "; sr=" + sr0 );
+                }
+                final StarTable mergedResult;
+                try {
+                    StarTable result =
+                        errAct_.performConeSearch( limitedSearcher_,
+                                                   q0.ra_, q0.dec_, sr0 );
+                    mergedResult = result == null
+                                 ? null
+                                 : Tables.randomTable( result );
+                }
+                catch ( InterruptedException e ) {
+                    throw new IOException( "Thread interrupted" );
+                }
+                nQuery_++;
+
+                /* If the merged result has no usable positions, it can't
+                 * be split between the queries.  In that case give up
+                 * merging for the rest of the sequence, and perform
+                 * this group's queries individually. */
+                if ( mergedResult != null &&
+                     ( coneSearcher_.getRaIndex( mergedResult ) < 0 ||
+                       coneSearcher_.getDecIndex( mergedResult ) < 0 ) ) {
+                    if ( ! mergeFailed_ ) {
+                        logger_.warning( "No positions in cone result; "
+                                       + "query merging disabled" );
+                    }
+                    mergeFailed_ = true;
+                    nQuery_ += nInc;
+                }
+                else {
+                    nMerged_ += nInc;
+                    searcher = new ConeSearcher() {
+                        public StarTable performSearch( double ra, double dec,
+                                                        double sr ) {
+                            return mergedResult;
+                        }
+                        public int getRaIndex( StarTable result ) {
+                            return coneSearcher_.getRaIndex( result );
+                        }
+                        public int getDecIndex( StarTable result ) {
+                            return coneSearcher_.getDecIndex( result );
+                        }
+                        public void close() {
+                        }
+                    };
                 }
-                table = null;
-                nSkip_++;
             }
-            else {
-                table = ConeMatcher.getConeResult( coneSearcher_, errAct_,
-                                                   bestOnly_, distFilter_,
-                                                   distanceCol_,
-                                                   ra, dec, radius );
+            else if ( nInc == 1 ) {
                 nQuery_++;
             }
 
-            /* Return the completed result object. */
-            return new Result( index, ra, dec, radius, row, table );
+            /* Prepare the completed result objects.  In the merged case
+             * the distance filter extracts the rows relevant to each
+             * individual query from the merged result. */
+            ConeErrorPolicy errAct = searcher != limitedSearcher_
+                                   ? ConeErrorPolicy.ABORT
+                                   : errAct_;
+            Result[] results = new Result[ nq ];
+            for ( int iq = 0; iq < nq; iq++ ) {
+                Query q = queries.get( iq );
+                StarTable table = excluded[ iq ]
+                    ? null
+                    : ConeMatcher.getConeResult( searcher, errAct, bestOnly_,
+                                                 distFilter_, distanceCol_,
+                                                 q.ra_, q.dec_, q.radius_ );
+                results[ iq ] = new Result( q.index_, q.ra_, q.dec_,
+                                            q.radius_, q.row_, table );
+            }
+            return results;
+        }
+
+        /**
+         * Returns the next query from the input sequence.
+         * Must be called while synchronized on the query sequence.
+         *
+         * @return  next query, or null if there are no more
+         */
+        private Query readQuery() throws IOException {
+            if ( pendingQuery_ != null ) {
+                Query q = pendingQuery_;
+                pendingQuery_ = null;
+                return q;
+            }
+            else if ( querySeq_.next() ) {
+                return new Query( submitIndex_++, querySeq_.getRa(),
+                                  querySeq_.getDec(), querySeq_.getRadius(),
+                                  (Object[]) querySeq_.getRow().clone() );
+            }
+            else {
+                return null;
+            }
+        }
+
+        /**
+         * Indicates whether a query may take part in a merged query.
+         *
+         * @param  q  query
+         * @return  true iff merging is possible
+         */
+        private boolean isMergeable( Query q ) {
+            return ! Double.isNaN( q.ra_ )
+                && ! Double.isNaN( q.dec_ )
+                && q.radius_ > 0;
         }
 
         /**
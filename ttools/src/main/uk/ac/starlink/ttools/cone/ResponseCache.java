@@ -0,0 +1,363 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
+import uk.ac.starlink.util.FileDataSource;
+import uk.ac.starlink.votable.DataFormat;
+import uk.ac.starlink.votable.VOTableBuilder;
+import uk.ac.starlink.votable.VOTableVersion;
+import uk.ac.starlink.votable.VOTableWriter;
+
+/**
+ * Persistent on-disk cache of tables returned from remote services,
+ * keyed by a string describing the query that produced them.
+ *
+ * <p>Each entry is stored as a BINARY2 VOTable in the cache directory,
+ * in a file whose name is a digest of the key, so that entries are
+ * content-addressed and the cache can be shared between runs
+ * (and, with some care, between concurrent processes).
+ * A null result, meaning that the service returned nothing useful,
+ * can also be cached, and is stored as an empty file.
+ *
+ * <p>Entries older than the time-to-live are ignored and deleted.
+ * Temporary files left by writes which were interrupted
+ * (for instance by the process being killed) are deleted when
+ * a cache is opened on the directory, once they are a day old.
+ * When the total size of the cached files exceeds the size limit,
+ * the oldest entries are deleted until it is comfortably below the limit,
+ * so that the directory does not have to be scanned on every write.
+ * Instances of this class are safe for use from multiple threads.
+ */
+public class ResponseCache {
+
+    private final File dir_;
+    private final long ttlMillis_;
+    private final long maxBytes_;
+    private final StoragePolicy storage_;
+    private long totalBytes_;
+    private long nHit_;
+    private long nMiss_;
+
+    /** Filename suffix for cache entry files. */
+    private static final String SUFFIX = ".vot";
+
+    /** Filename suffix for partially written entry files. */
+    private static final String PART_SUFFIX = ".part";
+
+    /** Age in milliseconds after which partial files are abandoned. */
+    private static final long PART_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Fraction of the size limit to which the cache is reduced
+     * when the limit is exceeded.
+     */
+    private static final double TRIM_FRACTION = 0.9;
+
+    /** Changing this string invalidates existing cache entries. */
+    private static final String KEY_VERSION = "stilts-response-2";
+
+    private static final VOTableWriter VOT_WRITER =
+        new VOTableWriter( DataFormat.BINARY2, true, VOTableVersion.V13 );
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.cone" );
+
+    /**
+     * Constructor.  The directory is created if it does not exist,
+     * and expired entries and abandoned partial files are removed.
+     *
+     * @param  dir   directory in which cached responses are stored
+     * @param  ttlMillis  maximum age in milliseconds of usable entries;
+     *                    zero or negative means no limit
+     * @param  maxBytes   approximate maximum total size in bytes
+     *                    of the cache directory contents;
+     *                    zero or negative means no limit
+     * @param  storage   storage policy for tables read from the cache
+     */
+    public ResponseCache( File dir, long ttlMillis, long maxBytes,
+                          StoragePolicy storage )
+            throws IOException {
+        dir_ = dir;
+        ttlMillis_ = ttlMillis;
+        maxBytes_ = maxBytes;
+        storage_ = storage;
+        if ( ! dir.isDirectory() && ! dir.mkdirs() ) {
+            throw new IOException( "Can't create cache directory " + dir );
+        }
+        long now = System.currentTimeMillis();
+        for ( File file : getEntryFiles() ) {
+            if ( isExpired( file, now ) ) {
+                file.delete();
+            }
+            else {
+                totalBytes_ += file.length();
+            }
+        }
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( int i = 0; i < files.length; i++ ) {
+                File file = files[ i ];
+                if ( file.getName().endsWith( PART_SUFFIX ) &&
+                     now - file.lastModified() > PART_MAX_AGE ) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the directory in which entries are stored.
+     *
+     * @return  cache directory
+     */
+    public File getDirectory() {
+        return dir_;
+    }
+
+    /**
+     * Returns the file holding a current cached entry for a given key.
+     *
+     * @param  key  query key
+     * @return   file containing the cached entry, or null if there is
+     *           no unexpired entry
+     */
+    public File getEntry( String key ) {
+        File file = getFile( key );
+        boolean hit;
+        if ( file.isFile() ) {
+            if ( isExpired( file, System.currentTimeMillis() ) ) {
+                synchronized ( this ) {
+                    totalBytes_ -= file.length();
+                }
+                file.delete();
+                hit = false;
+            }
+            else {
+                hit = true;
+            }
+        }
+        else {
+            hit = false;
+        }
+        synchronized ( this ) {
+            if ( hit ) {
+                nHit_++;
+            }
+            else {
+                nMiss_++;
+            }
+        }
+        return hit ? file : null;
+    }
+
+    /**
+     * Reads a table from a cache entry file.
+     *
+     * @param  file  file returned by {@link #getEntry}
+     * @return   random-access table, or null if a null result was cached
+     */
+    public StarTable readEntry( File file ) throws IOException {
+        if ( file.length() == 0 ) {
+            return null;
+        }
+        else {
+            return new VOTableBuilder()
+                  .makeStarTable( new FileDataSource( file ), true, storage_ );
+        }
+    }
+
+    /**
+     * Stores a table in this cache.
+     * The table is written to a temporary file which is then renamed
+     * into place, so that readers never see partial entries.
+     *
+     * @param  key  query key
+     * @param  table  table to store, or null to record a null result
+     * @return   file containing the new entry
+     */
+    public File putTable( String key, StarTable table ) throws IOException {
+        File file = getFile( key );
+        File tmpFile = File.createTempFile( "tmp", PART_SUFFIX, dir_ );
+        boolean ok = false;
+        try {
+            OutputStream out =
+                new BufferedOutputStream( new FileOutputStream( tmpFile ) );
+            try {
+                if ( table != null ) {
+                    VOT_WRITER.writeStarTable( table, out );
+                }
+            }
+            finally {
+                out.close();
+            }
+            long oldSize = file.isFile() ? file.length() : 0;
+            file.delete();
+            if ( ! tmpFile.renameTo( file ) ) {
+                throw new IOException( "Failed to rename " + tmpFile
+                                     + " to " + file );
+            }
+            ok = true;
+            synchronized ( this ) {
+                totalBytes_ += file.length() - oldSize;
+                if ( maxBytes_ > 0 && totalBytes_ > maxBytes_ ) {
+                    trim( file );
+                }
+            }
+            return file;
+        }
+        finally {
+            if ( ! ok ) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found a usable entry.
+     *
+     * @return  hit count
+     */
+    public synchronized long getHitCount() {
+        return nHit_;
+    }
+
+    /**
+     * Returns the number of lookups which found no usable entry.
+     *
+     * @return  miss count
+     */
+    public synchronized long getMissCount() {
+        return nMiss_;
+    }
+
+    /**
+     * Returns the approximate total size of the cached entries.
+     *
+     * @return  size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * Deletes the oldest entries until the cache is reduced to
+     * a given fraction of its size limit.
+     * Must be called while synchronized on this object.
+     *
+     * @param  keepFile  file which should not be deleted
+     */
+    private void trim( File keepFile ) {
+        File[] files = getEntryFiles();
+        final long[] mtimes = new long[ files.length ];
+        Integer[] order = new Integer[ files.length ];
+        long total = 0;
+        for ( int i = 0; i < files.length; i++ ) {
+            mtimes[ i ] = files[ i ].lastModified();
+            order[ i ] = new Integer( i );
+            total += files[ i ].length();
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            public int compare( Integer i1, Integer i2 ) {
+                long t1 = mtimes[ i1.intValue() ];
+                long t2 = mtimes[ i2.intValue() ];
+                return t1 < t2 ? -1 : ( t1 > t2 ? +1 : 0 );
+            }
+        } );
+        long lowBytes = (long) ( maxBytes_ * TRIM_FRACTION );
+        int nDel = 0;
+        for ( int i = 0; i < order.length && total > lowBytes; i++ ) {
+            File file = files[ order[ i ].intValue() ];
+            if ( ! file.equals( keepFile ) ) {
+                long leng = file.length();
+                if ( file.delete() ) {
+                    total -= leng;
+                    nDel++;
+                }
+            }
+        }
+        totalBytes_ = total;
+        if ( nDel > 0 ) {
+            logger_.info( "Removed " + nDel + " entries from response cache "
+                        + dir_ );
+        }
+    }
+
+    /**
+     * Returns the current entry files in the cache directory.
+     *
+     * @return  entry files
+     */
+    private File[] getEntryFiles() {
+        File[] files = dir_.listFiles();
+        if ( files == null ) {
+            return new File[ 0 ];
+        }
+        int n = 0;
+        for ( int i = 0; i < files.length; i++ ) {
+            if ( files[ i ].getName().endsWith( SUFFIX ) ) {
+                files[ n++ ] = files[ i ];
+            }
+        }
+        File[] entryFiles = new File[ n ];
+        System.arraycopy( files, 0, entryFiles, 0, n );
+        return entryFiles;
+    }
+
+    /**
+     * Indicates whether a cache entry file is too old to use.
+     *
+     * @param  file  entry file
+     * @param  now   current epoch time in milliseconds
+     * @return  true iff the entry has expired
+     */
+    private boolean isExpired( File file, long now ) {
+        return ttlMillis_ > 0 && now - file.lastModified() > ttlMillis_;
+    }
+
+    /**
+     * Returns the file in which the entry for a given key is stored.
+     *
+     * @param  key  query key
+     * @return  entry file, which may not exist
+     */
+    private File getFile( String key ) {
+        return new File( dir_, digest( KEY_VERSION + "\n" + key ) + SUFFIX );
+    }
+
+    /**
+     * Returns a hexadecimal digest of a string.
+     *
+     * @param  txt  input text
+     * @return   hex digest
+     */
+    private static String digest( String txt ) {
+        byte[] dbytes;
+        try {
+            dbytes = MessageDigest.getInstance( "SHA-1" )
+                                  .digest( txt.getBytes( "UTF-8" ) );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( "No SHA-1??", e );
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new RuntimeException( "No UTF-8??", e );
+        }
+        StringBuffer sbuf = new StringBuffer( dbytes.length * 2 );
+        for ( int i = 0; i < dbytes.length; i++ ) {
+            int b = dbytes[ i ] & 0xff;
+            sbuf.append( Character.forDigit( b >> 4, 16 ) )
+                .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sbuf.toString();
+    }
+}
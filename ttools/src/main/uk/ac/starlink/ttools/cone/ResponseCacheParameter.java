@@ -0,0 +1,132 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.File;
+import java.io.IOException;
+import uk.ac.starlink.task.DoubleParameter;
+import uk.ac.starlink.task.Environment;
+import uk.ac.starlink.task.Parameter;
+import uk.ac.starlink.task.ParameterValueException;
+import uk.ac.starlink.task.TaskException;
+import uk.ac.starlink.ttools.task.LineTableEnvironment;
+
+/**
+ * Parameter for selecting a persistent {@link ResponseCache}.
+ * The value is the name of the cache directory.
+ * Companion parameters giving the time-to-live and size limit
+ * of the cache are also provided.
+ */
+public class ResponseCacheParameter extends Parameter<ResponseCache> {
+
+    private final DoubleParameter ttlParam_;
+    private final DoubleParameter sizeParam_;
+
+    /**
+     * Constructor.
+     *
+     * @param  name  parameter name
+     */
+    public ResponseCacheParameter( String name ) {
+        super( name, ResponseCache.class, false );
+        setUsage( "<dir>" );
+        setPrompt( "Directory for cached service responses" );
+        setNullPermitted( true );
+        setStringDefault( null );
+
+        ttlParam_ = new DoubleParameter( name + "ttl" );
+        ttlParam_.setUsage( "<days>" );
+        ttlParam_.setPrompt( "Maximum age of cached responses in days" );
+        ttlParam_.setMinimum( 0, true );
+        ttlParam_.setDoubleDefault( 7 );
+        ttlParam_.setDescription( new String[] {
+            "<p>Maximum age in days of entries in the response cache",
+            "given by the <code>" + name + "</code> parameter.",
+            "Older responses are discarded and the query is re-issued",
+            "to the service.",
+            "A value of zero means entries never expire.",
+            "</p>",
+        } );
+
+        sizeParam_ = new DoubleParameter( name + "mb" );
+        sizeParam_.setUsage( "<mbyte>" );
+        sizeParam_.setPrompt( "Maximum size of response cache in Mbyte" );
+        sizeParam_.setMinimum( 0, true );
+        sizeParam_.setDoubleDefault( 1024 );
+        sizeParam_.setDescription( new String[] {
+            "<p>Approximate maximum total size in megabytes of the",
+            "response cache given by the <code>" + name + "</code> parameter.",
+            "When the cache grows beyond this size the oldest entries",
+            "are deleted.",
+            "A value of zero means no limit.",
+            "</p>",
+        } );
+
+        setDescription( new String[] {
+            "<p>Names a directory in which the responses to individual",
+            "service queries are cached between invocations.",
+            "If set, each query is first looked up in the cache,",
+            "and only if no matching response is found is it sent",
+            "to the remote service, whose response is then stored",
+            "for next time.",
+            "Queries are matched exactly, using the service details",
+            "and relevant options along with the positions and radii",
+            "queried, so if the same job is re-run with small changes",
+            "to the input, only the queries which have changed",
+            "need to be re-issued.",
+            "The directory is created if it does not exist,",
+            "and may be shared between different tasks and services.",
+            "</p>",
+            "<p>Entries are discarded when they become older than",
+            "<code>" + ttlParam_.getName() + "</code> days,",
+            "and the oldest entries are removed if the total size",
+            "exceeds <code>" + sizeParam_.getName() + "</code> megabytes.",
+            "Note that if the service content changes within that time,",
+            "out of date results may be returned.",
+            "If this parameter is null, no caching is done.",
+            "</p>",
+        } );
+    }
+
+    /**
+     * Returns the parameter giving the cache entry time-to-live.
+     *
+     * @return  TTL parameter
+     */
+    public DoubleParameter getTtlParameter() {
+        return ttlParam_;
+    }
+
+    /**
+     * Returns the parameter giving the cache size limit.
+     *
+     * @return  size parameter
+     */
+    public DoubleParameter getSizeParameter() {
+        return sizeParam_;
+    }
+
+    /**
+     * Returns this parameter and its companions, in a form suitable
+     * for adding to a task's parameter list.
+     *
+     * @return  parameters
+     */
+    public Parameter[] getAllParameters() {
+        return new Parameter[] { this, ttlParam_, sizeParam_ };
+    }
+
+    public ResponseCache stringToObject( Environment env, String sval )
+            throws TaskException {
+        double ttlDays = ttlParam_.doubleValue( env );
+        double mb = sizeParam_.doubleValue( env );
+        try {
+            return new ResponseCache( new File( sval ),
+                                      (long) ( ttlDays * 24 * 3600 * 1000 ),
+                                      (long) ( mb * 1024 * 1024 ),
+                                      LineTableEnvironment
+                                     .getStoragePolicy( env ) );
+        }
+        catch ( IOException e ) {
+            throw new ParameterValueException( this, e.getMessage(), e );
+        }
+    }
+}
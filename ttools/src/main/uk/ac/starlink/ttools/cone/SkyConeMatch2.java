@@ -15,6 +15,7 @@ import uk.ac.starlink.table.WrapperStarTable;
 import uk.ac.starlink.table.join.PairMode;
 import uk.ac.starlink.task.BooleanParameter;
 import uk.ac.starlink.task.ChoiceParameter;
+import uk.ac.starlink.task.DoubleParameter;
 import uk.ac.starlink.task.Environment;
 import uk.ac.starlink.task.IntegerParameter;
 import uk.ac.starlink.task.Parameter;
@@ -51,12 +52,16 @@ public abstract class SkyConeMatch2 extends SingleMapperTask {
     private final StringParameter distcolParam_;
     private final BooleanParameter ostreamParam_;
     private final IntegerParameter parallelParam_;
+    private final BooleanParameter adaptiveParam_;
+    private final BooleanParameter presortParam_;
+    private final DoubleParameter mergesrParam_;
     private final ConeErrorPolicyParameter erractParam_;
     private final JoinFixActionParameter fixcolsParam_;
     private final StringParameter insuffixParam_;
     private final StringParameter conesuffixParam_;
     private final BooleanParameter usefootParam_;
     private final IntegerParameter nsideParam_;
+    private final ResponseCacheParameter cacheParam_;
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.cone" );
 
@@ -268,6 +273,83 @@ public abstract class SkyConeMatch2 extends SingleMapperTask {
         erractParam_ = new ConeErrorPolicyParameter( "erract" );
         paramList.add( erractParam_ );
 
+        adaptiveParam_ = new BooleanParameter( "adaptive" );
+        adaptiveParam_.setPrompt( "Adjust parallelism according to "
+                                + "service response?" );
+        adaptiveParam_.setDescription( new String[] {
+            "<p>If true, the number of queries in progress at any one time",
+            "is adjusted according to how the service is responding,",
+            "and the value of the",
+            "<code>" + parallelParam_.getName() + "</code> parameter",
+            "is used as the maximum.",
+            "Querying starts with one query at a time, and the number",
+            "is increased gradually as long as response times",
+            "do not deteriorate.",
+            "If responses become much slower, or if queries fail",
+            "(including failed attempts that are retried according to the",
+            "<code>" + erractParam_.getName() + "</code> parameter),",
+            "the number is reduced again.",
+            "This makes it possible to specify a high parallelism",
+            "without the risk of overloading a service that cannot take it.",
+            "</p>",
+        } );
+        adaptiveParam_.setBooleanDefault( false );
+        if ( maxParallel > 1 ) {
+            paramList.add( adaptiveParam_ );
+        }
+
+        presortParam_ = new BooleanParameter( "presort" );
+        presortParam_.setPrompt( "Sort queries by sky position?" );
+        presortParam_.setDescription( new String[] {
+            "<p>If true, the queries are made in order of HEALPix index",
+            "rather than in input table order,",
+            "so that successive queries are close together on the sky.",
+            "Some services can respond more quickly to queries",
+            "in a region they have recently searched,",
+            "and this ordering also makes it more likely that queries",
+            "can be merged if the <code>mergesr</code>",
+            "parameter is set.",
+            "</p>",
+            "<p>Note this will read all the input rows into the task",
+            "before any queries are made,",
+            "and the output table rows will be in the sorted order,",
+            "not the input order.",
+            "</p>",
+        } );
+        presortParam_.setBooleanDefault( false );
+        paramList.add( presortParam_ );
+
+        mergesrParam_ = new DoubleParameter( "mergesr" );
+        mergesrParam_.setUsage( "<deg>" );
+        mergesrParam_.setPrompt( "Maximum radius of merged cone queries "
+                               + "in degrees" );
+        mergesrParam_.setDescription( new String[] {
+            "<p>If set to a positive value, runs of consecutive queries",
+            "which all fall within a cone of this radius (in degrees)",
+            "are combined into a single query for that larger cone,",
+            "and the result is then divided up locally to provide",
+            "the matches for each of the original queries.",
+            "For dense input tables this can greatly reduce the number",
+            "of requests made to the service,",
+            "especially in conjunction with the",
+            "<code>" + presortParam_.getName() + "</code> parameter.",
+            "</p>",
+            "<p>This is only correct if the service returns",
+            "<em>all</em> the rows within the requested cone,",
+            "so it should not be used with services that truncate",
+            "large results, or that return only a subset of matching rows.",
+            "It has no effect for services for which results are not",
+            "filtered by distance from the query position.",
+            "The default value of zero means no merging.",
+            "</p>",
+        } );
+        mergesrParam_.setMinimum( 0, true );
+        mergesrParam_.setDoubleDefault( 0 );
+        paramList.add( mergesrParam_ );
+
+        cacheParam_ = new ResponseCacheParameter( "cache" );
+        paramList.addAll( Arrays.asList( cacheParam_.getAllParameters() ) );
+
         ostreamParam_ = new BooleanParameter( "ostream" );
         ostreamParam_.setBooleanDefault( false );
         ostreamParam_.setPrompt( "Whether output will be strictly streamed" );
@@ -340,6 +422,12 @@ public abstract class SkyConeMatch2 extends SingleMapperTask {
         }
         TableProducer inProd = createInputProducer( env );
         ConeSearcher coneSearcher = coner_.createSearcher( env, bestOnly );
+        ResponseCache cache = cacheParam_.objectValue( env );
+        if ( cache != null ) {
+            coneSearcher =
+                new CachingConeSearcher( coneSearcher, cache,
+                                         getCacheKeyPrefix( env, bestOnly ) );
+        }
         final Coverage footprint;
         if ( usefootParam_.booleanValue( env ) &&
              coner_ instanceof ConeSearchConer ) {
@@ -365,6 +453,10 @@ public abstract class SkyConeMatch2 extends SingleMapperTask {
                              footprint, includeBlanks, distFilter, parallelism,
                              copyColIdList, distanceCol, inFixAct, coneFixAct );
         coneMatcher.setStreamOutput( true );
+        coneMatcher.setPresort( presortParam_.booleanValue( env ) );
+        coneMatcher.setAdaptive( parallelism > 1 &&
+                                 adaptiveParam_.booleanValue( env ) );
+        coneMatcher.setMergeRadius( mergesrParam_.doubleValue( env ) );
         return new TableProducer() {
             public StarTable getTable() throws IOException, TaskException {
                 ConeMatcher.ConeWorker worker = coneMatcher.createConeWorker();
@@ -386,4 +478,28 @@ public abstract class SkyConeMatch2 extends SingleMapperTask {
             }
         };
     }
+
+    /**
+     * Returns a string identifying the service and query options
+     * in use, for use in response cache keys.
+     *
+     * @param  env  execution environment
+     * @param  bestOnly  whether only the best match is required
+     * @return  cache key prefix
+     */
+    private String getCacheKeyPrefix( Environment env, boolean bestOnly )
+            throws TaskException {
+        StringBuffer sbuf = new StringBuffer()
+            .append( coner_.getClass().getName() )
+            .append( "\nbest=" )
+            .append( bestOnly );
+        Parameter[] params = coner_.getParameters();
+        for ( int i = 0; i < params.length; i++ ) {
+            sbuf.append( '\n' )
+                .append( params[ i ].getName() )
+                .append( '=' )
+                .append( params[ i ].stringValue( env ) );
+        }
+        return sbuf.toString();
+    }
 }
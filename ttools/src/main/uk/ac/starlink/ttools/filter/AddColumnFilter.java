@@ -1,11 +1,14 @@
 package uk.ac.starlink.ttools.filter;
 
+import gnu.jel.CompilationException;
 import java.io.IOException;
 import java.util.Iterator;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.DefaultValueInfo;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.ttools.jel.ColumnIdentifier;
+import uk.ac.starlink.ttools.jel.DummyJELRowReader;
+import uk.ac.starlink.ttools.jel.JELUtils;
 
 /**
  * Table filter for adding a single synthetic column.
@@ -188,9 +191,91 @@ public class AddColumnFilter extends BasicFilter {
             else {
                 ipos = base.getColumnCount();
             }
-            ColumnSupplement jelSup =
-                new JELColumnSupplement( base, expr_, cinfo_ );
-            return new AddColumnsTable( base, jelSup, ipos );
+
+            /* If this column is appended to a table which itself just
+             * appends JEL columns, combine them in a single supplement,
+             * so that function calls common to the expressions
+             * can be evaluated only once per row. */
+            if ( ipos == base.getColumnCount() ) {
+                if ( base instanceof AppendedJELTable ) {
+                    StarTable merged =
+                        ((AppendedJELTable) base).append( expr_, cinfo_ );
+                    if ( merged != null ) {
+                        return merged;
+                    }
+                }
+                return new AppendedJELTable( base, new String[] { expr_ },
+                                             new ColumnInfo[] { cinfo_ } );
+            }
+            else {
+                ColumnSupplement jelSup =
+                    new JELColumnSupplement( base, expr_, cinfo_ );
+                return new AddColumnsTable( base, jelSup, ipos );
+            }
+        }
+    }
+
+    /**
+     * AddColumnsTable which appends JEL-defined columns after the
+     * columns of its base table.
+     */
+    private static class AppendedJELTable extends AddColumnsTable {
+        private final StarTable base_;
+        private final String[] exprs_;
+        private final ColumnInfo[] infos_;
+
+        /**
+         * Constructor.
+         *
+         * @param  base  base table
+         * @param  exprs  JEL expressions for added columns
+         * @param  infos  metadata for added columns
+         */
+        AppendedJELTable( StarTable base, String[] exprs, ColumnInfo[] infos )
+                throws IOException {
+            super( base, new JELColumnSupplement( base, exprs, infos ) );
+            base_ = base;
+            exprs_ = exprs;
+            infos_ = infos;
+        }
+
+        /**
+         * Returns a table equivalent to this one with an additional
+         * JEL column appended, using a single column supplement for
+         * all the added columns.  This is only possible if the new
+         * expression does not depend on the columns added by this table;
+         * if it does, null is returned.
+         *
+         * @param  expr  JEL expression for new column
+         * @param  info  metadata for new column
+         * @return  table with new column appended, or null
+         */
+        StarTable append( String expr, ColumnInfo info ) throws IOException {
+            if ( expr.toLowerCase().indexOf( "$ncol" ) >= 0 ) {
+                return null;
+            }
+            DummyJELRowReader rdr = new DummyJELRowReader( this );
+            try {
+                JELUtils.compile( JELUtils.getLibrary( rdr ), this, expr );
+            }
+            catch ( CompilationException e ) {
+                return null;
+            }
+            int nc0 = base_.getColumnCount();
+            int[] icols = rdr.getTranslatedColumns();
+            for ( int i = 0; i < icols.length; i++ ) {
+                if ( icols[ i ] >= nc0 ) {
+                    return null;
+                }
+            }
+            int n = exprs_.length;
+            String[] exprs = new String[ n + 1 ];
+            ColumnInfo[] infos = new ColumnInfo[ n + 1 ];
+            System.arraycopy( exprs_, 0, exprs, 0, n );
+            System.arraycopy( infos_, 0, infos, 0, n );
+            exprs[ n ] = expr;
+            infos[ n ] = info;
+            return new AppendedJELTable( base_, exprs, infos );
         }
     }
 }
@@ -0,0 +1,186 @@
+package uk.ac.starlink.ttools.filter;
+
+import java.io.IOException;
+import java.util.Iterator;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.ttools.jel.ColumnIdentifier;
+
+/**
+ * Filter which propagates Gaia-style astrometry to a different epoch.
+ */
+public class EpochPropFilter extends BasicFilter {
+
+    /** Default input columns for astrometry without errors. */
+    private static final String[] ASTROM6_COLS = {
+        "ra", "dec", "parallax", "pmra", "pmdec", "radial_velocity",
+    };
+
+    /** Default input columns for astrometry with errors and correlations. */
+    private static final String[] ASTROM22_COLS = {
+        "ra", "dec", "parallax", "pmra", "pmdec", "radial_velocity",
+        "ra_error", "dec_error", "parallax_error",
+        "pmra_error", "pmdec_error", "radial_velocity_error",
+        "ra_dec_corr", "ra_parallax_corr", "ra_pmra_corr", "ra_pmdec_corr",
+        "dec_parallax_corr", "dec_pmra_corr", "dec_pmdec_corr",
+        "parallax_pmra_corr", "parallax_pmdec_corr",
+        "pmra_pmdec_corr",
+    };
+
+    /** Placeholder in the input column list indicating an absent column. */
+    private static final String NO_COL = "-";
+
+    /** Default suffix for output column names. */
+    private static final String DFLT_SUFFIX = "_prop";
+
+    /**
+     * Constructor.
+     */
+    public EpochPropFilter() {
+        super( "epochprop",
+               "[-errs] [-in <in-col-id-list>] [-suffix <text>] <tYr>" );
+    }
+
+    protected String[] getDescriptionLines() {
+        return new String[] {
+            "<p>Propagates Gaia-style astrometric parameters to a",
+            "different epoch, appending new columns giving the",
+            "propagated values.",
+            "The <code>&lt;tYr&gt;</code> argument gives the epoch",
+            "difference in years;",
+            "for instance, use <code>-15.5</code> to propagate",
+            "Gaia DR2 positions, which are at epoch 2015.5, to 2000.0.",
+            "</p>",
+            "<p>The calculations are the same as those done by the",
+            "<code>epochProp</code> and <code>epochPropErr</code> functions",
+            "in the <ref id='uk.ac.starlink.ttools.func.Gaia'>Gaia</ref>",
+            "class, but this filter is usually much faster",
+            "for large tables, since it processes rows in chunks",
+            "and makes use of multiple processors where available.",
+            "</p>",
+            "<p>By default the positions, parallaxes, proper motions",
+            "and radial velocity are propagated.",
+            "If the <code>-errs</code> flag is given,",
+            "the corresponding errors and correlation coefficients",
+            "are propagated as well.",
+            "</p>",
+            "<p>The input columns are by default those named as in the",
+            "Gaia <code>gaia_source</code> table",
+            "(<code>ra</code>, <code>dec</code>, <code>parallax</code>,",
+            "<code>pmra</code>, <code>pmdec</code>,",
+            "<code>radial_velocity</code>",
+            "and for <code>-errs</code> also",
+            "<code>ra_error</code> ... <code>pmra_pmdec_corr</code>),",
+            "and must be in the same units as that table.",
+            "To use other columns, supply the <code>-in</code> flag",
+            "with a space-separated list giving the input columns",
+            "in the order listed in the documentation of the",
+            "<code>epochProp</code> (6 columns) or",
+            "<code>epochPropErr</code> (22 columns) functions.",
+            "If the table has no radial velocity information,",
+            "the radial velocity entries in this list may be given as",
+            "\"<code>" + NO_COL + "</code>\";",
+            "if the default names are used and no radial velocity columns",
+            "are present, they are treated as absent in the same way.",
+            "Absent or blank radial velocities are taken to be zero",
+            "for the purposes of the calculation,",
+            "and no radial velocity output is generated.",
+            "</p>",
+            "<p>The new columns are named by appending a suffix to",
+            "the names of the corresponding input columns;",
+            "the suffix is \"<code>" + DFLT_SUFFIX + "</code>\"",
+            "unless specified by the <code>-suffix</code> flag.",
+            "</p>",
+            explainSyntax( new String[] { "in-col-id-list" } ),
+        };
+    }
+
+    public ProcessingStep createStep( Iterator<String> argIt )
+            throws ArgException {
+        boolean hasErrs = false;
+        String inList = null;
+        String suffix = DFLT_SUFFIX;
+        String sTyr = null;
+        while ( argIt.hasNext() && sTyr == null ) {
+            String arg = argIt.next();
+            if ( arg.equals( "-errs" ) ) {
+                argIt.remove();
+                hasErrs = true;
+            }
+            else if ( arg.equals( "-in" ) && argIt.hasNext() ) {
+                argIt.remove();
+                inList = argIt.next();
+                argIt.remove();
+            }
+            else if ( arg.equals( "-suffix" ) && argIt.hasNext() ) {
+                argIt.remove();
+                suffix = argIt.next();
+                argIt.remove();
+            }
+            else if ( sTyr == null ) {
+                argIt.remove();
+                sTyr = arg;
+            }
+        }
+        if ( sTyr == null ) {
+            throw new ArgException( "No epoch difference supplied" );
+        }
+        final double tYr;
+        try {
+            tYr = Double.parseDouble( sTyr );
+        }
+        catch ( NumberFormatException e ) {
+            throw new ArgException( "Epoch difference \"" + sTyr
+                                  + "\" not numeric", e );
+        }
+        final int nq = hasErrs ? 22 : 6;
+        final boolean isDefault = inList == null;
+        final String[] inCols;
+        if ( isDefault ) {
+            inCols = hasErrs ? ASTROM22_COLS : ASTROM6_COLS;
+        }
+        else {
+            inCols = inList.trim().split( "\\s+" );
+            if ( inCols.length != nq ) {
+                throw new ArgException( "Wrong number of input columns "
+                                      + "(" + inCols.length + " != "
+                                      + nq + ")" );
+            }
+        }
+        final String sfx = suffix;
+        return new ProcessingStep() {
+            public StarTable wrap( StarTable base ) throws IOException {
+                ColumnIdentifier identifier = new ColumnIdentifier( base );
+                int[] icols = new int[ nq ];
+                for ( int iq = 0; iq < nq; iq++ ) {
+                    String colId = inCols[ iq ];
+                    boolean isRv = iq == 5 || iq == 11;
+                    if ( isRv && NO_COL.equals( colId ) ) {
+                        icols[ iq ] = -1;
+                    }
+                    else if ( isRv && isDefault ) {
+                        try {
+                            icols[ iq ] = identifier.getColumnIndex( colId );
+                        }
+                        catch ( IOException e ) {
+                            icols[ iq ] = -1;
+                        }
+                    }
+                    else {
+                        icols[ iq ] = identifier.getColumnIndex( colId );
+                    }
+                    if ( icols[ iq ] >= 0 &&
+                         ! Number.class
+                          .isAssignableFrom( base.getColumnInfo( icols[ iq ] )
+                                                 .getContentClass() ) ) {
+                        throw new IOException( "Column " + colId
+                                             + " not numeric" );
+                    }
+                }
+                if ( nq == 22 && icols[ 5 ] < 0 ) {
+                    icols[ 11 ] = -1;
+                }
+                return new EpochPropTable( base, tYr, icols, sfx );
+            }
+        };
+    }
+}
@@ -0,0 +1,450 @@
+package uk.ac.starlink.ttools.filter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import uk.ac.starlink.dpac.epoch.BatchEpochTransformation;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.WrapperStarTable;
+import uk.ac.starlink.ttools.func.Gaia;
+
+/**
+ * Wrapper table which appends columns giving astrometric parameters,
+ * and optionally their errors and correlations,
+ * propagated to a different epoch.
+ *
+ * <p>The input quantities are those of the Gaia <code>gaia_source</code>
+ * table, with the same units and in the same order as for the
+ * {@link Gaia#epochProp} and {@link Gaia#epochPropErr} functions,
+ * and the calculations give the same results as those functions.
+ * However, when the table is read sequentially, rows are read ahead
+ * from the base table in chunks, and the propagation for each chunk
+ * is done in columnar form, in parallel if multiple processors
+ * are available,
+ * using {@link uk.ac.starlink.dpac.epoch.BatchEpochTransformation}.
+ *
+ * <p>Where the radial velocity is absent or blank, it is treated
+ * as zero for the purposes of the propagation,
+ * and the propagated radial velocity and its error are blank.
+ */
+public class EpochPropTable extends WrapperStarTable {
+
+    private final StarTable baseTable_;
+    private final double tYr_;
+    private final int[] inCols_;
+    private final boolean hasErrs_;
+    private final int nbase_;
+    private final int[] outQuants_;
+    private final ColumnInfo[] outInfos_;
+    private Chunk randomChunk_;
+    private long randomIrow_;
+
+    /** Number of rows read ahead from the base table at a time. */
+    public static final int CHUNK_SIZE = 8192;
+
+    /** Number of sources propagated by a single parallel task. */
+    private static final int TASK_SIZE = 1024;
+
+    private static final int NPROC =
+        Runtime.getRuntime().availableProcessors();
+    private static final double RVNORM = Gaia.AU_YRKMS;
+    private static final double RVNORM1 = 1.0 / RVNORM;
+    private static final double DEG2RAD = Math.PI / 180.;
+    private static final double MAS2RAD = DEG2RAD / ( 3600. * 1000. );
+    private static final double RAD2DEG = 1.0 / DEG2RAD;
+    private static final double RAD2MAS = 1.0 / MAS2RAD;
+    private static final int NP = BatchEpochTransformation.NPARAM;
+    private static ExecutorService executor_;
+
+    /**
+     * Constructor.
+     *
+     * <p>The input column indices give the base table columns for the
+     * quantities listed in the documentation of {@link Gaia#epochProp}
+     * (6 elements) or {@link Gaia#epochPropErr} (22 elements).
+     * The radial velocity and radial velocity error indices
+     * (elements 5 and 11) may be negative to indicate that no such
+     * column is present; all others must refer to numeric columns.
+     * Output columns are appended for all the quantities that are present.
+     *
+     * @param  baseTable  base table
+     * @param  tYr   epoch difference in years
+     * @param  inCols  column indices in base table of input quantities,
+     *                 6 or 22 elements
+     * @param  suffix   suffix appended to input column names to
+     *                  form output column names
+     */
+    public EpochPropTable( StarTable baseTable, double tYr, int[] inCols,
+                           String suffix ) {
+        super( baseTable );
+        if ( inCols.length != 6 && inCols.length != 22 ) {
+            throw new IllegalArgumentException( "Wrong number of columns" );
+        }
+        baseTable_ = baseTable;
+        tYr_ = tYr;
+        inCols_ = inCols.clone();
+        hasErrs_ = inCols.length == 22;
+        nbase_ = baseTable.getColumnCount();
+        List<Integer> quantList = new ArrayList<Integer>();
+        List<ColumnInfo> infoList = new ArrayList<ColumnInfo>();
+        for ( int iq = 0; iq < inCols.length; iq++ ) {
+            if ( inCols[ iq ] >= 0 ) {
+                ColumnInfo baseInfo = baseTable.getColumnInfo( inCols[ iq ] );
+                ColumnInfo info = new ColumnInfo( baseInfo );
+                info.setName( baseInfo.getName() + suffix );
+                info.setContentClass( Double.class );
+                info.setDescription( baseInfo.getName()
+                                   + " propagated by " + tYr + " years" );
+                quantList.add( new Integer( iq ) );
+                infoList.add( info );
+            }
+        }
+        outQuants_ = new int[ quantList.size() ];
+        for ( int i = 0; i < outQuants_.length; i++ ) {
+            outQuants_[ i ] = quantList.get( i ).intValue();
+        }
+        outInfos_ = infoList.toArray( new ColumnInfo[ 0 ] );
+        randomIrow_ = -1;
+    }
+
+    public int getColumnCount() {
+        return nbase_ + outInfos_.length;
+    }
+
+    public ColumnInfo getColumnInfo( int icol ) {
+        return icol < nbase_ ? baseTable_.getColumnInfo( icol )
+                             : outInfos_[ icol - nbase_ ];
+    }
+
+    public Object getCell( long irow, int icol ) throws IOException {
+        if ( icol < nbase_ ) {
+            return baseTable_.getCell( irow, icol );
+        }
+        else {
+            synchronized ( this ) {
+                if ( irow != randomIrow_ ) {
+                    if ( randomChunk_ == null ) {
+                        randomChunk_ = new Chunk( 1 );
+                    }
+                    randomChunk_.calculate( new Object[][] {
+                                                baseTable_.getRow( irow ) },
+                                            1, false );
+                    randomIrow_ = irow;
+                }
+                return randomChunk_.getValue( icol - nbase_, 0 );
+            }
+        }
+    }
+
+    public Object[] getRow( long irow ) throws IOException {
+        Object[] baseRow = baseTable_.getRow( irow );
+        Chunk chunk = new Chunk( 1 );
+        chunk.calculate( new Object[][] { baseRow }, 1, false );
+        return chunk.getRow( baseRow, 0 );
+    }
+
+    public RowSequence getRowSequence() throws IOException {
+        final RowSequence baseSeq = baseTable_.getRowSequence();
+        return new RowSequence() {
+            final Object[][] rows_ = new Object[ CHUNK_SIZE ][];
+            Chunk chunk_;
+            int nrow_;
+            int irow_;
+            boolean ended_;
+            public boolean next() throws IOException {
+                if ( irow_ + 1 < nrow_ ) {
+                    irow_++;
+                    return true;
+                }
+                else if ( ended_ ) {
+                    irow_ = nrow_;
+                    return false;
+                }
+                else {
+                    int nr = 0;
+                    while ( nr < CHUNK_SIZE && baseSeq.next() ) {
+                        rows_[ nr++ ] = baseSeq.getRow().clone();
+                    }
+                    ended_ = nr < CHUNK_SIZE;
+
+                    /* The first chunk is either full or contains the
+                     * whole table, so size the workspace accordingly. */
+                    if ( chunk_ == null ) {
+                        chunk_ = new Chunk( nr );
+                    }
+                    chunk_.calculate( rows_, nr, true );
+                    nrow_ = nr;
+                    irow_ = 0;
+                    return nr > 0;
+                }
+            }
+            public Object getCell( int icol ) {
+                checkRow();
+                return icol < nbase_ ? rows_[ irow_ ][ icol ]
+                                     : chunk_.getValue( icol - nbase_, irow_ );
+            }
+            public Object[] getRow() {
+                checkRow();
+                return chunk_.getRow( rows_[ irow_ ], irow_ );
+            }
+            public void close() throws IOException {
+                baseSeq.close();
+            }
+            private void checkRow() {
+                if ( chunk_ == null || irow_ >= nrow_ ) {
+                    throw new IllegalStateException( "No current row" );
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the executor service used for parallel propagation.
+     * It is shared between all instances of this class and
+     * uses daemon threads.
+     *
+     * @return  executor service
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor_ == null ) {
+            executor_ = Executors.newFixedThreadPool( NPROC,
+                                                      new ThreadFactory() {
+                private int iThread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "Epoch propagation-"
+                                             + ( ++iThread_ ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        }
+        return executor_;
+    }
+
+    /**
+     * Returns the numeric value of a base table cell.
+     *
+     * @param  row  base table row
+     * @param  icol  column index, or negative for no column
+     * @return  numeric value, or NaN if absent or not numeric
+     */
+    private static double getDouble( Object[] row, int icol ) {
+        return icol >= 0 ? CalculatorColumnSupplement.getDouble( row[ icol ] )
+                         : Double.NaN;
+    }
+
+    /**
+     * Holds columnar workspace and results for propagating a chunk of rows.
+     */
+    private class Chunk {
+        final double[][] a0_;
+        final double[][] c0_;
+        final double[][] a1_;
+        final double[][] c1_;
+        final boolean[] hasRv_;
+        final double[][] out_;
+        final double[] errs_;
+
+        /**
+         * Constructor.
+         *
+         * @param  size  maximum number of rows in chunk
+         */
+        Chunk( int size ) {
+            a0_ = new double[ NP ][ size ];
+            a1_ = new double[ NP ][ size ];
+            int ncov = BatchEpochTransformation.NCOV;
+            c0_ = hasErrs_ ? new double[ ncov ][ size ] : null;
+            c1_ = hasErrs_ ? new double[ ncov ][ size ] : null;
+            hasRv_ = new boolean[ size ];
+            out_ = new double[ inCols_.length ][ size ];
+            errs_ = new double[ 5 ];
+        }
+
+        /**
+         * Performs the propagation for a given set of base table rows.
+         *
+         * @param  rows  base table rows
+         * @param  nrow  number of rows to use
+         * @param  isParallel  whether to use multiple threads if available
+         */
+        void calculate( Object[][] rows, int nrow, boolean isParallel )
+                throws IOException {
+            for ( int ir = 0; ir < nrow; ir++ ) {
+                readInputs( rows[ ir ], ir );
+            }
+            if ( isParallel && NPROC > 1 && nrow > TASK_SIZE ) {
+                try {
+                    BatchEpochTransformation
+                   .propagate( tYr_, a0_, c0_, a1_, c1_, 0, nrow,
+                               getExecutor(), TASK_SIZE );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw (IOException)
+                          new InterruptedIOException( "Interrupted" )
+                         .initCause( e );
+                }
+            }
+            else {
+                BatchEpochTransformation
+               .propagate( tYr_, a0_, c0_, a1_, c1_, 0, nrow );
+            }
+            for ( int ir = 0; ir < nrow; ir++ ) {
+                writeOutputs( ir );
+            }
+        }
+
+        /**
+         * Returns the value of an output column for a row in this chunk.
+         *
+         * @param  jcol  index of appended column
+         * @param  ir   row index within chunk
+         * @return  cell value
+         */
+        Object getValue( int jcol, int ir ) {
+            return new Double( out_[ outQuants_[ jcol ] ][ ir ] );
+        }
+
+        /**
+         * Returns a complete output table row for a row in this chunk.
+         *
+         * @param  baseRow  base table row
+         * @param  ir   row index within chunk
+         * @return   output row
+         */
+        Object[] getRow( Object[] baseRow, int ir ) {
+            Object[] row = new Object[ nbase_ + outQuants_.length ];
+            System.arraycopy( baseRow, 0, row, 0, nbase_ );
+            for ( int jc = 0; jc < outQuants_.length; jc++ ) {
+                row[ nbase_ + jc ] = getValue( jc, ir );
+            }
+            return row;
+        }
+
+        /**
+         * Populates the input columns for one row, converting from
+         * gaia_source units to those used by the propagation routine.
+         *
+         * @param  row  base table row
+         * @param  ir   row index within chunk
+         */
+        private void readInputs( Object[] row, int ir ) {
+            double plx0 = getDouble( row, inCols_[ 2 ] ) * MAS2RAD;
+            double rv0 = getDouble( row, inCols_[ 5 ] );
+            boolean hasRv = ! Double.isNaN( rv0 );
+            hasRv_[ ir ] = hasRv;
+            if ( ! hasRv ) {
+                rv0 = 0.0;
+            }
+            a0_[ 0 ][ ir ] = getDouble( row, inCols_[ 0 ] ) * DEG2RAD;
+            a0_[ 1 ][ ir ] = getDouble( row, inCols_[ 1 ] ) * DEG2RAD;
+            a0_[ 2 ][ ir ] = plx0;
+            a0_[ 3 ][ ir ] = getDouble( row, inCols_[ 3 ] ) * MAS2RAD;
+            a0_[ 4 ][ ir ] = getDouble( row, inCols_[ 4 ] ) * MAS2RAD;
+            a0_[ 5 ][ ir ] = rv0 * plx0 * RVNORM1;
+            if ( ! hasErrs_ ) {
+                return;
+            }
+
+            /* Covariances of the five astrometric parameters.
+             * The correlation columns are in upper triangle order. */
+            double[] errs = errs_;
+            for ( int i = 0; i < 5; i++ ) {
+                errs[ i ] = getDouble( row, inCols_[ 6 + i ] ) * MAS2RAD;
+            }
+            int icorr = 12;
+            for ( int i = 0; i < 5; i++ ) {
+                c0_[ BatchEpochTransformation.covIndex( i, i ) ][ ir ] =
+                    errs[ i ] * errs[ i ];
+                for ( int j = i + 1; j < 5; j++ ) {
+                    c0_[ BatchEpochTransformation.covIndex( i, j ) ][ ir ] =
+                        errs[ i ] * errs[ j ]
+                      * getDouble( row, inCols_[ icorr++ ] );
+                }
+            }
+
+            /* Radial velocity terms, following Eq. 17 of
+             * Michalik et al. 2014 (2014A&A...571A..85M),
+             * as for Gaia.epochPropErr. */
+            if ( hasRv ) {
+                double errRv0 = getDouble( row, inCols_[ 11 ] );
+                double rva = rv0 * RVNORM1;
+                for ( int i = 0; i < 5; i++ ) {
+                    c0_[ BatchEpochTransformation.covIndex( i, 5 ) ][ ir ] =
+                        rva * c0_[ BatchEpochTransformation
+                                  .covIndex( i, 2 ) ][ ir ];
+                }
+                double errPlx0 = errs[ 2 ];
+                c0_[ BatchEpochTransformation.covIndex( 5, 5 ) ][ ir ] =
+                    RVNORM1 * RVNORM1
+                  * ( plx0 * errRv0 * plx0 * errRv0
+                    + rv0 * errPlx0 * rv0 * errPlx0
+                    + errRv0 * errPlx0 * errRv0 * errPlx0 );
+            }
+            else {
+                for ( int i = 0; i < NP; i++ ) {
+                    c0_[ BatchEpochTransformation.covIndex( i, 5 ) ][ ir ] =
+                        0.0;
+                }
+            }
+        }
+
+        /**
+         * Populates the output values for one row, converting from
+         * the units used by the propagation routine to gaia_source units.
+         *
+         * @param  ir  row index within chunk
+         */
+        private void writeOutputs( int ir ) {
+            boolean hasRv = hasRv_[ ir ];
+            double plx1 = a1_[ 2 ][ ir ];
+            double zeta1 = a1_[ 5 ][ ir ];
+            double rv1 = hasRv ? RVNORM * zeta1 / plx1 : Double.NaN;
+            out_[ 0 ][ ir ] = a1_[ 0 ][ ir ] * RAD2DEG;
+            out_[ 1 ][ ir ] = a1_[ 1 ][ ir ] * RAD2DEG;
+            out_[ 2 ][ ir ] = plx1 * RAD2MAS;
+            out_[ 3 ][ ir ] = a1_[ 3 ][ ir ] * RAD2MAS;
+            out_[ 4 ][ ir ] = a1_[ 4 ][ ir ] * RAD2MAS;
+            out_[ 5 ][ ir ] = rv1;
+            if ( ! hasErrs_ ) {
+                return;
+            }
+            double[] errs = errs_;
+            for ( int i = 0; i < 5; i++ ) {
+                errs[ i ] =
+                    Math.sqrt( c1_[ BatchEpochTransformation
+                                   .covIndex( i, i ) ][ ir ] );
+                out_[ 6 + i ][ ir ] = errs[ i ] * RAD2MAS;
+            }
+            int icorr = 12;
+            for ( int i = 0; i < 5; i++ ) {
+                for ( int j = i + 1; j < 5; j++ ) {
+                    out_[ icorr++ ][ ir ] =
+                        c1_[ BatchEpochTransformation.covIndex( i, j ) ][ ir ]
+                        / ( errs[ i ] * errs[ j ] );
+                }
+            }
+
+            /* Invert Michalik et al. 2014 Eq. 17. */
+            if ( hasRv ) {
+                double c22 =
+                    c1_[ BatchEpochTransformation.covIndex( 2, 2 ) ][ ir ];
+                double c55 =
+                    c1_[ BatchEpochTransformation.covIndex( 5, 5 ) ][ ir ];
+                out_[ 11 ][ ir ] =
+                    Math.sqrt( ( RVNORM * RVNORM * c55 - rv1 * rv1 * c22 )
+                             / ( plx1 * plx1 + c22 ) );
+            }
+            else {
+                out_[ 11 ][ ir ] = Double.NaN;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package uk.ac.starlink.ttools.filter;
+
+import uk.ac.starlink.table.Tables;
+
+/**
+ * Estimates the number of distinct values in a sequence
+ * using the HyperLogLog algorithm.
+ * Memory use is fixed, at one byte per register,
+ * and the relative standard error of the estimate is about
+ * 1.04/sqrt(<em>m</em>) for <em>m</em> registers.
+ * Instances may be merged, so that distinct counts for a sequence
+ * split into parts can be accumulated separately and combined.
+ *
+ * <p>Values are hashed to 64 bits, with small-range correction
+ * as in Heule, Nunkesser and Hall, "HyperLogLog in Practice", EDBT 2013
+ * (but without their bias correction tables).
+ * Two values are counted as the same if they are equal according to
+ * {@link java.lang.Object#equals}; integer values of different
+ * numeric classes with the same value are also counted as the same.
+ * Blank values are ignored.
+ */
+public class HyperLogLog {
+
+    private final int precision_;
+    private final byte[] registers_;
+
+    /** Default precision, giving a relative error of about 0.8%. */
+    public static final int DEFAULT_PRECISION = 14;
+
+    /**
+     * Constructor.
+     *
+     * @param  precision  base 2 logarithm of the number of registers,
+     *                    in the range 4..18
+     */
+    public HyperLogLog( int precision ) {
+        if ( precision < 4 || precision > 18 ) {
+            throw new IllegalArgumentException( "Precision " + precision
+                                              + " out of range 4..18" );
+        }
+        precision_ = precision;
+        registers_ = new byte[ 1 << precision ];
+    }
+
+    /**
+     * Constructs an instance with the default precision.
+     */
+    public HyperLogLog() {
+        this( DEFAULT_PRECISION );
+    }
+
+    /**
+     * Submits a value.
+     *
+     * @param  value  value, ignored if blank
+     */
+    public void acceptDatum( Object value ) {
+        if ( ! Tables.isBlank( value ) ) {
+            acceptHash( hash64( value ) );
+        }
+    }
+
+    /**
+     * Submits a value which has already been hashed.
+     * Hash values should be uniformly distributed over all 64 bits.
+     *
+     * @param  hash  64-bit hash value
+     */
+    public void acceptHash( long hash ) {
+        int ireg = (int) ( hash >>> ( 64 - precision_ ) );
+        long rest = hash << precision_;
+        int rank = rest == 0 ? 64 - precision_ + 1
+                             : Long.numberOfLeadingZeros( rest ) + 1;
+        if ( rank > registers_[ ireg ] ) {
+            registers_[ ireg ] = (byte) rank;
+        }
+    }
+
+    /**
+     * Adds the values counted by another instance to this one.
+     *
+     * @param  other  instance with the same precision as this one
+     */
+    public void addHyperLogLog( HyperLogLog other ) {
+        if ( other.precision_ != precision_ ) {
+            throw new IllegalArgumentException( "Precision mismatch" );
+        }
+        byte[] oregs = other.registers_;
+        for ( int i = 0; i < registers_.length; i++ ) {
+            if ( oregs[ i ] > registers_[ i ] ) {
+                registers_[ i ] = oregs[ i ];
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct values submitted.
+     *
+     * @return  distinct value count estimate
+     */
+    public long getEstimate() {
+        int m = registers_.length;
+        double sum = 0;
+        int nzero = 0;
+        for ( int i = 0; i < m; i++ ) {
+            int r = registers_[ i ];
+            sum += 1.0 / ( 1L << r );
+            if ( r == 0 ) {
+                nzero++;
+            }
+        }
+        double alpha = 0.7213 / ( 1.0 + 1.079 / m );
+        double estimate = alpha * m * m / sum;
+
+        /* Use linear counting for small cardinalities. */
+        if ( nzero > 0 && estimate <= 2.5 * m ) {
+            estimate = m * Math.log( m / (double) nzero );
+        }
+        return Math.round( estimate );
+    }
+
+    /**
+     * Returns the relative standard error of the estimate.
+     *
+     * @return  approximate fractional error
+     */
+    public double getRelativeError() {
+        return 1.04 / Math.sqrt( registers_.length );
+    }
+
+    /**
+     * Returns a well-distributed 64-bit hash for an object,
+     * consistent with its <code>equals</code> method.
+     *
+     * @param  value  non-null value
+     * @return  hash
+     */
+    public static long hash64( Object value ) {
+        long h;
+        if ( value instanceof Byte || value instanceof Short ||
+             value instanceof Integer || value instanceof Long ) {
+            h = ((Number) value).longValue();
+        }
+        else if ( value instanceof Double || value instanceof Float ) {
+            h = Double.doubleToLongBits( ((Number) value).doubleValue() )
+              ^ 0x5bd1e9955bd1e995L;
+        }
+        else if ( value instanceof CharSequence ) {
+            CharSequence cs = (CharSequence) value;
+            h = 0xcbf29ce484222325L;
+            int n = cs.length();
+            for ( int i = 0; i < n; i++ ) {
+                h ^= cs.charAt( i );
+                h *= 0x100000001b3L;
+            }
+        }
+        else {
+            h = value.hashCode();
+        }
+        return mix64( h );
+    }
+
+    /**
+     * Scrambles the bits of a 64-bit value.
+     * This is the finalizer of the SplitMix64 generator.
+     *
+     * @param  z  input value
+     * @return  mixed value
+     */
+    static long mix64( long z ) {
+        z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+        return z ^ ( z >>> 31 );
+    }
+}
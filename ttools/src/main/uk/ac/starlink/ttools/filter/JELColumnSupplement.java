@@ -7,12 +7,15 @@ import java.io.IOException;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.ttools.jel.CommonSubexpressions;
 import uk.ac.starlink.ttools.jel.JELUtils;
 import uk.ac.starlink.ttools.jel.RandomJELRowReader;
 import uk.ac.starlink.ttools.jel.StarTableJELRowReader;
 
 /**
  * ColumnSupplement that generates new columns based on JEL expressions.
+ * Function calls repeated between (or within) the expressions are
+ * evaluated only once per row.
  *
  * @author   Mark Taylor
  * @since    27 Mar 2012
@@ -76,6 +79,8 @@ public class JELColumnSupplement implements ColumnSupplement {
                 throw JELUtils.toIOException( e, expr );
             }
         }
+        CommonSubexpressions.shareSubexpressions( randomLib, randomReader_,
+                                                  exprs_, randomCompexs_ );
     }
 
     /**
@@ -183,6 +188,8 @@ public class JELColumnSupplement implements ColumnSupplement {
                          .initCause( e );
                 }
             }
+            CommonSubexpressions.shareSubexpressions( lib, this, exprs,
+                                                      seqCompexs_ );
         }
 
         // JELRowReader method
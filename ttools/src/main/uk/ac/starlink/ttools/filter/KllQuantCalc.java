@@ -0,0 +1,371 @@
+package uk.ac.starlink.ttools.filter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * QuantCalc implementation which calculates approximate quantiles
+ * in bounded memory using a KLL sketch.
+ *
+ * <p>Values are held in a stack of buffers, or compactors.
+ * Each value at level <em>h</em> stands for 2<sup><em>h</em></sup>
+ * submitted values.  When a level fills up it is sorted,
+ * and every other value (starting at a randomly chosen offset)
+ * is promoted to the level above, halving its size.
+ * Capacities decrease geometrically with depth below the top level,
+ * so the total number of retained values is roughly 3<em>k</em>
+ * plus a term logarithmic in the number of values submitted.
+ * Two sketches can be combined by concatenating corresponding levels
+ * and compacting as required, so the quantiles of a data set can be
+ * accumulated in separate parts and then merged.
+ * See Karnin, Lang and Liberty, "Optimal Quantile Approximation in
+ * Streams", FOCS 2016.
+ *
+ * <p>Values are stored internally as doubles; quantiles are returned
+ * as objects of the submitted class, and are always values which
+ * were actually submitted.  If no more values have been submitted
+ * than the sketch can hold without compaction, results are the same
+ * as for the exact calculators.
+ * The random compaction offsets are taken from a generator with a fixed
+ * seed, so that results are reproducible for the same input sequence.
+ */
+public class KllQuantCalc extends QuantCalc {
+
+    private final Class clazz_;
+    private final int k_;
+    private final Random random_;
+    private double[][] levels_;
+    private int[] sizes_;
+    private int nlevel_;
+    private int maxRetained_;
+    private int nRetained_;
+    private long count_;
+    private double[] sortValues_;
+    private long[] sortCumWeights_;
+
+    /** Default value of the size parameter k. */
+    public static final int DEFAULT_K = 1000;
+
+    /**
+     * Typical rank error for the default size, as a fraction of
+     * the value count.  Larger errors are possible but unlikely.
+     */
+    public static final double RANK_ERROR = 0.002;
+
+    /** Ratio of capacities between adjacent levels. */
+    private static final double C = 2.0 / 3.0;
+
+    /**
+     * Constructor.
+     *
+     * @param  clazz  class of data objects which will be submitted;
+     *                must be assignable from Number class
+     * @param  k   size parameter; the rank error is roughly
+     *             inversely proportional to it
+     */
+    public KllQuantCalc( Class clazz, int k ) {
+        super( clazz );
+        if ( k < 2 ) {
+            throw new IllegalArgumentException( "k " + k + " < 2" );
+        }
+        clazz_ = clazz;
+        k_ = k;
+        random_ = new Random( 23219L );
+        levels_ = new double[ 0 ][];
+        sizes_ = new int[ 0 ];
+        grow();
+    }
+
+    public void acceptDatum( Object obj ) {
+        if ( obj instanceof Number ) {
+            double dval = ((Number) obj).doubleValue();
+            if ( ! Double.isNaN( dval ) ) {
+                append( 0, dval );
+                count_++;
+                if ( nRetained_ >= maxRetained_ ) {
+                    compress();
+                }
+                sortValues_ = null;
+            }
+        }
+    }
+
+    public void addQuantCalc( QuantCalc other ) {
+        if ( other instanceof KllQuantCalc ) {
+            KllQuantCalc kother = (KllQuantCalc) other;
+            while ( nlevel_ < kother.nlevel_ ) {
+                grow();
+            }
+            for ( int ih = 0; ih < kother.nlevel_; ih++ ) {
+                double[] buf = kother.levels_[ ih ];
+                for ( int i = 0; i < kother.sizes_[ ih ]; i++ ) {
+                    append( ih, buf[ i ] );
+                }
+            }
+            count_ += kother.count_;
+            while ( nRetained_ >= maxRetained_ ) {
+                compress();
+            }
+            sortValues_ = null;
+        }
+        else {
+            super.addQuantCalc( other );
+        }
+    }
+
+    public void ready() {
+        if ( sortValues_ == null ) {
+            sortItems();
+        }
+    }
+
+    public long getValueCount() {
+        return count_;
+    }
+
+    public Number getQuantile( double quant ) {
+        if ( count_ == 0 ) {
+            return null;
+        }
+        ready();
+        long point = Math.min( (long) ( quant * count_ ), count_ - 1 );
+        int ix = Arrays.binarySearch( sortCumWeights_, point + 1 );
+        if ( ix < 0 ) {
+            ix = - ix - 1;
+        }
+        return toNumber( sortValues_[ Math.min( ix,
+                                                sortValues_.length - 1 ) ] );
+    }
+
+    /**
+     * Returns an iterator over values representing the accumulated data.
+     * Each retained value is repeated as many times as the number of
+     * submitted values it stands for, so the values are approximate
+     * but the count is correct.
+     * Note this takes time proportional to the number of values
+     * submitted.
+     *
+     * @return  value iterator in ascending order
+     */
+    public Iterator<Number> getValueIterator() {
+        ready();
+        final double[] values = sortValues_;
+        final long[] cumWeights = sortCumWeights_;
+        return new Iterator<Number>() {
+            int ix;
+            long iv;
+            public boolean hasNext() {
+                return ix < values.length;
+            }
+            public Number next() {
+                if ( ! hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                Number num = toNumber( values[ ix ] );
+                if ( ++iv >= cumWeights[ ix ] ) {
+                    ix++;
+                }
+                return num;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of values currently held by this sketch.
+     * This is bounded regardless of the number of values submitted.
+     *
+     * @return  retained value count
+     */
+    public int getRetainedCount() {
+        return nRetained_;
+    }
+
+    /**
+     * Calculates the approximate median absolute deviation of the
+     * values accumulated by this sketch.
+     * This works on the retained values, so does not require
+     * a further pass through the data.
+     *
+     * @return   approximate median of abs(x_i - median)
+     */
+    public double getMedianAbsoluteDeviation() {
+        if ( count_ == 0 ) {
+            return Double.NaN;
+        }
+        double median = getQuantile( 0.5 ).doubleValue();
+        KllQuantCalc devCalc = new KllQuantCalc( Double.class, k_ );
+        while ( devCalc.nlevel_ < nlevel_ ) {
+            devCalc.grow();
+        }
+        for ( int ih = 0; ih < nlevel_; ih++ ) {
+            double[] buf = levels_[ ih ];
+            for ( int i = 0; i < sizes_[ ih ]; i++ ) {
+                devCalc.append( ih, Math.abs( buf[ i ] - median ) );
+            }
+        }
+        devCalc.count_ = count_;
+        return devCalc.getQuantile( 0.5 ).doubleValue();
+    }
+
+    /**
+     * Returns the maximum number of values that may be held at a given
+     * level given the current number of levels.
+     *
+     * @param  ih  level index
+     * @return  capacity
+     */
+    private int getCapacity( int ih ) {
+        int depth = nlevel_ - ih - 1;
+        return Math.max( 2, (int) Math.ceil( k_ * Math.pow( C, depth ) ) );
+    }
+
+    /**
+     * Adds a new top level.
+     */
+    private void grow() {
+        int nl = nlevel_ + 1;
+        double[][] levels = new double[ nl ][];
+        int[] sizes = new int[ nl ];
+        System.arraycopy( levels_, 0, levels, 0, nlevel_ );
+        System.arraycopy( sizes_, 0, sizes, 0, nlevel_ );
+        levels[ nlevel_ ] = new double[ 16 ];
+        levels_ = levels;
+        sizes_ = sizes;
+        nlevel_ = nl;
+        int max = 0;
+        for ( int ih = 0; ih < nlevel_; ih++ ) {
+            max += getCapacity( ih );
+        }
+        maxRetained_ = max;
+    }
+
+    /**
+     * Appends a value to a given level.
+     *
+     * @param  ih  level index
+     * @param  value  value
+     */
+    private void append( int ih, double value ) {
+        double[] buf = levels_[ ih ];
+        int size = sizes_[ ih ];
+        if ( size == buf.length ) {
+            double[] buf1 = new double[ size * 2 ];
+            System.arraycopy( buf, 0, buf1, 0, size );
+            buf = buf1;
+            levels_[ ih ] = buf;
+        }
+        buf[ size ] = value;
+        sizes_[ ih ] = size + 1;
+        nRetained_++;
+    }
+
+    /**
+     * Compacts the lowest level which is at or above its capacity.
+     */
+    private void compress() {
+        for ( int ih = 0; ih < nlevel_; ih++ ) {
+            if ( sizes_[ ih ] >= getCapacity( ih ) ) {
+                if ( ih + 1 >= nlevel_ ) {
+                    grow();
+                }
+                compact( ih );
+                return;
+            }
+        }
+    }
+
+    /**
+     * Halves the number of values at a given level by promoting
+     * every other one to the level above.
+     * If there is an odd number, the smallest stays where it is.
+     *
+     * @param  ih  level index
+     */
+    private void compact( int ih ) {
+        double[] buf = levels_[ ih ];
+        int size = sizes_[ ih ];
+        Arrays.sort( buf, 0, size );
+        int start = size % 2;
+        int offset = random_.nextBoolean() ? 1 : 0;
+        nRetained_ -= size - start;
+        sizes_[ ih ] = start;
+        for ( int i = start + offset; i < size; i += 2 ) {
+            append( ih + 1, buf[ i ] );
+        }
+    }
+
+    /**
+     * Prepares sorted arrays of retained values and cumulative weights
+     * for quantile lookup.
+     */
+    private void sortItems() {
+        int n = nRetained_;
+        final double[] values = new double[ n ];
+        long[] weights = new long[ n ];
+        int iv = 0;
+        for ( int ih = 0; ih < nlevel_; ih++ ) {
+            double[] buf = levels_[ ih ];
+            long weight = 1L << ih;
+            for ( int i = 0; i < sizes_[ ih ]; i++ ) {
+                values[ iv ] = buf[ i ];
+                weights[ iv ] = weight;
+                iv++;
+            }
+        }
+        Integer[] ixs = new Integer[ n ];
+        for ( int i = 0; i < n; i++ ) {
+            ixs[ i ] = new Integer( i );
+        }
+        Arrays.sort( ixs, new Comparator<Integer>() {
+            public int compare( Integer i1, Integer i2 ) {
+                return Double.compare( values[ i1.intValue() ],
+                                       values[ i2.intValue() ] );
+            }
+        } );
+        double[] sortValues = new double[ n ];
+        long[] sortCumWeights = new long[ n ];
+        long cum = 0;
+        for ( int i = 0; i < n; i++ ) {
+            int ix = ixs[ i ].intValue();
+            sortValues[ i ] = values[ ix ];
+            cum += weights[ ix ];
+            sortCumWeights[ i ] = cum;
+        }
+        assert cum == count_;
+        sortValues_ = sortValues;
+        sortCumWeights_ = sortCumWeights;
+    }
+
+    /**
+     * Converts a retained value to a Number of this calculator's class.
+     *
+     * @param  dval  value
+     * @return  number object
+     */
+    private Number toNumber( double dval ) {
+        if ( clazz_ == Byte.class ) {
+            return new Byte( (byte) dval );
+        }
+        else if ( clazz_ == Short.class ) {
+            return new Short( (short) dval );
+        }
+        else if ( clazz_ == Integer.class ) {
+            return new Integer( (int) dval );
+        }
+        else if ( clazz_ == Long.class ) {
+            return new Long( (long) dval );
+        }
+        else if ( clazz_ == Float.class ) {
+            return new Float( (float) dval );
+        }
+        else {
+            return new Double( dval );
+        }
+    }
+}
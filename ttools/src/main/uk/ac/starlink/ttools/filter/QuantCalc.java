@@ -78,6 +78,27 @@ public abstract class QuantCalc {
      */
     public abstract Iterator<Number> getValueIterator();
 
+    /**
+     * Adds all the values accumulated by another calculator to this one.
+     * This makes it possible to accumulate values for different parts
+     * of a data set separately, for instance in different threads,
+     * and combine them afterwards.
+     * This calculator must be able to accommodate the combined
+     * number of values.
+     *
+     * <p>The default implementation submits each of the other
+     * calculator's values in turn to {@link #acceptDatum};
+     * subclasses may override it to do the same thing more efficiently.
+     *
+     * @param  other  calculator whose values are to be added;
+     *                it is not affected by this call
+     */
+    public void addQuantCalc( QuantCalc other ) {
+        for ( Iterator<Number> it = other.getValueIterator(); it.hasNext(); ) {
+            acceptDatum( it.next() );
+        }
+    }
+
     /**
      * Factory method to create a quantile accumulator for a given 
      * row count and value class.
@@ -114,6 +135,25 @@ public abstract class QuantCalc {
         }
     }
 
+    /**
+     * Factory method to create an approximate quantile accumulator
+     * for a given value class.
+     * Unlike the exact calculators returned by {@link #createInstance},
+     * the memory it uses does not depend on the number of values
+     * submitted, and instances may be combined using
+     * {@link #addQuantCalc} at little cost.
+     * Quantiles returned are values from the submitted data,
+     * with a rank error of typically {@link KllQuantCalc#RANK_ERROR}
+     * as a fraction of the value count.
+     *
+     * @param  clazz  class of data objects which will be submitted;
+     *         must be assignable from Number.class.
+     * @return  new sketch-based calculator
+     */
+    public static QuantCalc createSketchInstance( Class clazz ) {
+        return new KllQuantCalc( clazz, KllQuantCalc.DEFAULT_K );
+    }
+
     /**
      * Calculates the median absolute deviation of the statistics
      * accumulated by a QuantCalc.
@@ -123,6 +163,9 @@ public abstract class QuantCalc {
      */
     public static double calculateMedianAbsoluteDeviation( QuantCalc qcalc )
             throws IOException {
+        if ( qcalc instanceof KllQuantCalc ) {
+            return ((KllQuantCalc) qcalc).getMedianAbsoluteDeviation();
+        }
         double median = qcalc.getQuantile( 0.5 ).doubleValue();
         QuantCalc madCalc =
             QuantCalc.createInstance( Double.class, qcalc.getValueCount() );
@@ -288,6 +331,19 @@ public abstract class QuantCalc {
             return count_;
         }
 
+        public void addQuantCalc( QuantCalc other ) {
+            if ( other instanceof ByteSlotQuantCalc ) {
+                ByteSlotQuantCalc sother = (ByteSlotQuantCalc) other;
+                for ( int is = 0; is < slots_.length; is++ ) {
+                    slots_[ is ] += sother.slots_[ is ];
+                }
+                count_ += sother.count_;
+            }
+            else {
+                super.addQuantCalc( other );
+            }
+        }
+
         public Number getQuantile( double quant ) {
             long point = Math.min( (long) ( quant * count_ ), count_ - 1 );
             long nval = 0;
@@ -357,6 +413,19 @@ public abstract class QuantCalc {
             return count_;
         }
 
+        public void addQuantCalc( QuantCalc other ) {
+            if ( other instanceof ShortSlotQuantCalc ) {
+                ShortSlotQuantCalc sother = (ShortSlotQuantCalc) other;
+                for ( int is = 0; is < slots_.length; is++ ) {
+                    slots_[ is ] += sother.slots_[ is ];
+                }
+                count_ += sother.count_;
+            }
+            else {
+                super.addQuantCalc( other );
+            }
+        }
+
         public Number getQuantile( double quant ) {
             long point = Math.min( (long) ( quant * count_ ), count_ - 1 );
             long nval = 0;
@@ -432,6 +501,27 @@ public abstract class QuantCalc {
             countMap_ = new TreeMap<Number,Integer>( countMap_ );
         }
 
+        public void addQuantCalc( QuantCalc other ) {
+            if ( other instanceof CountMapQuantCalc &&
+                 ((CountMapQuantCalc) other).clazz_ == clazz_ ) {
+                CountMapQuantCalc cother = (CountMapQuantCalc) other;
+                for ( Map.Entry<Number,Integer> entry :
+                      cother.countMap_.entrySet() ) {
+                    Number num = entry.getKey();
+                    Integer value = countMap_.get( num );
+                    int c = entry.getValue().intValue();
+                    countMap_.put( num,
+                                   new Integer( value == null
+                                                ? c
+                                                : value.intValue() + c ) );
+                }
+                count_ += cother.count_;
+            }
+            else {
+                super.addQuantCalc( other );
+            }
+        }
+
         public long getValueCount() {
             return count_;
         }
@@ -1,6 +1,7 @@
 package uk.ac.starlink.ttools.filter;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -10,6 +11,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.xml.sax.SAXException;
@@ -36,6 +43,16 @@ public class StatsFilter extends BasicFilter {
     /** Maximum value for cardinality counters. */
     private static final int MAX_CARDINALITY = 100;
 
+    /** Minimum number of rows read by a single parallel task. */
+    private static final long MIN_TASK_ROWS = 100000;
+
+    /** Flag which selects approximate quantile calculation. */
+    private static final String QAPPROX_FLAG = "-qapprox";
+
+    private static final int NPROC =
+        Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor_;
+
     /*
      * Metadata for calculated quantities.
      */
@@ -56,6 +73,7 @@ public class StatsFilter extends BasicFilter {
     private static final ValueInfo MINPOS_INFO;
     private static final ValueInfo MAXPOS_INFO;
     private static final ValueInfo CARDINALITY_INFO;
+    private static final ValueInfo COUNTDISTINCT_INFO;
     private static final ValueInfo MEDIAN_INFO;
     private static final ValueInfo Q1_INFO;
     private static final ValueInfo Q2_INFO;
@@ -99,6 +117,9 @@ public class StatsFilter extends BasicFilter {
         CARDINALITY_INFO = new DefaultValueInfo( "Cardinality", Integer.class,
                            "Number of distinct values in column; " +
                            "values >" + MAX_CARDINALITY + " ignored" ),
+        COUNTDISTINCT_INFO = new DefaultValueInfo( "CountDistinct", Long.class,
+                             "Approximate number of distinct values "
+                           + "in column (HyperLogLog estimate)" ),
         MEDIAN_INFO = new QuantileInfo( 0.5, "Median",
                                         "Middle value in sequence" ),
         Q1_INFO = new QuantileInfo( 0.25, "Quartile1", "First quartile" ),
@@ -131,11 +152,24 @@ public class StatsFilter extends BasicFilter {
         NGOOD_INFO,
     };
 
+    private final int maxTask_;
+
     /**
      * Constructor.
      */
     public StatsFilter() {
-        super( "stats", "[<item> ...]" );
+        this( NPROC );
+    }
+
+    /**
+     * Constructor with configurable parallelism.
+     *
+     * @param  maxTask  maximum number of row ranges to accumulate
+     *                  separately for random-access tables
+     */
+    StatsFilter( int maxTask ) {
+        super( "stats", "[" + QAPPROX_FLAG + "] [<item> ...]" );
+        maxTask_ = maxTask;
     }
 
     protected String[] getDescriptionLines() {
@@ -173,12 +207,39 @@ public class StatsFilter extends BasicFilter {
             "earlier in the pipeline.",
             "No interpolation is performed when calculating quantiles.",
             "</p>",
+            "<p>If the <code>" + QAPPROX_FLAG + "</code> flag is given,",
+            "quantiles (and median absolute deviations) are instead",
+            "estimated using a fixed-size sketch of the data,",
+            "which uses a small and constant amount of memory",
+            "however many rows there are.",
+            "The quantile values reported are values from the column,",
+            "but their rank may be out by typically",
+            (float) ( KllQuantCalc.RANK_ERROR * 100 ) + "%",
+            "of the row count.",
+            "For tables of up to a thousand rows or so",
+            "the results are exact.",
+            "</p>",
+            "<p>The " + COUNTDISTINCT_INFO.getName() + " item is an",
+            "estimate made in a single pass using a fixed amount of memory",
+            "per column, and is accurate to within about",
+            (float) ( new HyperLogLog().getRelativeError() * 100 ) + "%.",
+            "Unlike " + CARDINALITY_INFO.getName() + ",",
+            "it is useful for columns with large numbers of distinct values.",
+            "</p>",
+            "<p>If the input table has random access and many rows,",
+            "the statistics are accumulated for different ranges of rows",
+            "in parallel and then combined.",
+            "This is not done if exact quantiles are required,",
+            "since it would need additional memory of the same size",
+            "as the data.",
+            "</p>",
         };
     }
 
     public ProcessingStep createStep( Iterator<String> argIt )
             throws ArgException {
-        final ValueInfo[] colInfos;
+        boolean qapprox = false;
+        ValueInfo[] infos = DEFAULT_INFOS;
         if ( argIt.hasNext() ) {
             Map<String,ValueInfo> infoMap = new HashMap<String,ValueInfo>();
             for ( int i = 0; i < ALL_KNOWN_INFOS.length; i++ ) {
@@ -190,7 +251,10 @@ public class StatsFilter extends BasicFilter {
                 String name = argIt.next();
                 argIt.remove();
                 String lname = name.toLowerCase();
-                if ( infoMap.containsKey( lname ) ) {
+                if ( QAPPROX_FLAG.equalsIgnoreCase( name ) ) {
+                    qapprox = true;
+                }
+                else if ( infoMap.containsKey( lname ) ) {
                     infoList.add( infoMap.get( lname ) );
                 }
                 else if ( name.matches( "^[qQ]\\.[0-9]+$" ) ) {
@@ -222,15 +286,16 @@ public class StatsFilter extends BasicFilter {
                     throw new ArgException( msg.toString() );
                 }
             }
-            colInfos = infoList.toArray( new ValueInfo[ 0 ] );
-        }
-        else {
-            colInfos = DEFAULT_INFOS;
+            if ( ! infoList.isEmpty() ) {
+                infos = infoList.toArray( new ValueInfo[ 0 ] );
+            }
         }
+        final ValueInfo[] colInfos = infos;
+        final boolean isApprox = qapprox;
         return new ProcessingStep() {
             public StarTable wrap( StarTable base ) throws IOException {
                 MapGroup<ValueInfo,Object> group =
-                    statsMapGroup( base, colInfos );
+                    statsMapGroup( base, colInfos, isApprox, maxTask_ );
                 group.setKnownKeys( Arrays.asList( colInfos ) );
                 AbstractStarTable table = new ValueInfoMapGroupTable( group );
                 table.setParameters( base.getParameters() );
@@ -244,15 +309,24 @@ public class StatsFilter extends BasicFilter {
      * a given table.
      *
      * @param   table   input table
+     * @param   infos   quantities to calculate
+     * @param   qapprox  true for approximate quantile calculation
+     * @param   maxTask  maximum number of parallel tasks
      * @return  mapgroup containing column statistics
      */
     private static MapGroup<ValueInfo,Object> statsMapGroup( StarTable table,
-                                                             ValueInfo[] infos )
+                                                             ValueInfo[] infos,
+                                                             boolean qapprox,
+                                                             int maxTask )
             throws IOException {
 
         /* Work out if we need to calculate cardinalities. */
         boolean doCard = Arrays.asList( infos ).contains( CARDINALITY_INFO );
 
+        /* Work out if we need to estimate distinct value counts. */
+        boolean doDistinct =
+            Arrays.asList( infos ).contains( COUNTDISTINCT_INFO );
+
         /* Work out if we need to calculate Mean Absolute Deviations. */
         boolean doMad = Arrays.asList( infos ).contains( MAD_INFO )
                      || Arrays.asList( infos ).contains( SMAD_INFO );
@@ -269,149 +343,247 @@ public class StatsFilter extends BasicFilter {
             ? quantInfoList.toArray( new QuantileInfo[ 0 ] )
             : null;
 
-        long nrow = table.getRowCount();
-
-        /* Prepare statistical accumulators for each column of the table. */
-        int ncol = table.getColumnCount();
-        UnivariateStats[] colStats = new UnivariateStats[ ncol ];
-        CardinalityChecker[] cardCheckers =
-            doCard ? new CardinalityChecker[ ncol ] : null;
-        QuantCalc[] quantCalcs = new QuantCalc[ ncol ];
+        /* Accumulate statistics for each column of the table. */
+        StatsAccumulator acc =
+            accumulate( table, doCard, doDistinct, doQuant, qapprox, maxTask );
+        UnivariateStats[] colStats = acc.colStats_;
+        CardinalityChecker[] cardCheckers = acc.cardCheckers_;
+        HyperLogLog[] distinctCounters = acc.distinctCounters_;
+        QuantCalc[] quantCalcs = acc.quantCalcs_;
+        long irow = acc.nrow_;
+        int ncol = colStats.length;
+
+        /* Get a MapGroup representing column metadata (the option is 
+         * provided to output this alongside the statistical results). */
+        MapGroup<ValueInfo,Object> group =
+            MetadataFilter.metadataMapGroup( table );
+
+        /* Augment the metadata with the relevant statistical results for
+         * each column. */
         for ( int icol = 0; icol < ncol; icol++ ) {
-            Class clazz = table.getColumnInfo( icol ).getContentClass();
-            colStats[ icol ] = UnivariateStats.createStats( clazz );
+
+            /* Gather statistical results. */
+            UnivariateStats stats = colStats[ icol ];
+            long count = stats.getCount();
+            double dcount = (double) count;
+            double sum0 = dcount;
+            double sum1 = stats.getSum();
+            double sum2 = stats.getSum2();
+            double sum3 = stats.getSum3();
+            double sum4 = stats.getSum4();
+            double mean = sum1 / dcount;
+            double nvar = ( sum2 - sum1 * sum1 / dcount );
+            double popvar = nvar / dcount;
+            double sampvar = nvar / ( dcount - 1 );
+          
+            double skew = Math.sqrt( dcount ) / Math.pow( nvar, 1.5 )
+                        * ( + 1 * sum3
+                            - 3 * mean * sum2
+                            + 3 * mean * mean * sum1
+                            - 1 * mean * mean * mean * sum0 );
+            double kurtosis = ( dcount / ( nvar * nvar ) )
+                            * ( + 1 * sum4 
+                                - 4 * mean * sum3 
+                                + 6 * mean * mean * sum2
+                                - 4 * mean * mean * mean * sum1
+                                + 1 * mean * mean * mean * mean * sum0 )
+                            - 3.0;
+            Number min = stats.getMinimum();
+            Number max = stats.getMaximum();
+
+            /* Add statistical quantities to the column's
+             * info->values map. */
+            Map<ValueInfo,Object> map = group.getMaps().get( icol );
+            map.put( NGOOD_INFO, new Long( count ) );
+            map.put( NBAD_INFO, new Long( irow - count ) );
+            map.put( SUM_INFO, new Double( sum1 ) );
+            if ( isFinite( mean ) ) {
+                map.put( MEAN_INFO, new Float( (float) mean ) );
+            }
+            if ( isFinite( popvar ) ) {
+                map.put( POPSD_INFO,
+                         new Float( (float) Math.sqrt( popvar ) ) );
+                map.put( POPVAR_INFO, new Float( (float) popvar ) );
+            }
+            if ( isFinite( sampvar ) ) {
+                map.put( SAMPSD_INFO,
+                         new Float( (float) Math.sqrt( sampvar ) ) );
+                map.put( SAMPVAR_INFO, new Float( (float) sampvar ) );
+            }
+            if ( isFinite( skew ) ) {
+                map.put( SKEW_INFO, new Float( (float) skew ) );
+            }
+            if ( isFinite( kurtosis ) ) {
+                map.put( KURT_INFO, new Float( (float) kurtosis ) );
+            }
+            if ( min instanceof Number &&
+                 isFinite( ((Number) min).doubleValue() ) ) {
+                map.put( MIN_INFO, min );
+                map.put( MINPOS_INFO, new Long( stats.getMinPos() + 1 ) );
+            }
+            if ( max instanceof Number &&
+                 isFinite( ((Number) max).doubleValue() ) ) {
+                map.put( MAX_INFO, max );
+                map.put( MAXPOS_INFO, new Long( stats.getMaxPos() + 1 ) );
+            }
             if ( doCard ) {
-                cardCheckers[ icol ] =
-                    new CardinalityChecker( MAX_CARDINALITY );
+                int ncard = cardCheckers[ icol ].getCardinality();
+                if ( ncard > 0 ) {
+                    map.put( CARDINALITY_INFO, new Integer( ncard ) );
+                }
             }
-            if ( doQuant && Number.class.isAssignableFrom( clazz ) ) {
-                quantCalcs[ icol ] = QuantCalc.createInstance( clazz, nrow );
+            if ( doDistinct ) {
+                long ndistinct = distinctCounters[ icol ].getEstimate();
+                map.put( COUNTDISTINCT_INFO, new Long( ndistinct ) );
+            }
+            if ( quantCalcs[ icol ] != null ) {
+                quantCalcs[ icol ].ready();
+                for ( int iq = 0; iq < quantInfos.length; iq++ ) {
+                    QuantileInfo quantInfo = quantInfos[ iq ];
+                    Number quantile = quantCalcs[ icol ]
+                                     .getQuantile( quantInfo.getQuant() );
+                    map.put( quantInfo, quantile );
+                }
+                if ( doMad ) {
+                    Number mad =
+                        QuantCalc.calculateMedianAbsoluteDeviation(
+                                       quantCalcs[ icol ] );
+                    map.put( MAD_INFO, mad );
+                    map.put( SMAD_INFO, new Float( mad.floatValue() *
+                                                   QuantCalc.MAD_SCALE ) );
+                }
             }
         }
+        return group;
+    }
 
-        /* Populate them with the the data read from the table. */
-        RowSequence rseq = table.getRowSequence();
-        long irow = 0L;
-        try {
-            while ( rseq.next() ) {
-                Object[] row = rseq.getRow();
-                for ( int icol = 0; icol < ncol; icol++ ) {
-                    Object datum = row[ icol ];
-                    colStats[ icol ].acceptDatum( datum );
-                    if ( doCard ) {
-                        cardCheckers[ icol ].acceptDatum( datum );
-                    }
-                    if ( quantCalcs[ icol ] != null ) {
-                        quantCalcs[ icol ].acceptDatum( datum );
-                    }
+    /**
+     * Reads all the rows of a table into a new statistics accumulator.
+     * If the table has random access and enough rows,
+     * ranges of rows are read in parallel into separate accumulators
+     * which are then merged.
+     * Exact quantiles are always accumulated sequentially,
+     * since each accumulator holds a copy of all the values it has seen,
+     * so merging would double the memory requirement.
+     *
+     * @param   table   input table
+     * @param   doCard  whether cardinalities are required
+     * @param   doDistinct  whether distinct count estimates are required
+     * @param   doQuant  whether quantiles are required
+     * @param   qapprox  true for approximate quantile calculation
+     * @param   maxTask  maximum number of parallel tasks
+     * @return  populated accumulator
+     */
+    private static StatsAccumulator accumulate( final StarTable table,
+                                                final boolean doCard,
+                                                final boolean doDistinct,
+                                                final boolean doQuant,
+                                                final boolean qapprox,
+                                                int maxTask )
+            throws IOException {
+        long nrow = table.getRowCount();
+        int ntask = table.isRandom() && nrow > 0 && ! ( doQuant && ! qapprox )
+                  ? (int) Math.min( maxTask, nrow / MIN_TASK_ROWS )
+                  : 1;
+
+        /* Sequential case. */
+        if ( ntask <= 1 ) {
+            StatsAccumulator acc =
+                new StatsAccumulator( table, nrow, doCard, doDistinct,
+                                      doQuant, qapprox );
+            RowSequence rseq = table.getRowSequence();
+            try {
+                while ( rseq.next() ) {
+                    acc.acceptRow( rseq.getRow() );
                 }
-                irow++;
             }
+            finally {
+                rseq.close();
+            }
+            return acc;
+        }
 
-            /* Get a MapGroup representing column metadata (the option is 
-             * provided to output this alongside the statistical results). */
-            MapGroup<ValueInfo,Object> group =
-                MetadataFilter.metadataMapGroup( table );
-
-            /* Augment the metadata with the relevant statistical results for
-             * each column. */
-            for ( int icol = 0; icol < ncol; icol++ ) {
-
-                /* Gather statistical results. */
-                UnivariateStats stats = colStats[ icol ];
-                long count = stats.getCount();
-                double dcount = (double) count;
-                double sum0 = dcount;
-                double sum1 = stats.getSum();
-                double sum2 = stats.getSum2();
-                double sum3 = stats.getSum3();
-                double sum4 = stats.getSum4();
-                double mean = sum1 / dcount;
-                double nvar = ( sum2 - sum1 * sum1 / dcount );
-                double popvar = nvar / dcount;
-                double sampvar = nvar / ( dcount - 1 );
-              
-                double skew = Math.sqrt( dcount ) / Math.pow( nvar, 1.5 )
-                            * ( + 1 * sum3
-                                - 3 * mean * sum2
-                                + 3 * mean * mean * sum1
-                                - 1 * mean * mean * mean * sum0 );
-                double kurtosis = ( dcount / ( nvar * nvar ) )
-                                * ( + 1 * sum4 
-                                    - 4 * mean * sum3 
-                                    + 6 * mean * mean * sum2
-                                    - 4 * mean * mean * mean * sum1
-                                    + 1 * mean * mean * mean * mean * sum0 )
-                                - 3.0;
-                Number min = stats.getMinimum();
-                Number max = stats.getMaximum();
-
-                /* Add statistical quantities to the column's
-                 * info->values map. */
-                Map<ValueInfo,Object> map = group.getMaps().get( icol );
-                map.put( NGOOD_INFO, new Long( count ) );
-                map.put( NBAD_INFO, new Long( irow - count ) );
-                map.put( SUM_INFO, new Double( sum1 ) );
-                if ( isFinite( mean ) ) {
-                    map.put( MEAN_INFO, new Float( (float) mean ) );
-                }
-                if ( isFinite( popvar ) ) {
-                    map.put( POPSD_INFO,
-                             new Float( (float) Math.sqrt( popvar ) ) );
-                    map.put( POPVAR_INFO, new Float( (float) popvar ) );
-                }
-                if ( isFinite( sampvar ) ) {
-                    map.put( SAMPSD_INFO,
-                             new Float( (float) Math.sqrt( sampvar ) ) );
-                    map.put( SAMPVAR_INFO, new Float( (float) sampvar ) );
-                }
-                if ( isFinite( skew ) ) {
-                    map.put( SKEW_INFO, new Float( (float) skew ) );
-                }
-                if ( isFinite( kurtosis ) ) {
-                    map.put( KURT_INFO, new Float( (float) kurtosis ) );
-                }
-                if ( min instanceof Number &&
-                     isFinite( ((Number) min).doubleValue() ) ) {
-                    map.put( MIN_INFO, min );
-                    map.put( MINPOS_INFO, new Long( stats.getMinPos() + 1 ) );
-                }
-                if ( max instanceof Number &&
-                     isFinite( ((Number) max).doubleValue() ) ) {
-                    map.put( MAX_INFO, max );
-                    map.put( MAXPOS_INFO, new Long( stats.getMaxPos() + 1 ) );
-                }
-                if ( doCard ) {
-                    int ncard = cardCheckers[ icol ].getCardinality();
-                    if ( ncard > 0 ) {
-                        map.put( CARDINALITY_INFO, new Integer( ncard ) );
-                    }
-                }
-                if ( quantCalcs[ icol ] != null ) {
-                    quantCalcs[ icol ].ready();
-                    for ( int iq = 0; iq < quantInfos.length; iq++ ) {
-                        QuantileInfo quantInfo = quantInfos[ iq ];
-                        Number quantile = quantCalcs[ icol ]
-                                         .getQuantile( quantInfo.getQuant() );
-                        map.put( quantInfo, quantile );
-                    }
-                    if ( doMad ) {
-                        Number mad =
-                            QuantCalc.calculateMedianAbsoluteDeviation(
-                                           quantCalcs[ icol ] );
-                        map.put( MAD_INFO, mad );
-                        map.put( SMAD_INFO, new Float( mad.floatValue() *
-                                                       QuantCalc.MAD_SCALE ) );
+        /* Parallel case.  Each task reads a contiguous range of rows
+         * using random access, and the results are merged in order. */
+        StatsAccumulator total =
+            new StatsAccumulator( table, nrow, doCard, doDistinct,
+                                  doQuant, qapprox );
+        List<Future<StatsAccumulator>> futures =
+            new ArrayList<Future<StatsAccumulator>>();
+        ExecutorService executor = getExecutor();
+        for ( int it = 0; it < ntask; it++ ) {
+            final long lo = nrow * it / ntask;
+            final long hi = nrow * ( it + 1 ) / ntask;
+            futures.add( executor.submit( new Callable<StatsAccumulator>() {
+                public StatsAccumulator call() throws IOException {
+                    StatsAccumulator acc =
+                        new StatsAccumulator( table, hi - lo, doCard,
+                                              doDistinct, doQuant, qapprox );
+                    for ( long irow = lo; irow < hi; irow++ ) {
+                        if ( Thread.currentThread().isInterrupted() ) {
+                            throw new InterruptedIOException();
+                        }
+                        acc.acceptRow( table.getRow( irow ) );
                     }
+                    return acc;
                 }
+            } ) );
+        }
+        try {
+            for ( Future<StatsAccumulator> future : futures ) {
+                total.addAccumulator( future.get() );
+            }
+            return total;
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException)
+                  new InterruptedIOException( "Interrupted" ).initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable error = e.getCause();
+            if ( error instanceof IOException ) {
+                throw (IOException) error;
+            }
+            else if ( error instanceof RuntimeException ) {
+                throw (RuntimeException) error;
+            }
+            else if ( error instanceof Error ) {
+                throw (Error) error;
+            }
+            else {
+                throw (IOException) new IOException( error.getMessage() )
+                                   .initCause( error );
             }
-            return group;
         }
         finally {
-            rseq.close();
+            for ( Future<StatsAccumulator> future : futures ) {
+                future.cancel( true );
+            }
         }
     }
 
+    /**
+     * Returns the executor service used for parallel accumulation.
+     * It is shared between all instances of this class and
+     * uses daemon threads.
+     *
+     * @return  executor service
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor_ == null ) {
+            executor_ = Executors.newFixedThreadPool( NPROC,
+                                                      new ThreadFactory() {
+                private int iThread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "Stats-" + ( ++iThread_ ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        }
+        return executor_;
+    }
+
     /**
      * Tests whether a value is finite (not infinite or NaN).
      *
@@ -485,6 +657,105 @@ public class StatsFilter extends BasicFilter {
         }
     }
 
+    /**
+     * Accumulates per-column statistics for a sequence of table rows.
+     */
+    private static class StatsAccumulator {
+
+        final UnivariateStats[] colStats_;
+        final CardinalityChecker[] cardCheckers_;
+        final HyperLogLog[] distinctCounters_;
+        final QuantCalc[] quantCalcs_;
+        long nrow_;
+
+        /**
+         * Constructor.
+         *
+         * @param   table   table supplying column metadata
+         * @param   nrow    maximum number of rows that will be accumulated,
+         *                  or -1 if unknown
+         * @param   doCard  whether cardinalities are required
+         * @param   doDistinct  whether distinct count estimates are required
+         * @param   doQuant  whether quantiles are required
+         * @param   qapprox  true for approximate quantile calculation
+         */
+        StatsAccumulator( StarTable table, long nrow, boolean doCard,
+                          boolean doDistinct, boolean doQuant,
+                          boolean qapprox )
+                throws IOException {
+            int ncol = table.getColumnCount();
+            colStats_ = new UnivariateStats[ ncol ];
+            cardCheckers_ = doCard ? new CardinalityChecker[ ncol ] : null;
+            distinctCounters_ = doDistinct ? new HyperLogLog[ ncol ] : null;
+            quantCalcs_ = new QuantCalc[ ncol ];
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                Class clazz = table.getColumnInfo( icol ).getContentClass();
+                colStats_[ icol ] = UnivariateStats.createStats( clazz );
+                if ( doCard ) {
+                    cardCheckers_[ icol ] =
+                        new CardinalityChecker( MAX_CARDINALITY );
+                }
+                if ( doDistinct ) {
+                    distinctCounters_[ icol ] = new HyperLogLog();
+                }
+                if ( doQuant && Number.class.isAssignableFrom( clazz ) ) {
+                    quantCalcs_[ icol ] =
+                        qapprox ? QuantCalc.createSketchInstance( clazz )
+                                : QuantCalc.createInstance( clazz, nrow );
+                }
+            }
+        }
+
+        /**
+         * Submits a row for accumulation.
+         *
+         * @param  row  table row
+         */
+        void acceptRow( Object[] row ) {
+            int ncol = colStats_.length;
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                Object datum = row[ icol ];
+                colStats_[ icol ].acceptDatum( datum );
+                if ( cardCheckers_ != null ) {
+                    cardCheckers_[ icol ].acceptDatum( datum );
+                }
+                if ( distinctCounters_ != null ) {
+                    distinctCounters_[ icol ].acceptDatum( datum );
+                }
+                if ( quantCalcs_[ icol ] != null ) {
+                    quantCalcs_[ icol ].acceptDatum( datum );
+                }
+            }
+            nrow_++;
+        }
+
+        /**
+         * Adds the contents of another accumulator, representing
+         * rows following those already accumulated, to this one.
+         *
+         * @param  other  accumulator for the same table
+         */
+        void addAccumulator( StatsAccumulator other ) {
+            int ncol = colStats_.length;
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                colStats_[ icol ].addStats( other.colStats_[ icol ] );
+                if ( cardCheckers_ != null ) {
+                    cardCheckers_[ icol ]
+                       .addChecker( other.cardCheckers_[ icol ] );
+                }
+                if ( distinctCounters_ != null ) {
+                    distinctCounters_[ icol ]
+                       .addHyperLogLog( other.distinctCounters_[ icol ] );
+                }
+                if ( quantCalcs_[ icol ] != null ) {
+                    quantCalcs_[ icol ]
+                       .addQuantCalc( other.quantCalcs_[ icol ] );
+                }
+            }
+            nrow_ += other.nrow_;
+        }
+    }
+
     /**
      * Counts distinct values which appear in a column.
      * The cardinality is the number of distinct values. 
@@ -524,6 +795,25 @@ public class StatsFilter extends BasicFilter {
             }
         }
 
+        /**
+         * Adds the values counted by another checker to this one.
+         *
+         * @param  other  checker with the same maximum cardinality
+         */
+        void addChecker( CardinalityChecker other ) {
+            if ( items_ != null ) {
+                if ( other.items_ == null ) {
+                    items_ = null;
+                }
+                else {
+                    items_.addAll( other.items_ );
+                    if ( items_.size() > maxCard_ ) {
+                        items_ = null;
+                    }
+                }
+            }
+        }
+
         /**
          * Returns the cardinality of the data items submitted.
          * If the cardinality is greater than <code>maxCard</code>,
@@ -42,6 +42,7 @@ public class StepFactory {
         filterFactory_.register( "collapsecols", pkg + "CollapseColsFilter" );
         filterFactory_.register( "colmeta", pkg + "ColumnMetadataFilter" );
         filterFactory_.register( "delcols", pkg + "DeleteColumnFilter" );
+        filterFactory_.register( "epochprop", pkg + "EpochPropFilter" );
         filterFactory_.register( "every", pkg + "EveryFilter" );
         filterFactory_.register( "explodecols", pkg + "ExplodeColsFilter" );
         filterFactory_.register( "explodeall", pkg + "ExplodeAllFilter" );
@@ -1,12 +1,25 @@
 package uk.ac.starlink.ttools.filter;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.DefaultValueInfo;
 import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.RowStore;
 import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
 import uk.ac.starlink.table.Tables;
 import uk.ac.starlink.table.ValueInfo;
 import uk.ac.starlink.table.WrapperStarTable;
@@ -24,8 +37,21 @@ public class UniqueFilter extends BasicFilter {
         new DefaultValueInfo( "DupCount", Integer.class,
                               "Number of duplicate rows" );
 
+    /** Target number of rows in each partition for global mode. */
+    private static final long PARTITION_ROWS = 1000000;
+
+    /** Maximum number of partitions for global mode. */
+    private static final int MAX_PARTITIONS = 256;
+
+    /** Number of partitions used in global mode if row count unknown. */
+    private static final int DEFAULT_PARTITIONS = 64;
+
+    private static final int NPROC =
+        Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor_;
+
     public UniqueFilter() {
-        super( "uniq", "[-count] [<colid-list>]" );
+        super( "uniq", "[-count] [-global] [<colid-list>]" );
     }
 
     protected String[] getDescriptionLines() {
@@ -44,6 +70,21 @@ public class UniqueFilter extends BasicFilter {
             "input rows represented by each output row.  A unique row",
             "has a " + COUNT_INFO.getName() + " value of 1.",
             "</p>",
+            "<p>If the <code>-global</code> flag is given, then",
+            "duplicate rows are eliminated wherever they occur in the table,",
+            "not just when they are adjacent, without needing to sort",
+            "the table first.",
+            "The first occurrence of each distinct row is retained,",
+            "but the output rows are not in the same order as the input.",
+            "This works by distributing the rows into partitions",
+            "according to a hash of the compared values,",
+            "using the default storage policy",
+            "(so partitions may be stored on disk for large tables),",
+            "and then removing the duplicates in each partition,",
+            "several partitions at a time in parallel.",
+            "Memory is required for the distinct rows",
+            "of one partition per thread.",
+            "</p>",
             explainSyntax( new String[] { "colid-list", } ),
         };
     }
@@ -51,12 +92,17 @@ public class UniqueFilter extends BasicFilter {
     public ProcessingStep createStep( Iterator<String> argIt ) {
         String testIds = null;
         boolean count = false;
+        boolean global = false;
         while ( argIt.hasNext() && testIds == null ) {
             String arg = argIt.next();
             if ( arg.equals( "-count" ) ) {
                 argIt.remove();
                 count = true;
             }
+            else if ( arg.equals( "-global" ) ) {
+                argIt.remove();
+                global = true;
+            }
             else {
                 argIt.remove();
                 testIds = arg;
@@ -64,9 +110,14 @@ public class UniqueFilter extends BasicFilter {
         }
         final String tids = testIds;
         final boolean doCount = count;
+        final boolean isGlobal = global;
         return new ProcessingStep() {
             public StarTable wrap( StarTable base ) throws IOException {
-                return new UniqueTable( base, tids, doCount );
+                return isGlobal
+                     ? new GlobalUniqueTable( base, tids, doCount,
+                                              StoragePolicy
+                                             .getDefaultPolicy() )
+                     : new UniqueTable( base, tids, doCount );
             }
         };
     }
@@ -175,6 +226,311 @@ public class UniqueFilter extends BasicFilter {
         }
     }
 
+    /**
+     * Table which eliminates duplicate rows from anywhere in its base table.
+     * The rows are hash-partitioned into row stores, and duplicates
+     * are then eliminated from each partition independently.
+     */
+    private static class GlobalUniqueTable extends UniqueTable {
+
+        final StoragePolicy policy_;
+
+        GlobalUniqueTable( StarTable base, String testIds, boolean doCount,
+                           StoragePolicy policy )
+                throws IOException {
+            super( base, testIds, doCount );
+            policy_ = policy;
+        }
+
+        public RowSequence getRowSequence() throws IOException {
+            StarTable base = getBaseTable();
+            long nrow = base.getRowCount();
+            int npart = nrow >= 0
+                      ? (int) Math.max( 1, Math.min( MAX_PARTITIONS,
+                                                     nrow / PARTITION_ROWS ) )
+                      : DEFAULT_PARTITIONS;
+            final StarTable[] parts = partition( base, npart );
+            final int ncol = base.getColumnCount();
+            final List<Future<List<Object[]>>> futures =
+                new ArrayList<Future<List<Object[]>>>();
+            return new RowSequence() {
+                int ipart_;
+                List<Object[]> rows_;
+                int irow_ = -1;
+
+                /* Constructor. */ {
+                    for ( int ip = 0; ip < Math.min( NPROC, parts.length );
+                          ip++ ) {
+                        submit( ip );
+                    }
+                }
+
+                public boolean next() throws IOException {
+                    while ( rows_ == null || irow_ + 1 >= rows_.size() ) {
+                        if ( ipart_ >= parts.length ) {
+                            rows_ = null;
+                            return false;
+                        }
+                        rows_ = getResult( futures.get( ipart_ ) );
+                        futures.set( ipart_, null );
+                        irow_ = -1;
+                        if ( ipart_ + NPROC < parts.length ) {
+                            submit( ipart_ + NPROC );
+                        }
+                        ipart_++;
+                    }
+                    irow_++;
+                    return true;
+                }
+
+                public Object[] getRow() {
+                    if ( rows_ != null && irow_ >= 0 ) {
+                        return rows_.get( irow_ );
+                    }
+                    else {
+                        throw new IllegalStateException();
+                    }
+                }
+
+                public Object getCell( int icol ) {
+                    return getRow()[ icol ];
+                }
+
+                public void close() {
+                    for ( Future<List<Object[]>> future : futures ) {
+                        if ( future != null ) {
+                            future.cancel( true );
+                        }
+                    }
+                    Arrays.fill( parts, null );
+                }
+
+                private void submit( final int ip ) {
+                    final StarTable part = parts[ ip ];
+                    parts[ ip ] = null;
+                    futures.add( getExecutor()
+                                .submit( new Callable<List<Object[]>>() {
+                        public List<Object[]> call() throws IOException {
+                            return uniqueRows( part, ncol );
+                        }
+                    } ) );
+                }
+            };
+        }
+
+        /**
+         * Distributes the rows of a table between a number of
+         * row stores according to the hash of their compared values.
+         *
+         * @param  base  input table
+         * @param  npart  number of partitions
+         * @return  npart-element array of partition tables
+         */
+        private StarTable[] partition( StarTable base, int npart )
+                throws IOException {
+            RowStore[] stores = new RowStore[ npart ];
+            for ( int ip = 0; ip < npart; ip++ ) {
+                stores[ ip ] = policy_.makeRowStore();
+                stores[ ip ].acceptMetadata( base );
+            }
+            RowSequence rseq = base.getRowSequence();
+            try {
+                while ( rseq.next() ) {
+                    Object[] row = rseq.getRow();
+                    long hash = RowKey.hash64( row, testFlags_ );
+                    int ip = (int) ( ( hash >>> 1 ) % npart );
+                    stores[ ip ].acceptRow( row.clone() );
+                }
+            }
+            finally {
+                rseq.close();
+            }
+            StarTable[] parts = new StarTable[ npart ];
+            for ( int ip = 0; ip < npart; ip++ ) {
+                stores[ ip ].endRows();
+                parts[ ip ] = stores[ ip ].getStarTable();
+            }
+            return parts;
+        }
+
+        /**
+         * Returns the distinct rows of a partition, in order of their
+         * first appearance.  If counts are required, they are prepended.
+         *
+         * @param  part  partition table
+         * @param  ncol  number of columns in the base table
+         * @return  output rows
+         */
+        private List<Object[]> uniqueRows( StarTable part, int ncol )
+                throws IOException {
+            Map<RowKey,Object[]> map = new LinkedHashMap<RowKey,Object[]>();
+            Map<RowKey,int[]> counts = doCount_
+                                     ? new LinkedHashMap<RowKey,int[]>()
+                                     : null;
+            int ioff = doCount_ ? 1 : 0;
+            RowSequence rseq = part.getRowSequence();
+            try {
+                while ( rseq.next() ) {
+                    if ( Thread.currentThread().isInterrupted() ) {
+                        throw new InterruptedIOException();
+                    }
+                    Object[] row = rseq.getRow();
+                    RowKey key = new RowKey( row, testFlags_ );
+                    if ( ! map.containsKey( key ) ) {
+                        Object[] outRow = new Object[ ncol + ioff ];
+                        System.arraycopy( row, 0, outRow, ioff, ncol );
+                        map.put( key, outRow );
+                        if ( doCount_ ) {
+                            counts.put( key, new int[ 1 ] );
+                        }
+                    }
+                    if ( doCount_ ) {
+                        counts.get( key )[ 0 ]++;
+                    }
+                }
+            }
+            finally {
+                rseq.close();
+            }
+            List<Object[]> rows = new ArrayList<Object[]>( map.size() );
+            for ( Map.Entry<RowKey,Object[]> entry : map.entrySet() ) {
+                Object[] outRow = entry.getValue();
+                if ( doCount_ ) {
+                    outRow[ 0 ] =
+                        new Integer( counts.get( entry.getKey() )[ 0 ] );
+                }
+                rows.add( outRow );
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Wraps the compared values of a row for use as a hash key,
+     * with equality defined by the {@link #equalValues} method.
+     */
+    private static class RowKey {
+        final Object[] values_;
+        final int hashCode_;
+
+        /**
+         * Constructor.
+         *
+         * @param  row  table row
+         * @param  testFlags  flags indicating which columns are compared
+         */
+        RowKey( Object[] row, boolean[] testFlags ) {
+            List<Object> values = new ArrayList<Object>();
+            int hash = 1;
+            for ( int icol = 0; icol < row.length; icol++ ) {
+                if ( testFlags[ icol ] ) {
+                    Object value = row[ icol ];
+                    values.add( value );
+                    hash = 31 * hash
+                         + ( Tables.isBlank( value ) ? 0 : value.hashCode() );
+                }
+            }
+            values_ = values.toArray();
+            hashCode_ = hash;
+        }
+
+        public int hashCode() {
+            return hashCode_;
+        }
+
+        public boolean equals( Object o ) {
+            if ( o instanceof RowKey ) {
+                Object[] ovals = ((RowKey) o).values_;
+                for ( int i = 0; i < values_.length; i++ ) {
+                    if ( ! equalValues( values_[ i ], ovals[ i ] ) ) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Returns a 64-bit hash of the compared values of a row,
+         * with bits independent of those used by {@link #hashCode}.
+         *
+         * @param  row  table row
+         * @param  testFlags  flags indicating which columns are compared
+         * @return  hash value
+         */
+        static long hash64( Object[] row, boolean[] testFlags ) {
+            long hash = 1;
+            for ( int icol = 0; icol < row.length; icol++ ) {
+                if ( testFlags[ icol ] ) {
+                    Object value = row[ icol ];
+                    hash = 31 * hash
+                         + ( Tables.isBlank( value )
+                                 ? 0
+                                 : HyperLogLog.hash64( value ) );
+                }
+            }
+            return HyperLogLog.mix64( hash );
+        }
+    }
+
+    /**
+     * Returns the result of a partition task.
+     *
+     * @param  future  task
+     * @return  task result
+     */
+    private static List<Object[]> getResult( Future<List<Object[]>> future )
+            throws IOException {
+        try {
+            return future.get();
+        }
+        catch ( InterruptedException e ) {
+            throw (IOException)
+                  new InterruptedIOException( "Interrupted" ).initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable error = e.getCause();
+            if ( error instanceof IOException ) {
+                throw (IOException) error;
+            }
+            else if ( error instanceof RuntimeException ) {
+                throw (RuntimeException) error;
+            }
+            else if ( error instanceof Error ) {
+                throw (Error) error;
+            }
+            else {
+                throw (IOException) new IOException( error.getMessage() )
+                                   .initCause( error );
+            }
+        }
+    }
+
+    /**
+     * Returns the executor service used for processing partitions
+     * in global mode.  It is shared between all instances of this class
+     * and uses daemon threads.
+     *
+     * @return  executor service
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor_ == null ) {
+            executor_ = Executors.newFixedThreadPool( NPROC,
+                                                      new ThreadFactory() {
+                private int iThread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "Unique-" + ( ++iThread_ ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        }
+        return executor_;
+    }
+
     /**
      * Tests whether two values are equal withing the meaning of the act.
      * Nulls and blank values are treated properly.
@@ -88,6 +88,19 @@ public abstract class UnivariateStats {
      */
     public abstract long getMaxPos();
 
+    /**
+     * Adds the contents of another accumulator to this one.
+     * The effect is as if all the values submitted to <code>other</code>
+     * had been submitted to this object, following those already
+     * submitted, so that the statistics for a sequence split into
+     * ranges can be accumulated separately and then combined.
+     * The other accumulator must have been obtained from the
+     * {@link #createStats} method using the same class as this one.
+     *
+     * @param  other  accumulator whose values follow this one's
+     */
+    public abstract void addStats( UnivariateStats other );
+
     /**
      * Factory method to construct an instance of this class for accumulating
      * particular types of values.
@@ -154,6 +167,10 @@ public abstract class UnivariateStats {
         public long getMaxPos() {
             return -1L;
         }
+
+        public void addStats( UnivariateStats other ) {
+            nGood_ += ((ObjectStats) other).nGood_;
+        }
     }
 
     /**
@@ -207,6 +224,12 @@ public abstract class UnivariateStats {
         public long getMaxPos() {
             return -1L;
         }
+
+        public void addStats( UnivariateStats other ) {
+            BooleanStats bother = (BooleanStats) other;
+            nGood_ += bother.nGood_;
+            nTrue_ += bother.nTrue_;
+        }
     }
 
     /**
@@ -290,5 +313,28 @@ public abstract class UnivariateStats {
         public long getMaxPos() {
             return maxPos_;
         }
+
+        public void addStats( UnivariateStats other ) {
+            NumberStats nother = (NumberStats) other;
+            nGood_ += nother.nGood_;
+            sum1_ += nother.sum1_;
+            sum2_ += nother.sum2_;
+            sum3_ += nother.sum3_;
+            sum4_ += nother.sum4_;
+
+            /* Only replace extrema if strictly exceeded, so that the
+             * earliest position is retained as for sequential submission. */
+            if ( nother.min_ != null && ! ( nother.dmin_ >= dmin_ ) ) {
+                dmin_ = nother.dmin_;
+                min_ = nother.min_;
+                minPos_ = iDatum_ + nother.minPos_;
+            }
+            if ( nother.max_ != null && ! ( nother.dmax_ <= dmax_ ) ) {
+                dmax_ = nother.dmax_;
+                max_ = nother.max_;
+                maxPos_ = iDatum_ + nother.maxPos_;
+            }
+            iDatum_ += nother.iDatum_;
+        }
     }
 }
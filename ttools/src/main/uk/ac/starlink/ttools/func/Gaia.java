@@ -7,9 +7,7 @@ package uk.ac.starlink.ttools.func;
 
 import uk.ac.starlink.dpac.epoch.EpochTransformation;
 import uk.ac.starlink.dpac.math.Edsd;
-import uk.ac.starlink.dpac.math.Function;
-import uk.ac.starlink.dpac.math.FuncUtils;
-import uk.ac.starlink.dpac.math.NumericFunction;
+import uk.ac.starlink.dpac.math.EdsdGrid;
 import uk.ac.starlink.ttools.plot.Matrices;
 
 /**
@@ -184,6 +182,7 @@ public class Gaia {
     private static final double MAS2RAD = DEG2RAD / ( 3600. * 1000. );
     private static final double RAD2DEG = 1.0 / DEG2RAD;
     private static final double RAD2MAS = 1.0 / MAS2RAD;
+    private static final double EDSD_RELERR = 0.001;
 
     /**
      * ICRS-Galactic transformation matrix, quoted from Gaia DR2
@@ -876,22 +875,81 @@ public class Gaia {
                                                   double plxErrorMas,
                                                   double lPc,
                                                   double... qpoints ) {
-        int nq = qpoints.length;
-        Edsd edsd = new Edsd( plxMas, plxErrorMas, lPc * 0.001 );
-        double tol = 1e-6;
-        NumericFunction ncdf = edsd.calculateCdf( tol );
+        double[] qvs = new Edsd( plxMas, plxErrorMas, lPc * 0.001 )
+                      .calculateQuantiles( qpoints );
+        for ( int i = 0; i < qvs.length; i++ ) {
+            qvs[ i ] *= 1000.;
+        }
+        return qvs;
+    }
 
-        /* Quadratic interpolation works better here than e.g. splines,
-         * look at the results for e.g. plx=40, plxError=0.75. */
-        Function scdf = FuncUtils.interpolateQuadratic( ncdf );
+    /**
+     * Calculates approximate 5th and 95th percentile confidence intervals
+     * on the distance estimate using the Exponentially Decreasing
+     * Space Density prior.
+     *
+     * <p>This gives the same results as
+     * <code>distanceBoundsEdsd</code>, to within a relative error
+     * of 0.1%, but it is usually much faster,
+     * since it interpolates values from a grid of precomputed results.
+     *
+     * @param  plxMas  parallax in mas
+     * @param  plxErrorMas  parallax error in mas
+     * @param   lPc    length scale in parsec
+     * @return  2-element array giving the 5th and 95th percentiles in parsec
+     *          of the EDSD distance PDF
+     */
+    public static double[] distanceBoundsEdsdApprox( double plxMas,
+                                                     double plxErrorMas,
+                                                     double lPc ) {
+        return distanceQuantilesEdsdApprox( plxMas, plxErrorMas, lPc,
+                                            EDSD_RELERR, 0.05, 0.95 );
+    }
+
+    /**
+     * Calculates approximate arbitrary quantiles for the distance estimate
+     * using the Exponentially Decreasing Space Density prior.
+     *
+     * <p>This gives the same results as
+     * <code>distanceQuantilesEdsd</code>, to within a given relative error,
+     * but it is usually much faster,
+     * since it interpolates values from a grid of precomputed results.
+     * A smaller relative error requires a finer grid,
+     * which takes longer to fill in.
+     * If the relative error is zero, the exact calculation is used.
+     *
+     * @example
+     *     <code>distanceQuantilesEdsdApprox(parallax, parallax_error,
+     *                                       1350, 0.001, 0.5)[0]</code>
+     *     calculates the median of the EDSD distance PDF
+     *     using a length scale of 1.35kpc, accurate to 0.1%
+     *
+     * @param  plxMas  parallax in mas
+     * @param  plxErrorMas  parallax error in mas
+     * @param  lPc    length scale in parsec
+     * @param  relErr  maximum relative error of the results,
+     *                 for instance 0.001 for 0.1%
+     * @param  qpoints  one or more required quantile cut points,
+     *                  each in the range 0..1
+     * @return   array with one element for each of the supplied
+     *           <code>qpoints</code>
+     *           giving the corresponding distance in parsec
+     */
+    public static double[] distanceQuantilesEdsdApprox( double plxMas,
+                                                        double plxErrorMas,
+                                                        double lPc,
+                                                        double relErr,
+                                                        double... qpoints ) {
+        if ( relErr == 0 ) {
+            return distanceQuantilesEdsd( plxMas, plxErrorMas, lPc, qpoints );
+        }
+        int nq = qpoints.length;
         double[] qvs = new double[ nq ];
-        double rmin = 0;
-        double rmax = ncdf.getX( ncdf.getCount() - 1 );
-        double ytol = 0.00001;
         for ( int i = 0; i < nq; i++ ) {
             qvs[ i ] = 1000.
-                     * FuncUtils.findValueMonotonic( scdf, rmin, rmax,
-                                                     qpoints[ i ], ytol );
+                     * EdsdGrid.getInstance( qpoints[ i ], relErr )
+                               .getDistance( plxMas, plxErrorMas,
+                                             lPc * 0.001 );
         }
         return qvs;
     }
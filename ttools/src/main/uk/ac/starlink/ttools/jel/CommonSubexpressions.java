@@ -0,0 +1,519 @@
+package uk.ac.starlink.ttools.jel;
+
+import gnu.jel.CompilationException;
+import gnu.jel.CompiledExpression;
+import gnu.jel.Library;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.StarTable;
+
+/**
+ * Identifies function calls which appear more than once in a set of
+ * JEL expressions evaluated against the same table, and arranges for
+ * each of them to be evaluated only once per row.
+ *
+ * <p>This is useful for instance when several columns are extracted
+ * from the array result of the same function call, such as
+ * <code>astromXYZ(ra,dec,parallax)[0]</code>,
+ * <code>astromXYZ(ra,dec,parallax)[1]</code> and
+ * <code>astromXYZ(ra,dec,parallax)[2]</code>;
+ * without this optimisation, the function would be evaluated three times
+ * per row, and three result arrays would be allocated.
+ *
+ * <p>The analysis is textual: identical calls are those with the same
+ * token sequence, disregarding whitespace.
+ * Only calls to functions from the basic JEL static library,
+ * which are known to be free of side-effects, are considered.
+ * The repeated calls are rewritten as references to named
+ * subexpressions registered with the row reader
+ * (see {@link StarTableJELRowReader#addSubexpression}),
+ * which caches the value for the current row.
+ */
+public class CommonSubexpressions {
+
+    private final String[] exprs_;
+    private final String[] subNames_;
+    private final String[] subExprs_;
+
+    /** Prefix for the names of generated subexpression identifiers. */
+    public static final String NAME_PREFIX = "$subexpr";
+
+    private static Set<String> pureNames_;
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.jel" );
+
+    /**
+     * Constructor.
+     *
+     * @param  exprs  expressions, rewritten to reference subexpressions
+     * @param  subNames  identifiers for subexpressions
+     * @param  subExprs  subexpression texts, one for each identifier
+     */
+    private CommonSubexpressions( String[] exprs, String[] subNames,
+                                  String[] subExprs ) {
+        exprs_ = exprs;
+        subNames_ = subNames;
+        subExprs_ = subExprs;
+    }
+
+    /**
+     * Returns the expressions rewritten to reference common subexpressions.
+     * Expressions that contain none are unchanged.
+     *
+     * @return  rewritten expression array
+     */
+    public String[] getExpressions() {
+        return exprs_.clone();
+    }
+
+    /**
+     * Returns the number of common subexpressions identified.
+     *
+     * @return  subexpression count
+     */
+    public int getSubexpressionCount() {
+        return subNames_.length;
+    }
+
+    /**
+     * Compiles the common subexpressions and registers them with a
+     * row reader, so that the rewritten expressions can be compiled
+     * against it.
+     *
+     * @param  lib   JEL library based on <code>rdr</code>
+     * @param  rdr   row reader
+     */
+    public void install( Library lib, StarTableJELRowReader rdr )
+            throws CompilationException {
+        StarTable table = rdr.getTable();
+        for ( int is = 0; is < subNames_.length; is++ ) {
+            String subExpr = subExprs_[ is ];
+            CompiledExpression compEx =
+                JELUtils.compile( lib, table, subExpr );
+            Class clazz = JELUtils.getWrapperType( JELUtils
+                         .getExpressionType( lib, table, subExpr ) );
+            rdr.addSubexpression( subNames_[ is ], compEx, clazz );
+        }
+    }
+
+    /**
+     * Attempts to replace a set of compiled expressions with versions
+     * that share the evaluation of common subexpressions.
+     * The supplied <code>compExs</code> array should contain expressions
+     * already compiled from <code>exprs</code>; any of its elements
+     * that can benefit are replaced by equivalent expressions which
+     * reference shared subexpressions.
+     * If no common subexpressions are found, or if anything goes wrong,
+     * the array is left unchanged.
+     *
+     * @param  lib   JEL library based on <code>rdr</code>
+     * @param  rdr   row reader which will evaluate the expressions
+     * @param  exprs   expression strings
+     * @param  compExs  compiled expressions corresponding to
+     *                  <code>exprs</code>, may be modified on exit
+     * @return  number of common subexpressions in use
+     */
+    public static int shareSubexpressions( Library lib,
+                                           StarTableJELRowReader rdr,
+                                           String[] exprs,
+                                           CompiledExpression[] compExs ) {
+        CommonSubexpressions cse = findSubexpressions( rdr.getTable(), exprs );
+        int nsub = cse.getSubexpressionCount();
+        if ( nsub == 0 ) {
+            return 0;
+        }
+        StarTable table = rdr.getTable();
+        String[] cexprs = cse.getExpressions();
+        int nexpr = exprs.length;
+        CompiledExpression[] cseCompExs = new CompiledExpression[ nexpr ];
+        try {
+            cse.install( lib, rdr );
+            for ( int ie = 0; ie < nexpr; ie++ ) {
+                if ( ! cexprs[ ie ].equals( exprs[ ie ] ) ) {
+                    cseCompExs[ ie ] =
+                        JELUtils.compile( lib, table, cexprs[ ie ] );
+                }
+            }
+        }
+        catch ( CompilationException e ) {
+            logger_.info( "Not using common subexpressions: " + e );
+            return 0;
+        }
+        for ( int ie = 0; ie < nexpr; ie++ ) {
+            if ( cseCompExs[ ie ] != null ) {
+                compExs[ ie ] = cseCompExs[ ie ];
+            }
+        }
+        logger_.config( "Sharing " + nsub + " common subexpression"
+                      + ( nsub == 1 ? "" : "s" ) );
+        return nsub;
+    }
+
+    /**
+     * Analyses a set of expressions to identify repeated calls of
+     * side-effect free functions.
+     *
+     * @param  table  context table, used to identify expressions that
+     *                are simply column names; may be null
+     * @param  exprs  expressions
+     * @return  analysis result
+     */
+    public static CommonSubexpressions findSubexpressions( StarTable table,
+                                                           String[] exprs ) {
+        int nexpr = exprs.length;
+
+        /* Locate all the eligible calls in all the expressions. */
+        List<List<Call>> callLists = new ArrayList<List<Call>>();
+        List<Call> allCalls = new ArrayList<Call>();
+        for ( int ie = 0; ie < nexpr; ie++ ) {
+            String expr = exprs[ ie ];
+            List<Call> calls = isColumnName( table, expr )
+                             ? new ArrayList<Call>()
+                             : findPureCalls( expr );
+            callLists.add( calls );
+            allCalls.addAll( calls );
+        }
+
+        /* Count occurrences of each distinct call. */
+        Map<String,Integer> countMap = new HashMap<String,Integer>();
+        for ( Call call : allCalls ) {
+            Integer count = countMap.get( call.key_ );
+            int n = count == null ? 1 : count.intValue() + 1;
+            countMap.put( call.key_, new Integer( n ) );
+        }
+        List<String> keys = new ArrayList<String>();
+        for ( Map.Entry<String,Integer> entry : countMap.entrySet() ) {
+            if ( entry.getValue().intValue() > 1 ) {
+                keys.add( entry.getKey() );
+            }
+        }
+        if ( keys.isEmpty() ) {
+            return new CommonSubexpressions( exprs.clone(), new String[ 0 ],
+                                             new String[ 0 ] );
+        }
+
+        /* Select the subexpressions to share, outermost first.
+         * An inner call is only shared if it is still repeated outside
+         * the occurrences of the outer shared calls. */
+        Collections.sort( keys, new Comparator<String>() {
+            public int compare( String k1, String k2 ) {
+                int c = k2.length() - k1.length();
+                return c != 0 ? c : k1.compareTo( k2 );
+            }
+        } );
+        Map<String,String> nameMap = new HashMap<String,String>();
+        List<String> subNames = new ArrayList<String>();
+        List<String> subExprs = new ArrayList<String>();
+        List<List<Call>> usedLists = new ArrayList<List<Call>>();
+        for ( int ie = 0; ie < nexpr; ie++ ) {
+            usedLists.add( new ArrayList<Call>() );
+        }
+        for ( String key : keys ) {
+            List<List<Call>> occurrences = new ArrayList<List<Call>>();
+            int nocc = 0;
+            for ( int ie = 0; ie < nexpr; ie++ ) {
+                List<Call> occs = new ArrayList<Call>();
+                for ( Call call : callLists.get( ie ) ) {
+                    if ( call.key_.equals( key ) &&
+                         ! isContained( call, usedLists.get( ie ) ) ) {
+                        occs.add( call );
+                    }
+                }
+                occurrences.add( occs );
+                nocc += occs.size();
+            }
+            if ( nocc > 1 ) {
+                String name = NAME_PREFIX + ( subNames.size() + 1 );
+                nameMap.put( key, name );
+                subNames.add( name );
+                Call call0 = null;
+                for ( int ie = 0; ie < nexpr; ie++ ) {
+                    List<Call> occs = occurrences.get( ie );
+                    if ( call0 == null && occs.size() > 0 ) {
+                        call0 = occs.get( 0 );
+                        subExprs.add( exprs[ ie ].substring( call0.start_,
+                                                             call0.end_ ) );
+                    }
+                    usedLists.get( ie ).addAll( occs );
+                }
+            }
+        }
+
+        /* Rewrite the expressions, replacing from the end so that
+         * character offsets remain valid. */
+        String[] outExprs = new String[ nexpr ];
+        for ( int ie = 0; ie < nexpr; ie++ ) {
+            List<Call> used = new ArrayList<Call>( usedLists.get( ie ) );
+            Collections.sort( used, new Comparator<Call>() {
+                public int compare( Call c1, Call c2 ) {
+                    return c2.start_ - c1.start_;
+                }
+            } );
+            StringBuffer sbuf = new StringBuffer( exprs[ ie ] );
+            for ( Call call : used ) {
+                sbuf.replace( call.start_, call.end_,
+                              nameMap.get( call.key_ ) );
+            }
+            outExprs[ ie ] = sbuf.toString();
+        }
+        return new CommonSubexpressions( outExprs,
+                                         subNames.toArray( new String[ 0 ] ),
+                                         subExprs.toArray( new String[ 0 ] ) );
+    }
+
+    /**
+     * Indicates whether a call lies within the text of any of a list
+     * of other calls.
+     *
+     * @param  call  call to test
+     * @param  others  calls in the same expression
+     * @return  true iff <code>call</code> is inside one of <code>others</code>
+     */
+    private static boolean isContained( Call call, List<Call> others ) {
+        for ( Call other : others ) {
+            if ( call.start_ >= other.start_ && call.end_ <= other.end_ ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether an expression is exactly the name of one of
+     * a table's columns, in which case it will not be parsed as JEL.
+     *
+     * @param  table  table, or null
+     * @param  expr  expression
+     * @return  true iff <code>expr</code> is a column name
+     */
+    private static boolean isColumnName( StarTable table, String expr ) {
+        if ( table != null ) {
+            int ncol = table.getColumnCount();
+            for ( int icol = 0; icol < ncol; icol++ ) {
+                if ( table.getColumnInfo( icol ).getName()
+                          .equalsIgnoreCase( expr ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Locates the calls in an expression which invoke only side-effect
+     * free functions.
+     *
+     * @param  expr  expression text
+     * @return   list of calls, possibly nested, in order of appearance
+     */
+    private static List<Call> findPureCalls( String expr ) {
+        List<Call> calls = new ArrayList<Call>();
+        List<Token> tokens = tokenize( expr );
+        if ( tokens == null ) {
+            return calls;
+        }
+        Set<String> pureNames = getPureNames();
+        int ntok = tokens.size();
+        for ( int it = 0; it < ntok; it++ ) {
+            int iend = getCallEnd( tokens, it );
+            if ( iend > it ) {
+                boolean isPure = true;
+                StringBuffer kbuf = new StringBuffer();
+                for ( int jt = it; jt <= iend; jt++ ) {
+                    if ( getCallEnd( tokens, jt ) > jt &&
+                         ! pureNames.contains( tokens.get( jt ).text_ ) ) {
+                        isPure = false;
+                    }
+                    kbuf.append( tokens.get( jt ).text_ )
+                        .append( ' ' );
+                }
+                if ( isPure ) {
+                    calls.add( new Call( kbuf.toString(),
+                                         tokens.get( it ).start_,
+                                         tokens.get( iend ).end_ ) );
+                }
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * Determines whether a token is the start of a function call,
+     * and if so where it ends.
+     *
+     * @param  tokens  token list
+     * @param  it   index of token to test
+     * @return  index of the closing parenthesis token of the call,
+     *          or -1 if <code>tokens[it]</code> does not start a call
+     */
+    private static int getCallEnd( List<Token> tokens, int it ) {
+        int ntok = tokens.size();
+        String txt = tokens.get( it ).text_;
+        if ( it + 1 < ntok &&
+             Character.isJavaIdentifierStart( txt.charAt( 0 ) ) &&
+             txt.charAt( 0 ) != '$' &&
+             tokens.get( it + 1 ).text_.equals( "(" ) &&
+             ( it == 0 || ! tokens.get( it - 1 ).text_.equals( "." ) ) ) {
+            int level = 0;
+            for ( int jt = it + 1; jt < ntok; jt++ ) {
+                String t = tokens.get( jt ).text_;
+                if ( t.equals( "(" ) ) {
+                    level++;
+                }
+                else if ( t.equals( ")" ) ) {
+                    if ( --level == 0 ) {
+                        return jt;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits an expression into tokens.  The tokenization is coarse,
+     * but sufficient to identify function calls and their extents:
+     * tokens are identifier-like words, string or character literals,
+     * and single punctuation characters.
+     *
+     * @param  expr  expression text
+     * @return  token list, or null if the text could not be tokenized
+     */
+    private static List<Token> tokenize( String expr ) {
+        List<Token> tokens = new ArrayList<Token>();
+        int leng = expr.length();
+        int i = 0;
+        while ( i < leng ) {
+            char c = expr.charAt( i );
+            int start = i;
+            if ( Character.isWhitespace( c ) ) {
+                i++;
+                continue;
+            }
+            else if ( c == '"' || c == '\'' ) {
+                i++;
+                while ( i < leng && expr.charAt( i ) != c ) {
+                    if ( expr.charAt( i ) == '\\' ) {
+                        i++;
+                    }
+                    i++;
+                }
+                if ( i >= leng ) {
+                    return null;
+                }
+                i++;
+            }
+            else if ( Character.isJavaIdentifierPart( c ) ) {
+                while ( i < leng &&
+                        Character.isJavaIdentifierPart( expr.charAt( i ) ) ) {
+                    i++;
+                }
+            }
+            else {
+                i++;
+            }
+            tokens.add( new Token( expr.substring( start, i ), start, i ) );
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the names of functions which are known to be free of
+     * side-effects and to give the same result for the same arguments.
+     * These are the public static methods of the basic static library
+     * classes, excluding any names that might also resolve to a method
+     * in some other class in the library.
+     *
+     * @return  unmodifiable set of function names
+     */
+    private static synchronized Set<String> getPureNames() {
+        if ( pureNames_ == null ) {
+            Set<Class> basicClasses = new HashSet<Class>();
+            Set<String> names = new HashSet<String>();
+            for ( Class clazz : JELUtils.getBasicClasses() ) {
+                basicClasses.add( clazz );
+                names.addAll( getMethodNames( clazz, true ) );
+            }
+            for ( Class clazz : JELUtils.getStaticClasses() ) {
+                if ( ! basicClasses.contains( clazz ) ) {
+                    names.removeAll( getMethodNames( clazz, true ) );
+                }
+            }
+            names.removeAll( getMethodNames( StarTableJELRowReader.class,
+                                             false ) );
+            pureNames_ = Collections.unmodifiableSet( names );
+        }
+        return pureNames_;
+    }
+
+    /**
+     * Returns the names of the public methods of a class.
+     *
+     * @param  clazz  class
+     * @param  isStatic  true for static methods only, false for all
+     * @return  method names
+     */
+    private static Set<String> getMethodNames( Class clazz,
+                                               boolean isStatic ) {
+        Set<String> names = new HashSet<String>();
+        for ( Method method : clazz.getMethods() ) {
+            if ( ! isStatic || Modifier.isStatic( method.getModifiers() ) ) {
+                names.add( method.getName() );
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Lexical token.
+     */
+    private static class Token {
+        final String text_;
+        final int start_;
+        final int end_;
+
+        /**
+         * Constructor.
+         *
+         * @param  text  token text
+         * @param  start  offset of start of token in expression
+         * @param  end   offset of end of token in expression
+         */
+        Token( String text, int start, int end ) {
+            text_ = text;
+            start_ = start;
+            end_ = end;
+        }
+    }
+
+    /**
+     * Function call within an expression.
+     */
+    private static class Call {
+        final String key_;
+        final int start_;
+        final int end_;
+
+        /**
+         * Constructor.
+         *
+         * @param  key  whitespace-normalised text identifying the call
+         * @param  start  offset of start of call in expression
+         * @param  end   offset of end of call in expression
+         */
+        Call( String key, int start, int end ) {
+            key_ = key;
+            start_ = start;
+            end_ = end;
+        }
+    }
+}
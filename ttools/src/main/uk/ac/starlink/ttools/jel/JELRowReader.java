@@ -86,6 +86,12 @@ public abstract class JELRowReader extends DVMap {
     /** Prefix identifying a unique column identifier. */
     public static final char COLUMN_ID_CHAR = '$';
 
+    /**
+     * Marker object returned by {@link #evaluateNested} to indicate
+     * that a null value was encountered.
+     */
+    protected static final Object NULL_RESULT = new Object();
+
     /** Constant which returns a boolean True. */
     private final Constant TRUE_CONST = new FixedConstant( Boolean.TRUE );
 
@@ -355,6 +361,32 @@ public abstract class JELRowReader extends DVMap {
         }
     }
 
+    /**
+     * Evaluates a compiled expression at the current row in the course
+     * of evaluating another expression, for instance to supply the value
+     * of a subexpression.  The null status of any evaluation in progress
+     * is not affected.  If the nested evaluation encounters a null
+     * value, the marker object {@link #NULL_RESULT} is returned.
+     *
+     * @param  compEx  compiled expression
+     * @return  expression value at current row, or <code>NULL_RESULT</code>
+     */
+    protected Object evaluateNested( CompiledExpression compEx )
+            throws Throwable {
+        boolean isNull0 = isNullExpression_;
+        isNullExpression_ = false;
+        try {
+            Object result = compEx.evaluate( args_ );
+            return isNullExpression_ ? NULL_RESULT : result;
+        }
+        catch ( NullPointerException e ) {
+            return NULL_RESULT;
+        }
+        finally {
+            isNullExpression_ = isNull0;
+        }
+    }
+
     /**
      * Returns the type name of the quantity which is referenced in 
      * expressions with a given name.  The significance of this return
@@ -97,6 +97,11 @@ public class JELTable extends WrapperStarTable {
             }
             colInfos_[ i ].setContentClass( clazz );
         }
+
+        /* Arrange for repeated function calls to be evaluated only once
+         * per row. */
+        CommonSubexpressions.shareSubexpressions( lib, randomReader_, exprs_,
+                                                  randomCompexs_ );
     }
 
     public int getColumnCount() {
@@ -152,6 +157,8 @@ public class JELTable extends WrapperStarTable {
                                    .initCause( e );
             }
         }
+        CommonSubexpressions.shareSubexpressions( lib, seqReader, exprs_,
+                                                  seqCompexs );
         return new WrapperRowSequence( seqReader ) {
 
             public Object getCell( int icol ) throws IOException {
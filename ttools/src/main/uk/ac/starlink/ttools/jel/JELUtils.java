@@ -48,6 +48,30 @@ import uk.ac.starlink.util.Loader;
 public class JELUtils {
 
     private static List<Class> staticClasses_;
+
+    /** Classes always present in the static library. */
+    private static final Class[] BASIC_CLASSES = new Class[] {
+        Arithmetic.class,
+        uk.ac.starlink.ttools.func.Arrays.class,
+        Conversions.class,
+        CoordsDegrees.class,
+        CoordsRadians.class,
+        Coverage.class,
+        Distances.class,
+        Fluxes.class,
+        Formats.class,
+        Gaia.class,
+        KCorrections.class,
+        Lists.class,
+        Maths.class,
+        Shapes.class,
+        Sky.class,
+        Strings.class,
+        Tilings.class,
+        Times.class,
+        TrigDegrees.class,
+    };
+
     private static Logger logger_ = Logger.getLogger( "uk.ac.starlink.ttools" );
 
     /** 
@@ -123,27 +147,7 @@ public class JELUtils {
 
             /* Basic classes always present. */
             List<Class> classList =
-                    new ArrayList<Class>( Arrays.asList( new Class[] {
-                Arithmetic.class,
-                uk.ac.starlink.ttools.func.Arrays.class,
-                Conversions.class,
-                CoordsDegrees.class,
-                CoordsRadians.class,
-                Coverage.class,
-                Distances.class,
-                Fluxes.class,
-                Formats.class,
-                Gaia.class,
-                KCorrections.class,
-                Lists.class,
-                Maths.class,
-                Shapes.class,
-                Sky.class,
-                Strings.class,
-                Tilings.class,
-                Times.class,
-                TrigDegrees.class,
-            } ) );
+                new ArrayList<Class>( Arrays.asList( BASIC_CLASSES ) );
 
             /* Add classes specified by a system property. */
             Loader.loadProperties();
@@ -179,6 +183,18 @@ public class JELUtils {
         return staticClasses_;
     }
 
+    /**
+     * Returns the classes whose static methods are always mapped into
+     * the JEL evaluation namespace, excluding any configured by
+     * system property or otherwise added by the application.
+     * The public methods of these classes are all side-effect free.
+     *
+     * @return   array of basic classes with static methods
+     */
+    static Class[] getBasicClasses() {
+        return BASIC_CLASSES.clone();
+    }
+
     /**
      * Gives the return type of an expression.
      * This also has the effect of testing that an expression is legal.
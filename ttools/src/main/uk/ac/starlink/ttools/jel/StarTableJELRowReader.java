@@ -1,7 +1,10 @@
 package uk.ac.starlink.ttools.jel;
 
+import gnu.jel.CompiledExpression;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -56,6 +59,12 @@ import uk.ac.starlink.table.Tables;
  *     within this reader.  The quality of the random numbers may not
  *     be particularly good.
  *
+ * <dt>Subexpression names:
+ * <dd>Names registered using the {@link #addSubexpression} method
+ *     evaluate to the value of the corresponding compiled expression
+ *     at the current row.  The value is calculated at most once per row,
+ *     however many times it is referenced.
+ *
  * </dl>
  *
  * @author   Mark Taylor
@@ -64,6 +73,7 @@ import uk.ac.starlink.table.Tables;
 public abstract class StarTableJELRowReader extends JELRowReader {
 
     private final StarTable table_;
+    private final Map<String,Constant> subexprMap_;
     private final long HASH_LONG = System.identityHashCode( this );
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.jel" );
@@ -100,6 +110,7 @@ public abstract class StarTableJELRowReader extends JELRowReader {
      */
     public StarTableJELRowReader( StarTable table ) {
         table_ = table;
+        subexprMap_ = new HashMap<String,Constant>();
     }
 
     /**
@@ -128,6 +139,29 @@ public abstract class StarTableJELRowReader extends JELRowReader {
      */
     public abstract long getCurrentRow();
 
+    /**
+     * Registers a named subexpression with this reader.
+     * Subsequently compiled expressions which reference <code>name</code>
+     * will use the value of <code>compEx</code> evaluated at the current row.
+     * The evaluation result is cached, so that however many references
+     * are made to the name from however many expressions, the
+     * subexpression is evaluated only once for each row.
+     *
+     * <p>This is only suitable for subexpressions which always give the
+     * same result when evaluated at the same row, and whose result is
+     * not modified by the expressions that use it.
+     *
+     * @param  name  identifier by which the subexpression will be referenced;
+     *               must be a legal JEL identifier
+     * @param  compEx  compiled subexpression, which must have been compiled
+     *                 using a library based on this reader
+     * @param  clazz   non-primitive type of the subexpression result
+     */
+    public void addSubexpression( String name, CompiledExpression compEx,
+                                  Class clazz ) {
+        subexprMap_.put( name, new SubexpressionConstant( compEx, clazz ) );
+    }
+
     protected boolean isBlank( int icol ) {
         try {
             return Tables.isBlank( getCell( icol ) );
@@ -276,10 +310,15 @@ public abstract class StarTableJELRowReader extends JELRowReader {
      * <li>"$nrow" gives the number of rows in the table (null if unknown)
      * <li>"$random" or "RANDOM" returns a double random number,
      *      always the same for a given row
+     * <li>names registered using {@link #addSubexpression} give the
+     *     value of the corresponding subexpression
      * </ul>
      */
     protected Constant getSpecialByName( String name ) {
-        if ( name.equals( COLUMN_ID_CHAR + "0" ) ||
+        if ( subexprMap_.containsKey( name ) ) {
+            return subexprMap_.get( name );
+        }
+        else if ( name.equals( COLUMN_ID_CHAR + "0" ) ||
              name.equalsIgnoreCase( "Index" ) ||
              name.equalsIgnoreCase( "$index" ) ) {
             return new Constant() {
@@ -376,6 +415,61 @@ public abstract class StarTableJELRowReader extends JELRowReader {
         }
     }
 
+    /**
+     * Constant which supplies the value of a compiled subexpression
+     * at the current row, evaluating it at most once per row.
+     */
+    private class SubexpressionConstant implements Constant {
+        private final CompiledExpression compEx_;
+        private final Class clazz_;
+        private boolean hasValue_;
+        private long lrow_;
+        private Object value_;
+
+        /**
+         * Constructor.
+         *
+         * @param  compEx  compiled subexpression
+         * @param  clazz   non-primitive result type
+         */
+        SubexpressionConstant( CompiledExpression compEx, Class clazz ) {
+            compEx_ = compEx;
+            clazz_ = clazz;
+        }
+
+        public Class getContentClass() {
+            return clazz_;
+        }
+
+        public Object getValue() {
+            long irow = getCurrentRow();
+            if ( ! hasValue_ || irow != lrow_ ) {
+                hasValue_ = false;
+                try {
+                    value_ = evaluateNested( compEx_ );
+                }
+                catch ( RuntimeException e ) {
+                    throw e;
+                }
+                catch ( Error e ) {
+                    throw e;
+                }
+                catch ( Throwable e ) {
+                    throw new RuntimeException( e.getMessage(), e );
+                }
+                lrow_ = irow;
+                hasValue_ = true;
+            }
+            if ( value_ == NULL_RESULT ) {
+                foundNull();
+                return null;
+            }
+            else {
+                return value_;
+            }
+        }
+    }
+
     /**
      * Takes a (non-prefixed) UCD specification and returns a Pattern
      * actual UCDs should match if they represent the same thing.
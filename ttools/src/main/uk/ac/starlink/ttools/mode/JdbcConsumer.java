@@ -21,6 +21,9 @@ public class JdbcConsumer implements TableConsumer {
     private final String url_;
     private final JDBCHandler handler_;
     private final WriteMode mode_;
+    private final int batchSize_;
+    private final long commitInterval_;
+    private final int nconn_;
 
     /**
      * Constructs a new consumer from a location and a JDBC handler.
@@ -30,9 +33,29 @@ public class JdbcConsumer implements TableConsumer {
      * @param   mode   write mode
      */
     public JdbcConsumer( String url, JDBCHandler handler, WriteMode mode ) {
+        this( url, handler, mode, -1, 0, 1 );
+    }
+
+    /**
+     * Constructs a new consumer with control over how rows are loaded.
+     *
+     * @param   url  destination (jdbc:) URL for table
+     * @param   handler  JDBC handler
+     * @param   mode   write mode
+     * @param   batchSize  number of rows sent in each batch,
+     *                     or -1 for the default
+     * @param   commitInterval  number of rows per transaction,
+     *                          or 0 for the connection's auto-commit mode
+     * @param   nconn   number of connections to use in parallel
+     */
+    public JdbcConsumer( String url, JDBCHandler handler, WriteMode mode,
+                         int batchSize, long commitInterval, int nconn ) {
         url_ = url;
         handler_ = handler;
         mode_ = mode;
+        batchSize_ = batchSize;
+        commitInterval_ = commitInterval;
+        nconn_ = nconn;
     }
 
     /**
@@ -51,7 +74,8 @@ public class JdbcConsumer implements TableConsumer {
 
     public void consume( StarTable table ) throws IOException {
         try {
-            handler_.createJDBCTable( table, url_, mode_ );
+            handler_.createJDBCTable( table, url_, mode_, batchSize_,
+                                      commitInterval_, nconn_ );
         }
         catch ( SQLException e ) {
             String msg = e.getMessage();
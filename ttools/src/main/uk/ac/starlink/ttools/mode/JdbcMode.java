@@ -3,10 +3,12 @@ package uk.ac.starlink.ttools.mode;
 import java.util.logging.Logger;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.jdbc.JDBCAuthenticator;
+import uk.ac.starlink.table.jdbc.JDBCFormatter;
 import uk.ac.starlink.table.jdbc.JDBCHandler;
 import uk.ac.starlink.table.jdbc.WriteMode;
 import uk.ac.starlink.task.ChoiceParameter;
 import uk.ac.starlink.task.Environment;
+import uk.ac.starlink.task.IntegerParameter;
 import uk.ac.starlink.task.Parameter;
 import uk.ac.starlink.task.StringParameter;
 import uk.ac.starlink.task.TaskException;
@@ -28,6 +30,9 @@ public class JdbcMode implements ProcessingMode {
     private final ChoiceParameter<WriteMode> writeParam_;
     private final StringParameter userParam_;
     private final StringParameter passwdParam_;
+    private final IntegerParameter batchParam_;
+    private final IntegerParameter commitParam_;
+    private final IntegerParameter nconnParam_;
 
     private final static Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.table.jdbc" );
@@ -128,6 +133,56 @@ public class JdbcMode implements ProcessingMode {
             "<p>Password for the SQL connection to the database.",
             "</p>",
         } );
+
+        batchParam_ = new IntegerParameter( "batch" );
+        batchParam_.setPrompt( "Number of rows inserted per batch" );
+        batchParam_.setUsage( "<nrow>" );
+        batchParam_.setMinimum( 1 );
+        batchParam_.setNullPermitted( true );
+        batchParam_.setDescription( new String[] {
+            "<p>Number of rows sent to the database at a time",
+            "using JDBC batch updates.",
+            "Larger values usually give faster loading.",
+            "If set to 1, each row is inserted with a separate statement.",
+            "If left blank, " + JDBCFormatter.DEFAULT_BATCH_SIZE,
+            "is used.",
+            "Batching is not used if the JDBC driver reports that",
+            "it does not support batch updates.",
+            "</p>",
+        } );
+
+        commitParam_ = new IntegerParameter( "commit" );
+        commitParam_.setPrompt( "Number of rows per transaction" );
+        commitParam_.setUsage( "<nrow>" );
+        commitParam_.setIntDefault( 0 );
+        commitParam_.setMinimum( 0 );
+        commitParam_.setDescription( new String[] {
+            "<p>If positive, rows are inserted within transactions,",
+            "and a commit is done after roughly this many rows",
+            "(at the end of a batch) and at the end of the load.",
+            "This can be much faster than committing every statement.",
+            "If zero, the connection's default auto-commit behaviour",
+            "is used.",
+            "</p>",
+        } );
+
+        nconnParam_ = new IntegerParameter( "nconn" );
+        nconnParam_.setPrompt( "Number of database connections to use" );
+        nconnParam_.setUsage( "<n>" );
+        nconnParam_.setIntDefault( 1 );
+        nconnParam_.setMinimum( 1 );
+        nconnParam_.setDescription( new String[] {
+            "<p>Number of connections to the database used to insert",
+            "rows in parallel.",
+            "If greater than 1, rows are read from the input table",
+            "and handed out in batches to that number of threads,",
+            "each inserting through its own connection.",
+            "In this case rows will not necessarily be stored",
+            "in the same order as the input table,",
+            "and if an error occurs part of the table may have been",
+            "written.",
+            "</p>",
+        } );
     }
 
     public Parameter[] getAssociatedParameters() {
@@ -139,6 +194,9 @@ public class JdbcMode implements ProcessingMode {
             writeParam_,
             userParam_,
             passwdParam_,
+            batchParam_,
+            commitParam_,
+            nconnParam_,
         };
     }
 
@@ -166,11 +224,16 @@ public class JdbcMode implements ProcessingMode {
         final String user = userParam_.stringValue( env );
         final String passwd = passwdParam_.stringValue( env );
         final WriteMode mode = writeParam_.objectValue( env );
+        Integer batchObj = batchParam_.objectValue( env );
+        int batchSize = batchObj == null ? -1 : batchObj.intValue();
+        int commitInterval = commitParam_.intValue( env );
+        int nconn = nconnParam_.intValue( env );
         JDBCAuthenticator auth = new JDBCAuthenticator() {
             public String[] authenticate() {
                 return new String[] { user, passwd };
             }
         };
-        return new JdbcConsumer( url, new JDBCHandler( auth ), mode );
+        return new JdbcConsumer( url, new JDBCHandler( auth ), mode,
+                                 batchSize, commitInterval, nconn );
     }
 }
@@ -25,7 +25,9 @@ public interface CachedColumn {
     void add( Object value );
 
     /**
-     * Indicates that no more calls to {@link #add} will be made
+     * Indicates that no more calls to {@link #add} will be made.
+     * This should be called even if filling is abandoned part way
+     * through, since it may release resources held during filling.
      */
     void endAdd();
 
@@ -1,6 +1,7 @@
 package uk.ac.starlink.ttools.plot2.data;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,17 +27,34 @@ import uk.ac.starlink.ttools.plot2.Slow;
 public class CachedDataStoreFactory implements DataStoreFactory {
 
     private final CachedColumnFactory colFact_;
+    private final SharedColumnCache sharedCache_;
     private static final Logger logger_ =
         Logger.getLogger( "uk.ac.starlink.ttools.plot2" );
 
     /**
-     * Constructor.
+     * Constructs a factory with no shared cache.
      *
      * @param   colFact  object which provides the storage for caching
      *                   arrays of typed data
      */
     public CachedDataStoreFactory( CachedColumnFactory colFact ) {
+        this( colFact, null );
+    }
+
+    /**
+     * Constructs a factory which may share cached data with other
+     * factories.  If a shared cache is supplied, any required data
+     * already present in it will be used rather than being read again,
+     * and any newly read data will be added to it.
+     *
+     * @param   colFact  object which provides the storage for caching
+     *                   arrays of typed data
+     * @param   sharedCache  cache shared with other factories, or null
+     */
+    public CachedDataStoreFactory( CachedColumnFactory colFact,
+                                   SharedColumnCache sharedCache ) {
         colFact_ = colFact;
+        sharedCache_ = sharedCache;
     }
 
     // how about weak links for all known columns, new methods
@@ -61,7 +79,26 @@ public class CachedDataStoreFactory implements DataStoreFactory {
         }
         else {
             CacheData oldData = gotData.retain( needSpec );
+
+            /* Record table data versions before reading, so that data
+             * read across a change is not shared under the new version. */
+            Map<StarTable,Long> versions = sharedCache_ == null
+                                         ? null
+                                         : makeSpec.getDataVersions(
+                                               sharedCache_ );
+            if ( sharedCache_ != null ) {
+                CacheData sharedData =
+                    makeSpec.getSharedData( sharedCache_, versions );
+                oldData = oldData.add( sharedData );
+                makeSpec = makeSpec.subtract( sharedData.getSpec() );
+            }
+            if ( makeSpec.isEmpty() ) {
+                return oldData;
+            }
             CacheData makeData = makeSpec.readData( colFact_ );
+            if ( sharedCache_ != null ) {
+                makeData.share( sharedCache_, versions );
+            }
             CacheData useData = makeData.add( oldData );
             return useData;
         }
@@ -112,32 +149,47 @@ public class CachedDataStoreFactory implements DataStoreFactory {
         long nrow = table.getRowCount();
         CachedColumn[] maskCols = new CachedColumn[ nm ];
         CachedColumn[] coordCols = new CachedColumn[ nc ];
-        for ( int im = 0; im < nm; im++ ) {
-            maskCols[ im ] =
-                colFact.createColumn( StorageType.BOOLEAN, nrow );
-        }
-        for ( int ic = 0; ic < nc; ic++ ) {
-            coordCols[ ic ] =
-                colFact.createColumn( coords[ ic ].getStorageType(), nrow );
-        }
-        RowSequence rseq = table.getRowSequence();
+        boolean isComplete = false;
         try {
-            for ( long irow = 0; rseq.next(); irow++ ) {
-                if ( Thread.currentThread().isInterrupted() ) {
-                    throw new InterruptedException();
-                }
-                for ( int im = 0; im < nm; im++ ) {
-                    boolean include = masks[ im ].readFlag( rseq, irow );
-                    maskCols[ im ].add( Boolean.valueOf( include ) );
-                }
-                for ( int ic = 0; ic < nc; ic++ ) {
-                    Object value = coords[ ic ].readValue( rseq, irow );
-                    coordCols[ ic ].add( value );
+            for ( int im = 0; im < nm; im++ ) {
+                maskCols[ im ] =
+                    colFact.createColumn( StorageType.BOOLEAN, nrow );
+            }
+            for ( int ic = 0; ic < nc; ic++ ) {
+                coordCols[ ic ] =
+                    colFact.createColumn( coords[ ic ].getStorageType(),
+                                          nrow );
+            }
+            RowSequence rseq = table.getRowSequence();
+            try {
+                for ( long irow = 0; rseq.next(); irow++ ) {
+                    if ( Thread.currentThread().isInterrupted() ) {
+                        throw new InterruptedException();
+                    }
+                    for ( int im = 0; im < nm; im++ ) {
+                        boolean include = masks[ im ].readFlag( rseq, irow );
+                        maskCols[ im ].add( Boolean.valueOf( include ) );
+                    }
+                    for ( int ic = 0; ic < nc; ic++ ) {
+                        Object value = coords[ ic ].readValue( rseq, irow );
+                        coordCols[ ic ].add( value );
+                    }
                 }
             }
+            finally {
+                rseq.close();
+            }
+            isComplete = true;
         }
         finally {
-            rseq.close();
+
+            /* If reading was abandoned, end the columns anyway, so that
+             * any resources they hold, such as temporary files,
+             * are released. */
+            if ( ! isComplete ) {
+                releaseColumns( maskCols );
+                releaseColumns( coordCols );
+            }
         }
         for ( int im = 0; im < nm; im++ ) {
             maskCols[ im ].endAdd();
@@ -158,6 +210,27 @@ public class CachedDataStoreFactory implements DataStoreFactory {
         return new CacheData( mMap, cMap );
     }
 
+    /**
+     * Ends the filling of columns which will not be used,
+     * so that they release any resources they hold.
+     * Errors are logged but not thrown.
+     *
+     * @param  cols  columns, some of which may be null
+     */
+    private static void releaseColumns( CachedColumn[] cols ) {
+        for ( CachedColumn col : cols ) {
+            if ( col != null ) {
+                try {
+                    col.endAdd();
+                }
+                catch ( RuntimeException e ) {
+                    logger_.log( Level.WARNING,
+                                 "Failed to release plot cache column", e );
+                }
+            }
+        }
+    }
+
     /**
      * Formats a count of typed items for logging messages.
      *
@@ -253,6 +326,55 @@ public class CachedDataStoreFactory implements DataStoreFactory {
             return data;
         }
 
+        /**
+         * Returns the current data versions, according to a shared cache,
+         * of the tables used by this object.
+         *
+         * @param  sharedCache  shared cache
+         * @return  map from table to data version
+         */
+        Map<StarTable,Long> getDataVersions( SharedColumnCache sharedCache ) {
+            Map<StarTable,Long> versions = new HashMap<StarTable,Long>();
+            for ( StarTable table : getTables() ) {
+                versions.put( table,
+                              new Long( sharedCache.getDataVersion( table ) ) );
+            }
+            return versions;
+        }
+
+        /**
+         * Returns a CacheData containing those items specified by this
+         * object which are available from a shared cache.
+         *
+         * @param  sharedCache  shared cache
+         * @param  versions   table data versions
+         *                    as returned by {@link #getDataVersions}
+         * @return  data object containing some or all of the data
+         *          specified by this object
+         */
+        CacheData getSharedData( SharedColumnCache sharedCache,
+                                 Map<StarTable,Long> versions ) {
+            Map<MaskSpec,CachedColumn> mMap =
+                new HashMap<MaskSpec,CachedColumn>();
+            Map<CoordSpec,CachedColumn> cMap =
+                new HashMap<CoordSpec,CachedColumn>();
+            for ( MaskSpec mask : mSet_ ) {
+                CachedColumn col =
+                    sharedCache.getColumn( mask.getSharedKey( versions ) );
+                if ( col != null ) {
+                    mMap.put( mask, col );
+                }
+            }
+            for ( CoordSpec coord : cSet_ ) {
+                CachedColumn col =
+                    sharedCache.getColumn( coord.getSharedKey( versions ) );
+                if ( col != null ) {
+                    cMap.put( coord, col );
+                }
+            }
+            return new CacheData( mMap, cMap );
+        }
+
         /**
          * Returns the set of tables used by any of the masks or columns
          * specified by this object.
@@ -383,6 +505,32 @@ public class CachedDataStoreFactory implements DataStoreFactory {
             return result;
         }
 
+        /**
+         * Adds all the data held by this object to a shared cache.
+         *
+         * @param  sharedCache  shared cache
+         * @param  versions   data versions of the tables at the time
+         *                    the data was read
+         */
+        void share( SharedColumnCache sharedCache,
+                    Map<StarTable,Long> versions ) {
+            for ( Map.Entry<MaskSpec,CachedColumn> entry :
+                  mMap_.entrySet() ) {
+                MaskSpec mask = entry.getKey();
+                sharedCache.putColumn( mask.getSharedKey( versions ),
+                                       mask.getLabel(), StorageType.BOOLEAN,
+                                       entry.getValue() );
+            }
+            for ( Map.Entry<CoordSpec,CachedColumn> entry :
+                  cMap_.entrySet() ) {
+                CoordSpec coord = entry.getKey();
+                sharedCache.putColumn( coord.getSharedKey( versions ),
+                                       coord.getLabel(),
+                                       coord.getStorageType(),
+                                       entry.getValue() );
+            }
+        }
+
         /**
          * Returns a mask data object.
          *
@@ -470,6 +618,26 @@ public class CachedDataStoreFactory implements DataStoreFactory {
             return dataReader_.getMaskFlag( rseq, irow );
         }
 
+        /**
+         * Returns the key identifying this mask's data in a shared cache.
+         *
+         * @param  versions  map from table to data version
+         * @return  shared cache key
+         */
+        Object getSharedKey( Map<StarTable,Long> versions ) {
+            return Arrays.asList( new Object[] { this,
+                                                 versions.get( table_ ) } );
+        }
+
+        /**
+         * Returns a human-readable description of this mask.
+         *
+         * @return  label
+         */
+        String getLabel() {
+            return table_.getName() + ": " + maskId_;
+        }
+
         @Override
         public boolean equals( Object o ) {
             if ( o instanceof MaskSpec ) {
@@ -547,6 +715,30 @@ public class CachedDataStoreFactory implements DataStoreFactory {
             return value;
         }
 
+        /**
+         * Returns the key identifying this coordinate's data in a
+         * shared cache.  As well as the table and coordinate identity,
+         * this includes the storage type, since the same user data
+         * might in principle be stored differently for different
+         * coordinate types.  The table's data version is also included.
+         *
+         * @param  versions  map from table to data version
+         * @return  shared cache key
+         */
+        Object getSharedKey( Map<StarTable,Long> versions ) {
+            return Arrays.asList( new Object[] { this, getStorageType(),
+                                                 versions.get( table_ ) } );
+        }
+
+        /**
+         * Returns a human-readable description of this coordinate.
+         *
+         * @return  label
+         */
+        String getLabel() {
+            return table_.getName() + ": " + coordId_;
+        }
+
         @Override
         public boolean equals( Object o ) {
             if ( o instanceof CoordSpec ) {
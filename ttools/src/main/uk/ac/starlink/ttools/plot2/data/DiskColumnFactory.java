@@ -0,0 +1,619 @@
+package uk.ac.starlink.ttools.plot2.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CachedColumnFactory implementation that stores data in
+ * memory-mapped temporary files.
+ *
+ * <p>Since the data is not held on the java heap, and is indexed
+ * using long integers, this allows caching of columns which are too
+ * large for the heap or which have more than 2<sup>31</sup> elements.
+ * The operating system is responsible for paging the data in and out
+ * of memory as required.
+ *
+ * <p>Only fixed-length storage types are written to disk;
+ * variable-length types (strings and arrays) are delegated to a
+ * {@link MemoryColumnFactory}.
+ * Fixed-length columns may also be stored in memory as long as
+ * the total size of such columns currently in memory stays within
+ * a given budget, or if a temporary file cannot be created.
+ * Memory-resident columns count against the budget until they are
+ * garbage collected.
+ *
+ * <p>Temporary files are deleted as soon as they have been mapped,
+ * and the storage is reclaimed when the column is garbage collected.
+ */
+public class DiskColumnFactory implements CachedColumnFactory {
+
+    private final File dir_;
+    private final long maxMemBytes_;
+    private final CachedColumnFactory memFact_;
+    private final ReferenceQueue<CachedColumn> refQueue_;
+    private final Set<MemRef> memRefs_;
+    private long memBytes_;
+
+    /** Log2 of the number of elements in each mapped segment. */
+    private static final int SEG_BITS = 24;
+
+    /** Number of elements in each mapped segment. */
+    private static final int SEG_ELS = 1 << SEG_BITS;
+
+    /** Mask for element index within a mapped segment. */
+    private static final long SEG_MASK = SEG_ELS - 1;
+
+    /** Number of elements buffered before writing to disk. */
+    private static final int WRITE_ELS = 8 * 1024;
+
+    private static final Map<StorageType,DiskCodec> codecMap_ =
+        createCodecMap();
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.plot2.data" );
+
+    /**
+     * Constructs a factory which writes all fixed-length columns to disk.
+     *
+     * @param  dir  directory for temporary files,
+     *              or null for the system default
+     */
+    public DiskColumnFactory( File dir ) {
+        this( dir, 0 );
+    }
+
+    /**
+     * Constructs a factory which stores fixed-length columns in memory
+     * up to a given total size, and writes them to disk beyond that.
+     * Columns of unknown length are always written to disk.
+     *
+     * @param  dir  directory for temporary files,
+     *              or null for the system default
+     * @param  maxMemBytes  maximum total size in bytes of fixed-length
+     *                      columns that will be stored in memory
+     */
+    public DiskColumnFactory( File dir, long maxMemBytes ) {
+        dir_ = dir;
+        maxMemBytes_ = maxMemBytes;
+        memFact_ = new MemoryColumnFactory();
+        refQueue_ = new ReferenceQueue<CachedColumn>();
+        memRefs_ = new HashSet<MemRef>();
+    }
+
+    public CachedColumn createColumn( StorageType type, long nrow ) {
+        DiskCodec codec = codecMap_.get( type );
+        if ( codec == null ) {
+            return memFact_.createColumn( type, nrow );
+        }
+        long nbyte = nrow * codec.elSize_;
+        if ( nrow >= 0 && reserveMemory( nbyte ) ) {
+            CachedColumn col = memFact_.createColumn( type, nrow );
+            synchronized ( this ) {
+                memRefs_.add( new MemRef( col, nbyte, refQueue_ ) );
+            }
+            return col;
+        }
+        try {
+            return new DiskColumn( codec, dir_ );
+        }
+        catch ( IOException e ) {
+            logger_.log( Level.WARNING,
+                         "Can't create plot cache file - use memory", e );
+            return memFact_.createColumn( type, nrow );
+        }
+    }
+
+    /**
+     * Returns the total size of the fixed-length columns created by
+     * this factory which are currently held in memory.
+     *
+     * @return   memory-resident column size in bytes
+     */
+    public synchronized long getMemoryBytes() {
+        releaseCollected();
+        return memBytes_;
+    }
+
+    /**
+     * Attempts to reserve space in the memory budget for a column.
+     *
+     * @param  nbyte  column size in bytes
+     * @return  true iff the column fits in the budget, in which case
+     *          the space is reserved
+     */
+    private synchronized boolean reserveMemory( long nbyte ) {
+        releaseCollected();
+        if ( memBytes_ + nbyte <= maxMemBytes_ ) {
+            memBytes_ += nbyte;
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the space used by garbage collected memory columns
+     * to the budget.  Must be called while synchronized on this object.
+     */
+    private void releaseCollected() {
+        for ( Reference<? extends CachedColumn> ref;
+              ( ref = refQueue_.poll() ) != null; ) {
+            if ( memRefs_.remove( ref ) ) {
+                memBytes_ -= ((MemRef) ref).nbyte_;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by this factory to store
+     * an element of a given type on disk.
+     *
+     * @param  type  storage type
+     * @return  element size in bytes,
+     *          or -1 if the type is not stored on disk
+     */
+    public static int getElementSize( StorageType type ) {
+        DiskCodec codec = codecMap_.get( type );
+        return codec == null ? -1 : codec.elSize_;
+    }
+
+    /**
+     * Creates a map of StorageType-specific codecs for the types
+     * that can be stored on disk.
+     *
+     * @return  codec map
+     */
+    private static Map<StorageType,DiskCodec> createCodecMap() {
+        Map<StorageType,DiskCodec> map =
+            new EnumMap<StorageType,DiskCodec>( StorageType.class );
+        map.put( StorageType.BOOLEAN, new DiskCodec( 1 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.put( ((Boolean) value).booleanValue() ? (byte) 1
+                                                          : (byte) 0 );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return Boolean.valueOf( getBooleanValue( ix ) );
+                    }
+                    public boolean getBooleanValue( long ix ) {
+                        return seg( ix ).get( pos( ix ) ) != 0;
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.DOUBLE, new DiskCodec( 8 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.putDouble( ((Number) value).doubleValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Double( getDoubleValue( ix ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return seg( ix ).getDouble( pos( ix ) );
+                    }
+                    public int getIntValue( long ix ) {
+                        return (int) getDoubleValue( ix );
+                    }
+                    public long getLongValue( long ix ) {
+                        return (long) getDoubleValue( ix );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.FLOAT, new DiskCodec( 4 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.putFloat( ((Number) value).floatValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Float( seg( ix ).getFloat( pos( ix ) ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return seg( ix ).getFloat( pos( ix ) );
+                    }
+                    public int getIntValue( long ix ) {
+                        return (int) seg( ix ).getFloat( pos( ix ) );
+                    }
+                    public long getLongValue( long ix ) {
+                        return (long) seg( ix ).getFloat( pos( ix ) );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.LONG, new DiskCodec( 8 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.putLong( ((Number) value).longValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Long( getLongValue( ix ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return getLongValue( ix );
+                    }
+                    public int getIntValue( long ix ) {
+                        return (int) getLongValue( ix );
+                    }
+                    public long getLongValue( long ix ) {
+                        return seg( ix ).getLong( pos( ix ) );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.INT, new DiskCodec( 4 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.putInt( ((Number) value).intValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Integer( getIntValue( ix ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                    public int getIntValue( long ix ) {
+                        return seg( ix ).getInt( pos( ix ) );
+                    }
+                    public long getLongValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.SHORT, new DiskCodec( 2 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.putShort( ((Number) value).shortValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Short( seg( ix ).getShort( pos( ix ) ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                    public int getIntValue( long ix ) {
+                        return seg( ix ).getShort( pos( ix ) );
+                    }
+                    public long getLongValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.BYTE, new DiskCodec( 1 ) {
+            void write( ByteBuffer buf, Object value ) {
+                buf.put( ((Number) value).byteValue() );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        return new Byte( seg( ix ).get( pos( ix ) ) );
+                    }
+                    public double getDoubleValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                    public int getIntValue( long ix ) {
+                        return seg( ix ).get( pos( ix ) );
+                    }
+                    public long getLongValue( long ix ) {
+                        return getIntValue( ix );
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.INT3, new DiskCodec( 12 ) {
+            void write( ByteBuffer buf, Object value ) {
+                int[] v3 = (int[]) value;
+                buf.putInt( v3[ 0 ] );
+                buf.putInt( v3[ 1 ] );
+                buf.putInt( v3[ 2 ] );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                final int[] v3 = new int[ 3 ];
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        ByteBuffer seg = seg( ix );
+                        int ipos = pos( ix );
+                        v3[ 0 ] = seg.getInt( ipos );
+                        v3[ 1 ] = seg.getInt( ipos + 4 );
+                        v3[ 2 ] = seg.getInt( ipos + 8 );
+                        return v3;
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.DOUBLE3, new DiskCodec( 24 ) {
+            void write( ByteBuffer buf, Object value ) {
+                double[] v3 = (double[]) value;
+                buf.putDouble( v3[ 0 ] );
+                buf.putDouble( v3[ 1 ] );
+                buf.putDouble( v3[ 2 ] );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                final double[] v3 = new double[ 3 ];
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        ByteBuffer seg = seg( ix );
+                        int ipos = pos( ix );
+                        v3[ 0 ] = seg.getDouble( ipos );
+                        v3[ 1 ] = seg.getDouble( ipos + 8 );
+                        v3[ 2 ] = seg.getDouble( ipos + 16 );
+                        return v3;
+                    }
+                };
+            }
+        } );
+        map.put( StorageType.FLOAT3, new DiskCodec( 12 ) {
+            void write( ByteBuffer buf, Object value ) {
+                float[] v3 = (float[]) value;
+                buf.putFloat( v3[ 0 ] );
+                buf.putFloat( v3[ 1 ] );
+                buf.putFloat( v3[ 2 ] );
+            }
+            CachedReader createReader( ByteBuffer[] segs ) {
+                final float[] v3 = new float[ 3 ];
+                return new DiskReader( segs, elSize_ ) {
+                    public Object getObjectValue( long ix ) {
+                        ByteBuffer seg = seg( ix );
+                        int ipos = pos( ix );
+                        v3[ 0 ] = seg.getFloat( ipos );
+                        v3[ 1 ] = seg.getFloat( ipos + 4 );
+                        v3[ 2 ] = seg.getFloat( ipos + 8 );
+                        return v3;
+                    }
+                };
+            }
+        } );
+        assert ! map.keySet()
+                    .containsAll( Arrays.asList( StorageType.values() ) );
+        return Collections.unmodifiableMap( map );
+    }
+
+    /**
+     * Weak reference to a memory-resident column,
+     * recording its size.
+     */
+    private static class MemRef extends WeakReference<CachedColumn> {
+        final long nbyte_;
+
+        /**
+         * Constructor.
+         *
+         * @param  col  column
+         * @param  nbyte  size of column data in bytes
+         * @param  queue  queue with which to register reference
+         */
+        MemRef( CachedColumn col, long nbyte,
+                ReferenceQueue<CachedColumn> queue ) {
+            super( col, queue );
+            nbyte_ = nbyte;
+        }
+    }
+
+    /**
+     * Knows how to serialize and deserialize values of a given
+     * fixed-length storage type.
+     */
+    private static abstract class DiskCodec {
+        final int elSize_;
+
+        /**
+         * Constructor.
+         *
+         * @param  elSize  number of bytes per serialized element
+         */
+        DiskCodec( int elSize ) {
+            elSize_ = elSize;
+        }
+
+        /**
+         * Writes a value to a buffer.
+         * Exactly <code>elSize</code> bytes must be written.
+         *
+         * @param  buf  destination buffer
+         * @param  value  non-null value of the appropriate type
+         */
+        abstract void write( ByteBuffer buf, Object value );
+
+        /**
+         * Returns a reader for data written by this codec.
+         *
+         * @param  segs  buffers containing consecutive runs of
+         *               {@link #SEG_ELS} elements, except the last
+         *               which may be shorter
+         * @return  new reader
+         */
+        abstract CachedReader createReader( ByteBuffer[] segs );
+    }
+
+    /**
+     * CachedColumn implementation that writes values sequentially
+     * to a temporary file and maps it into memory once writing
+     * is complete.
+     */
+    private static class DiskColumn implements CachedColumn {
+        private final DiskCodec codec_;
+        private final File file_;
+        private final RandomAccessFile raf_;
+        private final byte[] wbytes_;
+        private final ByteBuffer wbuf_;
+        private long nrow_;
+        private ByteBuffer[] segs_;
+
+        /**
+         * Constructor.
+         *
+         * @param  codec  serializer for element type
+         * @param  dir  directory for temporary file, or null for default
+         */
+        DiskColumn( DiskCodec codec, File dir ) throws IOException {
+            codec_ = codec;
+            file_ = File.createTempFile( "plotcol", ".bin", dir );
+            file_.deleteOnExit();
+            try {
+                raf_ = new RandomAccessFile( file_, "rw" );
+            }
+            catch ( IOException e ) {
+                file_.delete();
+                throw e;
+            }
+            wbytes_ = new byte[ WRITE_ELS * codec.elSize_ ];
+            wbuf_ = ByteBuffer.wrap( wbytes_ );
+        }
+
+        public void add( Object value ) {
+            if ( wbuf_.remaining() < codec_.elSize_ ) {
+                flushBuffer();
+            }
+            codec_.write( wbuf_, value );
+            nrow_++;
+        }
+
+        public void endAdd() {
+            flushBuffer();
+            int elSize = codec_.elSize_;
+            int nseg = (int) ( ( nrow_ + SEG_ELS - 1 ) >>> SEG_BITS );
+            ByteBuffer[] segs = new ByteBuffer[ nseg ];
+            try {
+                FileChannel chan = raf_.getChannel();
+                for ( int is = 0; is < nseg; is++ ) {
+                    long iel0 = ( (long) is ) << SEG_BITS;
+                    long nel = Math.min( SEG_ELS, nrow_ - iel0 );
+                    segs[ is ] = chan.map( FileChannel.MapMode.READ_ONLY,
+                                           iel0 * elSize, nel * elSize );
+                }
+            }
+            catch ( IOException e ) {
+                throw new RuntimeException( "Plot cache mapping failed", e );
+            }
+            finally {
+                close();
+            }
+            segs_ = segs;
+        }
+
+        public long getRowCount() {
+            return nrow_;
+        }
+
+        public CachedReader createReader() {
+            ByteBuffer[] segs = new ByteBuffer[ segs_.length ];
+            for ( int is = 0; is < segs.length; is++ ) {
+                segs[ is ] = segs_[ is ].duplicate();
+            }
+            return codec_.createReader( segs );
+        }
+
+        /**
+         * Writes any buffered values to the file.
+         */
+        private void flushBuffer() {
+            int n = wbuf_.position();
+            if ( n > 0 ) {
+                try {
+                    raf_.write( wbytes_, 0, n );
+                }
+                catch ( IOException e ) {
+                    close();
+                    throw new RuntimeException( "Plot cache write failed", e );
+                }
+                wbuf_.clear();
+            }
+        }
+
+        /**
+         * Closes and deletes the temporary file.
+         * Any existing mappings remain valid.
+         */
+        private void close() {
+            try {
+                raf_.close();
+            }
+            catch ( IOException e ) {
+                logger_.log( Level.WARNING, "Plot cache close failed", e );
+            }
+            if ( ! file_.delete() ) {
+                logger_.info( "Failed to delete plot cache file " + file_ );
+            }
+        }
+    }
+
+    /**
+     * Partial CachedReader implementation for reading from
+     * mapped segments.  The typed accessor methods all return
+     * dummy values; concrete subclasses override the ones
+     * appropriate for their data type.
+     */
+    private static abstract class DiskReader implements CachedReader {
+        private final ByteBuffer[] segs_;
+        private final int elSize_;
+
+        /**
+         * Constructor.
+         *
+         * @param  segs  mapped segments
+         * @param  elSize  number of bytes per element
+         */
+        DiskReader( ByteBuffer[] segs, int elSize ) {
+            segs_ = segs;
+            elSize_ = elSize;
+        }
+
+        /**
+         * Returns the segment containing a given element.
+         *
+         * @param  ix  element index
+         * @return  segment buffer
+         */
+        ByteBuffer seg( long ix ) {
+            return segs_[ (int) ( ix >>> SEG_BITS ) ];
+        }
+
+        /**
+         * Returns the byte offset of a given element within its segment.
+         *
+         * @param  ix  element index
+         * @return   byte offset into segment
+         */
+        int pos( long ix ) {
+            return ( (int) ( ix & SEG_MASK ) ) * elSize_;
+        }
+
+        public double getDoubleValue( long ix ) {
+            return Double.NaN;
+        }
+
+        public int getIntValue( long ix ) {
+            return Integer.MIN_VALUE;
+        }
+
+        public long getLongValue( long ix ) {
+            return Long.MIN_VALUE;
+        }
+
+        public boolean getBooleanValue( long ix ) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package uk.ac.starlink.ttools.plot2.data;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import uk.ac.starlink.table.StarTable;
+
+/**
+ * Cache of plot data columns that can be shared between
+ * several {@link CachedDataStoreFactory} instances,
+ * for instance those belonging to different plot windows.
+ *
+ * <p>Columns are keyed by an object that identifies the data
+ * (table, coordinate or mask, and storage type).
+ * Any column currently in use by a live data store is available
+ * from the cache, since the cache keeps a weak reference to it;
+ * in this way the garbage collector performs the reference counting.
+ * In addition, the cache keeps strong references to the most recently
+ * used columns up to a given total size in bytes, so that data is not
+ * necessarily discarded as soon as the last plot using it goes away.
+ * When that budget is exceeded, the least recently used columns are
+ * demoted to weak references.
+ *
+ * <p>Since the cache may outlive changes to the data of a given table
+ * (for instance cell edits in an interactive application),
+ * each table also has a data version number, which callers include
+ * in their keys.  Calling {@link #dataChanged} bumps the version,
+ * so that columns read before the change are no longer found;
+ * they are subsequently discarded in the usual way.
+ *
+ * <p>Hit and miss counts and a summary of the current contents
+ * are available for instrumentation purposes.
+ * All methods are thread-safe.
+ */
+public class SharedColumnCache {
+
+    private final Map<Object,Entry> map_;
+    private final Map<StarTable,Long> versions_;
+    private long maxBytes_;
+    private long retainedBytes_;
+    private long hitCount_;
+    private long missCount_;
+
+    /**
+     * Constructor.
+     *
+     * @param  maxBytes  maximum total size in bytes of columns which
+     *                   are retained even when not in use
+     */
+    public SharedColumnCache( long maxBytes ) {
+        maxBytes_ = maxBytes;
+        map_ = new LinkedHashMap<Object,Entry>( 16, 0.75f, true );
+        versions_ = new WeakHashMap<StarTable,Long>();
+    }
+
+    /**
+     * Sets the maximum total size of columns retained when not in use.
+     *
+     * @param  maxBytes  retention budget in bytes
+     */
+    public synchronized void setMaxBytes( long maxBytes ) {
+        maxBytes_ = maxBytes;
+        trim();
+    }
+
+    /**
+     * Returns the maximum total size of columns retained when not in use.
+     *
+     * @return   retention budget in bytes
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes_;
+    }
+
+    /**
+     * Returns the total estimated size of the columns to which this
+     * cache currently retains strong references.
+     *
+     * @return  retained size in bytes
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes_;
+    }
+
+    /**
+     * Returns the number of successful lookups made so far.
+     *
+     * @return  hit count
+     */
+    public synchronized long getHitCount() {
+        return hitCount_;
+    }
+
+    /**
+     * Returns the number of unsuccessful lookups made so far.
+     *
+     * @return  miss count
+     */
+    public synchronized long getMissCount() {
+        return missCount_;
+    }
+
+    /**
+     * Discards all the entries in this cache.
+     * Columns in use by existing data stores are not affected,
+     * but they will not be supplied by this cache to future requests.
+     */
+    public synchronized void clear() {
+        map_.clear();
+        retainedBytes_ = 0;
+    }
+
+    /**
+     * Returns the current data version for a table.
+     * This value should form part of the key for any column
+     * read from that table.
+     *
+     * @param  table  table
+     * @return  data version number
+     */
+    public synchronized long getDataVersion( StarTable table ) {
+        Long version = versions_.get( table );
+        return version == null ? 0L : version.longValue();
+    }
+
+    /**
+     * Indicates that the data of a given table may have changed,
+     * so that columns previously read from it must not be supplied
+     * to future requests.
+     *
+     * @param  table  table whose data has changed
+     */
+    public synchronized void dataChanged( StarTable table ) {
+        versions_.put( table, new Long( getDataVersion( table ) + 1 ) );
+    }
+
+    /**
+     * Returns a summary of the current contents of this cache,
+     * most recently used last.
+     *
+     * @return   array of cache item descriptions
+     */
+    public synchronized Item[] getItems() {
+        purge();
+        List<Item> list = new ArrayList<Item>( map_.size() );
+        for ( Entry entry : map_.values() ) {
+            list.add( new Item( entry.label_, entry.type_, entry.nrow_,
+                                entry.nbyte_, entry.strong_ != null,
+                                entry.hits_ ) );
+        }
+        return list.toArray( new Item[ 0 ] );
+    }
+
+    /**
+     * Returns the column stored under a given key, if available.
+     *
+     * @param  key  data identifier
+     * @return  cached column, or null
+     */
+    synchronized CachedColumn getColumn( Object key ) {
+        Entry entry = map_.get( key );
+        CachedColumn col = entry == null ? null : entry.ref_.get();
+        if ( col == null ) {
+            if ( entry != null ) {
+                map_.remove( key );
+            }
+            missCount_++;
+            return null;
+        }
+        else {
+            hitCount_++;
+            entry.hits_++;
+            if ( entry.strong_ == null ) {
+                entry.strong_ = col;
+                retainedBytes_ += entry.nbyte_;
+                trim();
+            }
+            return col;
+        }
+    }
+
+    /**
+     * Adds a column to this cache.
+     *
+     * @param  key  data identifier
+     * @param  label  human-readable description of the data
+     * @param  type   storage type of column
+     * @param  col   column containing data; {@link CachedColumn#endAdd}
+     *               must have been called
+     */
+    synchronized void putColumn( Object key, String label, StorageType type,
+                                 CachedColumn col ) {
+        long nrow = col.getRowCount();
+        Entry entry = new Entry( col, label, type, nrow,
+                                 estimateByteCount( type, nrow ) );
+        Entry old = map_.put( key, entry );
+        if ( old != null && old.strong_ != null ) {
+            retainedBytes_ -= old.nbyte_;
+        }
+        retainedBytes_ += entry.nbyte_;
+        purge();
+        trim();
+    }
+
+    /**
+     * Demotes least recently used columns to weak references until
+     * the retained size is within budget.
+     */
+    private void trim() {
+        for ( Iterator<Entry> it = map_.values().iterator();
+              it.hasNext() && retainedBytes_ > maxBytes_; ) {
+            Entry entry = it.next();
+            if ( entry.strong_ != null ) {
+                entry.strong_ = null;
+                retainedBytes_ -= entry.nbyte_;
+            }
+        }
+    }
+
+    /**
+     * Removes entries whose columns have been garbage collected.
+     */
+    private void purge() {
+        for ( Iterator<Entry> it = map_.values().iterator(); it.hasNext(); ) {
+            if ( it.next().ref_.get() == null ) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns an approximate storage size for a column.
+     * This does not take account of compact representations
+     * of non-varying data, or of object overheads.
+     *
+     * @param  type  storage type
+     * @param  nrow  number of elements
+     * @return   estimated size in bytes
+     */
+    private static long estimateByteCount( StorageType type, long nrow ) {
+        if ( type == StorageType.BOOLEAN ) {
+            return nrow / 8;
+        }
+        int elSize = DiskColumnFactory.getElementSize( type );
+        return nrow * ( elSize > 0 ? elSize : 32 );
+    }
+
+    /**
+     * Describes an item in the cache.
+     */
+    public static class Item {
+        private final String label_;
+        private final StorageType type_;
+        private final long nrow_;
+        private final long nbyte_;
+        private final boolean isRetained_;
+        private final long hits_;
+
+        /**
+         * Constructor.
+         *
+         * @param  label  data description
+         * @param  type  storage type
+         * @param  nrow  element count
+         * @param  nbyte  estimated size in bytes
+         * @param  isRetained  whether the cache holds a strong reference
+         * @param  hits   number of cache hits for this item
+         */
+        Item( String label, StorageType type, long nrow, long nbyte,
+              boolean isRetained, long hits ) {
+            label_ = label;
+            type_ = type;
+            nrow_ = nrow;
+            nbyte_ = nbyte;
+            isRetained_ = isRetained;
+            hits_ = hits;
+        }
+
+        /**
+         * Returns a human-readable description of the data.
+         *
+         * @return  label
+         */
+        public String getLabel() {
+            return label_;
+        }
+
+        /**
+         * Returns the storage type.
+         *
+         * @return  storage type
+         */
+        public StorageType getStorageType() {
+            return type_;
+        }
+
+        /**
+         * Returns the number of elements.
+         *
+         * @return  row count
+         */
+        public long getRowCount() {
+            return nrow_;
+        }
+
+        /**
+         * Returns the estimated storage size.
+         *
+         * @return  size in bytes
+         */
+        public long getByteCount() {
+            return nbyte_;
+        }
+
+        /**
+         * Indicates whether the cache is retaining this item even if
+         * it is not in use elsewhere.
+         *
+         * @return  true for a strong reference, false for a weak one
+         */
+        public boolean isRetained() {
+            return isRetained_;
+        }
+
+        /**
+         * Returns the number of times this item has been supplied
+         * from the cache.
+         *
+         * @return  hit count
+         */
+        public long getHitCount() {
+            return hits_;
+        }
+    }
+
+    /**
+     * Map value holding a column and associated information.
+     */
+    private static class Entry {
+        final WeakReference<CachedColumn> ref_;
+        final String label_;
+        final StorageType type_;
+        final long nrow_;
+        final long nbyte_;
+        CachedColumn strong_;
+        long hits_;
+
+        /**
+         * Constructor.  The column is initially strongly referenced.
+         *
+         * @param  col  column
+         * @param  label  data description
+         * @param  type  storage type
+         * @param  nrow  element count
+         * @param  nbyte  estimated size in bytes
+         */
+        Entry( CachedColumn col, String label, StorageType type, long nrow,
+               long nbyte ) {
+            ref_ = new WeakReference<CachedColumn>( col );
+            strong_ = col;
+            label_ = label;
+            type_ = type;
+            nrow_ = nrow;
+            nbyte_ = nbyte;
+        }
+    }
+}
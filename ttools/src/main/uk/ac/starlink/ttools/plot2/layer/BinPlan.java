@@ -21,6 +21,7 @@ import uk.ac.starlink.ttools.plot2.data.DataStore;
 public class BinPlan {
     private final Binner binner_;
     private final Gridder gridder_;
+    private static PyramidSource pyramidSource_;
 
     /**
      * Constructor.
@@ -51,6 +52,31 @@ public class BinPlan {
         return gridder_;
     }
 
+    /**
+     * Sets a global source of precomputed count pyramids.
+     * If non-null, point cloud bin plans will be calculated from
+     * a pyramid where a suitable one is available,
+     * rather than by scanning all the data.
+     * Such plans are approximate, so this should only be set by
+     * applications (such as interactive GUIs) for which speed is more
+     * important than pixel-level accuracy.
+     * By default it is null.
+     *
+     * @param  pyramidSource  pyramid source, or null
+     */
+    public static void setPyramidSource( PyramidSource pyramidSource ) {
+        pyramidSource_ = pyramidSource;
+    }
+
+    /**
+     * Returns the global source of precomputed count pyramids.
+     *
+     * @return  pyramid source, may be null
+     */
+    public static PyramidSource getPyramidSource() {
+        return pyramidSource_;
+    }
+
     /**
      * Returns a BinPlan instance which reports where on a grid points
      * in a PointCloud have landed.
@@ -83,6 +109,20 @@ public class BinPlan {
         int yoff = bounds.y;
         Gridder gridder = new Gridder( bounds.width, bounds.height );
         Binner binner = new Binner( gridder.getLength() );
+
+        /* Use a precomputed pyramid if one is available. */
+        PyramidSource pyramidSource = pyramidSource_;
+        if ( pyramidSource != null ) {
+            CountPyramid pyramid =
+                pyramidSource.getPyramid( pointCloud, surface, dataStore );
+            if ( pyramid != null &&
+                 pyramid.fillBinner( surface, binner, gridder ) ) {
+                return new PointCloudBinPlan( binner, gridder, pointCloud,
+                                              surface );
+            }
+        }
+
+        /* Otherwise scan the data. */
         Point2D.Double gp = new Point2D.Double();
         for ( double[] dpos : pointCloud.createDataPosIterable( dataStore ) ) {
             if ( surface.dataToGraphics( dpos, true, gp ) ) {
@@ -43,24 +43,50 @@ public class Binner {
     public void increment( int index ) {
         total_++;
         if ( ! aBinner_.increment( index ) ) {
-            final ArrayBinner aBinner1;
-            if ( aBinner_ instanceof ByteBinner ) {
-                aBinner1 = new ShortBinner( n_ );
-            }
-            else if ( aBinner_ instanceof ShortBinner ) {
-                aBinner1 = new IntBinner( n_ );
-            }
-            else {
-                throw new RuntimeException( "Do what?" );
-            }
-            for ( int i = 0; i < n_; i++ ) {
-                aBinner1.setCount( i, aBinner_.getCount( i ) );
-            }
-            aBinner1.setCount( index, aBinner_.maxValue() );
-            aBinner_ = aBinner1;
+            int max = aBinner_.maxValue();
+            upgrade();
+            aBinner_.setCount( index, max );
             increment( index );
         }
     }
+
+    /**
+     * Increments the count in a given bin by a given non-negative amount.
+     * Counts which would exceed the maximum int value are truncated.
+     *
+     * @param  index  bin index
+     * @param  count  amount to add
+     */
+    public void add( int index, int count ) {
+        total_ += count;
+        long sum = (long) aBinner_.getCount( index ) + count;
+        while ( sum > aBinner_.maxValue() &&
+                ! ( aBinner_ instanceof IntBinner ) ) {
+            upgrade();
+        }
+        aBinner_.setCount( index, (int) Math.min( sum, Integer.MAX_VALUE ) );
+    }
+
+    /**
+     * Replaces the current array binner with one that can store
+     * larger counts, copying the existing counts.
+     */
+    private void upgrade() {
+        final ArrayBinner aBinner1;
+        if ( aBinner_ instanceof ByteBinner ) {
+            aBinner1 = new ShortBinner( n_ );
+        }
+        else if ( aBinner_ instanceof ShortBinner ) {
+            aBinner1 = new IntBinner( n_ );
+        }
+        else {
+            throw new RuntimeException( "Do what?" );
+        }
+        for ( int i = 0; i < n_; i++ ) {
+            aBinner1.setCount( i, aBinner_.getCount( i ) );
+        }
+        aBinner_ = aBinner1;
+    }
  
     /**
      * Returns the count in a given bin.
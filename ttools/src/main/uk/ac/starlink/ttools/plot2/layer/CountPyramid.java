@@ -0,0 +1,739 @@
+package uk.ac.starlink.ttools.plot2.layer;
+
+import gov.fnal.eag.healpix.PixTools;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import javax.vecmath.Vector3d;
+import uk.ac.starlink.ttools.plot2.PlotUtil;
+import uk.ac.starlink.ttools.plot2.PointCloud;
+import uk.ac.starlink.ttools.plot2.Surface;
+import uk.ac.starlink.ttools.plot2.data.DataStore;
+import uk.ac.starlink.ttools.plot2.geom.PlaneSurface;
+import uk.ac.starlink.ttools.plot2.geom.SkySurface;
+
+/**
+ * Multi-resolution grid of point counts for a point cloud.
+ * Each level is a hierarchical pixellisation of the data space,
+ * with each cell at level <em>L</em> split into four cells at level
+ * <em>L</em>+1, and cell indices arranged so that the children of
+ * cell <code>i</code> are cells <code>4i</code> to <code>4i+3</code>.
+ * For plane plots the levels form a quadtree over the data bounds,
+ * and for sky plots they are HEALPix NESTED levels.
+ *
+ * <p>Once built (which requires a scan of all the data), a pyramid
+ * can be used to fill a pixel grid for a given plot surface without
+ * reference to the original data, by using the coarsest level whose
+ * cells are no larger than the screen pixels, and sharing the count
+ * for each cell between the screen pixels it overlaps in proportion
+ * to the area of overlap.
+ * The result is an approximation to the exact counts, since the
+ * points are not necessarily uniformly distributed within each cell,
+ * but it does not suffer from the banding that would result from
+ * assigning whole cells to pixels when the cell and pixel grids
+ * are not aligned.
+ * If the surface is zoomed in further than the finest level
+ * of the pyramid can represent, the pyramid is not used,
+ * and the exact counts must be obtained by scanning the data.
+ *
+ * <p>Count storage may be on the heap or in memory-mapped temporary files.
+ */
+public abstract class CountPyramid {
+
+    private final int nbase_;
+    private final int maxLevel_;
+    private final IntBuffer[] levelCounts_;
+    private final long total_;
+
+    /**
+     * Number of sub-cells along each side (as a power of two) into which
+     * a sky cell's count may be split when distributing it to pixels.
+     */
+    private static final int SKY_SPLIT_LEVEL = 2;
+
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.plot2.layer" );
+
+    /**
+     * Constructor.  The counts at coarser levels are calculated from
+     * the supplied finest-level counts.
+     *
+     * @param  nbase  number of cells at level zero
+     * @param  maxLevel  finest level
+     * @param  finestCounts  counts at the finest level,
+     *                       of length <code>nbase*4^maxLevel</code>
+     * @param  total   total number of points counted
+     * @param  dir   directory for count storage, or null for heap storage
+     */
+    protected CountPyramid( int nbase, int maxLevel, IntBuffer finestCounts,
+                            long total, File dir )
+            throws IOException {
+        nbase_ = nbase;
+        maxLevel_ = maxLevel;
+        total_ = total;
+        levelCounts_ = new IntBuffer[ maxLevel + 1 ];
+        levelCounts_[ maxLevel ] = finestCounts;
+        for ( int level = maxLevel - 1; level >= 0; level-- ) {
+            IntBuffer children = levelCounts_[ level + 1 ];
+            int ncell = getCellCount( level );
+            IntBuffer counts = createIntBuffer( ncell, dir );
+            for ( int ic = 0; ic < ncell; ic++ ) {
+                int ic4 = ic << 2;
+                long sum = (long) children.get( ic4 + 0 )
+                         + (long) children.get( ic4 + 1 )
+                         + (long) children.get( ic4 + 2 )
+                         + (long) children.get( ic4 + 3 );
+                counts.put( ic, (int) Math.min( sum, Integer.MAX_VALUE ) );
+            }
+            levelCounts_[ level ] = counts;
+        }
+    }
+
+    /**
+     * Returns the level of this pyramid which should be used to
+     * bin counts for a given plot surface.
+     *
+     * @param  surface  plot surface
+     * @return   level to use, or -1 if this pyramid is not suitable
+     */
+    public abstract int getBinLevel( Surface surface );
+
+    /**
+     * Adds the counts for all the cells at a given level that may be
+     * visible on a given surface to a binner, sharing each cell's count
+     * between the pixels it overlaps.
+     *
+     * @param  level  pyramid level
+     * @param  surface  plot surface
+     * @param  binner   binner to accumulate counts
+     * @param  gridder  pixel grid geometry
+     */
+    protected abstract void binCells( int level, Surface surface,
+                                      Binner binner, Gridder gridder );
+
+    /**
+     * Returns the finest level stored by this pyramid.
+     *
+     * @return  maximum level
+     */
+    public int getMaxLevel() {
+        return maxLevel_;
+    }
+
+    /**
+     * Returns the total number of points counted by this pyramid.
+     *
+     * @return  total count
+     */
+    public long getTotal() {
+        return total_;
+    }
+
+    /**
+     * Returns the number of cells at a given level.
+     *
+     * @param  level  pyramid level
+     * @return  cell count
+     */
+    public int getCellCount( int level ) {
+        return nbase_ << ( 2 * level );
+    }
+
+    /**
+     * Returns the count for a given cell.
+     *
+     * @param  level  pyramid level
+     * @param  index  cell index at level
+     * @return  number of points in cell
+     */
+    public int getCount( int level, int index ) {
+        return levelCounts_[ level ].get( index );
+    }
+
+    /**
+     * Attempts to accumulate counts from this pyramid into a pixel grid
+     * for a given surface.  If this pyramid is not suitable for the
+     * surface, false is returned and the binner is not touched.
+     *
+     * @param  surface  plot surface
+     * @param  binner   binner to accumulate counts
+     * @param  gridder  pixel grid geometry, matching the surface plot bounds
+     * @return  true iff the counts were filled
+     */
+    public boolean fillBinner( Surface surface, Binner binner,
+                               Gridder gridder ) {
+        int level = getBinLevel( surface );
+        if ( level < 0 ) {
+            return false;
+        }
+        else {
+            long start = System.currentTimeMillis();
+            binCells( level, surface, binner, gridder );
+            PlotUtil.logTimeFromStart( logger_, "Pyramid level " + level,
+                                       start );
+            return true;
+        }
+    }
+
+    /**
+     * Adds a count to the pixel containing a given data position.
+     *
+     * @param  count  count to add
+     * @param  dpos   data position
+     * @param  surface  plot surface
+     * @param  bounds   plot bounds
+     * @param  gp     workspace point
+     * @param  binner   binner to accumulate counts
+     * @param  gridder  pixel grid geometry
+     */
+    protected static void addPoint( int count, double[] dpos,
+                                    Surface surface, Rectangle bounds,
+                                    Point2D.Double gp, Binner binner,
+                                    Gridder gridder ) {
+        if ( surface.dataToGraphics( dpos, true, gp ) ) {
+            int gx = PlotUtil.ifloor( gp.x ) - bounds.x;
+            int gy = PlotUtil.ifloor( gp.y ) - bounds.y;
+            if ( gx >= 0 && gx < bounds.width &&
+                 gy >= 0 && gy < bounds.height ) {
+                binner.add( gridder.getIndex( gx, gy ), count );
+            }
+        }
+    }
+
+    /**
+     * Splits an integer count into parts in proportion to given weights,
+     * so that the parts sum exactly to the count.
+     * Each part gets the integer part of its share, and the remainder
+     * goes to the parts with the largest fractional shares.
+     *
+     * @param  count  count to split
+     * @param  weights  non-negative weights summing to 1
+     * @param  parts   array of the same length as weights,
+     *                 filled with the results on exit
+     */
+    static void splitCount( int count, double[] weights, int[] parts ) {
+        int n = weights.length;
+        int rem = count;
+        for ( int i = 0; i < n; i++ ) {
+            parts[ i ] = (int) ( count * weights[ i ] );
+            rem -= parts[ i ];
+        }
+        while ( rem > 0 ) {
+            int imax = 0;
+            double fmax = -1;
+            for ( int i = 0; i < n; i++ ) {
+                double frac = count * weights[ i ] - parts[ i ];
+                if ( frac > fmax ) {
+                    fmax = frac;
+                    imax = i;
+                }
+            }
+            parts[ imax ]++;
+            rem--;
+        }
+    }
+
+    /**
+     * Creates a pyramid for use with plane plots.
+     * This requires two passes through the data.
+     *
+     * @param  pointCloud  positions to count; must be 2-dimensional
+     * @param  logFlags   2-element array indicating for each axis whether
+     *                    the plot is logarithmic
+     * @param  dataStore  data storage
+     * @param  maxLevel   finest quadtree level, giving
+     *                    <code>2^maxLevel</code> cells along each axis
+     * @param  dir   directory for count storage, or null for heap storage
+     * @return  new pyramid
+     */
+    public static CountPyramid createPlanePyramid( PointCloud pointCloud,
+                                                   boolean[] logFlags,
+                                                   DataStore dataStore,
+                                                   int maxLevel, File dir )
+            throws IOException, InterruptedException {
+        boolean xlog = logFlags[ 0 ];
+        boolean ylog = logFlags[ 1 ];
+        Iterable<double[]> dposIt =
+            pointCloud.createDataPosIterable( dataStore );
+
+        /* First pass: determine the extent of the data. */
+        double xlo = Double.POSITIVE_INFINITY;
+        double xhi = Double.NEGATIVE_INFINITY;
+        double ylo = Double.POSITIVE_INFINITY;
+        double yhi = Double.NEGATIVE_INFINITY;
+        long ip = 0;
+        for ( double[] dpos : dposIt ) {
+            double sx = PlanePyramid.scale( dpos[ 0 ], xlog );
+            double sy = PlanePyramid.scale( dpos[ 1 ], ylog );
+            if ( PlotUtil.isFinite( sx ) && PlotUtil.isFinite( sy ) ) {
+                xlo = Math.min( xlo, sx );
+                xhi = Math.max( xhi, sx );
+                ylo = Math.min( ylo, sy );
+                yhi = Math.max( yhi, sy );
+            }
+            checkInterrupted( ++ip );
+        }
+        if ( ! ( xhi >= xlo ) ) {
+            xlo = 0;
+            xhi = 1;
+        }
+        if ( ! ( yhi >= ylo ) ) {
+            ylo = 0;
+            yhi = 1;
+        }
+        if ( xhi == xlo ) {
+            xlo -= 0.5;
+            xhi += 0.5;
+        }
+        if ( yhi == ylo ) {
+            ylo -= 0.5;
+            yhi += 0.5;
+        }
+
+        /* Second pass: accumulate counts at the finest level. */
+        int nside = 1 << maxLevel;
+        double xfact = nside / ( xhi - xlo );
+        double yfact = nside / ( yhi - ylo );
+        IntBuffer counts = createIntBuffer( 1 << ( 2 * maxLevel ), dir );
+        long total = 0;
+        ip = 0;
+        for ( double[] dpos : dposIt ) {
+            double sx = PlanePyramid.scale( dpos[ 0 ], xlog );
+            double sy = PlanePyramid.scale( dpos[ 1 ], ylog );
+            if ( PlotUtil.isFinite( sx ) && PlotUtil.isFinite( sy ) ) {
+                int ix = Math.min( (int) ( ( sx - xlo ) * xfact ), nside - 1 );
+                int iy = Math.min( (int) ( ( sy - ylo ) * yfact ), nside - 1 );
+                int index = PlanePyramid.interleave( ix, iy );
+                int c = counts.get( index );
+                if ( c < Integer.MAX_VALUE ) {
+                    counts.put( index, c + 1 );
+                }
+                total++;
+            }
+            checkInterrupted( ++ip );
+        }
+        return new PlanePyramid( maxLevel, counts, total, dir,
+                                 xlog, ylog, xlo, xhi, ylo, yhi );
+    }
+
+    /**
+     * Creates a pyramid for use with sky plots.
+     * This requires a single pass through the data.
+     *
+     * @param  pointCloud  positions to count; must be 3-dimensional
+     *                     unit vectors
+     * @param  dataStore  data storage
+     * @param  maxLevel   finest HEALPix level
+     * @param  dir   directory for count storage, or null for heap storage
+     * @return  new pyramid
+     */
+    public static CountPyramid createSkyPyramid( PointCloud pointCloud,
+                                                 DataStore dataStore,
+                                                 int maxLevel, File dir )
+            throws IOException, InterruptedException {
+        SkyPixer skyPixer = new SkyPixer( maxLevel );
+        IntBuffer counts = createIntBuffer( 12 << ( 2 * maxLevel ), dir );
+        long total = 0;
+        long ip = 0;
+        for ( double[] dpos : pointCloud.createDataPosIterable( dataStore ) ) {
+            int index = (int) skyPixer.getIndex( dpos );
+            int c = counts.get( index );
+            if ( c < Integer.MAX_VALUE ) {
+                counts.put( index, c + 1 );
+            }
+            total++;
+            checkInterrupted( ++ip );
+        }
+        return new SkyPyramid( maxLevel, counts, total, dir );
+    }
+
+    /**
+     * Throws an InterruptedException if the current thread has been
+     * interrupted.  For efficiency, only checks every so often.
+     *
+     * @param  ip  running index of item being processed
+     */
+    private static void checkInterrupted( long ip )
+            throws InterruptedException {
+        if ( ( ip & 0xffff ) == 0 && Thread.currentThread().isInterrupted() ) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Creates a zero-filled buffer for storing counts.
+     *
+     * @param  n  number of elements
+     * @param  dir  directory in which to create a memory-mapped
+     *              temporary file, or null to use the heap
+     * @return  new buffer
+     */
+    private static IntBuffer createIntBuffer( int n, File dir )
+            throws IOException {
+        if ( dir == null ) {
+            return IntBuffer.allocate( n );
+        }
+        else {
+            File file = File.createTempFile( "pyramid", ".bin", dir );
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try {
+                long leng = 4L * n;
+                raf.setLength( leng );
+                return raf.getChannel()
+                          .map( FileChannel.MapMode.READ_WRITE, 0, leng )
+                          .asIntBuffer();
+            }
+            finally {
+                raf.close();
+
+                /* The mapping remains valid after the file is deleted,
+                 * at least on Unix-like systems. */
+                if ( ! file.delete() ) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Pyramid implementation for plane plots, using a quadtree over
+     * the (possibly logarithmically scaled) data bounds.
+     * Cell indices interleave the bits of the X and Y cell indices.
+     */
+    private static class PlanePyramid extends CountPyramid {
+
+        private final boolean xlog_;
+        private final boolean ylog_;
+        private final double xlo_;
+        private final double xhi_;
+        private final double ylo_;
+        private final double yhi_;
+
+        /**
+         * Constructor.
+         *
+         * @param  maxLevel  finest level
+         * @param  counts   finest level counts
+         * @param  total    total count
+         * @param  dir   storage directory or null
+         * @param  xlog   whether X axis is logarithmic
+         * @param  ylog   whether Y axis is logarithmic
+         * @param  xlo    lower bound of scaled X range
+         * @param  xhi    upper bound of scaled X range
+         * @param  ylo    lower bound of scaled Y range
+         * @param  yhi    upper bound of scaled Y range
+         */
+        PlanePyramid( int maxLevel, IntBuffer counts, long total, File dir,
+                      boolean xlog, boolean ylog,
+                      double xlo, double xhi, double ylo, double yhi )
+                throws IOException {
+            super( 1, maxLevel, counts, total, dir );
+            xlog_ = xlog;
+            ylog_ = ylog;
+            xlo_ = xlo;
+            xhi_ = xhi;
+            ylo_ = ylo;
+            yhi_ = yhi;
+        }
+
+        public int getBinLevel( Surface surface ) {
+            if ( ! ( surface instanceof PlaneSurface ) ) {
+                return -1;
+            }
+            PlaneSurface psurf = (PlaneSurface) surface;
+            if ( ! Arrays.equals( psurf.getLogFlags(),
+                                  new boolean[] { xlog_, ylog_ } ) ) {
+                return -1;
+            }
+            double[][] limits = psurf.getDataLimits();
+            Rectangle bounds = surface.getPlotBounds();
+            double xpix = ( scale( limits[ 0 ][ 1 ], xlog_ )
+                          - scale( limits[ 0 ][ 0 ], xlog_ ) ) / bounds.width;
+            double ypix = ( scale( limits[ 1 ][ 1 ], ylog_ )
+                          - scale( limits[ 1 ][ 0 ], ylog_ ) ) / bounds.height;
+            for ( int level = 0; level <= getMaxLevel(); level++ ) {
+                int nside = 1 << level;
+                if ( ( xhi_ - xlo_ ) / nside <= Math.abs( xpix ) &&
+                     ( yhi_ - ylo_ ) / nside <= Math.abs( ypix ) ) {
+                    return level;
+                }
+            }
+            return -1;
+        }
+
+        protected void binCells( int level, Surface surface,
+                                 Binner binner, Gridder gridder ) {
+            double[][] limits = ((PlaneSurface) surface).getDataLimits();
+            Rectangle bounds = surface.getPlotBounds();
+            int nside = 1 << level;
+            double xcell = ( xhi_ - xlo_ ) / nside;
+            double ycell = ( yhi_ - ylo_ ) / nside;
+
+            /* Only visit cells that may be within the visible region. */
+            int ix0 = cellIndex( scale( limits[ 0 ][ 0 ], xlog_ ), xlo_,
+                                 xcell, nside );
+            int ix1 = cellIndex( scale( limits[ 0 ][ 1 ], xlog_ ), xlo_,
+                                 xcell, nside );
+            int iy0 = cellIndex( scale( limits[ 1 ][ 0 ], ylog_ ), ylo_,
+                                 ycell, nside );
+            int iy1 = cellIndex( scale( limits[ 1 ][ 1 ], ylog_ ), ylo_,
+                                 ycell, nside );
+            /* Work out which pixel row/column each cell row/column
+             * starts in, and what fraction of it lies in that pixel
+             * rather than the next one.  Cells are no larger than
+             * pixels, so no cell spans more than two. */
+            int nx = ix1 - ix0 + 1;
+            int ny = iy1 - iy0 + 1;
+            int[] pxs = new int[ nx ];
+            double[] fxs = new double[ nx ];
+            int[] pys = new int[ ny ];
+            double[] fys = new double[ ny ];
+            double[] dpos = new double[ 2 ];
+            Point2D.Double gp = new Point2D.Double();
+            dpos[ 1 ] = unscale( ylo_ + ( iy0 + 0.5 ) * ycell, ylog_ );
+            double ga = Double.NaN;
+            for ( int jx = 0; jx <= nx; jx++ ) {
+                dpos[ 0 ] = unscale( xlo_ + ( ix0 + jx ) * xcell, xlog_ );
+                surface.dataToGraphics( dpos, false, gp );
+                double gb = gp.x - bounds.x;
+                if ( jx > 0 ) {
+                    setEdge( ga, gb, jx - 1, pxs, fxs );
+                }
+                ga = gb;
+            }
+            dpos[ 0 ] = unscale( xlo_ + ( ix0 + 0.5 ) * xcell, xlog_ );
+            for ( int jy = 0; jy <= ny; jy++ ) {
+                dpos[ 1 ] = unscale( ylo_ + ( iy0 + jy ) * ycell, ylog_ );
+                surface.dataToGraphics( dpos, false, gp );
+                double gb = gp.y - bounds.y;
+                if ( jy > 0 ) {
+                    setEdge( ga, gb, jy - 1, pys, fys );
+                }
+                ga = gb;
+            }
+
+            /* Share each cell count between the pixels it overlaps. */
+            double[] weights = new double[ 4 ];
+            int[] parts = new int[ 4 ];
+            for ( int jy = 0; jy < ny; jy++ ) {
+                int py = pys[ jy ];
+                double fy = fys[ jy ];
+                for ( int jx = 0; jx < nx; jx++ ) {
+                    int count = getCount( level,
+                                          interleave( ix0 + jx, iy0 + jy ) );
+                    if ( count > 0 ) {
+                        int px = pxs[ jx ];
+                        double fx = fxs[ jx ];
+                        weights[ 0 ] = fx * fy;
+                        weights[ 1 ] = ( 1 - fx ) * fy;
+                        weights[ 2 ] = fx * ( 1 - fy );
+                        weights[ 3 ] = ( 1 - fx ) * ( 1 - fy );
+                        splitCount( count, weights, parts );
+                        addPixel( parts[ 0 ], px, py, bounds, binner, gridder );
+                        addPixel( parts[ 1 ], px + 1, py, bounds,
+                                  binner, gridder );
+                        addPixel( parts[ 2 ], px, py + 1, bounds,
+                                  binner, gridder );
+                        addPixel( parts[ 3 ], px + 1, py + 1, bounds,
+                                  binner, gridder );
+                    }
+                }
+            }
+        }
+
+        /**
+         * Records the pixel overlap for a cell along one axis.
+         *
+         * @param  ga   graphics coordinate of one cell edge,
+         *              relative to the plot bounds
+         * @param  gb   graphics coordinate of the other cell edge,
+         *              relative to the plot bounds
+         * @param  j    index of cell
+         * @param  ps   array in which to store the index of the first
+         *              pixel overlapped
+         * @param  fs   array in which to store the fraction of the cell
+         *              within the first pixel overlapped
+         */
+        private static void setEdge( double ga, double gb, int j,
+                                     int[] ps, double[] fs ) {
+            double g0 = Math.min( ga, gb );
+            double g1 = Math.max( ga, gb );
+            int p = PlotUtil.ifloor( g0 );
+            ps[ j ] = p;
+            fs[ j ] = g1 > g0 ? Math.min( 1.0, ( p + 1 - g0 ) / ( g1 - g0 ) )
+                              : 1.0;
+        }
+
+        /**
+         * Adds a count to a pixel, if it is within the plot bounds.
+         *
+         * @param  count  count to add
+         * @param  px   pixel X index relative to plot bounds
+         * @param  py   pixel Y index relative to plot bounds
+         * @param  bounds   plot bounds
+         * @param  binner   binner to accumulate counts
+         * @param  gridder  pixel grid geometry
+         */
+        private static void addPixel( int count, int px, int py,
+                                      Rectangle bounds, Binner binner,
+                                      Gridder gridder ) {
+            if ( count > 0 && px >= 0 && px < bounds.width &&
+                 py >= 0 && py < bounds.height ) {
+                binner.add( gridder.getIndex( px, py ), count );
+            }
+        }
+
+        /**
+         * Returns the cell index along one axis for a given scaled
+         * coordinate, clamped to the legal range.
+         *
+         * @param  s  scaled coordinate
+         * @param  lo  scaled coordinate of lower bound
+         * @param  cell  scaled size of cell
+         * @param  nside  number of cells along axis
+         * @return  cell index in range 0..nside-1
+         */
+        private static int cellIndex( double s, double lo, double cell,
+                                      int nside ) {
+            double d = Math.floor( ( s - lo ) / cell );
+            return d >= 0 ? (int) Math.min( d, nside - 1 ) : 0;
+        }
+
+        /**
+         * Maps a data coordinate to the space in which the quadtree is
+         * linear.
+         *
+         * @param  d  data coordinate
+         * @param  log  true for logarithmic axis
+         * @return  scaled coordinate, may be NaN
+         */
+        static double scale( double d, boolean log ) {
+            return log ? ( d > 0 ? Math.log10( d ) : Double.NaN ) : d;
+        }
+
+        /**
+         * Inverse of {@link #scale}.
+         *
+         * @param  s  scaled coordinate
+         * @param  log  true for logarithmic axis
+         * @return  data coordinate
+         */
+        static double unscale( double s, boolean log ) {
+            return log ? Math.pow( 10, s ) : s;
+        }
+
+        /**
+         * Interleaves the bits of two cell indices to give a quadtree
+         * (Morton order) index.
+         *
+         * @param  ix  X cell index
+         * @param  iy  Y cell index
+         * @return  quadtree cell index
+         */
+        static int interleave( int ix, int iy ) {
+            return spread( ix ) | ( spread( iy ) << 1 );
+        }
+
+        /**
+         * Spreads the lower 16 bits of an integer out so that they
+         * occupy the even bits of the result.
+         *
+         * @param  i  input value
+         * @return  spread value
+         */
+        private static int spread( int i ) {
+            i &= 0x0000ffff;
+            i = ( i | ( i << 8 ) ) & 0x00ff00ff;
+            i = ( i | ( i << 4 ) ) & 0x0f0f0f0f;
+            i = ( i | ( i << 2 ) ) & 0x33333333;
+            i = ( i | ( i << 1 ) ) & 0x55555555;
+            return i;
+        }
+    }
+
+    /**
+     * Pyramid implementation for sky plots, using HEALPix NESTED levels.
+     */
+    private static class SkyPyramid extends CountPyramid {
+
+        /**
+         * Constructor.
+         *
+         * @param  maxLevel  finest HEALPix level
+         * @param  counts   finest level counts
+         * @param  total    total count
+         * @param  dir   storage directory or null
+         */
+        SkyPyramid( int maxLevel, IntBuffer counts, long total, File dir )
+                throws IOException {
+            super( 12, maxLevel, counts, total, dir );
+        }
+
+        public int getBinLevel( Surface surface ) {
+            if ( ! ( surface instanceof SkySurface ) ) {
+                return -1;
+            }
+            double pixArea = ((SkySurface) surface).pixelAreaSteradians();
+            if ( ! ( pixArea > 0 ) ) {
+                return -1;
+            }
+            for ( int level = 0; level <= getMaxLevel(); level++ ) {
+                double cellArea = 4 * Math.PI / getCellCount( level );
+                if ( cellArea <= pixArea ) {
+                    return level;
+                }
+            }
+            return -1;
+        }
+
+        protected void binCells( int level, Surface surface,
+                                 Binner binner, Gridder gridder ) {
+            Rectangle bounds = surface.getPlotBounds();
+            PixTools pixTools = new PixTools();
+            int ncell = getCellCount( level );
+            double[] dpos = new double[ 3 ];
+            Point2D.Double gp = new Point2D.Double();
+            int[] parts = new int[ 1 << ( 2 * SKY_SPLIT_LEVEL ) ];
+            for ( int ic = 0; ic < ncell; ic++ ) {
+                int count = getCount( level, ic );
+                if ( count > 0 ) {
+
+                    /* HEALPix cells do not map to rectangles on the screen,
+                     * so approximate sharing by area by splitting the
+                     * count equally between the centres of the cell's
+                     * equal-area descendants a level or two down. */
+                    int split = count == 1 ? 0
+                              : count < 16 ? 1
+                              : SKY_SPLIT_LEVEL;
+                    int nsub = 1 << ( 2 * split );
+                    long subNside = 1L << ( level + split );
+                    long subIndex0 = ( (long) ic ) << ( 2 * split );
+                    int base = count / nsub;
+                    int rem = count % nsub;
+                    for ( int is = 0; is < nsub; is++ ) {
+                        int irot = ( ( is - ic ) % nsub + nsub ) % nsub;
+                        parts[ is ] = base + ( irot < rem ? 1 : 0 );
+                    }
+                    for ( int is = 0; is < nsub; is++ ) {
+                        if ( parts[ is ] > 0 ) {
+                            Vector3d v3 =
+                                pixTools.pix2vect_nest( subNside,
+                                                        subIndex0 + is );
+                            dpos[ 0 ] = v3.x;
+                            dpos[ 1 ] = v3.y;
+                            dpos[ 2 ] = v3.z;
+                            addPoint( parts[ is ], dpos, surface, bounds, gp,
+                                      binner, gridder );
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package uk.ac.starlink.ttools.plot2.layer;
+
+import uk.ac.starlink.ttools.plot2.PointCloud;
+import uk.ac.starlink.ttools.plot2.Surface;
+import uk.ac.starlink.ttools.plot2.data.DataStore;
+
+/**
+ * Supplies precomputed count pyramids which can be used in place of
+ * scanning the data when binning point positions onto a plot surface.
+ *
+ * @see      BinPlan#setPyramidSource
+ */
+public interface PyramidSource {
+
+    /**
+     * Returns a count pyramid for a given point cloud, if one is
+     * available.  Implementations should return quickly;
+     * if a suitable pyramid has not already been built,
+     * null should be returned, though the implementation may
+     * arrange to build one for later use.
+     *
+     * <p>The returned pyramid is not guaranteed to be usable with
+     * the given surface, for instance at high zoom levels.
+     *
+     * @param  pointCloud  point positions
+     * @param  surface  plot surface on which the positions will be binned
+     * @param  dataStore  data storage from which positions can be read
+     * @return  count pyramid for the positions, or null
+     */
+    CountPyramid getPyramid( PointCloud pointCloud, Surface surface,
+                             DataStore dataStore );
+}
@@ -47,16 +47,26 @@ public class MonoPaperType extends RgbPaperType
 
     public void placeGlyph( Paper paper, double dx, double dy,
                             Glyph glyph, Color color ) {
-        int gx = PlotUtil.ifloor( dx );
-        int gy = PlotUtil.ifloor( dy );
-        ((MonoPaper) paper).placeGlyph( gx, gy, glyph, color );
+        if ( paper instanceof TiledRgbPaper ) {
+            ((TiledRgbPaper) paper).placeGlyph( dx, dy, glyph, color );
+        }
+        else {
+            int gx = PlotUtil.ifloor( dx );
+            int gy = PlotUtil.ifloor( dy );
+            ((MonoPaper) paper).placeGlyph( gx, gy, glyph, color );
+        }
     }
 
     public void placeGlyph( Paper paper, double dx, double dy, double dz,
                             Glyph glyph, Color color ) {
-        int gx = PlotUtil.ifloor( dx );
-        int gy = PlotUtil.ifloor( dy );
-        ((MonoPaper) paper).placeGlyph( gx, gy, glyph, color );
+        if ( paper instanceof TiledRgbPaper ) {
+            ((TiledRgbPaper) paper).placeGlyph( dx, dy, glyph, color );
+        }
+        else {
+            int gx = PlotUtil.ifloor( dx );
+            int gy = PlotUtil.ifloor( dy );
+            ((MonoPaper) paper).placeGlyph( gx, gy, glyph, color );
+        }
     }
 
     /**
@@ -147,6 +157,14 @@ public class MonoPaperType extends RgbPaperType
             }
         }
 
+        /**
+         * Returns false, since decals are written to the alpha buffer.
+         */
+        @Override
+        protected boolean hasRgbDecals() {
+            return false;
+        }
+
         /**
          * Places a glyph on this paper.
          *
@@ -56,12 +56,16 @@ public abstract class RgbPaperType implements PaperType {
                                 Object[] plans, DataStore dataStore, 
                                 boolean requireCached ) {
 
-        /* Create paper. */
+        /* Create paper.  If the plot is big enough, use a paper which
+         * paints separate tiles of the plot bounds on separate threads. */
         final Rectangle bounds = surface.getPlotBounds();
-        final RgbPaper paper = createPaper( bounds );
+        int ntile = TiledRgbPaper.getTileCount( bounds );
+        final RgbPaper paper = ntile > 1
+                             ? new TiledRgbPaper( this, bounds, ntile )
+                             : createPaper( bounds );
 
         /* Paint background. */
-        surface.paintBackground( paper.graphics_ );
+        paper.paintBackground( surface );
 
         /* Draw each of the drawings on the paper in turn. */
         int nlayer = drawings.length;
@@ -91,6 +95,9 @@ public abstract class RgbPaperType implements PaperType {
 
     /**
      * Creates a paper object for given bounds.
+     * Note the returned object is used as a tile by
+     * {@link TiledRgbPaper}, so it should not assume that the
+     * bounds are those of the whole plot.
      *
      * @param   bounds  plot bounds
      * @return  new paper instance
@@ -149,6 +156,15 @@ public abstract class RgbPaperType implements PaperType {
             return bounds_;
         }
 
+        /**
+         * Paints the plot background onto this paper.
+         *
+         * @param  surface  plot surface
+         */
+        public void paintBackground( Surface surface ) {
+            surface.paintBackground( graphics_ );
+        }
+
         /**
          * Does the work for placing a decal.
          * Invoked by {@link RgbPaperType#placeDecal}.
@@ -159,6 +175,19 @@ public abstract class RgbPaperType implements PaperType {
             decal.paintDecal( graphics_ );
         }
 
+        /**
+         * Indicates whether the {@link #placeDecal} method paints
+         * decals directly onto the RGB image of this paper.
+         * The default implementation returns true; subclasses
+         * which override <code>placeDecal</code> to do something
+         * else should override this method to return false.
+         *
+         * @return   true iff decals are painted straight onto the RGB image
+         */
+        protected boolean hasRgbDecals() {
+            return true;
+        }
+
         /**
          * Returns the index into the RGB image buffer corresponding to
          * the current state of a pixel iterator and an X/Y offset.
@@ -34,9 +34,14 @@ public abstract class RgbPaperType2D extends RgbPaperType
 
     public void placeGlyph( Paper paper, double dx, double dy, Glyph glyph,
                             Color color ) {
-        int gx = PlotUtil.ifloor( dx );
-        int gy = PlotUtil.ifloor( dy );
-        ((RgbPaper2D) paper).placeGlyph( gx, gy, glyph, color );
+        if ( paper instanceof TiledRgbPaper ) {
+            ((TiledRgbPaper) paper).placeGlyph( dx, dy, glyph, color );
+        }
+        else {
+            int gx = PlotUtil.ifloor( dx );
+            int gy = PlotUtil.ifloor( dy );
+            ((RgbPaper2D) paper).placeGlyph( gx, gy, glyph, color );
+        }
     }
 
     protected RgbPaper createPaper( Rectangle bounds ) {
@@ -28,9 +28,14 @@ public abstract class RgbPaperType3D extends RgbPaperType
 
     public void placeGlyph( Paper paper, double dx, double dy, double dz,
                             Glyph glyph, Color color ) {
-        int gx = PlotUtil.ifloor( dx );
-        int gy = PlotUtil.ifloor( dy );
-        ((RgbPaper3D) paper).placeGlyph( gx, gy, dz, glyph, color );
+        if ( paper instanceof TiledRgbPaper ) {
+            ((TiledRgbPaper) paper).placeGlyph( dx, dy, dz, glyph, color );
+        }
+        else {
+            int gx = PlotUtil.ifloor( dx );
+            int gy = PlotUtil.ifloor( dy );
+            ((RgbPaper3D) paper).placeGlyph( gx, gy, dz, glyph, color );
+        }
     }
 
     protected RgbPaper createPaper( Rectangle bounds ) {
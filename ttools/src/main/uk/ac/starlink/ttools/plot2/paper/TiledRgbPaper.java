@@ -0,0 +1,607 @@
+package uk.ac.starlink.ttools.plot2.paper;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import uk.ac.starlink.ttools.plot2.Decal;
+import uk.ac.starlink.ttools.plot2.Glyph;
+import uk.ac.starlink.ttools.plot2.Pixer;
+import uk.ac.starlink.ttools.plot2.PlotUtil;
+import uk.ac.starlink.ttools.plot2.Surface;
+
+/**
+ * RgbPaper implementation that divides the plot bounds into a number
+ * of horizontal tiles and paints each one on its own thread.
+ *
+ * <p>Each tile is an ordinary RgbPaper, created by the owning
+ * RgbPaperType for the tile bounds, so it has its own RGB buffer,
+ * compositing state and colour caches, and for 3D paper types
+ * its own Z-buffer or pixel stacks.
+ * Glyph placements are not painted immediately, but recorded in blocks.
+ * When a block is full, the tiles overlapped by each placement are
+ * worked out from the vertical extent of its glyph, with the work
+ * shared between the tile threads, and the block is then replayed,
+ * in order, on all tiles concurrently,
+ * each tile painting only the glyphs that overlap it,
+ * clipped to its own bounds.
+ * Since every pixel sees exactly the same sequence of samples as it
+ * would on an untiled paper, the output is pixel-identical.
+ * While one block is being painted, the next one is being filled
+ * by the caller.
+ *
+ * <p>The background and decals are painted once at full size,
+ * after any pending glyphs have been painted, and the result is
+ * transferred to the tiles, since painting them tile by tile
+ * does not in general rasterise them identically.
+ * At flush time the tiles are flushed
+ * and stitched together into this paper's own RGB image.
+ */
+class TiledRgbPaper extends RgbPaperType.RgbPaper {
+
+    private final RgbPaperType paperType_;
+    private final RgbPaperType.RgbPaper[] tiles_;
+    private final int[] tileY0s_;
+    private final Rectangle extentClip_;
+    private final List<Map<Glyph,int[]>> extentMaps_;
+    private final List<Future<?>> pending_;
+    private Block fillBlock_;
+    private Block spareBlock_;
+    private boolean cancelled_;
+
+    /** Number of glyph placements recorded before a block is painted. */
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    /** Minimum height in pixels of a tile. */
+    private static final int MIN_TILE_HEIGHT = 32;
+
+    /** Maximum number of glyph extents remembered. */
+    private static final int MAX_EXTENTS = 256;
+
+    private static final int NPROC =
+        Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor_;
+
+    /**
+     * Constructor.
+     *
+     * @param  paperType  paper type instance creating this paper,
+     *                    used to create and paint to the tiles
+     * @param  bounds  plot bounds
+     * @param  ntile   number of tiles, at least 2
+     */
+    public TiledRgbPaper( RgbPaperType paperType, Rectangle bounds,
+                          int ntile ) {
+        super( paperType, bounds );
+        paperType_ = paperType;
+        tiles_ = new RgbPaperType.RgbPaper[ ntile ];
+        tileY0s_ = new int[ ntile ];
+        for ( int it = 0; it < ntile; it++ ) {
+            int y0 = bounds.y + (int) ( (long) bounds.height * it / ntile );
+            int y1 = bounds.y
+                   + (int) ( (long) bounds.height * ( it + 1 ) / ntile );
+            Rectangle tbox = new Rectangle( bounds.x, y0, bounds.width,
+                                            y1 - y0 );
+            tiles_[ it ] = paperType.createPaper( tbox );
+            tileY0s_[ it ] = y0;
+        }
+
+        /* Glyph extents are measured within a clip, relative to the
+         * glyph origin, big enough to cover the plot from anywhere
+         * inside it.  An extent reaching the edge of this clip may be
+         * truncated, and is treated as unbounded in that direction. */
+        extentClip_ = new Rectangle( -bounds.width, -bounds.height,
+                                     2 * bounds.width + 1,
+                                     2 * bounds.height + 1 );
+        extentMaps_ = new ArrayList<Map<Glyph,int[]>>( ntile );
+        for ( int it = 0; it < ntile; it++ ) {
+            extentMaps_.add( new IdentityHashMap<Glyph,int[]>() );
+        }
+        pending_ = new ArrayList<Future<?>>( ntile );
+        fillBlock_ = new Block();
+        spareBlock_ = new Block();
+    }
+
+    /**
+     * Returns the number of tiles that should be used when painting
+     * a plot with given bounds.  If the result is less than 2,
+     * tiled painting is not worthwhile.
+     *
+     * @param  bounds  plot bounds
+     * @return  suggested tile count
+     */
+    public static int getTileCount( Rectangle bounds ) {
+        return Math.min( NPROC, bounds.height / MIN_TILE_HEIGHT );
+    }
+
+    /**
+     * Records a 2D glyph placement.  It will be painted in due course
+     * on each tile it overlaps, by the paper type's own 2D
+     * <code>placeGlyph</code> method.
+     *
+     * @param  dx  graphics X coordinate
+     * @param  dy  graphics Y coordinate
+     * @param  glyph  graphics shape
+     * @param  color  colour
+     */
+    public void placeGlyph( double dx, double dy, Glyph glyph, Color color ) {
+        addPlacement( dx, dy, false, 0, glyph, color );
+    }
+
+    /**
+     * Records a 3D glyph placement.  It will be painted in due course
+     * on each tile it overlaps, by the paper type's own 3D
+     * <code>placeGlyph</code> method.
+     * Each tile has its own Z-buffer or pixel stacks, and since the
+     * tiles do not overlap, no merging of depth information between
+     * tiles is required.
+     *
+     * @param  dx  graphics X coordinate
+     * @param  dy  graphics Y coordinate
+     * @param  dz  Z-buffer coordinate
+     * @param  glyph  graphics shape
+     * @param  color  colour
+     */
+    public void placeGlyph( double dx, double dy, double dz, Glyph glyph,
+                            Color color ) {
+        addPlacement( dx, dy, true, dz, glyph, color );
+    }
+
+    /**
+     * Records a 2D or 3D glyph placement.
+     *
+     * @param  dx  graphics X coordinate
+     * @param  dy  graphics Y coordinate
+     * @param  is3d  true for 3D placement, false for 2D
+     * @param  dz  Z-buffer coordinate, ignored for 2D
+     * @param  glyph  graphics shape
+     * @param  color  colour
+     */
+    private void addPlacement( double dx, double dy, boolean is3d, double dz,
+                               Glyph glyph, Color color ) {
+        if ( ! cancelled_ ) {
+            fillBlock_.add( dx, dy, is3d, dz, glyph, color );
+            if ( fillBlock_.count_ == BLOCK_SIZE ) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the vertical extent of a glyph relative to its origin.
+     * Results are remembered in a supplied map, since typically
+     * the same glyph instance is placed many times.
+     *
+     * @param  glyph  glyph
+     * @param  extentMap  map of known glyph extents
+     * @return  2-element array (minimum, maximum) of Y pixel offsets,
+     *          with MIN_VALUE/MAX_VALUE for unbounded,
+     *          or null if the glyph paints no pixels
+     */
+    private int[] getExtent( Glyph glyph, Map<Glyph,int[]> extentMap ) {
+        if ( extentMap.containsKey( glyph ) ) {
+            return extentMap.get( glyph );
+        }
+        int[] extent = null;
+        Pixer pixer = glyph.createPixer( extentClip_ );
+        if ( pixer != null ) {
+            int ymin = Integer.MAX_VALUE;
+            int ymax = Integer.MIN_VALUE;
+            while ( pixer.next() ) {
+                int y = pixer.getY();
+                if ( y < ymin ) {
+                    ymin = y;
+                }
+                if ( y > ymax ) {
+                    ymax = y;
+                }
+            }
+            if ( ymin <= ymax ) {
+                int clipMin = extentClip_.y;
+                int clipMax = extentClip_.y + extentClip_.height - 1;
+                extent = new int[] {
+                    ymin <= clipMin ? Integer.MIN_VALUE : ymin,
+                    ymax >= clipMax ? Integer.MAX_VALUE : ymax,
+                };
+            }
+        }
+        if ( extentMap.size() >= MAX_EXTENTS ) {
+            extentMap.clear();
+        }
+        extentMap.put( glyph, extent );
+        return extent;
+    }
+
+    /**
+     * Works out which tiles each of a range of placements in a block
+     * overlaps, and records the result in the block.
+     *
+     * @param  block  block
+     * @param  i0  index of first placement
+     * @param  i1  index after last placement
+     * @param  extentMap  map of known glyph extents
+     */
+    private void binPlacements( Block block, int i0, int i1,
+                                Map<Glyph,int[]> extentMap ) {
+        int ntile = tiles_.length;
+        for ( int i = i0; i < i1; i++ ) {
+            int[] extent = getExtent( block.glyphs_[ i ], extentMap );
+            int it0 = ntile;
+            int it1 = -1;
+            if ( extent != null ) {
+                int gy = PlotUtil.ifloor( block.ys_[ i ] );
+                it0 = extent[ 0 ] == Integer.MIN_VALUE
+                    ? 0
+                    : Math.max( getTileIndex( gy + extent[ 0 ] ), 0 );
+                it1 = extent[ 1 ] == Integer.MAX_VALUE
+                    ? ntile - 1
+                    : Math.min( getTileIndex( gy + extent[ 1 ] ), ntile - 1 );
+            }
+            block.tile0s_[ i ] = it0;
+            block.tile1s_[ i ] = it1;
+        }
+    }
+
+    /**
+     * Returns the index of the tile containing a given graphics
+     * Y coordinate.  Values above the first tile give -1, and
+     * values below the last tile give the index of the last tile.
+     *
+     * @param  gy  graphics Y coordinate
+     * @return  tile index
+     */
+    private int getTileIndex( int gy ) {
+        int ip = Arrays.binarySearch( tileY0s_, gy );
+        return ip >= 0 ? ip : -2 - ip;
+    }
+
+    /**
+     * Paints the background onto the whole of this paper,
+     * and copies the result to the tiles.
+     */
+    @Override
+    public void paintBackground( Surface surface ) {
+        super.paintBackground( surface );
+        copyImageToTiles();
+    }
+
+    /**
+     * Paints a decal onto the tiles, after any pending glyphs have been
+     * painted.  Painting a decal separately on each tile does not in
+     * general rasterise it identically to painting it on the whole
+     * paper, so it is rendered once at full size and the result
+     * is transferred to the tiles.
+     */
+    @Override
+    public void placeDecal( Decal decal ) {
+        if ( fillBlock_.count_ > 0 ) {
+            submitBlock();
+        }
+        awaitPending();
+        if ( cancelled_ ) {
+            return;
+        }
+
+        /* If the tiles paint decals straight onto their RGB images,
+         * do the same on the whole stitched image and copy it back. */
+        if ( tiles_[ 0 ].hasRgbDecals() ) {
+            copyTilesToImage();
+            super.placeDecal( decal );
+            copyImageToTiles();
+        }
+
+        /* Otherwise, give each tile a decal that copies the relevant
+         * part of a single full-size rendering of the original one. */
+        else {
+            Rectangle bounds = getBounds();
+            final boolean isOpaque = decal.isOpaque();
+            final RgbImage decalIm =
+                RgbImage.createRgbImage( bounds.width, bounds.height,
+                                         ! isOpaque );
+            Graphics g = decalIm.getImage().createGraphics();
+            g.translate( - bounds.x, - bounds.y );
+            decal.paintDecal( g );
+            g.dispose();
+            final int x0 = bounds.x;
+            final int y0 = bounds.y;
+            final Decal tileDecal = new Decal() {
+                public void paintDecal( Graphics g ) {
+                    Graphics2D g2 = (Graphics2D) g.create();
+                    g2.setComposite( AlphaComposite.Src );
+                    g2.drawImage( decalIm.getImage(), x0, y0, null );
+                    g2.dispose();
+                }
+                public boolean isOpaque() {
+                    return isOpaque;
+                }
+            };
+            runOnTiles( new TileTask() {
+                public void run( int it, RgbPaperType.RgbPaper tile ) {
+                    tile.placeDecal( tileDecal );
+                }
+            } );
+        }
+    }
+
+    public void flush() {
+        if ( fillBlock_.count_ > 0 ) {
+            submitBlock();
+        }
+        runOnTiles( new TileTask() {
+            public void run( int it, RgbPaperType.RgbPaper tile ) {
+                tile.flush();
+            }
+        } );
+        copyTilesToImage();
+    }
+
+    /**
+     * Stitches the tile images into this paper's own image.
+     * Tiles are full-width, so each one is a contiguous run of the buffer.
+     * There must be no pending tile tasks.
+     */
+    private void copyTilesToImage() {
+        int[] rgbs = getRgbImage().getBuffer();
+        int ipix = 0;
+        for ( int it = 0; it < tiles_.length; it++ ) {
+            int[] tileRgbs = tiles_[ it ].getRgbImage().getBuffer();
+            System.arraycopy( tileRgbs, 0, rgbs, ipix, tileRgbs.length );
+            ipix += tileRgbs.length;
+        }
+        assert ipix == rgbs.length;
+    }
+
+    /**
+     * Copies this paper's own image into the tile images.
+     * There must be no pending tile tasks.
+     */
+    private void copyImageToTiles() {
+        int[] rgbs = getRgbImage().getBuffer();
+        int ipix = 0;
+        for ( int it = 0; it < tiles_.length; it++ ) {
+            int[] tileRgbs = tiles_[ it ].getRgbImage().getBuffer();
+            System.arraycopy( rgbs, ipix, tileRgbs, 0, tileRgbs.length );
+            ipix += tileRgbs.length;
+        }
+        assert ipix == rgbs.length;
+    }
+
+    /**
+     * Paints the currently filling block of glyph placements
+     * asynchronously on all tiles, and starts filling a new one.
+     * The tiles overlapped by each placement are first determined
+     * using all the tile threads, and the painting is then done
+     * in the background.
+     */
+    private void submitBlock() {
+        awaitPending();
+        final Block block = fillBlock_;
+        fillBlock_ = spareBlock_;
+        spareBlock_ = block;
+        fillBlock_.clear();
+        final int ntile = tiles_.length;
+        final int count = block.count_;
+        runOnTiles( new TileTask() {
+            public void run( int it, RgbPaperType.RgbPaper tile ) {
+                binPlacements( block, (int) ( (long) count * it / ntile ),
+                               (int) ( (long) count * ( it + 1 ) / ntile ),
+                               extentMaps_.get( it ) );
+            }
+        } );
+        if ( ! cancelled_ ) {
+            submitTasks( new TileTask() {
+                public void run( int it, RgbPaperType.RgbPaper tile ) {
+                    block.paint( paperType_, it, tile );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Performs a given task on every tile concurrently,
+     * and waits for them all to complete.
+     * Any previously submitted work is completed first.
+     *
+     * @param  task  per-tile task
+     */
+    private void runOnTiles( TileTask task ) {
+        awaitPending();
+        if ( ! cancelled_ ) {
+            submitTasks( task );
+            awaitPending();
+        }
+    }
+
+    /**
+     * Submits a given task for asynchronous execution on every tile.
+     * There must be no pending tasks when this method is called.
+     *
+     * @param  task  per-tile task
+     */
+    private void submitTasks( final TileTask task ) {
+        assert pending_.isEmpty();
+        ExecutorService executor = getExecutor();
+        for ( int it = 0; it < tiles_.length; it++ ) {
+            final int it0 = it;
+            final RgbPaperType.RgbPaper tile = tiles_[ it ];
+            pending_.add( executor.submit( new Runnable() {
+                public void run() {
+                    task.run( it0, tile );
+                }
+            } ) );
+        }
+    }
+
+    /**
+     * Waits for all pending tile tasks to complete.
+     * If the calling thread is interrupted, outstanding tasks are
+     * cancelled, further painting to this paper is abandoned,
+     * and the thread's interrupted status is restored.
+     * Any unchecked exception thrown by a tile task is rethrown here.
+     */
+    private void awaitPending() {
+        try {
+            for ( Future<?> future : pending_ ) {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e ) {
+            cancelled_ = true;
+            for ( Future<?> future : pending_ ) {
+                future.cancel( true );
+            }
+            Thread.currentThread().interrupt();
+        }
+        catch ( ExecutionException e ) {
+            cancelled_ = true;
+            for ( Future<?> future : pending_ ) {
+                future.cancel( true );
+            }
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw new RuntimeException( cause );
+            }
+        }
+        finally {
+            pending_.clear();
+        }
+    }
+
+    /**
+     * Returns the executor service used for tile painting.
+     * It is shared between all instances of this class and
+     * uses daemon threads.
+     *
+     * @return  executor service
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if ( executor_ == null ) {
+            executor_ = Executors.newFixedThreadPool( NPROC,
+                                                      new ThreadFactory() {
+                private int iThread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "Plot tile painter-"
+                                             + ( ++iThread_ ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+        }
+        return executor_;
+    }
+
+    /**
+     * Defines an operation to perform on a single tile.
+     */
+    private interface TileTask {
+
+        /**
+         * Performs this task on a tile.
+         *
+         * @param  it  tile index
+         * @param  tile  tile paper
+         */
+        void run( int it, RgbPaperType.RgbPaper tile );
+    }
+
+    /**
+     * Stores a sequence of glyph placements, along with the range of
+     * tiles that each one overlaps.
+     */
+    private static class Block {
+        final double[] xs_;
+        final double[] ys_;
+        final boolean[] is3ds_;
+        final double[] zs_;
+        final Glyph[] glyphs_;
+        final Color[] colors_;
+        final int[] tile0s_;
+        final int[] tile1s_;
+        int count_;
+
+        /**
+         * Constructor.
+         */
+        Block() {
+            xs_ = new double[ BLOCK_SIZE ];
+            ys_ = new double[ BLOCK_SIZE ];
+            is3ds_ = new boolean[ BLOCK_SIZE ];
+            zs_ = new double[ BLOCK_SIZE ];
+            glyphs_ = new Glyph[ BLOCK_SIZE ];
+            colors_ = new Color[ BLOCK_SIZE ];
+            tile0s_ = new int[ BLOCK_SIZE ];
+            tile1s_ = new int[ BLOCK_SIZE ];
+        }
+
+        /**
+         * Appends a glyph placement to this block.
+         *
+         * @param  dx  graphics X coordinate
+         * @param  dy  graphics Y coordinate
+         * @param  is3d  true for 3D placement, false for 2D
+         * @param  dz  Z-buffer coordinate, ignored for 2D
+         * @param  glyph  graphics shape
+         * @param  color  colour
+         */
+        void add( double dx, double dy, boolean is3d, double dz,
+                  Glyph glyph, Color color ) {
+            int i = count_++;
+            xs_[ i ] = dx;
+            ys_[ i ] = dy;
+            is3ds_[ i ] = is3d;
+            zs_[ i ] = dz;
+            glyphs_[ i ] = glyph;
+            colors_[ i ] = color;
+        }
+
+        /**
+         * Empties this block.
+         */
+        void clear() {
+            count_ = 0;
+        }
+
+        /**
+         * Paints the placements in this block that overlap a given tile,
+         * in sequence, onto that tile.
+         *
+         * @param  paperType  paper type that owns the tile
+         * @param  it  tile index
+         * @param  tile   untiled paper
+         */
+        void paint( RgbPaperType paperType, int it,
+                    RgbPaperType.RgbPaper tile ) {
+            for ( int i = 0; i < count_; i++ ) {
+                if ( it >= tile0s_[ i ] && it <= tile1s_[ i ] ) {
+                    if ( is3ds_[ i ] ) {
+                        ((PaperType3D) paperType)
+                       .placeGlyph( tile, xs_[ i ], ys_[ i ], zs_[ i ],
+                                    glyphs_[ i ], colors_[ i ] );
+                    }
+                    else {
+                        ((PaperType2D) paperType)
+                       .placeGlyph( tile, xs_[ i ], ys_[ i ],
+                                    glyphs_[ i ], colors_[ i ] );
+                    }
+                }
+            }
+        }
+    }
+}
@@ -890,6 +890,30 @@ public abstract class AbstractPlot2Task implements Task, DynamicTask {
         return executor.createPlotIcon( executor.createDataStore( null ) );
     }
 
+    /**
+     * Returns an object that can render bitmap tiles of the plot described
+     * by a value-bearing execution environment at multiple zoom levels.
+     * The data is read once and retained in memory by the returned object.
+     * Only single-zone plane and sky plots are supported.
+     * This utility method is not used for executing this class.
+     *
+     * @param  env  execution environment
+     * @param  storeFact  data storage policy; this is used in place of
+     *                    any value in the environment, and should
+     *                    normally be a caching one
+     * @param  tileSize  side length in pixels of each tile
+     * @return  tile renderer
+     */
+    public TileRenderer createTileRenderer( Environment env,
+                                            DataStoreFactory storeFact,
+                                            int tileSize )
+            throws TaskException, IOException, InterruptedException {
+        PlotExecutor executor =
+            createPlotExecutor( env, getPlotContext( env ), storeFact );
+        return executor.createTileRenderer( executor.createDataStore( null ),
+                                            tileSize );
+    }
+
     /**
      * Prepares a plot for this task as specified by a given environment,
      * but does not run any of the actual plotting code.
@@ -1164,6 +1188,22 @@ public abstract class AbstractPlot2Task implements Task, DynamicTask {
     private PlotExecutor createPlotExecutor( Environment env,
                                              PlotContext context )
             throws TaskException {
+        return createPlotExecutor( env, context,
+                                   dstoreParam_.objectValue( env ) );
+    }
+
+    /**
+     * Creates a PlotExecutor using a given data storage policy.
+     *
+     * @param  env  execution environment
+     * @param  context   plot context
+     * @param  storeFact  data storage policy
+     * @return   plot executor
+     */
+    private PlotExecutor createPlotExecutor( Environment env,
+                                             PlotContext context,
+                                             final DataStoreFactory storeFact )
+            throws TaskException {
 
         /* What kind of plot? */
         PlotType plotType = context.getPlotType();
@@ -1174,7 +1214,6 @@ public abstract class AbstractPlot2Task implements Task, DynamicTask {
         final int xpix = xpixParam_.intValue( env );
         final int ypix = ypixParam_.intValue( env );
         final boolean forceBitmap = bitmapParam_.booleanValue( env );
-        final DataStoreFactory storeFact = dstoreParam_.objectValue( env );
         final Compositor compositor = compositorParam_.objectValue( env );
         Padding padding = paddingParam_.objectValue( env );
         final Ganger ganger = gangerFact_.createGanger( padding );
@@ -1350,6 +1389,44 @@ public abstract class AbstractPlot2Task implements Task, DynamicTask {
                                        ptSel, compositor, dataStore,
                                        xpix, ypix, forceBitmap );
             }
+
+            public TileRenderer createTileRenderer( DataStore dataStore,
+                                                   int tileSize )
+                    throws TaskException {
+                if ( nz != 1 ) {
+                    throw new ExecutionException( "Tiles not available for "
+                                                + "multi-zone plots" );
+                }
+                ZoneContent content = contents[ 0 ];
+                Object profile = profiles[ 0 ];
+                ConfigMap config = aspectConfigs[ 0 ];
+                PlotLayer[] layers = content.getLayers();
+                Range[] ranges =
+                      surfFact.useRanges( profile, config )
+                    ? surfFact.readRanges( profile, layers, dataStore )
+                    : null;
+                Object aspect =
+                    surfFact.createAspect( profile, config, ranges );
+                Rectangle bounds = new Rectangle( 0, 0, tileSize, tileSize );
+                Surface surface =
+                    surfFact.createSurface( bounds, profile, aspect );
+                if ( ! TileRenderer.isTileable( surface ) ) {
+                    throw new ExecutionException( "Tiles not available for "
+                                                + "surface type " + surface );
+                }
+                Map<AuxScale,Span> auxSpans =
+                    PlotDisplay.getAuxSpans( layers, surface,
+                                             shadeFixSpans[ 0 ],
+                                             shadeFacts[ 0 ], null,
+                                             dataStore );
+                PaperType paperType =
+                    ptSel.getPixelPaperType( PaperTypeSelector
+                                            .getOpts( layers ),
+                                             compositor, null );
+                return new TileRenderer( surfFact, profile, aspect, layers,
+                                         auxSpans, paperType, dataStore,
+                                         tileSize );
+            }
         };
     }
 
@@ -2796,5 +2873,15 @@ public abstract class AbstractPlot2Task implements Task, DynamicTask {
          * @param  dataStore  object containing plot data
          */
         Icon createPlotIcon( DataStore dataStore );
+
+        /**
+         * Generates an object which can render tiles of the plot
+         * at multiple zoom levels.
+         *
+         * @param  dataStore  object containing plot data
+         * @param  tileSize   side length in pixels of each tile
+         */
+        TileRenderer createTileRenderer( DataStore dataStore, int tileSize )
+                throws TaskException;
     }
 }
@@ -3,6 +3,7 @@ package uk.ac.starlink.ttools.plot2.task;
 import uk.ac.starlink.task.ChoiceParameter;
 import uk.ac.starlink.ttools.plot2.data.CachedDataStoreFactory;
 import uk.ac.starlink.ttools.plot2.data.DataStoreFactory;
+import uk.ac.starlink.ttools.plot2.data.DiskColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.MemoryColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.SmartColumnFactory;
 import uk.ac.starlink.ttools.plot2.data.SimpleDataStoreFactory;
@@ -30,6 +31,12 @@ public class DataStoreParameter extends ChoiceParameter<DataStoreFactory> {
         new CachedDataStoreFactory(
             new SmartColumnFactory( new MemoryColumnFactory() ) );
 
+    /** Disk cached storage: like SMART_CACHE but the data is stored
+     * in memory-mapped temporary files rather than on the heap. */
+    public static final DataStoreFactory DISK_CACHE =
+        new CachedDataStoreFactory(
+            new SmartColumnFactory( new DiskColumnFactory( null ) ) );
+
     /**
      * Constructor.
      *
@@ -40,6 +47,7 @@ public class DataStoreParameter extends ChoiceParameter<DataStoreFactory> {
         addOption( SIMPLE, "simple" );
         addOption( SMART_CACHE, "cache" );
         addOption( BASIC_CACHE, "basic-cache" );
+        addOption( DISK_CACHE, "disk" );
         setDefaultOption( SIMPLE );
 
         setPrompt( "Data storage policy" );
@@ -66,6 +74,16 @@ public class DataStoreParameter extends ChoiceParameter<DataStoreFactory> {
             "but it's usually more sensible (faster)",
             "if the data will need to be scanned multiple times.",
             "</p>",
+            "<p>The <code>" + getName( DISK_CACHE ) + "</code> option",
+            "works like <code>" + getName( SMART_CACHE ) + "</code>,",
+            "but the cached data is written to memory-mapped temporary",
+            "files in the default temporary directory",
+            "(<code>java.io.tmpdir</code>) rather than held on the heap.",
+            "This makes it possible to cache tables that are too large",
+            "for the available memory, including those with more than",
+            "2<sup>31</sup> rows,",
+            "at the cost of some disk space and possibly I/O overhead.",
+            "</p>",
         } );
     }
 
@@ -0,0 +1,388 @@
+package uk.ac.starlink.ttools.plot2.task;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.swing.Icon;
+import uk.ac.starlink.ttools.plot.Style;
+import uk.ac.starlink.ttools.plot2.AuxScale;
+import uk.ac.starlink.ttools.plot2.Drawing;
+import uk.ac.starlink.ttools.plot2.PlotLayer;
+import uk.ac.starlink.ttools.plot2.PlotUtil;
+import uk.ac.starlink.ttools.plot2.Span;
+import uk.ac.starlink.ttools.plot2.Surface;
+import uk.ac.starlink.ttools.plot2.SurfaceFactory;
+import uk.ac.starlink.ttools.plot2.data.DataStore;
+import uk.ac.starlink.ttools.plot2.geom.PlaneAspect;
+import uk.ac.starlink.ttools.plot2.geom.PlaneSurface;
+import uk.ac.starlink.ttools.plot2.geom.SkyAspect;
+import uk.ac.starlink.ttools.plot2.geom.SkySurface;
+import uk.ac.starlink.ttools.plot2.paper.PaperType;
+
+/**
+ * Renders square bitmap tiles of a plot at a sequence of zoom levels,
+ * using the usual z/x/y addressing scheme of web map tile servers.
+ *
+ * <p>At zoom level <code>z</code> the plot is divided into
+ * 2<sup>z</sup>&times;2<sup>z</sup> tiles, each of which is
+ * <code>tileSize</code> pixels on a side.
+ * Level zero is a single tile covering the region that a static plot
+ * of the same specification would show.
+ * Tile (0,0) is at the top left.
+ *
+ * <p>The data store, ranges and aux spans are fixed at construction time,
+ * so that tiles at different positions and zoom levels are drawn
+ * consistently, and no data needs to be read apart from that
+ * already held in the data store.
+ * Instances of this class are safe for concurrent use by multiple threads
+ * as long as the data store is.
+ *
+ * <p>Each tile is painted on a plot surface which extends some way
+ * beyond the tile on all sides, and then cropped, so that markers
+ * and other features centred just outside a tile are still drawn
+ * where they overlap it.  The padding is sized from the layers'
+ * legend icons, with a minimum of {@link #MIN_PADDING} pixels;
+ * features larger than that may still be truncated at tile edges.
+ *
+ * <p>Only plane and sky plots are currently supported.
+ */
+public class TileRenderer<P,A> {
+
+    private final SurfaceFactory<P,A> surfFact_;
+    private final P profile_;
+    private final A aspect0_;
+    private final PlotLayer[] layers_;
+    private final Map<AuxScale,Span> auxSpans_;
+    private final PaperType paperType_;
+    private final DataStore dataStore_;
+    private final int tileSize_;
+    private final Rectangle tileBounds_;
+    private final Surface surface0_;
+    private final int padding_;
+    private final Rectangle padBounds_;
+
+    /** Maximum zoom level supported. */
+    public static final int MAX_ZOOM = 24;
+
+    /** Minimum number of pixels painted beyond each edge of a tile. */
+    public static final int MIN_PADDING = 32;
+
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.plot2.task" );
+
+    /**
+     * Constructor.
+     *
+     * @param  surfFact  surface factory
+     * @param  profile   surface profile
+     * @param  aspect0   surface aspect for the single tile at zoom level 0
+     * @param  layers    layers to plot
+     * @param  auxSpans  fixed aux data ranges
+     * @param  paperType  bitmap paper type
+     * @param  dataStore   data storage object
+     * @param  tileSize   side length in pixels of each tile
+     * @throws  IllegalArgumentException  if the surface type is not supported
+     */
+    public TileRenderer( SurfaceFactory<P,A> surfFact, P profile, A aspect0,
+                         PlotLayer[] layers, Map<AuxScale,Span> auxSpans,
+                         PaperType paperType, DataStore dataStore,
+                         int tileSize ) {
+        surfFact_ = surfFact;
+        profile_ = profile;
+        aspect0_ = aspect0;
+        layers_ = layers;
+        auxSpans_ = auxSpans;
+        paperType_ = paperType;
+        dataStore_ = dataStore;
+        tileSize_ = tileSize;
+        tileBounds_ = new Rectangle( 0, 0, tileSize, tileSize );
+        surface0_ = surfFact.createSurface( tileBounds_, profile, aspect0 );
+        if ( ! isTileable( surface0_ ) ) {
+            throw new IllegalArgumentException( "Tiles not supported for "
+                                              + "surface " + surface0_ );
+        }
+        padding_ = getPadding( layers, tileSize );
+        padBounds_ = new Rectangle( -padding_, -padding_,
+                                    tileSize + 2 * padding_,
+                                    tileSize + 2 * padding_ );
+    }
+
+    /**
+     * Returns the side length of the tiles produced by this renderer.
+     *
+     * @return  tile size in pixels
+     */
+    public int getTileSize() {
+        return tileSize_;
+    }
+
+    /**
+     * Returns the number of pixels beyond each edge of a tile
+     * which are painted before the tile is cropped.
+     *
+     * @return  padding in pixels
+     */
+    public int getPadding() {
+        return padding_;
+    }
+
+    /**
+     * Returns the data store used by this renderer.
+     *
+     * @return  data store
+     */
+    public DataStore getDataStore() {
+        return dataStore_;
+    }
+
+    /**
+     * Indicates whether a given tile address is legal for this renderer.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return  true iff the tile exists
+     */
+    public boolean isValidTile( int z, int x, int y ) {
+        if ( z < 0 || z > MAX_ZOOM ) {
+            return false;
+        }
+        int n = 1 << z;
+        return x >= 0 && x < n && y >= 0 && y < n;
+    }
+
+    /**
+     * Returns the surface aspect for a given tile.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return  aspect for the tile surface
+     */
+    @SuppressWarnings("unchecked")
+    public A getTileAspect( int z, int x, int y ) {
+        checkTile( z, x, y );
+        if ( z == 0 ) {
+            return aspect0_;
+        }
+        double factor = (double) ( 1 << z );
+        if ( surface0_ instanceof SkySurface ) {
+            A zoomAspect = (A) ((SkySurface) surface0_)
+                              .flatZoom( new Point( 0, 0 ), factor );
+            SkySurface zoomSurf = (SkySurface)
+                surfFact_.createSurface( tileBounds_, profile_, zoomAspect );
+            Point2D pos0 = new Point2D.Double( (double) x * tileSize_,
+                                               (double) y * tileSize_ );
+            return (A) zoomSurf.flatPan( pos0, new Point( 0, 0 ) );
+        }
+        else if ( surface0_ instanceof PlaneSurface ) {
+            double scale = tileSize_ / factor;
+            double[] d0 = surface0_.graphicsToData(
+                new Point2D.Double( x * scale, y * scale ), null );
+            double[] d1 = surface0_.graphicsToData(
+                new Point2D.Double( ( x + 1 ) * scale, ( y + 1 ) * scale ),
+                null );
+            return (A) new PlaneAspect(
+                new double[] { Math.min( d0[ 0 ], d1[ 0 ] ),
+                               Math.max( d0[ 0 ], d1[ 0 ] ) },
+                new double[] { Math.min( d0[ 1 ], d1[ 1 ] ),
+                               Math.max( d0[ 1 ], d1[ 1 ] ) } );
+        }
+        else {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Returns the surface aspect for a given tile, extended on each side
+     * by this renderer's padding.  A surface created with this aspect
+     * and bounds of {@link #getPadding padding} pixels beyond the tile
+     * on each side maps data positions within the tile to the same
+     * graphics positions as the surface for the unpadded tile.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return  aspect for the padded tile surface
+     */
+    @SuppressWarnings("unchecked")
+    public A getPaddedTileAspect( int z, int x, int y ) {
+        checkTile( z, x, y );
+        double factor = (double) ( 1 << z );
+        if ( surface0_ instanceof SkySurface ) {
+
+            /* Adjust zoom and offset so that the padded surface has the
+             * same graphics scale and sky centre as the unpadded one.
+             * The offset is chosen mid-pixel so that the surface's
+             * truncation to an integer pixel centre is exact. */
+            SkySurface tileSurf = (SkySurface)
+                surfFact_.createSurface( tileBounds_, profile_,
+                                         getTileAspect( z, x, y ) );
+            Rectangle2D pBounds =
+                tileSurf.getProjection().getProjectionShape().getBounds2D();
+            double scale0 = getSkyScale( tileBounds_, pBounds );
+            double scale1 = getSkyScale( padBounds_, pBounds );
+            Point center = tileSurf.getSkyCenter();
+            double xoff = ( toMidPixel( center.x - padBounds_.x )
+                          - padBounds_.width / 2 ) / scale1;
+            double yoff = ( toMidPixel( center.y - padBounds_.y )
+                          - padBounds_.height / 2 ) / scale1;
+            return (A) new SkyAspect( tileSurf.getRotation(),
+                                      tileSurf.getZoom() * scale0 / scale1,
+                                      xoff, yoff );
+        }
+        else if ( surface0_ instanceof PlaneSurface ) {
+            double scale = tileSize_ / factor;
+            double gpad = padding_ / factor;
+            double[] d0 = surface0_.graphicsToData(
+                new Point2D.Double( x * scale - gpad, y * scale - gpad ),
+                null );
+            double[] d1 = surface0_.graphicsToData(
+                new Point2D.Double( ( x + 1 ) * scale + gpad,
+                                    ( y + 1 ) * scale + gpad ),
+                null );
+            return (A) new PlaneAspect(
+                new double[] { Math.min( d0[ 0 ], d1[ 0 ] ),
+                               Math.max( d0[ 0 ], d1[ 0 ] ) },
+                new double[] { Math.min( d0[ 1 ], d1[ 1 ] ),
+                               Math.max( d0[ 1 ], d1[ 1 ] ) } );
+        }
+        else {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Paints a given tile to a new image.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return   tileSize x tileSize image
+     */
+    public BufferedImage createTileImage( int z, int x, int y ) {
+        long t0 = System.currentTimeMillis();
+        Surface surface =
+            surfFact_.createSurface( padBounds_, profile_,
+                                     getPaddedTileAspect( z, x, y ) );
+        int nl = layers_.length;
+        Drawing[] drawings = new Drawing[ nl ];
+        Object[] plans = new Object[ nl ];
+        for ( int il = 0; il < nl; il++ ) {
+            drawings[ il ] =
+                layers_[ il ].createDrawing( surface, auxSpans_, paperType_ );
+            plans[ il ] = drawings[ il ].calculatePlan( new Object[ 0 ],
+                                                        dataStore_ );
+        }
+        Icon dataIcon =
+            paperType_.createDataIcon( surface, drawings, plans, dataStore_,
+                                       false );
+        BufferedImage image =
+            new BufferedImage( tileSize_, tileSize_,
+                               BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = image.createGraphics();
+        g.setClip( tileBounds_ );
+        surface.paintBackground( g );
+        dataIcon.paintIcon( null, g, padBounds_.x, padBounds_.y );
+        g.dispose();
+        PlotUtil.logTimeFromStart( logger_, "Tile " + z + "/" + x + "/" + y,
+                                   t0 );
+        return image;
+    }
+
+    /**
+     * Paints a given tile and returns it as a PNG image.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return   PNG file content
+     */
+    public byte[] createTilePng( int z, int x, int y ) throws IOException {
+        BufferedImage image = createTileImage( z, x, y );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ( ! ImageIO.write( image, "png", out ) ) {
+            throw new IOException( "No PNG writer available" );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Throws an exception if a tile address is illegal.
+     *
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     */
+    private void checkTile( int z, int x, int y ) {
+        if ( ! isValidTile( z, x, y ) ) {
+            throw new IllegalArgumentException( "No such tile " + z + "/"
+                                              + x + "/" + y );
+        }
+    }
+
+    /**
+     * Returns the padding to use for a given set of layers.
+     *
+     * @param  layers  plot layers
+     * @param  tileSize  tile size in pixels
+     * @return   padding in pixels
+     */
+    private static int getPadding( PlotLayer[] layers, int tileSize ) {
+        int pad = MIN_PADDING;
+        for ( PlotLayer layer : layers ) {
+            Style style = layer.getStyle();
+            Icon icon = style == null ? null : style.getLegendIcon();
+            if ( icon != null ) {
+                pad = Math.max( pad, Math.max( icon.getIconWidth(),
+                                               icon.getIconHeight() ) );
+            }
+        }
+        return Math.min( pad, tileSize );
+    }
+
+    /**
+     * Returns the scale factor from dimensionless projection coordinates
+     * to graphics coordinates used by a SkySurface at unit zoom.
+     * This replicates the calculation in the SkySurface constructor.
+     *
+     * @param  bounds  plot bounds
+     * @param  pBounds  bounds of projection shape
+     * @return  graphics scale factor
+     */
+    private static double getSkyScale( Rectangle bounds,
+                                       Rectangle2D pBounds ) {
+        return Math.min( bounds.width / pBounds.getWidth(),
+                         bounds.height / pBounds.getHeight() );
+    }
+
+    /**
+     * Returns a value half a pixel further from zero than a given integer,
+     * so that truncation towards zero recovers the integer.
+     *
+     * @param  ipix  integer pixel coordinate
+     * @return  mid-pixel value
+     */
+    private static double toMidPixel( int ipix ) {
+        return ipix + ( ipix >= 0 ? 0.5 : -0.5 );
+    }
+
+    /**
+     * Indicates whether tiles can be generated for a given surface.
+     *
+     * @param  surface  plot surface
+     * @return  true iff this class knows how to calculate tile aspects
+     */
+    public static boolean isTileable( Surface surface ) {
+        return surface instanceof SkySurface
+            || surface instanceof PlaneSurface;
+    }
+}
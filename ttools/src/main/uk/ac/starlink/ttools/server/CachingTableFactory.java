@@ -0,0 +1,72 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import uk.ac.starlink.table.MetaCopyStarTable;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableFactory;
+import uk.ac.starlink.table.TableFormatException;
+
+/**
+ * StarTableFactory which satisfies requests for tables by location
+ * from a {@link TableCache}.
+ * Tables are loaded by a base factory, so that any customised
+ * name resolution it performs is retained.
+ * Each returned table is a {@link uk.ac.starlink.table.MetaCopyStarTable}
+ * wrapping the cached one, so that callers may modify its metadata
+ * without affecting other users of the same data.
+ *
+ * <p>Streamed input from standard input and JDBC tables are never cached.
+ */
+public class CachingTableFactory extends StarTableFactory {
+
+    private final StarTableFactory baseFact_;
+    private final TableCache cache_;
+
+    /**
+     * Constructor.
+     *
+     * @param  baseFact  factory used to load tables not yet in the cache
+     * @param  cache   table cache
+     */
+    public CachingTableFactory( StarTableFactory baseFact, TableCache cache ) {
+        super( baseFact );
+        baseFact_ = baseFact;
+        cache_ = cache;
+    }
+
+    /**
+     * Returns the cache used by this factory.
+     *
+     * @return  table cache
+     */
+    public TableCache getCache() {
+        return cache_;
+    }
+
+    public StarTable makeStarTable( String location )
+            throws TableFormatException, IOException {
+        return makeStarTable( location, null );
+    }
+
+    public StarTable makeStarTable( String location, String handler )
+            throws TableFormatException, IOException {
+        if ( isCacheable( location ) ) {
+            StarTable table = cache_.getTable( location, handler, baseFact_ );
+            return new MetaCopyStarTable( table );
+        }
+        else {
+            return baseFact_.makeStarTable( location, handler );
+        }
+    }
+
+    /**
+     * Indicates whether a table location is suitable for caching.
+     *
+     * @param  location  table location
+     * @return  true iff tables from <code>location</code> may be cached
+     */
+    private static boolean isCacheable( String location ) {
+        return ! location.equals( "-" )
+            && ! location.startsWith( "jdbc:" );
+    }
+}
@@ -0,0 +1,101 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.starlink.ttools.Stilts;
+
+/**
+ * Servlet which reports the current state of the table cache,
+ * plot tile cache and task scheduler used by the STILTS server.
+ * The output is plain text, one "<code>name: value</code>" pair per line,
+ * suitable for scraping by monitoring tools.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private TableCache cache_;
+    private TaskScheduler scheduler_;
+    private TileCache tileCache_;
+
+    public void init( ServletConfig config ) throws ServletException {
+        super.init( config );
+        StiltsContext sContext =
+            new StiltsContext( config.getServletContext() );
+        cache_ = sContext.getTableCache();
+        scheduler_ = sContext.getTaskScheduler();
+        tileCache_ = sContext.getTileCache();
+    }
+
+    public String getServletInfo() {
+        return "STILTS Metrics Servlet " + Stilts.getVersion();
+    }
+
+    protected void doGet( HttpServletRequest request,
+                          HttpServletResponse response )
+            throws IOException, ServletException {
+        response.setStatus( 200 );
+        response.setContentType( "text/plain" );
+        response.setHeader( "Cache-Control", "no-cache" );
+        PrintStream out = new PrintStream( response.getOutputStream() );
+        writeMetrics( out );
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Writes the current metrics to an output stream.
+     *
+     * @param  out  destination stream
+     */
+    private void writeMetrics( PrintStream out ) {
+        Runtime rt = Runtime.getRuntime();
+        out.println( "memory.used: "
+                   + ( rt.totalMemory() - rt.freeMemory() ) );
+        out.println( "memory.max: " + rt.maxMemory() );
+        if ( cache_ != null ) {
+            out.println( "cache.tables: " + cache_.getTableCount() );
+            out.println( "cache.bytes: " + cache_.getTotalBytes() );
+            out.println( "cache.maxbytes: " + cache_.getMaxBytes() );
+            out.println( "cache.hits: " + cache_.getHitCount() );
+            out.println( "cache.misses: " + cache_.getMissCount() );
+            out.println( "cache.evictions: " + cache_.getEvictionCount() );
+            out.println( "cache.hitrate: " + cache_.getHitRate() );
+        }
+        if ( tileCache_ != null ) {
+            out.println( "tiles.count: " + tileCache_.getTileCount() );
+            out.println( "tiles.bytes: " + tileCache_.getTotalBytes() );
+            out.println( "tiles.maxbytes: " + tileCache_.getMaxBytes() );
+            out.println( "tiles.hits: " + tileCache_.getHitCount() );
+            out.println( "tiles.misses: " + tileCache_.getMissCount() );
+            out.println( "tiles.evictions: "
+                       + tileCache_.getEvictionCount() );
+            out.println( "tiles.hitrate: " + tileCache_.getHitRate() );
+        }
+        if ( scheduler_ != null ) {
+            out.println( "scheduler.workers: " + scheduler_.getWorkerCount() );
+            out.println( "scheduler.active: " + scheduler_.getActiveCount() );
+            out.println( "scheduler.queued: " + scheduler_.getQueueDepth() );
+            out.println( "scheduler.rejected: "
+                       + scheduler_.getRejectedCount() );
+            out.println( "scheduler.timeouts: "
+                       + scheduler_.getTimeoutCount() );
+            for ( Map.Entry<String,TaskScheduler.TaskStats> entry :
+                  scheduler_.getTaskStats().entrySet() ) {
+                String prefix = "task." + entry.getKey() + ".";
+                TaskScheduler.TaskStats stats = entry.getValue();
+                out.println( prefix + "count: " + stats.getCount() );
+                out.println( prefix + "failures: "
+                           + stats.getFailureCount() );
+                out.println( prefix + "meanms: " + stats.getMeanMillis() );
+                out.println( prefix + "maxms: " + stats.getMaxMillis() );
+                out.println( prefix + "meanqueuems: "
+                           + stats.getMeanQueueMillis() );
+            }
+        }
+    }
+}
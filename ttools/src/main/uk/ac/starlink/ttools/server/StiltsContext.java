@@ -44,6 +44,60 @@ public class StiltsContext {
      */
     public static String TABLEFACTORY_PARAM = "tableFactory";
 
+    /**
+     * Name of a Servlet initialisation parameter which gives the
+     * approximate maximum size in megabytes of the cache of input tables
+     * shared between requests.  If absent or zero, no caching is done.
+     */
+    public static final String TABLECACHE_PARAM = "stiltsTableCacheMb";
+
+    /**
+     * Name of a Servlet initialisation parameter which gives the
+     * maximum number of tasks that will be executed concurrently.
+     * If absent or zero, tasks are executed directly in the servlet
+     * container's request threads.
+     */
+    public static final String WORKERS_PARAM = "stiltsWorkers";
+
+    /**
+     * Name of a Servlet initialisation parameter which gives the
+     * maximum number of requests that may be queued waiting for a
+     * worker thread; further requests are rejected.
+     * Only used if {@link #WORKERS_PARAM} is set.
+     */
+    public static final String QUEUE_PARAM = "stiltsQueue";
+
+    /**
+     * Name of a Servlet initialisation parameter which gives the
+     * maximum time in seconds that a request may take, including
+     * queueing time.  If absent or zero, there is no limit.
+     * Only used if {@link #WORKERS_PARAM} is set.
+     */
+    public static final String TIMEOUT_PARAM = "stiltsTimeoutSec";
+
+    /**
+     * Name of a Servlet initialisation parameter which gives the
+     * maximum size in megabytes of the cache of rendered plot tiles
+     * shared between requests.  If absent, a default is used.
+     */
+    public static final String TILECACHE_PARAM = "stiltsTileCacheMb";
+
+    /** Default value for {@link #QUEUE_PARAM}. */
+    public static final int DFLT_QUEUE = 64;
+
+    /**
+     * Maximum age in seconds of cached tables whose locations are not
+     * local files, and so cannot be checked for modification.
+     */
+    public static final int TABLECACHE_MAXAGE_SEC = 300;
+
+    /** Default value for {@link #TILECACHE_PARAM}. */
+    public static final double DFLT_TILECACHE_MB = 64;
+
+    private static final String CACHE_ATT = TableCache.class.getName();
+    private static final String SCHEDULER_ATT = TaskScheduler.class.getName();
+    private static final String TILECACHE_ATT = TileCache.class.getName();
+
     /** 
      * Constructor.
      *
@@ -57,17 +111,89 @@ public class StiltsContext {
     /**
      * Acquires a StarTableFactory suitable for use from a servlet
      * from the servlet context.
+     * If a table cache is configured, the returned factory will use it.
      *
      * @return  table factory
      */
     public StarTableFactory getTableFactory() throws ServletException {
         String tfactSpec = context_.getInitParameter( TABLEFACTORY_PARAM );
+        StarTableFactory tfact;
         try {
-            return TableFactoryParameter.createTableFactory( tfactSpec );
+            tfact = TableFactoryParameter.createTableFactory( tfactSpec );
         }
         catch ( UsageException e ) {
             throw new ServletException( e );
         }
+        TableCache cache = getTableCache();
+        return cache == null ? tfact
+                             : new CachingTableFactory( tfact, cache );
+    }
+
+    /**
+     * Returns the table cache shared by servlets in this context,
+     * creating it if necessary.
+     *
+     * @return  table cache, or null if no caching is configured
+     */
+    public TableCache getTableCache() throws ServletException {
+        synchronized ( context_ ) {
+            TableCache cache = (TableCache) context_.getAttribute( CACHE_ATT );
+            if ( cache == null ) {
+                double mb = getNumber( TABLECACHE_PARAM, 0 );
+                if ( mb > 0 ) {
+                    cache = new TableCache( (long) ( mb * 1024 * 1024 ),
+                                            TABLECACHE_MAXAGE_SEC * 1000L );
+                    context_.setAttribute( CACHE_ATT, cache );
+                }
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the task scheduler shared by servlets in this context,
+     * creating it if necessary.
+     *
+     * @return   task scheduler, or null if tasks are to be executed
+     *           in the container's request threads
+     */
+    public TaskScheduler getTaskScheduler() throws ServletException {
+        synchronized ( context_ ) {
+            TaskScheduler scheduler =
+                (TaskScheduler) context_.getAttribute( SCHEDULER_ATT );
+            if ( scheduler == null ) {
+                int nworker = (int) getNumber( WORKERS_PARAM, 0 );
+                if ( nworker > 0 ) {
+                    int queue = (int) getNumber( QUEUE_PARAM, DFLT_QUEUE );
+                    double timeout = getNumber( TIMEOUT_PARAM, 0 );
+                    scheduler =
+                        new TaskScheduler( nworker, queue,
+                                           (long) ( timeout * 1000 ) );
+                    context_.setAttribute( SCHEDULER_ATT, scheduler );
+                }
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Returns the plot tile cache shared by servlets in this context,
+     * creating it if necessary.
+     *
+     * @return   tile cache
+     */
+    public TileCache getTileCache() throws ServletException {
+        synchronized ( context_ ) {
+            TileCache cache =
+                (TileCache) context_.getAttribute( TILECACHE_ATT );
+            if ( cache == null ) {
+                double mb = getNumber( TILECACHE_PARAM, DFLT_TILECACHE_MB );
+                cache = new TileCache( (long) ( Math.max( mb, 0 )
+                                                * 1024 * 1024 ) );
+                context_.setAttribute( TILECACHE_ATT, cache );
+            }
+            return cache;
+        }
     }
 
     /**
@@ -78,4 +204,27 @@ public class StiltsContext {
     public String getTaskBase() {
         return context_.getInitParameter( TASKBASE_PARAM );
     }
+
+    /**
+     * Returns the numeric value of a servlet context initialisation
+     * parameter.
+     *
+     * @param  name  parameter name
+     * @param  dflt  value to return if the parameter is absent
+     * @return  parameter value
+     */
+    private double getNumber( String name, double dflt )
+            throws ServletException {
+        String sval = context_.getInitParameter( name );
+        if ( sval == null || sval.trim().length() == 0 ) {
+            return dflt;
+        }
+        try {
+            return Double.parseDouble( sval.trim() );
+        }
+        catch ( NumberFormatException e ) {
+            throw new ServletException( "Bad value for " + name + ": "
+                                      + sval, e );
+        }
+    }
 }
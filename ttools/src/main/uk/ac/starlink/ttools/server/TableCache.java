@@ -0,0 +1,382 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableFactory;
+
+/**
+ * Memory-budgeted cache of random-access tables keyed by location,
+ * for re-use between requests in a long-running server.
+ *
+ * <p>Tables are loaded on first use and retained in least recently used
+ * order until the total estimated size of the cached tables exceeds
+ * the budget, at which point the least recently used ones are discarded.
+ * Concurrent requests for the same table which is not yet cached
+ * wait for a single load rather than loading it several times.
+ * Cached tables are shared between callers, so they must not
+ * be modified; see {@link CachingTableFactory}, which returns
+ * metadata copies.
+ *
+ * <p>Tables from local files are reloaded if the file has been modified
+ * since it was cached.  For other locations, such as remote URLs,
+ * there is no way to tell whether the resource has changed,
+ * so such tables are reloaded once they have been cached for
+ * longer than a given maximum age.
+ *
+ * <p>The size of a table is estimated from its row count and
+ * column metadata; it is only approximate, and takes no account
+ * of whether the data is actually held on the heap or
+ * (for instance) mapped from a file.
+ */
+public class TableCache {
+
+    private final long maxBytes_;
+    private final long maxAgeMillis_;
+    private final Map<String,Entry> map_;
+    private long totalBytes_;
+    private long nHit_;
+    private long nMiss_;
+    private long nEvict_;
+
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.server" );
+
+    /**
+     * Constructor.
+     *
+     * @param  maxBytes  approximate maximum total size in bytes of
+     *                   cached tables
+     * @param  maxAgeMillis  maximum time in milliseconds for which
+     *                       tables from locations other than local files
+     *                       are retained
+     */
+    public TableCache( long maxBytes, long maxAgeMillis ) {
+        maxBytes_ = maxBytes;
+        maxAgeMillis_ = maxAgeMillis;
+        map_ = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+    }
+
+    /**
+     * Returns the size budget for this cache.
+     *
+     * @return  maximum total table size in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes_;
+    }
+
+    /**
+     * Returns a random-access table from a given location,
+     * using a cached copy if one is available.
+     * If the location refers to a local file which has changed since
+     * it was cached, or to some other resource which was cached longer
+     * ago than this cache's maximum age, it is reloaded.
+     * The returned table is shared and must not be modified.
+     *
+     * @param  location  table location
+     * @param  handler   table input handler name, or null for auto
+     * @param  tfact     table factory used for loading the table
+     *                   if it is not cached
+     * @return   random-access table
+     */
+    public StarTable getTable( final String location, final String handler,
+                               final StarTableFactory tfact )
+            throws IOException {
+        String key = ( handler == null ? "" : handler ) + "\n" + location;
+        long stamp = getStamp( location );
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean isNew;
+        synchronized ( this ) {
+            entry = map_.get( key );
+            if ( entry != null &&
+                 ( entry.stamp_ != stamp ||
+                   ( stamp < 0 && now - entry.time_ >= maxAgeMillis_ ) ) ) {
+                removeEntry( key, entry );
+                entry = null;
+            }
+            isNew = entry == null;
+            if ( isNew ) {
+                nMiss_++;
+                entry = new Entry( stamp, now, new FutureTask<StarTable>(
+                                              new Callable<StarTable>() {
+                    public StarTable call() throws IOException {
+                        StarTable t = tfact.makeStarTable( location, handler );
+                        return tfact.randomTable( t );
+                    }
+                } ) );
+                map_.put( key, entry );
+            }
+            else {
+                nHit_++;
+            }
+        }
+
+        /* Load the table in this thread if it's new, otherwise wait for
+         * whichever thread is loading it. */
+        if ( isNew ) {
+            entry.loader_.run();
+        }
+        StarTable table;
+        try {
+            table = entry.loader_.get();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw (IOException)
+                  new IOException( "Interrupted" ).initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            synchronized ( this ) {
+                if ( map_.get( key ) == entry ) {
+                    removeEntry( key, entry );
+                }
+            }
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw (IOException) new IOException( cause.getMessage() )
+                                   .initCause( cause );
+            }
+        }
+
+        /* Record the size of a newly loaded table and trim the cache
+         * to its budget.  A table too large to fit in the cache on its
+         * own is not retained, and does not displace any other entries. */
+        if ( isNew ) {
+            long nbyte = estimateSize( table );
+            synchronized ( this ) {
+                if ( map_.get( key ) == entry ) {
+                    if ( nbyte > maxBytes_ ) {
+                        map_.remove( key );
+                        logger_.info( "Not caching table " + location
+                                    + " (~" + ( nbyte / 1024 ) + "kB)" );
+                    }
+                    else {
+                        entry.nbyte_ = nbyte;
+                        totalBytes_ += nbyte;
+                        logger_.info( "Cached table " + location
+                                    + " (~" + ( nbyte / 1024 ) + "kB)" );
+                        trim( key );
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Discards all cached tables.
+     */
+    public synchronized void clear() {
+        map_.clear();
+        totalBytes_ = 0;
+    }
+
+    /**
+     * Returns the number of tables currently cached.
+     *
+     * @return  cached table count
+     */
+    public synchronized int getTableCount() {
+        return map_.size();
+    }
+
+    /**
+     * Returns the total estimated size of the tables currently cached.
+     *
+     * @return   size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * Returns the number of requests which were satisfied from the cache.
+     *
+     * @return  hit count
+     */
+    public synchronized long getHitCount() {
+        return nHit_;
+    }
+
+    /**
+     * Returns the number of requests which required a table load.
+     *
+     * @return  miss count
+     */
+    public synchronized long getMissCount() {
+        return nMiss_;
+    }
+
+    /**
+     * Returns the number of tables which have been discarded to keep
+     * within the size budget.
+     *
+     * @return  eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return nEvict_;
+    }
+
+    /**
+     * Returns the proportion of requests satisfied from the cache.
+     *
+     * @return  hit rate in the range 0..1, or NaN if there have been
+     *          no requests
+     */
+    public synchronized double getHitRate() {
+        long nreq = nHit_ + nMiss_;
+        return nreq == 0 ? Double.NaN : nHit_ / (double) nreq;
+    }
+
+    /**
+     * Discards least recently used entries until the cache is within
+     * its budget.  The entry with a given key, which must not on its own
+     * exceed the budget, is retained.
+     * Must be called while synchronized on this object.
+     *
+     * @param   keepKey  key of entry to discard last
+     */
+    private void trim( String keepKey ) {
+        for ( Iterator<Map.Entry<String,Entry>> it =
+                  map_.entrySet().iterator();
+              it.hasNext() && totalBytes_ > maxBytes_; ) {
+            Map.Entry<String,Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            if ( ! mapEntry.getKey().equals( keepKey ) && entry.nbyte_ >= 0 ) {
+                it.remove();
+                totalBytes_ -= entry.nbyte_;
+                nEvict_++;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the map.
+     * Must be called while synchronized on this object.
+     *
+     * @param  key  key
+     * @param  entry  entry currently stored under key
+     */
+    private void removeEntry( String key, Entry entry ) {
+        map_.remove( key );
+        if ( entry.nbyte_ > 0 ) {
+            totalBytes_ -= entry.nbyte_;
+        }
+    }
+
+    /**
+     * Returns a value which changes if the resource at a given location
+     * is modified.  For locations which do not represent local files,
+     * a negative value is returned, indicating that modifications
+     * cannot be detected.
+     *
+     * @param  location  table location
+     * @return  modification stamp, or -1 if not known
+     */
+    private static long getStamp( String location ) {
+        File file = new File( location );
+        return file.isFile() ? file.lastModified() * 31 + file.length()
+                             : -1;
+    }
+
+    /**
+     * Returns a rough estimate of the number of bytes required to
+     * store the data of a table.
+     *
+     * @param  table  table
+     * @return   approximate size in bytes
+     */
+    public static long estimateSize( StarTable table ) {
+        long nrow = Math.max( table.getRowCount(), 0 );
+        int ncol = table.getColumnCount();
+        long rowBytes = 0;
+        for ( int icol = 0; icol < ncol; icol++ ) {
+            rowBytes += estimateCellSize( table.getColumnInfo( icol ) );
+        }
+        return nrow * rowBytes;
+    }
+
+    /**
+     * Returns a rough estimate of the number of bytes required to store
+     * a cell value for a given column.
+     *
+     * @param  info  column metadata
+     * @return  approximate size in bytes
+     */
+    private static long estimateCellSize( ColumnInfo info ) {
+        Class clazz = info.getContentClass();
+        long nel = 1;
+        int[] shape = info.getShape();
+        if ( shape != null ) {
+            for ( int i = 0; i < shape.length; i++ ) {
+                nel *= shape[ i ] > 0 ? shape[ i ] : 8;
+            }
+        }
+        if ( clazz == Double.class || clazz == Long.class ||
+             clazz == double[].class || clazz == long[].class ) {
+            return 8 * nel;
+        }
+        else if ( clazz == Integer.class || clazz == Float.class ||
+                  clazz == int[].class || clazz == float[].class ) {
+            return 4 * nel;
+        }
+        else if ( clazz == Short.class || clazz == Character.class ||
+                  clazz == short[].class ) {
+            return 2 * nel;
+        }
+        else if ( clazz == Byte.class || clazz == Boolean.class ||
+                  clazz == byte[].class || clazz == boolean[].class ) {
+            return nel;
+        }
+        else if ( clazz == String.class || clazz == String[].class ) {
+            int elsize = info.getElementSize();
+            return 40 + 2 * ( elsize > 0 ? elsize : 16 ) * nel;
+        }
+        else {
+            return 32 * nel;
+        }
+    }
+
+    /**
+     * Cache entry.
+     */
+    private static class Entry {
+        final long stamp_;
+        final long time_;
+        final FutureTask<StarTable> loader_;
+        long nbyte_;
+
+        /**
+         * Constructor.
+         *
+         * @param  stamp  modification stamp of resource
+         * @param  time   epoch time in milliseconds at which entry was created
+         * @param  loader  task which supplies the table
+         */
+        Entry( long stamp, long time, FutureTask<StarTable> loader ) {
+            stamp_ = stamp;
+            time_ = time;
+            loader_ = loader;
+            nbyte_ = -1;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import uk.ac.starlink.task.Executable;
+import uk.ac.starlink.task.TaskException;
+
+/**
+ * Runs task executions on a bounded pool of worker threads,
+ * with a bounded queue for requests waiting to run and an optional
+ * per-request timeout.  Timing statistics are accumulated for each
+ * named task.
+ *
+ * <p>The thread submitting a request blocks until it has completed,
+ * so that the servlet container's request thread is not released
+ * until the response has been written.
+ * This applies also to requests which time out: the execution is
+ * interrupted, and the submitting thread waits until it has actually
+ * stopped, so that it cannot go on to write to a response which
+ * the container has recycled.
+ */
+public class TaskScheduler {
+
+    private final ThreadPoolExecutor executor_;
+    private final long timeoutMillis_;
+    private final Map<String,TaskStats> statsMap_;
+    private long nRejected_;
+    private long nTimeout_;
+
+    /**
+     * Constructor.
+     *
+     * @param  nWorker  maximum number of tasks executing concurrently
+     * @param  queueSize  maximum number of tasks waiting to execute
+     * @param  timeoutMillis  maximum time in milliseconds a request may
+     *                        take, including queueing time;
+     *                        zero or negative means no limit
+     */
+    public TaskScheduler( int nWorker, int queueSize, long timeoutMillis ) {
+        timeoutMillis_ = timeoutMillis;
+        statsMap_ = new TreeMap<String,TaskStats>();
+        executor_ =
+            new ThreadPoolExecutor( nWorker, nWorker, 60, TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>(
+                                            Math.max( queueSize, 1 ) ),
+                                    new ThreadFactory() {
+                private int iThread_;
+                public synchronized Thread newThread( Runnable r ) {
+                    Thread th = new Thread( r, "STILTS Worker-"
+                                             + ( ++iThread_ ) );
+                    th.setDaemon( true );
+                    return th;
+                }
+            } );
+    }
+
+    /**
+     * Executes a task, blocking until it completes, fails or times out.
+     *
+     * @param  taskName  name of the task, used for statistics
+     * @param  exec   executable to run
+     * @throws  RejectedExecutionException  if the queue is full
+     * @throws  TimeoutException  if the timeout was exceeded;
+     *          in this case the execution is interrupted,
+     *          and this method does not return until it has stopped
+     */
+    public void execute( String taskName, Executable exec )
+            throws TaskException, IOException, TimeoutException {
+        final long start = System.nanoTime();
+        Job job = new Job( exec );
+        Future<?> future;
+        try {
+            future = executor_.submit( job );
+        }
+        catch ( RejectedExecutionException e ) {
+            synchronized ( this ) {
+                nRejected_++;
+            }
+            throw e;
+        }
+        boolean ok = false;
+        try {
+            if ( timeoutMillis_ > 0 ) {
+                future.get( timeoutMillis_, TimeUnit.MILLISECONDS );
+            }
+            else {
+                future.get();
+            }
+            ok = true;
+        }
+        catch ( TimeoutException e ) {
+            future.cancel( true );
+            job.awaitStopped();
+            synchronized ( this ) {
+                nTimeout_++;
+            }
+            throw e;
+        }
+        catch ( InterruptedException e ) {
+            future.cancel( true );
+            job.awaitStopped();
+            Thread.currentThread().interrupt();
+            throw new TaskException( "Interrupted", e );
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof TaskException ) {
+                throw (TaskException) cause;
+            }
+            else if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw new TaskException( cause.getMessage(), cause );
+            }
+        }
+        finally {
+            long end = System.nanoTime();
+            long runStart = job.runStart_;
+            long queued = runStart == 0 ? end - start
+                                        : runStart - start;
+            synchronized ( this ) {
+                TaskStats stats = statsMap_.get( taskName );
+                if ( stats == null ) {
+                    stats = new TaskStats();
+                    statsMap_.put( taskName, stats );
+                }
+                stats.add( end - start, queued, ok );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests currently waiting to execute.
+     *
+     * @return  queue depth
+     */
+    public int getQueueDepth() {
+        return executor_.getQueue().size();
+    }
+
+    /**
+     * Returns the number of requests currently executing.
+     *
+     * @return  active task count
+     */
+    public int getActiveCount() {
+        return executor_.getActiveCount();
+    }
+
+    /**
+     * Returns the maximum number of concurrently executing tasks.
+     *
+     * @return  worker pool size
+     */
+    public int getWorkerCount() {
+        return executor_.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the number of requests rejected because the queue was full.
+     *
+     * @return  rejection count
+     */
+    public synchronized long getRejectedCount() {
+        return nRejected_;
+    }
+
+    /**
+     * Returns the number of requests which exceeded the timeout.
+     *
+     * @return  timeout count
+     */
+    public synchronized long getTimeoutCount() {
+        return nTimeout_;
+    }
+
+    /**
+     * Returns a snapshot of the per-task statistics.
+     *
+     * @return  map from task name to statistics, sorted by name
+     */
+    public synchronized Map<String,TaskStats> getTaskStats() {
+        Map<String,TaskStats> map = new TreeMap<String,TaskStats>();
+        for ( Map.Entry<String,TaskStats> entry : statsMap_.entrySet() ) {
+            map.put( entry.getKey(), entry.getValue().copy() );
+        }
+        return map;
+    }
+
+    /**
+     * Shuts down the worker pool.
+     * Executing tasks are interrupted.
+     */
+    public void shutdown() {
+        executor_.shutdownNow();
+    }
+
+    /**
+     * Callable wrapping an executable, which keeps track of whether
+     * it is currently running.
+     */
+    private static class Job implements Callable<Object> {
+        private final Executable exec_;
+        private boolean isRunning_;
+        private boolean isAbandoned_;
+        volatile long runStart_;
+
+        /**
+         * Constructor.
+         *
+         * @param  exec  executable to run
+         */
+        Job( Executable exec ) {
+            exec_ = exec;
+        }
+
+        public Object call() throws TaskException, IOException {
+            synchronized ( this ) {
+                if ( isAbandoned_ ) {
+                    return null;
+                }
+                isRunning_ = true;
+            }
+            runStart_ = System.nanoTime();
+            try {
+                exec_.execute();
+            }
+            finally {
+                synchronized ( this ) {
+                    isRunning_ = false;
+                    notifyAll();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Ensures that this job will not start running if it has not
+         * already, and blocks until it has finished if it has.
+         * The wait is not interruptible; if the calling thread is
+         * interrupted, its interrupted status is set on return.
+         */
+        synchronized void awaitStopped() {
+            isAbandoned_ = true;
+            boolean interrupted = false;
+            while ( isRunning_ ) {
+                try {
+                    wait();
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Accumulates timing statistics for requests for a single task.
+     */
+    public static class TaskStats {
+        private long count_;
+        private long nFail_;
+        private long totalNanos_;
+        private long maxNanos_;
+        private long queueNanos_;
+
+        /**
+         * Records a request.
+         *
+         * @param  nanos  total request time in nanoseconds
+         * @param  queueNanos  time spent waiting in the queue in nanoseconds
+         * @param  ok   true iff the request completed successfully
+         */
+        void add( long nanos, long queueNanos, boolean ok ) {
+            count_++;
+            if ( ! ok ) {
+                nFail_++;
+            }
+            totalNanos_ += nanos;
+            maxNanos_ = Math.max( maxNanos_, nanos );
+            queueNanos_ += queueNanos;
+        }
+
+        /**
+         * Returns a copy of this object.
+         *
+         * @return  copy
+         */
+        TaskStats copy() {
+            TaskStats stats = new TaskStats();
+            stats.count_ = count_;
+            stats.nFail_ = nFail_;
+            stats.totalNanos_ = totalNanos_;
+            stats.maxNanos_ = maxNanos_;
+            stats.queueNanos_ = queueNanos_;
+            return stats;
+        }
+
+        /**
+         * Returns the number of requests recorded.
+         *
+         * @return  request count
+         */
+        public long getCount() {
+            return count_;
+        }
+
+        /**
+         * Returns the number of requests which did not complete
+         * successfully.
+         *
+         * @return  failure count
+         */
+        public long getFailureCount() {
+            return nFail_;
+        }
+
+        /**
+         * Returns the mean request latency, including queueing time.
+         *
+         * @return  mean latency in milliseconds
+         */
+        public double getMeanMillis() {
+            return count_ == 0 ? Double.NaN
+                               : totalNanos_ * 1e-6 / count_;
+        }
+
+        /**
+         * Returns the maximum request latency, including queueing time.
+         *
+         * @return  maximum latency in milliseconds
+         */
+        public double getMaxMillis() {
+            return maxNanos_ * 1e-6;
+        }
+
+        /**
+         * Returns the mean time requests spent waiting in the queue.
+         *
+         * @return  mean queue time in milliseconds
+         */
+        public double getMeanQueueMillis() {
+            return count_ == 0 ? Double.NaN
+                               : queueNanos_ * 1e-6 / count_;
+        }
+    }
+}
@@ -8,6 +8,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -44,6 +46,7 @@ public class TaskServlet extends HttpServlet {
     private StarTableOutput tableOutput_;
     private JDBCAuthenticator jdbcAuth_;
     private Collection taskNameSet_;
+    private TaskScheduler scheduler_;
 
     public void init( ServletConfig config ) throws ServletException {
         super.init( config );
@@ -60,6 +63,9 @@ public class TaskServlet extends HttpServlet {
 
         /* Set up table factory. */
         tableFactory_ = sContext.getTableFactory();
+
+        /* Set up worker pool, if any. */
+        scheduler_ = sContext.getTaskScheduler();
     }
 
 
@@ -154,7 +160,25 @@ public class TaskServlet extends HttpServlet {
                     return;
                 }
                 try {
-                    exec.execute();
+                    if ( scheduler_ == null ) {
+                        exec.execute();
+                    }
+                    else {
+                        scheduler_.execute( taskName, exec );
+                    }
+                }
+                catch ( RejectedExecutionException e ) {
+                    replyError( response, 503,
+                                new IOException( "Server busy" ) );
+                }
+                catch ( TimeoutException e ) {
+                    if ( ! response.isCommitted() ) {
+                        replyError( response, 503,
+                                    new IOException( "Request timed out" ) );
+                    }
+                    else {
+                        throw new ServletException( "Request timed out", e );
+                    }
                 }
                 catch ( TaskException e ) {
                     if ( ! response.isCommitted() ) {
@@ -0,0 +1,242 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Memory-budgeted cache of encoded image tiles keyed by string.
+ *
+ * <p>Tiles are retained in least recently used order until their
+ * total size exceeds the budget, at which point the least recently
+ * used ones are discarded.
+ * Concurrent requests for the same tile which is not yet cached
+ * wait for a single rendering rather than rendering it several times.
+ * If rendering fails, nothing is cached, so that a later request
+ * will try again.
+ */
+public class TileCache {
+
+    private final long maxBytes_;
+    private final Map<String,Entry> map_;
+    private long totalBytes_;
+    private long nHit_;
+    private long nMiss_;
+    private long nEvict_;
+
+    /**
+     * Constructor.
+     *
+     * @param  maxBytes  maximum total size in bytes of cached tiles;
+     *                   if zero, tiles are not retained, though concurrent
+     *                   requests are still combined
+     */
+    public TileCache( long maxBytes ) {
+        maxBytes_ = maxBytes;
+        map_ = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+    }
+
+    /**
+     * Returns the size budget for this cache.
+     *
+     * @return  maximum total tile size in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes_;
+    }
+
+    /**
+     * Returns the content of a tile, using a cached copy if one is
+     * available.  The returned array is shared and must not be modified.
+     *
+     * <p>If the renderer fails with an exception which is not an
+     * IOException or unchecked exception, it is thrown as the cause
+     * of an IOException.
+     *
+     * @param  key   tile key
+     * @param  renderer  supplies the tile content if it is not cached
+     * @return  tile content
+     */
+    public byte[] getTile( String key, Callable<byte[]> renderer )
+            throws IOException {
+        Entry entry;
+        boolean isNew;
+        synchronized ( this ) {
+            entry = map_.get( key );
+            isNew = entry == null;
+            if ( isNew ) {
+                nMiss_++;
+                entry = new Entry( new FutureTask<byte[]>( renderer ) );
+                map_.put( key, entry );
+            }
+            else {
+                nHit_++;
+            }
+        }
+
+        /* Render the tile in this thread if it's new, otherwise wait for
+         * whichever thread is rendering it. */
+        if ( isNew ) {
+            entry.loader_.run();
+        }
+        byte[] tile;
+        try {
+            tile = entry.loader_.get();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw (IOException)
+                  new IOException( "Interrupted" ).initCause( e );
+        }
+        catch ( ExecutionException e ) {
+            synchronized ( this ) {
+                if ( map_.get( key ) == entry ) {
+                    map_.remove( key );
+                }
+            }
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            else {
+                throw (IOException) new IOException( cause.getMessage() )
+                                   .initCause( cause );
+            }
+        }
+
+        /* Record the size of a newly rendered tile and trim the cache
+         * to its budget. */
+        if ( isNew ) {
+            synchronized ( this ) {
+                entry.nbyte_ = tile.length;
+                if ( map_.get( key ) == entry ) {
+                    totalBytes_ += tile.length;
+                    trim();
+                }
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Discards all cached tiles whose keys start with a given prefix.
+     *
+     * @param  prefix  key prefix
+     */
+    public synchronized void clear( String prefix ) {
+        for ( Iterator<Map.Entry<String,Entry>> it =
+                  map_.entrySet().iterator();
+              it.hasNext(); ) {
+            Map.Entry<String,Entry> mapEntry = it.next();
+            if ( mapEntry.getKey().startsWith( prefix ) ) {
+                it.remove();
+                long nbyte = mapEntry.getValue().nbyte_;
+                if ( nbyte > 0 ) {
+                    totalBytes_ -= nbyte;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles currently cached.
+     *
+     * @return  cached tile count
+     */
+    public synchronized int getTileCount() {
+        return map_.size();
+    }
+
+    /**
+     * Returns the total size of the tiles currently cached.
+     *
+     * @return   size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * Returns the number of requests which were satisfied from the cache.
+     *
+     * @return  hit count
+     */
+    public synchronized long getHitCount() {
+        return nHit_;
+    }
+
+    /**
+     * Returns the number of requests which required rendering.
+     *
+     * @return  miss count
+     */
+    public synchronized long getMissCount() {
+        return nMiss_;
+    }
+
+    /**
+     * Returns the number of tiles which have been discarded to keep
+     * within the size budget.
+     *
+     * @return  eviction count
+     */
+    public synchronized long getEvictionCount() {
+        return nEvict_;
+    }
+
+    /**
+     * Returns the proportion of requests satisfied from the cache.
+     *
+     * @return  hit rate in the range 0..1, or NaN if there have been
+     *          no requests
+     */
+    public synchronized double getHitRate() {
+        long nreq = nHit_ + nMiss_;
+        return nreq == 0 ? Double.NaN : nHit_ / (double) nreq;
+    }
+
+    /**
+     * Discards least recently used completed entries until the cache
+     * is within its budget.
+     * Must be called while synchronized on this object.
+     */
+    private void trim() {
+        for ( Iterator<Entry> it = map_.values().iterator();
+              it.hasNext() && totalBytes_ > maxBytes_; ) {
+            Entry entry = it.next();
+            if ( entry.nbyte_ >= 0 ) {
+                it.remove();
+                totalBytes_ -= entry.nbyte_;
+                nEvict_++;
+            }
+        }
+    }
+
+    /**
+     * Cache entry.
+     */
+    private static class Entry {
+        final FutureTask<byte[]> loader_;
+        long nbyte_;
+
+        /**
+         * Constructor.
+         *
+         * @param  loader  task which supplies the tile content
+         */
+        Entry( FutureTask<byte[]> loader ) {
+            loader_ = loader;
+            nbyte_ = -1;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.starlink.table.StarTableFactory;
+import uk.ac.starlink.table.StarTableOutput;
+import uk.ac.starlink.task.Executable;
+import uk.ac.starlink.task.Task;
+import uk.ac.starlink.task.TaskException;
+import uk.ac.starlink.ttools.Stilts;
+import uk.ac.starlink.ttools.plot2.task.AbstractPlot2Task;
+import uk.ac.starlink.ttools.plot2.task.DataStoreParameter;
+import uk.ac.starlink.ttools.plot2.task.TileRenderer;
+import uk.ac.starlink.util.ObjectFactory;
+
+/**
+ * Servlet which serves PNG tiles of plot2 plots for use by
+ * web map clients.
+ *
+ * <p>A tile is requested with a URL of the form
+ * <code>&lt;servlet&gt;/&lt;task&gt;/&lt;z&gt;/&lt;x&gt;/&lt;y&gt;.png</code>,
+ * with query parameters giving the plot parameters as for the
+ * corresponding STILTS task, for instance
+ * <code>.../plot2sky/3/5/2.png?layer1=mark&amp;in1=cat.fits&amp;...</code>.
+ * The zoom level <code>z</code> and tile indices <code>x</code>
+ * and <code>y</code> are as described by
+ * {@link uk.ac.starlink.ttools.plot2.task.TileRenderer}.
+ *
+ * <p>The first request for a given plot specification reads the data
+ * and keeps it in memory, so that later tiles of the same plot can
+ * be painted without re-reading it; a limited number of such plots
+ * are kept in least recently used order.
+ * Rendered tiles are kept in a shared {@link TileCache}.
+ * If the server has a {@link TaskScheduler}, data loading and
+ * tile rendering are performed by its worker threads,
+ * subject to its queue limit and timeout.
+ */
+public class TileServlet extends HttpServlet {
+
+    private ObjectFactory<Task> taskFactory_;
+    private StarTableFactory tableFactory_;
+    private StarTableOutput tableOutput_;
+    private Collection taskNameSet_;
+    private TaskScheduler scheduler_;
+    private TileCache tileCache_;
+    private Map<String,FutureTask<TileRenderer>> rendererMap_;
+
+    /** Side length in pixels of served tiles. */
+    public static final int TILE_SIZE = 256;
+
+    /** Maximum number of plot specifications whose data is kept resident. */
+    public static final int MAX_PLOTS = 16;
+
+    private static final Pattern TILE_REGEX =
+        Pattern.compile( "/*([A-Za-z0-9_]+)/([0-9]+)/([0-9]+)/([0-9]+)"
+                       + "\\.png" );
+    private static final Logger logger_ =
+        Logger.getLogger( "uk.ac.starlink.ttools.server" );
+
+    public void init( ServletConfig config ) throws ServletException {
+        super.init( config );
+        taskFactory_ = Stilts.getTaskFactory();
+        tableOutput_ = new StarTableOutput();
+        ServletContext context = config.getServletContext();
+        StiltsContext sContext = new StiltsContext( context );
+        String taskList =
+            context.getInitParameter( StiltsContext.TASKLIST_PARAM );
+        taskNameSet_ =
+            Arrays.asList( TaskServlet.getTaskNames( taskFactory_,
+                                                     taskList ) );
+        tableFactory_ = sContext.getTableFactory();
+        scheduler_ = sContext.getTaskScheduler();
+        tileCache_ = sContext.getTileCache();
+        rendererMap_ =
+            new LinkedHashMap<String,FutureTask<TileRenderer>>( 16, 0.75f,
+                                                                 true ) {
+                protected boolean removeEldestEntry(
+                        Map.Entry<String,FutureTask<TileRenderer>> entry ) {
+                    if ( size() > MAX_PLOTS ) {
+                        tileCache_.clear( entry.getKey() + "#" );
+                        return true;
+                    }
+                    else {
+                        return false;
+                    }
+                }
+            };
+    }
+
+    public void destroy() {
+        synchronized ( rendererMap_ ) {
+            rendererMap_.clear();
+        }
+        tableFactory_ = null;
+        super.destroy();
+    }
+
+    public String getServletInfo() {
+        return "STILTS Tile Servlet " + Stilts.getVersion();
+    }
+
+    protected void doGet( HttpServletRequest request,
+                          HttpServletResponse response )
+            throws IOException, ServletException {
+        response.setHeader( "STILTS-Version", Stilts.getVersion() );
+        String subpath = request.getPathInfo();
+        Matcher matcher = subpath == null ? null
+                                          : TILE_REGEX.matcher( subpath );
+        if ( matcher == null || ! matcher.matches() ) {
+            replyError( response, 404,
+                        new IOException( "Tile path must be of form "
+                                       + "<task>/<z>/<x>/<y>.png" ) );
+            return;
+        }
+        String taskName = matcher.group( 1 );
+        int z;
+        int x;
+        int y;
+        try {
+            z = Integer.parseInt( matcher.group( 2 ) );
+            x = Integer.parseInt( matcher.group( 3 ) );
+            y = Integer.parseInt( matcher.group( 4 ) );
+        }
+        catch ( NumberFormatException e ) {
+            replyError( response, 404, e );
+            return;
+        }
+        if ( ! taskNameSet_.contains( taskName ) ) {
+            replyError( response, 404,
+                        new IOException( "No such task: " + taskName ) );
+            return;
+        }
+        byte[] png;
+        try {
+            final TileRenderer renderer =
+                getRenderer( taskName, request, response );
+            if ( ! renderer.isValidTile( z, x, y ) ) {
+                replyError( response, 404,
+                            new IOException( "No such tile: " + z + "/"
+                                           + x + "/" + y ) );
+                return;
+            }
+            final int z0 = z;
+            final int x0 = x;
+            final int y0 = y;
+            String key = getPlotKey( taskName, request )
+                       + "#" + z + "/" + x + "/" + y;
+            png = tileCache_.getTile( key, new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return renderTile( renderer, z0, x0, y0 );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e ) {
+            replyError( response, 503, new IOException( "Server busy" ) );
+            return;
+        }
+        catch ( TimeoutException e ) {
+            replyError( response, 503,
+                        new IOException( "Request timed out" ) );
+            return;
+        }
+        catch ( IOException e ) {
+            if ( e.getCause() instanceof TimeoutException ) {
+                replyError( response, 503,
+                            new IOException( "Request timed out" ) );
+            }
+            else if ( e.getCause() instanceof TaskException ) {
+                replyError( response, 400, e.getCause() );
+            }
+            else {
+                replyError( response, 500, e );
+            }
+            return;
+        }
+        catch ( TaskException e ) {
+            replyError( response, 400, e );
+            return;
+        }
+        catch ( Throwable e ) {
+            logger_.log( Level.WARNING, "Tile request failed", e );
+            replyError( response, 500, e );
+            return;
+        }
+        response.setStatus( 200 );
+        response.setContentType( "image/png" );
+        response.setContentLength( png.length );
+        OutputStream out = response.getOutputStream();
+        out.write( png );
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Renders a tile, using the scheduler if there is one.
+     *
+     * @param  renderer  tile renderer
+     * @param  z  zoom level
+     * @param  x  horizontal tile index
+     * @param  y  vertical tile index
+     * @return   PNG content
+     */
+    private byte[] renderTile( final TileRenderer renderer,
+                               final int z, final int x, final int y )
+            throws Exception {
+        if ( scheduler_ == null ) {
+            return renderer.createTilePng( z, x, y );
+        }
+        else {
+            final byte[][] result = new byte[ 1 ][];
+            scheduler_.execute( "tile", new Executable() {
+                public void execute() throws IOException {
+                    result[ 0 ] = renderer.createTilePng( z, x, y );
+                }
+            } );
+            return result[ 0 ];
+        }
+    }
+
+    /**
+     * Returns a tile renderer for the plot specified by a request,
+     * creating it and reading its data if necessary.
+     * If the server has a scheduler, the data is read by one of its
+     * worker threads.  If the read is rejected, times out or fails,
+     * the renderer is not retained, and any other requests waiting
+     * for it fail too.
+     *
+     * @param  taskName  plot task name
+     * @param  request   request, whose parameters specify the plot
+     * @param  response  response
+     * @return   tile renderer
+     */
+    private TileRenderer getRenderer( final String taskName,
+                                      HttpServletRequest request,
+                                      HttpServletResponse response )
+            throws Exception {
+        final Task task = taskFactory_.createObject( taskName );
+        if ( ! ( task instanceof AbstractPlot2Task ) ) {
+            throw new TaskException( "Not a plot task: " + taskName );
+        }
+        final ServletEnvironment env =
+            new ServletEnvironment( request, response, tableFactory_,
+                                    tableOutput_, null );
+        String key = getPlotKey( taskName, request );
+        FutureTask<TileRenderer> future;
+        boolean isNew;
+        synchronized ( rendererMap_ ) {
+            future = rendererMap_.get( key );
+            isNew = future == null;
+            if ( isNew ) {
+                future = new FutureTask<TileRenderer>(
+                                 new Callable<TileRenderer>() {
+                    public TileRenderer call() throws Exception {
+                        logger_.info( "Preparing tiles for " + taskName );
+                        return ((AbstractPlot2Task) task)
+                              .createTileRenderer( env,
+                                                   DataStoreParameter
+                                                  .SMART_CACHE,
+                                                   TILE_SIZE );
+                    }
+                } );
+                rendererMap_.put( key, future );
+            }
+        }
+        if ( isNew ) {
+            if ( scheduler_ == null ) {
+                future.run();
+            }
+            else {
+                final FutureTask<TileRenderer> loader = future;
+                try {
+                    scheduler_.execute( "tiledata", new Executable() {
+                        public void execute() {
+                            loader.run();
+                        }
+                    } );
+                }
+                catch ( Exception e ) {
+                    future.cancel( true );
+                    discardRenderer( key, future );
+                    throw e;
+                }
+            }
+        }
+        try {
+            return future.get();
+        }
+        catch ( CancellationException e ) {
+            throw new TaskException( "Data load abandoned", e );
+        }
+        catch ( ExecutionException e ) {
+            discardRenderer( key, future );
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception
+                ? (Exception) cause
+                : new TaskException( cause.getMessage(), cause );
+        }
+    }
+
+    /**
+     * Removes a renderer from the map of known renderers,
+     * if it is still present.
+     *
+     * @param  key   plot key
+     * @param  future   renderer entry
+     */
+    private void discardRenderer( String key,
+                                  FutureTask<TileRenderer> future ) {
+        synchronized ( rendererMap_ ) {
+            if ( rendererMap_.get( key ) == future ) {
+                rendererMap_.remove( key );
+            }
+        }
+    }
+
+    /**
+     * Returns a string which uniquely identifies the plot specified
+     * by a request, independent of the tile requested.
+     *
+     * @param  taskName  plot task name
+     * @param  request   request
+     * @return   plot key
+     */
+    private static String getPlotKey( String taskName,
+                                      HttpServletRequest request ) {
+        StringBuffer sbuf = new StringBuffer( taskName );
+        TreeSet<String> names = new TreeSet<String>();
+        for ( Enumeration en = request.getParameterNames();
+              en.hasMoreElements(); ) {
+            names.add( (String) en.nextElement() );
+        }
+        for ( String name : names ) {
+            String[] values = request.getParameterValues( name );
+            for ( int i = 0; i < values.length; i++ ) {
+                sbuf.append( '\n' )
+                    .append( name )
+                    .append( '=' )
+                    .append( values[ i ] );
+            }
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * Writes error information to the response.
+     *
+     * @param   response  destination
+     * @param   code   3-digit HTTP response code
+     * @param   error  exception to be passed to caller
+     */
+    private void replyError( HttpServletResponse response, int code,
+                             Throwable error )
+            throws IOException, ServletException {
+        if ( response.isCommitted() ) {
+            throw new ServletException( "Error after response commit", error );
+        }
+        else {
+            response.setStatus( code );
+            response.setContentType( "text/plain" );
+            PrintStream pout = new PrintStream( response.getOutputStream() );
+            pout.println( error.getMessage() );
+            pout.flush();
+            pout.close();
+        }
+    }
+}
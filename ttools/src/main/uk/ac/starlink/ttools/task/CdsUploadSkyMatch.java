@@ -3,6 +3,7 @@ package uk.ac.starlink.ttools.task;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,12 +22,15 @@ import uk.ac.starlink.task.StringParameter;
 import uk.ac.starlink.task.TaskException;
 import uk.ac.starlink.task.URLParameter;
 import uk.ac.starlink.ttools.cone.BlockUploader;
+import uk.ac.starlink.ttools.cone.CachingUploadMatcher;
 import uk.ac.starlink.ttools.cone.CdsUploadMatcher;
 import uk.ac.starlink.ttools.cone.Coverage;
 import uk.ac.starlink.ttools.cone.CoverageQuerySequenceFactory;
 import uk.ac.starlink.ttools.cone.HealpixSortedQuerySequenceFactory;
 import uk.ac.starlink.ttools.cone.JELQuerySequenceFactory;
 import uk.ac.starlink.ttools.cone.QuerySequenceFactory;
+import uk.ac.starlink.ttools.cone.ResponseCache;
+import uk.ac.starlink.ttools.cone.ResponseCacheParameter;
 import uk.ac.starlink.ttools.cone.ServiceFindMode;
 import uk.ac.starlink.ttools.cone.UploadMatcher;
 import uk.ac.starlink.ttools.cone.UrlMocCoverage;
@@ -51,6 +55,7 @@ public class CdsUploadSkyMatch extends SingleMapperTask {
     private final URLParameter urlParam_;
     private final BooleanParameter usemocParam_;
     private final BooleanParameter presortParam_;
+    private final ResponseCacheParameter cacheParam_;
     private final JoinFixActionParameter fixcolsParam_;
     private final StringParameter insuffixParam_;
     private final StringParameter cdssuffixParam_;
@@ -245,6 +250,9 @@ public class CdsUploadSkyMatch extends SingleMapperTask {
         presortParam_.setBooleanDefault( false );
         paramList.add( presortParam_ );
 
+        cacheParam_ = new ResponseCacheParameter( "cache" );
+        paramList.addAll( Arrays.asList( cacheParam_.getAllParameters() ) );
+
         fixcolsParam_ = new JoinFixActionParameter( "fixcols" );
         insuffixParam_ =
             fixcolsParam_.createSuffixParameter( "suffixin",
@@ -288,16 +296,31 @@ public class CdsUploadSkyMatch extends SingleMapperTask {
                                 ? UrlMocCoverage.getVizierMoc( cdsName, -1 )
                                 : null;
         final boolean presort = presortParam_.booleanValue( env );
+        final StoragePolicy storage =
+            LineTableEnvironment.getStoragePolicy( env );
         UploadMatcher umatcher =
             new CdsUploadMatcher( url, cdsId, sr, serviceMode, coding );
+        ResponseCache cache = cacheParam_.objectValue( env );
+        if ( cache != null ) {
+            String keyPrefix = new StringBuffer()
+                .append( "cdsxmatch\n" )
+                .append( url )
+                .append( '\n' )
+                .append( cdsId )
+                .append( '\n' )
+                .append( sr )
+                .append( '\n' )
+                .append( serviceMode )
+                .toString();
+            umatcher = new CachingUploadMatcher( umatcher, cache, keyPrefix,
+                                                 storage );
+        }
         String tableName = "xmatch(" + cdsIdToTableName( cdsId ) + ")";
         JoinFixAction inFixAct =
             fixcolsParam_.getJoinFixAction( env, insuffixParam_ );
         JoinFixAction cdsFixAct =
             fixcolsParam_.getJoinFixAction( env, cdssuffixParam_ );
         final TableProducer inProd = createInputProducer( env );
-        final StoragePolicy storage =
-            LineTableEnvironment.getStoragePolicy( env );
         boolean uploadEmpty = CdsUploadMatcher.UPLOAD_EMPTY;
         final BlockUploader blocker =
             new BlockUploader( umatcher, blocksize, maxrec, tableName,
@@ -88,7 +88,8 @@ public abstract class ConsumerTask implements Task {
     public abstract TableProducer createProducer( Environment env )
             throws TaskException;
 
-    public Executable createExecutable( Environment env ) throws TaskException {
+    public Executable createExecutable( final Environment env )
+            throws TaskException {
 
         /* Get the object which will provide the effective input table. */
         final TableProducer producer = createProducer( env );
@@ -109,6 +110,10 @@ public abstract class ConsumerTask implements Task {
                 for ( int i = 0; i < outSteps.length; i++ ) {
                     table = outSteps[ i ].wrap( table );
                 }
+                if ( outSteps.length > 0 ) {
+                    table = LineTableEnvironment
+                           .pipelineStage( env, table, "ocmd" );
+                }
                 baseConsumer.consume( table );
             }
         };
@@ -171,7 +176,7 @@ public abstract class ConsumerTask implements Task {
      * @return  table producer, or null if the table input parameter has a
      *          (permitted) blank value
      */
-    public static TableProducer createProducer( Environment env, 
+    public static TableProducer createProducer( final Environment env, 
                                                 FilterParameter filterParam,
                                                 InputTableParameter inParam )
             throws TaskException {
@@ -188,10 +193,15 @@ public abstract class ConsumerTask implements Task {
         };
         return new TableProducer() {
             public StarTable getTable() throws IOException {
-                StarTable table = inTable;
+                StarTable table =
+                    LineTableEnvironment.pipelineStage( env, inTable, "read" );
                 for ( int i = 0; i < steps.length; i++ ) {
                     table = steps[ i ].wrap( table );
                 }
+                if ( steps.length > 0 ) {
+                    table = LineTableEnvironment
+                           .pipelineStage( env, table, "cmd" );
+                }
                 return new IdentifiedStarTable( table, identity );
             }
         };
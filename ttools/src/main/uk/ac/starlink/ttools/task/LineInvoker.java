@@ -160,6 +160,10 @@ public class LineInvoker {
                     it.remove();
                     bench = true;
                 }
+                else if ( arg.equals( "-pipeline" ) ) {
+                    it.remove();
+                    env.setPipeline( true );
+                }
                 else if ( arg.equals( "-memgui" ) ) {
                     it.remove();
                     memgui = true;
@@ -625,6 +629,7 @@ public class LineInvoker {
             .append( " [-memory]" )
             .append( " [-disk]" )
             .append( " [-memgui]" )
+            .append( " [-pipeline]" )
             .append( '\n' )
             .append( pad )
             .append( " [-checkversion <vers>]" )
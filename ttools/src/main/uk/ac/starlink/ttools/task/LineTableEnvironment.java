@@ -1,5 +1,7 @@
 package uk.ac.starlink.ttools.task;
 
+import uk.ac.starlink.table.PipelineStarTable;
+import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.StarTableFactory;
 import uk.ac.starlink.table.StarTableOutput;
 import uk.ac.starlink.table.StoragePolicy;
@@ -27,6 +29,7 @@ public class LineTableEnvironment extends LineEnvironment
     private JDBCAuthenticator jdbcAuth_;
     private boolean debug_;
     private Boolean isStrict_;
+    private boolean pipeline_;
 
     public boolean isHidden( Parameter param ) {
         return param.getName().equals( "password" );
@@ -113,6 +116,26 @@ public class LineTableEnvironment extends LineEnvironment
                            : Boolean.FALSE;
     }
 
+    /**
+     * Indicates whether table processing should be pipelined,
+     * with reading, filtering and writing done in separate threads.
+     *
+     * @return  true iff pipelining is in effect
+     */
+    public boolean isPipeline() {
+        return pipeline_;
+    }
+
+    /**
+     * Sets whether table processing should be pipelined,
+     * with reading, filtering and writing done in separate threads.
+     *
+     * @param  pipeline  true to pipeline table processing
+     */
+    public void setPipeline( boolean pipeline ) {
+        pipeline_ = pipeline;
+    }
+
     /**
      * Uses {@link #normaliseName}.
      */
@@ -204,4 +227,33 @@ public class LineTableEnvironment extends LineEnvironment
              ? ((TableEnvironment) env).isStrictVotable()
              : VOElementFactory.isStrictByDefault();
     }
+
+    /**
+     * Determines whether table processing should be pipelined.
+     *
+     * @param  env  execution environment
+     * @return  true iff reading, filtering and writing of tables should
+     *          be done in separate threads
+     */
+    public static boolean isPipeline( Environment env ) {
+        return env instanceof LineTableEnvironment
+            && ((LineTableEnvironment) env).isPipeline();
+    }
+
+    /**
+     * Adds a pipeline stage to a table if pipelining is in effect
+     * for a given environment.
+     *
+     * @param  env  execution environment
+     * @param  table  input table
+     * @param  stageName  name of the stage which produces
+     *                    <code>table</code>'s rows
+     * @return  table with the same content as <code>table</code>
+     */
+    public static StarTable pipelineStage( Environment env, StarTable table,
+                                           String stageName ) {
+        return isPipeline( env )
+             ? new PipelineStarTable( table, stageName )
+             : table;
+    }
 }
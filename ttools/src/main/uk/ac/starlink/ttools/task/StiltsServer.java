@@ -16,6 +16,7 @@ import org.mortbay.http.handler.NotFoundHandler;
 import org.mortbay.jetty.servlet.ServletHandler;
 import org.mortbay.util.InetAddrPort;
 import org.mortbay.util.Resource;
+import uk.ac.starlink.task.DoubleParameter;
 import uk.ac.starlink.task.Environment;
 import uk.ac.starlink.task.Executable;
 import uk.ac.starlink.task.IntegerParameter;
@@ -26,9 +27,11 @@ import uk.ac.starlink.task.Task;
 import uk.ac.starlink.task.TaskException;
 import uk.ac.starlink.ttools.Stilts;
 import uk.ac.starlink.ttools.server.FormServlet;
+import uk.ac.starlink.ttools.server.MetricsServlet;
 import uk.ac.starlink.ttools.server.ServletEnvironment;
 import uk.ac.starlink.ttools.server.StiltsContext;
 import uk.ac.starlink.ttools.server.TaskServlet;
+import uk.ac.starlink.ttools.server.TileServlet;
 import uk.ac.starlink.ttools.task.TableFactoryParameter;
 import uk.ac.starlink.util.ObjectFactory;
 
@@ -49,6 +52,11 @@ public class StiltsServer implements Task {
     private final StringParameter baseParam_;
     private final StringParameter tasksParam_;
     private final TableFactoryParameter tfactParam_;
+    private final DoubleParameter cacheParam_;
+    private final IntegerParameter workersParam_;
+    private final IntegerParameter queueParam_;
+    private final DoubleParameter timeoutParam_;
+    private final DoubleParameter tilecacheParam_;
 
     /**
      * Constructor.
@@ -111,6 +119,88 @@ public class StiltsServer implements Task {
         tasksParam_.setStringDefault( tasksDefault );
 
         tfactParam_ = new TableFactoryParameter( "tablefactory" );
+
+        cacheParam_ = new DoubleParameter( "cachemb" );
+        cacheParam_.setPrompt( "Table cache size in Mbyte" );
+        cacheParam_.setUsage( "<mbyte>" );
+        cacheParam_.setMinimum( 0, true );
+        cacheParam_.setDescription( new String[] {
+            "<p>Approximate maximum size in megabytes of the cache",
+            "of input tables kept by the server.",
+            "Tables named as task inputs are loaded the first time",
+            "they are used, and kept for use by later requests",
+            "until the total size of cached tables exceeds this value,",
+            "at which point the least recently used ones are discarded.",
+            "Local files which have changed since they were cached",
+            "are reloaded, and tables from other locations, such as",
+            "remote URLs, are reloaded if they were cached more than",
+            ( StiltsContext.TABLECACHE_MAXAGE_SEC / 60 ) + " minutes ago.",
+            "Sizes are estimated from the table row count and column types,",
+            "so this is only a rough limit.",
+            "The default value of zero disables caching.",
+            "</p>",
+        } );
+        cacheParam_.setDoubleDefault( 0 );
+
+        workersParam_ = new IntegerParameter( "workers" );
+        workersParam_.setPrompt( "Maximum number of concurrent tasks" );
+        workersParam_.setMinimum( 0 );
+        workersParam_.setDescription( new String[] {
+            "<p>Maximum number of task requests that will be executed",
+            "concurrently.",
+            "Further requests wait in a queue until a worker is available.",
+            "If set to zero, the default,",
+            "requests are executed as soon as they arrive",
+            "with no limit on concurrency, and no metrics",
+            "on task execution are gathered.",
+            "</p>",
+        } );
+        workersParam_.setIntDefault( 0 );
+
+        queueParam_ = new IntegerParameter( "queue" );
+        queueParam_.setPrompt( "Maximum number of queued requests" );
+        queueParam_.setMinimum( 1 );
+        queueParam_.setDescription( new String[] {
+            "<p>Maximum number of task requests that may be waiting",
+            "for a worker to become available.",
+            "If the queue is full, further requests are rejected",
+            "with a 503 (Service Unavailable) HTTP response.",
+            "Only used if the <code>workers</code> parameter is non-zero.",
+            "</p>",
+        } );
+        queueParam_.setIntDefault( StiltsContext.DFLT_QUEUE );
+
+        timeoutParam_ = new DoubleParameter( "timeout" );
+        timeoutParam_.setPrompt( "Request timeout in seconds" );
+        timeoutParam_.setUsage( "<sec>" );
+        timeoutParam_.setMinimum( 0, true );
+        timeoutParam_.setNullPermitted( true );
+        timeoutParam_.setDescription( new String[] {
+            "<p>Maximum time in seconds that a task request may take,",
+            "including time spent waiting in the queue.",
+            "Requests which exceed this limit are interrupted,",
+            "and if no output has yet been sent a 503 HTTP response",
+            "is returned.",
+            "If null, there is no limit.",
+            "Only used if the <code>workers</code> parameter is non-zero.",
+            "</p>",
+        } );
+
+        tilecacheParam_ = new DoubleParameter( "tilecachemb" );
+        tilecacheParam_.setPrompt( "Plot tile cache size in Mbyte" );
+        tilecacheParam_.setUsage( "<mbyte>" );
+        tilecacheParam_.setMinimum( 0, true );
+        tilecacheParam_.setDescription( new String[] {
+            "<p>Maximum size in megabytes of the cache of rendered",
+            "PNG plot tiles kept by the server.",
+            "Tiles are served below the <code>tile/</code> path",
+            "for plot tasks, and once rendered are kept for later requests",
+            "until the total size of cached tiles exceeds this value,",
+            "at which point the least recently used ones are discarded.",
+            "A value of zero disables tile caching.",
+            "</p>",
+        } );
+        tilecacheParam_.setDoubleDefault( StiltsContext.DFLT_TILECACHE_MB );
     }
 
     public String getPurpose() {
@@ -123,6 +213,11 @@ public class StiltsServer implements Task {
             baseParam_,
             tasksParam_,
             tfactParam_,
+            cacheParam_,
+            workersParam_,
+            queueParam_,
+            timeoutParam_,
+            tilecacheParam_,
         };
     }
 
@@ -132,6 +227,11 @@ public class StiltsServer implements Task {
         final String base = basePath == null ? "" : basePath;
         final String tasks = tasksParam_.stringValue( env );
         final String factorySpec = tfactParam_.stringValue( env );
+        final double cacheMb = cacheParam_.doubleValue( env );
+        final int nworker = workersParam_.intValue( env );
+        final int queue = queueParam_.intValue( env );
+        final double timeout = timeoutParam_.doubleValue( env );
+        final double tileCacheMb = tilecacheParam_.doubleValue( env );
         try {
             TaskServlet.getTaskNames( Stilts.getTaskFactory(), tasks );
         }
@@ -153,12 +253,29 @@ public class StiltsServer implements Task {
                 handler.addServlet( "STILTS Forms", base + "/form/*",
                                     FormServlet.class.getName() );
                 baseList.add( base + "/form/" );
+                handler.addServlet( "STILTS Metrics", base + "/metrics",
+                                    MetricsServlet.class.getName() );
+                baseList.add( base + "/metrics" );
+                handler.addServlet( "STILTS Tiles", base + "/tile/*",
+                                    TileServlet.class.getName() );
                 String[] bases = (String[]) baseList.toArray( new String[ 0 ] );
                 context.addHandler( new FallbackHandler( bases ) );
 
                 context.setInitParameter( StiltsContext.TASKBASE_PARAM,
                                           base + "/task" );
                 context.setInitParameter( StiltsContext.TASKLIST_PARAM, tasks );
+                context.setInitParameter( StiltsContext.TABLECACHE_PARAM,
+                                          Double.toString( cacheMb ) );
+                context.setInitParameter( StiltsContext.WORKERS_PARAM,
+                                          Integer.toString( nworker ) );
+                context.setInitParameter( StiltsContext.QUEUE_PARAM,
+                                          Integer.toString( queue ) );
+                context.setInitParameter( StiltsContext.TILECACHE_PARAM,
+                                          Double.toString( tileCacheMb ) );
+                if ( timeout > 0 ) {
+                    context.setInitParameter( StiltsContext.TIMEOUT_PARAM,
+                                              Double.toString( timeout ) );
+                }
                 if ( factorySpec != null ) {
                     context.setInitParameter( StiltsContext.TABLEFACTORY_PARAM,
                                               factorySpec );
@@ -54,7 +54,9 @@ public class TableCopy implements Task {
     }
 
     public Executable createExecutable( Environment env ) throws TaskException {
-        final StarTable inTable = inParam_.tableValue( env );
+        final StarTable inTable =
+            LineTableEnvironment
+           .pipelineStage( env, inParam_.tableValue( env ), "read" );
         final TableConsumer consumer = outParam_.consumerValue( env );
         return new Executable() {
             public void execute() throws IOException {
@@ -20,8 +20,11 @@ import uk.ac.starlink.task.Parameter;
 import uk.ac.starlink.task.StringParameter;
 import uk.ac.starlink.task.TaskException;
 import uk.ac.starlink.ttools.cone.BlockUploader;
+import uk.ac.starlink.ttools.cone.CachingUploadMatcher;
 import uk.ac.starlink.ttools.cone.JELQuerySequenceFactory;
 import uk.ac.starlink.ttools.cone.QuerySequenceFactory;
+import uk.ac.starlink.ttools.cone.ResponseCache;
+import uk.ac.starlink.ttools.cone.ResponseCacheParameter;
 import uk.ac.starlink.ttools.cone.ServiceFindMode;
 import uk.ac.starlink.ttools.cone.TapUploadMatcher;
 import uk.ac.starlink.ttools.cone.UploadMatcher;
@@ -50,6 +53,7 @@ public class TapUploadSkyMatch extends SingleMapperTask {
     private final BooleanParameter syncParam_;
     private final LongParameter tapmaxrecParam_;
     private final ContentCodingParameter codingParam_;
+    private final ResponseCacheParameter cacheParam_;
     private final JoinFixActionParameter fixcolsParam_;
     private final StringParameter insuffixParam_;
     private final StringParameter tapsuffixParam_;
@@ -271,6 +275,9 @@ public class TapUploadSkyMatch extends SingleMapperTask {
         codingParam_ = new ContentCodingParameter();
         paramList.add( codingParam_ );
 
+        cacheParam_ = new ResponseCacheParameter( "cache" );
+        paramList.addAll( Arrays.asList( cacheParam_.getAllParameters() ) );
+
         fixcolsParam_ = new JoinFixActionParameter( "fixcols" );
         insuffixParam_ =
             fixcolsParam_.createSuffixParameter( "suffixin",
@@ -319,6 +326,26 @@ public class TapUploadSkyMatch extends SingleMapperTask {
                                   isSync, tapcols, serviceMode,
                                   extraParams, coding );
         final String adql = umatcher.getAdql( maxrec );
+        final StoragePolicy storage =
+            LineTableEnvironment.getStoragePolicy( env );
+        UploadMatcher cmatcher = umatcher;
+        ResponseCache cache = cacheParam_.objectValue( env );
+        if ( cache != null ) {
+            String keyPrefix = new StringBuffer()
+                .append( "tapmatch\n" )
+                .append( endpointSet.getIdentity() )
+                .append( '\n' )
+                .append( isSync ? "sync" : "async" )
+                .append( '\n' )
+                .append( extraParams )
+                .append( '\n' )
+                .append( serviceMode )
+                .append( '\n' )
+                .append( adql )
+                .toString();
+            cmatcher = new CachingUploadMatcher( umatcher, cache, keyPrefix,
+                                                 storage );
+        }
         final QuerySequenceFactory qsFact =
             new JELQuerySequenceFactory( inlonString, inlatString, "0" );
         String tableName = "tapmatch(" + taptable + ")";
@@ -327,11 +354,9 @@ public class TapUploadSkyMatch extends SingleMapperTask {
         JoinFixAction tapFixAct =
             fixcolsParam_.getJoinFixAction( env, tapsuffixParam_ );
         final TableProducer inProd = createInputProducer( env );
-        final StoragePolicy storage =
-            LineTableEnvironment.getStoragePolicy( env );
         boolean uploadEmpty = true;
         final BlockUploader blocker =
-            new BlockUploader( umatcher, blocksize, maxrec, tableName,
+            new BlockUploader( cmatcher, blocksize, maxrec, tableName,
                                inFixAct, tapFixAct, serviceMode, oneToOne,
                                uploadEmpty );
         blocker.setTruncationAdvice( "Reduce " + chunkParam_.getName() + "? "
@@ -0,0 +1,104 @@
+package uk.ac.starlink.ttools.cone;
+
+import junit.framework.TestCase;
+
+public class ConcurrencyLimiterTest extends TestCase {
+
+    private static final long MS = 1000 * 1000;
+
+    public ConcurrencyLimiterTest( String name ) {
+        super( name );
+    }
+
+    public void testFixed() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter( 4, false );
+        assertEquals( 4, limiter.getLimit() );
+        for ( int i = 0; i < 4; i++ ) {
+            limiter.acquire();
+        }
+        for ( int i = 0; i < 4; i++ ) {
+            limiter.release( 1000 * MS, false );
+        }
+        assertEquals( 4, limiter.getLimit() );
+        assertEquals( 4, limiter.getFailureCount() );
+    }
+
+    public void testAdaptive() throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter( 8, true );
+        assertEquals( 1, limiter.getLimit() );
+
+        /* Steady latency ramps up to the maximum. */
+        runRounds( limiter, 20, 100 * MS );
+        assertEquals( 8, limiter.getLimit() );
+        assertEquals( 8, limiter.getPeakLimit() );
+
+        /* A failure halves the limit; failures of requests already
+         * in progress don't reduce it further straight away. */
+        for ( int i = 0; i < 8; i++ ) {
+            limiter.acquire();
+        }
+        limiter.release( 100 * MS, false );
+        assertEquals( 4, limiter.getLimit() );
+        for ( int i = 0; i < 3; i++ ) {
+            limiter.release( 100 * MS, false );
+        }
+        assertEquals( 4, limiter.getLimit() );
+        for ( int i = 0; i < 4; i++ ) {
+            limiter.release( 100 * MS, true );
+        }
+        assertEquals( 4, limiter.getFailureCount() );
+
+        /* Much increased latency reduces the limit. */
+        int limit0 = limiter.getLimit();
+        runRounds( limiter, 3, 1000 * MS );
+        assertTrue( limiter.getLimit() < limit0 );
+        runRounds( limiter, 20, 1000 * MS );
+        assertEquals( 1, limiter.getLimit() );
+
+        /* Recovery of latency allows it to ramp up again. */
+        runRounds( limiter, 20, 100 * MS );
+        assertEquals( 8, limiter.getLimit() );
+    }
+
+    public void testBlocking() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter( 2, true );
+        limiter.acquire();
+        final boolean[] acquired = new boolean[ 1 ];
+        Thread th = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire();
+                    synchronized ( acquired ) {
+                        acquired[ 0 ] = true;
+                    }
+                }
+                catch ( InterruptedException e ) {
+                }
+            }
+        };
+        th.start();
+        Thread.sleep( 100 );
+        synchronized ( acquired ) {
+            assertFalse( acquired[ 0 ] );
+        }
+        limiter.release( MS, true );
+        th.join( 5000 );
+        synchronized ( acquired ) {
+            assertTrue( acquired[ 0 ] );
+        }
+    }
+
+    private static void runRounds( ConcurrencyLimiter limiter, int nRound,
+                                   long latency )
+            throws InterruptedException {
+        for ( int ir = 0; ir < nRound; ir++ ) {
+            int n = limiter.getLimit();
+            for ( int i = 0; i < n; i++ ) {
+                limiter.acquire();
+            }
+            for ( int i = 0; i < n; i++ ) {
+                limiter.release( latency, true );
+            }
+        }
+    }
+}
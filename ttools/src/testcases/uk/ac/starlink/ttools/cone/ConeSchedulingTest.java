@@ -0,0 +1,269 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.JoinFixAction;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.RowSequence;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.Tables;
+import uk.ac.starlink.task.TaskException;
+import uk.ac.starlink.ttools.TableTestCase;
+import uk.ac.starlink.ttools.func.CoordsDegrees;
+import uk.ac.starlink.ttools.task.TableProducer;
+
+public class ConeSchedulingTest extends TableTestCase {
+
+    private final StarTable inTable_;
+    private final CatalogueSearcher searcher_;
+
+    public ConeSchedulingTest( String name ) {
+        super( name );
+        Logger.getLogger( "uk.ac.starlink.ttools.cone" )
+              .setLevel( Level.WARNING );
+        Random rnd = new Random( 2302001L );
+        inTable_ = createPositionTable( rnd, 300 );
+        searcher_ = new CatalogueSearcher( createPositionTable( rnd, 3000 ) );
+    }
+
+    public void testMerge() throws Exception {
+        for ( int ib = 0; ib < 2; ib++ ) {
+            boolean bestOnly = ib == 0;
+            StarTable ref = getResult( bestOnly, 1, false, false, 0 );
+            int nRefCall = searcher_.getCallCount();
+            assertEquals( inTable_.getRowCount(), nRefCall );
+            assertTrue( ref.getRowCount() > 50 );
+            assertEquals( 1, searcher_.getMaxActive() );
+
+            /* Merging gives the same result.  Without sorting,
+             * consecutive queries are rarely close enough to merge. */
+            StarTable merged = getResult( bestOnly, 1, false, false, 0.3 );
+            assertTrue( searcher_.getCallCount() <= nRefCall );
+            assertSameData( ref, merged );
+
+            /* Sorting and merging gives the same rows in a different
+             * order, with many fewer requests. */
+            StarTable sorted = getResult( bestOnly, 4, true, true, 0.3 );
+            int nSortCall = searcher_.getCallCount();
+            assertTrue( nSortCall < nRefCall / 3 );
+            assertTrue( searcher_.getMaxActive() <= 4 );
+            assertEquals( sortedRows( ref ), sortedRows( sorted ) );
+
+            /* Output is deterministic. */
+            for ( int i = 0; i < 3; i++ ) {
+                assertSameData( sorted,
+                                getResult( bestOnly, 4, true, true, 0.3 ) );
+                assertEquals( nSortCall, searcher_.getCallCount() );
+            }
+        }
+    }
+
+    public void testMergeNoPositions() throws Exception {
+        searcher_.setPositionless( true );
+        try {
+            StarTable ref = getResult( false, 1, false, false, 0 );
+            int nRefCall = searcher_.getCallCount();
+
+            /* Merged results can't be split without positions,
+             * so merging is abandoned after the first attempt. */
+            StarTable merged = getResult( false, 1, false, true, 0.3 );
+            assertEquals( sortedRows( ref ), sortedRows( merged ) );
+            assertEquals( nRefCall + 1, searcher_.getCallCount() );
+        }
+        finally {
+            searcher_.setPositionless( false );
+        }
+    }
+
+    public void testAdaptive() throws Exception {
+        StarTable ref = getResult( false, 1, false, false, 0 );
+        searcher_.setLatency( 5 );
+        StarTable adapt = getResult( false, 5, true, false, 0 );
+        searcher_.setLatency( 0 );
+        assertSameData( ref, adapt );
+        assertTrue( searcher_.getMaxActive() > 1 );
+        assertTrue( searcher_.getMaxActive() <= 5 );
+
+        /* Failures are retried, and the result is unaffected. */
+        searcher_.setFailures( new int[] { 10, 60 } );
+        ConeErrorPolicy retry = ConeErrorPolicy.createRetryPolicy( "r", 3 );
+        StarTable failed =
+            getResult( false, 5, true, false, 0, retry, false );
+        assertSameData( ref, failed );
+    }
+
+    private StarTable getResult( boolean bestOnly, int parallelism,
+                                 boolean adaptive, boolean presort,
+                                 double mergeRadius )
+            throws IOException, TaskException {
+        return getResult( bestOnly, parallelism, adaptive, presort,
+                          mergeRadius, ConeErrorPolicy.ABORT, true );
+    }
+
+    private StarTable getResult( boolean bestOnly, int parallelism,
+                                 boolean adaptive, boolean presort,
+                                 double mergeRadius, ConeErrorPolicy errAct,
+                                 boolean reset )
+            throws IOException, TaskException {
+        if ( reset ) {
+            searcher_.setFailures( new int[ 0 ] );
+        }
+        searcher_.reset();
+        TableProducer inProd = new TableProducer() {
+            public StarTable getTable() {
+                return inTable_;
+            }
+        };
+        ConeMatcher matcher = new ConeMatcher(
+                searcher_, errAct, inProd,
+                new JELQuerySequenceFactory( "RA", "DEC", "0.05" ), bestOnly,
+                null, false, true, parallelism, "*", "dist",
+                JoinFixAction.makeRenameDuplicatesAction( "_0" ),
+                JoinFixAction.makeRenameDuplicatesAction( "_1" ) );
+        matcher.setPresort( presort );
+        matcher.setAdaptive( adaptive );
+        matcher.setMergeRadius( mergeRadius );
+        ConeMatcher.ConeWorker worker = matcher.createConeWorker();
+        Thread thread = new Thread( worker );
+        thread.setDaemon( true );
+        thread.start();
+        return Tables.randomTable( worker.getTable() );
+    }
+
+    private static List<String> sortedRows( StarTable table )
+            throws IOException {
+        List<String> list = new ArrayList<String>();
+        RowSequence rseq = table.getRowSequence();
+        while ( rseq.next() ) {
+            StringBuffer sbuf = new StringBuffer();
+            Object[] row = rseq.getRow();
+            for ( int ic = 0; ic < row.length; ic++ ) {
+                sbuf.append( row[ ic ] ).append( ';' );
+            }
+            list.add( sbuf.toString() );
+        }
+        rseq.close();
+        Collections.sort( list );
+        return list;
+    }
+
+    private static StarTable createPositionTable( Random rnd, int nrow ) {
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "ID", Integer.class, null ),
+            new ColumnInfo( "RA", Double.class, null ),
+            new ColumnInfo( "DEC", Double.class, null ),
+        } );
+        for ( int i = 0; i < nrow; i++ ) {
+            table.addRow( new Object[] {
+                new Integer( i ),
+                new Double( 120 + 2 * rnd.nextDouble() ),
+                new Double( 30 + 2 * rnd.nextDouble() ),
+            } );
+        }
+        return table;
+    }
+
+    /**
+     * Stand-in for a cone search service, which returns the rows of
+     * a fixed catalogue within the requested cone.
+     */
+    private static class CatalogueSearcher implements ConeSearcher {
+        private final StarTable catalogue_;
+        private int nCall_;
+        private int nActive_;
+        private int maxActive_;
+        private int latency_;
+        private int[] failures_;
+        private boolean positionless_;
+
+        CatalogueSearcher( StarTable catalogue ) {
+            catalogue_ = catalogue;
+            failures_ = new int[ 0 ];
+        }
+
+        synchronized void reset() {
+            nCall_ = 0;
+            maxActive_ = 0;
+        }
+
+        synchronized void setLatency( int millis ) {
+            latency_ = millis;
+        }
+
+        synchronized void setFailures( int[] failures ) {
+            failures_ = failures;
+        }
+
+        synchronized void setPositionless( boolean positionless ) {
+            positionless_ = positionless;
+        }
+
+        synchronized int getCallCount() {
+            return nCall_;
+        }
+
+        synchronized int getMaxActive() {
+            return maxActive_;
+        }
+
+        public StarTable performSearch( double ra, double dec, double sr )
+                throws IOException {
+            int icall;
+            int latency;
+            synchronized ( this ) {
+                icall = nCall_++;
+                nActive_++;
+                maxActive_ = Math.max( maxActive_, nActive_ );
+                latency = latency_;
+            }
+            try {
+                if ( latency > 0 ) {
+                    Thread.sleep( latency );
+                }
+                for ( int i = 0; i < failures_.length; i++ ) {
+                    if ( failures_[ i ] == icall ) {
+                        throw new IOException( "Failure " + icall );
+                    }
+                }
+                RowListStarTable result = new RowListStarTable( catalogue_ );
+                RowSequence rseq = catalogue_.getRowSequence();
+                while ( rseq.next() ) {
+                    Object[] row = rseq.getRow();
+                    double ra1 = ((Number) row[ 1 ]).doubleValue();
+                    double dec1 = ((Number) row[ 2 ]).doubleValue();
+                    if ( CoordsDegrees.skyDistanceDegrees( ra, dec, ra1, dec1 )
+                         <= sr ) {
+                        result.addRow( row.clone() );
+                    }
+                }
+                rseq.close();
+                return result;
+            }
+            catch ( InterruptedException e ) {
+                throw new IOException( "Interrupted" );
+            }
+            finally {
+                synchronized ( this ) {
+                    nActive_--;
+                }
+            }
+        }
+
+        public synchronized int getRaIndex( StarTable result ) {
+            return positionless_ ? -1 : 1;
+        }
+
+        public synchronized int getDecIndex( StarTable result ) {
+            return positionless_ ? -1 : 2;
+        }
+
+        public void close() {
+        }
+    }
+}
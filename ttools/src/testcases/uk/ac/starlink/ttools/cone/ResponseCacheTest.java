@@ -0,0 +1,364 @@
+package uk.ac.starlink.ttools.cone;
+
+import java.io.File;
+import java.io.IOException;
+import uk.ac.starlink.table.ColumnInfo;
+import uk.ac.starlink.table.RowListStarTable;
+import uk.ac.starlink.table.RowStore;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StoragePolicy;
+import uk.ac.starlink.table.TableSink;
+import uk.ac.starlink.table.WrapperRowSequence;
+import uk.ac.starlink.util.TestCase;
+
+public class ResponseCacheTest extends TestCase {
+
+    private final StoragePolicy storage_ = StoragePolicy.PREFER_MEMORY;
+
+    public ResponseCacheTest( String name ) {
+        super( name );
+    }
+
+    public void testConeCache() throws IOException {
+        File dir = createTempDir();
+        try {
+            CountingSearcher base = new CountingSearcher( 3 );
+            ResponseCache cache = new ResponseCache( dir, 0, 0, storage_ );
+            ConeSearcher searcher =
+                new CachingConeSearcher( base, cache, "test" );
+            StarTable t1 = searcher.performSearch( 10, 20, 0.1 );
+            assertEquals( 1, base.nCall_ );
+            assertEquals( 3, t1.getRowCount() );
+            assertEquals( 0, cache.getHitCount() );
+            assertEquals( 1, cache.getMissCount() );
+
+            /* Same query in a new cache instance is not re-issued. */
+            cache = new ResponseCache( dir, 0, 0, storage_ );
+            searcher = new CachingConeSearcher( base, cache, "test" );
+            StarTable t2 = searcher.performSearch( 10, 20, 0.1 );
+            assertEquals( 1, base.nCall_ );
+            assertEquals( 1, cache.getHitCount() );
+            assertEquals( t1.getRowCount(), t2.getRowCount() );
+            assertEquals( t1.getColumnCount(), t2.getColumnCount() );
+            for ( int ir = 0; ir < 3; ir++ ) {
+                assertArrayEquals( t1.getRow( ir ), t2.getRow( ir ) );
+            }
+
+            /* Different position or key prefix is a different query. */
+            searcher.performSearch( 10, 20.5, 0.1 );
+            assertEquals( 2, base.nCall_ );
+            new CachingConeSearcher( base, cache, "other" )
+               .performSearch( 10, 20, 0.1 );
+            assertEquals( 3, base.nCall_ );
+
+            /* Null results are cached too. */
+            CountingSearcher nullBase = new CountingSearcher( -1 );
+            searcher = new CachingConeSearcher( nullBase, cache, "null" );
+            assertNull( searcher.performSearch( 1, 2, 0.1 ) );
+            assertNull( searcher.performSearch( 1, 2, 0.1 ) );
+            assertEquals( 1, nullBase.nCall_ );
+        }
+        finally {
+            deleteDir( dir );
+        }
+    }
+
+    public void testExpiry() throws IOException {
+        File dir = createTempDir();
+        try {
+            ResponseCache cache = new ResponseCache( dir, 60000, 0, storage_ );
+            File f1 = cache.putTable( "a", createTable( 2 ) );
+            assertEquals( f1, cache.getEntry( "a" ) );
+            assertNull( cache.getEntry( "b" ) );
+            assertTrue( f1.setLastModified( System.currentTimeMillis()
+                                          - 120000 ) );
+            assertNull( cache.getEntry( "a" ) );
+            assertFalse( f1.exists() );
+        }
+        finally {
+            deleteDir( dir );
+        }
+    }
+
+    public void testTrim() throws IOException {
+        File dir = createTempDir();
+        try {
+            ResponseCache cache =
+                new ResponseCache( dir, 0, Long.MAX_VALUE, storage_ );
+            File f1 = cache.putTable( "x", createTable( 100 ) );
+            long size1 = f1.length();
+            assertTrue( size1 > 0 );
+            long now = System.currentTimeMillis();
+            String[] keys = new String[ 5 ];
+            for ( int i = 0; i < keys.length; i++ ) {
+                keys[ i ] = "k" + i;
+                File f = cache.putTable( keys[ i ], createTable( 100 ) );
+                f.setLastModified( now - ( keys.length - i ) * 10000 );
+            }
+            f1.delete();
+            long maxBytes = size1 * 4 + size1 / 4;
+            cache = new ResponseCache( dir, 0, maxBytes, storage_ );
+            assertEquals( size1 * 5, cache.getTotalBytes() );
+            cache.putTable( "new", createTable( 100 ) );
+            assertEquals( size1 * 3, cache.getTotalBytes() );
+
+            /* Trimming leaves some headroom below the limit. */
+            assertTrue( cache.getTotalBytes() <= maxBytes * 0.9 );
+
+            /* The oldest entries go first. */
+            assertNull( cache.getEntry( keys[ 0 ] ) );
+            assertNull( cache.getEntry( keys[ 1 ] ) );
+            assertNull( cache.getEntry( keys[ 2 ] ) );
+            assertNotNull( cache.getEntry( keys[ 3 ] ) );
+            assertNotNull( cache.getEntry( keys[ 4 ] ) );
+            assertNotNull( cache.getEntry( "new" ) );
+        }
+        finally {
+            deleteDir( dir );
+        }
+    }
+
+    public void testUploadCache() throws IOException {
+        File dir = createTempDir();
+        try {
+            ResponseCache cache = new ResponseCache( dir, 0, 0, storage_ );
+            CountingUploader base = new CountingUploader();
+            UploadMatcher matcher =
+                new CachingUploadMatcher( base, cache, "up", storage_ );
+            double[] ras = new double[] { 10, 11, 12 };
+
+            RowStore s1 = storage_.makeRowStore();
+            assertFalse( matcher.streamRawResult( createQuerySeq( ras ), s1,
+                                                  new TestMapper(), 100 ) );
+            assertEquals( 1, base.nCall_ );
+            StarTable t1 = s1.getStarTable();
+            assertEquals( 3, t1.getRowCount() );
+            assertNull( t1.getParameterByName( "stilts_upload_truncated" ) );
+
+            RowStore s2 = storage_.makeRowStore();
+            assertFalse( matcher.streamRawResult( createQuerySeq( ras ), s2,
+                                                  new TestMapper(), 100 ) );
+            assertEquals( 1, base.nCall_ );
+            StarTable t2 = s2.getStarTable();
+            assertEquals( 3, t2.getRowCount() );
+            for ( int ir = 0; ir < 3; ir++ ) {
+                assertArrayEquals( t1.getRow( ir ), t2.getRow( ir ) );
+            }
+            assertNull( t2.getParameterByName( "stilts_upload_truncated" ) );
+
+            /* Truncation flag survives the cache, and maxrec is part
+             * of the key. */
+            RowStore s3 = storage_.makeRowStore();
+            assertTrue( matcher.streamRawResult( createQuerySeq( ras ), s3,
+                                                 new TestMapper(), 2 ) );
+            assertEquals( 2, base.nCall_ );
+            assertEquals( 2, s3.getStarTable().getRowCount() );
+            RowStore s4 = storage_.makeRowStore();
+            assertTrue( matcher.streamRawResult( createQuerySeq( ras ), s4,
+                                                 new TestMapper(), 2 ) );
+            assertEquals( 2, base.nCall_ );
+            assertEquals( 2, s4.getStarTable().getRowCount() );
+
+            /* The same queries from different rows are a cache hit,
+             * and identify the new rows. */
+            RowStore s5 = storage_.makeRowStore();
+            matcher.streamRawResult( createQuerySeq( ras, 1000 ), s5,
+                                     new TestMapper(), 100 );
+            assertEquals( 2, base.nCall_ );
+            StarTable t5 = s5.getStarTable();
+            assertEquals( 3, t5.getRowCount() );
+            for ( int ir = 0; ir < 3; ir++ ) {
+                assertEquals( new Long( 1000 + ir ), t5.getCell( ir, 0 ) );
+                assertEquals( t1.getCell( ir, 1 ), t5.getCell( ir, 1 ) );
+            }
+
+            /* A changed query in the block means a cache miss. */
+            ras[ 1 ] = 11.5;
+            matcher.streamRawResult( createQuerySeq( ras ),
+                                     storage_.makeRowStore(),
+                                     new TestMapper(), 100 );
+            assertEquals( 3, base.nCall_ );
+        }
+        finally {
+            deleteDir( dir );
+        }
+    }
+
+    public void testPartFiles() throws IOException {
+        File dir = createTempDir();
+        try {
+            File oldPart = new File( dir, "tmp1.part" );
+            File newPart = new File( dir, "tmp2.part" );
+            assertTrue( oldPart.createNewFile() );
+            assertTrue( newPart.createNewFile() );
+            assertTrue( oldPart.setLastModified( System.currentTimeMillis()
+                                               - 2 * 24 * 60 * 60 * 1000L ) );
+            new ResponseCache( dir, 0, 0, storage_ );
+            assertFalse( oldPart.exists() );
+            assertTrue( newPart.exists() );
+        }
+        finally {
+            deleteDir( dir );
+        }
+    }
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile( "rcache", ".d" );
+        dir.delete();
+        assertTrue( dir.mkdir() );
+        return dir;
+    }
+
+    private static void deleteDir( File dir ) {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( int i = 0; i < files.length; i++ ) {
+                files[ i ].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static StarTable createTable( int nrow ) {
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "RA", Double.class, null ),
+            new ColumnInfo( "Dec", Double.class, null ),
+            new ColumnInfo( "ID", Integer.class, null ),
+        } );
+        for ( int i = 0; i < nrow; i++ ) {
+            table.addRow( new Object[] { new Double( i * 0.5 ),
+                                         new Double( - i * 0.25 ),
+                                         new Integer( i ) } );
+        }
+        return table;
+    }
+
+    private static ConeQueryRowSequence createQuerySeq( double[] ras )
+            throws IOException {
+        return createQuerySeq( ras, 0 );
+    }
+
+    private static ConeQueryRowSequence createQuerySeq( double[] ras,
+                                                        long index0 )
+            throws IOException {
+        RowListStarTable table = new RowListStarTable( new ColumnInfo[] {
+            new ColumnInfo( "RA", Double.class, null ),
+        } );
+        for ( int i = 0; i < ras.length; i++ ) {
+            table.addRow( new Object[] { new Double( ras[ i ] ) } );
+        }
+        return new TestQuerySeq( table, ras, index0 );
+    }
+
+    private static class TestQuerySeq extends WrapperRowSequence
+                                      implements ConeQueryRowSequence {
+        private final double[] ras_;
+        private final long index0_;
+        private long irow_ = -1;
+        TestQuerySeq( StarTable table, double[] ras, long index0 )
+                throws IOException {
+            super( table.getRowSequence() );
+            ras_ = ras;
+            index0_ = index0;
+        }
+        public boolean next() throws IOException {
+            boolean next = super.next();
+            if ( next ) {
+                irow_++;
+            }
+            return next;
+        }
+        public double getRa() {
+            return ras_[ (int) irow_ ];
+        }
+        public double getDec() {
+            return -30;
+        }
+        public double getRadius() {
+            return 0.01;
+        }
+        public long getIndex() {
+            return index0_ + irow_;
+        }
+    }
+
+    private static class CountingSearcher implements ConeSearcher {
+        final int nrow_;
+        int nCall_;
+        CountingSearcher( int nrow ) {
+            nrow_ = nrow;
+        }
+        public StarTable performSearch( double ra, double dec, double sr ) {
+            nCall_++;
+            return nrow_ < 0 ? null : createTable( nrow_ );
+        }
+        public int getRaIndex( StarTable result ) {
+            return 0;
+        }
+        public int getDecIndex( StarTable result ) {
+            return 1;
+        }
+        public void close() {
+        }
+    }
+
+    private static class CountingUploader implements UploadMatcher {
+        int nCall_;
+        public boolean streamRawResult( ConeQueryRowSequence coneSeq,
+                                        TableSink sink,
+                                        RowMapper<?> rowMapper, long maxrec )
+                throws IOException {
+            nCall_++;
+            sink.acceptMetadata( new RowListStarTable( new ColumnInfo[] {
+                new ColumnInfo( "idx", Long.class, null ),
+                new ColumnInfo( "ra", Double.class, null ),
+            } ) );
+            long nrow = 0;
+            boolean truncated = false;
+            while ( coneSeq.next() ) {
+                if ( nrow < maxrec ) {
+                    sink.acceptRow( new Object[] {
+                        new Long( coneSeq.getIndex() ),
+                        new Double( coneSeq.getRa() ),
+                    } );
+                    nrow++;
+                }
+                else {
+                    truncated = true;
+                }
+            }
+            coneSeq.close();
+            sink.endRows();
+            return truncated;
+        }
+        public ColumnPlan getColumnPlan( ColumnInfo[] resultCols,
+                                         ColumnInfo[] uploadCols ) {
+            return new ColumnPlan() {
+                public int getOutputColumnCount() {
+                    throw new UnsupportedOperationException();
+                }
+                public int getOutputColumnLocation( int icolOutput ) {
+                    throw new UnsupportedOperationException();
+                }
+                public int getResultIdColumnIndex() {
+                    return 0;
+                }
+                public int getResultScoreColumnIndex() {
+                    return 1;
+                }
+            };
+        }
+    }
+
+    private static class TestMapper implements RowMapper<Long> {
+        public Class<Long> getIdClass() {
+            return Long.class;
+        }
+        public long rowIdToIndex( Long id ) {
+            return id.longValue();
+        }
+        public Long rowIndexToId( long index ) {
+            return new Long( index );
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package uk.ac.starlink.ttools.filter;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class HyperLogLogTest extends TestCase {
+
+    public HyperLogLogTest( String name ) {
+        super( name );
+    }
+
+    public void testEstimate() {
+        HyperLogLog hll = new HyperLogLog();
+        assertEquals( 0L, hll.getEstimate() );
+        hll.acceptDatum( null );
+        hll.acceptDatum( new Double( Double.NaN ) );
+        hll.acceptDatum( "" );
+        assertEquals( 0L, hll.getEstimate() );
+        for ( int i = 0; i < 3; i++ ) {
+            hll.acceptDatum( "x" );
+            hll.acceptDatum( new Integer( 23 ) );
+            hll.acceptDatum( new Long( 23 ) );
+            hll.acceptDatum( new Double( 23 ) );
+        }
+        assertEquals( 3L, hll.getEstimate() );
+
+        /* Large counts, with repeats, in separate parts which are merged. */
+        int n = 1000000;
+        Random rnd = new Random( 40001L );
+        HyperLogLog[] parts = new HyperLogLog[ 5 ];
+        for ( int ip = 0; ip < parts.length; ip++ ) {
+            parts[ ip ] = new HyperLogLog();
+        }
+        for ( int i = 0; i < 3 * n; i++ ) {
+            int ival = rnd.nextInt( n );
+            parts[ rnd.nextInt( parts.length ) ]
+                .acceptDatum( "item" + ( ival - ival % 2 ) );
+        }
+        HyperLogLog total = new HyperLogLog();
+        for ( int ip = 0; ip < parts.length; ip++ ) {
+            total.addHyperLogLog( parts[ ip ] );
+        }
+
+        /* Expected number of distinct values drawn. */
+        double exact = 0.5 * n * ( 1 - Math.exp( -3.0 * 2 ) );
+        double err = 3 * total.getRelativeError();
+        assertEquals( 1.0, total.getEstimate() / exact, err );
+        assertTrue( parts[ 0 ].getEstimate() < total.getEstimate() );
+        double partExact =
+            0.5 * n * ( 1 - Math.exp( -3.0 * 2 / parts.length ) );
+        assertEquals( 1.0, parts[ 0 ].getEstimate() / partExact, err );
+
+        /* Precision affects accuracy. */
+        assertTrue( new HyperLogLog( 10 ).getRelativeError()
+                  > total.getRelativeError() );
+    }
+}
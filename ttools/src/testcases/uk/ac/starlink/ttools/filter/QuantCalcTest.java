@@ -2,9 +2,11 @@ package uk.ac.starlink.ttools.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import junit.framework.TestCase;
 
 public class QuantCalcTest extends TestCase {
@@ -95,6 +97,115 @@ public class QuantCalcTest extends TestCase {
         assertEquals( 15.0, QuantCalc.calculateMedianAbsoluteDeviation( qc ) );
     }
 
+    public void testSketch() throws IOException {
+
+        /* Small inputs give exact results. */
+        int[] values = shuffle( triangle( 30 ) );
+        QuantCalc exact = QuantCalc.createInstance( Integer.class, -1 );
+        QuantCalc sketch = QuantCalc.createSketchInstance( Integer.class );
+        for ( int i = 0; i < values.length; i++ ) {
+            exact.acceptDatum( new Integer( values[ i ] ) );
+            sketch.acceptDatum( new Integer( values[ i ] ) );
+        }
+        exact.ready();
+        sketch.ready();
+        assertEquals( values.length, sketch.getValueCount() );
+        for ( int iq = 0; iq <= 100; iq++ ) {
+            double q = iq * 0.01;
+            assertEquals( exact.getQuantile( q ), sketch.getQuantile( q ) );
+        }
+        assertEquals( QuantCalc.calculateMedianAbsoluteDeviation( exact ),
+                      QuantCalc.calculateMedianAbsoluteDeviation( sketch ) );
+
+        /* Large inputs stay within the error bound in bounded memory,
+         * whether accumulated in one go or in parts and merged. */
+        int n = 2000000;
+        double[] dvals = new double[ n ];
+        Random rnd = new Random( 9901L );
+        for ( int i = 0; i < n; i++ ) {
+            dvals[ i ] = rnd.nextGaussian();
+        }
+        KllQuantCalc whole = new KllQuantCalc( Double.class,
+                                               KllQuantCalc.DEFAULT_K );
+        KllQuantCalc[] parts = new KllQuantCalc[ 7 ];
+        for ( int ip = 0; ip < parts.length; ip++ ) {
+            parts[ ip ] = new KllQuantCalc( Double.class,
+                                            KllQuantCalc.DEFAULT_K );
+        }
+        for ( int i = 0; i < n; i++ ) {
+            Double dval = new Double( dvals[ i ] );
+            whole.acceptDatum( dval );
+            parts[ (int) ( (long) i * parts.length / n ) ].acceptDatum( dval );
+        }
+        QuantCalc merged = QuantCalc.createSketchInstance( Double.class );
+        for ( int ip = 0; ip < parts.length; ip++ ) {
+            merged.addQuantCalc( parts[ ip ] );
+        }
+        assertTrue( whole.getRetainedCount() < 4 * KllQuantCalc.DEFAULT_K );
+        assertEquals( n, merged.getValueCount() );
+        Arrays.sort( dvals );
+        double[] qs = { 0.0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.99, 1.0 };
+        for ( QuantCalc qc : new QuantCalc[] { whole, merged } ) {
+            qc.ready();
+            for ( int iq = 0; iq < qs.length; iq++ ) {
+                double qval = qc.getQuantile( qs[ iq ] ).doubleValue();
+                double rank = Arrays.binarySearch( dvals, qval ) / (double) n;
+                assertEquals( qs[ iq ], rank, KllQuantCalc.RANK_ERROR );
+            }
+            double mad = QuantCalc.calculateMedianAbsoluteDeviation( qc );
+            assertEquals( 0.6745, mad, 0.01 );
+        }
+    }
+
+    public void testMerge() throws IOException {
+        int[] values = shuffle( triangle( 100 ) );
+        int nv = values.length;
+        int nsplit = nv / 3;
+        QuantCalc[] calcs = new QuantCalc[] {
+            QuantCalc.createInstance( Integer.class, nv ),
+            new QuantCalc.FloatArrayQuantCalc( Double.class, nv ),
+            new QuantCalc.ByteSlotQuantCalc(),
+            new QuantCalc.ShortSlotQuantCalc(),
+        };
+        QuantCalc[] parts = new QuantCalc[] {
+            QuantCalc.createInstance( Integer.class, nsplit ),
+            new QuantCalc.FloatArrayQuantCalc( Double.class, nv - nsplit ),
+            new QuantCalc.ByteSlotQuantCalc(),
+            new QuantCalc.ShortSlotQuantCalc(),
+        };
+        Class[] clazzes = new Class[] {
+            Integer.class, Double.class, Byte.class, Short.class,
+        };
+        for ( int ic = 0; ic < calcs.length; ic++ ) {
+            for ( int i = 0; i < nv; i++ ) {
+                Number num = toNumber( clazzes[ ic ], values[ i ] );
+                ( i < nsplit ? calcs[ ic ] : parts[ ic ] ).acceptDatum( num );
+            }
+            calcs[ ic ].addQuantCalc( parts[ ic ] );
+            calcs[ ic ].ready();
+            assertEquals( nv, calcs[ ic ].getValueCount() );
+            assertEquals( -89, calcs[ ic ].getQuantile( 0.1 ).intValue() );
+            assertEquals( 0, calcs[ ic ].getQuantile( 0.5 ).intValue() );
+            assertEquals( 70.0, QuantCalc.calculateMedianAbsoluteDeviation(
+                                    calcs[ ic ] ) );
+        }
+    }
+
+    private static Number toNumber( Class clazz, int ival ) {
+        if ( clazz == Integer.class ) {
+            return new Integer( ival );
+        }
+        else if ( clazz == Double.class ) {
+            return new Double( ival );
+        }
+        else if ( clazz == Byte.class ) {
+            return new Byte( (byte) ival );
+        }
+        else {
+            return new Short( (short) ival );
+        }
+    }
+
     private static int[] triangle( int max ) {
         int[] values = new int[ max * max ];
         int ix = 0;
@@ -0,0 +1,136 @@
+package uk.ac.starlink.ttools.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.ArrayColumn;
+import uk.ac.starlink.table.ColumnStarTable;
+import uk.ac.starlink.table.StarTable;
+
+public class StatsFilterTest extends TestCase {
+
+    private static final String BASIC_ITEMS =
+        "name ngood nbad mean stdev skew minimum maximum minpos maxpos "
+      + "cardinality";
+    private static final String ITEMS =
+        BASIC_ITEMS + " median q.01 q.99 medabsdev";
+
+    private final StarTable table_;
+
+    public StatsFilterTest( String name ) {
+        super( name );
+        int nrow = 450000;
+        Random rnd = new Random( 55001L );
+        double[] dvals = new double[ nrow ];
+        int[] ivals = new int[ nrow ];
+        short[] svals = new short[ nrow ];
+        String[] strs = new String[ nrow ];
+        for ( int i = 0; i < nrow; i++ ) {
+            dvals[ i ] = i % 17 == 0 ? Double.NaN : rnd.nextGaussian() * 10;
+            ivals[ i ] = rnd.nextInt( 5000 );
+            svals[ i ] = (short) rnd.nextInt( 40 );
+            strs[ i ] = i % 3 == 0 ? null : "s" + ( i % 20 );
+        }
+
+        /* Put the extreme values at positions in different ranges,
+         * with repeats. */
+        dvals[ 10 ] = -1000;
+        dvals[ 300000 ] = -1000;
+        dvals[ 200000 ] = 1000;
+        ColumnStarTable table = ColumnStarTable.makeTableWithRows( nrow );
+        table.addColumn( ArrayColumn.makeColumn( "d", dvals ) );
+        table.addColumn( ArrayColumn.makeColumn( "i", ivals ) );
+        table.addColumn( ArrayColumn.makeColumn( "s", svals ) );
+        table.addColumn( ArrayColumn.makeColumn( "str", strs ) );
+        table_ = table;
+    }
+
+    public void testParallel() throws IOException {
+        StarTable seq = getStats( 1, ITEMS );
+        StarTable par = getStats( 4, ITEMS );
+        assertEquals( 4, seq.getRowCount() );
+        assertTableEquals( seq, par, 1e-5 );
+        assertEquals( new Long( 11 ), seq.getCell( 0, 8 ) );
+        assertEquals( new Long( 200001 ), seq.getCell( 0, 9 ) );
+        assertEquals( new Integer( 40 ), seq.getCell( 2, 10 ) );
+        assertEquals( new Integer( 20 ), seq.getCell( 3, 10 ) );
+        assertEquals( new Long( 150000 ), seq.getCell( 3, 2 ) );
+
+        /* Exact quantiles force sequential accumulation,
+         * so check the parallel case without them too. */
+        assertTableEquals( getStats( 1, BASIC_ITEMS ),
+                           getStats( 4, BASIC_ITEMS ), 1e-5 );
+    }
+
+    public void testApprox() throws IOException {
+        StarTable exact = getStats( 1, ITEMS );
+        StarTable approx = getStats( 1, "-qapprox " + ITEMS );
+        StarTable parApprox = getStats( 4, "-qapprox " + ITEMS );
+        assertEquals( exact.getColumnCount(), approx.getColumnCount() );
+        for ( int ir = 0; ir < 3; ir++ ) {
+            for ( int ic = 0; ic < 11; ic++ ) {
+                assertEquals( exact.getCell( ir, ic ),
+                              approx.getCell( ir, ic ) );
+            }
+        }
+
+        /* Quantiles of the int column: ranks within the error bound
+         * correspond to values within a few units. */
+        double tol = 5000 * 2 * KllQuantCalc.RANK_ERROR;
+        for ( int ic = 11; ic < 15; ic++ ) {
+            assertEquals( getDouble( exact, 1, ic ),
+                          getDouble( approx, 1, ic ), tol );
+            assertEquals( getDouble( exact, 1, ic ),
+                          getDouble( parApprox, 1, ic ), tol );
+        }
+        for ( int ic = 11; ic < 15; ic++ ) {
+            assertEquals( getDouble( exact, 0, ic ),
+                          getDouble( approx, 0, ic ), 0.2 );
+            assertEquals( getDouble( exact, 2, ic ),
+                          getDouble( approx, 2, ic ), 1 );
+        }
+        assertNull( approx.getCell( 3, 11 ) );
+    }
+
+    private StarTable getStats( int maxTask, String items )
+            throws IOException {
+        List<String> args =
+            new ArrayList<String>( Arrays.asList( items.split( " " ) ) );
+        try {
+            return new StatsFilter( maxTask ).createStep( args.iterator() )
+                                             .wrap( table_ );
+        }
+        catch ( ArgException e ) {
+            throw new AssertionError( e );
+        }
+    }
+
+    private static double getDouble( StarTable table, int irow, int icol )
+            throws IOException {
+        return ((Number) table.getCell( irow, icol )).doubleValue();
+    }
+
+    private static void assertTableEquals( StarTable t1, StarTable t2,
+                                           double tol )
+            throws IOException {
+        assertEquals( t1.getRowCount(), t2.getRowCount() );
+        assertEquals( t1.getColumnCount(), t2.getColumnCount() );
+        for ( int ir = 0; ir < t1.getRowCount(); ir++ ) {
+            for ( int ic = 0; ic < t1.getColumnCount(); ic++ ) {
+                Object c1 = t1.getCell( ir, ic );
+                Object c2 = t2.getCell( ir, ic );
+                if ( c1 instanceof Float || c1 instanceof Double ) {
+                    double d1 = ((Number) c1).doubleValue();
+                    double d2 = ((Number) c2).doubleValue();
+                    assertEquals( d1, d2, Math.abs( d1 * tol ) );
+                }
+                else {
+                    assertEquals( c1, c2 );
+                }
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import junit.framework.TestCase;
 import uk.ac.starlink.dpac.math.Edsd;
+import uk.ac.starlink.dpac.math.EdsdGrid;
 import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.StarTableFactory;
@@ -112,6 +113,66 @@ public class GaiaTest extends TestCase {
         }
     }
 
+    public void testEdsdApprox() {
+        double relErr = 0.001;
+        int np = 6;
+        int ne = 6;
+        for ( int ip = 0; ip <= np; ip++ ) {
+            double absPlx =
+                PlotUtil.scaleValue( 1e-4, 40, ip / (double) np, true );
+            for ( int ie = 0; ie <= ne; ie++ ) {
+                double eplx =
+                    PlotUtil.scaleValue( 0.015, 4, ie / (double) ne, true );
+                for ( double plx : new double[] { absPlx, -absPlx } ) {
+                    for ( double lPc : new double[] { 1350, 110 } ) {
+                        double[] exact =
+                            Gaia.distanceBoundsEdsd( plx, eplx, lPc );
+                        double[] approx =
+                            Gaia.distanceBoundsEdsdApprox( plx, eplx, lPc );
+                        for ( int i = 0; i < 2; i++ ) {
+                            assertEquals( "plx=" + plx + "; eplx=" + eplx
+                                        + "; l=" + lPc,
+                                          exact[ i ], approx[ i ],
+                                          2 * relErr * exact[ i ] );
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(
+            Gaia.distanceQuantilesEdsd( 2.5, 0.3, 1350, 0.5 )[ 0 ],
+            Gaia.distanceQuantilesEdsdApprox( 2.5, 0.3, 1350, 0, 0.5 )[ 0 ] );
+    }
+
+    public void testEdsdApproxQuantiles() {
+        double relErr = 0.001;
+        double[] qpoints = { 0.05, 0.16, 0.25, 0.5, 0.75, 0.84, 0.95 };
+        double[][] params = {
+            { 2.5, 0.3, 1350 }, { 0.4, 0.2, 1350 }, { -0.1, 0.5, 110 },
+        };
+        for ( double[] p : params ) {
+            double[] exact =
+                Gaia.distanceQuantilesEdsd( p[ 0 ], p[ 1 ], p[ 2 ], qpoints );
+            double[] approx =
+                Gaia.distanceQuantilesEdsdApprox( p[ 0 ], p[ 1 ], p[ 2 ],
+                                                  relErr, qpoints );
+            for ( int i = 0; i < qpoints.length; i++ ) {
+                assertEquals( exact[ i ], approx[ i ],
+                              2 * relErr * exact[ i ] );
+            }
+        }
+
+        /* Grids for many quantiles are all retained between rows. */
+        EdsdGrid[] grids = new EdsdGrid[ qpoints.length ];
+        for ( int i = 0; i < qpoints.length; i++ ) {
+            grids[ i ] = EdsdGrid.getInstance( qpoints[ i ], relErr );
+        }
+        for ( int i = 0; i < qpoints.length; i++ ) {
+            assertSame( grids[ i ],
+                        EdsdGrid.getInstance( qpoints[ i ], relErr ) );
+        }
+    }
+
     private void compareDistances( double plxMas, double eplxMas, double lPc ) {
         double funcBest = Gaia.distanceEstimateEdsd( plxMas, eplxMas, lPc );
         double[] funcQuantiles =
@@ -9,6 +9,7 @@ import uk.ac.starlink.table.ColumnData;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.ConstantColumn;
 import uk.ac.starlink.table.DefaultValueInfo;
+import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.Tables;
 import uk.ac.starlink.table.formats.CsvStarTable;
@@ -142,6 +143,61 @@ public class JELTest extends TableTestCase {
         assertEquals( null, rdr.evaluateAtRow( sExpr, 1 ) );
     }
 
+    public void testSubexpressions() throws Exception {
+        byte[] buf = new StringBuffer()
+            .append( "a,b\n" )
+            .append( "3,4\n" )
+            .append( ",4\n" )
+            .toString().getBytes( "utf-8" );
+        StarTable t3 =
+            Tables.randomTable(
+                new CsvStarTable( new ByteArrayDataSource( "buf", buf ) ) );
+        String[] exprs = new String[] {
+            "sqrt(hypot(a,b))",
+            "2*hypot( a,b )",
+            "hypot(a, b)+sqrt( hypot(a,b) )",
+            "\"hypot(a,b)\"",
+            "a+b",
+        };
+        CommonSubexpressions cse =
+            CommonSubexpressions.findSubexpressions( t3, exprs );
+        assertEquals( 2, cse.getSubexpressionCount() );
+        assertArrayEquals( new String[] {
+            "$subexpr1",
+            "2*$subexpr2",
+            "$subexpr2+$subexpr1",
+            "\"hypot(a,b)\"",
+            "a+b",
+        }, cse.getExpressions() );
+        assertEquals( 0, CommonSubexpressions
+                        .findSubexpressions( t3, new String[] { "a", "b" } )
+                        .getSubexpressionCount() );
+
+        ColumnInfo[] infos = new ColumnInfo[ exprs.length ];
+        for ( int i = 0; i < exprs.length; i++ ) {
+            infos[ i ] = new ColumnInfo( "c" + i );
+        }
+        StarTable jt = new JELTable( t3, infos, exprs );
+        Tables.checkTable( jt );
+        double r5 = Math.sqrt( 5. );
+        Object[] row0 = new Object[] {
+            new Double( r5 ), new Double( 10. ), new Double( 5. + r5 ),
+            "hypot(a,b)", new Integer( 7 ),
+        };
+        Object[] row1 = new Object[] {
+            null, null, null, "hypot(a,b)", null,
+        };
+        assertArrayEquals( row0, jt.getRow( 0 ) );
+        assertArrayEquals( row1, jt.getRow( 1 ) );
+        RowSequence rseq = jt.getRowSequence();
+        assertTrue( rseq.next() );
+        assertArrayEquals( row0, rseq.getRow() );
+        assertTrue( rseq.next() );
+        assertArrayEquals( row1, rseq.getRow() );
+        assertFalse( rseq.next() );
+        rseq.close();
+    }
+
     public static class FuncLib {
         public static int triplePrim( int a ) {
             return 3 * a;
@@ -0,0 +1,155 @@
+package uk.ac.starlink.ttools.plot2.data;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class DiskColumnFactoryTest extends TestCase {
+
+    public void testColumns() {
+        CachedColumnFactory diskFact = new DiskColumnFactory( null );
+        CachedColumnFactory memFact = new MemoryColumnFactory();
+        Random rnd = new Random( 44L );
+        int nrow = 20000;
+        for ( StorageType type : StorageType.values() ) {
+            for ( long n : new long[] { nrow, -1 } ) {
+                CachedColumn dcol = diskFact.createColumn( type, n );
+                CachedColumn mcol = memFact.createColumn( type, n );
+                for ( int i = 0; i < nrow; i++ ) {
+                    Object value = createValue( type, rnd );
+                    dcol.add( value );
+                    mcol.add( value );
+                }
+                dcol.endAdd();
+                mcol.endAdd();
+                assertEquals( nrow, dcol.getRowCount() );
+                CachedReader drdr = dcol.createReader();
+                CachedReader mrdr = mcol.createReader();
+                for ( int i = nrow - 1; i >= 0; i -= 7 ) {
+                    assertEquals( mrdr.getDoubleValue( i ),
+                                  drdr.getDoubleValue( i ) );
+                    assertEquals( mrdr.getIntValue( i ),
+                                  drdr.getIntValue( i ) );
+                    assertEquals( mrdr.getLongValue( i ),
+                                  drdr.getLongValue( i ) );
+                    assertEquals( mrdr.getBooleanValue( i ),
+                                  drdr.getBooleanValue( i ) );
+                    assertTrue( Arrays.deepEquals(
+                                    new Object[] { mrdr.getObjectValue( i ) },
+                                    new Object[] { drdr.getObjectValue( i ) }));
+                }
+            }
+        }
+    }
+
+    public void testEmpty() {
+        CachedColumn col = new DiskColumnFactory( null )
+                          .createColumn( StorageType.DOUBLE, 0 );
+        col.endAdd();
+        assertEquals( 0, col.getRowCount() );
+        assertNotNull( col.createReader() );
+    }
+
+    public void testMemoryBudget() throws Exception {
+        File dir = File.createTempFile( "plotcols", ".d" );
+        assertTrue( dir.delete() );
+        assertTrue( dir.mkdir() );
+        try {
+            DiskColumnFactory fact = new DiskColumnFactory( dir, 1000 );
+
+            /* Columns go in memory until the total budget is used. */
+            CachedColumn c1 = fact.createColumn( StorageType.DOUBLE, 50 );
+            CachedColumn c2 = fact.createColumn( StorageType.INT, 100 );
+            assertEquals( 800, fact.getMemoryBytes() );
+            assertEquals( 0, dir.list().length );
+            CachedColumn c3 = fact.createColumn( StorageType.DOUBLE, 50 );
+            assertEquals( 800, fact.getMemoryBytes() );
+            assertEquals( 1, dir.list().length );
+            CachedColumn c4 = fact.createColumn( StorageType.SHORT, 100 );
+            assertEquals( 1000, fact.getMemoryBytes() );
+            assertEquals( 1, dir.list().length );
+            c3.endAdd();
+
+            /* Space is released when columns are garbage collected. */
+            c1 = null;
+            for ( int i = 0; i < 50 && fact.getMemoryBytes() > 600; i++ ) {
+                System.gc();
+                Thread.sleep( 20 );
+            }
+            assertEquals( 600, fact.getMemoryBytes() );
+            CachedColumn c5 = fact.createColumn( StorageType.DOUBLE, 50 );
+            assertEquals( 1000, fact.getMemoryBytes() );
+            assertEquals( 0, dir.list().length );
+            assertNotSame( c2, c4 );
+            assertNotSame( c4, c5 );
+        }
+        finally {
+            for ( File f : dir.listFiles() ) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testTempFiles() throws Exception {
+        File dir = File.createTempFile( "plotcols", ".d" );
+        assertTrue( dir.delete() );
+        assertTrue( dir.mkdir() );
+        try {
+            CachedColumn col = new DiskColumnFactory( dir )
+                              .createColumn( StorageType.INT, -1 );
+            assertEquals( 1, dir.list().length );
+            for ( int i = 0; i < 100000; i++ ) {
+                col.add( new Integer( i ) );
+            }
+
+            /* Even if filling is abandoned, ending the column removes
+             * its temporary file. */
+            col.endAdd();
+            assertEquals( 0, dir.list().length );
+        }
+        finally {
+            for ( File f : dir.listFiles() ) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static Object createValue( StorageType type, Random rnd ) {
+        switch ( type ) {
+            case BOOLEAN:
+                return Boolean.valueOf( rnd.nextBoolean() );
+            case DOUBLE:
+                return new Double( rnd.nextGaussian() * 1e6 );
+            case FLOAT:
+                return new Float( rnd.nextGaussian() * 1e4 );
+            case LONG:
+                return new Long( rnd.nextLong() );
+            case INT:
+                return new Integer( rnd.nextInt() );
+            case SHORT:
+                return new Short( (short) rnd.nextInt() );
+            case BYTE:
+                return new Byte( (byte) rnd.nextInt() );
+            case STRING:
+                return Integer.toString( rnd.nextInt() );
+            case INT3:
+                return new int[] { rnd.nextInt(), rnd.nextInt(),
+                                   rnd.nextInt() };
+            case DOUBLE3:
+                return new double[] { rnd.nextDouble(), rnd.nextDouble(),
+                                      rnd.nextDouble() };
+            case FLOAT3:
+                return new float[] { rnd.nextFloat(), rnd.nextFloat(),
+                                     rnd.nextFloat() };
+            case DOUBLE_ARRAY:
+                return new double[ rnd.nextInt( 4 ) ];
+            case FLOAT_ARRAY:
+                return new float[ rnd.nextInt( 4 ) ];
+            default:
+                throw new AssertionError( type );
+        }
+    }
+}
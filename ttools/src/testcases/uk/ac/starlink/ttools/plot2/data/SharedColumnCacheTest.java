@@ -0,0 +1,64 @@
+package uk.ac.starlink.ttools.plot2.data;
+
+import junit.framework.TestCase;
+import uk.ac.starlink.table.ColumnStarTable;
+import uk.ac.starlink.table.StarTable;
+
+public class SharedColumnCacheTest extends TestCase {
+
+    public void testBudget() {
+        SharedColumnCache cache = new SharedColumnCache( 2000 );
+        CachedColumn c1 = createColumn( 100 );
+        CachedColumn c2 = createColumn( 100 );
+        CachedColumn c3 = createColumn( 100 );
+        cache.putColumn( "c1", "c1", StorageType.DOUBLE, c1 );
+        cache.putColumn( "c2", "c2", StorageType.DOUBLE, c2 );
+        assertEquals( 1600, cache.getRetainedBytes() );
+        assertSame( c1, cache.getColumn( "c1" ) );
+        assertNull( cache.getColumn( "c9" ) );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+
+        /* c2 is least recently used, so gets demoted, but is still
+         * available since it is strongly referenced here. */
+        cache.putColumn( "c3", "c3", StorageType.DOUBLE, c3 );
+        assertEquals( 1600, cache.getRetainedBytes() );
+        SharedColumnCache.Item[] items = cache.getItems();
+        assertEquals( 3, items.length );
+        assertEquals( "c2", items[ 0 ].getLabel() );
+        assertFalse( items[ 0 ].isRetained() );
+        assertTrue( items[ 2 ].isRetained() );
+        assertSame( c2, cache.getColumn( "c2" ) );
+        assertEquals( 1600, cache.getRetainedBytes() );
+
+        cache.setMaxBytes( 0 );
+        assertEquals( 0, cache.getRetainedBytes() );
+        assertSame( c3, cache.getColumn( "c3" ) );
+        cache.clear();
+        assertEquals( 0, cache.getItems().length );
+        assertNull( cache.getColumn( "c1" ) );
+    }
+
+    public void testVersions() {
+        SharedColumnCache cache = new SharedColumnCache( 2000 );
+        StarTable t1 = ColumnStarTable.makeTableWithRows( 10 );
+        StarTable t2 = ColumnStarTable.makeTableWithRows( 10 );
+        assertEquals( 0, cache.getDataVersion( t1 ) );
+        cache.dataChanged( t1 );
+        cache.dataChanged( t1 );
+        assertEquals( 2, cache.getDataVersion( t1 ) );
+        assertEquals( 0, cache.getDataVersion( t2 ) );
+        cache.clear();
+        assertEquals( 2, cache.getDataVersion( t1 ) );
+    }
+
+    private static CachedColumn createColumn( int n ) {
+        CachedColumn col =
+            new MemoryColumnFactory().createColumn( StorageType.DOUBLE, n );
+        for ( int i = 0; i < n; i++ ) {
+            col.add( new Double( i ) );
+        }
+        col.endAdd();
+        return col;
+    }
+}
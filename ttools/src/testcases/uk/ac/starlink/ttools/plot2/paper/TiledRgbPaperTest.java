@@ -0,0 +1,139 @@
+package uk.ac.starlink.ttools.plot2.paper;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+import uk.ac.starlink.ttools.plot2.Decal;
+import uk.ac.starlink.ttools.plot2.Glyph;
+import uk.ac.starlink.ttools.plot2.Pixer;
+import uk.ac.starlink.ttools.plot2.layer.Pixers;
+
+public class TiledRgbPaperTest extends TestCase {
+
+    private static final Rectangle BOUNDS = new Rectangle( 10, 20, 173, 211 );
+
+    public void testIdentical2D() {
+        RgbPaperType[] ptypes = new RgbPaperType[] {
+            new OverPaperType2D(),
+            new CompositePaperType2D( Compositor.SATURATION ),
+            new CompositePaperType2D( new Compositor.BoostCompositor( .1f ) ),
+            new MonoPaperType( Color.RED, Compositor.SATURATION ),
+        };
+        for ( int ip = 0; ip < ptypes.length; ip++ ) {
+            RgbPaperType ptype = ptypes[ ip ];
+            for ( int ntile = 2; ntile < 8; ntile += 3 ) {
+                assertArrayEquals( paint( ptype, null ),
+                                   paint( ptype, ntile ) );
+            }
+        }
+    }
+
+    public void testIdentical3D() {
+        RgbPaperType[] ptypes = new RgbPaperType[] {
+            new ZBufferPaperType3D(),
+            new PixelStackPaperType3D( Compositor.SATURATION, 1e-4f ),
+        };
+        for ( int ip = 0; ip < ptypes.length; ip++ ) {
+            RgbPaperType ptype = ptypes[ ip ];
+            for ( int ntile = 2; ntile < 8; ntile += 3 ) {
+                assertArrayEquals( paint( ptype, null ),
+                                   paint( ptype, ntile ) );
+            }
+        }
+    }
+
+    private static int[] paint( RgbPaperType ptype, Integer ntile ) {
+        RgbPaperType.RgbPaper paper =
+              ntile == null
+            ? ptype.createPaper( BOUNDS )
+            : new TiledRgbPaper( ptype, BOUNDS, ntile.intValue() );
+        boolean isMono = ptype instanceof MonoPaperType;
+        Random rnd = new Random( 232323L );
+        Glyph glyph = new SquareGlyph( 3 );
+        Glyph bigGlyph = new SquareGlyph( 60 );
+        int np = 20000;
+        for ( int i = 0; i < np; i++ ) {
+            double dx = BOUNDS.x - 5 + rnd.nextDouble() * ( BOUNDS.width + 10 );
+            double dy = BOUNDS.y - 5 + rnd.nextDouble() * (BOUNDS.height + 10);
+            Color color = isMono
+                        ? new Color( 255, 0, 0, rnd.nextInt( 256 ) )
+                        : new Color( rnd.nextInt(), true );
+            Glyph g = i % 500 == 0 ? bigGlyph : glyph;
+            if ( ptype instanceof PaperType3D && ! isMono ) {
+                ((PaperType3D) ptype)
+               .placeGlyph( paper, dx, dy, rnd.nextDouble(), g, color );
+            }
+            else {
+                ((PaperType2D) ptype).placeGlyph( paper, dx, dy, g, color );
+            }
+            if ( i == np / 4 ) {
+                final Color dcolor = isMono ? new Color( 255, 0, 0, 128 )
+                                            : new Color( 0, 255, 0, 128 );
+                ptype.placeDecal( paper, new Decal() {
+                    public void paintDecal( Graphics g ) {
+                        Graphics2D g2 = (Graphics2D) g.create();
+                        g2.setRenderingHint( RenderingHints.KEY_ANTIALIASING,
+                                             RenderingHints
+                                            .VALUE_ANTIALIAS_ON );
+                        g2.setColor( dcolor );
+                        g2.fillOval( BOUNDS.x + 20, BOUNDS.y + 50, 120, 90 );
+                        g2.dispose();
+                    }
+                    public boolean isOpaque() {
+                        return false;
+                    }
+                } );
+            }
+            if ( i == np / 2 ) {
+                final Color dcolor = isMono ? Color.RED : Color.BLUE;
+                ptype.placeDecal( paper, new Decal() {
+                    public void paintDecal( Graphics g ) {
+                        g.setColor( dcolor );
+                        g.fillOval( BOUNDS.x + 30, BOUNDS.y + 40, 100, 80 );
+                    }
+                    public boolean isOpaque() {
+                        return true;
+                    }
+                } );
+            }
+        }
+        paper.flush();
+        return paper.getRgbImage().getBuffer();
+    }
+
+    private static void assertArrayEquals( int[] a1, int[] a2 ) {
+        assertTrue( Arrays.equals( a1, a2 ) );
+    }
+
+    private static class SquareGlyph implements Glyph {
+        final int r_;
+        final int[] xs_;
+        final int[] ys_;
+        SquareGlyph( int r ) {
+            r_ = r;
+            int n = 2 * r + 1;
+            xs_ = new int[ n * n ];
+            ys_ = new int[ n * n ];
+            int ip = 0;
+            for ( int iy = -r; iy <= r; iy++ ) {
+                for ( int ix = -r; ix <= r; ix++ ) {
+                    xs_[ ip ] = ix;
+                    ys_[ ip ] = iy;
+                    ip++;
+                }
+            }
+        }
+        public void paintGlyph( Graphics g ) {
+            g.fillRect( -r_, -r_, 2 * r_ + 1, 2 * r_ + 1 );
+        }
+        public Pixer createPixer( Rectangle clip ) {
+            return Pixers.clip( Pixers.createArrayPixer( xs_, ys_, xs_.length ),
+                                clip, -r_, r_, -r_, r_ );
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import junit.framework.TestCase;
+import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableFactory;
+import uk.ac.starlink.table.TableFormatException;
+
+public class TableCacheTest extends TestCase {
+
+    public TableCacheTest( String name ) {
+        super( name );
+    }
+
+    public void testCache() throws IOException {
+        File f1 = writeCsv( 10 );
+        File f2 = writeCsv( 20 );
+        CountingFactory baseFact = new CountingFactory();
+        TableCache cache = new TableCache( 1024 * 1024, Long.MAX_VALUE );
+        StarTableFactory tfact = new CachingTableFactory( baseFact, cache );
+
+        StarTable t1a = tfact.makeStarTable( f1.toString(), "csv" );
+        StarTable t1b = tfact.makeStarTable( f1.toString(), "csv" );
+        StarTable t2 = tfact.makeStarTable( f2.toString(), "csv" );
+        assertEquals( 10, t1a.getRowCount() );
+        assertEquals( 10, t1b.getRowCount() );
+        assertEquals( 20, t2.getRowCount() );
+        assertTrue( t1a.isRandom() );
+        assertEquals( 2, baseFact.nLoad_ );
+        assertEquals( 2, cache.getTableCount() );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 2, cache.getMissCount() );
+        assertEquals( 1. / 3., cache.getHitRate(), 1e-10 );
+        assertEquals( new Short( (short) 3 ), t1b.getCell( 3, 0 ) );
+
+        /* Metadata of returned tables is independent. */
+        t1a.setName( "changed" );
+        t1a.getColumnInfo( 0 ).setName( "changed" );
+        assertEquals( "a", t1b.getColumnInfo( 0 ).getName() );
+        assertFalse( "changed".equals( t1b.getName() ) );
+
+        /* Modified files are reloaded. */
+        FileWriter out = new FileWriter( f1, true );
+        out.write( "99,x\n" );
+        out.close();
+        f1.setLastModified( f1.lastModified() + 10000 );
+        StarTable t1c = tfact.makeStarTable( f1.toString(), "csv" );
+        assertEquals( 11, t1c.getRowCount() );
+        assertEquals( 3, baseFact.nLoad_ );
+        assertEquals( 2, cache.getTableCount() );
+
+        /* Uncacheable tables go straight to the base factory. */
+        try {
+            tfact.makeStarTable( "jdbc:nosuchdriver:x", null );
+            fail();
+        }
+        catch ( IOException e ) {
+        }
+        assertEquals( 4, baseFact.nLoad_ );
+        assertEquals( 2, cache.getTableCount() );
+
+        /* Load failures are not cached. */
+        for ( int i = 0; i < 2; i++ ) {
+            try {
+                tfact.makeStarTable( new File( f1.getParentFile(), "nope" )
+                                    .toString(), "csv" );
+                fail();
+            }
+            catch ( IOException e ) {
+            }
+        }
+        assertEquals( 2, cache.getTableCount() );
+
+        f1.delete();
+        f2.delete();
+    }
+
+    public void testEviction() throws IOException {
+        File f1 = writeCsv( 1000 );
+        File f2 = writeCsv( 1000 );
+        File f3 = writeCsv( 100000 );
+        CountingFactory baseFact = new CountingFactory();
+        StarTable t = baseFact.makeStarTable( f1.toString(), "csv" );
+        long size = TableCache.estimateSize( t );
+        assertTrue( size > 1000 );
+        baseFact.nLoad_ = 0;
+
+        /* Room for two small tables but not three, and not the big one. */
+        TableCache cache =
+            new TableCache( (long) ( size * 2.5 ), Long.MAX_VALUE );
+        StarTableFactory tfact = new CachingTableFactory( baseFact, cache );
+        tfact.makeStarTable( f1.toString(), "csv" );
+        tfact.makeStarTable( f2.toString(), "csv" );
+        assertEquals( 2, cache.getTableCount() );
+        assertEquals( 2 * size, cache.getTotalBytes() );
+        tfact.makeStarTable( f1.toString(), "csv" );
+        assertEquals( 2, baseFact.nLoad_ );
+
+        tfact.makeStarTable( f3.toString(), "csv" );
+        assertEquals( 2, cache.getTableCount() );
+        assertEquals( 0, cache.getEvictionCount() );
+        assertEquals( 3, baseFact.nLoad_ );
+        tfact.makeStarTable( writeCsv( 1000 ).toString(), "csv" );
+        assertEquals( 2, cache.getTableCount() );
+        assertEquals( 1, cache.getEvictionCount() );
+
+        /* f2 was least recently used, so it should have gone. */
+        tfact.makeStarTable( f1.toString(), "csv" );
+        assertEquals( 4, baseFact.nLoad_ );
+        tfact.makeStarTable( f2.toString(), "csv" );
+        assertEquals( 5, baseFact.nLoad_ );
+
+        cache.clear();
+        assertEquals( 0, cache.getTableCount() );
+        assertEquals( 0, cache.getTotalBytes() );
+    }
+
+    public void testMaxAge() throws IOException {
+        File f = writeCsv( 10 );
+        String url = f.toURI().toString();
+        String path = f.toString();
+
+        /* Tables from URLs are retained within the maximum age. */
+        CountingFactory baseFact = new CountingFactory();
+        StarTableFactory tfact =
+            new CachingTableFactory( baseFact,
+                                     new TableCache( 1024 * 1024,
+                                                     Long.MAX_VALUE ) );
+        tfact.makeStarTable( url, "csv" );
+        tfact.makeStarTable( url, "csv" );
+        assertEquals( 1, baseFact.nLoad_ );
+
+        /* Beyond it they are reloaded, but local files are still
+         * only reloaded if they change. */
+        baseFact = new CountingFactory();
+        TableCache cache = new TableCache( 1024 * 1024, 0 );
+        tfact = new CachingTableFactory( baseFact, cache );
+        tfact.makeStarTable( url, "csv" );
+        tfact.makeStarTable( url, "csv" );
+        assertEquals( 2, baseFact.nLoad_ );
+        tfact.makeStarTable( path, "csv" );
+        tfact.makeStarTable( path, "csv" );
+        assertEquals( 3, baseFact.nLoad_ );
+        assertEquals( 2, cache.getTableCount() );
+        f.delete();
+    }
+
+    private static File writeCsv( int nrow ) throws IOException {
+        File file = File.createTempFile( "tcache", ".csv" );
+        file.deleteOnExit();
+        Writer out = new FileWriter( file );
+        out.write( "a,b\n" );
+        for ( int i = 0; i < nrow; i++ ) {
+            out.write( i + ",s" + i + "\n" );
+        }
+        out.close();
+        return file;
+    }
+
+    private static class CountingFactory extends StarTableFactory {
+        int nLoad_;
+        public StarTable makeStarTable( String loc, String handler )
+                throws TableFormatException, IOException {
+            nLoad_++;
+            return super.makeStarTable( loc, handler );
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+import uk.ac.starlink.task.Executable;
+import uk.ac.starlink.task.TaskException;
+
+public class TaskSchedulerTest extends TestCase {
+
+    public TaskSchedulerTest( String name ) {
+        super( name );
+    }
+
+    public void testScheduler() throws Exception {
+        TaskScheduler sched = new TaskScheduler( 1, 1, 0 );
+        assertEquals( 1, sched.getWorkerCount() );
+
+        /* Occupy the only worker and the only queue slot. */
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final Executable blocker = new Executable() {
+            public void execute() throws TaskException {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch ( InterruptedException e ) {
+                    throw new TaskException( "interrupted", e );
+                }
+            }
+        };
+        Thread[] ths = new Thread[ 2 ];
+        final TaskScheduler fsched = sched;
+        for ( int i = 0; i < 2; i++ ) {
+            ths[ i ] = new Thread() {
+                public void run() {
+                    try {
+                        fsched.execute( "block", blocker );
+                    }
+                    catch ( Exception e ) {
+                        throw new RuntimeException( e );
+                    }
+                }
+            };
+            ths[ i ].start();
+            if ( i == 0 ) {
+                started.await();
+            }
+        }
+        while ( sched.getQueueDepth() < 1 ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, sched.getActiveCount() );
+        assertEquals( 1, sched.getQueueDepth() );
+        try {
+            sched.execute( "x", blocker );
+            fail();
+        }
+        catch ( RejectedExecutionException e ) {
+        }
+        assertEquals( 1, sched.getRejectedCount() );
+        release.countDown();
+        for ( int i = 0; i < 2; i++ ) {
+            ths[ i ].join();
+        }
+
+        /* Exceptions are passed through. */
+        try {
+            sched.execute( "fail", new Executable() {
+                public void execute() throws IOException {
+                    throw new IOException( "oops" );
+                }
+            } );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertEquals( "oops", e.getMessage() );
+        }
+
+        Map<String,TaskScheduler.TaskStats> stats = sched.getTaskStats();
+        assertEquals( 2, stats.get( "block" ).getCount() );
+        assertEquals( 0, stats.get( "block" ).getFailureCount() );
+        assertEquals( 1, stats.get( "fail" ).getFailureCount() );
+        assertTrue( stats.get( "block" ).getMaxMillis() > 0 );
+        assertFalse( stats.containsKey( "x" ) );
+        sched.shutdown();
+    }
+
+    public void testTimeout() throws Exception {
+        TaskScheduler sched = new TaskScheduler( 2, 4, 100 );
+        final boolean[] interrupted = new boolean[ 1 ];
+        final boolean[] finished = new boolean[ 1 ];
+        try {
+            sched.execute( "slow", new Executable() {
+                public void execute() {
+                    try {
+                        Thread.sleep( 10000 );
+                    }
+                    catch ( InterruptedException e ) {
+                        interrupted[ 0 ] = true;
+                    }
+
+                    /* Simulate a task which takes a while to notice. */
+                    long end = System.currentTimeMillis() + 200;
+                    while ( System.currentTimeMillis() < end ) {
+                        Thread.yield();
+                    }
+                    finished[ 0 ] = true;
+                }
+            } );
+            fail();
+        }
+        catch ( TimeoutException e ) {
+        }
+
+        /* The timed out task has stopped by the time execute returns. */
+        assertTrue( interrupted[ 0 ] );
+        assertTrue( finished[ 0 ] );
+        assertEquals( 1, sched.getTimeoutCount() );
+        sched.execute( "fast", new Executable() {
+            public void execute() {
+            }
+        } );
+        assertEquals( 1, sched.getTaskStats().get( "slow" ).getCount() );
+        sched.shutdown();
+    }
+}
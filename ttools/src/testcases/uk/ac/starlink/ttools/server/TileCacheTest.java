@@ -0,0 +1,118 @@
+package uk.ac.starlink.ttools.server;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+public class TileCacheTest extends TestCase {
+
+    public TileCacheTest( String name ) {
+        super( name );
+    }
+
+    public void testCache() throws IOException {
+        TileCache cache = new TileCache( 250 );
+        CountingRenderer r100 = new CountingRenderer( 100 );
+        assertEquals( 100, cache.getTile( "a#0/0/0", r100 ).length );
+        assertEquals( 100, cache.getTile( "a#0/0/0", r100 ).length );
+        assertEquals( 1, r100.nCall_ );
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+        assertEquals( 100, cache.getTotalBytes() );
+
+        /* Least recently used tiles are evicted. */
+        cache.getTile( "a#1/0/0", r100 );
+        cache.getTile( "a#0/0/0", r100 );
+        cache.getTile( "b#0/0/0", r100 );
+        assertEquals( 2, cache.getTileCount() );
+        assertEquals( 200, cache.getTotalBytes() );
+        assertEquals( 1, cache.getEvictionCount() );
+        int ncall = r100.nCall_;
+        cache.getTile( "a#0/0/0", r100 );
+        assertEquals( ncall, r100.nCall_ );
+        cache.getTile( "a#1/0/0", r100 );
+        assertEquals( ncall + 1, r100.nCall_ );
+
+        /* Clearing by prefix. */
+        cache.clear( "b#" );
+        assertEquals( 2, cache.getTileCount() );
+        cache.clear( "a#" );
+        assertEquals( 0, cache.getTileCount() );
+        assertEquals( 0, cache.getTotalBytes() );
+
+        /* Failures are not cached. */
+        Callable<byte[]> failer = new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                throw new IOException( "no" );
+            }
+        };
+        try {
+            cache.getTile( "c#0/0/0", failer );
+            fail();
+        }
+        catch ( IOException e ) {
+            assertEquals( "no", e.getMessage() );
+        }
+        assertEquals( 0, cache.getTileCount() );
+        assertEquals( 100, cache.getTile( "c#0/0/0", r100 ).length );
+        assertEquals( 1, cache.getTileCount() );
+    }
+
+    public void testConcurrent() throws Exception {
+        final TileCache cache = new TileCache( 1000 );
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final CountingRenderer renderer = new CountingRenderer( 10 ) {
+            public byte[] call() throws Exception {
+                latch.await();
+                return super.call();
+            }
+        };
+        Thread[] threads = new Thread[ 8 ];
+        final int[] nOk = new int[ 1 ];
+        for ( int i = 0; i < threads.length; i++ ) {
+            threads[ i ] = new Thread() {
+                public void run() {
+                    try {
+                        cache.getTile( "t", renderer );
+                        synchronized ( nOk ) {
+                            nOk[ 0 ]++;
+                        }
+                    }
+                    catch ( IOException e ) {
+                    }
+                }
+            };
+            threads[ i ].start();
+        }
+        Thread.sleep( 100 );
+        latch.countDown();
+        for ( int i = 0; i < threads.length; i++ ) {
+            threads[ i ].join();
+        }
+        assertEquals( threads.length, nOk[ 0 ] );
+        assertEquals( 1, renderer.nCall_ );
+    }
+
+    public void testNoRetain() throws IOException {
+        TileCache cache = new TileCache( 0 );
+        CountingRenderer renderer = new CountingRenderer( 10 );
+        cache.getTile( "t", renderer );
+        cache.getTile( "t", renderer );
+        assertEquals( 2, renderer.nCall_ );
+        assertEquals( 0, cache.getTileCount() );
+        assertEquals( 0, cache.getTotalBytes() );
+    }
+
+    private static class CountingRenderer implements Callable<byte[]> {
+        final int size_;
+        int nCall_;
+        CountingRenderer( int size ) {
+            size_ = size;
+        }
+        public synchronized byte[] call() throws Exception {
+            nCall_++;
+            return new byte[ size_ ];
+        }
+    }
+}
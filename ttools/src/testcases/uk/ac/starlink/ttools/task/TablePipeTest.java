@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import nom.tam.util.BufferedDataInputStream;
@@ -18,6 +19,7 @@ import uk.ac.starlink.table.ColumnData;
 import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.DefaultValueInfo;
 import uk.ac.starlink.table.DescribedValue;
+import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.Tables;
 import uk.ac.starlink.task.TaskException;
@@ -337,6 +339,92 @@ public class TablePipeTest extends TableTestCase {
             getColNames( apply( "delcols 1; delcols 1; delcols 1" ) ) );
     }
 
+    public void testEpochprop() throws Exception {
+        String[] names = {
+            "ra", "dec", "parallax", "pmra", "pmdec", "radial_velocity",
+            "ra_error", "dec_error", "parallax_error",
+            "pmra_error", "pmdec_error", "radial_velocity_error",
+            "ra_dec_corr", "ra_parallax_corr", "ra_pmra_corr",
+            "ra_pmdec_corr", "dec_parallax_corr", "dec_pmra_corr",
+            "dec_pmdec_corr", "parallax_pmra_corr", "parallax_pmdec_corr",
+            "pmra_pmdec_corr",
+        };
+        int nr = 20000;
+        Random rnd = new Random( 2112 );
+        double[][] data = new double[ 22 ][ nr ];
+        for ( int ir = 0; ir < nr; ir++ ) {
+            data[ 0 ][ ir ] = rnd.nextDouble() * 360;
+            data[ 1 ][ ir ] = rnd.nextDouble() * 180 - 90;
+            data[ 2 ][ ir ] = 0.1 + rnd.nextDouble() * 10;
+            data[ 3 ][ ir ] = rnd.nextGaussian() * 50;
+            data[ 4 ][ ir ] = rnd.nextGaussian() * 50;
+            data[ 5 ][ ir ] = ir % 3 == 0 ? Double.NaN
+                                          : rnd.nextGaussian() * 50;
+            for ( int iq = 6; iq < 12; iq++ ) {
+                data[ iq ][ ir ] = 0.01 + rnd.nextDouble();
+            }
+            for ( int iq = 12; iq < 22; iq++ ) {
+                data[ iq ][ ir ] = rnd.nextDouble() - 0.5;
+            }
+        }
+        ColumnData[] cols = new ColumnData[ 22 ];
+        for ( int iq = 0; iq < 22; iq++ ) {
+            cols[ iq ] = col( names[ iq ], data[ iq ] );
+        }
+        StarTable gTable = new QuickTable( nr, cols );
+        StringBuffer args = new StringBuffer();
+        for ( int iq = 0; iq < 22; iq++ ) {
+            args.append( iq == 0 ? "" : "," )
+                .append( names[ iq ] );
+        }
+        StarTable t1 =
+            process( gTable,
+                     "epochprop -errs -15.5;"
+                   + "addcol -shape 22 ep epochPropErr(-15.5,array("
+                   + args + "))" );
+        assertEquals( 22 + 22 + 1, t1.getColumnCount() );
+        assertEquals( "pmra_pmdec_corr_prop",
+                      t1.getColumnInfo( 43 ).getName() );
+        RowSequence rseq = t1.getRowSequence();
+        long ir = 0;
+        while ( rseq.next() ) {
+            Object[] row = rseq.getRow();
+            double[] ep = (double[]) row[ 44 ];
+            for ( int iq = 0; iq < 22; iq++ ) {
+                double v = ((Number) row[ 22 + iq ]).doubleValue();
+                assertEquals( ep[ iq ], v,
+                              1e-8 * Math.max( 1.0, Math.abs( v ) ) );
+            }
+            if ( ir % 997 == 0 ) {
+                assertEquals( row[ 24 ], t1.getCell( ir, 24 ) );
+                assertEquals( Arrays.asList( row ).subList( 0, 44 ),
+                              Arrays.asList( t1.getRow( ir ) )
+                                    .subList( 0, 44 ) );
+            }
+            ir++;
+        }
+        rseq.close();
+        assertEquals( nr, ir );
+
+        StarTable t2 =
+            process( gTable,
+                     "epochprop -in 'ra dec parallax pmra pmdec -' "
+                   + "-suffix _2000 -15.5;"
+                   + "addcol -shape 6 ep6 epochProp(-15.5,array("
+                   + "ra,dec,parallax,pmra,pmdec))" );
+        assertEquals( 22 + 5 + 1, t2.getColumnCount() );
+        assertEquals( "pmdec_2000", t2.getColumnInfo( 26 ).getName() );
+        for ( int jr = 0; jr < nr; jr += 101 ) {
+            double[] ep6 = (double[]) t2.getCell( jr, 27 );
+            for ( int iq = 0; iq < 5; iq++ ) {
+                double v = ((Number) t2.getCell( jr, 22 + iq ))
+                          .doubleValue();
+                assertEquals( ep6[ iq ], v,
+                              1e-8 * Math.max( 1.0, Math.abs( v ) ) );
+            }
+        }
+    }
+
     public void testEvery() throws Exception {
         assertSameData( inTable_, apply( "every 1" ) );
             
@@ -809,6 +897,9 @@ public class TablePipeTest extends TableTestCase {
         assertArrayEquals(
             new int[] { 4, 3, 2, 3 },
             unbox( getColData( apply( "stats cardinality" ), 0 ) ) );
+        assertArrayEquals(
+            new long[] { 4L, 3L, 2L, 3L },
+            unbox( getColData( apply( "stats countdistinct" ), 0 ) ) );
 
         // n.b. the Floats here could/should be Doubles.
         assertArrayEquals(
@@ -851,6 +942,26 @@ public class TablePipeTest extends TableTestCase {
         assertArrayEquals(
             new String[] { "DupCount", "a", "b", "c", "d" },
             getColNames( apply( "uniq -count" ) ) );
+
+        String pre = "addcol e a%2; select true; ";
+        assertEquals( 2L, Tables.randomTable( apply( pre + "uniq -global e" ) )
+                         .getRowCount() );
+        assertEquals( 4L, Tables.randomTable( apply( "uniq -global" ) )
+                         .getRowCount() );
+        assertArrayEquals(
+            new int[] { 2, 2 },
+            unbox( getColData( apply( pre + "uniq -global -count e;"
+                                          + "sort a" ), 0 ) ) );
+        assertArrayEquals(
+            new int[] { 1, 2 },
+            unbox( getColData( apply( pre + "uniq -global -count e;"
+                                          + "sort a" ), 1 ) ) );
+        assertArrayEquals(
+            new Object[] { new Boolean( true ), new Boolean( false ) },
+            getColData( apply( "uniq -global -count c; sort -down c" ), 3 ) );
+        assertArrayEquals(
+            new String[] { "DupCount", "a", "b", "c", "d", "e" },
+            getColNames( apply( pre + "uniq -global -count e" ) ) );
     }
 
 }
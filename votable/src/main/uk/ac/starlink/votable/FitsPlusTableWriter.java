@@ -32,6 +32,13 @@ import uk.ac.starlink.table.StarTableWriter;
  * the VOTMETA card in particular marking that this HDU contains VOTable
  * metadata.
  *
+ * <p>When writing to a file, tables can be written in a single pass
+ * through their data in the same circumstances as for
+ * {@link uk.ac.starlink.fits.FitsTableWriter}.
+ * In that case the VOTable text in the primary HDU is padded with
+ * trailing spaces to the end of its FITS block, and rewritten
+ * once the table data has been written.
+ *
  * @author   Mark Taylor (Starlink)
  * @since    26 Aug 2004
  */
@@ -95,6 +102,12 @@ public class FitsPlusTableWriter extends VOTableFitsTableWriter {
         return new StandardFitsTableSerializer( table, false, wide_ );
     }
 
+    protected FitsTableSerializer createSinglePassSerializer( StarTable table )
+            throws IOException {
+        return StandardFitsTableSerializer
+              .createSinglePassSerializer( table, false, wide_ );
+    }
+
     /**
      * Returns a list of FITS-plus table writers with variant values of
      * attributes.
@@ -7,7 +7,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
@@ -66,25 +68,51 @@ public abstract class VOTableFitsTableWriter extends AbstractFitsTableWriter {
         }
         StarTable[] tables = tableList.toArray( new StarTable[ 0 ] );
         int ntable = tables.length;
+        FileChannel chan = getSinglePassChannel( out );
         FitsTableSerializer[] fitsers = new FitsTableSerializer[ ntable ];
+        boolean[] singles = new boolean[ ntable ];
+        boolean anySingle = false;
         for ( int i = 0; i < ntable; i++ ) {
-            fitsers[ i ] = createSerializer( tables[ i ] );
+            FitsTableSerializer fitser =
+                chan == null ? null : createSinglePassSerializer( tables[ i ] );
+            singles[ i ] = fitser != null;
+            anySingle = anySingle || singles[ i ];
+            fitsers[ i ] = singles[ i ] ? fitser
+                                        : createSerializer( tables[ i ] );
         }
 
         /* Prepare destination stream. */
         DataOutputStream dout = new DataOutputStream( out );
         out = null;
 
-        /* Write the primary HDU. */
-        writePrimaryHDU( tables, fitsers, dout );
+        /* Write the primary HDU.  If any tables are being written in
+         * a single pass, the metadata is provisional, so note where
+         * it is for later rewriting. */
+        long primaryPos = -1;
+        if ( anySingle ) {
+            dout.flush();
+            primaryPos = chan.position();
+        }
+        int textLeng = writePrimaryHDU( tables, fitsers, dout, anySingle );
 
         /* Write the data. */
         for ( int i = 0; i < ntable; i++ ) {
-            writeTableHDU( tables[ i ], fitsers[ i ], dout );
+            if ( singles[ i ] ) {
+                writeSinglePassTableHDU( tables[ i ], fitsers[ i ], dout,
+                                         chan );
+            }
+            else {
+                writeTableHDU( tables[ i ], fitsers[ i ], dout );
+            }
         }
 
         /* Tidy up. */
         dout.flush();
+
+        /* Replace provisional with definitive metadata if required. */
+        if ( anySingle && textLeng >= 0 ) {
+            rewritePrimaryHDU( tables, fitsers, textLeng, chan, primaryPos );
+        }
     }
 
     /**
@@ -100,20 +128,35 @@ public abstract class VOTableFitsTableWriter extends AbstractFitsTableWriter {
     /**
      * Writes the primary HDU for a number of tables.
      *
+     * <p>If the <code>reserve</code> flag is set, the metadata is
+     * taken to be provisional, and the VOTable text is padded with
+     * trailing spaces to fill the last block of the HDU,
+     * so that it can later be rewritten with definitive metadata
+     * of a somewhat different length.
+     *
      * @param  tables  array of tables to write
      * @param  fitsers array of serializers corresponding to <code>tables</code>
      * @param  strm    destination stream
+     * @param  reserve  whether to reserve space for rewriting the metadata
+     * @return  number of bytes in the primary HDU's data array,
+     *          or -1 if the VOTable metadata could not be written
      */
-    private void writePrimaryHDU( StarTable[] tables,
-                                  FitsTableSerializer[] fitsers,
-                                  DataOutput strm )
+    private int writePrimaryHDU( StarTable[] tables,
+                                 FitsTableSerializer[] fitsers,
+                                 DataOutput strm, boolean reserve )
             throws IOException {
 
         /* Try to write the metadata as VOTable text in the primary HDU. */
         Exception thrown = null;
         try {
-            writeVOTablePrimary( tables, fitsers, strm );
-            return;
+            byte[] textBytes = getVOTableText( tables, fitsers );
+            int leng = textBytes.length;
+            if ( reserve ) {
+                int block = FitsConstants.FITS_BLOCK;
+                leng = ( ( leng + block - 1 ) / block ) * block;
+            }
+            writeVOTablePrimary( textBytes, leng, tables.length, strm );
+            return leng;
         }
         catch ( IOException e ) {
             thrown = e;
@@ -128,20 +171,58 @@ public abstract class VOTableFitsTableWriter extends AbstractFitsTableWriter {
                     "Failed to write VOTable metadata to primary HDU",
                     thrown );
         FitsConstants.writeEmptyPrimary( strm );
+        return -1;
     }
 
     /**
-     * Writes a primary that consists of a byte array holding a 
-     * UTF8-encoded VOTable which holds the table metadata.
+     * Overwrites a primary HDU written by {@link #writePrimaryHDU}
+     * with metadata reflecting the tables as they have actually
+     * been written.  If the new metadata will not fit in the space
+     * available, the provisional metadata is left in place.
+     *
+     * @param  tables  array of tables written
+     * @param  fitsers array of serializers corresponding to <code>tables</code>
+     * @param  textLeng  number of bytes in the primary HDU's data array
+     * @param  chan   file channel holding the output
+     * @param  pos    offset into file of the primary HDU
+     */
+    private void rewritePrimaryHDU( StarTable[] tables,
+                                    FitsTableSerializer[] fitsers,
+                                    int textLeng, FileChannel chan,
+                                    long pos )
+            throws IOException {
+        try {
+            byte[] textBytes = getVOTableText( tables, fitsers );
+            if ( textBytes.length <= textLeng ) {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                writeVOTablePrimary( textBytes, textLeng, tables.length,
+                                     new DataOutputStream( bout ) );
+                rewrite( chan, pos, bout.toByteArray() );
+            }
+            else {
+                logger.warning( "No room for definitive VOTable metadata ("
+                              + textBytes.length + " > " + textLeng
+                              + " bytes); leaving provisional version" );
+            }
+        }
+        catch ( FitsException e ) {
+            logger.log( Level.WARNING,
+                        "Failed to rewrite VOTable metadata in primary HDU",
+                        e );
+        }
+    }
+
+    /**
+     * Returns the bytes of a UTF8-encoded VOTable which holds the
+     * metadata for a number of tables.
      *
      * @param  tables  tables to write
      * @param  fitsers   FITS serializers
-     * @param  out   destination stream
+     * @return  VOTable document bytes
      */
-    private void writeVOTablePrimary( StarTable[] tables,
-                                      FitsTableSerializer[] fitsers,
-                                      DataOutput out )
-            throws IOException, FitsException {
+    private byte[] getVOTableText( StarTable[] tables,
+                                   FitsTableSerializer[] fitsers )
+            throws IOException {
 
         /* Get a serializer that knows how to write VOTable metadata for
          * this table. */
@@ -192,9 +273,25 @@ public abstract class VOTableFitsTableWriter extends AbstractFitsTableWriter {
         writer.flush();
 
         /* Get a byte array containing the VOTable text. */
-        byte[] textBytes = textWriter.getBuffer().toString()
-                                     .getBytes( XML_ENCODING );
-        int nbyte = textBytes.length;
+        return textWriter.getBuffer().toString().getBytes( XML_ENCODING );
+    }
+
+    /**
+     * Writes a primary that consists of a byte array holding a 
+     * UTF8-encoded VOTable which holds the table metadata.
+     * If the data array is longer than the text, the remainder is
+     * filled with spaces, which are permitted after the end of
+     * an XML document.
+     *
+     * @param  textBytes  VOTable document bytes
+     * @param  nbyte   length of data array, not less than
+     *                 <code>textBytes.length</code>
+     * @param  ntable  number of tables described
+     * @param  out   destination stream
+     */
+    private void writeVOTablePrimary( byte[] textBytes, int nbyte, int ntable,
+                                      DataOutput out )
+            throws IOException, FitsException {
 
         /* Prepare and write a FITS header describing the character data. */
         Header hdr = FitsConstants.createUnsortedHeader();
@@ -226,11 +323,17 @@ public abstract class VOTableFitsTableWriter extends AbstractFitsTableWriter {
         assert primaryHeaderOK( hdr );
         FitsConstants.writeHeader( out, hdr );
 
-        /* Write the character data itself. */
+        /* Write the character data itself, padded with spaces
+         * if required. */
         out.write( textBytes );
+        if ( nbyte > textBytes.length ) {
+            byte[] spaces = new byte[ nbyte - textBytes.length ];
+            Arrays.fill( spaces, (byte) ' ' );
+            out.write( spaces );
+        }
 
         /* Write padding to the end of the FITS block. */
-        int partial = textBytes.length % FitsConstants.FITS_BLOCK;
+        int partial = nbyte % FitsConstants.FITS_BLOCK;
         if ( partial > 0 ) {
             int pad = FitsConstants.FITS_BLOCK - partial;
             out.write( new byte[ pad ] );
@@ -15,11 +15,15 @@ import uk.ac.starlink.table.ColumnInfo;
 import uk.ac.starlink.table.ColumnStarTable;
 import uk.ac.starlink.table.DefaultValueInfo;
 import uk.ac.starlink.table.DescribedValue;
+import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
+import uk.ac.starlink.table.StarTableOutput;
 import uk.ac.starlink.table.StarTableWriter;
 import uk.ac.starlink.table.StoragePolicy;
 import uk.ac.starlink.table.TableBuilder;
+import uk.ac.starlink.table.Tables;
 import uk.ac.starlink.table.ValueInfo;
+import uk.ac.starlink.table.WrapperStarTable;
 import uk.ac.starlink.util.FileDataSource;
 import uk.ac.starlink.votable.FitsPlusTableBuilder;
 import uk.ac.starlink.votable.FitsPlusTableWriter;
@@ -94,6 +98,46 @@ public class FitsPlusTest extends TestCase {
         }
     }
 
+    public void testSinglePass() throws IOException {
+        ColumnInfo nullInfo =
+            new ColumnInfo( "col2", Integer.class, "Some nulls" );
+        table_.addColumn( ArrayColumn.makeColumn( nullInfo, new Integer[] {
+            new Integer( 99 ), null,
+        } ) );
+        final int[] nseq = new int[ 1 ];
+        StarTable streamTable = new WrapperStarTable( table_ ) {
+            public long getRowCount() {
+                return -1L;
+            }
+            public boolean isRandom() {
+                return false;
+            }
+            public RowSequence getRowSequence() throws IOException {
+                nseq[ 0 ]++;
+                return super.getRowSequence();
+            }
+        };
+        File tmp = File.createTempFile( "table", ".fits" );
+        tmp.deleteOnExit();
+        FitsPlusTableWriter writer = new FitsPlusTableWriter();
+        writer.writeStarTables( Tables.singleTableSequence( streamTable ),
+                                tmp.toString(), new StarTableOutput() );
+        assertEquals( 1, nseq[ 0 ] );
+        FitsPlusTableBuilder builder = new FitsPlusTableBuilder();
+        StarTable t2 =
+            builder.makeStarTable( new FileDataSource( tmp ), true,
+                                   StoragePolicy.PREFER_MEMORY );
+        assertEquals( 2, t2.getRowCount() );
+        assertEquals( new Integer( 32 ), t2.getCell( 1, 0 ) );
+        assertEquals( new Integer( 99 ), t2.getCell( 0, 1 ) );
+        assertNull( t2.getCell( 1, 1 ) );
+        assertEquals( authorParam.getValue(),
+            t2.getParameterByName( AUTHOR_INFO.getName() ).getValue() );
+        assertEquals( COL1_INFO.getDescription(),
+                      t2.getColumnInfo( 0 ).getDescription() );
+        assertEquals( "Some nulls", t2.getColumnInfo( 1 ).getDescription() );
+    }
+
     private StarTable copyTable( StarTable table, 
                                  StarTableWriter outie, TableBuilder innie ) 
            throws IOException {